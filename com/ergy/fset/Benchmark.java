@@ -0,0 +1,334 @@
+/*
+ * Benchmark.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/* A quick-and-dirty timing harness.  It's no substitute for a real benchmarking
+ * framework -- there's no warmup control or statistical treatment to speak of --
+ * but it's enough to see the effect of a representation change.  For each
+ * operation it reports the elapsed time, the number of calls to the elements'
+ * `hashCode' methods, and for the bulk structures, the approximate heap space
+ * retained per element.
+ */
+public class Benchmark {
+
+    public static void main(String[] args) {
+	if (args.length > 1) {
+	    println("Usage: java Benchmark [n_elements]");
+	    exit();
+	}
+	int n_elts = args.length == 0 ? 100000 : Integer.decode(args[0]).intValue();
+	// Run everything twice; the first round is just to warm up the JIT.
+	for (int round = 0; round < 2; ++round) {
+	    println(round == 0 ? "Warming up..." : "Results:");
+	    benchFHashSet(n_elts, round > 0);
+	    benchFHashMap(n_elts, round > 0);
+	    benchFIntSet(n_elts, round > 0);
+	}
+    }
+
+    static void benchFHashSet(int n_elts, boolean report) {
+	Random rand = new Random(0xdeadbeefcafeL);
+	SlowKey[] keys0 = makeKeys(rand, n_elts);
+	SlowKey[] keys1 = makeKeys(rand, n_elts);
+	long t0, mem0;
+
+	mem0 = usedMemory();
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashSet<SlowKey> fhs0 = new FHashSet<SlowKey>();
+	for (SlowKey k : keys0) fhs0 = fhs0.with(k);
+	report(report, "FHashSet with", t0, n_elts);
+	long bytes = usedMemory() - mem0;
+	if (report)
+	    println("  FHashSet space: ~" + (bytes / n_elts) +
+		    " bytes/element (excluding the elements themselves)");
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashSet<SlowKey> fhs1 = new FHashSet<SlowKey>(keys1);
+	report(report, "FHashSet bulk construction", t0, n_elts);
+
+	resetCounts();
+	t0 = System.nanoTime();
+	int hits = 0;
+	for (SlowKey k : keys0)
+	    if (fhs0.contains(k)) ++hits;
+	for (SlowKey k : keys1)
+	    if (fhs0.contains(k)) ++hits;
+	report(report, "FHashSet contains", t0, 2 * n_elts);
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashSet<SlowKey> u = fhs0.union(fhs1);
+	report(report, "FHashSet union", t0, u.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashSet<SlowKey> pu = fhs0.parallelUnion(fhs1);
+	report(report, "FHashSet parallelUnion", t0, u.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashSet<SlowKey> is = fhs0.intersection(fhs1);
+	report(report, "FHashSet intersection", t0, n_elts);
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashSet<SlowKey> pis = fhs0.parallelIntersection(fhs1);
+	report(report, "FHashSet parallelIntersection", t0, n_elts);
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashSet<SlowKey> d = u.difference(fhs1);
+	report(report, "FHashSet difference", t0, u.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	boolean sub = d.isSubset(u) && fhs0.isSubset(u);
+	report(report, "FHashSet isSubset", t0, u.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	for (SlowKey k : keys1) fhs0 = fhs0.less(k);
+	report(report, "FHashSet less", t0, n_elts);
+
+	if (!sub || hits < n_elts || !d.equals(fhs0) || is.size() > n_elts ||
+	    !pu.equals(u) || !pis.equals(is)) {
+	    println("FHashSet benchmark sanity check failed!");
+	    exit();
+	}
+    }
+
+    // Compares `FIntSet' against `FHashSet<Integer>', on the same keys.
+    static void benchFIntSet(int n_elts, boolean report) {
+	Random rand = new Random(0xdeadbeefcafeL);
+	int[] keys0 = new int[n_elts], keys1 = new int[n_elts];
+	for (int i = 0; i < n_elts; ++i) {
+	    keys0[i] = rand.nextInt(2 * n_elts);
+	    keys1[i] = rand.nextInt(2 * n_elts);
+	}
+	long t0, mem0;
+
+	mem0 = usedMemory();
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashSet<Integer> fhs0 = new FHashSet<Integer>();
+	for (int k : keys0) fhs0 = fhs0.with(k);
+	report(report, "FHashSet<Integer> with", t0, n_elts);
+	long bytes = usedMemory() - mem0;
+	if (report)
+	    println("  FHashSet<Integer> space: ~" + (bytes / n_elts) + " bytes/element");
+
+	mem0 = usedMemory();
+	resetCounts();
+	t0 = System.nanoTime();
+	FIntSet fis0 = new FIntSet();
+	for (int k : keys0) fis0 = fis0.with(k);
+	report(report, "FIntSet with", t0, n_elts);
+	bytes = usedMemory() - mem0;
+	if (report) println("  FIntSet space: ~" + (bytes / n_elts) + " bytes/element");
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FIntSet fis1 = new FIntSet(keys1);
+	report(report, "FIntSet bulk construction", t0, n_elts);
+	FHashSet<Integer> fhs1 = new FHashSet<Integer>(fis1);
+
+	resetCounts();
+	t0 = System.nanoTime();
+	int hits0 = 0;
+	for (int k : keys1)
+	    if (fhs0.contains(k)) ++hits0;
+	report(report, "FHashSet<Integer> contains", t0, n_elts);
+
+	resetCounts();
+	t0 = System.nanoTime();
+	int hits1 = 0;
+	for (int k : keys1)
+	    if (fis0.contains(k)) ++hits1;
+	report(report, "FIntSet contains", t0, n_elts);
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashSet<Integer> hu = fhs0.union(fhs1);
+	report(report, "FHashSet<Integer> union", t0, hu.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FIntSet u = fis0.union(fis1);
+	report(report, "FIntSet union", t0, u.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FIntSet d = u.difference(fis1);
+	report(report, "FIntSet difference", t0, u.size());
+
+	if (hits0 != hits1 || !u.equals(hu) || !d.isSubset(fis0)) {
+	    println("FIntSet benchmark sanity check failed!");
+	    exit();
+	}
+    }
+
+    static void benchFHashMap(int n_elts, boolean report) {
+	Random rand = new Random(0xdeadbeefcafeL);
+	SlowKey[] keys0 = makeKeys(rand, n_elts);
+	SlowKey[] keys1 = makeKeys(rand, n_elts);
+	long t0, mem0;
+
+	mem0 = usedMemory();
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashMap<SlowKey, Integer> fhm0 = new FHashMap<SlowKey, Integer>();
+	for (int i = 0; i < n_elts; ++i) fhm0 = fhm0.with(keys0[i], i);
+	report(report, "FHashMap with", t0, n_elts);
+	long bytes = usedMemory() - mem0;
+	if (report)
+	    println("  FHashMap space: ~" + (bytes / n_elts) +
+		    " bytes/pair (excluding the keys and values themselves)");
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashMap.Builder<SlowKey, Integer> fhmb = new FHashMap.Builder<SlowKey, Integer>(n_elts);
+	for (int i = 0; i < n_elts; ++i) fhmb.put(keys1[i], i);
+	FHashMap<SlowKey, Integer> fhm1 = fhmb.build();
+	report(report, "FHashMap Builder", t0, n_elts);
+	FHashSet<SlowKey> fhs1 = fhm1.domain();
+
+	resetCounts();
+	t0 = System.nanoTime();
+	int hits = 0;
+	for (SlowKey k : keys0)
+	    if (fhm0.get(k) != null) ++hits;
+	for (SlowKey k : keys1)
+	    if (fhm0.get(k) != null) ++hits;
+	report(report, "FHashMap get", t0, 2 * n_elts);
+
+	resetCounts();
+	t0 = System.nanoTime();
+	long sum0 = 0;
+	for (Map.Entry<SlowKey, Integer> ent : fhm0) sum0 += ent.getValue();
+	report(report, "FHashMap iterate", t0, fhm0.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	final long[] sum1 = new long[1];
+	fhm0.forEach(new BiConsumer<SlowKey, Integer>() {
+		public void accept(SlowKey k, Integer v) { sum1[0] += v; }
+	    });
+	report(report, "FHashMap forEach", t0, fhm0.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashMap<SlowKey, Integer> u = fhm0.union(fhm1);
+	report(report, "FHashMap union", t0, u.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashMap<SlowKey, Integer> pu = fhm0.parallelUnion(fhm1, Benchmark.<Integer>second());
+	report(report, "FHashMap parallelUnion", t0, u.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashMap<SlowKey, Integer> rt = u.restrictedTo(fhs1);
+	report(report, "FHashMap restrictedTo", t0, u.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	FHashMap<SlowKey, Integer> rf = u.restrictedFrom(fhs1);
+	report(report, "FHashMap restrictedFrom", t0, u.size());
+
+	resetCounts();
+	t0 = System.nanoTime();
+	for (SlowKey k : keys1) fhm0 = fhm0.less(k);
+	report(report, "FHashMap less", t0, n_elts);
+
+	if (hits < n_elts || !rt.equals(fhm1) || rf.size() + rt.size() != u.size() ||
+	    !pu.equals(u) || sum0 != sum1[0] ||
+	    !rf.domain().equals(fhm0.domain())) {
+	    println("FHashMap benchmark sanity check failed!");
+	    exit();
+	}
+    }
+
+    /* A key whose `hashCode' is deliberately not cached, like a record of several
+     * fields or a `List' of strings. */
+    static final class SlowKey {
+	SlowKey(String _a, String _b, int _c) {
+	    a = _a;
+	    b = _b;
+	    c = _c;
+	}
+	private final String a, b;
+	private final int c;
+	public boolean equals(Object x) {
+	    if (x == this) return true;
+	    else if (!(x instanceof SlowKey)) return false;
+	    else {
+		SlowKey k = (SlowKey)x;
+		return c == k.c && a.equals(k.a) && b.equals(k.b);
+	    }
+	}
+	public int hashCode() {
+	    ++hashCodeCalls;
+	    int h = c;
+	    for (int i = 0, len = a.length(); i < len; ++i) h = 31 * h + a.charAt(i);
+	    for (int i = 0, len = b.length(); i < len; ++i) h = 31 * h + b.charAt(i);
+	    return h;
+	}
+	public String toString() { return a + "/" + b + "/" + c; }
+    }
+
+    static long hashCodeCalls = 0;
+
+    static <T> BinaryOp<T> second() {
+	return new BinaryOp<T>() {
+	    public T apply(T x, T y) { return y; }
+	};
+    }
+
+    static SlowKey[] makeKeys(Random rand, int n) {
+	SlowKey[] res = new SlowKey[n];
+	for (int i = 0; i < n; ++i) {
+	    // Draw from a range twice the size of `n', so that two key sets overlap
+	    // by about half.
+	    int r = rand.nextInt(2 * n);
+	    res[i] = new SlowKey("com.example.some.rather.long.prefix." + r,
+				 "and-a-suffix-" + (r % 97), r);
+	}
+	return res;
+    }
+
+    static void resetCounts() {
+	hashCodeCalls = 0;
+    }
+
+    static void report(boolean report, String what, long t0, int n_ops) {
+	long nanos = System.nanoTime() - t0;
+	if (report)
+	    println("  " + what + ": " + (nanos / 1000000) + " ms; " +
+		    (n_ops == 0 ? "-" : String.format("%.1f", (double)nanos / n_ops)) +
+		    " ns/elt; " +
+		    (n_ops == 0 ? "-" : String.format("%.2f", (double)hashCodeCalls / n_ops)) +
+		    " hashCode calls/elt");
+    }
+
+    static long usedMemory() {
+	Runtime rt = Runtime.getRuntime();
+	for (int i = 0; i < 3; ++i) System.gc();
+	return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static void println(String str) { System.out.println(str); }
+
+    static void exit() { System.exit(1); }
+
+}
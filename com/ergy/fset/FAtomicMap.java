@@ -0,0 +1,109 @@
+/*
+ * FAtomicMap.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.util.function.UnaryOperator;
+
+/**
+ * An {@link FRef} holding a functional map, with methods for the usual updates.
+ * Each of them replaces the map atomically with the result of the corresponding
+ * <code>FMap</code> operation, and returns the new map; under contention, they are
+ * combined as <code>FRef</code> describes.  For example:
+ *
+ * <pre>
+ *     FAtomicMap<String, Integer> counts = new FAtomicMap<String, Integer>(
+ *         FHashMap.<String, Integer>withDefault(0));
+ *     ...
+ *     counts.with(word, 1, plus);    // in any number of threads
+ * </pre>
+ *
+ * where <code>plus</code> is a <code>BinaryOp</code> that adds its arguments.
+ * Other updates can be made with <code>update</code>.
+ *
+ * @param Key the type of the keys
+ * @param Val the type of the values
+ * @author Scott L. Burson
+ */
+
+public class FAtomicMap<Key, Val> extends FRef<FMap<Key, Val>> {
+
+    /**
+     * Constructs an <code>FAtomicMap</code> holding an empty <code>FHashMap</code>.
+     */
+    public FAtomicMap() {
+	super(FHashMap.<Key, Val>emptyMap());
+    }
+
+    /**
+     * Constructs an <code>FAtomicMap</code> holding <code>initial</code>.
+     */
+    public FAtomicMap(FMap<Key, Val> initial) {
+	super(initial);
+    }
+
+    /**
+     * Atomically adds a mapping from <code>key</code> to <code>value</code>, as
+     * <code>FMap.with</code> does.
+     *
+     * @return the new map
+     */
+    public FMap<Key, Val> with(final Key key, final Val value) {
+	return update(new UnaryOperator<FMap<Key, Val>>() {
+		public FMap<Key, Val> apply(FMap<Key, Val> map) {
+		    return map.with(key, value);
+		}
+	    });
+    }
+
+    /**
+     * Atomically adds a mapping from <code>key</code> to <code>value</code>,
+     * combined with any existing value by <code>valCombiner</code>, as
+     * <code>FMap.with</code> does.
+     *
+     * @return the new map
+     */
+    public FMap<Key, Val> with(final Key key, final Val value,
+			       final BinaryOp<Val> valCombiner) {
+	return update(new UnaryOperator<FMap<Key, Val>>() {
+		public FMap<Key, Val> apply(FMap<Key, Val> map) {
+		    return map.with(key, value, valCombiner);
+		}
+	    });
+    }
+
+    /**
+     * Atomically removes any mapping for <code>key</code>, as
+     * <code>FMap.less</code> does.
+     *
+     * @return the new map
+     */
+    public FMap<Key, Val> less(final Key key) {
+	return update(new UnaryOperator<FMap<Key, Val>>() {
+		public FMap<Key, Val> apply(FMap<Key, Val> map) {
+		    return map.less(key);
+		}
+	    });
+    }
+
+    /**
+     * Atomically adds the mappings of <code>with_map</code>, as
+     * <code>FMap.union</code> does.
+     *
+     * @return the new map
+     */
+    public FMap<Key, Val> union(final FMap<? extends Key, ? extends Val> with_map) {
+	return update(new UnaryOperator<FMap<Key, Val>>() {
+		public FMap<Key, Val> apply(FMap<Key, Val> map) {
+		    return map.union(with_map);
+		}
+	    });
+    }
+
+}
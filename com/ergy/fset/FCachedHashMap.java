@@ -0,0 +1,357 @@
+/*
+ * FCachedHashMap.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * Just like <code>FHashMap</code> except that it never calls <code>hashCode</code>
+ * on a key once the key is in the map.  Each key's hash code is computed once, when
+ * the pair is added, and kept in the tree alongside it; <code>get</code>,
+ * <code>with</code>, and <code>less</code> call <code>hashCode</code> only on their
+ * argument, and <code>union</code>, <code>restrictedTo</code>,
+ * <code>restrictedFrom</code>, <code>equals</code>, and <code>compareTo</code> don't
+ * call it at all, even when the other map or set is an ordinary <code>FHashMap</code>
+ * or <code>FHashSet</code>.  Unlike that of <code>FHashMap</code>, the
+ * <code>hashCode</code> of this map is computed from the cached hash codes of the
+ * keys (the values' hash codes are not cached, and are computed as usual), and
+ * serialization writes them out along with the pairs, so that deserialization
+ * doesn't have to recompute them either.  <code>domain</code> returns a
+ * <code>FCachedHashSet</code> that shares the cached hash codes.
+ *
+ * <p>This is the better choice when the keys' hash codes are expensive to compute and
+ * the keys don't cache them themselves -- for instance, when the keys are large
+ * collections.  Because of the cached hash codes written by serialization, it should
+ * be used only with keys whose hash codes are the same in every JVM: ones computed
+ * from their contents, as for <code>String</code>s and the FSet collections, not
+ * <code>Object.hashCode</code>'s identity hash codes.
+ *
+ * @author Scott L. Burson
+ * @see FHashMap
+ * @see FCachedHashSet
+ */
+
+public class FCachedHashMap<Key, Val>
+    extends AbstractFMap<Key, Val>
+    implements Comparable<FCachedHashMap<Key, Val>>, Serializable
+{
+
+    /**
+     * Returns an empty FCachedHashMap.  Slightly more efficient than calling the
+     * constructor, because it returns a canonical instance.
+     */
+    public static <Key, Val> FCachedHashMap<Key, Val> emptyMap() {
+	return (FCachedHashMap<Key, Val>)EMPTY_INSTANCE;
+    }
+
+    /**
+     * Constructs an empty <code>FCachedHashMap</code>.
+     */
+    public FCachedHashMap() {
+	map = FHashMap.emptyMap();
+    }
+
+    /**
+     * Constructs a <code>FCachedHashMap</code> containing the same entries as
+     * <code>map</code>.  If <code>map</code> is a <code>FHashMap</code> or a
+     * <code>FCachedHashMap</code>, the hash codes it has already computed are used.
+     *
+     * @param map the map to use the entries of
+     */
+    public FCachedHashMap(Map<? extends Key, ? extends Val> map) {
+	this.map = new FHashMap<Key, Val>(map);
+    }
+
+    /**
+     * Constructs a <code>FCachedHashMap</code> mapping each element of
+     * <code>keys</code> to the corresponding element of <code>vals</code>.  If a key is
+     * duplicated, the value it will be mapped to in the result will be the one
+     * corresponding to its last occurrence.
+     *
+     * @throws IllegalArgumentException if keys.length != vals.length
+     */
+    public FCachedHashMap(Key[] keys, Val[] vals) {
+	map = new FHashMap<Key, Val>(keys, vals);
+    }
+
+    /**
+     * Constructs and returns an empty <code>FCachedHashMap</code> with default
+     * <code>dflt</code>.  The resulting map's <code>get</code> method returns
+     * <code>dflt</code> when called with a key which is not in the map.
+     *
+     * @param dflt the default value
+     * @return the new <code>FCachedHashMap</code>
+     */
+    public static <Key, Val> FCachedHashMap<Key, Val> withDefault(Val dflt) {
+	return new FCachedHashMap<Key, Val>(FHashMap.<Key, Val>withDefault(dflt));
+    }
+
+    /**
+     * Constructs and returns a <code>FCachedHashMap</code> with default
+     * <code>dflt</code>, containing the same entries as <code>map</code>.  The
+     * resulting map's <code>get</code> method returns <code>dflt</code> when called
+     * with a key which is not in the map.
+     *
+     * @param map the map to use the entries of
+     * @param dflt the default value
+     * @return the new <code>FCachedHashMap</code>
+     */
+    public static <Key, Val> FCachedHashMap<Key, Val>
+	withDefault(Map<? extends Key, ? extends Val> map, Val dflt) {
+	return new FCachedHashMap<Key, Val>(FHashMap.<Key, Val>withDefault(map, dflt));
+    }
+
+    public boolean isEmpty() {
+	return map.isEmpty();
+    }
+
+    public int size() {
+	return map.size();
+    }
+
+    public Map.Entry<Key, Val> arb() {
+	return map.arb();
+    }
+
+    /**
+     * Returns true iff this map contains an entry with key <code>entry.getKey()</code>,
+     * with corresponding value <code>entry.getValue()</code>.  (Returns false when there
+     * is no entry for the key, even if the value is equal to the map's default.)
+     */
+    public boolean contains(Map.Entry<Key, Val> entry) {
+	return map.contains(entry);
+    }
+
+    public boolean containsKey(Object key) {
+	return map.containsKey(key);
+    }
+
+    /**
+     * Returns the value to which this map maps <code>key</code>.  If this map
+     * contains no entry for <code>key</code>, returns this map's default value,
+     * which is normally <code>null</code>, but may be a different value if the map
+     * was given a default using <code>withDefault</code>.
+     * */
+    public Val get(Object key) {
+	return map.get(key);
+    }
+
+    public FCachedHashMap<Key, Val> with(Key key, Val value) {
+	return remake(map.with(key, value));
+    }
+
+    public FCachedHashMap<Key, Val> with(Key key, Val value, BinaryOp<Val> valCombiner) {
+	return remake(map.with(key, value, valCombiner));
+    }
+
+    public FCachedHashMap<Key, Val> less(Key key) {
+	return remake(map.less(key));
+    }
+
+    public Set<Key> keySet() {
+	return map.keySet();
+    }
+
+    public Collection<Val> values() {
+	return map.values();
+    }
+
+    public Set<Map.Entry<Key, Val>> entrySet() {
+	return map.entrySet();
+    }
+
+    public FCachedHashSet<Key> domain() {
+	return FCachedHashSet.make(map.domain());
+    }
+
+    /**
+     * Returns the range of the map (the set of values it contains).  The returned set
+     * is a {@link FHashSet}.
+     *
+     * @return the range set of this map
+     */
+    public FSet<Val> range() {
+	return map.range();
+    }
+
+    public FSet<Val> range(FSet<Val> initial_set) {
+	return map.range(initial_set);
+    }
+
+    public FHashSet<Map.Entry<Key, Val>> toSet() {
+	return map.toSet();
+    }
+
+    public FSet<Map.Entry<Key, Val>> toSet(FSet<Map.Entry<Key, Val>> initial_set) {
+	return map.toSet(initial_set);
+    }
+
+    public FCachedHashMap<Key, Val> union(FMap<? extends Key, ? extends Val> with_map) {
+	return remake(map.union(with_map));
+    }
+
+    public FCachedHashMap<Key, Val> union(FMap<? extends Key, ? extends Val> with_map,
+					  BinaryOp<Val> valCombiner) {
+	return remake(map.union(with_map, valCombiner));
+    }
+
+    public FCachedHashMap<Key, Val> restrictedTo(FSet<Key> set) {
+	return remake(map.restrictedTo(set));
+    }
+
+    public FCachedHashMap<Key, Val> restrictedFrom(FSet<Key> set) {
+	return remake(map.restrictedFrom(set));
+    }
+
+    public Val getDefault() {
+	return map.getDefault();
+    }
+
+    public Iterator<Map.Entry<Key, Val>> iterator() {
+	return map.iterator();
+    }
+
+    public Spliterator<Map.Entry<Key, Val>> spliterator() {
+	return map.spliterator();
+    }
+
+    public void forEach(BiConsumer<? super Key, ? super Val> action) {
+	map.forEach(action);
+    }
+
+    public boolean forEachWhile(BiPredicate<? super Key, ? super Val> pred) {
+	return map.forEachWhile(pred);
+    }
+
+    public void diff(FMap<? extends Key, ? extends Val> other,
+		     MapDiff.Handler<? super Key, ? super Val> handler) {
+	map.diff(other, handler);
+    }
+
+    public MapDiff<Key, Val> diff(FMap<? extends Key, ? extends Val> other) {
+	return MapDiff.collect(this, other, FCachedHashMap.<Key, Val>emptyMap());
+    }
+
+    public int compareTo(FCachedHashMap<Key, Val> other) {
+	return map.compareTo(other.map);
+    }
+
+    public boolean equals(Object obj) {
+	if (obj == this) return true;
+	else if (obj instanceof FCachedHashMap)
+	    return map.equals(((FCachedHashMap)obj).map);
+	else return map.equals(obj);
+    }
+
+    /**
+     * Returns the sum, over the entries, of the hash code of the key XORed with that
+     * of the value, as required by <code>Map</code>, but without calling the keys'
+     * <code>hashCode</code> methods.  (There is one exception: a key whose hash code
+     * is <code>Integer.MIN_VALUE</code> or <code>Integer.MAX_VALUE</code> is stored
+     * with the neighboring value, so a key stored with one of those is asked again.)
+     */
+    public int hashCode() {
+	if (hash_code == Integer.MIN_VALUE) hash_code = FHashMap.cachedHashCode(map.tree);
+	return hash_code;
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private static final long serialVersionUID = 1L;
+
+    // The empty map can be a singleton.
+    private static final FCachedHashMap<?, ?> EMPTY_INSTANCE =
+	new FCachedHashMap<Object, Object>();
+
+    // The pairs, their keys' hash codes, and the default are kept by an ordinary
+    // `FHashMap'; the difference is all in which of its internals we use.
+    /*pkg*/ transient final FHashMap<Key, Val> map;
+
+    // We use Integer.MIN_VALUE to indicate that the hash code has not been computed yet.
+    private transient int hash_code = Integer.MIN_VALUE;
+
+    // Wraps `_map' itself, rather than copying its pairs as the public `Map'
+    // constructor does.  Being private, this is visible only here, where, being more
+    // specific, it's the one an `FHashMap' argument selects.
+    private FCachedHashMap(FHashMap<Key, Val> _map) {
+	map = _map;
+    }
+
+    // This has default (package-wide) access so `Snapshot.readCachedHashMap' can use it.
+    /*pkg*/ static <Key, Val> FCachedHashMap<Key, Val> make(FHashMap<Key, Val> _map) {
+	if (_map.isEmpty() && _map.getDefault() == null) return emptyMap();
+	else return new FCachedHashMap<Key, Val>(_map);
+    }
+
+    private FCachedHashMap<Key, Val> remake(FHashMap<Key, Val> new_map) {
+	return new_map == map ? this : make(new_map);
+    }
+
+    /**
+     * Saves the state of this <code>FCachedHashMap</code> to a stream.
+     *
+     * @serialData Emits the internal data of the map, including the default it uses
+     * [<code>Object</code>]; the number of pairs [<code>int</code>]; and the pairs,
+     * each as a key [<code>Object</code>], a value [<code>Object</code>], and the
+     * hash code of the key [<code>int</code>].
+     */
+    private void writeObject(ObjectOutputStream strm) throws IOException {
+	strm.defaultWriteObject();
+	strm.writeObject(map.getDefault());
+        strm.writeInt(size());
+	FHashMap.writeWithHashes(map.tree, strm);
+    }
+
+    // http://docs.oracle.com/javase/specs/jls/se7/html/jls-17.html#jls-17.5.3
+    private static Field MapField;
+    static {
+	try {
+	    MapField = FCachedHashMap.class.getDeclaredField("map");
+	    MapField.setAccessible(true);
+	} catch (NoSuchFieldException nsf) {
+	    throw new RuntimeException("Static initialization failed", nsf);
+	}
+    }
+
+    /**
+     * Reconstitutes the <code>FCachedHashMap</code> instance from a stream.
+     */
+    private void readObject(ObjectInputStream strm) throws IOException, ClassNotFoundException {
+	hash_code = Integer.MIN_VALUE;
+	strm.defaultReadObject();
+	Object dflt = strm.readObject();
+        int size = strm.readInt();
+	FHashMap.Builder<Object, Object> b = new FHashMap.Builder<Object, Object>(size);
+	for (int i = 0; i < size; ++i) {
+	    Object key = strm.readObject();
+	    Object value = strm.readObject();
+	    int khash = strm.readInt();
+	    // The infinities are reserved; a stream containing one wasn't written by us.
+	    if (khash == Integer.MIN_VALUE || khash == Integer.MAX_VALUE)
+		throw new InvalidObjectException("Invalid hash code");
+	    b.put(key, value, khash);
+	}
+	try {
+	    MapField.set(this, new FHashMap<Object, Object>(b.tree(), dflt));
+	} catch (IllegalAccessException ia) {
+	    throw new RuntimeException("FCachedHashMap deserialization failed", ia);
+	}
+    }
+
+}
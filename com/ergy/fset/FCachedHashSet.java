@@ -0,0 +1,271 @@
+/*
+ * FCachedHashSet.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Just like <code>FHashSet</code> except that it never calls <code>hashCode</code>
+ * on an element once the element is in the set.  Each element's hash code is
+ * computed once, when the element is added, and kept in the tree alongside it;
+ * <code>contains</code>, <code>with</code>, and <code>less</code> call
+ * <code>hashCode</code> only on their argument, and set operations,
+ * <code>equals</code>, and <code>compareTo</code> don't call it at all, even when
+ * the other set is an ordinary <code>FHashSet</code>.  Unlike that of
+ * <code>FHashSet</code>, the <code>hashCode</code> of this set is computed from the
+ * cached hash codes, and serialization writes them out along with the elements, so
+ * that deserialization doesn't have to recompute them either.
+ *
+ * <p>This is the better choice when the elements' hash codes are expensive to
+ * compute and the elements don't cache them themselves -- for instance, when the
+ * elements are large collections.  Because of the cached hash codes written by
+ * serialization, it should be used only with elements whose hash codes are the same
+ * in every JVM: ones computed from their contents, as for <code>String</code>s and
+ * the FSet collections, not <code>Object.hashCode</code>'s identity hash codes.
+ *
+ * <p>The sets returned by <code>union</code>, <code>intersection</code>, and
+ * <code>difference</code> are <code>FCachedHashSet</code>s; these operations take
+ * O(n) (linear) time if the other set is a <code>FCachedHashSet</code> or a
+ * <code>FHashSet</code>.
+ *
+ * @author Scott L. Burson
+ * @see FHashSet
+ * @see FCachedHashMap
+ */
+
+public final class FCachedHashSet<Elt>
+    extends AbstractFSet<Elt>
+    implements Comparable<FCachedHashSet<Elt>>, Serializable
+{
+
+    /**
+     * Returns an empty <code>FCachedHashSet</code>.  Slightly more efficient than
+     * calling the constructor, because it returns a canonical instance.
+     */
+    public static <Elt> FCachedHashSet<Elt> emptySet() {
+	return (FCachedHashSet<Elt>)EMPTY_INSTANCE;
+    }
+
+    /**
+     * Constructs an empty <code>FCachedHashSet</code>.
+     */
+    public FCachedHashSet() {
+	set = FHashSet.emptySet();
+    }
+
+    /**
+     * Constructs a <code>FCachedHashSet</code> containing only <code>elt</code>.
+     */
+    public FCachedHashSet(Elt elt) {
+	set = new FHashSet<Elt>(elt);
+    }
+
+    /**
+     * Constructs a <code>FCachedHashSet</code> containing the same elements as
+     * <code>coll</code>.  If <code>coll</code> is a <code>FHashSet</code> or a
+     * <code>FCachedHashSet</code>, the hash codes it has already computed are used.
+     *
+     * @param coll the collection to use the elements of
+     */
+    public FCachedHashSet(Collection<? extends Elt> coll) {
+	set = new FHashSet<Elt>(coll);
+    }
+
+    /**
+     * Constructs a <code>FCachedHashSet</code> containing the same elements as
+     * <code>ary</code>.
+     *
+     * @param T type of the array elements; extends <code>Elt</code>
+     * @param elts the elements (as an argument list or array)
+     */
+    public <T extends Elt> FCachedHashSet(T... elts) {
+	set = new FHashSet<Elt>(elts);
+    }
+
+    public boolean isEmpty() {
+	return set.isEmpty();
+    }
+
+    public int size() {
+	return set.size();
+    }
+
+    public Elt arb() {
+	return set.arb();
+    }
+
+    public boolean contains(Object elt) {
+	return set.contains(elt);
+    }
+
+    public Iterator<Elt> iterator() {
+	return set.iterator();
+    }
+
+    public Spliterator<Elt> spliterator() {
+	return set.spliterator();
+    }
+
+    public void forEach(Consumer<? super Elt> action) {
+	set.forEach(action);
+    }
+
+    public boolean forEachWhile(Predicate<? super Elt> pred) {
+	return set.forEachWhile(pred);
+    }
+
+    public FCachedHashSet<Elt> with(Elt elt) {
+	return remake(set.with(elt));
+    }
+
+    public FCachedHashSet<Elt> less(Elt elt) {
+	return remake(set.less(elt));
+    }
+
+    public FCachedHashSet<Elt> union(Collection<? extends Elt> coll) {
+	return remake(set.union(coll));
+    }
+
+    public FCachedHashSet<Elt> intersection(Collection<? extends Elt> coll) {
+	return remake(set.intersection(coll));
+    }
+
+    public FCachedHashSet<Elt> difference(Collection<? extends Elt> coll) {
+	return remake(set.difference(coll));
+    }
+
+    public void diff(FSet<? extends Elt> other, SetDiff.Handler<? super Elt> handler) {
+	set.diff(other, handler);
+    }
+
+    public SetDiff<Elt> diff(FSet<? extends Elt> other) {
+	return SetDiff.collect(this, other, FCachedHashSet.<Elt>emptySet());
+    }
+
+    public int compareTo(FCachedHashSet<Elt> other) {
+	return set.compareTo(other.set);
+    }
+
+    public boolean equals(Object obj) {
+	if (obj == this) return true;
+	else if (obj instanceof FCachedHashSet)
+	    return set.equals(((FCachedHashSet)obj).set);
+	else return set.equals(obj);
+    }
+
+    public boolean isSubset(Collection<?> coll) {
+	if (coll instanceof FCachedHashSet) coll = ((FCachedHashSet)coll).set;
+	return set.isSubset(coll);
+    }
+
+    public boolean isSuperset(Collection<?> coll) {
+	if (coll instanceof FCachedHashSet) coll = ((FCachedHashSet)coll).set;
+	return set.isSuperset(coll);
+    }
+
+    /**
+     * Returns the sum of the hash codes of the elements, as required by
+     * <code>Set</code>, but without calling their <code>hashCode</code> methods.
+     * (There is one exception: an element whose hash code is
+     * <code>Integer.MIN_VALUE</code> or <code>Integer.MAX_VALUE</code> is stored with
+     * the neighboring value, so an element stored with one of those is asked again.)
+     */
+    public int hashCode() {
+	if (hash_code == Integer.MIN_VALUE) hash_code = FHashSet.cachedHashCode(set.tree);
+	return hash_code;
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private static final long serialVersionUID = 1L;
+
+    // The empty set can be a singleton.
+    private static final FCachedHashSet<?> EMPTY_INSTANCE = new FCachedHashSet<Object>();
+
+    // The elements and their hash codes are kept by an ordinary `FHashSet'; the
+    // difference is all in which of its internals we use.
+    /*pkg*/ transient final FHashSet<Elt> set;
+
+    private transient int hash_code = Integer.MIN_VALUE;	// cache
+
+    // Wraps `_set' itself, rather than copying its elements as the public
+    // `Collection' constructor does.  Being private, this is visible only here, where,
+    // being more specific, it's the one an `FHashSet' argument selects.
+    private FCachedHashSet(FHashSet<Elt> _set) {
+	set = _set;
+    }
+
+    // This has default (package-wide) access so `FCachedHashMap.domain' can use it.
+    /*pkg*/ static <Elt> FCachedHashSet<Elt> make(FHashSet<Elt> _set) {
+	if (_set.isEmpty()) return emptySet();
+	else return new FCachedHashSet<Elt>(_set);
+    }
+
+    private FCachedHashSet<Elt> remake(FHashSet<Elt> new_set) {
+	return new_set == set ? this : make(new_set);
+    }
+
+    /**
+     * Saves the state of this <code>FCachedHashSet</code> to a stream.
+     *
+     * @serialData Emits the internal data of the set, including the size of the set
+     * [<code>int</code>]; and the elements [<code>Object</code>s], each followed by
+     * its hash code [<code>int</code>].
+     */
+    private void writeObject(ObjectOutputStream strm) throws IOException {
+	strm.defaultWriteObject();
+        strm.writeInt(size());
+	FHashSet.writeWithHashes(set.tree, strm);
+    }
+
+    // http://docs.oracle.com/javase/specs/jls/se7/html/jls-17.html#jls-17.5.3
+    private static Field SetField;
+    static {
+	try {
+	    SetField = FCachedHashSet.class.getDeclaredField("set");
+	    SetField.setAccessible(true);
+	} catch (NoSuchFieldException nsf) {
+	    throw new RuntimeException("Static initialization failed", nsf);
+	}
+    }
+
+    /**
+     * Reconstitutes the <code>FCachedHashSet</code> instance from a stream.
+     */
+    private void readObject(ObjectInputStream strm) throws IOException, ClassNotFoundException {
+	hash_code = Integer.MIN_VALUE;
+	strm.defaultReadObject();
+        int size = strm.readInt();
+	FHashSet.Builder<Object> b = new FHashSet.Builder<Object>(size);
+	for (int i = 0; i < size; ++i) {
+	    Object e = strm.readObject();
+	    int ehash = strm.readInt();
+	    // The infinities are reserved; a stream containing one wasn't written by us.
+	    if (ehash == Integer.MIN_VALUE || ehash == Integer.MAX_VALUE)
+		throw new InvalidObjectException("Invalid hash code");
+	    b.add(e, ehash);
+	}
+	try {
+	    SetField.set(this, FHashSet.make(b.tree()));
+	} catch (IllegalAccessException ia) {
+	    throw new RuntimeException("FCachedHashSet deserialization failed", ia);
+	}
+    }
+
+}
@@ -0,0 +1,708 @@
+/*
+ * FDequeList.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A functional list that is cheap to add to and remove from at either end.  It is
+ * an <code>FTreeList</code> tree with a short array at each end; elements are added
+ * to and removed from these arrays, and only when one fills up or runs out is the
+ * tree changed, by moving a chunk of elements into or out of it at once.  So a list
+ * built by repeated <code>withLast</code> -- a log, say -- costs much less time and
+ * garbage to build than an <code>FTreeList</code>, which must insert each element
+ * into its tree.
+ *
+ * <p>Time costs: <code>isEmpty</code> and <code>size</code> take O(1) (constant)
+ * time.  <code>withFirst</code>, <code>withLast</code>, <code>lessFirst</code>, and
+ * <code>lessLast</code> take amortized O(1) time: most calls just copy one of the
+ * end arrays, which have at most 32 elements, and a call that moves a chunk into or
+ * out of the tree, taking O(log <i>n</i>) time, leaves at least 16 cheap calls
+ * before the next one at the same end.  <code>get</code>, <code>with</code>,
+ * <code>withInserted</code>, <code>less</code>, <code>subseq</code>,
+ * <code>concat</code>, and <code>subList</code> take O(log <i>n</i>) time.
+ * Construction from an existing collection or array, <code>reverse</code>,
+ * <code>contains</code>, <code>indexOf</code>, <code>lastIndexOf</code>,
+ * <code>compareTo</code>, and <code>equals</code> take O(n) (linear) time.
+ * <code>sorted</code> takes O(<i>n</i> log <i>n</i>) time.  Construction from an
+ * <code>FTreeList</code> takes O(1) time, as the tree is shared.
+ *
+ * <p><code>FDequeList</code> accepts the null element.
+ *
+ * @author Scott L. Burson
+ * @see FList
+ * @see FTreeList
+ */
+
+public class FDequeList<Elt>
+    extends AbstractFList<Elt>
+    implements Comparable<FDequeList<Elt>>, Serializable
+{
+
+    /**
+     * Returns an empty FDequeList whose <code>compareTo</code> method uses the
+     * natural ordering of the elements.  Slightly more efficient than calling the
+     * constructor, because it returns a canonical instance.
+     */
+    public static <Elt> FDequeList<Elt> emptyList() {
+	return (FDequeList<Elt>)EMPTY_INSTANCE;
+    }
+
+    /**
+     * Constructs a new, empty <code>FDequeList</code> whose
+     * <code>compareTo</code> method uses the natural ordering of its elements.
+     */
+    public FDequeList() {
+	front = null;
+	tree = null;
+	back = null;
+	elt_comp = null;
+    }
+
+    /**
+     * Constructs a new, empty <code>FDequeList</code> whose
+     * <code>compareTo</code> method uses the supplied <code>Comparator</code> to
+     * compare elements.
+     *
+     * @param c the comparator
+     */
+    public FDequeList(Comparator<? super Elt> c) {
+	front = null;
+	tree = null;
+	back = null;
+	elt_comp = (Comparator<Elt>)c;		// we know Comparator is pure
+    }
+
+    /**
+     * Constructs a new <code>FDequeList</code> containing the elements of
+     * <code>coll</code>, and whose <code>compareTo</code> method uses the natural
+     * ordering of its elements.
+     *
+     * @param coll the collection to use the elements of
+     */
+    public FDequeList(Collection<? extends Elt> coll) {
+	this(coll, null);
+    }
+
+    /**
+     * Constructs a new <code>FDequeList</code> containing the elements of
+     * <code>coll</code>, and whose <code>compareTo</code> method uses the supplied
+     * <code>Comparator</code> to compare elements.
+     *
+     * @param coll the collection to use the elements of
+     * @param c the comparator
+     */
+    public FDequeList(Collection<? extends Elt> coll, Comparator<? super Elt> c) {
+	elt_comp = (Comparator<Elt>)c;
+	if (coll instanceof FDequeList) {
+	    FDequeList fdl = (FDequeList)coll;
+	    front = fdl.front;
+	    tree = fdl.tree;
+	    back = fdl.back;
+	} else {
+	    front = null;
+	    if (coll instanceof FTreeList) tree = ((FTreeList)coll).tree;
+	    else tree = FTreeList.fromCollection(coll);
+	    back = null;
+	}
+    }
+
+    /**
+     * Constructs a new <code>FDequeList</code> containing the components of
+     * <code>ary</code>, and whose <code>compareTo</code> method uses the natural
+     * ordering of its elements.  That is, the elements are <code>ary[0]</code>,
+     * <code>ary[1]</code>, etc.
+     *
+     * @param T type of the array elements; extends <code>Elt</code>
+     * @param ary the array
+     */
+    public <T extends Elt> FDequeList(T... ary) {
+	front = null;
+	tree = FTreeList.fromCollection(ary);
+	back = null;
+	elt_comp = null;
+    }
+
+    /**
+     * Constructs a new <code>FDequeList</code> containing the components of
+     * <code>ary</code>, and whose <code>compareTo</code> method uses the supplied
+     * comparator to compare elements.  That is, the elements are
+     * <code>ary[0]</code>, <code>ary[1]</code>, etc.  As with
+     * <code>FTreeList</code>, the comparator argument must come first.
+     *
+     * @param T type of the array elements; extends <code>Elt</code>
+     * @param ary the array
+     * @param c the comparator
+     */
+    public <T extends Elt> FDequeList(Comparator<? super Elt> c, T... ary) {
+	front = null;
+	tree = FTreeList.fromCollection(ary);
+	back = null;
+	elt_comp = (Comparator<Elt>)c;
+    }
+
+    public boolean isEmpty() {
+	return front == null && tree == null && back == null;
+    }
+
+    public int size() {
+	return length(front) + FTreeList.treeSize(tree) + length(back);
+    }
+
+    public Elt get(int index) {
+	if (index < 0 || index >= size()) throw new IndexOutOfBoundsException();
+	int flen = length(front);
+	if (index < flen) return (Elt)front[index];
+	index -= flen;
+	int tsize = FTreeList.treeSize(tree);
+	if (index < tsize) return (Elt)FTreeList.get(tree, index);
+	else return (Elt)back[index - tsize];
+    }
+
+    public Iterator<Elt> iterator() {
+	return new FDLIterator<Elt>(this, 0);
+    }
+
+    public ListIterator<Elt> listIterator() {
+	return new FDLIterator<Elt>(this, 0);
+    }
+
+    public ListIterator<Elt> listIterator(int index) {
+	if (index < 0 || index > size()) throw new IndexOutOfBoundsException();
+	return new FDLIterator<Elt>(this, index);
+    }
+
+    /**
+     * Calls <code>action</code> on each element of the list, in order.  Like
+     * <code>FTreeList.forEach</code>, allocates nothing.
+     */
+    public void forEach(Consumer<? super Elt> action) {
+	if (action == null) throw new NullPointerException();
+	for (int i = 0, flen = length(front); i < flen; ++i) action.accept((Elt)front[i]);
+	FTreeList.forEach(tree, action);
+	for (int i = 0, blen = length(back); i < blen; ++i) action.accept((Elt)back[i]);
+    }
+
+    /**
+     * Calls <code>pred</code> on each element of the list, in order, until it
+     * returns false.  Like <code>forEach</code>, allocates nothing.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every element
+     */
+    public boolean forEachWhile(Predicate<? super Elt> pred) {
+	if (pred == null) throw new NullPointerException();
+	for (int i = 0, flen = length(front); i < flen; ++i)
+	    if (!pred.test((Elt)front[i])) return false;
+	if (!FTreeList.forEachWhile(tree, pred)) return false;
+	for (int i = 0, blen = length(back); i < blen; ++i)
+	    if (!pred.test((Elt)back[i])) return false;
+	return true;
+    }
+
+    public FDequeList<Elt> with(int index, Elt elt) {
+	int size = size();
+	if (index < 0 || index > size) throw new IndexOutOfBoundsException();
+	else if (index == size) return withLast(elt);
+	int flen = length(front);
+	if (index < flen) return make(update(front, index, elt), tree, back);
+	index -= flen;
+	int tsize = FTreeList.treeSize(tree);
+	if (index < tsize) return make(front, FTreeList.with(tree, index, elt), back);
+	else return make(front, tree, update(back, index - tsize, elt));
+    }
+
+    public FDequeList<Elt> withInserted(int index, Elt elt) {
+	int size = size();
+	if (index < 0 || index > size) throw new IndexOutOfBoundsException();
+	else if (index == 0) return withFirst(elt);
+	else if (index == size) return withLast(elt);
+	int flen = length(front);
+	if (index <= flen) {
+	    Object[] ary = insert(front, index, elt);
+	    if (ary.length <= MAX_BUFFER_LENGTH) return make(ary, tree, back);
+	    else return make(subseq(ary, 0, CHUNK_LENGTH),
+			     FTreeList.concat(chunk(ary, CHUNK_LENGTH, ary.length), tree),
+			     back);
+	}
+	index -= flen;
+	int tsize = FTreeList.treeSize(tree);
+	if (index <= tsize) return make(front, FTreeList.insert(tree, index, elt), back);
+	Object[] ary = insert(back, index - tsize, elt);
+	int blen = ary.length;
+	if (blen <= MAX_BUFFER_LENGTH) return make(front, tree, ary);
+	else return make(front, FTreeList.concat(tree, chunk(ary, 0, blen - CHUNK_LENGTH)),
+			 subseq(ary, blen - CHUNK_LENGTH, blen));
+    }
+
+    public FDequeList<Elt> withFirst(Elt elt) {
+	int flen = length(front);
+	if (flen < MAX_BUFFER_LENGTH) return make(insert(front, 0, elt), tree, back);
+	else {
+	    // `front' is full; the half of it next to the tree goes into the tree.
+	    Object[] ary = new Object[CHUNK_LENGTH + 1];
+	    ary[0] = elt;
+	    System.arraycopy(front, 0, ary, 1, CHUNK_LENGTH);
+	    return make(ary, FTreeList.concat(chunk(front, CHUNK_LENGTH, flen), tree), back);
+	}
+    }
+
+    public FDequeList<Elt> withLast(Elt elt) {
+	int blen = length(back);
+	if (blen < MAX_BUFFER_LENGTH) return make(front, tree, insert(back, blen, elt));
+	else {
+	    // `back' is full; the half of it next to the tree goes into the tree.
+	    Object[] ary = new Object[CHUNK_LENGTH + 1];
+	    System.arraycopy(back, blen - CHUNK_LENGTH, ary, 0, CHUNK_LENGTH);
+	    ary[CHUNK_LENGTH] = elt;
+	    return make(front, FTreeList.concat(tree, chunk(back, 0, blen - CHUNK_LENGTH)),
+			ary);
+	}
+    }
+
+    public FDequeList<Elt> less(int index) {
+	if (index < 0 || index >= size()) throw new IndexOutOfBoundsException();
+	int flen = length(front);
+	if (index < flen) return make(less(front, index), tree, back);
+	index -= flen;
+	int tsize = FTreeList.treeSize(tree);
+	if (index < tsize) return make(front, FTreeList.less(tree, index), back);
+	else return make(front, tree, less(back, index - tsize));
+    }
+
+    public FDequeList<Elt> lessFirst() {
+	if (isEmpty()) throw new IndexOutOfBoundsException();
+	else if (front != null) return make(less(front, 0), tree, back);
+	else if (tree == null) return make(null, null, less(back, 0));
+	else {
+	    // `front' has run out; refill it with a chunk from the tree, less the first.
+	    int tsize = FTreeList.treeSize(tree);
+	    int clen = Math.min(CHUNK_LENGTH, tsize);
+	    return make(subseqArray(tree, 1, clen), FTreeList.subseq(tree, clen, tsize), back);
+	}
+    }
+
+    public FDequeList<Elt> lessLast() {
+	if (isEmpty()) throw new IndexOutOfBoundsException();
+	else if (back != null) return make(front, tree, less(back, back.length - 1));
+	else if (tree == null) return make(less(front, front.length - 1), null, null);
+	else {
+	    // `back' has run out; refill it with a chunk from the tree, less the last.
+	    int tsize = FTreeList.treeSize(tree);
+	    int clen = Math.min(CHUNK_LENGTH, tsize);
+	    return make(front, FTreeList.subseq(tree, 0, tsize - clen),
+			subseqArray(tree, tsize - clen, tsize - 1));
+	}
+    }
+
+    public FDequeList<Elt> concat(List<? extends Elt> list) {
+	if (list.isEmpty()) return this;
+	else if (list instanceof FDequeList) {
+	    FDequeList fdl = (FDequeList)list;
+	    if (isEmpty()) return make(fdl.front, fdl.tree, fdl.back);
+	    Object left = FTreeList.concat(tree, chunk(back, 0, length(back)));
+	    Object right = FTreeList.concat(chunk(fdl.front, 0, length(fdl.front)), fdl.tree);
+	    return make(front, FTreeList.concat(left, right), fdl.back);
+	} else {
+	    Object right = list instanceof FTreeList ? ((FTreeList)list).tree
+		: FTreeList.fromCollection(list);
+	    return make(front, FTreeList.concat(FTreeList.concat(tree, chunk(back, 0,
+									    length(back))),
+						right),
+			null);
+	}
+    }
+
+    public FDequeList<Elt> reverse() {
+	if (isEmpty()) return this;
+	else return make(reverse(back), tree == null ? null : FTreeList.reverse(tree),
+			 reverse(front));
+    }
+
+    public FDequeList<Elt> subseq(int fromIndex, int toIndex) {
+	int siz = size();
+	if (fromIndex < 0 || fromIndex > siz ||
+	    toIndex < 0 || toIndex > siz) throw new IndexOutOfBoundsException();
+	else if (fromIndex == 0 && toIndex == siz) return this;
+	int flen = length(front), tsize = FTreeList.treeSize(tree), blen = length(back);
+	return make(subseq(front, Math.min(fromIndex, flen), Math.min(toIndex, flen)),
+		    FTreeList.subseq(tree, clamp(fromIndex - flen, tsize),
+				     clamp(toIndex - flen, tsize)),
+		    subseq(back, clamp(fromIndex - flen - tsize, blen),
+			   clamp(toIndex - flen - tsize, blen)));
+    }
+
+    // This, 'suffix', and 'suffixFrom' are copies of the ones in 'AbstractFList',
+    // except that they return 'FDequeList<Elt>' rather than 'FList<Elt>'.
+    public FDequeList<Elt> prefix(int len) {
+	return subseq(0, len);
+    }
+
+    public FDequeList<Elt> suffix(int len) {
+	return subseq(size() - len, size());
+    }
+
+    public FDequeList<Elt> suffixFrom(int fromIndex) {
+	return subseq(fromIndex, size());
+    }
+
+    public boolean isPrefix(FList<Elt> other) {
+	if (size() > other.size()) return false;
+	Iterator<Elt> e1 = iterator();
+	Iterator<Elt> e2 = other.iterator();
+	while (e1.hasNext()) if (!eql(e1.next(), e2.next())) return false;
+	return true;
+    }
+
+    public boolean isSuffix(FList<Elt> other) {
+	int siz = size();
+	int osiz = other.size();
+	if (siz > osiz) return false;
+	Iterator<Elt> e1 = iterator();
+	Iterator<Elt> e2 = other.listIterator(osiz - siz);
+	while (e1.hasNext()) if (!eql(e1.next(), e2.next())) return false;
+	return true;
+    }
+
+    public FList<Elt> subList(int fromIndex, int toIndex) {
+	if (toIndex < fromIndex) throw new IllegalArgumentException();
+	return subseq(fromIndex, toIndex);
+    }
+
+    public FDequeList<Elt> sorted(Comparator<? super Elt> comp) {
+	// The end arrays go into the tree, which is then sorted as an `FTreeList' is.
+	Object all = FTreeList.concat(FTreeList.concat(chunk(front, 0, length(front)), tree),
+				      chunk(back, 0, length(back)));
+	return make(null, FTreeList.sort(all, comp), null);
+    }
+
+    public FDequeList<Elt> sorted() {
+	return sorted(null);
+    }
+
+    public boolean contains(Object elt) {
+	return indexOf(elt) >= 0;
+    }
+
+    public int indexOf(Object elt) {
+	int flen = length(front);
+	for (int i = 0; i < flen; ++i) if (eql(elt, front[i])) return i;
+	int pos = FTreeList.indexOf(tree, elt);
+	if (pos >= 0) return flen + pos;
+	int base = flen + FTreeList.treeSize(tree);
+	for (int i = 0, blen = length(back); i < blen; ++i)
+	    if (eql(elt, back[i])) return base + i;
+	return -1;
+    }
+
+    public int lastIndexOf(Object elt) {
+	int flen = length(front), tsize = FTreeList.treeSize(tree);
+	for (int i = length(back); --i >= 0; )
+	    if (eql(elt, back[i])) return flen + tsize + i;
+	int pos = FTreeList.lastIndexOf(tree, elt);
+	if (pos >= 0) return flen + pos;
+	for (int i = flen; --i >= 0; ) if (eql(elt, front[i])) return i;
+	return -1;
+    }
+
+    public int compareTo(FDequeList<Elt> obj) {
+	if (obj == this) return 0;
+	else if (obj == null ||
+		 !(obj instanceof FDequeList) ||
+		 !eql(elt_comp, ((FDequeList)obj).elt_comp))
+	    throw new ClassCastException();
+	else {
+	    int size1 = size(), size2 = obj.size();
+	    if (size1 < size2) return -1;
+	    else if (size1 > size2) return 1;
+	    Iterator<Elt> it1 = iterator();
+	    Iterator<Elt> it2 = obj.iterator();
+	    while (it1.hasNext()) {
+		int comp_res = compareElements(it1.next(), it2.next());
+		if (comp_res != 0) return comp_res;
+	    }
+	    return 0;
+	}
+    }
+
+    public boolean equals(Object obj) {
+	if (obj == this) return true;
+	else if (!(obj instanceof List)) return false;
+	else {
+	    List<Object> list = (List<Object>)obj;
+	    if (size() != list.size()) return false;
+	    Iterator<Elt> it1 = iterator();
+	    Iterator<Object> it2 = list.iterator();
+	    while (it1.hasNext()) {
+		Object elt1 = it1.next(), elt2 = it2.next();
+		if (!eql(elt1, elt2)) return false;
+	    }
+	    return true;
+	}
+    }
+
+    public int hashCode() {
+	// The tree part uses `FTreeList''s cached polynomial hashes; see `polyHash'.
+	if (hash_code == Integer.MIN_VALUE) {
+	    int hash = 1;
+	    for (int i = 0, flen = length(front); i < flen; ++i)
+		hash = 31 * hash + hashCode(front[i]);
+	    hash = hash * FTreeList.pow31(FTreeList.treeSize(tree)) + FTreeList.polyHash(tree);
+	    for (int i = 0, blen = length(back); i < blen; ++i)
+		hash = 31 * hash + hashCode(back[i]);
+	    hash_code = hash;
+	}
+	return hash_code;
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private static final long serialVersionUID = 1L;
+
+    // The elements are those of `front', then those of `tree' (an `FTreeList' tree),
+    // then those of `back'.  `front' and `back' are null rather than empty, and hold
+    // at most `MAX_BUFFER_LENGTH' elements; when one would overflow, `CHUNK_LENGTH'
+    // of its elements are moved into the tree, and when one runs out, up to that many
+    // are taken back out.  Moving only half a full buffer means that an expensive
+    // operation is always followed by at least `CHUNK_LENGTH' cheap ones at the same
+    // end, however the calls alternate.
+
+    // The empty, naturally ordered list can be a singleton.
+    private static final FDequeList<?> EMPTY_INSTANCE = new FDequeList<Object>();
+
+    /* Instance variables */
+    private transient final Object[] front;
+    private transient final Object tree;
+    private transient final Object[] back;
+    private final Comparator<Elt> elt_comp;
+    private transient int hash_code = Integer.MIN_VALUE;	// cache
+
+    private static final int MAX_BUFFER_LENGTH = 32;
+    private static final int CHUNK_LENGTH = MAX_BUFFER_LENGTH / 2;
+
+    private FDequeList(Object[] _front, Object _tree, Object[] _back,
+		       Comparator<? super Elt> _elt_comp) {
+	front = _front;
+	tree = _tree;
+	back = _back;
+	elt_comp = (Comparator<Elt>)_elt_comp;
+    }
+
+    private FDequeList<Elt> make(Object[] new_front, Object new_tree, Object[] new_back) {
+	if (new_front == null && new_tree == null && new_back == null && elt_comp == null)
+	    return emptyList();
+	else return new FDequeList<Elt>(new_front, new_tree, new_back, elt_comp);
+    }
+
+    private static int length(Object[] ary) {
+	return ary == null ? 0 : ary.length;
+    }
+
+    private static int clamp(int index, int max) {
+	return index < 0 ? 0 : index > max ? max : index;
+    }
+
+    // Makes a tree of the elements of `ary' from `lo' to `hi'.
+    private static Object chunk(Object[] ary, int lo, int hi) {
+	if (lo >= hi) return null;
+	else return FTreeList.fromCollection(subseq(ary, lo, hi));
+    }
+
+    // Returns the elements of `tree' from `lo' to `hi' as an array, or null if none.
+    private static Object[] subseqArray(Object tree, int lo, int hi) {
+	if (lo >= hi) return null;
+	else {
+	    Object[] a = new Object[hi - lo];
+	    FTreeList.copyInto(FTreeList.subseq(tree, lo, hi), a, 0);
+	    return a;
+	}
+    }
+
+    private static Object[] update(Object[] ary, int idx, Object elt) {
+	Object[] a = ary.clone();
+	a[idx] = elt;
+	return a;
+    }
+
+    private static Object[] insert(Object[] ary, int idx, Object elt) {
+	int len = length(ary);
+	Object[] a = new Object[len + 1];
+	if (idx > 0) System.arraycopy(ary, 0, a, 0, idx);
+	a[idx] = elt;
+	if (idx < len) System.arraycopy(ary, idx, a, idx + 1, len - idx);
+	return a;
+    }
+
+    private static Object[] less(Object[] ary, int idx) {
+	int len = ary.length - 1;
+	if (len == 0) return null;
+	else {
+	    Object[] a = new Object[len];
+	    System.arraycopy(ary, 0, a, 0, idx);
+	    System.arraycopy(ary, idx + 1, a, idx, len - idx);
+	    return a;
+	}
+    }
+
+    private static Object[] subseq(Object[] ary, int lo, int hi) {
+	if (lo >= hi) return null;
+	else {
+	    Object[] a = new Object[hi - lo];
+	    System.arraycopy(ary, lo, a, 0, hi - lo);
+	    return a;
+	}
+    }
+
+    private static Object[] reverse(Object[] ary) {
+	if (ary == null) return null;
+	int len = ary.length;
+	Object[] a = new Object[len];
+	for (int i = 0; i < len; ++i) a[i] = ary[len - i - 1];
+	return a;
+    }
+
+    private int compareElements(Object x, Object y) {
+	// `null' is treated as being less than every object.
+	if (x == null) return (y == null ? 0 : -1);
+	else if (y == null) return 1;
+	else if (elt_comp != null) return elt_comp.compare((Elt)x, (Elt)y);
+	else {
+	    // Will throw `ClassCastException' if the objects don't implement
+	    // `Comparable' -- this is correct.
+	    Comparable cx = (Comparable)x;
+	    Comparable cy = (Comparable)y;
+	    return cx.compareTo(cy);
+	}
+    }
+
+    private static int hashCode(Object x) {
+	return x == null ? 0 : x.hashCode();
+    }
+
+    private static boolean eql(Object x, Object y) {
+	return x == null ? y == null : x.equals(y);
+    }
+
+    /****************/
+    // Iterator class
+
+    private static final class FDLIterator<Elt> implements ListIterator<Elt> {
+
+	private final Object[] front, back;
+	private final int flen, tsize, size;
+	// Always positioned at `pos - flen', clamped to the bounds of the tree.
+	private final FTreeList.FTLIterator<Elt> mid;
+	private int pos;
+
+	FDLIterator(FDequeList<Elt> list, int index) {
+	    front = list.front;
+	    back = list.back;
+	    flen = length(front);
+	    tsize = FTreeList.treeSize(list.tree);
+	    size = flen + tsize + length(back);
+	    mid = new FTreeList.FTLIterator<Elt>(list.tree, clamp(index - flen, tsize));
+	    pos = index;
+	}
+
+	public boolean hasNext() {
+	    return pos < size;
+	}
+
+	public Elt next() {
+	    if (pos >= size) throw new NoSuchElementException();
+	    else if (pos < flen) return (Elt)front[pos++];
+	    else if (pos++ < flen + tsize) return mid.next();
+	    else return (Elt)back[pos - 1 - flen - tsize];
+	}
+
+	public int nextIndex() {
+	    return pos;
+	}
+
+	public int previousIndex() {
+	    return pos - 1;
+	}
+
+	public boolean hasPrevious() {
+	    return pos > 0;
+	}
+
+	public Elt previous() {
+	    if (pos <= 0) throw new NoSuchElementException();
+	    else if (--pos < flen) return (Elt)front[pos];
+	    else if (pos < flen + tsize) return mid.previous();
+	    else return (Elt)back[pos - flen - tsize];
+	}
+
+	public void add(Object o) {
+	    throw new UnsupportedOperationException();
+	}
+
+	public void remove() {
+	    throw new UnsupportedOperationException();
+	}
+
+	public void set(Object o) {
+	    throw new UnsupportedOperationException();
+	}
+    }
+
+    /**
+     * Saves the state of this <code>FDequeList</code> to a stream.
+     *
+     * @serialData Emits the internal data of the list, including the comparator it
+     * uses; the size of the list [<code>int</code>]; and the elements in order
+     * [<code>Object</code>s].
+     */
+    private void writeObject(ObjectOutputStream strm) throws IOException {
+	strm.defaultWriteObject();	// writes `elt_comp'
+	strm.writeInt(size());
+	for (Iterator it=iterator(); it.hasNext(); )
+	    strm.writeObject(it.next());
+    }
+
+    // http://docs.oracle.com/javase/specs/jls/se7/html/jls-17.html#jls-17.5.3
+    private static Field TreeField;
+    static {
+	try {
+	    TreeField = FDequeList.class.getDeclaredField("tree");
+	    TreeField.setAccessible(true);
+	} catch (NoSuchFieldException nsf) {
+	    throw new RuntimeException("Static initialization failed", nsf);
+	}
+    }
+
+    /**
+     * Reconstitutes the <code>FDequeList</code> instance from a stream.
+     */
+    // The elements all go into the tree; `front' and `back' are left null.
+    private void readObject(ObjectInputStream strm) throws IOException, ClassNotFoundException {
+	hash_code = Integer.MIN_VALUE;
+	strm.defaultReadObject();	// reads `elt_comp'
+	int size = strm.readInt();
+	Object[] ary = new Object[size];
+	for (int i = 0; i < size; ++i)
+	    ary[i] = strm.readObject();
+	try {
+	    TreeField.set(this, FTreeList.fromCollection(ary));
+	} catch (IllegalAccessException ia) {
+	    throw new RuntimeException("FDequeList deserialization failed", ia);
+	}
+    }
+
+}
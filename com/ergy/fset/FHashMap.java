@@ -13,8 +13,13 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
 
 /**
  * A functional map that uses hash codes to order objects.  The name notwithstanding, it
@@ -43,14 +48,19 @@ import java.util.*;
  * <p>Space costs: <code>FHashMap</code> uses a heterogeneous binary tree
  * structure with bounded-length arrays at the leaves.  It uses much less space than
  * traditional homogeneous binary trees; typical space consumption is roughly twice
- * that of a pair of plain arrays.
+ * that of a pair of plain arrays, plus roughly six bytes per pair for the cached
+ * hash codes (see below).
  *
- * Operations on a <code>FHashMap</code> repeatedly call <code>hashCode</code> on
- * the keys in the map.  It therefore is best for performance if this takes O(1)
- * time.  For classes whose hash code may depend on the hash codes of many other
- * objects, I recommend they cache their hash code after computing it.  If such
- * caching is not practical for some reason, <code>FCachedHashMap</code> may be a
- * better choice.
+ * <p>The leaf arrays store the hash codes of their keys alongside the keys
+ * themselves, so <code>get</code>, <code>with</code>, and <code>less</code> call
+ * <code>hashCode</code> only on their argument, and touch a key in the map only
+ * when its hash code matches; <code>union</code>, <code>restrictedTo</code>, and
+ * <code>restrictedFrom</code> on <code>FHashMap</code>s and <code>FHashSet</code>s
+ * don't call it at all.  Still, it is best for performance if
+ * <code>hashCode</code> takes O(1) time.  For classes whose hash code may depend on
+ * the hash codes of many other objects, I recommend they cache their hash code
+ * after computing it.  If such caching is not practical for some reason,
+ * <code>FCachedHashMap</code> may be a better choice.
  *
  * <p><code>FHashMap</code> accepts the null key and the null value.
  *
@@ -133,15 +143,9 @@ public class FHashMap<Key, Val>
     private static <Key, Val> Object fromMap(Map<? extends Key, ? extends Val> map) {
 	if (map instanceof FHashMap)
 	    return ((FHashMap)map).tree;
-	else {
-	    Object t = null;
-	    for (Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
-		Map.Entry ent = (Map.Entry)it.next();
-		Object k = ent.getKey();
-		t = with(t, k, hashCode(k), ent.getValue());
-	    }
-	    return t;
-	}
+	else if (map instanceof FCachedHashMap)
+	    return ((FCachedHashMap)map).map.tree;
+	else return new Builder<Key, Val>(map.size()).putAll(map).tree();
     }
 
     /**
@@ -154,13 +158,12 @@ public class FHashMap<Key, Val>
      */
     public FHashMap(Key[] keys, Val[] vals) {
 	if (keys.length != vals.length) throw new IllegalArgumentException();
-	Object t = null;
 	dflt = null;
 	if (keys.length != vals.length)
 	    throw new IllegalArgumentException("array lengths must be equal");
-	for (int i = 0; i < keys.length; ++i)
-	    t = with(t, keys[i], hashCode(keys[i]), vals[i]);
-	tree = t;
+	Builder<Key, Val> b = new Builder<Key, Val>(keys.length);
+	for (int i = 0; i < keys.length; ++i) b.put(keys[i], vals[i]);
+	tree = b.tree();
     }
 
     /**
@@ -278,6 +281,9 @@ public class FHashMap<Key, Val>
 	    public Iterator<Map.Entry<Key, Val>> iterator() {
 		return FHashMap.this.iterator();
 	    }
+	    public Spliterator<Map.Entry<Key, Val>> spliterator() {
+		return FHashMap.this.spliterator();
+	    }
 	    public int size() {
 		return FHashMap.this.size();
 	    }
@@ -357,6 +363,98 @@ public class FHashMap<Key, Val>
 	return new FHashMap(t, dflt);
     }
 
+    /**
+     * Returns the union of this map with <code>with_map</code>, like
+     * <code>union</code>, but processes large subtrees in parallel on the common
+     * fork/join pool.  The result is the same as that of <code>union</code>.  This
+     * is worthwhile only when the maps are large -- tens of thousands of pairs or
+     * more; smaller subproblems are done sequentially.  <code>valCombiner</code> may
+     * be called concurrently from several threads.
+     *
+     * @param with_map the map to take the union with
+     * @param valCombiner combines the values of keys present in both maps
+     * @return the union of the two maps
+     */
+    public FHashMap<Key, Val> parallelUnion(FMap<? extends Key, ? extends Val> with_map,
+					    BinaryOp<Val> valCombiner) {
+	return parallelUnion(with_map, valCombiner, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the union of this map with <code>with_map</code>, like
+     * <code>union</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.  <code>valCombiner</code> may be called concurrently from
+     * several threads.
+     *
+     * @param with_map the map to take the union with
+     * @param valCombiner combines the values of keys present in both maps
+     * @param pool the fork/join pool to use
+     * @return the union of the two maps
+     */
+    public FHashMap<Key, Val> parallelUnion(FMap<? extends Key, ? extends Val> with_map,
+					    BinaryOp<Val> valCombiner, ForkJoinPool pool) {
+	FHashMap<Key, Val> with_fhm = new FHashMap<Key, Val>(with_map);
+	Object t = pool.invoke(new ParallelOp(OP_UNION, tree, with_fhm.tree, valCombiner,
+					      NEGATIVE_INFINITY, POSITIVE_INFINITY));
+	return new FHashMap<Key, Val>(t, dflt);
+    }
+
+    /**
+     * Returns this map restricted to <code>set</code>, like
+     * <code>restrictedTo</code>, but processes large subtrees in parallel on the
+     * common fork/join pool.
+     *
+     * @param set the set to restrict to
+     * @return the restricted map
+     */
+    public FHashMap<Key, Val> parallelRestrictedTo(FSet<Key> set) {
+	return parallelRestrictedTo(set, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns this map restricted to <code>set</code>, like
+     * <code>restrictedTo</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.
+     *
+     * @param set the set to restrict to
+     * @param pool the fork/join pool to use
+     * @return the restricted map
+     */
+    public FHashMap<Key, Val> parallelRestrictedTo(FSet<Key> set, ForkJoinPool pool) {
+	FHashSet<Key> fhs = new FHashSet<Key>(set);
+	Object t = pool.invoke(new ParallelOp(OP_RESTRICTED_TO, tree, fhs.tree, null,
+					      NEGATIVE_INFINITY, POSITIVE_INFINITY));
+	return new FHashMap(t, dflt);
+    }
+
+    /**
+     * Returns this map restricted from <code>set</code>, like
+     * <code>restrictedFrom</code>, but processes large subtrees in parallel on the
+     * common fork/join pool.
+     *
+     * @param set the set to restrict from
+     * @return the restricted map
+     */
+    public FHashMap<Key, Val> parallelRestrictedFrom(FSet<Key> set) {
+	return parallelRestrictedFrom(set, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns this map restricted from <code>set</code>, like
+     * <code>restrictedFrom</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.
+     *
+     * @param set the set to restrict from
+     * @param pool the fork/join pool to use
+     * @return the restricted map
+     */
+    public FHashMap<Key, Val> parallelRestrictedFrom(FSet<Key> set, ForkJoinPool pool) {
+	FHashSet<Key> fhs = new FHashSet<Key>(set);
+	Object t = pool.invoke(new ParallelOp(OP_RESTRICTED_FROM, tree, fhs.tree, null,
+					      NEGATIVE_INFINITY, POSITIVE_INFINITY));
+	return new FHashMap(t, dflt);
+    }
+
     public Val getDefault() {
 	return dflt;
     }
@@ -365,6 +463,62 @@ public class FHashMap<Key, Val>
 	return new FHMIterator<Key, Val>(tree);
     }
 
+    /**
+     * Returns a <code>Spliterator</code> over the entries of the map.  It splits
+     * exactly along the tree structure, and reports <code>IMMUTABLE</code>,
+     * <code>DISTINCT</code>, <code>SIZED</code>, and <code>SUBSIZED</code>.
+     */
+    public Spliterator<Map.Entry<Key, Val>> spliterator() {
+	return new FHMSpliterator<Key, Val>(null, tree);
+    }
+
+    /**
+     * Calls <code>action</code> on each key and its value, in iteration order.  Unlike
+     * iterating, this walks the tree recursively, and allocates nothing; in
+     * particular, it doesn't create <code>Map.Entry</code> objects.
+     */
+    public void forEach(BiConsumer<? super Key, ? super Val> action) {
+	if (action == null) throw new NullPointerException();
+	forEach(tree, action);
+    }
+
+    /**
+     * Calls <code>pred</code> on each key and its value, in iteration order, until it
+     * returns false.  Like <code>forEach</code>, allocates nothing.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every pair
+     */
+    public boolean forEachWhile(BiPredicate<? super Key, ? super Val> pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachWhile(tree, pred);
+    }
+
+    /**
+     * Compares this map with <code>other</code>, as described in {@link
+     * FMap#diff(FMap, MapDiff.Handler)}.  If <code>other</code> is also a
+     * <code>FHashMap</code> (or a <code>FLinkedHashMap</code> or
+     * <code>FCachedHashMap</code>), this walks the two trees together, skipping any
+     * subtree they share, and reports the differences in hash code order;
+     * otherwise it looks up each key of each map in the other.
+     *
+     * @param other the new version of the map
+     * @param handler receives the differences
+     */
+    public void diff(FMap<? extends Key, ? extends Val> other,
+		     MapDiff.Handler<? super Key, ? super Val> handler) {
+	if (other instanceof FHashMap) diff(tree, ((FHashMap)other).tree, handler);
+	else if (other instanceof FLinkedHashMap)
+	    diff(tree, ((FLinkedHashMap)other).map_tree, handler);
+	else if (other instanceof FCachedHashMap)
+	    diff(tree, ((FCachedHashMap)other).map.tree, handler);
+	else super.diff(other, handler);
+    }
+
+    public MapDiff<Key, Val> diff(FMap<? extends Key, ? extends Val> other) {
+	return MapDiff.collect(this, other, FHashMap.<Key, Val>emptyMap());
+    }
+
     // &&& Better to implement 'Comparable<Map<Key, Val>>' ?
     public int compareTo(FHashMap<Key, Val> other) {
 	return compareTo(tree, other.tree);
@@ -378,6 +532,9 @@ public class FHashMap<Key, Val>
 	} else if (obj instanceof FLinkedHashMap) {
 	    FLinkedHashMap plhm = (FLinkedHashMap)obj;
 	    return equals(tree, plhm.map_tree);
+	} else if (obj instanceof FCachedHashMap) {
+	    FCachedHashMap fchm = (FCachedHashMap)obj;
+	    return equals(tree, fchm.map.tree);
 	} else if (!(obj instanceof Map)) return false;
 	else {
 	    Map<Object, Object> map = (Map<Object, Object>)obj;
@@ -402,6 +559,142 @@ public class FHashMap<Key, Val>
 	return verify(tree, NEGATIVE_INFINITY, POSITIVE_INFINITY);
     }
 
+    /**
+     * A mutable accumulator for constructing a <code>FHashMap</code> from many
+     * pairs at once.  Adding a pair just records it (and computes the key's hash
+     * code, once); <code>build</code> then sorts the pairs by hash code and builds
+     * the tree bottom-up in a single pass.  This is considerably faster, and
+     * generates far less garbage, than adding the pairs one at a time with
+     * <code>with</code>, which copies a path through the tree for every pair.
+     *
+     * <p>If a key is added more than once, the value it will be mapped to in the
+     * result will be the one from its last occurrence.  A <code>Builder</code> is
+     * not thread-safe, but it may continue to be used after <code>build</code> is
+     * called; maps it has already returned are not affected.
+     *
+     * @param Key the type of the keys
+     * @param Val the type of the values
+     */
+    public static final class Builder<Key, Val> {
+
+	/**
+	 * Constructs an empty <code>Builder</code>.
+	 */
+	public Builder() {
+	    this(16);
+	}
+
+	/**
+	 * Constructs an empty <code>Builder</code> with room for
+	 * <code>initial_capacity</code> pairs before it has to grow.
+	 *
+	 * @param initial_capacity the expected number of pairs
+	 */
+	public Builder(int initial_capacity) {
+	    int cap = Math.max(initial_capacity, 1);
+	    keys = new Object[cap];
+	    vals = new Object[cap];
+	    hashes = new int[cap];
+	}
+
+	/**
+	 * Adds a mapping from <code>key</code> to <code>value</code> to the map being
+	 * built.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 * @return this builder
+	 */
+	public Builder<Key, Val> put(Key key, Val value) {
+	    return put(key, value, FHashMap.hashCode(key));
+	}
+
+	// Like `put', but takes the key's hash code (as returned by `hashCode(Object)')
+	// instead of computing it; for `FCachedHashMap.readObject'.
+	/*pkg*/ Builder<Key, Val> put(Key key, Val value, int khash) {
+	    if (size == keys.length) {
+		keys = Arrays.copyOf(keys, size << 1);
+		vals = Arrays.copyOf(vals, size << 1);
+		hashes = Arrays.copyOf(hashes, size << 1);
+	    }
+	    keys[size] = key;
+	    vals[size] = value;
+	    hashes[size++] = khash;
+	    return this;
+	}
+
+	/**
+	 * Adds all the mappings of <code>map</code> to the map being built.
+	 *
+	 * @param map the map whose entries are to be added
+	 * @return this builder
+	 */
+	public Builder<Key, Val> putAll(Map<? extends Key, ? extends Val> map) {
+	    for (Map.Entry<? extends Key, ? extends Val> ent : map.entrySet())
+		put(ent.getKey(), ent.getValue());
+	    return this;
+	}
+
+	/**
+	 * Returns a <code>FHashMap</code> containing the pairs added so far.  Takes
+	 * O(n log n) time for the sort and O(n) for the tree construction.
+	 *
+	 * @return the new map
+	 */
+	public FHashMap<Key, Val> build() {
+	    return new FHashMap<Key, Val>(tree(), null);
+	}
+
+	// Returns the tree for the pairs added so far.
+	/*pkg*/ Object tree() {
+	    int n = size;
+	    if (n == 0) return null;
+	    // Sort the indices by hash code, breaking ties by position, so that later
+	    // occurrences of a key override earlier ones.
+	    long[] order = new long[n];
+	    for (int i = 0; i < n; ++i)
+		order[i] = ((long)hashes[i] << 32) | i;
+	    Arrays.sort(order);
+	    Object[] res_keys = new Object[n];
+	    Object[] res_vals = new Object[n];
+	    int[] res_hashes = new int[n];
+	    int nres = 0;
+	    boolean any_equiv = false;
+	    for (int i = 0; i < n; ) {
+		int hash = (int)(order[i] >> 32);
+		int idx = (int)order[i++];
+		Object key = keys[idx], val = vals[idx];
+		while (i < n && (int)(order[i] >> 32) == hash) {
+		    idx = (int)order[i++];
+		    Object k = equivUnion(key, val, keys[idx], vals[idx], second);
+		    if (k instanceof Entry) {
+			key = ((Entry)k).key;
+			val = ((Entry)k).value;
+		    } else {
+			key = k;
+			val = null;
+		    }
+		}
+		if (key instanceof EquivalentMap) any_equiv = true;
+		res_keys[nres] = key;
+		res_vals[nres] = val;
+		res_hashes[nres++] = hash;
+	    }
+	    int[] cum = null;
+	    if (any_equiv) {
+		cum = new int[nres + 1];
+		for (int i = 0; i < nres; ++i)
+		    cum[i + 1] = cum[i] + keySize(res_keys[i]);
+	    }
+	    return buildTree(res_keys, res_vals, res_hashes, cum, 0, nres);
+	}
+
+	private Object[] keys;
+	private Object[] vals;
+	private int[] hashes;
+	private int size = 0;
+    }
+
     /******************************************************************************/
     /* Internals */
 
@@ -473,9 +766,12 @@ public class FHashMap<Key, Val>
     }
 
     /* A subtree can be either null, a `Node', or a leaf.  A leaf is an `Object[]'
-     * containing first the keys, then the values (i.e. its length is twice the
-     * number of pairs).  The `Entry' key type is `Object' because it might hold an
-     * `EquivalentMap'. */
+     * containing first the keys, then the values, and finally an `int[]' of the
+     * keys' hash codes (as returned by `hashCode(Object)'); so its length is twice
+     * the number of pairs, plus one.  Keeping the hash codes in the leaf means that
+     * searching and merging leaves never has to call the keys' `hashCode' methods,
+     * and only has to touch a key object when its hash code matches.  The `Entry'
+     * key type is `Object' because it might hold an `EquivalentMap'. */
     /*pkg*/ static final class Node extends Entry {
 	Node(int _size, Object _key, int _khash, Object _value, Object _left, Object _right) {
 	    super(_key, _value);
@@ -488,6 +784,9 @@ public class FHashMap<Key, Val>
 	/*pkg*/ final int size;		// the number of pairs in the subtree
 	/*pkg*/ final Object left;	// a subtree
 	/*pkg*/ final Object right;	// a subtree
+	// A cache of the hash code of the subtree, for `myHashCode' and
+	// `cachedHashCode', which compute the same value.
+	private int hash_code = Integer.MIN_VALUE;
     }
 
     private static Node makeNode(Object key, int khash, Object value, Object left, Object right) {
@@ -506,13 +805,18 @@ public class FHashMap<Key, Val>
 	else return ((Node)subtree).size;
     }
 
+    /*pkg*/ static int[] leafHashes(Object[] ary) {
+	return (int[])ary[ary.length - 1];
+    }
+
     private static int keySize(Object key) {
 	if (key instanceof EquivalentMap)
 	    return ((EquivalentMap)key).contents.size();
 	else return 1;
     }
 
-    private FHashMap(Object _tree, Val _dflt) {
+    // This has default (package-wide) access so `FCachedHashMap' can use it.
+    /*pkg*/ FHashMap(Object _tree, Val _dflt) {
 	tree = _tree;
 	dflt = _dflt;
     }
@@ -537,6 +841,50 @@ public class FHashMap<Key, Val>
 	return val != NO_ELEMENT && eql(val, entry.getValue());
     }
 
+    /*pkg*/ static <Key, Val> void forEach(Object subtree,
+					   BiConsumer<? super Key, ? super Val> action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = ary.length >> 1; i < len; ++i)
+		action.accept((Key)ary[i], (Val)ary[i + len]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEach(node.left, action);
+	    if (node.key instanceof EquivalentMap) {
+		ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+		for (int i = 0, len = al.size(); i < len; ++i) {
+		    Entry ent = al.get(i);
+		    action.accept((Key)ent.key, (Val)ent.value);
+		}
+	    } else action.accept((Key)node.key, (Val)node.value);
+	    forEach(node.right, action);
+	}
+    }
+
+    /*pkg*/ static <Key, Val> boolean forEachWhile(Object subtree,
+						   BiPredicate<? super Key,
+							       ? super Val> pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = ary.length >> 1; i < len; ++i)
+		if (!pred.test((Key)ary[i], (Val)ary[i + len])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    if (!forEachWhile(node.left, pred)) return false;
+	    if (node.key instanceof EquivalentMap) {
+		ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+		for (int i = 0, len = al.size(); i < len; ++i) {
+		    Entry ent = al.get(i);
+		    if (!pred.test((Key)ent.key, (Val)ent.value)) return false;
+		}
+	    } else if (!pred.test((Key)node.key, (Val)node.value)) return false;
+	    return forEachWhile(node.right, pred);
+	}
+    }
+
     /*pkg*/ static final Object NO_ELEMENT = new Object();
 
     // Returns NO_ELEMENT if there is no entry for the key.
@@ -577,14 +925,15 @@ public class FHashMap<Key, Val>
 			       BinaryOp valCombiner) {
 	if (subtree == null) {
 	    if (!(key instanceof EquivalentMap)) {
-		Object[] a = new Object[2];
+		Object[] a = new Object[3];
 		a[0] = key;
 		a[1] = value;
+		a[2] = new int[] { khash };
 		return a;
 	    } else return makeNode(key, khash, value, null, null);
 	} else if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[])subtree;
-	    int len = ary.length, nkeys = len >> 1;
+	    int nkeys = ary.length >> 1;
 	    int bin_srch_res = binarySearch(ary, khash);
 	    int found = bin_srch_res & BIN_SEARCH_FOUND_MASK;
 	    int idx = bin_srch_res >> BIN_SEARCH_INDEX_SHIFT;
@@ -595,9 +944,9 @@ public class FHashMap<Key, Val>
 		if (eql(oldval, newval)) return subtree;
 		else return update2(ary, idx, newval);
 	    } else if (found == BIN_SEARCH_NOT_FOUND  &&
-		     len + 1 < MAX_LEAF_ARRAY_LENGTH  &&
+		     (nkeys << 1) + 1 < MAX_LEAF_ARRAY_LENGTH  &&
 		     !(key instanceof EquivalentMap))
-		return insert2(ary, idx, key, value);
+		return insert2(ary, idx, key, khash, value);
 	    else return makeNode((found == BIN_SEARCH_FOUND
 				  ? equivUnion(ary[idx], ary[idx + nkeys], key, value, valCombiner)
 				  : key),
@@ -667,8 +1016,9 @@ public class FHashMap<Key, Val>
 	else if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[])subtree;
 	    int nkeys = ary.length >> 1;
-	    Object[] dom = new Object[nkeys];
+	    Object[] dom = new Object[nkeys + 1];
 	    for (int i = 0; i < nkeys; ++i) dom[i] = ary[i];
+	    dom[nkeys] = leafHashes(ary);	// never modified, so it can be shared
 	    return dom;
 	} else {
 	    Node node = (Node)subtree;
@@ -745,16 +1095,25 @@ public class FHashMap<Key, Val>
 				    valCombiner, lo, hash1);
 	    Object new_right = union(trim(node1.right, hash1, hi), trim(subtree2, hash1, hi),
 				     valCombiner, hash1, hi);
-	    Entry entry2 = findEquiv(subtree2, hash1);
-	    if (entry2 == null) return concat(key1, hash1, node1.value, new_left, new_right);
+	    return unionNode(node1, findEquiv(subtree2, hash1), valCombiner,
+			     new_left, new_right);
+	}
+    }
+
+    // The last step of `union' when `subtree1' is a node: combines its pair with the
+    // matching `entry2' (if any) from the other tree, and the recursive results.
+    private static Object unionNode(Node node1, Entry entry2, BinaryOp valCombiner,
+				    Object new_left, Object new_right) {
+	Object key1 = node1.key;
+	int hash1 = node1.khash;
+	if (entry2 == null) return concat(key1, hash1, node1.value, new_left, new_right);
+	else {
+	    Object e = equivUnion(key1, node1.value, entry2.key, entry2.value, valCombiner);
+	    if (e instanceof EquivalentMap)
+		return concat(e, hash1, null, new_left, new_right);
 	    else {
-		Object e = equivUnion(key1, node1.value, entry2.key, entry2.value, valCombiner);
-		if (e instanceof EquivalentMap)
-		    return concat(e, hash1, null, new_left, new_right);
-		else {
-		    Entry ent = ((Entry)e);
-		    return concat(ent.key, hash1, ent.value, new_left, new_right);
-		}
+		Entry ent = ((Entry)e);
+		return concat(ent.key, hash1, ent.value, new_left, new_right);
 	    }
 	}
     }
@@ -809,17 +1168,26 @@ public class FHashMap<Key, Val>
 	    Object new_right = restrictedTo(map_node.right,
 					    FHashSet.trim(set_subtree, mk_hash, hi),
 					    mk_hash, hi);
-	    Object set_elt = FHashSet.findEquiv(set_subtree, mk_hash);
-	    if (set_elt == FHashSet.NO_ELEMENT) return join(new_left, new_right);
+	    return restrictedToNode(map_node, FHashSet.findEquiv(set_subtree, mk_hash),
+				    new_left, new_right);
+	}
+    }
+
+    // The last step of `restrictedTo' when `map_subtree' is a node: keeps whichever of
+    // its pairs are in `set_elt' (which may be `FHashSet.NO_ELEMENT'), and combines
+    // them with the recursive results.
+    private static Object restrictedToNode(Node map_node, Object set_elt,
+					   Object new_left, Object new_right) {
+	int mk_hash = map_node.khash;
+	if (set_elt == FHashSet.NO_ELEMENT) return join(new_left, new_right);
+	else {
+	    Object k = equivRestrictedTo(map_node.key, map_node.value, set_elt);
+	    if (k == null) return join(new_left, new_right);
+	    else if (k instanceof EquivalentMap)
+		return concat(k, mk_hash, null, new_left, new_right);
 	    else {
-		Object k = equivRestrictedTo(raw_key, map_node.value, set_elt);
-		if (k == null) return join(new_left, new_right);
-		else if (k instanceof EquivalentMap)
-		    return concat(k, mk_hash, null, new_left, new_right);
-		else {
-		    Entry ent = (Entry)k;
-		    return concat(ent.key, mk_hash, ent.value, new_left, new_right);
-		}
+		Entry ent = (Entry)k;
+		return concat(ent.key, mk_hash, ent.value, new_left, new_right);
 	    }
 	}
     }
@@ -876,22 +1244,244 @@ public class FHashMap<Key, Val>
 	    Object new_right = restrictedFrom(map_node.right,
 					      FHashSet.trim(set_subtree, mk_hash, hi),
 					      mk_hash, hi);
-	    Object set_elt = FHashSet.findEquiv(set_subtree, mk_hash);
-	    if (set_elt == FHashSet.NO_ELEMENT)
-		return concat(raw_key, mk_hash, map_node.value, new_left, new_right);
+	    return restrictedFromNode(map_node, FHashSet.findEquiv(set_subtree, mk_hash),
+				      new_left, new_right);
+	}
+    }
+
+    // The last step of `restrictedFrom' when `map_subtree' is a node: keeps whichever
+    // of its pairs are not in `set_elt' (which may be `FHashSet.NO_ELEMENT'), and
+    // combines them with the recursive results.
+    private static Object restrictedFromNode(Node map_node, Object set_elt,
+					     Object new_left, Object new_right) {
+	int mk_hash = map_node.khash;
+	if (set_elt == FHashSet.NO_ELEMENT)
+	    return concat(map_node.key, mk_hash, map_node.value, new_left, new_right);
+	else {
+	    Object k = equivRestrictedFrom(map_node.key, map_node.value, set_elt);
+	    if (k == null) return join(new_left, new_right);
+	    else if (k instanceof EquivalentMap)
+		return concat(k, mk_hash, null, new_left, new_right);
 	    else {
-		Object k = equivRestrictedFrom(raw_key, map_node.value, set_elt);
-		if (k == null) return join(new_left, new_right);
-		else if (k instanceof EquivalentMap)
-		    return concat(k, mk_hash, null, new_left, new_right);
-		else {
-		    Entry ent = (Entry)k;
-		    return concat(ent.key, mk_hash, ent.value, new_left, new_right);
-		}
+		Entry ent = (Entry)k;
+		return concat(ent.key, mk_hash, ent.value, new_left, new_right);
+	    }
+	}
+    }
+
+    /*pkg*/ static void diff(Object tree1, Object tree2, MapDiff.Handler handler) {
+	diff(tree1, tree2, handler, NEGATIVE_INFINITY, POSITIVE_INFINITY);
+    }
+
+    // Reports the differences between the pairs of `subtree1' and `subtree2' whose
+    // keys' hash codes are greater than `lo' and less than `hi'.
+    private static void diff(Object subtree1, Object subtree2, MapDiff.Handler handler,
+			     int lo, int hi) {
+	// As in `union', a subtree that shows up in both trees is within the bounds in
+	// both; and it has no differences to report.
+	if (subtree1 == subtree2) return;
+	else if (subtree1 == null) diffAll(subtree2, true, handler, lo, hi);
+	else if (subtree2 == null) diffAll(subtree1, false, handler, lo, hi);
+	else if (!(subtree1 instanceof Node)) {
+	    Object[] ary1 = (Object[])subtree1;
+	    if (!(subtree2 instanceof Node))
+		diff2(ary1, (Object[])subtree2, handler, lo, hi);
+	    else {
+		Node node2 = (Node)subtree2;
+		int hash2 = node2.khash;
+		diff(trim(subtree1, lo, hash2), trim(node2.left, lo, hash2),
+		     handler, lo, hash2);
+		diffEquiv(findEquiv(subtree1, hash2), node2, handler);
+		diff(trim(subtree1, hash2, hi), trim(node2.right, hash2, hi),
+		     handler, hash2, hi);
+	    }
+	} else {
+	    Node node1 = (Node)subtree1;
+	    int hash1 = node1.khash;
+	    diff(trim(node1.left, lo, hash1), trim(subtree2, lo, hash1),
+		 handler, lo, hash1);
+	    diffEquiv(node1, findEquiv(subtree2, hash1), handler);
+	    diff(trim(node1.right, hash1, hi), trim(subtree2, hash1, hi),
+		 handler, hash1, hi);
+	}
+    }
+
+    // Reports each pair of `subtree' whose key's hash code is greater than `lo' and
+    // less than `hi' as added (if `added') or removed.
+    private static void diffAll(Object subtree, boolean added, MapDiff.Handler handler,
+				int lo, int hi) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int nkeys = ary.length >> 1;
+	    int lo_split = (lo == NEGATIVE_INFINITY ? 0 : binarySearchLo(ary, lo));
+	    int hi_split = (hi == POSITIVE_INFINITY ? nkeys : binarySearchHi(ary, hi));
+	    for (int i = lo_split; i < hi_split; ++i) {
+		if (added) handler.added(ary[i], ary[i + nkeys]);
+		else handler.removed(ary[i], ary[i + nkeys]);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    int khash = node.khash;
+	    if (lo != NEGATIVE_INFINITY && khash <= lo)
+		diffAll(node.right, added, handler, lo, hi);
+	    else if (hi != POSITIVE_INFINITY && khash >= hi)
+		diffAll(node.left, added, handler, lo, hi);
+	    else {
+		diffAll(node.left, added, handler, lo, hi);
+		if (added) diffEquiv(null, node, handler);
+		else diffEquiv(node, null, handler);
+		diffAll(node.right, added, handler, lo, hi);
+	    }
+	}
+    }
+
+    // Reports the differences between `ent1' and `ent2', which are the pairs with
+    // some one hash code from the old and new trees respectively.  Either may be
+    // null, and either's key may be an `EquivalentMap'.
+    private static void diffEquiv(Entry ent1, Entry ent2, MapDiff.Handler handler) {
+	if (ent1 != null && ent2 != null &&
+	    !(ent1.key instanceof EquivalentMap) && !(ent2.key instanceof EquivalentMap)) {
+	    if (!eql(ent1.key, ent2.key)) {
+		handler.removed(ent1.key, ent1.value);
+		handler.added(ent2.key, ent2.value);
+	    } else if (!eql(ent1.value, ent2.value))
+		handler.changed(ent1.key, ent1.value, ent2.value);
+	} else {
+	    ArrayList<Entry> al1 = equivContents(ent1), al2 = equivContents(ent2);
+	    for (int i1 = 0, siz1 = al1.size(); i1 < siz1; ++i1) {
+		Entry e1 = al1.get(i1);
+		Entry e2 = null;
+		for (int i2 = 0, siz2 = al2.size(); i2 < siz2 && e2 == null; ++i2)
+		    if (eql(e1.key, al2.get(i2).key)) e2 = al2.get(i2);
+		if (e2 == null) handler.removed(e1.key, e1.value);
+		else if (!eql(e1.value, e2.value)) handler.changed(e1.key, e1.value, e2.value);
+	    }
+	    for (int i2 = 0, siz2 = al2.size(); i2 < siz2; ++i2) {
+		Entry e2 = al2.get(i2);
+		boolean found = false;
+		for (int i1 = 0, siz1 = al1.size(); i1 < siz1 && !found; ++i1)
+		    if (eql(e2.key, al1.get(i1).key)) found = true;
+		if (!found) handler.added(e2.key, e2.value);
 	    }
 	}
     }
 
+    // Returns the pairs of `ent' (which may be null) as a list.
+    private static ArrayList<Entry> equivContents(Entry ent) {
+	if (ent == null) return new ArrayList<Entry>(0);
+	else if (ent.key instanceof EquivalentMap) return ((EquivalentMap)ent.key).contents;
+	else {
+	    ArrayList<Entry> al = new ArrayList<Entry>(1);
+	    al.add(ent);
+	    return al;
+	}
+    }
+
+    /****************/
+    /* Parallel versions of the hedge algorithms.  At each node, these fork the left
+     * subproblem and do the right one in the current thread; since the subtrees are
+     * disjoint and immutable, no synchronization is needed. */
+
+    /* Below this combined size, the parallel operations just call the sequential
+     * ones; forking a task costs more than processing a subtree this small. */
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    private static final int OP_UNION = 0;
+    private static final int OP_RESTRICTED_TO = 1;
+    private static final int OP_RESTRICTED_FROM = 2;
+
+    // For `restricted{To,From}', `subtree2' is an `FHashSet' subtree, and
+    // `valCombiner' is unused.
+    private static final class ParallelOp extends RecursiveTask<Object> {
+	private static final long serialVersionUID = 1L;
+
+	ParallelOp(int _op, Object _subtree1, Object _subtree2, BinaryOp _valCombiner,
+		   int _lo, int _hi) {
+	    op = _op;
+	    subtree1 = _subtree1;
+	    subtree2 = _subtree2;
+	    valCombiner = _valCombiner;
+	    lo = _lo;
+	    hi = _hi;
+	}
+	private final int op;
+	private final Object subtree1, subtree2;
+	private final BinaryOp valCombiner;
+	private final int lo, hi;
+	protected Object compute() {
+	    switch (op) {
+	    case OP_UNION: return parallelUnion(subtree1, subtree2, valCombiner, lo, hi);
+	    case OP_RESTRICTED_TO: return parallelRestrictedTo(subtree1, subtree2, lo, hi);
+	    default: return parallelRestrictedFrom(subtree1, subtree2, lo, hi);
+	    }
+	}
+    }
+
+    private static Object parallelUnion(Object subtree1, Object subtree2,
+					BinaryOp valCombiner, int lo, int hi) {
+	if (!(subtree1 instanceof Node) || subtree1 == subtree2 || subtree2 == null ||
+	    treeSize(subtree1) + treeSize(subtree2) < PARALLEL_THRESHOLD)
+	    return union(subtree1, subtree2, valCombiner, lo, hi);
+	else {
+	    // (Unlike the set case, we can't swap the arguments when `subtree1' is a
+	    // leaf, because `valCombiner' needn't be commutative; but then `subtree1'
+	    // is small, and the sequential version is fine.)
+	    Node node1 = (Node)subtree1;
+	    int hash1 = node1.khash;
+	    ParallelOp left = new ParallelOp(OP_UNION, trim(node1.left, lo, hash1),
+					     trim(subtree2, lo, hash1), valCombiner, lo, hash1);
+	    left.fork();
+	    Object new_right = parallelUnion(trim(node1.right, hash1, hi),
+					     trim(subtree2, hash1, hi), valCombiner, hash1, hi);
+	    Object new_left = left.join();
+	    return unionNode(node1, findEquiv(subtree2, hash1), valCombiner,
+			     new_left, new_right);
+	}
+    }
+
+    private static Object parallelRestrictedTo(Object map_subtree, Object set_subtree,
+					       int lo, int hi) {
+	if (!(map_subtree instanceof Node) || set_subtree == null ||
+	    treeSize(map_subtree) + FHashSet.treeSize(set_subtree) < PARALLEL_THRESHOLD)
+	    return restrictedTo(map_subtree, set_subtree, lo, hi);
+	else {
+	    Node map_node = (Node)map_subtree;
+	    int mk_hash = map_node.khash;
+	    ParallelOp left = new ParallelOp(OP_RESTRICTED_TO, map_node.left,
+					     FHashSet.trim(set_subtree, lo, mk_hash), null,
+					     lo, mk_hash);
+	    left.fork();
+	    Object new_right = parallelRestrictedTo(map_node.right,
+						    FHashSet.trim(set_subtree, mk_hash, hi),
+						    mk_hash, hi);
+	    Object new_left = left.join();
+	    return restrictedToNode(map_node, FHashSet.findEquiv(set_subtree, mk_hash),
+				    new_left, new_right);
+	}
+    }
+
+    private static Object parallelRestrictedFrom(Object map_subtree, Object set_subtree,
+						 int lo, int hi) {
+	if (!(map_subtree instanceof Node) || set_subtree == null ||
+	    treeSize(map_subtree) + FHashSet.treeSize(set_subtree) < PARALLEL_THRESHOLD)
+	    return restrictedFrom(map_subtree, set_subtree, lo, hi);
+	else {
+	    Node map_node = (Node)map_subtree;
+	    int mk_hash = map_node.khash;
+	    ParallelOp left = new ParallelOp(OP_RESTRICTED_FROM, map_node.left,
+					     FHashSet.trim(set_subtree, lo, mk_hash), null,
+					     lo, mk_hash);
+	    left.fork();
+	    Object new_right = parallelRestrictedFrom(map_node.right,
+						      FHashSet.trim(set_subtree, mk_hash, hi),
+						      mk_hash, hi);
+	    Object new_left = left.join();
+	    return restrictedFromNode(map_node, FHashSet.findEquiv(set_subtree, mk_hash),
+				      new_left, new_right);
+	}
+    }
+
     /*pkg*/ static int compareTo(Object tree1, Object tree2) {
 	if (tree1 == tree2) return 0;
 	int size1 = treeSize(tree1), size2 = treeSize(tree2);
@@ -910,9 +1500,10 @@ public class FHashMap<Key, Val>
 	    if (!(subtree2 instanceof Node)) {
 		Object[] ary1 = (Object[])subtree1, ary2 = (Object[])subtree2;
 		int nkeys1 = ary1.length >> 1, nkeys2 = ary2.length >> 1;
+		int[] hashes1 = leafHashes(ary1), hashes2 = leafHashes(ary2);
 		for (int i = lo; i < hi; ++i) {
-		    int hash1 = hashCode(ary1[i - base1]);
-		    int hash2 = hashCode(ary2[i - base2]);
+		    int hash1 = hashes1[i - base1];
+		    int hash2 = hashes2[i - base2];
 		    if (hash1 < hash2) return -1;
 		    else if (hash1 > hash2) return 1;
 		    else {
@@ -939,7 +1530,7 @@ public class FHashMap<Key, Val>
 		Object key1 = node1.key;
 		Entry ent2 = rankEntry(subtree2, new_hi - base2);
 		int hash1 = node1.khash;
-		int hash2 = hashCode(ent2.key);
+		int hash2 = rankHash(subtree2, new_hi - base2);
 		if (hash1 < hash2) return -1;
 		else if (hash1 > hash2) return 1;
 		else {
@@ -971,7 +1562,9 @@ public class FHashMap<Key, Val>
 	else if (!(subtree1 instanceof Node)) {
 	    if (!(subtree2 instanceof Node)) {
 		Object[] ary1 = (Object[])subtree1, ary2 = (Object[])subtree2;
+		int[] hashes1 = leafHashes(ary1), hashes2 = leafHashes(ary2);
 		for (int i = lo; i < hi; ++i) {
+		    if (hashes1[i - base1] != hashes2[i - base2]) return false;
 		    Object key1 = ary1[i - base1], key2 = ary2[i - base2];
 		    if (!eql(key1, key2)) return false;
 		    int nkeys1 = ary1.length >> 1, nkeys2 = ary2.length >> 1;
@@ -1055,6 +1648,22 @@ public class FHashMap<Key, Val>
 	}
     }
 
+    // Returns the hash code of the key of `rankEntry(subtree, rank)'.
+    private static int rankHash(Object subtree, int rank) {
+	if (subtree == null) throw new NullPointerException();	// shouldn't happen
+	else if (!(subtree instanceof Node)) return leafHashes((Object[])subtree)[rank];
+	else {
+	    Node node = (Node)subtree;
+	    int left_size = treeSize(node.left);
+	    if (rank < left_size) return rankHash(node.left, rank);
+	    else {
+		int key_size = keySize(node.key);
+		if (rank < left_size + key_size) return node.khash;
+		else return rankHash(node.right, rank - (left_size + key_size));
+	    }
+	}
+    }
+
     private static Entry findEquiv(Object subtree, int hash) {
 	if (subtree == null) return null;
 	else if (!(subtree instanceof Node)) {
@@ -1112,11 +1721,10 @@ public class FHashMap<Key, Val>
     private static Object trim (Object subtree, int lo, int hi) {
 	if (subtree == null) return null;
 	else if (!(subtree instanceof Node)) {
-	    Object[] ary = (Object[])subtree;
-	    int nkeys = ary.length >> 1;
+	    int[] hashes = leafHashes((Object[])subtree);
 	    // If the array is completely out of range, drop it.
-	    if ((lo != NEGATIVE_INFINITY && hashCode(ary[nkeys - 1]) <= lo) ||
-		(hi != POSITIVE_INFINITY && hashCode(ary[0]) >= hi))
+	    if ((lo != NEGATIVE_INFINITY && hashes[hashes.length - 1] <= lo) ||
+		(hi != POSITIVE_INFINITY && hashes[0] >= hi))
 		return null;
 	    else return subtree;
 	} else {
@@ -1163,9 +1771,8 @@ public class FHashMap<Key, Val>
 	if ((left == null || !(left instanceof Node)) &&
 	    (right == null || !(right instanceof Node))) {
 	    if (!(key instanceof EquivalentMap) &&
-		(left == null ? 0 : ((Object[])left).length) + 1 +
-		(right == null ? 0 : ((Object[])right).length) < MAX_LEAF_ARRAY_LENGTH)
-		return makeArray2(key, value, ((Object[])left), ((Object[])right));
+		((treeSize(left) + treeSize(right)) << 1) + 1 < MAX_LEAF_ARRAY_LENGTH)
+		return makeArray2(key, khash, value, ((Object[])left), ((Object[])right));
 	    else return makeNode(key, khash, value, left, right);
 	} else {
 	    int sizl = treeSize(left);
@@ -1212,7 +1819,7 @@ public class FHashMap<Key, Val>
 		m = e.key;
 		v = e.value;
 	    }
-	    return concat(m, hashCode(m), v, left, lessMin(right));
+	    return concat(m, minHash(right), v, left, lessMin(right));
 	}
     }
 
@@ -1231,6 +1838,16 @@ public class FHashMap<Key, Val>
 	}
     }
 
+    /* Returns the hash code of the key of `min(subtree)'. */
+    private static int minHash(Object subtree) {
+	if (!(subtree instanceof Node)) return leafHashes((Object[])subtree)[0];
+	else {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.khash;
+	    else return minHash(node.left);
+	}
+    }
+
     /* Assumes `subtree' is nonempty. */
     private static Object lessMin(Object subtree) {
 	if (!(subtree instanceof Node)) {
@@ -1258,7 +1875,11 @@ public class FHashMap<Key, Val>
 	    }
 	    return hash;
 	} else {
+	    // Each node caches the hash code of its subtree, so if this map was made from
+	    // one whose hash code has already been computed, this takes only O(log n)
+	    // time: just the nodes on the modified paths are new.
 	    Node node = (Node)subtree;
+	    if (node.hash_code != Integer.MIN_VALUE) return node.hash_code;
 	    int hash = myHashCode(node.left) + myHashCode(node.right);
 	    Object key = node.key;
 	    if (key instanceof EquivalentMap) {
@@ -1267,10 +1888,355 @@ public class FHashMap<Key, Val>
 		    hash += al.get(i).hashCode();
 	    } else hash += (key == null ? 0 : key.hashCode()) ^		// not 'node.khash'!
 			   (node.value == null ? 0 : node.value.hashCode());
+	    node.hash_code = hash;
 	    return hash;
 	}
     }
 
+    // Like `myHashCode', but uses the hash codes cached in the tree instead of calling
+    // the keys' `hashCode' methods again; for `FCachedHashMap'.  (The values'
+    // hash codes aren't cached, so they still have to be computed.)
+    /*pkg*/ static int cachedHashCode(Object subtree) {
+	if (subtree == null) return 0;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int[] hashes = leafHashes(ary);
+	    int nkeys = ary.length >> 1;
+	    int hash = 0;
+	    for (int i = 0; i < nkeys; ++i) {
+		Object value = ary[i + nkeys];
+		hash += (rawHashCode(ary[i], hashes[i]) ^
+			 (value == null ? 0 : value.hashCode()));
+	    }
+	    return hash;
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.hash_code != Integer.MIN_VALUE) return node.hash_code;
+	    int hash = cachedHashCode(node.left) + cachedHashCode(node.right);
+	    Object key = node.key;
+	    if (key instanceof EquivalentMap) {
+		ArrayList<Entry> al = ((EquivalentMap)key).contents;
+		for (int i = 0, siz = al.size(); i < siz; ++i) {
+		    Entry ent = al.get(i);
+		    hash += (rawHashCode(ent.key, node.khash) ^
+			     (ent.value == null ? 0 : ent.value.hashCode()));
+		}
+	    } else hash += (rawHashCode(key, node.khash) ^
+			    (node.value == null ? 0 : node.value.hashCode()));
+	    node.hash_code = hash;
+	    return hash;
+	}
+    }
+
+    // Given `khash', the result of `hashCode(key)', returns `key.hashCode()'.  These
+    // differ only if the latter was one of the infinities, in which case the former
+    // is its neighbor; only then do we have to ask the key again.
+    private static int rawHashCode(Object key, int khash) {
+	if (khash == NEGATIVE_INFINITY + 1 || khash == POSITIVE_INFINITY - 1)
+	    return key.hashCode();
+	else return khash;
+    }
+
+    // Writes the pairs of `subtree' to `strm', each followed by the hash code of its
+    // key; for `FCachedHashMap.writeObject'.
+    /*pkg*/ static void writeWithHashes(Object subtree, ObjectOutputStream strm)
+	    throws IOException {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int[] hashes = leafHashes(ary);
+	    int nkeys = ary.length >> 1;
+	    for (int i = 0; i < nkeys; ++i) {
+		strm.writeObject(ary[i]);
+		strm.writeObject(ary[i + nkeys]);
+		strm.writeInt(hashes[i]);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    writeWithHashes(node.left, strm);
+	    if (node.key instanceof EquivalentMap) {
+		ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+		for (int i = 0, siz = al.size(); i < siz; ++i) {
+		    Entry ent = al.get(i);
+		    strm.writeObject(ent.key);
+		    strm.writeObject(ent.value);
+		    strm.writeInt(node.khash);
+		}
+	    } else {
+		strm.writeObject(node.key);
+		strm.writeObject(node.value);
+		strm.writeInt(node.khash);
+	    }
+	    writeWithHashes(node.right, strm);
+	}
+    }
+
+    // For the snapshots of `FLinkedHashMap' and `FLinkedHashSet': returns the hash
+    // codes stored in `seq_tree', a sequence tree of theirs with `n' keys, in the
+    // order of the sequence numbers it maps the keys to.
+    /*pkg*/ static int[] hashesBySeq(Object seq_tree, int n) {
+	long[] by_seq = new long[n];
+	seqsAndHashes(seq_tree, by_seq, 0);
+	Arrays.sort(by_seq);
+	int[] hashes = new int[n];
+	for (int i = 0; i < n; ++i) hashes[i] = (int)by_seq[i];
+	return hashes;
+    }
+
+    // Stores each pair of `subtree', which has `Integer' values, in `by_seq', starting
+    // at index `i', as the value in the high half and the key's hash code in the low
+    // half; returns the next index.
+    private static int seqsAndHashes(Object subtree, long[] by_seq, int i) {
+	if (subtree == null) return i;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int[] hashes = leafHashes(ary);
+	    int nkeys = ary.length >> 1;
+	    for (int j = 0; j < nkeys; ++j)
+		by_seq[i++] = ((long)(Integer)ary[j + nkeys] << 32) | (hashes[j] & 0xFFFFFFFFL);
+	    return i;
+	} else {
+	    Node node = (Node)subtree;
+	    i = seqsAndHashes(node.left, by_seq, i);
+	    long hash = node.khash & 0xFFFFFFFFL;
+	    if (node.key instanceof EquivalentMap) {
+		for (Entry ent : ((EquivalentMap)node.key).contents)
+		    by_seq[i++] = ((long)(Integer)ent.value << 32) | hash;
+	    } else by_seq[i++] = ((long)(Integer)node.value << 32) | hash;
+	    return seqsAndHashes(node.right, by_seq, i);
+	}
+    }
+
+    // Writes the pairs of `subtree' in order for `Snapshot.write'.  Each key hash
+    // code is written once [`int'], followed by the pair, or `EquivalentMap', whose
+    // key has it, in the form `writeGroup' uses.
+    /*pkg*/ static void writeSnapshot(Object subtree, Snapshot.Encoder<Object> kenc,
+				      Snapshot.Encoder<Object> venc, Snapshot.Output out)
+	    throws IOException {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int[] hashes = leafHashes(ary);
+	    int nkeys = ary.length >> 1;
+	    for (int i = 0; i < nkeys; ++i) {
+		out.writeInt(hashes[i]);
+		out.writeVarInt(1);
+		kenc.encode(ary[i], out);
+		venc.encode(ary[i + nkeys], out);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    writeSnapshot(node.left, kenc, venc, out);
+	    out.writeInt(node.khash);
+	    writeGroup(node, kenc, venc, out);
+	    writeSnapshot(node.right, kenc, venc, out);
+	}
+    }
+
+    // Reads the `size' pairs written by `writeSnapshot' and builds the tree.
+    /*pkg*/ static Object readSnapshot(int size, Snapshot.Encoder<Object> kenc,
+				       Snapshot.Encoder<Object> venc, Snapshot.Input in)
+	    throws IOException {
+	Object[] keys = new Object[size], vals = new Object[size];
+	int[] hashes = new int[size];
+	int[] cum = null;
+	int n = 0, prev_hash = NEGATIVE_INFINITY;
+	for (int npairs = 0; npairs < size; ) {
+	    int hash = FHashSet.readHash(prev_hash, in);
+	    int count = Snapshot.readCount(size - npairs, in);
+	    if (count == 1) {
+		keys[n] = kenc.decode(in);
+		vals[n] = venc.decode(in);
+	    } else {
+		keys[n] = readEquivalent(count, kenc, venc, in);
+		if (cum == null) {
+		    cum = new int[size + 1];
+		    for (int i = 0; i <= n; ++i) cum[i] = i;
+		}
+	    }
+	    hashes[n++] = prev_hash = hash;
+	    npairs += count;
+	    if (cum != null) cum[n] = npairs;
+	}
+	return buildTree(keys, vals, hashes, cum, 0, n);
+    }
+
+    // Writes `subtree' for `Snapshot.SharedWriter', keeping the shape of the tree.
+    // A subtree is written as a tag [`Output.writeVarInt']: 0 for null; 1 for a new
+    // leaf, followed by its number of pairs [`Output.writeVarInt'] and the pairs,
+    // each preceded by its key's hash code [`int']; 2 for a new node, followed by its
+    // key's hash code [`int'], its pair as written by `writeGroup', and its left and
+    // right subtrees; or, for a subtree already in `ids', 3 plus its id.  Each new
+    // subtree is given the next id once it has been written.
+    /*pkg*/ static void writeShared(Object subtree, Snapshot.Encoder<Object> kenc,
+				    Snapshot.Encoder<Object> venc, Snapshot.Output out,
+				    IdentityHashMap<Object, Integer> ids)
+	    throws IOException {
+	if (subtree == null) {
+	    out.writeVarInt(0);
+	    return;
+	}
+	Integer id = ids.get(subtree);
+	if (id != null) out.writeVarInt(id + 3);
+	else {
+	    if (!(subtree instanceof Node)) {
+		Object[] ary = (Object[])subtree;
+		int[] hashes = leafHashes(ary);
+		int nkeys = ary.length >> 1;
+		out.writeVarInt(1);
+		out.writeVarInt(nkeys);
+		for (int i = 0; i < nkeys; ++i) {
+		    out.writeInt(hashes[i]);
+		    kenc.encode(ary[i], out);
+		    venc.encode(ary[i + nkeys], out);
+		}
+	    } else {
+		Node node = (Node)subtree;
+		out.writeVarInt(2);
+		out.writeInt(node.khash);
+		writeGroup(node, kenc, venc, out);
+		writeShared(node.left, kenc, venc, out, ids);
+		writeShared(node.right, kenc, venc, out, ids);
+	    }
+	    ids.put(subtree, ids.size());
+	}
+    }
+
+    // Reads a subtree written by `writeShared'.  `subtrees' holds the ones already
+    // read, by id.
+    /*pkg*/ static Object readShared(Snapshot.Encoder<Object> kenc,
+				     Snapshot.Encoder<Object> venc, Snapshot.Input in,
+				     ArrayList<Object> subtrees)
+	    throws IOException {
+	int tag = in.readVarInt();
+	Object res;
+	if (tag == 0) return null;
+	else if (tag == 1) {
+	    int nkeys = Snapshot.readCount(MAX_LEAF_ARRAY_LENGTH >> 1, in);
+	    Object[] ary = new Object[(nkeys << 1) + 1];
+	    int[] hashes = new int[nkeys];
+	    for (int i = 0, prev_hash = NEGATIVE_INFINITY; i < nkeys; ++i) {
+		hashes[i] = prev_hash = FHashSet.readHash(prev_hash, in);
+		ary[i] = kenc.decode(in);
+		ary[i + nkeys] = venc.decode(in);
+	    }
+	    ary[nkeys << 1] = hashes;
+	    res = ary;
+	} else if (tag == 2) {
+	    int khash = FHashSet.readHash(NEGATIVE_INFINITY, in);
+	    int count = Snapshot.readCount(Integer.MAX_VALUE, in);
+	    Object key, val = null;
+	    if (count == 1) {
+		key = kenc.decode(in);
+		val = venc.decode(in);
+	    } else key = readEquivalent(count, kenc, venc, in);
+	    Object left = readShared(kenc, venc, in, subtrees);
+	    res = makeNode(key, khash, val, left, readShared(kenc, venc, in, subtrees));
+	} else return Snapshot.sharedSubtree(tag - 3, subtrees);
+	subtrees.add(res);
+	return res;
+    }
+
+    // Writes a node's pair as the number of pairs it holds [`Output.writeVarInt'],
+    // which is more than one for an `EquivalentMap', followed by the pairs.
+    private static void writeGroup(Node node, Snapshot.Encoder<Object> kenc,
+				   Snapshot.Encoder<Object> venc, Snapshot.Output out)
+	    throws IOException {
+	if (node.key instanceof EquivalentMap) {
+	    ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+	    int siz = al.size();
+	    out.writeVarInt(siz);
+	    for (int i = 0; i < siz; ++i) {
+		Entry ent = al.get(i);
+		kenc.encode(ent.key, out);
+		venc.encode(ent.value, out);
+	    }
+	} else {
+	    out.writeVarInt(1);
+	    kenc.encode(node.key, out);
+	    venc.encode(node.value, out);
+	}
+    }
+
+    // Reads the `count' pairs, more than one, of a group written by `writeGroup'.
+    private static EquivalentMap readEquivalent(int count, Snapshot.Encoder<Object> kenc,
+						Snapshot.Encoder<Object> venc,
+						Snapshot.Input in)
+	    throws IOException {
+	ArrayList<Entry> al = new ArrayList<Entry>(count);
+	for (int i = 0; i < count; ++i) {
+	    Object key = kenc.decode(in);
+	    al.add(new Entry(key, venc.decode(in)));
+	}
+	return new EquivalentMap(al);
+    }
+
+    // Returns the approximate size in bytes of the nodes and leaves of `subtree' that
+    // aren't in `seen', and adds them to it; for `FVersionedMap.historyBytes'.  The
+    // keys and values themselves aren't counted.
+    /*pkg*/ static long footprint(Object subtree, IdentityHashMap<Object, Object> seen) {
+	if (subtree == null || seen.put(subtree, subtree) != null) return 0;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int[] hashes = leafHashes(ary);
+	    // The leaf array, and the array of hash codes at its end, unless another
+	    // leaf already counted has it: `update2' shares it between leaves that
+	    // differ only in their values.
+	    long bytes = FVersionedMap.arrayBytes(ary.length);
+	    if (seen.put(hashes, hashes) == null) bytes += FVersionedMap.arrayBytes(hashes.length);
+	    return bytes;
+	} else {
+	    Node node = (Node)subtree;
+	    // `key', `value', `left', `right'; `khash', `size', `hash_code'
+	    long bytes = FVersionedMap.objectBytes(4, 3);
+	    if (node.key instanceof EquivalentMap)
+		bytes += FVersionedMap.equivalentBytes(((EquivalentMap)node.key).contents.size());
+	    return bytes + footprint(node.left, seen) + footprint(node.right, seen);
+	}
+    }
+
+    // Writes the pairs of `subtree' in order for `FMappedHashMap.write', each one
+    // separately, even those in an `EquivalentMap'.  Starting at index `i', stores
+    // each pair's key hash code in `hashes', and in `positions', `start' plus the
+    // number of bytes written before it.  Returns the index after the last pair.
+    /*pkg*/ static int writeMapped(Object subtree, Snapshot.Encoder<Object> kenc,
+				   Snapshot.Encoder<Object> venc, Snapshot.Output out,
+				   long start, int[] hashes, long[] positions, int i)
+	    throws IOException {
+	if (subtree == null) return i;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int[] leaf_hashes = leafHashes(ary);
+	    int nkeys = ary.length >> 1;
+	    for (int j = 0; j < nkeys; ++j, ++i) {
+		hashes[i] = leaf_hashes[j];
+		positions[i] = start + out.written();
+		kenc.encode(ary[j], out);
+		venc.encode(ary[j + nkeys], out);
+	    }
+	    return i;
+	} else {
+	    Node node = (Node)subtree;
+	    i = writeMapped(node.left, kenc, venc, out, start, hashes, positions, i);
+	    if (node.key instanceof EquivalentMap) {
+		ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+		for (int j = 0, siz = al.size(); j < siz; ++j, ++i) {
+		    Entry ent = al.get(j);
+		    hashes[i] = node.khash;
+		    positions[i] = start + out.written();
+		    kenc.encode(ent.key, out);
+		    venc.encode(ent.value, out);
+		}
+	    } else {
+		hashes[i] = node.khash;
+		positions[i++] = start + out.written();
+		kenc.encode(node.key, out);
+		venc.encode(node.value, out);
+	    }
+	    return writeMapped(node.right, kenc, venc, out, start, hashes, positions, i);
+	}
+    }
+
     private static String dump(Object thing) {
 	if (thing == null) return "null";
 	else if (thing instanceof EquivalentMap) {
@@ -1322,10 +2288,15 @@ public class FHashMap<Key, Val>
 	    Object[] ary = (Object[])subtree;
 	    int prev = lo;
 	    int nkeys = ary.length >> 1;
+	    if (nkeys == 0 || (ary.length & 1) == 0 || !(ary[ary.length - 1] instanceof int[]))
+		return false;
+	    int[] hashes = leafHashes(ary);
+	    if (hashes.length != nkeys) return false;
 	    for (int i = 0, len = nkeys; i < len; ++i) {
 		Object key = ary[i];
 		if (key instanceof EquivalentMap) return false;
 		int hash = hashCode(key);
+		if (hash != hashes[i]) return false;
 		if (prev != NEGATIVE_INFINITY && prev >= hash) return false;
 		prev = hash;
 	    }
@@ -1573,40 +2544,59 @@ public class FHashMap<Key, Val>
     /* Internal array manipulation routines.  These all assume their index
      * parameters are within bounds.  Of course, despite what the names of some
      * might suggest, they all make new arrays.  The "2" suffix means these all
-     * operate on double-length arrays, containing keys followed by values. */
+     * operate on double-length arrays, containing keys followed by values (and
+     * then the keys' hash codes; see `Node' above). */
 
-    private static Object[] makeArray2(Object key, Object value,
+    private static Object[] makeArray2(Object key, int khash, Object value,
 				       Object[] left, Object[] right) {
 	int lnkeys = (left == null ? 0 : left.length >> 1);
 	int rnkeys = (right == null ? 0 : right.length >> 1);
 	int nkeys = lnkeys + 1 + rnkeys;
-	Object[] a = new Object[nkeys << 1];
-	for (int i = 0; i < lnkeys; ++i) {
-	    a[i] = left[i];
-	    a[i + nkeys] = left[i + lnkeys];
+	Object[] a = new Object[(nkeys << 1) + 1];
+	int[] h = new int[nkeys];
+	if (left != null) {
+	    int[] lhashes = leafHashes(left);
+	    for (int i = 0; i < lnkeys; ++i) {
+		a[i] = left[i];
+		a[i + nkeys] = left[i + lnkeys];
+		h[i] = lhashes[i];
+	    }
 	}
 	a[lnkeys] = key;
 	a[lnkeys + nkeys] = value;
-	for (int i = 0; i < rnkeys; ++i) {
-	    a[i + lnkeys + 1] = right[i];
-	    a[i + lnkeys + 1 + nkeys] = right[i + rnkeys];
+	h[lnkeys] = khash;
+	if (right != null) {
+	    int[] rhashes = leafHashes(right);
+	    for (int i = 0; i < rnkeys; ++i) {
+		a[i + lnkeys + 1] = right[i];
+		a[i + lnkeys + 1 + nkeys] = right[i + rnkeys];
+		h[i + lnkeys + 1] = rhashes[i];
+	    }
 	}
+	a[nkeys << 1] = h;
 	return a;
     }
 
-    private static Object[] insert2(Object[] ary, int idx, Object key, Object value) {
+    private static Object[] insert2(Object[] ary, int idx, Object key, int khash,
+				    Object value) {
 	int nkeys = ary.length >> 1;
+	int[] hashes = leafHashes(ary);
 	Object[] a = new Object[ary.length + 2];
+	int[] h = new int[nkeys + 1];
 	for (int i = 0; i < idx; ++i) {
 	    a[i] = ary[i];
 	    a[i + nkeys + 1] = ary[i + nkeys];
+	    h[i] = hashes[i];
 	}
 	a[idx] = key;
 	a[idx + nkeys + 1] = value;
+	h[idx] = khash;
 	for (int i = idx; i < nkeys; ++i) {
 	    a[i + 1] = ary[i];
 	    a[i + nkeys + 2] = ary[i + nkeys];
+	    h[i + 1] = hashes[i];
 	}
+	a[(nkeys + 1) << 1] = h;
 	return a;
     }
 
@@ -1614,15 +2604,20 @@ public class FHashMap<Key, Val>
 	int nkeys = ary.length >> 1;
 	if (nkeys == 1) return null;
 	else {
+	    int[] hashes = leafHashes(ary);
 	    Object[] a = new Object[ary.length - 2];
+	    int[] h = new int[nkeys - 1];
 	    for (int i = 0; i < idx; ++i) {
 		a[i] = ary[i];
 		a[i + nkeys - 1] = ary[i + nkeys];
+		h[i] = hashes[i];
 	    }
 	    for (int i = idx + 1; i < nkeys; ++i) {
 		a[i - 1] = ary[i];
 		a[i + nkeys - 2] = ary[i + nkeys];
+		h[i - 1] = hashes[i];
 	    }
+	    a[(nkeys - 1) << 1] = h;
 	    return a;
 	}
     }
@@ -1631,20 +2626,76 @@ public class FHashMap<Key, Val>
 	if (lo >= hi) return null;
 	else {
 	    int ary_nkeys = ary.length >> 1;
+	    int[] hashes = leafHashes(ary);
 	    int nkeys = hi - lo;
-	    Object[] a = new Object[nkeys << 1];
+	    Object[] a = new Object[(nkeys << 1) + 1];
+	    int[] h = new int[nkeys];
 	    for (int i = 0; i < nkeys; ++i) {
 		a[i] = ary[i + lo];
 		a[i + nkeys] = ary[i + lo + ary_nkeys];
+		h[i] = hashes[i + lo];
+	    }
+	    a[nkeys << 1] = h;
+	    return a;
+	}
+    }
+
+    // Makes a leaf of the pairs from `lo' to `hi' of the parallel arrays `keys',
+    // `vals', and `hashes'.
+    private static Object[] makeLeaf2(Object[] keys, Object[] vals, int[] hashes,
+				      int lo, int hi) {
+	if (lo >= hi) return null;
+	else {
+	    int nkeys = hi - lo;
+	    Object[] a = new Object[(nkeys << 1) + 1];
+	    int[] h = new int[nkeys];
+	    for (int i = 0; i < nkeys; ++i) {
+		a[i] = keys[i + lo];
+		a[i + nkeys] = vals[i + lo];
+		h[i] = hashes[i + lo];
 	    }
+	    a[nkeys << 1] = h;
 	    return a;
 	}
     }
 
+    // Builds a balanced tree, bottom-up, from the pairs `keys[lo..hi)' and
+    // `vals[lo..hi)', which must be in strictly increasing order of the keys' hash
+    // codes `hashes[lo..hi)'.  Any `EquivalentMap's among the keys are placed in
+    // nodes.  `cum' is null if there are none; otherwise `cum[i]' is the number of
+    // pairs in `keys[0..i)', counting an `EquivalentMap' as its size.
+    private static Object buildTree(Object[] keys, Object[] vals, int[] hashes, int[] cum,
+				    int lo, int hi) {
+	if (lo >= hi) return null;
+	else if ((hi - lo) << 1 <= MAX_LEAF_ARRAY_LENGTH &&
+		 (cum == null || cum[hi] - cum[lo] == hi - lo))
+	    return makeLeaf2(keys, vals, hashes, lo, hi);
+	else {
+	    int mid;
+	    if (cum == null) mid = (lo + hi) >>> 1;
+	    else {
+		// Split by pair count rather than by position, so a large
+		// `EquivalentMap' can't unbalance the tree.
+		int target = cum[lo] + ((cum[hi] - cum[lo]) >> 1);
+		int l = lo, h = hi - 1;
+		while (l < h) {
+		    int m = (l + h + 1) >>> 1;
+		    if (cum[m] <= target) l = m;
+		    else h = m - 1;
+		}
+		mid = l;
+	    }
+	    return makeNode(keys[mid], hashes[mid], vals[mid],
+			    buildTree(keys, vals, hashes, cum, lo, mid),
+			    buildTree(keys, vals, hashes, cum, mid + 1, hi));
+	}
+    }
+
     // Updates the value for the key at `idx'.
     private static Object[] update2(Object[] ary, int idx, Object value) {
 	int len = ary.length;
 	Object[] a = new Object[len];
+	// This also copies the hash codes array, which can be shared.
 	for (int i = 0; i < len; ++i) a[i] = ary[i];
 	a[idx + (len >> 1)] = value;
 	return a;
@@ -1656,180 +2707,198 @@ public class FHashMap<Key, Val>
     // makes a node.
     private static Object union2(Object[] ary1, Object[] ary2, BinaryOp valCombiner,
 				 int lo, int hi) {
+	int[] hashes1 = leafHashes(ary1), hashes2 = leafHashes(ary2);
 	int i1 = 0, i2 = 0;
-	int nkeys1 = ary1.length >> 1, nkeys2 = ary2.length >> 1;
+	int nkeys1 = hashes1.length, nkeys2 = hashes2.length;
 	int len1 = nkeys1, len2 = nkeys2;
 	if (lo != NEGATIVE_INFINITY) {
-	    while (i1 < len1 && lo >= hashCode(ary1[i1])) ++i1;
-	    while (i2 < len2 && lo >= hashCode(ary2[i2])) ++i2;
+	    while (i1 < len1 && lo >= hashes1[i1]) ++i1;
+	    while (i2 < len2 && lo >= hashes2[i2]) ++i2;
 	}
 	if (hi != POSITIVE_INFINITY) {
-	    while (i1 < len1 && hi <= hashCode(ary1[len1 - 1])) --len1;
-	    while (i2 < len2 && hi <= hashCode(ary2[len2 - 1])) --len2;
+	    while (i1 < len1 && hi <= hashes1[len1 - 1]) --len1;
+	    while (i2 < len2 && hi <= hashes2[len2 - 1]) --len2;
 	}
 	int maxprs = (len1 - i1) + (len2 - i2);
-	ArrayList<Object> keys = new ArrayList<Object>(maxprs);
-	ArrayList<Object> vals = new ArrayList<Object>(maxprs);
+	Object[] keys = new Object[maxprs];
+	Object[] vals = new Object[maxprs];
+	int[] khashes = new int[maxprs];
+	int n = 0;
 	boolean any_equiv = false;
-	Object k1 = null, k2 = null;
-	int hash1 = 0, hash2 = 0;
-	if (i1 < len1) hash1 = hashCode(k1 = ary1[i1]);
-	if (i2 < len2) hash2 = hashCode(k2 = ary2[i2]);
-	while (true) {
-	    if (i1 == len1) {
-		while (i2 < len2) {
-		    keys.add(ary2[i2]);
-		    vals.add(ary2[i2 + nkeys2]);
-		    ++i2;
-		}
-		break;
-	    } else if (i2 == len2) {
-		while (i1 < len1) {
-		    keys.add(ary1[i1]);
-		    vals.add(ary1[i1 + nkeys1]);
-		    ++i1;
-		}
-		break;
-	    } else if (hash1 < hash2) {
-		keys.add(k1);
-		vals.add(ary1[i1 + nkeys1]);
+	while (i1 < len1 && i2 < len2) {
+	    int hash1 = hashes1[i1], hash2 = hashes2[i2];
+	    if (hash1 < hash2) {
+		keys[n] = ary1[i1];
+		vals[n] = ary1[i1 + nkeys1];
+		khashes[n++] = hash1;
 		++i1;
-		if (i1 < len1) hash1 = hashCode(k1 = ary1[i1]);
 	    } else if (hash1 > hash2) {
-		keys.add(k2);
-		vals.add(ary2[i2 + nkeys2]);
+		keys[n] = ary2[i2];
+		vals[n] = ary2[i2 + nkeys2];
+		khashes[n++] = hash2;
 		++i2;
-		if (i2 < len2) hash2 = hashCode(k2 = ary2[i2]);
 	    } else {
+		Object k1 = ary1[i1], k2 = ary2[i2];
 		if (eql(k1, k2)) {
-		    keys.add(k1);
-		    vals.add(valCombiner.apply(ary1[i1 + nkeys1], ary2[i2 + nkeys2]));
+		    keys[n] = k1;
+		    vals[n] = valCombiner.apply(ary1[i1 + nkeys1], ary2[i2 + nkeys2]);
 		} else {
-		    keys.add(equivUnion(k1, ary1[i1 + nkeys1], k2, ary2[i2 + nkeys2], valCombiner));
-		    vals.add(null);
+		    keys[n] = equivUnion(k1, ary1[i1 + nkeys1], k2, ary2[i2 + nkeys2],
+					 valCombiner);
+		    vals[n] = null;
 		    any_equiv = true;
 		}
+		khashes[n++] = hash1;
 		++i1;
 		++i2;
-		if (i1 < len1) hash1 = hashCode(k1 = ary1[i1]);
-		if (i2 < len2) hash2 = hashCode(k2 = ary2[i2]);
 	    }
 	}
+	for (; i1 < len1; ++i1, ++n) {
+	    keys[n] = ary1[i1];
+	    vals[n] = ary1[i1 + nkeys1];
+	    khashes[n] = hashes1[i1];
+	}
+	for (; i2 < len2; ++i2, ++n) {
+	    keys[n] = ary2[i2];
+	    vals[n] = ary2[i2 + nkeys2];
+	    khashes[n] = hashes2[i2];
+	}
 	if (any_equiv) {
 	    Object t = null;
 	    // We could attempt a better algorithm, but this shouldn't happen often.
-	    for (Iterator kit = keys.iterator(), vit = vals.iterator(); kit.hasNext(); ) {
-		Object k = kit.next();
-		t = with(t, k, hashCode(k), vit.next());
-	    }
+	    for (int i = 0; i < n; ++i)
+		t = with(t, keys[i], khashes[i], vals[i]);
 	    return t;
-	} else {
-	    int nkeys = keys.size();
-	    keys.addAll(vals);
-	    Object[] res_ary = keys.toArray();
-	    if (res_ary.length > MAX_LEAF_ARRAY_LENGTH) {
-		int idx = nkeys >> 1;
-		Object key = keys.get(idx);
-		return makeNode(key, hashCode(key), vals.get(idx),
-				subseq2(res_ary, 0, idx),
-				subseq2(res_ary, idx + 1, nkeys));
-	    } else return res_ary;
+	} else if (n << 1 > MAX_LEAF_ARRAY_LENGTH) {
+	    int idx = n >> 1;
+	    return makeNode(keys[idx], khashes[idx], vals[idx],
+			    makeLeaf2(keys, vals, khashes, 0, idx),
+			    makeLeaf2(keys, vals, khashes, idx + 1, n));
+	} else return makeLeaf2(keys, vals, khashes, 0, n);
+    }
+
+    // Reports the differences between the pairs of `ary1' and `ary2' whose keys'
+    // hash codes are greater than `lo' and less than `hi'.
+    private static void diff2(Object[] ary1, Object[] ary2, MapDiff.Handler handler,
+			      int lo, int hi) {
+	int[] hashes1 = leafHashes(ary1), hashes2 = leafHashes(ary2);
+	int i1 = 0, i2 = 0;
+	int nkeys1 = hashes1.length, nkeys2 = hashes2.length;
+	int len1 = nkeys1, len2 = nkeys2;
+	if (lo != NEGATIVE_INFINITY) {
+	    while (i1 < len1 && lo >= hashes1[i1]) ++i1;
+	    while (i2 < len2 && lo >= hashes2[i2]) ++i2;
+	}
+	if (hi != POSITIVE_INFINITY) {
+	    while (i1 < len1 && hi <= hashes1[len1 - 1]) --len1;
+	    while (i2 < len2 && hi <= hashes2[len2 - 1]) --len2;
 	}
+	while (i1 < len1 && i2 < len2) {
+	    int hash1 = hashes1[i1], hash2 = hashes2[i2];
+	    if (hash1 < hash2) {
+		handler.removed(ary1[i1], ary1[i1 + nkeys1]);
+		++i1;
+	    } else if (hash1 > hash2) {
+		handler.added(ary2[i2], ary2[i2 + nkeys2]);
+		++i2;
+	    } else {
+		Object k1 = ary1[i1], k2 = ary2[i2];
+		Object v1 = ary1[i1 + nkeys1], v2 = ary2[i2 + nkeys2];
+		if (!eql(k1, k2)) {
+		    handler.removed(k1, v1);
+		    handler.added(k2, v2);
+		} else if (!eql(v1, v2)) handler.changed(k1, v1, v2);
+		++i1;
+		++i2;
+	    }
+	}
+	for (; i1 < len1; ++i1) handler.removed(ary1[i1], ary1[i1 + nkeys1]);
+	for (; i2 < len2; ++i2) handler.added(ary2[i2], ary2[i2 + nkeys2]);
     }
 
     private static Object[] restrictedTo2(Object[] map_ary, Object[] set_ary,
 					  int lo, int hi) {
+	int[] map_hashes = leafHashes(map_ary);
+	int[] set_hashes = FHashSet.leafHashes(set_ary);
 	int i1 = 0, i2 = 0;
-	int nkeys = map_ary.length >> 1, nelts = set_ary.length;
+	int nkeys = map_hashes.length, nelts = set_hashes.length;
 	int len1 = nkeys, len2 = nelts;
 	if (lo != NEGATIVE_INFINITY) {
-	    while (i1 < len1 && lo >= hashCode(map_ary[i1])) ++i1;
-	    while (i2 < len2 && lo >= hashCode(set_ary[i2])) ++i2;
+	    while (i1 < len1 && lo >= map_hashes[i1]) ++i1;
+	    while (i2 < len2 && lo >= set_hashes[i2]) ++i2;
 	}
 	if (hi != POSITIVE_INFINITY) {
-	    while (i1 < len1 && hi <= hashCode(map_ary[len1 - 1])) --len1;
-	    while (i2 < len2 && hi <= hashCode(set_ary[len2 - 1])) --len2;
-	}
-	ArrayList<Object> keys = new ArrayList<Object>(len1 - i1);
-	ArrayList<Object> vals = new ArrayList<Object>(len1 - i1);
-	Object k = null, e = null;
-	int khash = 0, ehash = 0;
-	if (i1 < len1) khash = hashCode(k = map_ary[i1]);
-	if (i2 < len2) ehash = hashCode(e = set_ary[i2]);
+	    while (i1 < len1 && hi <= map_hashes[len1 - 1]) --len1;
+	    while (i2 < len2 && hi <= set_hashes[len2 - 1]) --len2;
+	}
+	int maxprs = len1 - i1;
+	Object[] keys = new Object[maxprs];
+	Object[] vals = new Object[maxprs];
+	int[] khashes = new int[maxprs];
+	int n = 0;
 	while (i1 < len1 && i2 < len2) {
-	    if (khash < ehash) {
-		++i1;
-		if (i1 < len1) khash = hashCode(k = map_ary[i1]);
-	    } else if (khash > ehash) {
-		++i2;
-		if (i2 < len2) ehash = hashCode(e = set_ary[i2]);
-	    } else {
-		if (eql(k, e)) {
-		    keys.add(k);
-		    vals.add(map_ary[i1 + nkeys]);
+	    int khash = map_hashes[i1], ehash = set_hashes[i2];
+	    if (khash < ehash) ++i1;
+	    else if (khash > ehash) ++i2;
+	    else {
+		Object k = map_ary[i1];
+		if (eql(k, set_ary[i2])) {
+		    keys[n] = k;
+		    vals[n] = map_ary[i1 + nkeys];
+		    khashes[n++] = khash;
 		}
 		++i1;
 		++i2;
-		if (i1 < len1) khash = hashCode(k = map_ary[i1]);
-		if (i2 < len2) ehash = hashCode(e = set_ary[i2]);
 	    }
 	}
-	if (keys.isEmpty()) return null;
-	else {
-	    keys.addAll(vals);
-	    return keys.toArray();
-	}
+	return makeLeaf2(keys, vals, khashes, 0, n);
     }
 
     private static Object[] restrictedFrom2(Object[] map_ary, Object[] set_ary,
 					    int lo, int hi) {
+	int[] map_hashes = leafHashes(map_ary);
+	int[] set_hashes = FHashSet.leafHashes(set_ary);
 	int i1 = 0, i2 = 0;
-	int nkeys = map_ary.length >> 1, nelts = set_ary.length;
+	int nkeys = map_hashes.length, nelts = set_hashes.length;
 	int len1 = nkeys, len2 = nelts;
 	if (lo != NEGATIVE_INFINITY) {
-	    while (i1 < len1 && lo >= hashCode(map_ary[i1])) ++i1;
-	    while (i2 < len2 && lo >= hashCode(set_ary[i2])) ++i2;
+	    while (i1 < len1 && lo >= map_hashes[i1]) ++i1;
+	    while (i2 < len2 && lo >= set_hashes[i2]) ++i2;
 	}
 	if (hi != POSITIVE_INFINITY) {
-	    while (i1 < len1 && hi <= hashCode(map_ary[len1 - 1])) --len1;
-	    while (i2 < len2 && hi <= hashCode(set_ary[len2 - 1])) --len2;
-	}
-	ArrayList<Object> keys = new ArrayList<Object>(len1 - i1);
-	ArrayList<Object> vals = new ArrayList<Object>(len1 - i1);
-	Object k = null, e = null;
-	int khash = 0, ehash = 0;
-	if (i1 < len1) khash = hashCode(k = map_ary[i1]);
-	if (i2 < len2) ehash = hashCode(e = set_ary[i2]);
+	    while (i1 < len1 && hi <= map_hashes[len1 - 1]) --len1;
+	    while (i2 < len2 && hi <= set_hashes[len2 - 1]) --len2;
+	}
+	int maxprs = len1 - i1;
+	Object[] keys = new Object[maxprs];
+	Object[] vals = new Object[maxprs];
+	int[] khashes = new int[maxprs];
+	int n = 0;
 	while (i1 < len1 && i2 < len2) {
+	    int khash = map_hashes[i1], ehash = set_hashes[i2];
 	    if (khash < ehash) {
-		keys.add(k);
-		vals.add(map_ary[i1 + nkeys]);
+		keys[n] = map_ary[i1];
+		vals[n] = map_ary[i1 + nkeys];
+		khashes[n++] = khash;
 		++i1;
-		if (i1 < len1) khash = hashCode(k = map_ary[i1]);
-	    } else if (khash > ehash) {
-		++i2;
-		if (i2 < len2) ehash = hashCode(e = set_ary[i2]);
-	    } else {
-		if (!eql(k, e)) {
-		    keys.add(k);
-		    vals.add(map_ary[i1 + nkeys]);
+	    } else if (khash > ehash) ++i2;
+	    else {
+		Object k = map_ary[i1];
+		if (!eql(k, set_ary[i2])) {
+		    keys[n] = k;
+		    vals[n] = map_ary[i1 + nkeys];
+		    khashes[n++] = khash;
 		}
 		++i1;
 		++i2;
-		if (i1 < len1) khash = hashCode(k = map_ary[i1]);
-		if (i2 < len2) ehash = hashCode(e = set_ary[i2]);
 	    }
 	}
-	while (i1 < len1) {
-	    keys.add(map_ary[i1]);
-	    vals.add(map_ary[i1 + nkeys]);
-	    ++i1;
-	}
-	if (keys.isEmpty()) return null;
-	else {
-	    keys.addAll(vals);
-	    return keys.toArray();
+	for (; i1 < len1; ++i1, ++n) {
+	    keys[n] = map_ary[i1];
+	    vals[n] = map_ary[i1 + nkeys];
+	    khashes[n] = map_hashes[i1];
 	}
+	return makeLeaf2(keys, vals, khashes, 0, n);
     }
 
     /* Binary search returns two pieces of information: (1) whether the key or an
@@ -1843,12 +2912,11 @@ public class FHashMap<Key, Val>
     private static final int BIN_SEARCH_INDEX_SHIFT = 1;
 
     private static int binarySearch(Object[] ary, int hash) {
-	int nkeys = ary.length >> 1;
-	int lo = 0, hi = nkeys - 1;
+	int[] hashes = leafHashes(ary);
+	int lo = 0, hi = hashes.length - 1;
 	while (lo <= hi) {
 	    int mid = (lo + hi) / 2;
-	    Object akey = ary[mid];
-	    int akhash = hashCode(akey);
+	    int akhash = hashes[mid];
 	    if (hash == akhash)
 		return (mid << BIN_SEARCH_INDEX_SHIFT) | BIN_SEARCH_FOUND;
 	    else if (hash < akhash) hi = mid - 1;
@@ -1953,6 +3021,30 @@ public class FHashMap<Key, Val>
 	}
     }
 
+    private static final class FHMSpliterator<Key, Val>
+	    extends TreeSpliterator<Map.Entry<Key, Val>> {
+	FHMSpliterator(Object pending, Object subtree) {
+	    super(pending, subtree, IMMUTABLE | DISTINCT | SIZED | SUBSIZED);
+	}
+	protected TreeSpliterator<Map.Entry<Key, Val>> make(Object pending, Object subtree) {
+	    return new FHMSpliterator<Key, Val>(pending, subtree);
+	}
+	protected boolean isNode(Object subtree) { return subtree instanceof Node; }
+	protected Object left(Object node) { return ((Node)node).left; }
+	protected Object right(Object node) { return ((Node)node).right; }
+	protected int subtreeSize(Object subtree) { return treeSize(subtree); }
+	protected int nodeElementCount(Object node) { return keySize(((Node)node).key); }
+	protected Map.Entry<Key, Val> nodeElement(Object node, int index) {
+	    Node n = (Node)node;
+	    if (n.key instanceof EquivalentMap)
+		return (Map.Entry<Key, Val>)((EquivalentMap)n.key).contents.get(index);
+	    else return (Map.Entry<Key, Val>)n;
+	}
+	protected Iterator<Map.Entry<Key, Val>> iterator(Object subtree) {
+	    return new FHMIterator<Key, Val>(subtree);
+	}
+    }
+
     // Used by 'keySet'.
     private static class FHMKeyIterator<Key> implements Iterator<Key> {
 	private FHMIterator<Key, Object> fhmIter;
@@ -2047,14 +3139,13 @@ public class FHashMap<Key, Val>
 	hash_code = Integer.MIN_VALUE;
 	strm.defaultReadObject();	// reads `dflt'
         int size = strm.readInt();
-	Object t = null;
+	Builder<Object, Object> b = new Builder<Object, Object>(size);
 	for (int i = 0; i < size; ++i) {
 	    Object key = strm.readObject();
-	    Object val = strm.readObject();
-	    t = with(t, key, hashCode(key), val);
+	    b.put(key, strm.readObject());
 	}
 	try {
-	    TreeField.set(this, t);
+	    TreeField.set(this, b.tree());
 	} catch (IllegalAccessException ia) {
 	    throw new RuntimeException("FHashMap deserialization failed", ia);
 	}
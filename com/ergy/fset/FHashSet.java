@@ -13,8 +13,13 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * A functional set that uses hash codes to order objects.  The name notwithstanding,
@@ -29,8 +34,9 @@ import java.util.*;
  * (it depends only on the sequence of operations used to construct the set).
  *
  * <p>Time costs: <code>isEmpty</code>, <code>size</code>, and <code>arb</code> take
- * O(1) (constant) time.  <code>contains</code>, <code>with</code>, <code>less</code>
- * take O(log <i>n</i>) time.  <code>union</code>, <code>intersection</code>,
+ * O(1) (constant) time.  <code>contains</code>, <code>with</code>, <code>less</code>,
+ * and the order statistic methods <code>get</code>, <code>rankOf</code>, and
+ * <code>subSetByRank</code> take O(log <i>n</i>) time.  <code>union</code>, <code>intersection</code>,
  * <code>difference</code>, <code>isSubset</code>, <code>isSuperset</code>, and
  * <code>equals</code> take O(n) (linear) time if the other set involved is also a
  * <code>FHashSet</code>; otherwise, they take O(<i>n</i> log <i>n</i>) time.
@@ -40,14 +46,19 @@ import java.util.*;
  * <p>Space costs: <code>FHashSet</code> uses a heterogeneous binary tree
  * structure with bounded-length arrays at the leaves.  It uses much less space than
  * traditional homogeneous binary trees; typical space consumption is roughly twice
- * that of a plain array.
+ * that of a plain array, plus roughly six bytes per element for the cached hash codes
+ * (see below).
  *
- * Operations on a <code>FHashSet</code> repeatedly call <code>hashCode</code> on
- * the keys in the set.  It therefore is best for performance if this takes O(1) time.
- * For classes whose hash code may depend on the hash codes of many other objects, I
- * recommend they cache their hash code after computing it.  See this class's
- * <code>hashCode()</code> method for an example.  If such caching is not practical
- * for some reason, <code>FCachedHashSet</code> may be a better choice.
+ * <p>The leaf arrays store the hash codes of their elements alongside the elements
+ * themselves, so <code>contains</code>, <code>with</code>, and <code>less</code>
+ * call <code>hashCode</code> only on their argument, and <code>union</code>,
+ * <code>intersection</code>, <code>difference</code>, and <code>isSubset</code> on
+ * two <code>FHashSet</code>s don't call it at all.  Still, it is best for
+ * performance if <code>hashCode</code> takes O(1) time.  For classes whose hash code
+ * may depend on the hash codes of many other objects, I recommend they cache their
+ * hash code after computing it.  See this class's <code>hashCode()</code> method for
+ * an example.  If such caching is not practical for some reason,
+ * <code>FCachedHashSet</code> may be a better choice.
  *
  * <p><code>FHashSet</code> accepts the null element.
  *
@@ -86,7 +97,7 @@ public final class FHashSet<Elt>
      * Constructs a <code>FHashSet</code> containing only <code>elt</code>.
      */
     public FHashSet(Elt elt) {
-	tree = with(null, elt, 0);	// hashCode(elt) not needed -- just use 0
+	tree = with(null, elt, hashCode(elt));
     }
 
     /**
@@ -98,11 +109,9 @@ public final class FHashSet<Elt>
     public FHashSet(Collection<? extends Elt> coll) {
 	if (coll instanceof FHashSet)
 	    tree = ((FHashSet)coll).tree;
-	else {
-	    Object t = null;
-	    for (Elt e : coll) t = with(t, e, hashCode(e));
-	    tree = t;
-	}
+	else if (coll instanceof FCachedHashSet)
+	    tree = ((FCachedHashSet)coll).set.tree;
+	else tree = new Builder<Elt>(coll.size()).addAll(coll).tree();
     }
 
     /**
@@ -113,9 +122,9 @@ public final class FHashSet<Elt>
      * @param elts the elements (as an argument list or array)
      */
     public <T extends Elt> FHashSet(T... elts) {
-	Object t = null;
-	for (T e : elts) t = with(t, e, hashCode(e));
-	tree = t;
+	Builder<Elt> b = new Builder<Elt>(elts.length);
+	for (T e : elts) b.add(e);
+	tree = b.tree();
     }
 
     public boolean isEmpty() {
@@ -130,7 +139,7 @@ public final class FHashSet<Elt>
 	if (tree == null) throw new NoSuchElementException();
 	else if (!(tree instanceof Node)) {
 	    Object[] ary = (Object[])tree;
-	    int len = ary.length;
+	    int len = leafLength(ary);
 	    return (Elt)ary[len >> 1];
 	} else {
 	    Node node = (Node)tree;
@@ -148,6 +157,38 @@ public final class FHashSet<Elt>
 	return new FHSIterator<Elt>(tree);
     }
 
+    /**
+     * Returns a <code>Spliterator</code> over the set.  It splits exactly along the
+     * tree structure, and reports <code>IMMUTABLE</code>, <code>DISTINCT</code>,
+     * <code>SIZED</code>, and <code>SUBSIZED</code>; so parallel streams over the
+     * set partition cleanly.  (Like that of <code>HashSet</code>, it does not report
+     * <code>ORDERED</code>, as the iteration order depends on the hash codes.)
+     */
+    public Spliterator<Elt> spliterator() {
+	return new FHSSpliterator<Elt>(null, tree);
+    }
+
+    /**
+     * Calls <code>action</code> on each element of the set, in iteration order.
+     * Unlike iterating, this walks the tree recursively, and so allocates nothing.
+     */
+    public void forEach(Consumer<? super Elt> action) {
+	if (action == null) throw new NullPointerException();
+	forEach(tree, action);
+    }
+
+    /**
+     * Calls <code>pred</code> on each element of the set, in iteration order, until
+     * it returns false.  Like <code>forEach</code>, allocates nothing.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every element
+     */
+    public boolean forEachWhile(Predicate<? super Elt> pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachWhile(tree, pred);
+    }
+
     public FHashSet<Elt> with(Elt elt) {
 	Object t = with(tree, elt, hashCode(elt));
 	if (t == tree) return this;
@@ -239,6 +280,30 @@ public final class FHashSet<Elt>
 	}
     }
 
+    /**
+     * Compares this set with <code>other</code>, as described in {@link
+     * FSet#diff(FSet, SetDiff.Handler)}.  If <code>other</code> is also a
+     * <code>FHashSet</code> (or a <code>FLinkedHashSet</code> or
+     * <code>FCachedHashSet</code>), this walks the two trees together, skipping any
+     * subtree they share, and reports the differences in hash code order;
+     * otherwise it looks up each element of each set in the other.
+     *
+     * @param other the new version of the set
+     * @param handler receives the differences
+     */
+    public void diff(FSet<? extends Elt> other, SetDiff.Handler<? super Elt> handler) {
+	if (other instanceof FHashSet) diff(tree, ((FHashSet)other).tree, handler);
+	else if (other instanceof FLinkedHashSet)
+	    diff(tree, ((FLinkedHashSet)other).set_tree, handler);
+	else if (other instanceof FCachedHashSet)
+	    diff(tree, ((FCachedHashSet)other).set.tree, handler);
+	else super.diff(other, handler);
+    }
+
+    public SetDiff<Elt> diff(FSet<? extends Elt> other) {
+	return SetDiff.collect(this, other, FHashSet.<Elt>emptySet());
+    }
+
     // &&& Should implement 'Comparable<Set<Elt>>' ?
     public int compareTo(FHashSet<Elt> obj) {
 	return compareTo(tree, ((FHashSet)obj).tree);
@@ -252,6 +317,9 @@ public final class FHashSet<Elt>
 	} else if (obj instanceof FLinkedHashSet) {
 	    FLinkedHashSet<Object> flhs = (FLinkedHashSet<Object>)obj;
 	    return equals(tree, flhs.set_tree);
+	} else if (obj instanceof FCachedHashSet) {
+	    FCachedHashSet<Object> fchs = (FCachedHashSet<Object>)obj;
+	    return equals(tree, fchs.set.tree);
 	} else if (!(obj instanceof Collection)) return false;
 	else {
 	    Collection<Object> coll = (Collection<Object>)obj;
@@ -284,6 +352,9 @@ public final class FHashSet<Elt>
 	} else if (coll instanceof FLinkedHashSet) {
 	    FLinkedHashSet<Object> flhs = (FLinkedHashSet<Object>)coll;
 	    return isSubset(tree, flhs.set_tree);
+	} else if (coll instanceof FCachedHashSet) {
+	    FCachedHashSet<Object> fchs = (FCachedHashSet<Object>)coll;
+	    return isSubset(tree, fchs.set.tree);
 	} else {
 	    for (Elt elt : this)
 		if (!coll.contains(elt)) return false;
@@ -312,6 +383,9 @@ public final class FHashSet<Elt>
 	} else if (coll instanceof FLinkedHashSet) {
 	    FLinkedHashSet<Object> flhs = (FLinkedHashSet<Object>)coll;
 	    return isSubset(flhs.set_tree, tree);
+	} else if (coll instanceof FCachedHashSet) {
+	    FCachedHashSet<Object> fchs = (FCachedHashSet<Object>)coll;
+	    return isSubset(fchs.set.tree, tree);
 	} else {
 	    for (Object elt : coll)
 		if (!contains(tree, elt, hashCode(elt))) return false;
@@ -319,6 +393,134 @@ public final class FHashSet<Elt>
 	}
     }
 
+    /**
+     * Returns the union of this set with <code>coll</code>, like <code>union</code>,
+     * but processes large subtrees in parallel on the common fork/join pool.  The
+     * result is the same as that of <code>union</code>.  This is worthwhile only
+     * when the sets are large -- tens of thousands of elements or more; smaller
+     * subproblems are done sequentially.
+     *
+     * @param coll the collection to take the union with
+     * @return the union of the two sets
+     */
+    public FHashSet<Elt> parallelUnion(Collection<? extends Elt> coll) {
+	return parallelUnion(coll, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the union of this set with <code>coll</code>, like <code>union</code>,
+     * but processes large subtrees in parallel on <code>pool</code>.
+     *
+     * @param coll the collection to take the union with
+     * @param pool the fork/join pool to use
+     * @return the union of the two sets
+     */
+    public FHashSet<Elt> parallelUnion(Collection<? extends Elt> coll, ForkJoinPool pool) {
+	if (coll == this || coll.isEmpty()) return this;
+	FHashSet<Elt> fhs = asFHashSet(coll);
+	if (isEmpty()) return fhs;
+	return make(pool.invoke(new ParallelOp(OP_UNION, tree, fhs.tree,
+					       NEGATIVE_INFINITY, POSITIVE_INFINITY)));
+    }
+
+    /**
+     * Returns the intersection of this set with <code>coll</code>, like
+     * <code>intersection</code>, but processes large subtrees in parallel on the
+     * common fork/join pool.
+     *
+     * @param coll the collection to take the intersection with
+     * @return the intersection of the two sets
+     */
+    public FHashSet<Elt> parallelIntersection(Collection<? extends Elt> coll) {
+	return parallelIntersection(coll, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the intersection of this set with <code>coll</code>, like
+     * <code>intersection</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.
+     *
+     * @param coll the collection to take the intersection with
+     * @param pool the fork/join pool to use
+     * @return the intersection of the two sets
+     */
+    public FHashSet<Elt> parallelIntersection(Collection<? extends Elt> coll,
+					      ForkJoinPool pool) {
+	if (coll == this) return this;
+	else if (isEmpty() || coll.isEmpty()) return (FHashSet<Elt>)EMPTY_INSTANCE;
+	FHashSet<Elt> fhs = asFHashSet(coll);
+	if (fhs.tree == tree) return fhs;
+	return make(pool.invoke(new ParallelOp(OP_INTERSECTION, tree, fhs.tree,
+					       NEGATIVE_INFINITY, POSITIVE_INFINITY)));
+    }
+
+    /**
+     * Returns the difference of this set less <code>coll</code>, like
+     * <code>difference</code>, but processes large subtrees in parallel on the
+     * common fork/join pool.
+     *
+     * @param coll the collection to take the difference with
+     * @return the difference of the two sets (this set less <code>coll</code>)
+     */
+    public FHashSet<Elt> parallelDifference(Collection<? extends Elt> coll) {
+	return parallelDifference(coll, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the difference of this set less <code>coll</code>, like
+     * <code>difference</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.
+     *
+     * @param coll the collection to take the difference with
+     * @param pool the fork/join pool to use
+     * @return the difference of the two sets (this set less <code>coll</code>)
+     */
+    public FHashSet<Elt> parallelDifference(Collection<? extends Elt> coll,
+					    ForkJoinPool pool) {
+	if (isEmpty() || coll == this) return (FHashSet<Elt>)EMPTY_INSTANCE;
+	else if (coll.isEmpty()) return this;
+	FHashSet<Elt> fhs = asFHashSet(coll);
+	if (fhs.tree == tree) return (FHashSet<Elt>)EMPTY_INSTANCE;
+	return make(pool.invoke(new ParallelOp(OP_DIFFERENCE, tree, fhs.tree,
+					       NEGATIVE_INFINITY, POSITIVE_INFINITY)));
+    }
+
+    /**
+     * Returns true if this set is a subset of <code>coll</code>, like
+     * <code>isSubset</code>, but processes large subtrees in parallel on the common
+     * fork/join pool.
+     *
+     * @param coll the collection to compare against
+     * @return whether this set is a subset of <code>coll</code>
+     */
+    public boolean parallelIsSubset(Collection<?> coll) {
+	return parallelIsSubset(coll, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns true if this set is a subset of <code>coll</code>, like
+     * <code>isSubset</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.
+     *
+     * @param coll the collection to compare against
+     * @param pool the fork/join pool to use
+     * @return whether this set is a subset of <code>coll</code>
+     */
+    public boolean parallelIsSubset(Collection<?> coll, ForkJoinPool pool) {
+	if (coll == this) return true;
+	else if (size() > coll.size()) return false;
+	FHashSet<Object> fhs = asFHashSet((Collection<Object>)coll);
+	return (Boolean)pool.invoke(new ParallelOp(OP_IS_SUBSET, tree, fhs.tree,
+						   NEGATIVE_INFINITY, POSITIVE_INFINITY));
+    }
+
+    private static <Elt> FHashSet<Elt> asFHashSet(Collection<? extends Elt> coll) {
+	if (coll instanceof FHashSet) return (FHashSet<Elt>)coll;
+	else if (coll instanceof FLinkedHashSet)
+	    return make(((FLinkedHashSet<Elt>)coll).set_tree);
+	else return new FHashSet<Elt>(coll);
+    }
+
     // Overriding this just to provide a slightly more efficient implementation.
     // The default one (in `AbstractSet') uses the iterator.  But we have to compute
     // the same value here, viz., the sum of the hash codes of the elements.
@@ -336,6 +538,168 @@ public final class FHashSet<Elt>
 	return verify(tree, NEGATIVE_INFINITY, POSITIVE_INFINITY);
     }
 
+    /**
+     * Returns the element of this set at index <code>rank</code> in iteration
+     * order, that is, the one preceded by <code>rank</code> other elements.  As the
+     * iteration order is by hash code, this is mostly useful for sampling and for
+     * partitioning a set into pieces.  Takes O(log n) time.
+     *
+     * @param rank the index
+     * @return the element
+     * @throws IndexOutOfBoundsException if <code>rank</code> is negative or not
+     *     less than the size of the set
+     */
+    public Elt get(int rank) {
+	if (rank < 0 || rank >= size()) throw new IndexOutOfBoundsException();
+	return (Elt)elementAtRank(tree, rank);
+    }
+
+    /**
+     * Returns the index of <code>elt</code> in iteration order (the inverse of
+     * {@link #get}), or -1 if it is not in the set.  Takes O(log n) time.
+     *
+     * @param elt the element to look for
+     * @return its index, or -1
+     */
+    public int rankOf(Object elt) {
+	return rankOf(tree, elt, hashCode(elt));
+    }
+
+    /**
+     * Returns a set containing the elements of this set whose indices in
+     * iteration order are at least <code>fromRank</code> and less than
+     * <code>toRank</code>.  Takes O(log n) time.
+     *
+     * @param fromRank inclusive lower bound
+     * @param toRank exclusive upper bound
+     * @return the new set
+     * @throws IndexOutOfBoundsException if <code>fromRank</code> is negative,
+     *     <code>toRank</code> is greater than the size of the set, or
+     *     <code>fromRank</code> is greater than <code>toRank</code>
+     */
+    public FHashSet<Elt> subSetByRank(int fromRank, int toRank) {
+	if (fromRank < 0 || toRank > size() || fromRank > toRank)
+	    throw new IndexOutOfBoundsException();
+	Object t = rankSplit(tree, fromRank, toRank);
+	if (t == tree) return this;
+	else return make(t);
+    }
+
+    /**
+     * A mutable accumulator for constructing a <code>FHashSet</code> from many
+     * elements at once.  Adding an element just records it (and computes its hash
+     * code, once); <code>build</code> then sorts the elements by hash code and
+     * builds the tree bottom-up in a single pass.  This is considerably faster, and
+     * generates far less garbage, than adding the elements one at a time with
+     * <code>with</code>, which copies a path through the tree for every element.
+     *
+     * <p>Duplicate elements are permitted; the resulting set contains each of them
+     * once.  A <code>Builder</code> is not thread-safe, but it may continue to be
+     * used after <code>build</code> is called; sets it has already returned are
+     * not affected.
+     *
+     * @param Elt the type of the elements
+     */
+    public static final class Builder<Elt> {
+
+	/**
+	 * Constructs an empty <code>Builder</code>.
+	 */
+	public Builder() {
+	    this(16);
+	}
+
+	/**
+	 * Constructs an empty <code>Builder</code> with room for
+	 * <code>initial_capacity</code> elements before it has to grow.
+	 *
+	 * @param initial_capacity the expected number of elements
+	 */
+	public Builder(int initial_capacity) {
+	    elts = new Object[Math.max(initial_capacity, 1)];
+	    hashes = new int[elts.length];
+	}
+
+	/**
+	 * Adds <code>elt</code> to the set being built.
+	 *
+	 * @param elt the element to add
+	 * @return this builder
+	 */
+	public Builder<Elt> add(Elt elt) {
+	    return add(elt, FHashSet.hashCode(elt));
+	}
+
+	// Like `add', but takes the element's hash code (as returned by
+	// `hashCode(Object)') instead of computing it; for `FCachedHashSet.readObject'.
+	/*pkg*/ Builder<Elt> add(Elt elt, int ehash) {
+	    if (size == elts.length) {
+		elts = Arrays.copyOf(elts, size << 1);
+		hashes = Arrays.copyOf(hashes, size << 1);
+	    }
+	    elts[size] = elt;
+	    hashes[size++] = ehash;
+	    return this;
+	}
+
+	/**
+	 * Adds all the elements of <code>coll</code> to the set being built.
+	 *
+	 * @param coll the collection whose elements are to be added
+	 * @return this builder
+	 */
+	public Builder<Elt> addAll(Collection<? extends Elt> coll) {
+	    for (Elt e : coll) add(e);
+	    return this;
+	}
+
+	/**
+	 * Returns a <code>FHashSet</code> containing the elements added so far.
+	 * Takes O(n log n) time for the sort and O(n) for the tree construction.
+	 *
+	 * @return the new set
+	 */
+	public FHashSet<Elt> build() {
+	    return make(tree());
+	}
+
+	// Returns the tree for the elements added so far.
+	/*pkg*/ Object tree() {
+	    int n = size;
+	    if (n == 0) return null;
+	    // Sort the indices by hash code, breaking ties by position, so that the
+	    // contents of any `EquivalentSet' come out in the order they were added.
+	    long[] order = new long[n];
+	    for (int i = 0; i < n; ++i)
+		order[i] = ((long)hashes[i] << 32) | i;
+	    Arrays.sort(order);
+	    Object[] res = new Object[n];
+	    int[] res_hashes = new int[n];
+	    int nres = 0;
+	    boolean any_equiv = false;
+	    for (int i = 0; i < n; ) {
+		int hash = (int)(order[i] >> 32);
+		Object elt = elts[(int)order[i++]];
+		while (i < n && (int)(order[i] >> 32) == hash)
+		    elt = equivUnion(elt, elts[(int)order[i++]]);
+		if (elt instanceof EquivalentSet) any_equiv = true;
+		res[nres] = elt;
+		res_hashes[nres++] = hash;
+	    }
+	    int[] cum = null;
+	    if (any_equiv) {
+		cum = new int[nres + 1];
+		for (int i = 0; i < nres; ++i)
+		    cum[i + 1] = cum[i] + elementSize(res[i]);
+	    }
+	    return buildTree(res, res_hashes, cum, 0, nres);
+	}
+
+	private Object[] elts;
+	private int[] hashes;
+	private int size = 0;
+    }
+
     /******************************************************************************/
     /* Internals */
 
@@ -392,7 +756,14 @@ public final class FHashSet<Elt>
      * `Leaf' instances, including the inevitable per-object overhead, eats up a lot
      * of the space benefit we get by using arrays at the leaves in the first place.
      * So we use `Object' as our subtree type so we don't need `Leaf' objects, and
-     * use `instanceof' to tell what kind of subtree we're looking at. */
+     * use `instanceof' to tell what kind of subtree we're looking at.
+     *
+     * A leaf holds its elements in increasing order of their hash codes, followed by
+     * one more slot containing an `int[]' of those hash codes (as returned by
+     * `hashCode(Object)').  This costs a few bytes per element, but it means that
+     * searching and merging leaves never has to call back into the elements'
+     * `hashCode' methods, which can be arbitrarily expensive.  Use `leafLength'
+     * to get the number of elements in a leaf. */
     // This has package access for benefit of `FHashMap.restricted{To,From}'.
     /*pkg*/ static final class Node {
 	Node (int _size, Object _element, int _ehash, Object _left, Object _right) {
@@ -407,6 +778,9 @@ public final class FHashSet<Elt>
 	/*pkg*/ final int ehash;
 	/*pkg*/ final Object left;	// a subtree
 	/*pkg*/ final Object right;	// a subtree
+	// A cache of the hash code of the subtree, for `myHashCode' and
+	// `cachedHashCode', which compute the same value.
+	private int hash_code = Integer.MIN_VALUE;
     }
 
     // This has default (package-wide) access so `FHashMap.domain' can use it.
@@ -417,16 +791,59 @@ public final class FHashSet<Elt>
 
     /*pkg*/ static int treeSize(Object subtree) {
 	if (subtree == null) return 0;
-	else if (!(subtree instanceof Node)) return ((Object[])subtree).length;
+	else if (!(subtree instanceof Node)) return leafLength((Object[])subtree);
 	else return ((Node)subtree).size;
     }
 
+    /*pkg*/ static int leafLength(Object[] ary) {
+	return ary.length - 1;
+    }
+
+    /*pkg*/ static int[] leafHashes(Object[] ary) {
+	return (int[])ary[ary.length - 1];
+    }
+
     private static int elementSize(Object elt) {
 	if (elt instanceof EquivalentSet)
 	    return ((EquivalentSet)elt).contents.size();
 	else return 1;
     }
 
+    /*pkg*/ static <Elt> void forEach(Object subtree, Consumer<? super Elt> action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = leafLength(ary); i < len; ++i) action.accept((Elt)ary[i]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEach(node.left, action);
+	    if (node.element instanceof EquivalentSet) {
+		ArrayList<Object> al = ((EquivalentSet)node.element).contents;
+		for (int i = 0, len = al.size(); i < len; ++i) action.accept((Elt)al.get(i));
+	    } else action.accept((Elt)node.element);
+	    forEach(node.right, action);
+	}
+    }
+
+    /*pkg*/ static <Elt> boolean forEachWhile(Object subtree, Predicate<? super Elt> pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = leafLength(ary); i < len; ++i)
+		if (!pred.test((Elt)ary[i])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    if (!forEachWhile(node.left, pred)) return false;
+	    if (node.element instanceof EquivalentSet) {
+		ArrayList<Object> al = ((EquivalentSet)node.element).contents;
+		for (int i = 0, len = al.size(); i < len; ++i)
+		    if (!pred.test((Elt)al.get(i))) return false;
+	    } else if (!pred.test((Elt)node.element)) return false;
+	    return forEachWhile(node.right, pred);
+	}
+    }
+
     /*pkg*/ static boolean contains(Object subtree, Object elt, int ehash) {
 	if (subtree == null) return false;
 	else if (!(subtree instanceof Node)) {
@@ -453,8 +870,9 @@ public final class FHashSet<Elt>
     /*pkg*/ static Object with(Object subtree, Object elt, int ehash) {
 	if (subtree == null) {
 	    if (!(elt instanceof EquivalentSet)) {
-		Object[] a = new Object[1];
+		Object[] a = new Object[2];
 		a[0] = elt;
+		a[1] = new int[] { ehash };
 		return a;
 	    } else return makeNode(elt, ehash, null, null);
 	} else if (!(subtree instanceof Node)) {
@@ -464,13 +882,13 @@ public final class FHashSet<Elt>
 	    int idx = bin_srch_res >> BIN_SEARCH_INDEX_SHIFT;
 	    if (found == BIN_SEARCH_FOUND && !(elt instanceof EquivalentSet) && eql(elt, ary[idx]))
 		return subtree;
-	    else if (found == BIN_SEARCH_NOT_FOUND  && ary.length < MAX_LEAF_ARRAY_LENGTH  &&
+	    else if (found == BIN_SEARCH_NOT_FOUND  && leafLength(ary) < MAX_LEAF_ARRAY_LENGTH  &&
 		     !(elt instanceof EquivalentSet))
-		return insert(ary, idx, elt);
+		return insert(ary, idx, elt, ehash);
 	    else return makeNode((found == BIN_SEARCH_FOUND ? equivUnion(ary[idx], elt) : elt),
 				 ehash, subseq(ary, 0, idx),
 				 subseq(ary, (found == BIN_SEARCH_FOUND ? idx + 1 : idx),
-					ary.length));
+					leafLength(ary)));
 	} else {
 	    Node node = (Node)subtree;
 	    Object nelt = node.element;
@@ -479,7 +897,11 @@ public final class FHashSet<Elt>
 		if (!(elt instanceof EquivalentSet) && !(nelt instanceof EquivalentSet)
 		    && eql(elt, nelt))
 		    return subtree;
-		else return makeNode(equivUnion(elt, nelt), ehash, node.left, node.right);
+		Object union = equivUnion(elt, nelt);
+		// If `nelt' is an `EquivalentSet' already containing `elt', nothing has
+		// changed; returning `subtree' tells callers like `FLinkedHashSet.with' so.
+		if (union == nelt) return subtree;
+		else return makeNode(union, ehash, node.left, node.right);
 	    } else if (ehash < nhash) {
 		Object new_left = with(node.left, elt, ehash);
 		if (new_left == node.left) return subtree;
@@ -612,6 +1034,204 @@ public final class FHashSet<Elt>
 	}
     }
 
+    /*pkg*/ static void diff(Object tree1, Object tree2, SetDiff.Handler handler) {
+	diff(tree1, tree2, handler, NEGATIVE_INFINITY, POSITIVE_INFINITY);
+    }
+
+    // Reports the differences between the elements of `subtree1' and `subtree2'
+    // whose hash codes are greater than `lo' and less than `hi'.
+    private static void diff(Object subtree1, Object subtree2, SetDiff.Handler handler,
+			     int lo, int hi) {
+	// As in `union', a subtree that shows up in both trees is within the bounds in
+	// both; and it has no differences to report.
+	if (subtree1 == subtree2) return;
+	else if (subtree1 == null) diffAll(subtree2, true, handler, lo, hi);
+	else if (subtree2 == null) diffAll(subtree1, false, handler, lo, hi);
+	else if (!(subtree1 instanceof Node)) {
+	    if (!(subtree2 instanceof Node))
+		diff((Object[])subtree1, (Object[])subtree2, handler, lo, hi);
+	    else {
+		Node n2 = (Node)subtree2;
+		int hash2 = n2.ehash;
+		diff(trim(subtree1, lo, hash2), trim(n2.left, lo, hash2), handler, lo, hash2);
+		diffEquiv(findEquiv(subtree1, hash2), n2.element, handler);
+		diff(trim(subtree1, hash2, hi), trim(n2.right, hash2, hi), handler, hash2, hi);
+	    }
+	} else {
+	    Node n1 = (Node)subtree1;
+	    int hash1 = n1.ehash;
+	    diff(trim(n1.left, lo, hash1), trim(subtree2, lo, hash1), handler, lo, hash1);
+	    diffEquiv(n1.element, findEquiv(subtree2, hash1), handler);
+	    diff(trim(n1.right, hash1, hi), trim(subtree2, hash1, hi), handler, hash1, hi);
+	}
+    }
+
+    // Reports each element of `subtree' whose hash code is greater than `lo' and less
+    // than `hi' as added (if `added') or removed.
+    private static void diffAll(Object subtree, boolean added, SetDiff.Handler handler,
+				int lo, int hi) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int len = leafLength(ary);
+	    int lo_split = (lo == NEGATIVE_INFINITY ? 0 : binarySearchLo(ary, lo));
+	    int hi_split = (hi == POSITIVE_INFINITY ? len : binarySearchHi(ary, hi));
+	    for (int i = lo_split; i < hi_split; ++i) diffReport(ary[i], added, handler);
+	} else {
+	    Node node = (Node)subtree;
+	    int nhash = node.ehash;
+	    if (lo != NEGATIVE_INFINITY && nhash <= lo)
+		diffAll(node.right, added, handler, lo, hi);
+	    else if (hi != POSITIVE_INFINITY && nhash >= hi)
+		diffAll(node.left, added, handler, lo, hi);
+	    else {
+		diffAll(node.left, added, handler, lo, hi);
+		diffReport(node.element, added, handler);
+		diffAll(node.right, added, handler, lo, hi);
+	    }
+	}
+    }
+
+    // `elt1' and `elt2' are the elements with some one hash code from the old and new
+    // trees respectively; either may be `NO_ELEMENT' or an `EquivalentSet'.
+    private static void diffEquiv(Object elt1, Object elt2, SetDiff.Handler handler) {
+	diffReport(equivDiff(elt1, elt2), false, handler);
+	diffReport(equivDiff(elt2, elt1), true, handler);
+    }
+
+    // Reports `elt', which may be `NO_ELEMENT' or an `EquivalentSet', as added (if
+    // `added') or removed.
+    private static void diffReport(Object elt, boolean added, SetDiff.Handler handler) {
+	if (elt == NO_ELEMENT) return;
+	else if (elt instanceof EquivalentSet) {
+	    ArrayList<Object> al = ((EquivalentSet)elt).contents;
+	    for (int i = 0, len = al.size(); i < len; ++i)
+		diffReport(al.get(i), added, handler);
+	} else if (added) handler.added(elt);
+	else handler.removed(elt);
+    }
+
+    /****************/
+    /* Parallel versions of the hedge algorithms.  At each node, these fork the left
+     * subproblem and do the right one in the current thread; since the subtrees are
+     * disjoint and immutable, no synchronization is needed. */
+
+    /* Below this combined size, the parallel operations just call the sequential
+     * ones; forking a task costs more than processing a subtree this small. */
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    private static final int OP_UNION = 0;
+    private static final int OP_INTERSECTION = 1;
+    private static final int OP_DIFFERENCE = 2;
+    private static final int OP_IS_SUBSET = 3;
+
+    private static final class ParallelOp extends RecursiveTask<Object> {
+	private static final long serialVersionUID = 1L;
+
+	ParallelOp(int _op, Object _subtree1, Object _subtree2, int _lo, int _hi) {
+	    op = _op;
+	    subtree1 = _subtree1;
+	    subtree2 = _subtree2;
+	    lo = _lo;
+	    hi = _hi;
+	}
+	private final int op;
+	private final Object subtree1, subtree2;
+	private final int lo, hi;
+	protected Object compute() {
+	    switch (op) {
+	    case OP_UNION: return parallelUnion(subtree1, subtree2, lo, hi);
+	    case OP_INTERSECTION: return parallelIntersection(subtree1, subtree2, lo, hi);
+	    case OP_DIFFERENCE: return parallelDifference(subtree1, subtree2, lo, hi);
+	    default: return parallelIsSubset(subtree1, subtree2, lo, hi);
+	    }
+	}
+    }
+
+    private static boolean belowParallelThreshold(Object subtree1, Object subtree2) {
+	return treeSize(subtree1) + treeSize(subtree2) < PARALLEL_THRESHOLD;
+    }
+
+    private static Object parallelUnion(Object subtree1, Object subtree2, int lo, int hi) {
+	if (subtree1 == subtree2 || subtree1 == null || subtree2 == null ||
+	    belowParallelThreshold(subtree1, subtree2))
+	    return union(subtree1, subtree2, lo, hi);
+	else if (!(subtree1 instanceof Node)) return parallelUnion(subtree2, subtree1, lo, hi);
+	else {
+	    Node n1 = (Node)subtree1;
+	    Object elt1 = n1.element;
+	    int hash1 = n1.ehash;
+	    Object elt2 = findEquiv(subtree2, hash1);
+	    ParallelOp left = new ParallelOp(OP_UNION, trim(n1.left, lo, hash1),
+					     trim(subtree2, lo, hash1), lo, hash1);
+	    left.fork();
+	    Object new_right = parallelUnion(trim(n1.right, hash1, hi),
+					     trim(subtree2, hash1, hi), hash1, hi);
+	    return concat(equivUnion(elt1, elt2), hash1, left.join(), new_right);
+	}
+    }
+
+    private static Object parallelIntersection(Object subtree1, Object subtree2,
+					       int lo, int hi) {
+	if (!(subtree1 instanceof Node) || subtree1 == subtree2 || subtree2 == null ||
+	    belowParallelThreshold(subtree1, subtree2))
+	    return intersection(subtree1, subtree2, lo, hi);
+	else {
+	    Node n1 = (Node)subtree1;
+	    Object elt1 = n1.element;
+	    int hash1 = n1.ehash;
+	    Object elt2 = findEquiv(subtree2, hash1);
+	    ParallelOp left = new ParallelOp(OP_INTERSECTION, n1.left,
+					     trim(subtree2, lo, hash1), lo, hash1);
+	    left.fork();
+	    Object new_right = parallelIntersection(n1.right, trim(subtree2, hash1, hi),
+						    hash1, hi);
+	    Object new_left = left.join();
+	    Object isect = equivIntersect(elt1, elt2);
+	    if (isect == NO_ELEMENT) return join(new_left, new_right);
+	    else return concat(isect, hash1, new_left, new_right);
+	}
+    }
+
+    private static Object parallelDifference(Object subtree1, Object subtree2, int lo, int hi) {
+	if (!(subtree1 instanceof Node) || subtree1 == subtree2 || subtree2 == null ||
+	    belowParallelThreshold(subtree1, subtree2))
+	    return difference(subtree1, subtree2, lo, hi);
+	else {
+	    Node n1 = (Node)subtree1;
+	    Object elt1 = n1.element;
+	    int hash1 = n1.ehash;
+	    Object elt2 = findEquiv(subtree2, hash1);
+	    ParallelOp left = new ParallelOp(OP_DIFFERENCE, n1.left,
+					     trim(subtree2, lo, hash1), lo, hash1);
+	    left.fork();
+	    Object new_right = parallelDifference(n1.right, trim(subtree2, hash1, hi),
+						  hash1, hi);
+	    Object new_left = left.join();
+	    Object diff = equivDiff(elt1, elt2);
+	    if (diff == NO_ELEMENT) return join(new_left, new_right);
+	    else return concat(diff, hash1, new_left, new_right);
+	}
+    }
+
+    private static boolean parallelIsSubset(Object subtree1, Object subtree2, int lo, int hi) {
+	if (!(subtree1 instanceof Node) || subtree1 == subtree2 || subtree2 == null ||
+	    belowParallelThreshold(subtree1, subtree2))
+	    return isSubset(subtree1, subtree2, lo, hi);
+	else {
+	    Node n1 = (Node)subtree1;
+	    int hash1 = n1.ehash;
+	    ParallelOp left = new ParallelOp(OP_IS_SUBSET, n1.left,
+					     trim(subtree2, lo, hash1), lo, hash1);
+	    left.fork();
+	    if (!equivIsSubset(n1.element, findEquiv(subtree2, hash1)) ||
+		!parallelIsSubset(n1.right, trim(subtree2, hash1, hi), hash1, hi)) {
+		left.cancel(false);
+		return false;
+	    } else return (Boolean)left.join();
+	}
+    }
+
     /*pkg*/ static int compareTo(Object tree1, Object tree2) {
 	if (tree1 == tree2) return 0;
 	else {
@@ -630,10 +1250,11 @@ public final class FHashSet<Elt>
 	if ((subtree1 == subtree2 && base1 == base2) || lo == hi) return 0;
 	else if (!(subtree1 instanceof Node)) {
 	    if (!(subtree2 instanceof Node)) {
-		Object[] ary1 = (Object[])subtree1, ary2 = (Object[])subtree2;
+		int[] hashes1 = leafHashes((Object[])subtree1);
+		int[] hashes2 = leafHashes((Object[])subtree2);
 		for (int i = lo; i < hi; ++i) {
-		    int hash1 = hashCode(ary1[i - base1]);
-		    int hash2 = hashCode(ary2[i - base2]);
+		    int hash1 = hashes1[i - base1];
+		    int hash2 = hashes2[i - base2];
 		    if (hash1 < hash2) return -1;
 		    else if (hash1 > hash2) return 1;
 		}
@@ -653,7 +1274,7 @@ public final class FHashSet<Elt>
 		Object elt1 = node1.element;
 		Object elt2 = rankElement(subtree2, new_hi - base2);
 		int hash1 = node1.ehash;
-		int hash2 = hashCode(elt2);
+		int hash2 = rankHash(subtree2, new_hi - base2);
 		if (hash1 < hash2) return -1;
 		else if (hash1 > hash2) return 1;
 		else {
@@ -686,10 +1307,10 @@ public final class FHashSet<Elt>
 	else if (!(subtree1 instanceof Node)) {
 	    if (!(subtree2 instanceof Node)) {
 		Object[] ary1 = (Object[])subtree1, ary2 = (Object[])subtree2;
+		int[] hashes1 = leafHashes(ary1), hashes2 = leafHashes(ary2);
 		for (int i = lo; i < hi; ++i) {
-		    Object elt1 = ary1[i - base1], elt2 = ary2[i - base2];
-		    if (elt1 == null ? elt2 != null :
-			!(hashCode(elt1) == hashCode(elt2) && elt1.equals(elt2)))
+		    if (hashes1[i - base1] != hashes2[i - base2] ||
+			!eql(ary1[i - base1], ary2[i - base2]))
 			return false;
 		}
 		return true;
@@ -707,7 +1328,8 @@ public final class FHashSet<Elt>
 		Object elt1 = node1.element;
 		Object elt2 = rankElement(subtree2, new_hi - base2);
 		if (elt1 == null ? elt2 != null :
-		    !(node1.ehash == hashCode(elt2) && equivEquals(elt1, elt2)))
+		    !(node1.ehash == rankHash(subtree2, new_hi - base2) &&
+		      equivEquals(elt1, elt2)))
 		    return false;
 		else {
 		    int elt1_size = elementSize(elt1);
@@ -766,6 +1388,102 @@ public final class FHashSet<Elt>
 	}
     }
 
+    // Unlike `rankElement', this returns the member of an `EquivalentSet'.
+    private static Object elementAtRank(Object subtree, int rank) {
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    int left_size = treeSize(node.left);
+	    if (rank < left_size) subtree = node.left;
+	    else {
+		Object elt = node.element;
+		int elt_size = elementSize(elt);
+		rank -= left_size;
+		if (rank >= elt_size) {
+		    rank -= elt_size;
+		    subtree = node.right;
+		} else if (elt instanceof EquivalentSet)
+		    return ((EquivalentSet)elt).contents.get(rank);
+		else return elt;
+	    }
+	}
+	return ((Object[])subtree)[rank];
+    }
+
+    private static int rankOf(Object subtree, Object elt, int ehash) {
+	int base = 0;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    int nhash = node.ehash;
+	    if (ehash < nhash) subtree = node.left;
+	    else {
+		int left_size = treeSize(node.left);
+		Object nelt = node.element;
+		if (ehash == nhash) {
+		    if (nelt instanceof EquivalentSet) {
+			int i = ((EquivalentSet)nelt).contents.indexOf(elt);
+			return i < 0 ? -1 : base + left_size + i;
+		    } else return eql(nelt, elt) ? base + left_size : -1;
+		}
+		base += left_size + elementSize(nelt);
+		subtree = node.right;
+	    }
+	}
+	if (subtree == null) return -1;
+	else {
+	    Object[] ary = (Object[])subtree;
+	    int bin_srch_res = binarySearch(ary, ehash);
+	    int idx = bin_srch_res >> BIN_SEARCH_INDEX_SHIFT;
+	    if ((bin_srch_res & BIN_SEARCH_FOUND_MASK) == BIN_SEARCH_FOUND &&
+		eql(ary[idx], elt))
+		return base + idx;
+	    else return -1;
+	}
+    }
+
+    // Returns a new tree of the elements of `subtree' whose ranks are at least `lo'
+    // and less than `hi'.  This may split an `EquivalentSet'.
+    private static Object rankSplit(Object subtree, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if (lo == 0 && hi == treeSize(subtree)) return subtree;
+	else if (!(subtree instanceof Node)) return subseq((Object[])subtree, lo, hi);
+	else {
+	    Node node = (Node)subtree;
+	    Object elt = node.element;
+	    int left_size = treeSize(node.left);
+	    int elt_size = elementSize(elt);
+	    int right_base = left_size + elt_size;
+	    Object new_left = rankSplit(node.left, Math.min(lo, left_size),
+					Math.min(hi, left_size));
+	    Object new_right = rankSplit(node.right, Math.max(lo - right_base, 0),
+					 Math.max(hi - right_base, 0));
+	    int elt_lo = Math.max(lo - left_size, 0);
+	    int elt_hi = Math.min(hi - left_size, elt_size);
+	    if (elt_lo >= elt_hi) return join(new_left, new_right);
+	    else if (elt_lo > 0 || elt_hi < elt_size) {
+		ArrayList<Object> al = ((EquivalentSet)elt).contents;
+		if (elt_hi - elt_lo == 1) elt = al.get(elt_lo);
+		else elt = new EquivalentSet(new ArrayList<Object>(al.subList(elt_lo, elt_hi)));
+	    }
+	    return concat(elt, node.ehash, new_left, new_right);
+	}
+    }
+
+    // Returns the hash code of `rankElement(subtree, rank)'.
+    private static int rankHash(Object subtree, int rank) {
+	if (subtree == null) throw new NullPointerException();	// shouldn't happen
+	else if (!(subtree instanceof Node)) return leafHashes((Object[])subtree)[rank];
+	else {
+	    Node node = (Node)subtree;
+	    int left_size = treeSize(node.left);
+	    if (rank < left_size) return rankHash(node.left, rank);
+	    else {
+		int elt_size = elementSize(node.element);
+		if (rank < left_size + elt_size) return node.ehash;
+		else return rankHash(node.right, rank - (left_size + elt_size));
+	    }
+	}
+    }
+
     static boolean debug = false;
 
     /*pkg*/ static boolean isSubset(Object subtree1, Object subtree2) {
@@ -837,7 +1555,7 @@ public final class FHashSet<Elt>
 	else if (lo == NEGATIVE_INFINITY && hi == POSITIVE_INFINITY) return subtree;
 	else if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[])subtree;
-	    int len = ary.length;
+	    int len = leafLength(ary);
 	    int lo_split = (lo == NEGATIVE_INFINITY ? 0 : binarySearchLo(ary, lo));
 	    int hi_split = (hi == POSITIVE_INFINITY ? len : binarySearchHi(ary, hi));
 	    if (lo_split >= hi_split) return null;
@@ -867,10 +1585,10 @@ public final class FHashSet<Elt>
     /*pkg*/ static Object trim(Object subtree, int lo, int hi) {
 	if (subtree == null) return null;
 	else if (!(subtree instanceof Node)) {
-	    Object[] ary = (Object[])subtree;
+	    int[] hashes = leafHashes((Object[])subtree);
 	    // If the array is completely out of range, drop it.
-	    if ((lo != NEGATIVE_INFINITY && hashCode(ary[ary.length - 1]) <= lo) ||
-		(hi != POSITIVE_INFINITY && hashCode(ary[0]) >= hi))
+	    if ((lo != NEGATIVE_INFINITY && hashes[hashes.length - 1] <= lo) ||
+		(hi != POSITIVE_INFINITY && hashes[0] >= hi))
 		return null;
 	    else return subtree;
 	} else {
@@ -909,9 +1627,9 @@ public final class FHashSet<Elt>
 	    (right == null || !(right instanceof Node))) {
 	    Object[] lary = (Object[])left, rary = (Object[])right;
 	    if (!(elt instanceof EquivalentSet) &&
-		(left == null ? 0 : lary.length) +
-		(right == null ? 0 : rary.length) < MAX_LEAF_ARRAY_LENGTH)
-		return concat(elt, lary, rary);
+		(left == null ? 0 : leafLength(lary)) +
+		(right == null ? 0 : leafLength(rary)) < MAX_LEAF_ARRAY_LENGTH)
+		return concat(elt, ehash, lary, rary);
 	    else return makeNode(elt, ehash, left, right);
 	} else {
 	    int sizl = treeSize(left);
@@ -952,7 +1670,7 @@ public final class FHashSet<Elt>
 	else if (right == null) return left;
 	else {
 	    Object m = min(right);
-	    return concat(m, hashCode(m), left, lessMin(right));
+	    return concat(m, minHash(right), left, lessMin(right));
 	}
     }
 
@@ -966,11 +1684,21 @@ public final class FHashSet<Elt>
 	}
     }
 
+    /* Returns the hash code of `min(subtree)'. */
+    private static int minHash(Object subtree) {
+	if (!(subtree instanceof Node)) return leafHashes((Object[])subtree)[0];
+	else {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.ehash;
+	    else return minHash(node.left);
+	}
+    }
+
     /* Assumes `subtree' is nonempty. */
     /*pkg*/ static Object lessMin(Object subtree) {
 	if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[])subtree;
-	    return subseq(ary, 1, ary.length);
+	    return subseq(ary, 1, leafLength(ary));
 	} else {
 	    Node node = (Node)subtree;
 	    if (node.left == null) return node.right;
@@ -983,13 +1711,17 @@ public final class FHashSet<Elt>
 	else if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[])subtree;
 	    int hash = 0;
-	    for (int i = 0, len = ary.length; i < len; ++i) {
+	    for (int i = 0, len = leafLength(ary); i < len; ++i) {
 		Object elt = ary[i];
 		if (elt != null) hash += elt.hashCode();
 	    }
 	    return hash;
 	} else {
+	    // Each node caches the hash code of its subtree, so if this set was made from
+	    // one whose hash code has already been computed, this takes only O(log n)
+	    // time: just the nodes on the modified paths are new.
 	    Node node = (Node)subtree;
+	    if (node.hash_code != Integer.MIN_VALUE) return node.hash_code;
 	    int hash = myHashCode(node.left) + myHashCode(node.right);
 	    Object elt = node.element;
 	    if (elt instanceof EquivalentSet) {
@@ -999,10 +1731,227 @@ public final class FHashSet<Elt>
 		    if (e != null) hash += e.hashCode();
 		}
 	    } else if (elt != null) hash += elt.hashCode();	// not 'node.ehash'!
+	    node.hash_code = hash;
+	    return hash;
+	}
+    }
+
+    // Like `myHashCode', but uses the hash codes cached in the tree instead of calling
+    // the elements' `hashCode' methods again; for `FCachedHashSet'.
+    /*pkg*/ static int cachedHashCode(Object subtree) {
+	if (subtree == null) return 0;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int[] hashes = leafHashes(ary);
+	    int hash = 0;
+	    for (int i = 0, len = leafLength(ary); i < len; ++i)
+		hash += rawHashCode(ary[i], hashes[i]);
+	    return hash;
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.hash_code != Integer.MIN_VALUE) return node.hash_code;
+	    int hash = cachedHashCode(node.left) + cachedHashCode(node.right);
+	    Object elt = node.element;
+	    if (elt instanceof EquivalentSet) {
+		ArrayList<Object> al = ((EquivalentSet)elt).contents;
+		for (int i = 0, siz = al.size(); i < siz; ++i)
+		    hash += rawHashCode(al.get(i), node.ehash);
+	    } else hash += rawHashCode(elt, node.ehash);
+	    node.hash_code = hash;
 	    return hash;
 	}
     }
 
+    // Given `ehash', the result of `hashCode(elt)', returns `elt.hashCode()'.  These
+    // differ only if the latter was one of the infinities, in which case the former
+    // is its neighbor; only then do we have to ask the element again.
+    private static int rawHashCode(Object elt, int ehash) {
+	if (ehash == NEGATIVE_INFINITY + 1 || ehash == POSITIVE_INFINITY - 1)
+	    return elt.hashCode();
+	else return ehash;
+    }
+
+    // Writes the elements of `subtree' to `strm', each followed by its hash code; for
+    // `FCachedHashSet.writeObject'.
+    /*pkg*/ static void writeWithHashes(Object subtree, ObjectOutputStream strm)
+	    throws IOException {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int[] hashes = leafHashes(ary);
+	    for (int i = 0, len = leafLength(ary); i < len; ++i) {
+		strm.writeObject(ary[i]);
+		strm.writeInt(hashes[i]);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    writeWithHashes(node.left, strm);
+	    if (node.element instanceof EquivalentSet) {
+		ArrayList<Object> al = ((EquivalentSet)node.element).contents;
+		for (int i = 0, siz = al.size(); i < siz; ++i) {
+		    strm.writeObject(al.get(i));
+		    strm.writeInt(node.ehash);
+		}
+	    } else {
+		strm.writeObject(node.element);
+		strm.writeInt(node.ehash);
+	    }
+	    writeWithHashes(node.right, strm);
+	}
+    }
+
+    // Writes the elements of `subtree' in order for `Snapshot.write'.  Each hash code
+    // is written once [`int'], followed by the element, or `EquivalentSet', that has
+    // it, in the form `writeGroup' uses.
+    /*pkg*/ static void writeSnapshot(Object subtree, Snapshot.Encoder<Object> enc,
+				      Snapshot.Output out)
+	    throws IOException {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int[] hashes = leafHashes(ary);
+	    for (int i = 0, len = leafLength(ary); i < len; ++i) {
+		out.writeInt(hashes[i]);
+		out.writeVarInt(1);
+		enc.encode(ary[i], out);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    writeSnapshot(node.left, enc, out);
+	    out.writeInt(node.ehash);
+	    writeGroup(node.element, enc, out);
+	    writeSnapshot(node.right, enc, out);
+	}
+    }
+
+    // Reads the `size' elements written by `writeSnapshot' and builds the tree.
+    /*pkg*/ static Object readSnapshot(int size, Snapshot.Encoder<Object> enc,
+				       Snapshot.Input in)
+	    throws IOException {
+	Object[] elts = new Object[size];
+	int[] hashes = new int[size];
+	int[] cum = null;
+	int n = 0, prev_hash = NEGATIVE_INFINITY;
+	for (int nelts = 0; nelts < size; ) {
+	    int hash = readHash(prev_hash, in);
+	    int count = Snapshot.readCount(size - nelts, in);
+	    elts[n] = readGroup(count, enc, in);
+	    if (count > 1 && cum == null) {
+		cum = new int[size + 1];
+		for (int i = 0; i <= n; ++i) cum[i] = i;
+	    }
+	    hashes[n++] = prev_hash = hash;
+	    nelts += count;
+	    if (cum != null) cum[n] = nelts;
+	}
+	return buildTree(elts, hashes, cum, 0, n);
+    }
+
+    // Writes `subtree' for `Snapshot.SharedWriter', keeping the shape of the tree.
+    // A subtree is written as a tag [`Output.writeVarInt']: 0 for null; 1 for a new
+    // leaf, followed by its length [`Output.writeVarInt'] and its elements, each
+    // preceded by its hash code [`int']; 2 for a new node, followed by its hash code
+    // [`int'], its element as written by `writeGroup', and its left and right
+    // subtrees; or, for a subtree already in `ids', 3 plus its id.  Each new subtree
+    // is given the next id once it has been written.
+    /*pkg*/ static void writeShared(Object subtree, Snapshot.Encoder<Object> enc,
+				    Snapshot.Output out, IdentityHashMap<Object, Integer> ids)
+	    throws IOException {
+	if (subtree == null) {
+	    out.writeVarInt(0);
+	    return;
+	}
+	Integer id = ids.get(subtree);
+	if (id != null) out.writeVarInt(id + 3);
+	else {
+	    if (!(subtree instanceof Node)) {
+		Object[] ary = (Object[])subtree;
+		int[] hashes = leafHashes(ary);
+		int len = leafLength(ary);
+		out.writeVarInt(1);
+		out.writeVarInt(len);
+		for (int i = 0; i < len; ++i) {
+		    out.writeInt(hashes[i]);
+		    enc.encode(ary[i], out);
+		}
+	    } else {
+		Node node = (Node)subtree;
+		out.writeVarInt(2);
+		out.writeInt(node.ehash);
+		writeGroup(node.element, enc, out);
+		writeShared(node.left, enc, out, ids);
+		writeShared(node.right, enc, out, ids);
+	    }
+	    ids.put(subtree, ids.size());
+	}
+    }
+
+    // Reads a subtree written by `writeShared'.  `subtrees' holds the ones already
+    // read, by id.
+    /*pkg*/ static Object readShared(Snapshot.Encoder<Object> enc, Snapshot.Input in,
+				     ArrayList<Object> subtrees)
+	    throws IOException {
+	int tag = in.readVarInt();
+	Object res;
+	if (tag == 0) return null;
+	else if (tag == 1) {
+	    int len = Snapshot.readCount(MAX_LEAF_ARRAY_LENGTH, in);
+	    Object[] ary = new Object[len + 1];
+	    int[] hashes = new int[len];
+	    for (int i = 0, prev_hash = NEGATIVE_INFINITY; i < len; ++i) {
+		hashes[i] = prev_hash = readHash(prev_hash, in);
+		ary[i] = enc.decode(in);
+	    }
+	    ary[len] = hashes;
+	    res = ary;
+	} else if (tag == 2) {
+	    int ehash = readHash(NEGATIVE_INFINITY, in);
+	    Object elt = readGroup(Snapshot.readCount(Integer.MAX_VALUE, in), enc, in);
+	    Object left = readShared(enc, in, subtrees);
+	    res = makeNode(elt, ehash, left, readShared(enc, in, subtrees));
+	} else return Snapshot.sharedSubtree(tag - 3, subtrees);
+	subtrees.add(res);
+	return res;
+    }
+
+    // Writes a node's element as the number of elements it holds
+    // [`Output.writeVarInt'], which is more than one for an `EquivalentSet', followed
+    // by the elements.
+    private static void writeGroup(Object elt, Snapshot.Encoder<Object> enc,
+				   Snapshot.Output out)
+	    throws IOException {
+	if (elt instanceof EquivalentSet) {
+	    ArrayList<Object> al = ((EquivalentSet)elt).contents;
+	    int siz = al.size();
+	    out.writeVarInt(siz);
+	    for (int i = 0; i < siz; ++i) enc.encode(al.get(i), out);
+	} else {
+	    out.writeVarInt(1);
+	    enc.encode(elt, out);
+	}
+    }
+
+    // Reads the `count' elements of a group written by `writeGroup'.
+    private static Object readGroup(int count, Snapshot.Encoder<Object> enc,
+				    Snapshot.Input in)
+	    throws IOException {
+	if (count == 1) return enc.decode(in);
+	else {
+	    ArrayList<Object> al = new ArrayList<Object>(count);
+	    for (int i = 0; i < count; ++i) al.add(enc.decode(in));
+	    return new EquivalentSet(al);
+	}
+    }
+
+    // Reads a hash code, which has to be greater than `prev_hash' and can't be one of
+    // the infinities.
+    /*pkg*/ static int readHash(int prev_hash, Snapshot.Input in) throws IOException {
+	int hash = in.readInt();
+	if (hash <= prev_hash || hash == POSITIVE_INFINITY || hash == NEGATIVE_INFINITY)
+	    throw new StreamCorruptedException("Hash codes out of order");
+	return hash;
+    }
+
     private static String dump(Object thing) {
 	if (thing == null) return "null";
 	else if (thing == NO_ELEMENT) return "NADA";
@@ -1017,9 +1966,9 @@ public final class FHashSet<Elt>
 	} else if (thing instanceof Object[]) {
 	    StringBuffer str_buf = new StringBuffer("{");
 	    Object[] ary = (Object[])thing;
-	    for (int i = 0; i < ary.length; ++i) {
+	    for (int i = 0, len = leafLength(ary); i < len; ++i) {
 		str_buf.append(dump(ary[i]));
-		if (i < ary.length - 1) str_buf.append(", ");
+		if (i < len - 1) str_buf.append(", ");
 	    }
 	    str_buf.append("}");
 	    return str_buf.toString();
@@ -1045,12 +1994,16 @@ public final class FHashSet<Elt>
 	if (subtree == null) return true;
 	else if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[])subtree;
-	    if (ary.length > MAX_LEAF_ARRAY_LENGTH) return false;
+	    if (!(ary[ary.length - 1] instanceof int[])) return false;
+	    int len = leafLength(ary);
+	    int[] hashes = leafHashes(ary);
+	    if (len == 0 || len > MAX_LEAF_ARRAY_LENGTH || hashes.length != len) return false;
 	    boolean res = true;
 	    int prev = lo;
-	    for (int i = 0, len = ary.length; i < len; ++i) {
+	    for (int i = 0; i < len; ++i) {
 		Object elt = ary[i];
 		int hash = hashCode(elt);
+		if (hash != hashes[i]) res = false;
 		if (prev != NEGATIVE_INFINITY && prev >= hash) res = false;
 		prev = hash;
 	    }
@@ -1238,205 +2191,291 @@ public final class FHashSet<Elt>
     /****************/
     /* Internal array manipulation routines.  These all assume their index
      * parameters are within bounds.  Of course, despite what the names of some
-     * might suggest, they all make new arrays. */
+     * might suggest, they all make new arrays.  They all maintain the hash codes
+     * stored at the end of each leaf (see `Node' above). */
 
-    private static Object[] concat(Object elt, Object[] left, Object[] right) {
-	int llen = (left == null ? 0 : left.length);
-	int rlen = (right == null ? 0 : right.length);
+    private static Object[] concat(Object elt, int ehash, Object[] left, Object[] right) {
+	int llen = (left == null ? 0 : leafLength(left));
+	int rlen = (right == null ? 0 : leafLength(right));
 	int len = llen + 1 + rlen;
-	Object[] a = new Object[len];
-	for (int i = 0; i < llen; ++i) a[i] = left[i];
+	Object[] a = new Object[len + 1];
+	int[] h = new int[len];
+	if (left != null) {
+	    int[] lhashes = leafHashes(left);
+	    for (int i = 0; i < llen; ++i) {
+		a[i] = left[i];
+		h[i] = lhashes[i];
+	    }
+	}
 	a[llen] = elt;
-	for (int i = 0; i < rlen; ++i) a[i + llen + 1] = right[i];
+	h[llen] = ehash;
+	if (right != null) {
+	    int[] rhashes = leafHashes(right);
+	    for (int i = 0; i < rlen; ++i) {
+		a[i + llen + 1] = right[i];
+		h[i + llen + 1] = rhashes[i];
+	    }
+	}
+	a[len] = h;
 	return a;
     }
 
-    private static Object[] insert(Object[] ary, int idx, Object elt) {
-	int len = ary.length + 1;
-	Object[] a = new Object[len];
-	for (int i = 0; i < idx; ++i) a[i] = ary[i];
+    private static Object[] insert(Object[] ary, int idx, Object elt, int ehash) {
+	int[] hashes = leafHashes(ary);
+	int len = hashes.length + 1;
+	Object[] a = new Object[len + 1];
+	int[] h = new int[len];
+	for (int i = 0; i < idx; ++i) {
+	    a[i] = ary[i];
+	    h[i] = hashes[i];
+	}
 	a[idx] = elt;
-	for (int i = idx + 1; i < len; ++i) a[i] = ary[i - 1];
+	h[idx] = ehash;
+	for (int i = idx + 1; i < len; ++i) {
+	    a[i] = ary[i - 1];
+	    h[i] = hashes[i - 1];
+	}
+	a[len] = h;
 	return a;
     }
 
     private static Object[] remove(Object[] ary, int idx) {
-	int len = ary.length - 1;
+	int[] hashes = leafHashes(ary);
+	int len = hashes.length - 1;
 	if (len == 0) return null;
 	else {
-	    Object[] a = new Object[len];
-	    for (int i = 0; i < idx; ++i) a[i] = ary[i];
-	    for (int i = idx; i < len; ++i) a[i] = ary[i + 1];
+	    Object[] a = new Object[len + 1];
+	    int[] h = new int[len];
+	    for (int i = 0; i < idx; ++i) {
+		a[i] = ary[i];
+		h[i] = hashes[i];
+	    }
+	    for (int i = idx; i < len; ++i) {
+		a[i] = ary[i + 1];
+		h[i] = hashes[i + 1];
+	    }
+	    a[len] = h;
 	    return a;
 	}
     }
 
     private static Object[] subseq(Object[] ary, int lo, int hi) {
 	if (lo >= hi) return null;
-	else if (lo == 0 && hi == ary.length) return ary;
+	else if (lo == 0 && hi == leafLength(ary)) return ary;
+	else return makeLeaf(ary, leafHashes(ary), lo, hi);
+    }
+
+    // Makes a leaf of the elements of `elts' from `lo' to `hi', whose hash codes are
+    // the corresponding members of `hashes'.  `elts' need not itself be a leaf.
+    /*pkg*/ static Object[] makeLeaf(Object[] elts, int[] hashes, int lo, int hi) {
+	if (lo >= hi) return null;
 	else {
 	    int len = hi - lo;
-	    Object[] a = new Object[len];
-	    for (int i = 0; i < len; ++i)
-		a[i] = ary[i + lo];
+	    Object[] a = new Object[len + 1];
+	    int[] h = new int[len];
+	    for (int i = 0; i < len; ++i) {
+		a[i] = elts[i + lo];
+		h[i] = hashes[i + lo];
+	    }
+	    a[len] = h;
 	    return a;
 	}
     }
 
+    // Builds a balanced tree, bottom-up, from `elts[lo..hi)', which must be in strictly
+    // increasing order of their hash codes `hashes[lo..hi)'.  Any `EquivalentSet's
+    // among them are placed in nodes.  `cum' is null if there are none; otherwise
+    // `cum[i]' is the number of elements in `elts[0..i)', counting an `EquivalentSet'
+    // as its size.
+    /*pkg*/ static Object buildTree(Object[] elts, int[] hashes, int[] cum, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if (hi - lo <= MAX_LEAF_ARRAY_LENGTH &&
+		 (cum == null || cum[hi] - cum[lo] == hi - lo))
+	    return makeLeaf(elts, hashes, lo, hi);
+	else {
+	    int mid;
+	    if (cum == null) mid = (lo + hi) >>> 1;
+	    else {
+		// Split by element count rather than by position, so a large
+		// `EquivalentSet' can't unbalance the tree.
+		int target = cum[lo] + ((cum[hi] - cum[lo]) >> 1);
+		int l = lo, h = hi - 1;
+		while (l < h) {
+		    int m = (l + h + 1) >>> 1;
+		    if (cum[m] <= target) l = m;
+		    else h = m - 1;
+		}
+		mid = l;
+	    }
+	    return makeNode(elts[mid], hashes[mid], buildTree(elts, hashes, cum, lo, mid),
+			    buildTree(elts, hashes, cum, mid + 1, hi));
+	}
+    }
+
     // Does a merge-union on `ary1' and `ary2', omitting any elements not greater than
     // `lo' and less than `hi'.  If the result is too long to be a leaf, splits it and
     // makes a node.  Also, if any equivalent values are found, makes a node.
     private static Object union(Object[] ary1, Object[] ary2, int lo, int hi) {
-	int i1 = 0, i2 = 0, len1 = ary1.length, len2 = ary2.length;
+	int[] hashes1 = leafHashes(ary1), hashes2 = leafHashes(ary2);
+	int i1 = 0, i2 = 0, len1 = hashes1.length, len2 = hashes2.length;
 	// We do these with linear rather than binary search because frequently,
 	// the ends of the vectors will already be in range (the worst case for
 	// binary search).
 	if (lo != NEGATIVE_INFINITY) {
-	    while (i1 < len1 && lo >= hashCode(ary1[i1])) ++i1;
-	    while (i2 < len2 && lo >= hashCode(ary2[i2])) ++i2;
+	    while (i1 < len1 && lo >= hashes1[i1]) ++i1;
+	    while (i2 < len2 && lo >= hashes2[i2]) ++i2;
 	}
 	if (hi != POSITIVE_INFINITY) {
-	    while (i1 < len1 && hi <= hashCode(ary1[len1 - 1])) --len1;
-	    while (i2 < len2 && hi <= hashCode(ary2[len2 - 1])) --len2;
+	    while (i1 < len1 && hi <= hashes1[len1 - 1]) --len1;
+	    while (i2 < len2 && hi <= hashes2[len2 - 1]) --len2;
 	}
-	ArrayList<Object> res = new ArrayList<Object>();
+	int maxlen = (len1 - i1) + (len2 - i2);
+	Object[] res = new Object[maxlen];
+	int[] res_hashes = new int[maxlen];
+	int n = 0;
 	boolean any_equiv = false;
-	Object e1 = null, e2 = null;
-	int hash1 = 0, hash2 = 0;
-	if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-	if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
-	while (true) {
-	    if (i1 == len1) {
-		while (i2 < len2) res.add(ary2[i2++]);
-		break;
-	    } else if (i2 == len2) {
-		while (i1 < len1) res.add(ary1[i1++]);
-		break;
+	while (i1 < len1 && i2 < len2) {
+	    int hash1 = hashes1[i1], hash2 = hashes2[i2];
+	    if (hash1 < hash2) {
+		res[n] = ary1[i1++];
+		res_hashes[n++] = hash1;
+	    } else if (hash1 > hash2) {
+		res[n] = ary2[i2++];
+		res_hashes[n++] = hash2;
 	    } else {
-		if (hash1 < hash2) {
-		    res.add(e1);
-		    ++i1;
-		    if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-		} else if (hash1 > hash2) {
-		    res.add(e2);
-		    ++i2;
-		    if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
-		} else {
-		    if (eql(e1, e2)) res.add(e1);
-		    else {
-			res.add(equivUnion(e1, e2));
-			any_equiv = true;
-		    }
-		    ++i1;
-		    ++i2;
-		    if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-		    if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
+		Object e1 = ary1[i1++], e2 = ary2[i2++];
+		if (eql(e1, e2)) res[n] = e1;
+		else {
+		    res[n] = equivUnion(e1, e2);
+		    any_equiv = true;
 		}
+		res_hashes[n++] = hash1;
 	    }
 	}
+	for (; i1 < len1; ++i1, ++n) {
+	    res[n] = ary1[i1];
+	    res_hashes[n] = hashes1[i1];
+	}
+	for (; i2 < len2; ++i2, ++n) {
+	    res[n] = ary2[i2];
+	    res_hashes[n] = hashes2[i2];
+	}
 	if (any_equiv) {
 	    Object t = null;
 	    // We could attempt a better algorithm, but this shouldn't happen often.
-	    for (Iterator it = res.iterator(); it.hasNext(); ) {
-		Object elt = it.next();
-		t = with(t, elt, hashCode(elt));
-	    }
+	    for (int i = 0; i < n; ++i)
+		t = with(t, res[i], res_hashes[i]);
 	    return t;
 	}
-	int siz = res.size();
-	Object[] res_ary = res.toArray();
-	if (siz > MAX_LEAF_ARRAY_LENGTH) {
-	    int idx = siz / 2;
-	    Object elt = res.get(idx);
-	    return makeNode(elt, hashCode(elt), subseq(res_ary, 0, idx),
-			    subseq(res_ary, idx + 1, siz));
-	} else return res_ary;
+	if (n > MAX_LEAF_ARRAY_LENGTH) {
+	    int idx = n / 2;
+	    return makeNode(res[idx], res_hashes[idx], makeLeaf(res, res_hashes, 0, idx),
+			    makeLeaf(res, res_hashes, idx + 1, n));
+	} else return makeLeaf(res, res_hashes, 0, n);
     }
 
     private static Object[] intersection(Object[] ary1, Object[] ary2, int lo, int hi) {
-	int i1 = 0, i2 = 0, len1 = ary1.length, len2 = ary2.length;
+	int[] hashes1 = leafHashes(ary1), hashes2 = leafHashes(ary2);
+	int i1 = 0, i2 = 0, len1 = hashes1.length, len2 = hashes2.length;
 	if (lo != NEGATIVE_INFINITY)
-	    while (i1 < len1 && lo >= hashCode(ary1[i1])) ++i1;
+	    while (i1 < len1 && lo >= hashes1[i1]) ++i1;
 	if (hi != POSITIVE_INFINITY)
-	    while (i1 < len1 && hi <= hashCode(ary1[len1 - 1])) --len1;
-	ArrayList<Object> res = new ArrayList<Object>();
-	Object e1 = null, e2 = null;
-	int hash1 = 0, hash2 = 0;
-	if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-	if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
+	    while (i1 < len1 && hi <= hashes1[len1 - 1]) --len1;
+	int maxlen = Math.min(len1 - i1, len2);
+	Object[] res = new Object[maxlen];
+	int[] res_hashes = new int[maxlen];
+	int n = 0;
 	while (i1 < len1 && i2 < len2) {
-	    if (hash1 < hash2) {
-		++i1;
-		if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-	    } else if (hash1 > hash2) {
-		++i2;
-		if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
-	    } else {
-		if (eql(e1, e2)) res.add(e1);
-		++i1;
-		++i2;
-		if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-		if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
+	    int hash1 = hashes1[i1], hash2 = hashes2[i2];
+	    if (hash1 < hash2) ++i1;
+	    else if (hash1 > hash2) ++i2;
+	    else {
+		Object e1 = ary1[i1++], e2 = ary2[i2++];
+		if (eql(e1, e2)) {
+		    res[n] = e1;
+		    res_hashes[n++] = hash1;
+		}
 	    }
 	}
-	if (res.isEmpty()) return null;
-	else return res.toArray();
+	return makeLeaf(res, res_hashes, 0, n);
     }
 
     private static Object[] difference(Object[] ary1, Object[] ary2, int lo, int hi) {
-	int i1 = 0, i2 = 0, len1 = ary1.length, len2 = ary2.length;
+	int[] hashes1 = leafHashes(ary1), hashes2 = leafHashes(ary2);
+	int i1 = 0, i2 = 0, len1 = hashes1.length, len2 = hashes2.length;
 	if (lo != NEGATIVE_INFINITY)
-	    while (i1 < len1 && lo >= hashCode(ary1[i1])) ++i1;
+	    while (i1 < len1 && lo >= hashes1[i1]) ++i1;
 	if (hi != POSITIVE_INFINITY)
-	    while (i1 < len1 && hi <= hashCode(ary1[len1 - 1])) --len1;
-	ArrayList<Object> res = new ArrayList<Object>();
-	Object e1 = null, e2 = null;
-	int hash1 = 0, hash2 = 0;
-	if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-	if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
+	    while (i1 < len1 && hi <= hashes1[len1 - 1]) --len1;
+	int maxlen = len1 - i1;
+	Object[] res = new Object[maxlen];
+	int[] res_hashes = new int[maxlen];
+	int n = 0;
 	while (i1 < len1 && i2 < len2) {
+	    int hash1 = hashes1[i1], hash2 = hashes2[i2];
 	    if (hash1 < hash2) {
-		res.add(e1);
-		++i1;
-		if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-	    } else if (hash1 > hash2) {
-		++i2;
-		if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
-	    } else {
-		if (!eql(e1, e2)) res.add(e1);
-		++i1;
-		++i2;
-		if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-		if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
+		res[n] = ary1[i1++];
+		res_hashes[n++] = hash1;
+	    } else if (hash1 > hash2) ++i2;
+	    else {
+		Object e1 = ary1[i1++], e2 = ary2[i2++];
+		if (!eql(e1, e2)) {
+		    res[n] = e1;
+		    res_hashes[n++] = hash1;
+		}
 	    }
 	}
-	while (i1 < len1) res.add(ary1[i1++]);
-	if (res.isEmpty()) return null;
-	else return res.toArray();
+	for (; i1 < len1; ++i1, ++n) {
+	    res[n] = ary1[i1];
+	    res_hashes[n] = hashes1[i1];
+	}
+	return makeLeaf(res, res_hashes, 0, n);
+    }
+
+    private static void diff(Object[] ary1, Object[] ary2, SetDiff.Handler handler,
+			     int lo, int hi) {
+	int[] hashes1 = leafHashes(ary1), hashes2 = leafHashes(ary2);
+	int i1 = 0, i2 = 0, len1 = hashes1.length, len2 = hashes2.length;
+	if (lo != NEGATIVE_INFINITY) {
+	    while (i1 < len1 && lo >= hashes1[i1]) ++i1;
+	    while (i2 < len2 && lo >= hashes2[i2]) ++i2;
+	}
+	if (hi != POSITIVE_INFINITY) {
+	    while (i1 < len1 && hi <= hashes1[len1 - 1]) --len1;
+	    while (i2 < len2 && hi <= hashes2[len2 - 1]) --len2;
+	}
+	while (i1 < len1 && i2 < len2) {
+	    int hash1 = hashes1[i1], hash2 = hashes2[i2];
+	    if (hash1 < hash2) handler.removed(ary1[i1++]);
+	    else if (hash1 > hash2) handler.added(ary2[i2++]);
+	    else {
+		Object e1 = ary1[i1++], e2 = ary2[i2++];
+		if (!eql(e1, e2)) {
+		    handler.removed(e1);
+		    handler.added(e2);
+		}
+	    }
+	}
+	for (; i1 < len1; ++i1) handler.removed(ary1[i1]);
+	for (; i2 < len2; ++i2) handler.added(ary2[i2]);
     }
 
     // `ary2' may be null.
     private static boolean isSubset(Object[] ary1, Object[] ary2, int lo, int hi) {
-	int i1 = 0, i2 = 0, len1 = ary1.length, len2 = ary2 != null ? ary2.length : 0;
+	int[] hashes1 = leafHashes(ary1), hashes2 = ary2 != null ? leafHashes(ary2) : null;
+	int i1 = 0, i2 = 0, len1 = hashes1.length, len2 = ary2 != null ? hashes2.length : 0;
 	if (lo != NEGATIVE_INFINITY)
-	    while (i1 < len1 && lo >= hashCode(ary1[i1])) ++i1;
+	    while (i1 < len1 && lo >= hashes1[i1]) ++i1;
 	if (hi != POSITIVE_INFINITY)
-	    while (i1 < len1 && hi <= hashCode(ary1[len1 - 1])) --len1;
-	Object e1 = null, e2 = null;
-	int hash1 = 0, hash2 = 0;
-	if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-	if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
+	    while (i1 < len1 && hi <= hashes1[len1 - 1]) --len1;
 	while (i1 < len1 && i2 < len2) {
+	    int hash1 = hashes1[i1], hash2 = hashes2[i2];
 	    if (hash1 < hash2) return false;
-	    else if (hash1 > hash2) {
-		++i2;
-		if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
-	    } else {
-		if (!eql(e1, e2)) return false;
+	    else if (hash1 > hash2) ++i2;
+	    else {
+		if (!eql(ary1[i1], ary2[i2])) return false;
 		++i1;
 		++i2;
-		if (i1 < len1) hash1 = hashCode(e1 = ary1[i1]);
-		if (i2 < len2) hash2 = hashCode(e2 = ary2[i2]);
 	    }
 	}
 	return !(i1 < len1);
@@ -1454,11 +2493,11 @@ public final class FHashSet<Elt>
     private static final int BIN_SEARCH_INDEX_SHIFT = 1;
 
     private static int binarySearch(Object[] ary, int hash) {
-	int lo = 0, hi = ary.length - 1;
+	int[] hashes = leafHashes(ary);
+	int lo = 0, hi = hashes.length - 1;
 	while (lo <= hi) {
 	    int mid = (lo + hi) / 2;
-	    Object aelt = ary[mid];
-	    int aehash = hashCode(aelt);
+	    int aehash = hashes[mid];
 	    if (hash == aehash)
 		return (mid << BIN_SEARCH_INDEX_SHIFT) | BIN_SEARCH_FOUND;
 	    else if (hash < aehash) hi = mid - 1;
@@ -1519,7 +2558,7 @@ public final class FHashSet<Elt>
 		    if (inode == null) break;
 		    else ++inode.index;
 		} else if (!(inode.subtree instanceof Node)) {
-		    if (inode.index < ((Object[])inode.subtree).length) break;
+		    if (inode.index < leafLength((Object[])inode.subtree)) break;
 		    else {
 			inode = inode.parent;
 			if (inode == null) break;
@@ -1561,6 +2600,34 @@ public final class FHashSet<Elt>
 	}
     }
 
+    private static final class FHSSpliterator<Elt> extends TreeSpliterator<Elt> {
+	FHSSpliterator(Object pending, Object subtree) {
+	    super(pending, subtree, IMMUTABLE | DISTINCT | SIZED | SUBSIZED);
+	}
+	protected TreeSpliterator<Elt> make(Object pending, Object subtree) {
+	    return new FHSSpliterator<Elt>(pending, subtree);
+	}
+	protected boolean isNode(Object subtree) { return subtree instanceof Node; }
+	protected Object left(Object node) { return ((Node)node).left; }
+	protected Object right(Object node) { return ((Node)node).right; }
+	protected int subtreeSize(Object subtree) { return treeSize(subtree); }
+	protected int nodeElementCount(Object node) {
+	    return elementSize(((Node)node).element);
+	}
+	protected Elt nodeElement(Object node, int index) {
+	    Object elt = ((Node)node).element;
+	    if (elt instanceof EquivalentSet)
+		return (Elt)((EquivalentSet)elt).contents.get(index);
+	    else return (Elt)elt;
+	}
+	protected Iterator<Elt> iterator(Object subtree) {
+	    return new FHSIterator<Elt>(subtree);
+	}
+	protected void walk(Object subtree, Consumer<? super Elt> action) {
+	    FHashSet.forEach(subtree, action);
+	}
+    }
+
     /**
      * Saves the state of this <code>FHashSet</code> to a stream.
      *
@@ -1592,13 +2659,10 @@ public final class FHashSet<Elt>
 	hash_code = Integer.MIN_VALUE;
 	strm.defaultReadObject();	// reads `comp'
         int size = strm.readInt();
-	Object t = null;
-	for (int i = 0; i < size; ++i) {
-	    Object e = strm.readObject();
-	    t = with(t, e, hashCode(e));
-	}
+	Builder<Object> b = new Builder<Object>(size);
+	for (int i = 0; i < size; ++i) b.add(strm.readObject());
 	try {
-	    TreeField.set(this, t);
+	    TreeField.set(this, b.tree());
 	} catch (IllegalAccessException ia) {
 	    throw new RuntimeException("FHashSet deserialization failed", ia);
 	}
@@ -0,0 +1,498 @@
+/*
+ * FIndexedList.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * A functional list that also keeps a hash index from each element to its
+ * positions, so that <code>contains</code>, <code>indexOf</code>, and
+ * <code>lastIndexOf</code> take O(log <i>n</i>) time, rather than the linear time
+ * they take on an <code>FTreeList</code>.
+ *
+ * <p>Positions can't be indexed directly, as inserting an element would change
+ * those of all the elements after it.  Instead, each position is given a label, and
+ * the labels are kept in order in an <code>FTreeSet</code>, alongside an
+ * <code>FTreeList</code> of the elements.  Labels are never changed, and a new one
+ * can always be made between any two others, so the index, which maps each element
+ * to the <code>FTreeSet</code> of its labels, is updated in O(log <i>n</i>) time by
+ * <code>with</code>, <code>withInserted</code>, and <code>less</code>; and the
+ * position of a label is its rank among the labels, also found in O(log
+ * <i>n</i>) time.
+ *
+ * <p>Time costs: <code>isEmpty</code> and <code>size</code> take O(1) (constant)
+ * time.  <code>get</code>, <code>with</code>, <code>withInserted</code>,
+ * <code>withFirst</code>, <code>withLast</code>, <code>less</code>,
+ * <code>subseq</code>, <code>subList</code>, <code>contains</code>,
+ * <code>indexOf</code>, and <code>lastIndexOf</code> take O(log <i>n</i>) time.
+ * <code>concat</code> takes O(<i>m</i> log <i>n</i>) time, where <i>m</i> is the
+ * size of the list whose elements are relabeled and added to the index of the
+ * other: the shorter one if the argument is also an <code>FIndexedList</code>,
+ * and otherwise the argument, however long it is.  Construction from an existing collection or array and
+ * <code>reverse</code> take O(<i>n</i> log <i>n</i>) time; <code>equals</code>
+ * takes O(n) (linear) time; and <code>sorted</code> takes O(<i>n</i> log
+ * <i>n</i>) time.
+ *
+ * <p>Space costs: several times that of an <code>FTreeList</code>.  Also,
+ * <code>subseq</code> shares the index of the original list, including the
+ * entries for the elements outside the range (which are ignored), so it doesn't
+ * free them for garbage collection.
+ *
+ * <p><code>FIndexedList</code> accepts the null element.
+ *
+ * @author Scott L. Burson
+ * @see FList
+ * @see FTreeList
+ */
+
+public class FIndexedList<Elt>
+    extends AbstractFList<Elt>
+    implements Serializable
+{
+
+    /**
+     * Returns an empty <code>FIndexedList</code>.  Slightly more efficient than
+     * calling the constructor, because it returns a canonical instance.
+     */
+    public static <Elt> FIndexedList<Elt> emptyList() {
+	return (FIndexedList<Elt>)EMPTY_INSTANCE;
+    }
+
+    /**
+     * Constructs a new, empty <code>FIndexedList</code>.
+     */
+    public FIndexedList() {
+	list = FTreeList.emptyList();
+	labels = FTreeSet.emptySet();
+	all_labels = labels;
+	index = FHashMap.emptyMap();
+    }
+
+    /**
+     * Constructs a new <code>FIndexedList</code> containing the elements of
+     * <code>coll</code>.
+     *
+     * @param coll the collection to use the elements of
+     */
+    public FIndexedList(Collection<? extends Elt> coll) {
+	list = coll instanceof FTreeList ? (FTreeList<Elt>)coll : new FTreeList<Elt>(coll);
+	int siz = list.size();
+	// The initial labels are just the positions.
+	ArrayList<Label> lbls = new ArrayList<Label>(siz);
+	HashMap<Object, ArrayList<Label>> posns = new HashMap<Object, ArrayList<Label>>();
+	int pos = 0;
+	for (Elt x : list) {
+	    Label lbl = new Label(pos++);
+	    lbls.add(lbl);
+	    ArrayList<Label> xlbls = posns.get(x);
+	    if (xlbls == null) {
+		xlbls = new ArrayList<Label>(1);
+		posns.put(x, xlbls);
+	    }
+	    xlbls.add(lbl);
+	}
+	labels = all_labels = FTreeSet.fromSorted(lbls);
+	FHashMap.Builder<Object, FTreeSet<Label>> b =
+	    new FHashMap.Builder<Object, FTreeSet<Label>>(posns.size());
+	for (Map.Entry<Object, ArrayList<Label>> ent : posns.entrySet())
+	    b.put(ent.getKey(), FTreeSet.fromSorted(ent.getValue()));
+	index = b.build();
+    }
+
+    /**
+     * Constructs a new <code>FIndexedList</code> containing the components of
+     * <code>ary</code>.  That is, the elements are <code>ary[0]</code>,
+     * <code>ary[1]</code>, etc.
+     *
+     * @param T type of the array elements; extends <code>Elt</code>
+     * @param ary the array
+     */
+    public <T extends Elt> FIndexedList(T... ary) {
+	this(new FTreeList<Elt>(ary));
+    }
+
+    public boolean isEmpty() {
+	return list.isEmpty();
+    }
+
+    public int size() {
+	return list.size();
+    }
+
+    public Elt get(int index) {
+	return list.get(index);
+    }
+
+    public Iterator<Elt> iterator() {
+	return list.iterator();
+    }
+
+    public ListIterator<Elt> listIterator() {
+	return list.listIterator();
+    }
+
+    public ListIterator<Elt> listIterator(int index) {
+	return list.listIterator(index);
+    }
+
+    public void forEach(Consumer<? super Elt> action) {
+	list.forEach(action);
+    }
+
+    public FIndexedList<Elt> with(int idx, Elt elt) {
+	int siz = size();
+	if (idx < 0 || idx > siz) throw new IndexOutOfBoundsException();
+	else if (idx == siz) return withLast(elt);
+	Label lbl = labels.get(idx);
+	return new FIndexedList<Elt>(list.with(idx, elt), labels, all_labels,
+				     indexWith(indexLess(index, list.get(idx), lbl), elt, lbl));
+    }
+
+    public FIndexedList<Elt> withInserted(int idx, Elt elt) {
+	int siz = size();
+	if (idx < 0 || idx > siz) throw new IndexOutOfBoundsException();
+	else if (idx == 0) return withFirst(elt);
+	else if (idx == siz) return withLast(elt);
+	// There are no stale labels between two live ones; see `indexOf'.
+	Label lbl = Label.between(labels.get(idx - 1), labels.get(idx));
+	return new FIndexedList<Elt>(list.withInserted(idx, elt), labels.with(lbl),
+				     all_labels.with(lbl), indexWith(index, elt, lbl));
+    }
+
+    public FIndexedList<Elt> withFirst(Elt elt) {
+	Label lbl;
+	if (isEmpty()) lbl = new Label(0);
+	else {
+	    Label first = labels.first(), pred = all_labels.lower(first);
+	    lbl = pred == null ? first.before() : Label.between(pred, first);
+	}
+	return new FIndexedList<Elt>(list.withFirst(elt), labels.with(lbl),
+				     all_labels.with(lbl), indexWith(index, elt, lbl));
+    }
+
+    public FIndexedList<Elt> withLast(Elt elt) {
+	Label lbl;
+	if (isEmpty()) lbl = new Label(0);
+	else {
+	    Label last = labels.last(), succ = all_labels.higher(last);
+	    lbl = succ == null ? last.after() : Label.between(last, succ);
+	}
+	return new FIndexedList<Elt>(list.withLast(elt), labels.with(lbl),
+				     all_labels.with(lbl), indexWith(index, elt, lbl));
+    }
+
+    public FIndexedList<Elt> less(int idx) {
+	if (idx < 0 || idx >= size()) throw new IndexOutOfBoundsException();
+	Label lbl = labels.get(idx);
+	return make(list.less(idx), labels.less(lbl), all_labels.less(lbl),
+		    indexLess(index, list.get(idx), lbl));
+    }
+
+    // This, 'lessLast', 'prefix', 'suffix', and 'suffixFrom' are copies of the ones in
+    // 'AbstractFList', except that they return 'FIndexedList<Elt>' rather than
+    // 'FList<Elt>'.
+    public FIndexedList<Elt> lessFirst() {
+	return less(0);
+    }
+
+    public FIndexedList<Elt> lessLast() {
+	return less(size() - 1);
+    }
+
+    public FIndexedList<Elt> concat(List<? extends Elt> other) {
+	if (other.isEmpty()) return this;
+	else if (isEmpty())
+	    return other instanceof FIndexedList ? (FIndexedList<Elt>)other
+		: new FIndexedList<Elt>(other);
+	else if (other instanceof FIndexedList && other.size() > size()) {
+	    // Relabel our elements into the gap just below the other list's first
+	    // label, and add them to its index.
+	    FIndexedList<Elt> fil = (FIndexedList<Elt>)other;
+	    Label first = fil.labels.first(), pred = fil.all_labels.lower(first);
+	    Label base = pred == null ? first.before() : Label.between(pred, first);
+	    FTreeSet<Label> new_labels = fil.labels, new_all_labels = fil.all_labels;
+	    FHashMap<Object, FTreeSet<Label>> new_index = fil.index;
+	    long k = 0;
+	    for (Elt x : list) {
+		Label lbl = base.child(k++);
+		new_labels = new_labels.with(lbl);
+		new_all_labels = new_all_labels.with(lbl);
+		new_index = indexWith(new_index, x, lbl);
+	    }
+	    return new FIndexedList<Elt>(list.concat(fil.list), new_labels, new_all_labels,
+					 new_index);
+	} else {
+	    // Relabel the other list's elements into the gap just above our last label,
+	    // and add them to our index.
+	    FList<Elt> olist = other instanceof FIndexedList ? ((FIndexedList<Elt>)other).list
+		: new FTreeList<Elt>(other);
+	    Label last = labels.last(), succ = all_labels.higher(last);
+	    Label base = succ == null ? last.after() : Label.between(last, succ);
+	    FTreeSet<Label> new_labels = labels, new_all_labels = all_labels;
+	    FHashMap<Object, FTreeSet<Label>> new_index = index;
+	    long k = 0;
+	    for (Elt x : olist) {
+		Label lbl = base.child(k++);
+		new_labels = new_labels.with(lbl);
+		new_all_labels = new_all_labels.with(lbl);
+		new_index = indexWith(new_index, x, lbl);
+	    }
+	    return new FIndexedList<Elt>(list.concat(olist), new_labels, new_all_labels,
+					 new_index);
+	}
+    }
+
+    public FIndexedList<Elt> reverse() {
+	if (isEmpty()) return this;
+	else return new FIndexedList<Elt>(list.reverse());
+    }
+
+    public FIndexedList<Elt> subseq(int fromIndex, int toIndex) {
+	int siz = size();
+	if (fromIndex < 0 || fromIndex > siz ||
+	    toIndex < 0 || toIndex > siz) throw new IndexOutOfBoundsException();
+	else if (fromIndex == 0 && toIndex == siz) return this;
+	else if (fromIndex >= toIndex) return emptyList();
+	// The index is shared; `indexOf' ignores the labels outside the range.
+	return new FIndexedList<Elt>(list.subseq(fromIndex, toIndex),
+				     labels.subSetByRank(fromIndex, toIndex), all_labels, index);
+    }
+
+    public FIndexedList<Elt> prefix(int len) {
+	return subseq(0, len);
+    }
+
+    public FIndexedList<Elt> suffix(int len) {
+	return subseq(size() - len, size());
+    }
+
+    public FIndexedList<Elt> suffixFrom(int fromIndex) {
+	return subseq(fromIndex, size());
+    }
+
+    public boolean isPrefix(FList<Elt> other) {
+	return list.isPrefix(other instanceof FIndexedList ? ((FIndexedList<Elt>)other).list
+			     : other);
+    }
+
+    public boolean isSuffix(FList<Elt> other) {
+	return list.isSuffix(other instanceof FIndexedList ? ((FIndexedList<Elt>)other).list
+			     : other);
+    }
+
+    public FList<Elt> subList(int fromIndex, int toIndex) {
+	if (toIndex < fromIndex) throw new IllegalArgumentException();
+	return subseq(fromIndex, toIndex);
+    }
+
+    public FIndexedList<Elt> sorted(Comparator<? super Elt> comp) {
+	FTreeList<Elt> new_list = list.sorted(comp);
+	return new_list == list ? this : new FIndexedList<Elt>(new_list);
+    }
+
+    public FIndexedList<Elt> sorted() {
+	return sorted(null);
+    }
+
+    public boolean contains(Object elt) {
+	return indexOf(elt) >= 0;
+    }
+
+    /**
+     * Returns the index of the first occurrence of <code>elt</code> in the list, or
+     * -1 if it does not occur.  Takes O(log <i>n</i>) time.
+     */
+    public int indexOf(Object elt) {
+	// The index may also have labels of elements that `subseq' dropped, but those
+	// are all outside the range of our labels, as new labels are only ever made in
+	// gaps that have none of them.
+	FTreeSet<Label> elt_labels = index.get(elt);
+	if (elt_labels == null || labels.isEmpty()) return -1;
+	Label lbl = elt_labels.ceiling(labels.first());
+	if (lbl == null || lbl.compareTo(labels.last()) > 0) return -1;
+	else return labels.rankOf(lbl);
+    }
+
+    /**
+     * Returns the index of the last occurrence of <code>elt</code> in the list, or
+     * -1 if it does not occur.  Takes O(log <i>n</i>) time.
+     */
+    public int lastIndexOf(Object elt) {
+	FTreeSet<Label> elt_labels = index.get(elt);
+	if (elt_labels == null || labels.isEmpty()) return -1;
+	Label lbl = elt_labels.floor(labels.last());
+	if (lbl == null || lbl.compareTo(labels.first()) < 0) return -1;
+	else return labels.rankOf(lbl);
+    }
+
+    public boolean equals(Object obj) {
+	if (obj == this) return true;
+	else if (obj instanceof FIndexedList) return list.equals(((FIndexedList)obj).list);
+	else return list.equals(obj);
+    }
+
+    public int hashCode() {
+	return list.hashCode();
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private static final long serialVersionUID = 1L;
+
+    // The empty list can be a singleton.
+    private static final FIndexedList<?> EMPTY_INSTANCE = new FIndexedList<Object>();
+
+    /* Instance variables */
+    private final FTreeList<Elt> list;
+    // The label of each position, in order.
+    private final FTreeSet<Label> labels;
+    // All the labels in `index': those in `labels', and the stale ones of elements
+    // that `subseq' dropped.  New labels are made only where there are none of these.
+    private final FTreeSet<Label> all_labels;
+    // Maps each element to the set of its labels.
+    private final FHashMap<Object, FTreeSet<Label>> index;
+
+    private FIndexedList(FTreeList<Elt> _list, FTreeSet<Label> _labels,
+			 FTreeSet<Label> _all_labels, FHashMap<Object, FTreeSet<Label>> _index) {
+	list = _list;
+	labels = _labels;
+	all_labels = _all_labels;
+	index = _index;
+    }
+
+    // Like the constructor, except that if the list is empty, it discards the index.
+    private FIndexedList<Elt> make(FTreeList<Elt> _list, FTreeSet<Label> _labels,
+				   FTreeSet<Label> _all_labels,
+				   FHashMap<Object, FTreeSet<Label>> _index) {
+	if (_list.isEmpty()) return emptyList();
+	else return new FIndexedList<Elt>(_list, _labels, _all_labels, _index);
+    }
+
+    private static FHashMap<Object, FTreeSet<Label>>
+	indexWith(FHashMap<Object, FTreeSet<Label>> index, Object elt, Label lbl) {
+	FTreeSet<Label> elt_labels = index.get(elt);
+	if (elt_labels == null) elt_labels = FTreeSet.emptySet();
+	return index.with(elt, elt_labels.with(lbl));
+    }
+
+    private static FHashMap<Object, FTreeSet<Label>>
+	indexLess(FHashMap<Object, FTreeSet<Label>> index, Object elt, Label lbl) {
+	FTreeSet<Label> elt_labels = index.get(elt).less(lbl);
+	if (elt_labels.isEmpty()) return index.less(elt);
+	else return index.with(elt, elt_labels);
+    }
+
+    /* A label is a sequence of `long's, ordered lexicographically, a sequence being
+     * less than any longer one it is a prefix of.  There's always another label
+     * between any two, and, one `long' being enough for a very long time, below or
+     * above any one.  `between' never returns a prefix of its upper bound, so the
+     * children of its result are between the bounds too.  Once it has halved a gap
+     * down to nothing, it adds a `long' and steps away from the lower bound, or down
+     * from the upper one, so labels added repeatedly at the same place soon stop
+     * growing. */
+    private static final class Label implements Comparable<Label> {
+	private final long[] path;
+
+	Label(long x) {
+	    path = new long[] { x };
+	}
+
+	private Label(long[] _path) {
+	    path = _path;
+	}
+
+	public int compareTo(Label other) {
+	    long[] p1 = path, p2 = other.path;
+	    int len = Math.min(p1.length, p2.length);
+	    for (int i = 0; i < len; ++i)
+		if (p1[i] != p2[i]) return p1[i] < p2[i] ? -1 : 1;
+	    return p1.length - p2.length;
+	}
+
+	// Consistent with `compareTo'.
+	public boolean equals(Object obj) {
+	    return obj instanceof Label && Arrays.equals(path, ((Label)obj).path);
+	}
+
+	public int hashCode() {
+	    return Arrays.hashCode(path);
+	}
+
+	Label before() {
+	    return new Label(path[0] - 1);
+	}
+
+	Label after() {
+	    return new Label(path[0] + 1);
+	}
+
+	// Returns the `k'th of the labels that extend this one; they are all greater
+	// than it, and less than anything greater than it that it isn't a prefix of.
+	Label child(long k) {
+	    long[] p = Arrays.copyOf(path, path.length + 1);
+	    p[path.length] = k;
+	    return new Label(p);
+	}
+
+	// Returns a label greater than `lo' and less than `hi', given `lo < hi'.
+	static Label between(Label lo, Label hi) {
+	    long[] a = lo.path, b = hi.path;
+	    int i = 0;
+	    while (i < a.length && a[i] == b[i]) ++i;
+	    if (i == a.length) {
+		// `lo' is a prefix of `hi'; extend it with something less than the rest.
+		long[] p = Arrays.copyOf(b, i + 1);
+		p[i] = b[i] - 1;
+		return new Label(p);
+	    } else if (a[i] < b[i] - 1) {
+		long[] p = Arrays.copyOf(a, i + 1);
+		p[i] = (a[i] >> 1) + (b[i] >> 1) + (a[i] & b[i] & 1);	// overflow-free mean
+		return new Label(p);
+	    } else {
+		// No room at `i', but anything that starts with `a[i]' is less than `hi'.
+		long[] p = Arrays.copyOf(a, i + 2);
+		p[i + 1] = i + 1 < a.length ? a[i + 1] + 1 : 0;
+		return new Label(p);
+	    }
+	}
+    }
+
+    /**
+     * Serializes this list as just its elements; the labels and index are rebuilt by
+     * deserialization.
+     *
+     * @serialData Emits an <code>FTreeList</code> of the elements.
+     */
+    private Object writeReplace() {
+	return new SerialForm(list);
+    }
+
+    private void readObject(ObjectInputStream strm) throws InvalidObjectException {
+	throw new InvalidObjectException("FIndexedList is serialized as its elements");
+    }
+
+    private static final class SerialForm implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	SerialForm(FTreeList<?> _elts) {
+	    elts = _elts;
+	}
+	private final FTreeList<?> elts;
+	private Object readResolve() {
+	    return new FIndexedList<Object>(elts);
+	}
+    }
+
+}
@@ -0,0 +1,1325 @@
+/*
+ * FIntSet.java
+ *
+ * Generated from templates/FPrimSet.java.in by `make gen'; edit the template,
+ * not this file.
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * A functional set of <code>int</code>s.  It has the same structure as {@link
+ * FTreeSet} -- a weight-balanced binary tree with bounded-length arrays at the
+ * leaves -- but the leaves are <code>int[]</code>s and the nodes hold the values
+ * unboxed, so there are no <code>Integer</code> objects to allocate or to chase
+ * pointers to, and searching compares values directly rather than calling
+ * <code>compareTo</code>.  The elements are kept in numerical order.
+ *
+ * <p>The methods of <code>FSet&lt;Integer&gt;</code> box and unbox as necessary.
+ * There are also unboxed versions of <code>contains</code>, <code>with</code>, and
+ * <code>less</code>; <code>iterator</code> returns a
+ * <code>PrimitiveIterator.OfInt</code>; and <code>forEachInt</code> and
+ * <code>forEachIntWhile</code> take <code>IntConsumer</code> and
+ * <code>IntPredicate</code> respectively.
+ *
+ * <p>Time costs: <code>isEmpty</code>, <code>size</code>, and <code>arb</code> take
+ * O(1) (constant) time.  <code>contains</code>, <code>with</code>,
+ * <code>less</code>, <code>first</code>, and <code>last</code> take O(log <i>n</i>)
+ * time.  <code>union</code>, <code>intersection</code>, <code>difference</code>,
+ * <code>isSubset</code>, <code>isSuperset</code>, <code>equals</code>, and
+ * <code>compareTo</code> take O(n) (linear) time if the other set involved is also
+ * a <code>FIntSet</code>; otherwise, they take O(<i>n</i> log <i>n</i>) time.
+ *
+ * <p><code>FIntSet</code> does not accept the null element; <code>with(null)</code>
+ * throws <code>NullPointerException</code>.
+ *
+ * <p><code>FIntSet</code> implements {@link Serializable}.
+ *
+ * @author Scott L. Burson
+ * @see FSet
+ * @see FTreeSet
+ * @see FIntMap
+ */
+
+public final class FIntSet
+    extends AbstractFSet<Integer>
+    implements Comparable<FIntSet>, Serializable
+{
+
+    /**
+     * Returns an empty <code>FIntSet</code>.  Slightly more efficient than calling the
+     * constructor, because it returns a canonical instance.
+     */
+    public static FIntSet emptySet() {
+	return EMPTY_INSTANCE;
+    }
+
+    /**
+     * Constructs an empty <code>FIntSet</code>.
+     */
+    public FIntSet() {
+	tree = null;
+    }
+
+    /**
+     * Constructs a <code>FIntSet</code> whose elements are those of <code>elts</code>.
+     * They need not be in order, and may contain duplicates; a copy of the array is
+     * sorted, and the tree built from it bottom-up, rather than by inserting the
+     * elements one at a time.
+     *
+     * @param elts the elements (as an argument list or array)
+     */
+    public FIntSet(int... elts) {
+	tree = fromArray(elts.clone(), elts.length);
+    }
+
+    /**
+     * Constructs a <code>FIntSet</code> containing the same elements as
+     * <code>coll</code>.
+     *
+     * @param coll the collection to use the elements of
+     * @throws NullPointerException if <code>coll</code> contains null
+     */
+    public FIntSet(Collection<? extends Integer> coll) {
+	tree = fromCollection(coll);
+    }
+
+    private static Object fromCollection(Collection<? extends Integer> coll) {
+	if (coll instanceof FIntSet) return ((FIntSet)coll).tree;
+	else {
+	    int[] elts = new int[coll.size()];
+	    int n = 0;
+	    for (Integer e : coll) elts[n++] = e;
+	    return fromArray(elts, n);
+	}
+    }
+
+    public boolean isEmpty() {
+	return tree == null;
+    }
+
+    public int size() {
+	return treeSize(tree);
+    }
+
+    public Integer arb() {
+	if (tree == null) throw new NoSuchElementException();
+	else if (!(tree instanceof Node)) {
+	    int[] ary = (int[])tree;
+	    return ary[ary.length >> 1];
+	} else return ((Node)tree).element;
+    }
+
+    public boolean contains(Object elt) {
+	return elt instanceof Integer && contains(tree, (Integer)elt);
+    }
+
+    /**
+     * Returns true if this set contains <code>elt</code>.  Unlike
+     * <code>contains(Object)</code>, this doesn't box.
+     */
+    public boolean contains(int elt) {
+	return contains(tree, elt);
+    }
+
+    /**
+     * Returns the least element of the set.
+     *
+     * @throws NoSuchElementException if the set is empty
+     */
+    public int first() {
+	if (tree == null) throw new NoSuchElementException();
+	Object subtree = tree;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.element;
+	    subtree = node.left;
+	}
+	return ((int[])subtree)[0];
+    }
+
+    /**
+     * Returns the greatest element of the set.
+     *
+     * @throws NoSuchElementException if the set is empty
+     */
+    public int last() {
+	if (tree == null) throw new NoSuchElementException();
+	Object subtree = tree;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    if (node.right == null) return node.element;
+	    subtree = node.right;
+	}
+	int[] ary = (int[])subtree;
+	return ary[ary.length - 1];
+    }
+
+    /**
+     * Returns an iterator over the elements of the set, in increasing order.  Its
+     * <code>nextInt</code> method returns them without boxing.
+     */
+    public PrimitiveIterator.OfInt iterator() {
+	return new FISIterator(tree);
+    }
+
+    /**
+     * Returns a <code>Spliterator</code> over the set.  It splits exactly along the
+     * tree structure, and reports <code>IMMUTABLE</code>, <code>DISTINCT</code>,
+     * <code>NONNULL</code>, <code>SIZED</code>, <code>SUBSIZED</code>,
+     * <code>ORDERED</code>, and <code>SORTED</code> (in natural order).
+     */
+    public Spliterator<Integer> spliterator() {
+	return new FISSpliterator(null, tree);
+    }
+
+    /**
+     * Returns the elements of the set, in increasing order, as a new array.
+     */
+    public int[] toIntArray() {
+	int[] res = new int[size()];
+	toArray(tree, res, 0);
+	return res;
+    }
+
+    /**
+     * Calls <code>action</code> on each element of the set, in increasing order.
+     * This walks the tree recursively, and allocates nothing -- not even boxes for
+     * the elements.
+     */
+    public void forEachInt(IntConsumer action) {
+	if (action == null) throw new NullPointerException();
+	forEachInt(tree, action);
+    }
+
+    /**
+     * Calls <code>action</code> on each element of the set, in increasing order.
+     * Like <code>forEachInt</code>, but boxes the elements.
+     */
+    public void forEach(Consumer<? super Integer> action) {
+	if (action == null) throw new NullPointerException();
+	forEach(tree, action);
+    }
+
+    /**
+     * Calls <code>pred</code> on each element of the set, in increasing order, until
+     * it returns false.  Like <code>forEachInt</code>, allocates nothing.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every element
+     */
+    public boolean forEachIntWhile(IntPredicate pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachIntWhile(tree, pred);
+    }
+
+    /**
+     * Calls <code>pred</code> on each element of the set, in increasing order, until
+     * it returns false.  Like <code>forEachIntWhile</code>, but boxes the elements.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every element
+     */
+    public boolean forEachWhile(Predicate<? super Integer> pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachWhile(tree, pred);
+    }
+
+    /**
+     * Returns a set containing <code>elt</code> as well as the elements of this set.
+     *
+     * @throws NullPointerException if <code>elt</code> is null
+     */
+    public FIntSet with(Integer elt) {
+	return with((int)elt);
+    }
+
+    /**
+     * Returns a set containing <code>elt</code> as well as the elements of this set.
+     * Unlike <code>with(Integer)</code>, this doesn't box.
+     */
+    public FIntSet with(int elt) {
+	Object t = with(tree, elt);
+	if (t == tree) return this;
+	else return make(t);
+    }
+
+    public FIntSet less(Integer elt) {
+	if (elt == null) return this;
+	else return less((int)elt);
+    }
+
+    /**
+     * Returns a set containing the elements of this set other than <code>elt</code>.
+     * Unlike <code>less(Integer)</code>, this doesn't box.
+     */
+    public FIntSet less(int elt) {
+	Object t = less(tree, elt);
+	if (t == tree) return this;
+	else return make(t);
+    }
+
+    /**
+     * Returns the union of this set with <code>coll</code>.  That is, returns a set
+     * containing all elements that are in either this set, or <code>coll</code>, or
+     * both.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FIntSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the set to take the union with
+     * @return the union of the two sets
+     * @throws NullPointerException if <code>coll</code> contains null
+     */
+    public FIntSet union(Collection<? extends Integer> coll) {
+	if (coll == this || coll.isEmpty()) return this;
+	FIntSet other = convert(coll);
+	if (isEmpty()) return other;
+	else return make(union(tree, other.tree, MIN_VALUE, MAX_VALUE));
+    }
+
+    /**
+     * Returns the intersection of this set with <code>coll</code>.  That is, returns a
+     * set containing all elements that are in both this set and <code>coll</code>.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FIntSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the set to take the intersection with
+     * @return the intersection of the two sets
+     */
+    public FIntSet intersection(Collection<? extends Integer> coll) {
+	if (coll == this) return this;
+	else if (isEmpty() || coll.isEmpty()) return EMPTY_INSTANCE;
+	else if (coll instanceof FIntSet)
+	    return make(intersection(tree, ((FIntSet)coll).tree, MIN_VALUE, MAX_VALUE));
+	else {
+	    // Don't convert `coll'; it may contain nulls or non-Integers.
+	    Object t = null;
+	    for (Object e : coll)
+		if (e instanceof Integer && contains(tree, (Integer)e)) t = with(t, (Integer)e);
+	    return make(t);
+	}
+    }
+
+    /**
+     * Returns the difference of this set less <code>coll</code>.  That is, returns a
+     * set containing all elements that are in this set and not in <code>coll</code>.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FIntSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the set to take the difference with
+     * @return the difference of the two sets (this set less <code>coll</code>)
+     */
+    public FIntSet difference(Collection<? extends Integer> coll) {
+	if (coll == this) return EMPTY_INSTANCE;
+	else if (isEmpty() || coll.isEmpty()) return this;
+	else if (coll instanceof FIntSet)
+	    return make(difference(tree, ((FIntSet)coll).tree, MIN_VALUE, MAX_VALUE));
+	else {
+	    Object t = tree;
+	    for (Object e : coll)
+		if (e instanceof Integer) t = less(t, (Integer)e);
+	    return make(t);
+	}
+    }
+
+    /**
+     * Returns true if this set is a subset of <code>coll</code>.  That is, returns
+     * true if <code>coll</code> contains all elements of this set.  The inclusion need
+     * not be proper; that is, this method returns true if the two sets are equal.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FIntSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the collection to compare against
+     * @return whether this set is a subset of <code>coll</code>
+     */
+    public boolean isSubset(Collection<?> coll) {
+	if (coll == this) return true;
+	else if (size() > coll.size()) return false;
+	else if (coll instanceof FIntSet)
+	    return isSubset(tree, ((FIntSet)coll).tree, MIN_VALUE, MAX_VALUE);
+	else {
+	    for (Integer e : this)
+		if (!coll.contains(e)) return false;
+	    return true;
+	}
+    }
+
+    /**
+     * Returns true if this set is a superset of <code>coll</code>.  That is, returns
+     * true if this set contains all elements of <code>coll</code>.  The inclusion need
+     * not be proper; that is, this method returns true if the two sets are equal.
+     * (Synonym for <code>containsAll</code>.)
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FIntSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the collection to compare against
+     * @return whether this set is a superset of <code>coll</code>
+     */
+    public boolean isSuperset(Collection<?> coll) {
+	if (coll == this) return true;
+	else if (size() < coll.size()) return false;
+	else if (coll instanceof FIntSet)
+	    return isSubset(((FIntSet)coll).tree, tree, MIN_VALUE, MAX_VALUE);
+	else {
+	    for (Object e : coll)
+		if (!contains(e)) return false;
+	    return true;
+	}
+    }
+
+    public SetDiff<Integer> diff(FSet<? extends Integer> other) {
+	return SetDiff.collect(this, other, emptySet());
+    }
+
+    /**
+     * See the documentation for {@link Comparable#compareTo}.  As with
+     * <code>FTreeSet</code>, a smaller set is less than a larger one; sets of the
+     * same size are compared lexicographically.
+     */
+    public int compareTo(FIntSet other) {
+	if (other == this || other.tree == tree) return 0;
+	int size1 = size(), size2 = other.size();
+	if (size1 < size2) return -1;
+	else if (size1 > size2) return 1;
+	else return compareTo(tree, other.tree, MIN_VALUE, MAX_VALUE);
+    }
+
+    public boolean equals(Object obj) {
+	if (obj == this) return true;
+	else if (obj instanceof FIntSet) {
+	    FIntSet other = (FIntSet)obj;
+	    return size() == other.size() && isSubset(tree, other.tree, MIN_VALUE, MAX_VALUE);
+	} else if (!(obj instanceof Collection)) return false;
+	else {
+	    Collection<?> coll = (Collection<?>)obj;
+	    if (size() != coll.size()) return false;
+	    for (Object e : coll)
+		if (!contains(e)) return false;
+	    return true;
+	}
+    }
+
+    // Overriding this just to provide a slightly more efficient implementation.
+    // The default one (in `AbstractSet') uses the iterator.  But we have to compute
+    // the same value here, viz., the sum of the hash codes of the elements.
+    public int hashCode() {
+	if (hash_code == Integer.MIN_VALUE) hash_code = hashCode(tree);
+	return hash_code;
+    }
+
+    // For debugging.
+    /*pkg*/ String dump() {
+	return dump(tree);
+    }
+
+    /*pkg*/ boolean verify() {
+	return verify(tree, MIN_VALUE, MAX_VALUE);
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private static final long serialVersionUID = 1L;
+
+    // This is `FTreeSet''s tree, specialized.  Since two elements can't be equivalent
+    // without being equal, there are no `EquivalentSet's; and since every value
+    // is comparable to every other, there's no need for distinguished infinities:
+    // the bounds passed to the hedge algorithms are inclusive, and start out as
+    // `MIN_VALUE' and `MAX_VALUE'.  (When splitting at a node element that is equal
+    // to a bound, the range on that side is empty, so we never need to compute a
+    // bound that would overflow.)
+
+    private static final FIntSet EMPTY_INSTANCE = new FIntSet();
+
+    /* Instance variables */
+    // This has package access for benefit of `FIntMap.restricted{To,From}'.
+    /*pkg*/ transient final Object tree;	// a subtree (see below)
+    private transient int hash_code = Integer.MIN_VALUE;	// cache
+
+    // The 'int' parameter is just to distinguish it from the public constructors.
+    private FIntSet(int x, Object _tree) {
+	tree = _tree;
+    }
+
+    // This has package access so `FIntMap.domain' can use it.
+    /*pkg*/ static FIntSet make(Object tree) {
+	if (tree == null) return EMPTY_INSTANCE;
+	else return new FIntSet(42, tree);
+    }
+
+    private static FIntSet convert(Collection<? extends Integer> coll) {
+	if (coll instanceof FIntSet) return (FIntSet)coll;
+	else return new FIntSet(coll);
+    }
+
+    private static final int MIN_VALUE = Integer.MIN_VALUE;
+    private static final int MAX_VALUE = Integer.MAX_VALUE;
+
+    /* The threshold length above which tree nodes will be built.  This is twice
+     * `FTreeSet''s; a `int[]' of this length is still very compact, and searching it
+     * is cheap. */
+    private static final int MAX_LEAF_ARRAY_LENGTH = 16;
+
+    /* The factor by which one subtree may outweigh another.  See Adams.  Don't
+     * change this unless you understand his analysis. */
+    private static final int BALANCE_FACTOR = 4;
+
+    /* A subtree can be either null, a `Node', or a leaf (a `int[]', in increasing
+     * order). */
+    // This has package access for benefit of `FIntMap'.
+    /*pkg*/ static final class Node {
+	Node(int _size, int _element, Object _left, Object _right) {
+	    size = _size;
+	    element = _element;
+	    left = _left;
+	    right = _right;
+	}
+	/*pkg*/ final int size;		// the number of elements in the subtree
+	/*pkg*/ final int element;
+	/*pkg*/ final Object left;	// a subtree
+	/*pkg*/ final Object right;	// a subtree
+	private int hash_code = Integer.MIN_VALUE;	// cache of `hashCode(Object)'
+    }
+
+    // This has package access so `FIntMap.domain' can use it.
+    /*pkg*/ static Node makeNode(int elt, Object left, Object right) {
+	return new Node(treeSize(left) + treeSize(right) + 1, elt, left, right);
+    }
+
+    private static int treeSize(Object subtree) {
+	if (subtree == null) return 0;
+	else if (!(subtree instanceof Node)) return ((int[])subtree).length;
+	else return ((Node)subtree).size;
+    }
+
+    // Builds a tree from the first `n' elements of `elts', which it may reorder.
+    private static Object fromArray(int[] elts, int n) {
+	// Already-sorted input, e.g. from another sorted collection, is common enough
+	// to be worth checking for.
+	boolean sorted = true;
+	for (int i = 1; i < n && sorted; ++i)
+	    if (elts[i - 1] > elts[i]) sorted = false;
+	if (!sorted) Arrays.sort(elts, 0, n);
+	int m = 0;
+	for (int i = 0; i < n; ++i)
+	    if (m == 0 || elts[i] != elts[m - 1]) elts[m++] = elts[i];
+	return buildTree(elts, 0, m);
+    }
+
+    // Builds a balanced tree, bottom-up, from `elts[lo..hi)', which must be in strictly
+    // increasing order.
+    private static Object buildTree(int[] elts, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if (hi - lo <= MAX_LEAF_ARRAY_LENGTH) return Arrays.copyOfRange(elts, lo, hi);
+	else {
+	    int mid = (lo + hi) >>> 1;
+	    return makeNode(elts[mid], buildTree(elts, lo, mid), buildTree(elts, mid + 1, hi));
+	}
+    }
+
+    private static void forEachInt(Object subtree, IntConsumer action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i) action.accept(ary[i]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEachInt(node.left, action);
+	    action.accept(node.element);
+	    forEachInt(node.right, action);
+	}
+    }
+
+    private static void forEach(Object subtree, Consumer<? super Integer> action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i) action.accept(ary[i]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEach(node.left, action);
+	    action.accept(node.element);
+	    forEach(node.right, action);
+	}
+    }
+
+    private static boolean forEachIntWhile(Object subtree, IntPredicate pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i)
+		if (!pred.test(ary[i])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    return forEachIntWhile(node.left, pred) && pred.test(node.element) &&
+		   forEachIntWhile(node.right, pred);
+	}
+    }
+
+    private static boolean forEachWhile(Object subtree, Predicate<? super Integer> pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i)
+		if (!pred.test(ary[i])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    return forEachWhile(node.left, pred) && pred.test(node.element) &&
+		   forEachWhile(node.right, pred);
+	}
+    }
+
+    private static int toArray(Object subtree, int[] res, int idx) {
+	if (subtree == null) return idx;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    System.arraycopy(ary, 0, res, idx, ary.length);
+	    return idx + ary.length;
+	} else {
+	    Node node = (Node)subtree;
+	    idx = toArray(node.left, res, idx);
+	    res[idx++] = node.element;
+	    return toArray(node.right, res, idx);
+	}
+    }
+
+    // This has package access for benefit of `FIntMap.restricted{To,From}'.
+    /*pkg*/ static boolean contains(Object subtree, int elt) {
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    int nelt = node.element;
+	    if (elt == nelt) return true;
+	    else subtree = elt < nelt ? node.left : node.right;
+	}
+	return subtree != null && Arrays.binarySearch((int[])subtree, elt) >= 0;
+    }
+
+    private static Object with(Object subtree, int elt) {
+	if (subtree == null) {
+	    int[] a = new int[1];
+	    a[0] = elt;
+	    return a;
+	} else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    int idx = Arrays.binarySearch(ary, elt);
+	    if (idx >= 0) return subtree;
+	    idx = -idx - 1;
+	    if (ary.length < MAX_LEAF_ARRAY_LENGTH) return insert(ary, idx, elt);
+	    else return makeNode(elt, subseq(ary, 0, idx), subseq(ary, idx, ary.length));
+	} else {
+	    Node node = (Node)subtree;
+	    int nelt = node.element;
+	    if (elt == nelt) return subtree;
+	    else if (elt < nelt) {
+		Object new_left = with(node.left, elt);
+		if (new_left == node.left) return subtree;
+		else return buildNode(nelt, new_left, node.right);
+	    } else {
+		Object new_right = with(node.right, elt);
+		if (new_right == node.right) return subtree;
+		else return buildNode(nelt, node.left, new_right);
+	    }
+	}
+    }
+
+    private static Object less(Object subtree, int elt) {
+	if (subtree == null) return null;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    int idx = Arrays.binarySearch(ary, elt);
+	    if (idx < 0) return subtree;
+	    else return remove(ary, idx);
+	} else {
+	    Node node = (Node)subtree;
+	    int nelt = node.element;
+	    if (elt == nelt) return join(node.left, node.right);
+	    else if (elt < nelt) {
+		Object new_left = less(node.left, elt);
+		if (new_left == node.left) return subtree;
+		else return buildNode(nelt, new_left, node.right);
+	    } else {
+		Object new_right = less(node.right, elt);
+		if (new_right == node.right) return subtree;
+		else return buildNode(nelt, node.left, new_right);
+	    }
+	}
+    }
+
+    private static int min(Object subtree) {
+	if (!(subtree instanceof Node)) return ((int[])subtree)[0];
+	else {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.element;
+	    else return min(node.left);
+	}
+    }
+
+    /* Assumes `subtree' is nonempty. */
+    private static Object lessMin(Object subtree) {
+	if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    return subseq(ary, 1, ary.length);
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.right;
+	    else return concat(node.element, lessMin(node.left), node.right);
+	}
+    }
+
+    /* In the hedge algorithms below, the root of any `Node' passed as `subtree1' is
+     * within [`lo', `hi'], since the callers `trim'; leaves may extend beyond the
+     * bounds, and the leaf routines clip them. */
+
+    private static Object union(Object subtree1, Object subtree2, int lo, int hi) {
+	if (subtree1 == subtree2 || subtree2 == null) return split(subtree1, lo, hi);
+	else if (subtree1 == null) return split(subtree2, lo, hi);
+	else if (!(subtree1 instanceof Node)) {
+	    if (!(subtree2 instanceof Node))
+		return union((int[])subtree1, (int[])subtree2, lo, hi);
+	    else return union(subtree2, subtree1, lo, hi);
+	} else {
+	    Node n1 = (Node)subtree1;
+	    int elt1 = n1.element;
+	    Object new_left = elt1 == lo ? null :
+		union(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1), lo, elt1 - 1);
+	    Object new_right = elt1 == hi ? null :
+		union(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi), elt1 + 1, hi);
+	    return concat(elt1, new_left, new_right);
+	}
+    }
+
+    private static Object intersection(Object subtree1, Object subtree2, int lo, int hi) {
+	if (subtree1 == subtree2) return split(subtree1, lo, hi);
+	else if (subtree1 == null || subtree2 == null) return null;
+	else if (!(subtree1 instanceof Node)) {
+	    if (!(subtree2 instanceof Node))
+		return intersection((int[])subtree1, (int[])subtree2, lo, hi);
+	    else return intersection(trim(subtree2, lo, hi), subtree1, lo, hi);
+	} else {
+	    Node n1 = (Node)subtree1;
+	    int elt1 = n1.element;
+	    Object new_left = elt1 == lo ? null :
+		intersection(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1),
+			     lo, elt1 - 1);
+	    Object new_right = elt1 == hi ? null :
+		intersection(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi),
+			     elt1 + 1, hi);
+	    if (contains(subtree2, elt1)) return concat(elt1, new_left, new_right);
+	    else return join(new_left, new_right);
+	}
+    }
+
+    private static Object difference(Object subtree1, Object subtree2, int lo, int hi) {
+	if (subtree1 == null || subtree1 == subtree2) return null;
+	else if (subtree2 == null) return split(subtree1, lo, hi);
+	else if (!(subtree1 instanceof Node)) {
+	    if (!(subtree2 instanceof Node))
+		return difference((int[])subtree1, (int[])subtree2, lo, hi);
+	    else {
+		// Can't use the reversing trick here because difference is not
+		// commutative.  `subtree2' has been trimmed too.
+		Node n2 = (Node)subtree2;
+		int elt2 = n2.element;
+		Object new_left = elt2 == lo ? null :
+		    difference(trim(subtree1, lo, elt2 - 1), trim(n2.left, lo, elt2 - 1),
+			       lo, elt2 - 1);
+		Object new_right = elt2 == hi ? null :
+		    difference(trim(subtree1, elt2 + 1, hi), trim(n2.right, elt2 + 1, hi),
+			       elt2 + 1, hi);
+		return join(new_left, new_right);
+	    }
+	} else {
+	    Node n1 = (Node)subtree1;
+	    int elt1 = n1.element;
+	    Object new_left = elt1 == lo ? null :
+		difference(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1),
+			   lo, elt1 - 1);
+	    Object new_right = elt1 == hi ? null :
+		difference(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi),
+			   elt1 + 1, hi);
+	    if (contains(subtree2, elt1)) return join(new_left, new_right);
+	    else return concat(elt1, new_left, new_right);
+	}
+    }
+
+    private static boolean isSubset(Object subtree1, Object subtree2, int lo, int hi) {
+	if (subtree1 == subtree2 || subtree1 == null) return true;
+	else if (!(subtree1 instanceof Node)) {
+	    if (subtree2 == null || !(subtree2 instanceof Node))
+		return isSubset((int[])subtree1, (int[])subtree2, lo, hi);
+	    else {
+		Node n2 = (Node)subtree2;
+		int elt2 = n2.element;
+		return (elt2 == lo ||
+			isSubset(trim(subtree1, lo, elt2 - 1), trim(n2.left, lo, elt2 - 1),
+				 lo, elt2 - 1)) &&
+		       (elt2 == hi ||
+			isSubset(trim(subtree1, elt2 + 1, hi), trim(n2.right, elt2 + 1, hi),
+				 elt2 + 1, hi));
+	    }
+	} else if (subtree2 == null) return false;
+	else {
+	    Node n1 = (Node)subtree1;
+	    int elt1 = n1.element;
+	    return contains(subtree2, elt1) &&
+		   (elt1 == lo ||
+		    isSubset(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1),
+			     lo, elt1 - 1)) &&
+		   (elt1 == hi ||
+		    isSubset(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi),
+			     elt1 + 1, hi));
+	}
+    }
+
+    // Compares the elements of the two subtrees that are within [`lo', `hi'], in
+    // order, as `compareTo' does.  Since the sets are the same size, the first
+    // difference is the least element that is in only one of them, and the set that
+    // has it is the lesser.  Subtrees the two share are skipped.
+    private static int compareTo(Object subtree1, Object subtree2, int lo, int hi) {
+	if (subtree1 == subtree2) return 0;
+	else if (subtree1 instanceof Node) {
+	    Node n1 = (Node)subtree1;
+	    int elt1 = n1.element;
+	    int comp_res = elt1 == lo ? 0 :
+			   compareTo(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1),
+				     lo, elt1 - 1);
+	    if (comp_res != 0) return comp_res;
+	    else if (!contains(subtree2, elt1)) return -1;
+	    else if (elt1 == hi) return 0;
+	    else return compareTo(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi),
+				  elt1 + 1, hi);
+	} else if (subtree2 instanceof Node) {
+	    Node n2 = (Node)subtree2;
+	    int elt2 = n2.element;
+	    int comp_res = elt2 == lo ? 0 :
+			   compareTo(trim(subtree1, lo, elt2 - 1), trim(n2.left, lo, elt2 - 1),
+				     lo, elt2 - 1);
+	    if (comp_res != 0) return comp_res;
+	    else if (!contains(subtree1, elt2)) return 1;
+	    else if (elt2 == hi) return 0;
+	    else return compareTo(trim(subtree1, elt2 + 1, hi), trim(n2.right, elt2 + 1, hi),
+				  elt2 + 1, hi);
+	} else return compareTo((int[])subtree1, (int[])subtree2, lo, hi);
+    }
+
+    // Returns a new tree all of whose elements are within [`lo', `hi'].  (Contrast
+    // `trim'.)
+    private static Object split(Object subtree, int lo, int hi) {
+	if (subtree == null) return null;
+	else if (lo == MIN_VALUE && hi == MAX_VALUE) return subtree;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    int len = ary.length;
+	    int lo_split = lo == MIN_VALUE ? 0 : searchLo(ary, lo);
+	    int hi_split = hi == MAX_VALUE ? len : searchHi(ary, hi);
+	    if (lo_split >= hi_split) return null;
+	    else if (lo_split == 0 && hi_split == len) return subtree;
+	    else return subseq(ary, lo_split, hi_split);
+	} else {
+	    Node node = (Node)subtree;
+	    int nelt = node.element;
+	    if (nelt < lo) return split(node.right, lo, hi);
+	    else if (nelt > hi) return split(node.left, lo, hi);
+	    else {
+		Object new_left = split(node.left, lo, MAX_VALUE);
+		Object new_right = split(node.right, MIN_VALUE, hi);
+		if (new_left == node.left && new_right == node.right) return subtree;
+		else return concat(nelt, new_left, new_right);
+	    }
+	}
+    }
+
+    // Returns the largest subtree of `subtree' whose root node is within [`lo', `hi'],
+    // or a leaf that overlaps that range.  (Contrast `split'.)
+    // This has package access for benefit of `FIntMap.restricted{To,From}'.
+    /*pkg*/ static Object trim(Object subtree, int lo, int hi) {
+	if (subtree == null) return null;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    // If the array is completely out of range, drop it.
+	    if (ary[ary.length - 1] < lo || ary[0] > hi) return null;
+	    else return subtree;
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.element < lo) return trim(node.right, lo, hi);
+	    else if (node.element > hi) return trim(node.left, lo, hi);
+	    else return subtree;
+	}
+    }
+
+    // Assumes that all elements of `left' are less than `elt', and all elements
+    // of `right' are greater than `elt'; returns a new tree containing all these
+    // elements.  This does more rebalancing than `buildNode', which otherwise
+    // has the same contract.
+    private static Object concat(int elt, Object left, Object right) {
+	if (left == null) return with(right, elt);
+	else if (right == null) return with(left, elt);
+	else {
+	    int sizl = treeSize(left);
+	    int sizr = treeSize(right);
+	    if (left instanceof Node && sizl > sizr * BALANCE_FACTOR) {
+		Node l = (Node)left;
+		return buildNode(l.element, l.left, concat(elt, l.right, right));
+	    } else if (right instanceof Node && sizr > sizl * BALANCE_FACTOR) {
+		Node r = (Node)right;
+		return buildNode(r.element, concat(elt, left, r.left), r.right);
+	    } else return buildNode(elt, left, right);
+	}
+    }
+
+    // Returns the union of `left' and `right' under the assumption that all values
+    // in `left' are less than any value in `right'.
+    private static Object join(Object left, Object right) {
+	if (left == null) return right;
+	else if (right == null) return left;
+	else return concat(min(right), left, lessMin(right));
+    }
+
+    private static Object buildNode(int elt, Object left, Object right) {
+	if ((left == null || !(left instanceof Node)) &&
+	    (right == null || !(right instanceof Node))) {
+	    int[] lary = (int[])left, rary = (int[])right;
+	    if ((left == null ? 0 : lary.length) +
+		(right == null ? 0 : rary.length) < MAX_LEAF_ARRAY_LENGTH)
+		return concat(elt, lary, rary);
+	    else return makeNode(elt, left, right);
+	} else {
+	    int sizl = treeSize(left);
+	    int sizr = treeSize(right);
+	    // This code is subtly different from Adams' in order to create more
+	    // opportunities to coalesce adjacent leaf arrays.
+	    if (right instanceof Node && sizr > sizl * BALANCE_FACTOR) {
+		Node r = (Node)right;
+		Object rl = r.left;
+		Object rr = r.right;
+		if (!(rl instanceof Node) || treeSize(rl) <= treeSize(rr))
+		    return makeNode(r.element, buildNode(elt, left, rl), rr);
+		else {
+		    Node rln = (Node)rl;
+		    return makeNode(rln.element, buildNode(elt, left, rln.left),
+				    buildNode(r.element, rln.right, rr));
+		}
+	    } else if (left instanceof Node && sizl > sizr * BALANCE_FACTOR) {
+		Node l = (Node)left;
+		Object ll = l.left;
+		Object lr = l.right;
+		if (!(lr instanceof Node) || treeSize(lr) <= treeSize(ll))
+		    return makeNode(l.element, ll, buildNode(elt, lr, right));
+		else {
+		    Node lrn = (Node)lr;
+		    return makeNode(lrn.element, buildNode(l.element, ll, lrn.left),
+				    buildNode(elt, lrn.right, right));
+		}
+	    } else return makeNode(elt, left, right);
+	}
+    }
+
+    private static int hashCode(Object subtree) {
+	if (subtree == null) return 0;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    int hash = 0;
+	    for (int i = 0, len = ary.length; i < len; ++i) hash += Integer.hashCode(ary[i]);
+	    return hash;
+	} else {
+	    // Each node caches the hash code of its subtree, so a set made from one whose
+	    // hash code has already been computed gets its own in O(log n) time.
+	    Node node = (Node)subtree;
+	    int hash = node.hash_code;
+	    if (hash == Integer.MIN_VALUE) {
+		hash = hashCode(node.left) + Integer.hashCode(node.element) + hashCode(node.right);
+		node.hash_code = hash;
+	    }
+	    return hash;
+	}
+    }
+
+    private static String dump(Object subtree) {
+	if (subtree == null) return "[null]";
+	else if (!(subtree instanceof Node)) return Arrays.toString((int[])subtree);
+	else {
+	    Node node = (Node)subtree;
+	    return "(" + node.size + ", " + node.element + ";\n" +
+		indent(dump(node.left), "  ") + ",\n" +
+		indent(dump(node.right), "  ") + ")";
+	}
+    }
+
+    private static String indent(String str, String prefix) {
+	StringBuffer res = new StringBuffer(prefix);
+	for (int i = 0, len = str.length(); i < len; ++i) {
+	    char c = str.charAt(i);
+	    res.append(c);
+	    if (c == '\n' && i < len - 1) res.append(prefix);
+	}
+	return res.toString();
+    }
+
+    // The bounds are inclusive.
+    private static boolean verify(Object subtree, int lo, int hi) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    int[] ary = (int[])subtree;
+	    int len = ary.length;
+	    if (len == 0 || len > MAX_LEAF_ARRAY_LENGTH) return false;
+	    if (ary[0] < lo || ary[len - 1] > hi) return false;
+	    for (int i = 1; i < len; ++i)
+		if (ary[i - 1] >= ary[i]) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    int elt = node.element;
+	    int sizl = treeSize(node.left);
+	    int sizr = treeSize(node.right);
+	    if (node.size != sizl + sizr + 1) return false;
+	    if (elt < lo || elt > hi) return false;
+	    // Small subtrees may be unbalanced, because of our array-splitting
+	    // heuristic.  As long as the size of any subtree that can be unbalanced is
+	    // strictly bounded, we're still okay.
+	    int max_unbal = MAX_LEAF_ARRAY_LENGTH >> 1;
+	    if ((sizr > max_unbal && sizl > sizr * BALANCE_FACTOR) ||
+		(sizl > max_unbal && sizr > sizl * BALANCE_FACTOR))
+		return false;
+	    return (elt == lo ? node.left == null : verify(node.left, lo, elt - 1)) &&
+		   (elt == hi ? node.right == null : verify(node.right, elt + 1, hi));
+	}
+    }
+
+    /****************/
+    /* Internal array manipulation routines.  These all assume their index
+     * parameters are within bounds.  Of course, despite what the names of some
+     * might suggest, they all make new arrays. */
+
+    private static int[] concat(int elt, int[] left, int[] right) {
+	int llen = (left == null ? 0 : left.length);
+	int rlen = (right == null ? 0 : right.length);
+	int[] a = new int[llen + 1 + rlen];
+	if (llen > 0) System.arraycopy(left, 0, a, 0, llen);
+	a[llen] = elt;
+	if (rlen > 0) System.arraycopy(right, 0, a, llen + 1, rlen);
+	return a;
+    }
+
+    private static int[] insert(int[] ary, int idx, int elt) {
+	int[] a = new int[ary.length + 1];
+	System.arraycopy(ary, 0, a, 0, idx);
+	a[idx] = elt;
+	System.arraycopy(ary, idx, a, idx + 1, ary.length - idx);
+	return a;
+    }
+
+    private static int[] remove(int[] ary, int idx) {
+	int len = ary.length - 1;
+	if (len == 0) return null;
+	else {
+	    int[] a = new int[len];
+	    System.arraycopy(ary, 0, a, 0, idx);
+	    System.arraycopy(ary, idx + 1, a, idx, len - idx);
+	    return a;
+	}
+    }
+
+    private static int[] subseq(int[] ary, int lo, int hi) {
+	if (lo >= hi) return null;
+	else return Arrays.copyOfRange(ary, lo, hi);
+    }
+
+    // Returns the index of the first member of `ary' that is not less than `lo'.
+    private static int searchLo(int[] ary, int lo) {
+	int idx = Arrays.binarySearch(ary, lo);
+	return idx >= 0 ? idx : -idx - 1;
+    }
+
+    // Returns the index just past the last member of `ary' that is not greater than
+    // `hi'.
+    private static int searchHi(int[] ary, int hi) {
+	int idx = Arrays.binarySearch(ary, hi);
+	return idx >= 0 ? idx + 1 : -idx - 1;
+    }
+
+    // Compares the elements of `ary1' and `ary2' that are within [`lo', `hi'], in
+    // order; either array may be null.
+    private static int compareTo(int[] ary1, int[] ary2, int lo, int hi) {
+	int i1 = 0, i2 = 0, len1 = 0, len2 = 0;
+	if (ary1 != null) {
+	    i1 = searchLo(ary1, lo);
+	    len1 = searchHi(ary1, hi);
+	}
+	if (ary2 != null) {
+	    i2 = searchLo(ary2, lo);
+	    len2 = searchHi(ary2, hi);
+	}
+	for (; i1 < len1 && i2 < len2; ++i1, ++i2) {
+	    int e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 != e2) return e1 < e2 ? -1 : 1;
+	}
+	return i1 < len1 ? -1 : i2 < len2 ? 1 : 0;
+    }
+
+    // Does a merge-union on `ary1' and `ary2', omitting any elements not within [`lo',
+    // `hi'].  If the result is too long to be a leaf, splits it and makes a node.
+    private static Object union(int[] ary1, int[] ary2, int lo, int hi) {
+	int i1 = searchLo(ary1, lo), i2 = searchLo(ary2, lo);
+	int len1 = searchHi(ary1, hi), len2 = searchHi(ary2, hi);
+	int[] res = new int[(len1 - i1) + (len2 - i2)];
+	int n = 0;
+	while (i1 < len1 && i2 < len2) {
+	    int e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 < e2) {
+		res[n++] = e1;
+		++i1;
+	    } else if (e1 > e2) {
+		res[n++] = e2;
+		++i2;
+	    } else {
+		res[n++] = e1;
+		++i1;
+		++i2;
+	    }
+	}
+	while (i1 < len1) res[n++] = ary1[i1++];
+	while (i2 < len2) res[n++] = ary2[i2++];
+	if (n == 0) return null;
+	else if (n > MAX_LEAF_ARRAY_LENGTH) {
+	    int idx = n >> 1;
+	    return makeNode(res[idx], subseq(res, 0, idx), subseq(res, idx + 1, n));
+	} else if (n < res.length) return Arrays.copyOf(res, n);
+	else return res;
+    }
+
+    private static int[] intersection(int[] ary1, int[] ary2, int lo, int hi) {
+	int i1 = searchLo(ary1, lo), i2 = 0, len1 = searchHi(ary1, hi), len2 = ary2.length;
+	int[] res = new int[Math.max(len1 - i1, 0)];
+	int n = 0;
+	while (i1 < len1 && i2 < len2) {
+	    int e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 < e2) ++i1;
+	    else if (e1 > e2) ++i2;
+	    else {
+		res[n++] = e1;
+		++i1;
+		++i2;
+	    }
+	}
+	if (n == 0) return null;
+	else if (n < res.length) return Arrays.copyOf(res, n);
+	else return res;
+    }
+
+    private static int[] difference(int[] ary1, int[] ary2, int lo, int hi) {
+	int i1 = searchLo(ary1, lo), i2 = 0, len1 = searchHi(ary1, hi), len2 = ary2.length;
+	int[] res = new int[Math.max(len1 - i1, 0)];
+	int n = 0;
+	while (i1 < len1 && i2 < len2) {
+	    int e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 < e2) {
+		res[n++] = e1;
+		++i1;
+	    } else if (e1 > e2) ++i2;
+	    else {
+		++i1;
+		++i2;
+	    }
+	}
+	while (i1 < len1) res[n++] = ary1[i1++];
+	if (n == 0) return null;
+	else if (n < res.length) return Arrays.copyOf(res, n);
+	else return res;
+    }
+
+    // `ary2' may be null.
+    private static boolean isSubset(int[] ary1, int[] ary2, int lo, int hi) {
+	int i1 = searchLo(ary1, lo), i2 = 0, len1 = searchHi(ary1, hi);
+	int len2 = ary2 != null ? ary2.length : 0;
+	while (i1 < len1 && i2 < len2) {
+	    int e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 < e2) return false;
+	    else if (e1 > e2) ++i2;
+	    else {
+		++i1;
+		++i2;
+	    }
+	}
+	return !(i1 < len1);
+    }
+
+    /****************/
+    // Iterator class
+
+    private static final class FISIterator implements PrimitiveIterator.OfInt {
+
+	private static final class IteratorNode {
+	    IteratorNode (Object _subtree, int _index, IteratorNode _parent) {
+		subtree = _subtree;
+		index = _index;
+		parent = _parent;
+	    }
+	    private final Object subtree;
+	    private int index;
+	    private final IteratorNode parent;
+	}
+
+	private IteratorNode inode;
+
+	private FISIterator(Object subtree) {
+	    inode = new IteratorNode(subtree, 0, null);
+	    canonicalize();
+	}
+
+	private void canonicalize() {
+	    while (true) {
+		if (inode == null) break;
+		else if (inode.subtree == null) {
+		    inode = inode.parent;
+		    if (inode == null) break;
+		    else ++inode.index;
+		} else if (!(inode.subtree instanceof Node)) {
+		    if (inode.index < ((int[])inode.subtree).length) break;
+		    else {
+			inode = inode.parent;
+			if (inode == null) break;
+			else ++inode.index;
+		    }
+		} else {
+		    Node node = (Node)inode.subtree;
+		    if (inode.index == 0) inode = new IteratorNode(node.left, 0, inode);
+		    else if (inode.index == 2)
+			inode = new IteratorNode(node.right, 0, inode.parent);
+		    else break;
+		}
+	    }
+	}
+
+	public boolean hasNext() {
+	    return inode != null;
+	}
+
+	public int nextInt() {
+	    int elt;
+	    if (inode == null) throw new NoSuchElementException();
+	    else if (!(inode.subtree instanceof Node))
+		elt = ((int[])inode.subtree)[inode.index];
+	    else elt = ((Node)inode.subtree).element;
+	    inode.index++;
+	    canonicalize();
+	    return elt;
+	}
+
+	public void remove () {
+	    throw new UnsupportedOperationException();
+	}
+    }
+
+    private static final class FISSpliterator extends TreeSpliterator<Integer> {
+	FISSpliterator(Object pending, Object subtree) {
+	    super(pending, subtree,
+		  IMMUTABLE | DISTINCT | NONNULL | SIZED | SUBSIZED | ORDERED | SORTED);
+	}
+	public Comparator<? super Integer> getComparator() { return null; }
+	protected TreeSpliterator<Integer> make(Object pending, Object subtree) {
+	    return new FISSpliterator(pending, subtree);
+	}
+	protected boolean isNode(Object subtree) { return subtree instanceof Node; }
+	protected Object left(Object node) { return ((Node)node).left; }
+	protected Object right(Object node) { return ((Node)node).right; }
+	protected int subtreeSize(Object subtree) { return treeSize(subtree); }
+	protected int nodeElementCount(Object node) { return 1; }
+	protected Integer nodeElement(Object node, int index) { return ((Node)node).element; }
+	protected Iterator<Integer> iterator(Object subtree) {
+	    return new FISIterator(subtree);
+	}
+	protected void walk(Object subtree, Consumer<? super Integer> action) {
+	    FIntSet.forEach(subtree, action);
+	}
+    }
+
+    // Writes the elements of `subtree' in increasing order, for `Snapshot.write'.
+    /*pkg*/ static void writeSnapshot(Object subtree, Snapshot.Output out) throws IOException {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    for (int e : (int[])subtree) out.writeInt(e);
+	} else {
+	    Node node = (Node)subtree;
+	    writeSnapshot(node.left, out);
+	    out.writeInt(node.element);
+	    writeSnapshot(node.right, out);
+	}
+    }
+
+    // Reads the `size' elements written by `writeSnapshot' and builds the tree.
+    /*pkg*/ static Object readSnapshot(int size, Snapshot.Input in) throws IOException {
+	int[] elts = new int[size];
+	for (int i = 0; i < size; ++i) {
+	    elts[i] = in.readInt();
+	    if (i > 0 && elts[i] <= elts[i - 1])
+		throw new StreamCorruptedException("Snapshot elements out of order");
+	}
+	return buildTree(elts, 0, size);
+    }
+
+    /**
+     * Saves the state of this <code>FIntSet</code> to a stream.
+     *
+     * @serialData Emits the size of the set [<code>int</code>], and the elements in
+     * increasing order [<code>int</code>s].
+     */
+    private void writeObject(ObjectOutputStream strm) throws IOException {
+	strm.defaultWriteObject();
+	strm.writeInt(size());
+	for (PrimitiveIterator.OfInt it = iterator(); it.hasNext(); )
+	    strm.writeInt(it.nextInt());
+    }
+
+    // http://docs.oracle.com/javase/specs/jls/se7/html/jls-17.html#jls-17.5.3
+    private static Field TreeField;
+    static {
+	try {
+	    TreeField = FIntSet.class.getDeclaredField("tree");
+	    TreeField.setAccessible(true);
+	} catch (NoSuchFieldException nsf) {
+	    throw new RuntimeException("Static initialization failed", nsf);
+	}
+    }
+
+    /**
+     * Reconstitutes the <code>FIntSet</code> instance from a stream.
+     */
+    private void readObject(ObjectInputStream strm) throws IOException, ClassNotFoundException {
+	hash_code = Integer.MIN_VALUE;
+	strm.defaultReadObject();
+	int size = strm.readInt();
+	int[] elts = new int[size];
+	for (int i = 0; i < size; ++i)
+	    elts[i] = strm.readInt();
+	try {
+	    TreeField.set(this, fromArray(elts, size));
+	} catch (IllegalAccessException ia) {
+	    throw new RuntimeException("FIntSet deserialization failed", ia);
+	}
+    }
+
+}
@@ -13,8 +13,12 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 
 /**
  * Just like <code>FHashMap</code> except that the iterator returns entries
@@ -22,10 +26,12 @@ import java.util.*;
  * <code>values</code>, and <code>entrySet</code> return collections whose iterators
  * return objects in the same order.
  *
- * <p>WARNING: <code>less</code> takes O(n) time in this implementation.  Avoid it.
+ * <p>Each key is given a sequence number when it is added, and the order is kept as
+ * a map from sequence numbers to the pairs; so <code>less</code> can find a key's
+ * place in the order, and takes O(log n) time, like <code>with</code>.  Iterating
+ * walks the order alone, without looking up the values.
  *
- * <p>Still unimplemented: user-supplied comparators; <code>restrictedTo</code>,
- * <code>restrictedFrom</code>.
+ * <p>Still unimplemented: user-supplied comparators.
  */
 
 public class FLinkedHashMap<Key, Val>
@@ -45,13 +51,16 @@ public class FLinkedHashMap<Key, Val>
      */
     public FLinkedHashMap() {
 	map_tree = null;
-	list_tree = null;
+	seq_tree = null;
+	order = FTreeMap.emptyMap();
 	dflt = null;
     }
 
-    private FLinkedHashMap(Object _map_tree, Object _list_tree, Val _dflt) {
+    private FLinkedHashMap(Object _map_tree, Object _seq_tree,
+			   FTreeMap<Integer, FHashMap.Entry> _order, Val _dflt) {
 	map_tree = _map_tree;
-	list_tree = _list_tree;
+	seq_tree = _seq_tree;
+	order = _order;
 	dflt = _dflt;
     }
 
@@ -64,7 +73,8 @@ public class FLinkedHashMap<Key, Val>
      * @return the new <code>FHashMap</code>
      */
     public static <Key, Val> FLinkedHashMap<Key, Val> withDefault(Val dflt) {
-	return new FLinkedHashMap<Key, Val>(null, null, dflt);
+	return new FLinkedHashMap<Key, Val>(null, null, FTreeMap.<Integer, FHashMap.Entry>emptyMap(),
+					    dflt);
     }
 
     public boolean isEmpty() {
@@ -79,7 +89,7 @@ public class FLinkedHashMap<Key, Val>
      * Returns the keys in the map, in order, as an FList.
      */
     public FList<Key> keyList() {
-	return new FTreeList<Key>(list_tree, null);
+	return new FTreeList<Key>(keySet());
     }
 
     public Map.Entry<Key, Val> arb() {
@@ -107,11 +117,8 @@ public class FLinkedHashMap<Key, Val>
 	Object new_map_tree = FHashMap.with(map_tree, key, khash, value);
 	if (new_map_tree == map_tree) return this;
 	if (FHashMap.treeSize(new_map_tree) == FHashMap.treeSize(map_tree))   // existing key?
-	    return new FLinkedHashMap<Key, Val>(new_map_tree, list_tree, dflt);
-	else {
-	    Object new_list_tree = FTreeList.insert(list_tree, FTreeList.treeSize(list_tree), key);
-	    return new FLinkedHashMap<Key, Val>(new_map_tree, new_list_tree, dflt);
-	}
+	    return changed(new_map_tree, key, khash, value);
+	else return added(new_map_tree, key, khash, value);
     }
 
     public FLinkedHashMap<Key, Val> with(Key key, Val value, BinaryOp<Val> valCombiner) {
@@ -119,28 +126,24 @@ public class FLinkedHashMap<Key, Val>
 	Object new_map_tree = FHashMap.with(map_tree, key, khash, value, valCombiner);
 	if (new_map_tree == map_tree) return this;
 	if (FHashMap.treeSize(new_map_tree) == FHashMap.treeSize(map_tree))   // existing key?
-	    return new FLinkedHashMap<Key, Val>(new_map_tree, list_tree, dflt);
-	else {
-	    Object new_list_tree = FTreeList.insert(list_tree, FTreeList.treeSize(list_tree), key);
-	    return new FLinkedHashMap<Key, Val>(new_map_tree, new_list_tree, dflt);
-	}
+	    return changed(new_map_tree, key, khash,
+			   FHashMap.get(new_map_tree, key, khash));
+	else return added(new_map_tree, key, khash, value);
     }
 
     public FLinkedHashMap<Key, Val> less(Key key) {
-	Object new_map_tree = FHashMap.less(map_tree, key, hashCode(key));
+	int khash = hashCode(key);
+	Object new_map_tree = FHashMap.less(map_tree, key, khash);
 	if (new_map_tree == map_tree) return this;
-	// O(n) because we have to linearly search the list for the key.
-	Iterator<Key> it = new FTreeList.FTLIterator(list_tree);
-	int i = 0;
-	while (!eql(key, it.next())) i++;
-	Object new_list_tree = FTreeList.less(list_tree, i);
-	return new FLinkedHashMap<Key, Val>(new_map_tree, new_list_tree, dflt);
+	Integer seq = (Integer)FHashMap.get(seq_tree, key, khash);
+	return new FLinkedHashMap<Key, Val>(new_map_tree, FHashMap.less(seq_tree, key, khash),
+					    order.less(seq), dflt);
     }
 
     public Set<Key> keySet() {
 	return new AbstractSet<Key>() {
 	    public Iterator<Key> iterator() {
-		return new FTreeList.FTLIterator<Key>(list_tree);
+		return new FLHMKeyIterator<Key>(order.values().iterator());
 	    }
 	    public int size() {
 		return FLinkedHashMap.this.size();
@@ -154,7 +157,7 @@ public class FLinkedHashMap<Key, Val>
     public Collection<Val> values() {
 	return new AbstractCollection<Val>() {
 	    public Iterator<Val> iterator() {
-		return new FLHMValueIterator<Val>(map_tree, list_tree);
+		return new FLHMValueIterator<Val>(order.values().iterator());
 	    }
 	    public int size() {
 		return FLinkedHashMap.this.size();
@@ -165,7 +168,10 @@ public class FLinkedHashMap<Key, Val>
     public Set<Map.Entry<Key, Val>> entrySet() {
 	return new AbstractSet<Map.Entry<Key, Val>>() {
 	    public Iterator<Map.Entry<Key, Val>> iterator() {
-		return new FLHMIterator<Key, Val>(map_tree, list_tree);
+		return FLinkedHashMap.this.iterator();
+	    }
+	    public Spliterator<Map.Entry<Key, Val>> spliterator() {
+		return FLinkedHashMap.this.spliterator();
 	    }
 	    public int size() {
 		return FLinkedHashMap.this.size();
@@ -225,14 +231,26 @@ public class FLinkedHashMap<Key, Val>
 	return m;
     }
 
+    /**
+     * This works by repeated <code>less</code> of the keys not in <code>set</code>,
+     * so it is O(n log n) in the worst case; the pairs that remain keep their order.
+     */
     public FLinkedHashMap<Key, Val> restrictedTo(FSet<Key> set) {
-	// Maybe later -- I'm lazy
-	throw new UnsupportedOperationException();
+	FLinkedHashMap<Key, Val> m = this;
+	for (FHashMap.Entry ent : order.values()) {
+	    Key key = (Key)ent.key;
+	    if (!set.contains(key)) m = m.less(key);
+	}
+	return m;
     }
 
+    /**
+     * This works by repeated <code>less</code>, and so is O(m log n).
+     */
     public FLinkedHashMap<Key, Val> restrictedFrom(FSet<Key> set) {
-	// Maybe later -- I'm lazy
-	throw new UnsupportedOperationException();
+	FLinkedHashMap<Key, Val> m = this;
+	for (Key key : set) m = m.less(key);
+	return m;
     }
 
     public Val getDefault() {
@@ -240,7 +258,74 @@ public class FLinkedHashMap<Key, Val>
     }
 
     public Iterator<Map.Entry<Key, Val>> iterator() {
-	return new FLHMIterator<Key, Val>(map_tree, list_tree);
+	// The entries are immutable, so those in the order can be handed out.
+	return (Iterator)order.values().iterator();
+    }
+
+    /**
+     * Returns a <code>Spliterator</code> over the entries of the map, in insertion
+     * order.  It splits exactly along the tree structure, and reports
+     * <code>IMMUTABLE</code>, <code>DISTINCT</code>, <code>ORDERED</code>,
+     * <code>SIZED</code>, and <code>SUBSIZED</code>.
+     */
+    public Spliterator<Map.Entry<Key, Val>> spliterator() {
+	return (Spliterator)order.valueSpliterator(Spliterator.IMMUTABLE | Spliterator.DISTINCT |
+						   Spliterator.ORDERED | Spliterator.SIZED |
+						   Spliterator.SUBSIZED);
+    }
+
+    /**
+     * Calls <code>action</code> on each key and its value, in insertion order.
+     * Unlike iterating, this walks the trees recursively, and allocates nothing per
+     * pair; in particular, it doesn't create <code>Map.Entry</code> objects.
+     */
+    public void forEach(final BiConsumer<? super Key, ? super Val> action) {
+	if (action == null) throw new NullPointerException();
+	order.forEach(new BiConsumer<Integer, FHashMap.Entry>() {
+		public void accept(Integer seq, FHashMap.Entry ent) {
+		    action.accept((Key)ent.key, (Val)ent.value);
+		}
+	    });
+    }
+
+    /**
+     * Calls <code>pred</code> on each key and its value, in insertion order, until
+     * it returns false.  Like <code>forEach</code>, allocates nothing per pair.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every pair
+     */
+    public boolean forEachWhile(final BiPredicate<? super Key, ? super Val> pred) {
+	if (pred == null) throw new NullPointerException();
+	return order.forEachWhile(new BiPredicate<Integer, FHashMap.Entry>() {
+		public boolean test(Integer seq, FHashMap.Entry ent) {
+		    return pred.test((Key)ent.key, (Val)ent.value);
+		}
+	    });
+    }
+
+    /**
+     * Compares this map with <code>other</code>, as described in {@link
+     * FMap#diff(FMap, MapDiff.Handler)}.  As with <code>FHashMap</code>, the
+     * differences from another hash map are found by walking the two trees together,
+     * and are reported in hash code order, not in the order the keys were added.
+     *
+     * @param other the new version of the map
+     * @param handler receives the differences
+     */
+    public void diff(FMap<? extends Key, ? extends Val> other,
+		     MapDiff.Handler<? super Key, ? super Val> handler) {
+	if (other instanceof FLinkedHashMap)
+	    FHashMap.diff(map_tree, ((FLinkedHashMap)other).map_tree, handler);
+	else if (other instanceof FHashMap)
+	    FHashMap.diff(map_tree, ((FHashMap)other).tree, handler);
+	else if (other instanceof FCachedHashMap)
+	    FHashMap.diff(map_tree, ((FCachedHashMap)other).map.tree, handler);
+	else super.diff(other, handler);
+    }
+
+    public MapDiff<Key, Val> diff(FMap<? extends Key, ? extends Val> other) {
+	return MapDiff.collect(this, other, FLinkedHashMap.<Key, Val>emptyMap());
     }
 
     public int compareTo(FLinkedHashMap<Key, Val> other) {
@@ -278,9 +363,14 @@ public class FLinkedHashMap<Key, Val>
 
     // The map tree is managed by FHashMap and contains the same pairs.
     /*pkg*/ transient final Object map_tree;
-    // The list tree contains the keys in the order in which they were first added.
-    // It is managed by FTreeList.
-    private transient final Object list_tree;
+    // The sequence tree is managed by FHashMap; it maps each key to the sequence
+    // number it was given when it was added.
+    private transient final Object seq_tree;
+    // The order maps the sequence numbers back to the pairs, so iterating over it
+    // gives them in the order in which the keys were first added.  Its entries
+    // have the same keys and values as `map_tree', so iterating needn't look up
+    // the values there.
+    private transient final FTreeMap<Integer, FHashMap.Entry> order;
 
     private final Val dflt;
 
@@ -294,28 +384,102 @@ public class FLinkedHashMap<Key, Val>
 	return FHashMap.hashCode(x);
     }
 
+    // Returns a map like this one except that it has `new_map_tree', to which `key'
+    // has just been added with `value'; the pair goes at the end of the order.
+    private FLinkedHashMap<Key, Val> added(Object new_map_tree, Key key, int khash,
+					   Object value) {
+	int seq = order.isEmpty() ? 0 : order.lastKey() + 1;
+	// Sequence numbers only go up, so in a long enough run of additions and
+	// removals, we can run out of them; if so, start over.
+	if (seq == Integer.MAX_VALUE) return renumbered().added(new_map_tree, key, khash, value);
+	return new FLinkedHashMap<Key, Val>(new_map_tree, FHashMap.with(seq_tree, key, khash, seq),
+					    order.with(seq, new FHashMap.Entry(key, value)), dflt);
+    }
+
+    // Returns a map like this one except that it has `new_map_tree', in which the
+    // value of `key', already present, has just been changed to `value'; the pair
+    // keeps its place in the order.
+    private FLinkedHashMap<Key, Val> changed(Object new_map_tree, Key key, int khash,
+					     Object value) {
+	Integer seq = (Integer)FHashMap.get(seq_tree, key, khash);
+	// The order holds the key that was first added, which may be equal to `key'
+	// without being the same object; `map_tree' keeps that one too.
+	Object okey = order.get(seq).key;
+	return new FLinkedHashMap<Key, Val>(new_map_tree, seq_tree,
+					    order.with(seq, new FHashMap.Entry(okey, value)), dflt);
+    }
+
+    private FLinkedHashMap<Key, Val> renumbered() {
+	FHashMap.Entry[] ents = order.values().toArray(new FHashMap.Entry[order.size()]);
+	return new FLinkedHashMap<Key, Val>(map_tree, seqTree(ents), order(ents), dflt);
+    }
+
+    // Numbers the keys of `ents' consecutively from 0.
+    private static Object seqTree(FHashMap.Entry[] ents) {
+	FHashMap.Builder<Object, Integer> bldr = new FHashMap.Builder<Object, Integer>(ents.length);
+	for (int i = 0; i < ents.length; ++i) bldr.put(ents[i].key, i);
+	return bldr.tree();
+    }
+
+    private static FTreeMap<Integer, FHashMap.Entry> order(FHashMap.Entry[] ents) {
+	Integer[] seqs = new Integer[ents.length];
+	for (int i = 0; i < ents.length; ++i) seqs[i] = i;
+	return FTreeMap.fromSorted(seqs, ents);
+    }
+
+    // Writes the pairs in order for `Snapshot.write', each as the hash code stored
+    // for the key [`int'] followed by the key and value.
+    /*pkg*/ void writeSnapshot(Snapshot.Encoder<Object> kenc, Snapshot.Encoder<Object> venc,
+			     Snapshot.Output out)
+	    throws IOException {
+	int[] hashes = FHashMap.hashesBySeq(seq_tree, order.size());
+	int i = 0;
+	for (FHashMap.Entry ent : order.values()) {
+	    out.writeInt(hashes[i++]);
+	    kenc.encode(ent.key, out);
+	    venc.encode(ent.value, out);
+	}
+    }
+
+    // Reads the `size' pairs written by `writeSnapshot' and builds the map, numbering
+    // the keys consecutively from 0.
+    /*pkg*/ static <Key, Val> FLinkedHashMap<Key, Val>
+	readSnapshot(int size, Val dflt, Snapshot.Encoder<Object> kenc,
+		     Snapshot.Encoder<Object> venc, Snapshot.Input in)
+	    throws IOException {
+	FHashMap.Builder<Object, Object> map_bldr = new FHashMap.Builder<Object, Object>(size);
+	FHashMap.Builder<Object, Integer> seq_bldr = new FHashMap.Builder<Object, Integer>(size);
+	FHashMap.Entry[] ents = new FHashMap.Entry[size];
+	for (int i = 0; i < size; ++i) {
+	    int hash = in.readInt();
+	    Object key = kenc.decode(in);
+	    Object val = venc.decode(in);
+	    map_bldr.put(key, val, hash);
+	    seq_bldr.put(key, i, hash);
+	    ents[i] = new FHashMap.Entry(key, val);
+	}
+	Object mt = map_bldr.tree();
+	if (FHashMap.treeSize(mt) != size)
+	    throw new StreamCorruptedException("Duplicate keys in snapshot");
+	return new FLinkedHashMap<Key, Val>(mt, seq_bldr.tree(), order(ents), dflt);
+    }
+
     /****************/
     // Iterator classes
 
-    private static final class FLHMIterator<Key, Val> implements Iterator<Map.Entry<Key, Val>> {
-	private final Object map_tree;
-	private final FTreeList.FTLIterator<Key> list_it;
+    private static final class FLHMKeyIterator<Key> implements Iterator<Key> {
+	private final Iterator<FHashMap.Entry> ent_it;
 
-	private FLHMIterator(Object _map_tree, Object _list_tree) {
-	    map_tree = _map_tree;
-	    list_it = new FTreeList.FTLIterator<Key>(_list_tree);
+	private FLHMKeyIterator(Iterator<FHashMap.Entry> _ent_it) {
+	    ent_it = _ent_it;
 	}
 
 	public boolean hasNext() {
-	    return list_it.hasNext();
+	    return ent_it.hasNext();
 	}
 
-	public Map.Entry<Key, Val> next() {
-	    Key key = list_it.next();
-	    // &&& This could be improved with a 'getEntry' method -- it would cons an
-	    // Entry only about half the time.  Worth the trouble?
-	    Val val = (Val)FHashMap.get(map_tree, key, FHashMap.hashCode(key));
-	    return (Map.Entry<Key, Val>)new FHashMap.Entry(key, val);
+	public Key next() {
+	    return (Key)ent_it.next().key;
 	}
 
 	public void remove() {
@@ -324,21 +488,18 @@ public class FLinkedHashMap<Key, Val>
     }
 
     private static final class FLHMValueIterator<Val> implements Iterator<Val> {
-	private final Object map_tree;
-	private final FTreeList.FTLIterator<Object> list_it;
+	private final Iterator<FHashMap.Entry> ent_it;
 
-	private FLHMValueIterator(Object _map_tree, Object _list_tree) {
-	    map_tree = _map_tree;
-	    list_it = new FTreeList.FTLIterator<Object>(_list_tree);
+	private FLHMValueIterator(Iterator<FHashMap.Entry> _ent_it) {
+	    ent_it = _ent_it;
 	}
 
 	public boolean hasNext() {
-	    return list_it.hasNext();
+	    return ent_it.hasNext();
 	}
 
 	public Val next() {
-	    Object key = list_it.next();
-	    return (Val)FHashMap.get(map_tree, key, FHashMap.hashCode(key));
+	    return (Val)ent_it.next().value;
 	}
 
 	public void remove() {
@@ -364,13 +525,15 @@ public class FLinkedHashMap<Key, Val>
     }
 
     // http://docs.oracle.com/javase/specs/jls/se7/html/jls-17.html#jls-17.5.3
-    private static Field MapTreeField, ListTreeField;
+    private static Field MapTreeField, SeqTreeField, OrderField;
     static {
 	try {
 	    MapTreeField = FLinkedHashMap.class.getDeclaredField("map_tree");
-	    ListTreeField = FLinkedHashMap.class.getDeclaredField("list_tree");
+	    SeqTreeField = FLinkedHashMap.class.getDeclaredField("seq_tree");
+	    OrderField = FLinkedHashMap.class.getDeclaredField("order");
 	    MapTreeField.setAccessible(true);
-	    ListTreeField.setAccessible(true);
+	    SeqTreeField.setAccessible(true);
+	    OrderField.setAccessible(true);
 	} catch (NoSuchFieldException nsf) {
 	    throw new RuntimeException("Static initialization failed", nsf);
 	}
@@ -384,16 +547,17 @@ public class FLinkedHashMap<Key, Val>
 	strm.defaultReadObject();	// reads `dflt'
         int size = strm.readInt();
 	Object mt = null;
-	Object[] keys = new Object[size];
+	FHashMap.Entry[] ents = new FHashMap.Entry[size];
 	for (int i = 0; i < size; ++i) {
 	    Object key = strm.readObject();
 	    Object val = strm.readObject();
 	    mt = FHashMap.with(mt, key, hashCode(key), val);
-	    keys[i] = key;
+	    ents[i] = new FHashMap.Entry(key, val);
 	}
 	try {
 	    MapTreeField.set(this, mt);
-	    ListTreeField.set(this, FTreeList.fromCollection(keys));
+	    SeqTreeField.set(this, seqTree(ents));
+	    OrderField.set(this, order(ents));
 	} catch (IllegalAccessException ia) {
 	    throw new RuntimeException("FLinkedHashMap deserialization failed", ia);
 	}
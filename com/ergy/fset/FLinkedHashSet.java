@@ -13,19 +13,24 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 
 /**
  * Just like <code>FHashSet</code> except that the iterator returns elements
  * in the same order in which they were first added.
  *
- * <p>WARNING: <code>less</code> takes O(n) time, in general, in this implementation.
- * Avoid it, except in the special case of the element just returned by <code>arb</code>.
+ * <p>Each element is given a sequence number when it is added, and the order is
+ * kept as a map from sequence numbers to elements; so <code>less</code> can find an
+ * element's place in the order, and takes O(log n) time, like <code>with</code>.
  *
- * Still unimplemented: user-supplied comparators; <code>intersection</code>,
- * <code>difference</code>.
+ * <p>Still unimplemented: user-supplied comparators.
  */
 
 public class FLinkedHashSet<Elt>
@@ -46,15 +51,18 @@ public class FLinkedHashSet<Elt>
      */
     public FLinkedHashSet() {
 	set_tree = null;
-	list_tree = null;
+	seq_tree = null;
+	order = FTreeMap.emptyMap();
     }
 
     /**
      * Constructs a <code>FLinkedHashSet</code> containing only <code>elt</code>.
      */
     public FLinkedHashSet(Elt elt) {
-	set_tree = FHashSet.with(null, elt, 0);	// hashCode(elt) not needed -- just use 0
-	list_tree = FTreeList.insert(null, 0, elt);
+	int ehash = hashCode(elt);
+	set_tree = FHashSet.with(null, elt, ehash);
+	seq_tree = FHashMap.with(null, elt, ehash, 0);
+	order = FTreeMap.<Integer, Elt>emptyMap().with(0, elt);
     }
 
     public boolean isEmpty() {
@@ -69,16 +77,15 @@ public class FLinkedHashSet<Elt>
      * Returns the contents of the set, in order, as an FList.
      */
     public FList<Elt> toList() {
-	return new FTreeList<Elt>(list_tree, null);
+	return new FTreeList<Elt>(order.values());
     }
 
     /**
      * On an <code>FLinkedHashSet</code>, always returns the element that was added first.
-     * (A subsequent call to <code>less</code> passing this element will be efficient.)
      */
     public Elt arb() {
-	if (list_tree == null) throw new NoSuchElementException();
-	else return (Elt)FTreeList.get(list_tree, 0);
+	if (order.isEmpty()) throw new NoSuchElementException();
+	else return order.get(order.firstKey());
     }
 
     public boolean contains(Object elt) {
@@ -86,26 +93,62 @@ public class FLinkedHashSet<Elt>
     }
 
     public FLinkedHashSet<Elt> with(Elt elt) {
-	Object new_set_tree = FHashSet.with(set_tree, elt, hashCode(elt));
+	int ehash = hashCode(elt);
+	Object new_set_tree = FHashSet.with(set_tree, elt, ehash);
 	if (new_set_tree == set_tree) return this;
-	else return new FLinkedHashSet(new_set_tree,
-				       FTreeList.insert(list_tree, FTreeList.treeSize(list_tree),
-							elt));
+	else return added(new_set_tree, elt, ehash);
     }
 
     public FLinkedHashSet<Elt> less(Elt elt) {
-	Object new_set_tree = FHashSet.less(set_tree, elt, hashCode(elt));
+	int ehash = hashCode(elt);
+	Object new_set_tree = FHashSet.less(set_tree, elt, ehash);
 	if (new_set_tree == set_tree) return this;
-	// O(n) because we have to linearly search the list for the key.
-	Iterator<Elt> it = new FTreeList.FTLIterator<Elt>(list_tree);
-	int i = 0;
-	while (!eql(elt, it.next())) i++;
-	Object new_list_tree = FTreeList.less(list_tree, i);
-	return new FLinkedHashSet<Elt>(new_set_tree, new_list_tree);
+	else if (new_set_tree == null) return emptySet();
+	Integer seq = (Integer)FHashMap.get(seq_tree, elt, ehash);
+	return new FLinkedHashSet<Elt>(new_set_tree, FHashMap.less(seq_tree, elt, ehash),
+				       order.less(seq));
     }
 
     public Iterator<Elt> iterator() {
-	return new FTreeList.FTLIterator(list_tree);
+	return order.values().iterator();
+    }
+
+    /**
+     * Returns a <code>Spliterator</code> over the set, in insertion order.  It
+     * splits exactly along the tree structure, and reports <code>IMMUTABLE</code>,
+     * <code>DISTINCT</code>, <code>ORDERED</code>, <code>SIZED</code>, and
+     * <code>SUBSIZED</code>.
+     */
+    public Spliterator<Elt> spliterator() {
+	return order.valueSpliterator(Spliterator.IMMUTABLE | Spliterator.DISTINCT |
+				      Spliterator.ORDERED | Spliterator.SIZED |
+				      Spliterator.SUBSIZED);
+    }
+
+    /**
+     * Calls <code>action</code> on each element of the set, in insertion order.
+     * Unlike iterating, this walks the tree recursively, and so allocates nothing per
+     * element.
+     */
+    public void forEach(final Consumer<? super Elt> action) {
+	if (action == null) throw new NullPointerException();
+	order.forEach(new BiConsumer<Integer, Elt>() {
+		public void accept(Integer seq, Elt elt) { action.accept(elt); }
+	    });
+    }
+
+    /**
+     * Calls <code>pred</code> on each element of the set, in insertion order, until
+     * it returns false.  Like <code>forEach</code>, allocates nothing per element.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every element
+     */
+    public boolean forEachWhile(final Predicate<? super Elt> pred) {
+	if (pred == null) throw new NullPointerException();
+	return order.forEachWhile(new BiPredicate<Integer, Elt>() {
+		public boolean test(Integer seq, Elt elt) { return pred.test(elt); }
+	    });
     }
 
     /**
@@ -113,27 +156,54 @@ public class FLinkedHashSet<Elt>
      * the spiffy linear-time algorithm used by the other implementations.
      */
     public FLinkedHashSet<Elt> union(Collection<? extends Elt> coll) {
-	Object new_set_tree = set_tree;
-	Object new_list_tree = list_tree;
-	for (Elt elt : coll) {
-	    Object prev_set_tree = new_set_tree;
-	    new_set_tree = FHashSet.with(new_set_tree, elt, hashCode(elt));
-	    if (new_set_tree != prev_set_tree)
-		new_list_tree = FTreeList.insert(new_list_tree, FTreeList.treeSize(new_list_tree),
-						 elt);
-	}
-	if (new_set_tree == set_tree) return this;
-	else return new FLinkedHashSet<Elt>(new_set_tree, new_list_tree);
+	FLinkedHashSet<Elt> s = this;
+	for (Elt elt : coll) s = s.with(elt);
+	return s;
     }
 
+    /**
+     * This works by repeated <code>less</code> of the elements not in
+     * <code>coll</code>, so it is O(n log n) in the worst case; the elements that
+     * remain keep their order.
+     */
     public FLinkedHashSet<Elt> intersection(Collection<? extends Elt> coll) {
-	// Maybe later -- I'm lazy
-	throw new UnsupportedOperationException();
+	Collection<?> set = (coll instanceof Set ? coll : new FHashSet<Elt>(coll));
+	FLinkedHashSet<Elt> s = this;
+	for (Elt elt : order.values())
+	    if (!set.contains(elt)) s = s.less(elt);
+	return s;
     }
 
+    /**
+     * This works by repeated <code>less</code>, and so is O(m log n).
+     */
     public FLinkedHashSet<Elt> difference(Collection<? extends Elt> coll) {
-	// Maybe later -- I'm lazy
-	throw new UnsupportedOperationException();
+	FLinkedHashSet<Elt> s = this;
+	for (Elt elt : coll) s = s.less(elt);
+	return s;
+    }
+
+    /**
+     * Compares this set with <code>other</code>, as described in {@link
+     * FSet#diff(FSet, SetDiff.Handler)}.  As with <code>FHashSet</code>, the
+     * differences from another hash set are found by walking the two trees together,
+     * and are reported in hash code order, not in the order the elements were added.
+     *
+     * @param other the new version of the set
+     * @param handler receives the differences
+     */
+    public void diff(FSet<? extends Elt> other, SetDiff.Handler<? super Elt> handler) {
+	if (other instanceof FLinkedHashSet)
+	    FHashSet.diff(set_tree, ((FLinkedHashSet)other).set_tree, handler);
+	else if (other instanceof FHashSet)
+	    FHashSet.diff(set_tree, ((FHashSet)other).tree, handler);
+	else if (other instanceof FCachedHashSet)
+	    FHashSet.diff(set_tree, ((FCachedHashSet)other).set.tree, handler);
+	else super.diff(other, handler);
+    }
+
+    public SetDiff<Elt> diff(FSet<? extends Elt> other) {
+	return SetDiff.collect(this, other, FLinkedHashSet.<Elt>emptySet());
     }
 
     public int compareTo(FLinkedHashSet<Elt> other) {
@@ -203,15 +273,81 @@ public class FLinkedHashSet<Elt>
     // The empty set can be a singleton.
     private static final FLinkedHashSet<?> EMPTY_INSTANCE = new FLinkedHashSet<Object>();
 
-    // The set tree is managed by FHashSet and contains the same pairs.
+    // The set tree is managed by FHashSet and contains the same elements.
     /*pkg*/ transient final Object set_tree;
-    // The list tree contains the keys in the order in which they were first added.
-    // It is managed by FTreeList.
-    private transient final Object list_tree;
-
-    private FLinkedHashSet(Object _set_tree, Object _list_tree) {
+    // The sequence tree is managed by FHashMap; it maps each element to the sequence
+    // number it was given when it was added.
+    private transient final Object seq_tree;
+    // The order maps the sequence numbers back to the elements, so iterating over
+    // it gives the elements in the order in which they were first added.
+    private transient final FTreeMap<Integer, Elt> order;
+
+    private FLinkedHashSet(Object _set_tree, Object _seq_tree, FTreeMap<Integer, Elt> _order) {
 	set_tree = _set_tree;
-	list_tree = _list_tree;
+	seq_tree = _seq_tree;
+	order = _order;
+    }
+
+    // Returns a set like this one except that it has `new_set_tree', to which `elt'
+    // has just been added; `elt' goes at the end of the order.
+    private FLinkedHashSet<Elt> added(Object new_set_tree, Elt elt, int ehash) {
+	int seq = order.isEmpty() ? 0 : order.lastKey() + 1;
+	// Sequence numbers only go up, so in a long enough run of additions and
+	// removals, we can run out of them; if so, start over.
+	if (seq == Integer.MAX_VALUE) return renumbered().added(new_set_tree, elt, ehash);
+	return new FLinkedHashSet<Elt>(new_set_tree, FHashMap.with(seq_tree, elt, ehash, seq),
+				       order.with(seq, elt));
+    }
+
+    private FLinkedHashSet<Elt> renumbered() {
+	Object[] elts = order.values().toArray();
+	return new FLinkedHashSet<Elt>(set_tree, seqTree(elts), FLinkedHashSet.<Elt>order(elts));
+    }
+
+    // Numbers `elts' consecutively from 0.
+    private static Object seqTree(Object[] elts) {
+	FHashMap.Builder<Object, Integer> bldr = new FHashMap.Builder<Object, Integer>(elts.length);
+	for (int i = 0; i < elts.length; ++i) bldr.put(elts[i], i);
+	return bldr.tree();
+    }
+
+    private static <Elt> FTreeMap<Integer, Elt> order(Object[] elts) {
+	Integer[] seqs = new Integer[elts.length];
+	for (int i = 0; i < elts.length; ++i) seqs[i] = i;
+	return FTreeMap.fromSorted(seqs, (Elt[])elts);
+    }
+
+    // Writes the elements in order for `Snapshot.write', each as its stored hash code
+    // [`int'] followed by the element.
+    /*pkg*/ void writeSnapshot(Snapshot.Encoder<Object> enc, Snapshot.Output out)
+	    throws IOException {
+	int[] hashes = FHashMap.hashesBySeq(seq_tree, order.size());
+	int i = 0;
+	for (Elt e : order.values()) {
+	    out.writeInt(hashes[i++]);
+	    enc.encode(e, out);
+	}
+    }
+
+    // Reads the `size' elements written by `writeSnapshot' and builds the set,
+    // numbering them consecutively from 0.
+    /*pkg*/ static <Elt> FLinkedHashSet<Elt> readSnapshot(int size, Snapshot.Encoder<Object> enc,
+							 Snapshot.Input in)
+	    throws IOException {
+	FHashSet.Builder<Object> set_bldr = new FHashSet.Builder<Object>(size);
+	FHashMap.Builder<Object, Integer> seq_bldr = new FHashMap.Builder<Object, Integer>(size);
+	Object[] elts = new Object[size];
+	for (int i = 0; i < size; ++i) {
+	    int hash = in.readInt();
+	    Object e = enc.decode(in);
+	    set_bldr.add(e, hash);
+	    seq_bldr.put(e, i, hash);
+	    elts[i] = e;
+	}
+	Object st = set_bldr.tree();
+	if (FHashSet.treeSize(st) != size)
+	    throw new StreamCorruptedException("Duplicate elements in snapshot");
+	return new FLinkedHashSet<Elt>(st, seq_bldr.tree(), FLinkedHashSet.<Elt>order(elts));
     }
 
     private transient int hash_code = Integer.MIN_VALUE;
@@ -238,13 +374,15 @@ public class FLinkedHashSet<Elt>
     }
 
     // http://docs.oracle.com/javase/specs/jls/se7/html/jls-17.html#jls-17.5.3
-    private static Field SetTreeField, ListTreeField;
+    private static Field SetTreeField, SeqTreeField, OrderField;
     static {
 	try {
 	    SetTreeField = FLinkedHashSet.class.getDeclaredField("set_tree");
-	    ListTreeField = FLinkedHashSet.class.getDeclaredField("list_tree");
+	    SeqTreeField = FLinkedHashSet.class.getDeclaredField("seq_tree");
+	    OrderField = FLinkedHashSet.class.getDeclaredField("order");
 	    SetTreeField.setAccessible(true);
-	    ListTreeField.setAccessible(true);
+	    SeqTreeField.setAccessible(true);
+	    OrderField.setAccessible(true);
 	} catch (NoSuchFieldException nsf) {
 	    throw new RuntimeException("Static initialization failed", nsf);
 	}
@@ -266,7 +404,8 @@ public class FLinkedHashSet<Elt>
 	}
 	try {
 	    SetTreeField.set(this, st);
-	    ListTreeField.set(this, FTreeList.fromCollection(elts));
+	    SeqTreeField.set(this, seqTree(elts));
+	    OrderField.set(this, FLinkedHashSet.<Elt>order(elts));
 	} catch (IllegalAccessException ia) {
 	    throw new RuntimeException("FLinkedHashSet deserialization failed", ia);
 	}
@@ -0,0 +1,1575 @@
+/*
+ * FLongMap.java
+ *
+ * Generated from templates/FPrimMap.java.in by `make gen'; edit the template,
+ * not this file.
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * A functional map whose keys are <code>long</code>s.  It has the same structure as
+ * {@link FTreeMap} -- a weight-balanced binary tree with bounded-length arrays at
+ * the leaves -- but the keys are stored unboxed: each node holds its key as a
+ * <code>long</code>, and each leaf holds its keys in a <code>long[]</code>.  So
+ * looking up a key allocates nothing and compares values directly.  The pairs are
+ * kept in numerical order of their keys.
+ *
+ * <p>The methods of <code>FMap&lt;Long, Val&gt;</code> box and unbox as necessary.
+ * There are also unboxed versions of <code>get</code>, <code>containsKey</code>,
+ * <code>with</code>, and <code>less</code>; and the iterator of
+ * <code>keySet</code> is a <code>PrimitiveIterator.OfLong</code>.  (If the values
+ * are themselves of a wrapper type, a call like <code>map.with(k, 3)</code> is
+ * ambiguous, since both versions of <code>with</code> need a boxing conversion;
+ * box the value explicitly.)
+ *
+ * <p>Time costs: <code>isEmpty</code>, <code>size</code>, <code>arb</code>, and
+ * <code>entrySet</code> take O(1) (constant) time.  <code>get</code>,
+ * <code>containsKey</code>, <code>with</code>, <code>less</code>,
+ * <code>firstKey</code>, and <code>lastKey</code> take O(log <i>n</i>) time.
+ * <code>domain</code> takes O(n) (linear) time; it shares the key arrays of the
+ * leaves with the result, so it allocates only the nodes.  <code>union</code>,
+ * <code>restrictedTo</code>, and <code>restrictedFrom</code> take O(n) (linear)
+ * time if the other map or set involved is also a <code>FLongMap</code> or
+ * <code>FLongSet</code>; otherwise, they take O(<i>n</i> log <i>n</i>) time.
+ *
+ * <p><code>FLongMap</code> does not accept the null key; it does accept null values.
+ * As with <code>FTreeMap</code>, <code>compareTo</code> compares values as well as
+ * keys, using their natural ordering.
+ *
+ * <p><code>FLongMap</code> also provides static factory methods <code>withDefault</code>;
+ * see {@link FTreeMap} for a discussion of defaults.
+ *
+ * <p><code>FLongMap</code> implements {@link Serializable}; an instance of it is
+ * serializable provided that all values it contains, and the default value if
+ * nonnull, are serializable.
+ *
+ * @author Scott L. Burson
+ * @see FMap
+ * @see FTreeMap
+ * @see FLongSet
+ */
+
+public final class FLongMap<Val>
+    extends AbstractFMap<Long, Val>
+    implements Comparable<FLongMap<Val>>, Serializable
+{
+
+    /**
+     * Returns an empty <code>FLongMap</code>.  Slightly more efficient than calling the
+     * constructor, because it returns a canonical instance.
+     */
+    public static <Val> FLongMap<Val> emptyMap() {
+	return (FLongMap<Val>)EMPTY_INSTANCE;
+    }
+
+    /**
+     * Constructs an empty <code>FLongMap</code>.
+     */
+    public FLongMap() {
+	tree = null;
+	dflt = null;
+    }
+
+    /**
+     * Constructs a <code>FLongMap</code> containing the same entries as <code>map</code>.
+     * If the entries of <code>map</code> come out of its iterator in increasing
+     * order of their keys (as with a <code>TreeMap</code> using natural ordering),
+     * the tree is built bottom-up in linear time.
+     *
+     * @param map the map to use the entries of
+     * @throws NullPointerException if <code>map</code> contains the null key
+     */
+    public FLongMap(Map<? extends Long, ? extends Val> map) {
+	tree = fromMap(map);
+	dflt = null;
+    }
+
+    /**
+     * Constructs and returns an empty <code>FLongMap</code> whose <code>get</code> method
+     * returns <code>dflt</code> when called with a key which is not in the map.
+     *
+     * @param dflt the default value
+     * @return the new <code>FLongMap</code>
+     */
+    public static <Val> FLongMap<Val> withDefault(Val dflt) {
+	return new FLongMap<Val>(null, dflt);
+    }
+
+    /**
+     * Constructs and returns a <code>FLongMap</code> containing the same entries as
+     * <code>map</code>, and whose <code>get</code> method returns <code>dflt</code>
+     * when called with a key which is not in the map.
+     *
+     * @param map the map to use the entries of
+     * @param dflt the default value
+     * @return the new <code>FLongMap</code>
+     */
+    public static <Val> FLongMap<Val> withDefault(Map<? extends Long, ? extends Val> map,
+					      Val dflt) {
+	return new FLongMap<Val>(fromMap(map), dflt);
+    }
+
+    private static Object fromMap(Map<? extends Long, ?> map) {
+	if (map instanceof FLongMap) return ((FLongMap)map).tree;
+	else {
+	    int n = map.size();
+	    long[] keys = new long[n];
+	    Object[] vals = new Object[n];
+	    int i = 0;
+	    boolean sorted = true;
+	    for (Map.Entry<? extends Long, ?> ent : map.entrySet()) {
+		keys[i] = ent.getKey();
+		vals[i] = ent.getValue();
+		if (i > 0 && keys[i - 1] >= keys[i]) sorted = false;
+		++i;
+	    }
+	    if (sorted) return buildTree(keys, vals, 0, n);
+	    else {
+		Object t = null;
+		for (i = 0; i < n; ++i)
+		    t = with(t, keys[i], vals[i], second);
+		return t;
+	    }
+	}
+    }
+
+    public boolean isEmpty() {
+	return tree == null;
+    }
+
+    public int size() {
+	return treeSize(tree);
+    }
+
+    public Map.Entry<Long, Val> arb() {
+	if (tree == null) throw new NoSuchElementException();
+	else if (!(tree instanceof Node)) {
+	    Object[] ary = (Object[])tree;
+	    int idx = leafSize(ary) >> 1;
+	    return new Entry<Val>(leafKeys(ary)[idx], (Val)ary[idx]);
+	} else {
+	    Node node = (Node)tree;
+	    return new Entry<Val>(node.key, (Val)node.value);
+	}
+    }
+
+    /**
+     * Returns true iff this map contains an entry with key <code>entry.getKey()</code>,
+     * with corresponding value <code>entry.getValue()</code>.  (Returns false when there
+     * is no entry for the key, even if the value is equal to the map's default.)
+     */
+    public boolean contains(Map.Entry<Long, Val> entry) {
+	Long key = entry.getKey();
+	if (key == null) return false;
+	Object val = get(tree, key);
+	return val != NO_ELEMENT && eql(val, entry.getValue());
+    }
+
+    public boolean containsKey(Object key) {
+	return key instanceof Long && get(tree, (Long)key) != NO_ELEMENT;
+    }
+
+    /**
+     * Returns true if this map contains an entry for <code>key</code>.  Unlike
+     * <code>containsKey(Object)</code>, this doesn't box.
+     */
+    public boolean containsKey(long key) {
+	return get(tree, key) != NO_ELEMENT;
+    }
+
+    /**
+     * Returns the value to which this map maps <code>key</code>.  If this map
+     * contains no entry for <code>key</code>, returns this map's default value,
+     * which is normally <code>null</code>, but may be a different value if the map
+     * was given a default using <code>withDefault</code>.
+     */
+    public Val get(Object key) {
+	if (!(key instanceof Long)) return dflt;
+	else return get((long)(Long)key);
+    }
+
+    /**
+     * Returns the value to which this map maps <code>key</code>, or the default
+     * value if there is none.  Unlike <code>get(Object)</code>, this doesn't box.
+     */
+    public Val get(long key) {
+	Object val = get(tree, key);
+	if (val == NO_ELEMENT) return dflt;
+	else return (Val)val;
+    }
+
+    /**
+     * @throws NullPointerException if <code>key</code> is null
+     */
+    public FLongMap<Val> with(Long key, Val value) {
+	return withLong(key, value);
+    }
+
+    /**
+     * Like <code>with(Long, Val)</code>, but doesn't box the key.  (It has its
+     * own name because, were it an overload, <code>with(3, v)</code> on a
+     * <code>FLongMap&lt;Long&gt;</code> would be ambiguous.)
+     */
+    public FLongMap<Val> withLong(long key, Val value) {
+	Object t = with(tree, key, value, second);
+	if (t == tree) return this;
+	else return new FLongMap<Val>(t, dflt);
+    }
+
+    /**
+     * @throws NullPointerException if <code>key</code> is null
+     */
+    public FLongMap<Val> with(Long key, Val value, BinaryOp<Val> valCombiner) {
+	return withLong(key, value, valCombiner);
+    }
+
+    /**
+     * Like <code>with(Long, Val, BinaryOp)</code>, but doesn't box the key.
+     */
+    public FLongMap<Val> withLong(long key, Val value, BinaryOp<Val> valCombiner) {
+	Object t = with(tree, key, value, valCombiner);
+	if (t == tree) return this;
+	else return new FLongMap<Val>(t, dflt);
+    }
+
+    public FLongMap<Val> less(Long key) {
+	if (key == null) return this;
+	else return less((long)key);
+    }
+
+    /**
+     * Like <code>less(Long)</code>, but doesn't box the key.
+     */
+    public FLongMap<Val> less(long key) {
+	Object t = less(tree, key);
+	if (t == tree) return this;
+	else if (t == null && dflt == null) return emptyMap();
+	else return new FLongMap<Val>(t, dflt);
+    }
+
+    /**
+     * Returns the set of keys of this map.  This is a view, which takes O(1) time to
+     * construct; its iterator is a <code>PrimitiveIterator.OfLong</code>.
+     */
+    public Set<Long> keySet() {
+	return new AbstractSet<Long>() {
+	    public PrimitiveIterator.OfLong iterator() {
+		return new FLMKeyIterator(tree);
+	    }
+	    public int size() {
+		return FLongMap.this.size();
+	    }
+	    public boolean contains(Object key) {
+		return containsKey(key);
+	    }
+	};
+    }
+
+    public Collection<Val> values() {
+	return new AbstractCollection<Val>() {
+	    public Iterator<Val> iterator() {
+		return new FLMValueIterator<Val>(tree);
+	    }
+	    public int size() {
+		return FLongMap.this.size();
+	    }
+	};
+    }
+
+    public Set<Map.Entry<Long, Val>> entrySet() {
+	return new AbstractSet<Map.Entry<Long, Val>>() {
+	    public Iterator<Map.Entry<Long, Val>> iterator() {
+		return FLongMap.this.iterator();
+	    }
+	    public Spliterator<Map.Entry<Long, Val>> spliterator() {
+		return FLongMap.this.spliterator();
+	    }
+	    public int size() {
+		return FLongMap.this.size();
+	    }
+	    public boolean contains(Object x) {
+		if (!(x instanceof Map.Entry)) return false;
+		else {
+		    Map.Entry<?, ?> ent = (Map.Entry<?, ?>)x;
+		    Object ekey = ent.getKey();
+		    if (!(ekey instanceof Long)) return false;
+		    Object val = get(tree, (Long)ekey);
+		    return val != NO_ELEMENT && eql(val, ent.getValue());
+		}
+	    }
+	    public boolean remove(Object x) {
+		throw new UnsupportedOperationException();
+	    }
+	    public void clear() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+    }
+
+    /**
+     * Returns the domain of the map as a <code>FLongSet</code>.  The set shares the key
+     * arrays of this map's leaves, so only its nodes need to be allocated.
+     */
+    public FLongSet domain() {
+	return FLongSet.make(domain(tree));
+    }
+
+    /**
+     * Returns the range of the map (the set of values it contains).  The returned set
+     * is a {@link FHashSet}.
+     *
+     * @return the range set of this map
+     */
+    public FHashSet<Val> range() {
+	return (FHashSet<Val>)range(FHashSet.<Val>emptySet());
+    }
+
+    public FSet<Val> range(FSet<Val> initial_set) {
+	// Gives us an empty set of the right class and comparator.
+	FSet<Val> s = initial_set.difference(initial_set);
+	for (Iterator<Val> it = new FLMValueIterator<Val>(tree); it.hasNext(); )
+	    s = s.with(it.next());
+	return s;
+    }
+
+    /**
+     * Returns the map as a set of pairs, each pair being a <code>Map.Entry</code>.
+     * Similar to <code>entrySet</code>, except that the return type is
+     * <code>FHashSet</code>.
+     *
+     * @return the set of entries this map contains
+     */
+    public FHashSet<Map.Entry<Long, Val>> toSet() {
+	return (FHashSet<Map.Entry<Long, Val>>)
+	       toSet(FHashSet.<Map.Entry<Long, Val>>emptySet());
+    }
+
+    public FSet<Map.Entry<Long, Val>> toSet(FSet<Map.Entry<Long, Val>> initial_set) {
+	// Gives us an empty set of the right class and comparator.
+	FSet<Map.Entry<Long, Val>> s = initial_set.difference(initial_set);
+	for (Iterator<Map.Entry<Long, Val>> it = iterator(); it.hasNext(); )
+	    s = s.with(it.next());
+	return s;
+    }
+
+    private static BinaryOp second = new BinaryOp() {
+	    public Object apply(Object x, Object y) { return y; }
+	};
+
+    public FLongMap<Val> union(FMap<? extends Long, ? extends Val> with_map) {
+	return union(with_map, (BinaryOp<Val>)second);
+    }
+
+    /**
+     * Returns the union of this map with <code>with_map</code>.  For keys present in
+     * both maps, the value in the result is <code>valCombiner.apply(v1, v2)</code>,
+     * where <code>v1</code> is the value in this map and <code>v2</code> the value in
+     * <code>with_map</code>.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>with_map</code> is also a
+     * <code>FLongMap</code>; otherwise it runs in O(n log n) time.
+     */
+    public FLongMap<Val> union(FMap<? extends Long, ? extends Val> with_map,
+			   BinaryOp<Val> valCombiner) {
+	Object t = union(tree, fromMap(with_map), valCombiner, MIN_VALUE, MAX_VALUE);
+	if (t == tree) return this;
+	else return new FLongMap<Val>(t, dflt);
+    }
+
+    /**
+     * Returns this map restricted to the keys in <code>set</code>.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>set</code> is a
+     * <code>FLongSet</code>; otherwise it runs in O(n log n) time.
+     */
+    public FLongMap<Val> restrictedTo(FSet<Long> set) {
+	Object t = restrictedTo(tree, toSetTree(set), MIN_VALUE, MAX_VALUE);
+	if (t == tree) return this;
+	else return new FLongMap<Val>(t, dflt);
+    }
+
+    /**
+     * Returns this map restricted to the keys not in <code>set</code>.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>set</code> is a
+     * <code>FLongSet</code>; otherwise it runs in O(n log n) time.
+     */
+    public FLongMap<Val> restrictedFrom(FSet<Long> set) {
+	Object t = restrictedFrom(tree, toSetTree(set), MIN_VALUE, MAX_VALUE);
+	if (t == tree) return this;
+	else return new FLongMap<Val>(t, dflt);
+    }
+
+    private static Object toSetTree(FSet<Long> set) {
+	if (set instanceof FLongSet) return ((FLongSet)set).tree;
+	else {
+	    // A null element can't be a key of the map anyway, so we just skip it.
+	    long[] elts = new long[set.size()];
+	    int n = 0;
+	    for (Long e : set)
+		if (e != null) elts[n++] = e;
+	    return new FLongSet(Arrays.copyOf(elts, n)).tree;
+	}
+    }
+
+    public Val getDefault() {
+	return dflt;
+    }
+
+    /**
+     * Returns the least key of the map.
+     *
+     * @throws NoSuchElementException if the map is empty
+     */
+    public long firstKey() {
+	if (tree == null) throw new NoSuchElementException();
+	else return minKey(tree);
+    }
+
+    /**
+     * Returns the greatest key of the map.
+     *
+     * @throws NoSuchElementException if the map is empty
+     */
+    public long lastKey() {
+	if (tree == null) throw new NoSuchElementException();
+	Object subtree = tree;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    if (node.right == null) return node.key;
+	    subtree = node.right;
+	}
+	long[] keys = leafKeys((Object[])subtree);
+	return keys[keys.length - 1];
+    }
+
+    public Iterator<Map.Entry<Long, Val>> iterator() {
+	return new FLMIterator<Val>(tree);
+    }
+
+    /**
+     * Returns a <code>Spliterator</code> over the entries of the map.  It splits
+     * exactly along the tree structure, and reports <code>IMMUTABLE</code>,
+     * <code>DISTINCT</code>, <code>NONNULL</code>, <code>SIZED</code>,
+     * <code>SUBSIZED</code>, <code>ORDERED</code>, and <code>SORTED</code>; its
+     * comparator orders the entries by key.
+     */
+    public Spliterator<Map.Entry<Long, Val>> spliterator() {
+	return new FLMSpliterator<Val>(null, tree);
+    }
+
+    /**
+     * Calls <code>action</code> on each key and its value, in order.  Unlike
+     * iterating, this walks the tree recursively, and doesn't create
+     * <code>Map.Entry</code> objects (though it does box the keys).
+     */
+    public void forEach(BiConsumer<? super Long, ? super Val> action) {
+	if (action == null) throw new NullPointerException();
+	forEach(tree, action);
+    }
+
+    /**
+     * Calls <code>pred</code> on each key and its value, in order, until it
+     * returns false.  Like <code>forEach</code>, doesn't create entries.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every pair
+     */
+    public boolean forEachWhile(BiPredicate<? super Long, ? super Val> pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachWhile(tree, pred);
+    }
+
+    public MapDiff<Long, Val> diff(FMap<? extends Long, ? extends Val> other) {
+	return MapDiff.collect(this, other, FLongMap.<Val>emptyMap());
+    }
+
+    /**
+     * See the documentation for {@link Comparable#compareTo}.  A smaller map is less
+     * than a larger one; maps of the same size are compared lexicographically by
+     * key, then by value.  The values must implement <code>Comparable</code>.
+     */
+    public int compareTo(FLongMap<Val> other) {
+	if (other == this || other.tree == tree) return 0;
+	int size1 = size(), size2 = other.size();
+	if (size1 < size2) return -1;
+	else if (size1 > size2) return 1;
+	else return compareTo(tree, other.tree, MIN_VALUE, MAX_VALUE);
+    }
+
+    public boolean equals(Object obj) {
+	if (obj == this) return true;
+	else if (obj instanceof FLongMap) {
+	    FLongMap<?> other = (FLongMap<?>)obj;
+	    return size() == other.size() && isSubmap(tree, other.tree, MIN_VALUE, MAX_VALUE);
+	} else if (!(obj instanceof Map)) return false;
+	else {
+	    Map<?, ?> map = (Map<?, ?>)obj;
+	    if (size() != map.size()) return false;
+	    for (Map.Entry<?, ?> ent : map.entrySet()) {
+		Object key = ent.getKey();
+		if (!(key instanceof Long)) return false;
+		Object val = get(tree, (Long)key);
+		if (val == NO_ELEMENT || !eql(val, ent.getValue())) return false;
+	    }
+	    return true;
+	}
+    }
+
+    public int hashCode() {
+	if (hash_code == Integer.MIN_VALUE) hash_code = hashCode(tree);
+	return hash_code;
+    }
+
+    // For debugging.
+    /*pkg*/ String dump() {
+	return dump(tree);
+    }
+
+    /*pkg*/ boolean verify() {
+	return verify(tree, MIN_VALUE, MAX_VALUE);
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private static final long serialVersionUID = 1L;
+
+    // As in `FLongSet', the bounds passed to the hedge algorithms are inclusive, and
+    // start out as `MIN_VALUE' and `MAX_VALUE'.
+
+    private static final FLongMap<?> EMPTY_INSTANCE = new FLongMap();
+
+    /* Instance variables */
+    // This has package access for benefit of `Snapshot'.
+    /*pkg*/ transient final Object tree;	// a subtree (see below)
+    private final Val dflt;
+    private transient int hash_code = Integer.MIN_VALUE;	// cache
+
+    // This has package access so `Snapshot' can use it.
+    /*pkg*/ FLongMap(Object _tree, Val _dflt) {
+	tree = _tree;
+	dflt = _dflt;
+    }
+
+    private static final long MIN_VALUE = Long.MIN_VALUE;
+    private static final long MAX_VALUE = Long.MAX_VALUE;
+
+    /* The maximum number of pairs in a leaf. */
+    private static final int MAX_LEAF_PAIRS = 8;
+
+    /* The factor by which one subtree may outweigh another.  See Adams.  Don't
+     * change this unless you understand his analysis. */
+    private static final int BALANCE_FACTOR = 4;
+
+    /* A subtree can be either null, a `Node', or a leaf.  A leaf is an `Object[]'
+     * containing first the values, then, in its last slot, a `long[]' of the keys in
+     * increasing order (so its length is one more than the number of pairs).  The
+     * key arrays are never modified once the leaf is made, so a leaf that differs
+     * from another only in its values shares the other's key array; so does the
+     * corresponding leaf of `domain'. */
+    private static final class Node {
+	Node(int _size, long _key, Object _value, Object _left, Object _right) {
+	    size = _size;
+	    key = _key;
+	    value = _value;
+	    left = _left;
+	    right = _right;
+	}
+	private final int size;		// the number of pairs in the subtree
+	private final long key;
+	private final Object value;
+	private final Object left;	// a subtree
+	private final Object right;	// a subtree
+	private int hash_code = Integer.MIN_VALUE;	// cache of `hashCode(Object)'
+    }
+
+    private static final class Entry<Val> implements Map.Entry<Long, Val> {
+	Entry(long _key, Val _value) {
+	    key = _key;
+	    value = _value;
+	}
+	private final long key;
+	private final Val value;
+	public Long getKey() { return key; }
+	public Val getValue() { return value; }
+	public Val setValue(Val newval) {
+	    throw new UnsupportedOperationException();
+	}
+	public int hashCode() {
+	    return Long.hashCode(key) ^ (value == null ? 0 : value.hashCode());
+	}
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof Map.Entry)) return false;
+	    else {
+		Map.Entry<?, ?> ent = (Map.Entry<?, ?>)obj;
+		Object ekey = ent.getKey();
+		return ekey instanceof Long && (Long)ekey == key &&
+		       eql(value, ent.getValue());
+	    }
+	}
+	public String toString() {
+	    return key + "=" + value;
+	}
+    }
+
+    private static final Object NO_ELEMENT = new Object();
+
+    private static Node makeNode(long key, Object value, Object left, Object right) {
+	return new Node(treeSize(left) + treeSize(right) + 1, key, value, left, right);
+    }
+
+    private static int treeSize(Object subtree) {
+	if (subtree == null) return 0;
+	else if (!(subtree instanceof Node)) return leafSize((Object[])subtree);
+	else return ((Node)subtree).size;
+    }
+
+    private static int leafSize(Object[] ary) {
+	return ary.length - 1;
+    }
+
+    private static long[] leafKeys(Object[] ary) {
+	return (long[])ary[ary.length - 1];
+    }
+
+    // Builds a balanced tree, bottom-up, from `keys[lo..hi)' and `vals[lo..hi)'; the
+    // keys must be in strictly increasing order.
+    private static Object buildTree(long[] keys, Object[] vals, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if (hi - lo <= MAX_LEAF_PAIRS) return makeLeaf(keys, vals, lo, hi);
+	else {
+	    int mid = (lo + hi) >>> 1;
+	    return makeNode(keys[mid], vals[mid], buildTree(keys, vals, lo, mid),
+			    buildTree(keys, vals, mid + 1, hi));
+	}
+    }
+
+    private static Object domain(Object subtree) {
+	if (subtree == null) return null;
+	else if (!(subtree instanceof Node)) return leafKeys((Object[])subtree);
+	else {
+	    Node node = (Node)subtree;
+	    return FLongSet.makeNode(node.key, domain(node.left), domain(node.right));
+	}
+    }
+
+    private static <Val> void forEach(Object subtree,
+				      BiConsumer<? super Long, ? super Val> action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    long[] keys = leafKeys(ary);
+	    for (int i = 0, n = keys.length; i < n; ++i) action.accept(keys[i], (Val)ary[i]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEach(node.left, action);
+	    action.accept(node.key, (Val)node.value);
+	    forEach(node.right, action);
+	}
+    }
+
+    private static <Val> boolean forEachWhile(Object subtree,
+					      BiPredicate<? super Long, ? super Val> pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    long[] keys = leafKeys(ary);
+	    for (int i = 0, n = keys.length; i < n; ++i)
+		if (!pred.test(keys[i], (Val)ary[i])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    return forEachWhile(node.left, pred) && pred.test(node.key, (Val)node.value) &&
+		   forEachWhile(node.right, pred);
+	}
+    }
+
+    private static Object get(Object subtree, long key) {
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    long nkey = node.key;
+	    if (key == nkey) return node.value;
+	    else subtree = key < nkey ? node.left : node.right;
+	}
+	if (subtree == null) return NO_ELEMENT;
+	else {
+	    Object[] ary = (Object[])subtree;
+	    int idx = Arrays.binarySearch(leafKeys(ary), key);
+	    return idx >= 0 ? ary[idx] : NO_ELEMENT;
+	}
+    }
+
+    private static Object with(Object subtree, long key, Object value, BinaryOp combiner) {
+	if (subtree == null) {
+	    long[] keys = new long[1];
+	    keys[0] = key;
+	    return new Object[] { value, keys };
+	} else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    long[] keys = leafKeys(ary);
+	    int idx = Arrays.binarySearch(keys, key);
+	    if (idx >= 0) {
+		Object oldval = ary[idx];
+		Object newval = combiner.apply(oldval, value);
+		if (eql(oldval, newval)) return subtree;
+		else {
+		    Object[] a = ary.clone();	// shares `keys'
+		    a[idx] = newval;
+		    return a;
+		}
+	    }
+	    idx = -idx - 1;
+	    if (keys.length < MAX_LEAF_PAIRS) return insert(ary, idx, key, value);
+	    else return makeNode(key, value, subseq(ary, 0, idx),
+				 subseq(ary, idx, keys.length));
+	} else {
+	    Node node = (Node)subtree;
+	    long nkey = node.key;
+	    if (key == nkey) {
+		Object newval = combiner.apply(node.value, value);
+		if (eql(node.value, newval)) return subtree;
+		else return new Node(node.size, nkey, newval, node.left, node.right);
+	    } else if (key < nkey) {
+		Object new_left = with(node.left, key, value, combiner);
+		if (new_left == node.left) return subtree;
+		else return buildNode(nkey, node.value, new_left, node.right);
+	    } else {
+		Object new_right = with(node.right, key, value, combiner);
+		if (new_right == node.right) return subtree;
+		else return buildNode(nkey, node.value, node.left, new_right);
+	    }
+	}
+    }
+
+    private static Object less(Object subtree, long key) {
+	if (subtree == null) return null;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int idx = Arrays.binarySearch(leafKeys(ary), key);
+	    if (idx < 0) return subtree;
+	    else return remove(ary, idx);
+	} else {
+	    Node node = (Node)subtree;
+	    long nkey = node.key;
+	    if (key == nkey) return join(node.left, node.right);
+	    else if (key < nkey) {
+		Object new_left = less(node.left, key);
+		if (new_left == node.left) return subtree;
+		else return buildNode(nkey, node.value, new_left, node.right);
+	    } else {
+		Object new_right = less(node.right, key);
+		if (new_right == node.right) return subtree;
+		else return buildNode(nkey, node.value, node.left, new_right);
+	    }
+	}
+    }
+
+    private static long minKey(Object subtree) {
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.key;
+	    subtree = node.left;
+	}
+	return leafKeys((Object[])subtree)[0];
+    }
+
+    private static Object minValue(Object subtree) {
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.value;
+	    subtree = node.left;
+	}
+	return ((Object[])subtree)[0];
+    }
+
+    /* Assumes `subtree' is nonempty. */
+    private static Object lessMin(Object subtree) {
+	if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    return subseq(ary, 1, leafSize(ary));
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.right;
+	    else return concat(node.key, node.value, lessMin(node.left), node.right);
+	}
+    }
+
+    /* In the hedge algorithms below, the root of any `Node' passed in is within
+     * [`lo', `hi'], since the callers `trim'; leaves may extend beyond the bounds,
+     * and the leaf routines clip them. */
+
+    private static Object union(Object subtree1, Object subtree2, BinaryOp combiner,
+				long lo, long hi) {
+	if (subtree2 == null || (subtree1 == subtree2 && combiner == second))
+	    return split(subtree1, lo, hi);
+	else if (subtree1 == null) return split(subtree2, lo, hi);
+	else if (!(subtree1 instanceof Node) && !(subtree2 instanceof Node))
+	    return union((Object[])subtree1, (Object[])subtree2, combiner, lo, hi);
+	else {
+	    // We can't swap the arguments, as `FLongSet.union' does, because the combiner
+	    // needs them in order; instead we split on whichever root is a node.
+	    long key;
+	    Object value;
+	    if (subtree1 instanceof Node) {
+		Node n1 = (Node)subtree1;
+		key = n1.key;
+		value = n1.value;
+		Object val2 = get(subtree2, key);
+		if (val2 != NO_ELEMENT) value = combiner.apply(value, val2);
+	    } else {
+		Node n2 = (Node)subtree2;
+		key = n2.key;
+		value = n2.value;
+		Object val1 = get(subtree1, key);
+		if (val1 != NO_ELEMENT) value = combiner.apply(val1, value);
+	    }
+	    Object new_left = key == lo ? null :
+		union(trim(subtree1, lo, key - 1), trim(subtree2, lo, key - 1), combiner,
+		      lo, key - 1);
+	    Object new_right = key == hi ? null :
+		union(trim(subtree1, key + 1, hi), trim(subtree2, key + 1, hi), combiner,
+		      key + 1, hi);
+	    return concat(key, value, new_left, new_right);
+	}
+    }
+
+    // `set_subtree' is a `FLongSet' subtree.
+    private static Object restrictedTo(Object subtree, Object set_subtree, long lo, long hi) {
+	if (subtree == null || set_subtree == null) return null;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    if (!(set_subtree instanceof FLongSet.Node))
+		return restrict(ary, (long[])set_subtree, true, lo, hi);
+	    else {
+		FLongSet.Node sn = (FLongSet.Node)set_subtree;
+		long key = sn.element;
+		Object new_left = key == lo ? null :
+		    restrictedTo(trim(subtree, lo, key - 1), FLongSet.trim(sn.left, lo, key - 1),
+				 lo, key - 1);
+		Object new_right = key == hi ? null :
+		    restrictedTo(trim(subtree, key + 1, hi), FLongSet.trim(sn.right, key + 1, hi),
+				 key + 1, hi);
+		Object value = get(subtree, key);
+		if (value != NO_ELEMENT) return concat(key, value, new_left, new_right);
+		else return join(new_left, new_right);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    long key = node.key;
+	    Object new_left = key == lo ? null :
+		restrictedTo(trim(node.left, lo, key - 1), FLongSet.trim(set_subtree, lo, key - 1),
+			     lo, key - 1);
+	    Object new_right = key == hi ? null :
+		restrictedTo(trim(node.right, key + 1, hi),
+			     FLongSet.trim(set_subtree, key + 1, hi), key + 1, hi);
+	    if (FLongSet.contains(set_subtree, key))
+		return concat(key, node.value, new_left, new_right);
+	    else return join(new_left, new_right);
+	}
+    }
+
+    // `set_subtree' is a `FLongSet' subtree.
+    private static Object restrictedFrom(Object subtree, Object set_subtree, long lo, long hi) {
+	if (subtree == null) return null;
+	else if (set_subtree == null) return split(subtree, lo, hi);
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    if (!(set_subtree instanceof FLongSet.Node))
+		return restrict(ary, (long[])set_subtree, false, lo, hi);
+	    else {
+		FLongSet.Node sn = (FLongSet.Node)set_subtree;
+		long key = sn.element;
+		Object new_left = key == lo ? null :
+		    restrictedFrom(trim(subtree, lo, key - 1),
+				   FLongSet.trim(sn.left, lo, key - 1), lo, key - 1);
+		Object new_right = key == hi ? null :
+		    restrictedFrom(trim(subtree, key + 1, hi),
+				   FLongSet.trim(sn.right, key + 1, hi), key + 1, hi);
+		return join(new_left, new_right);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    long key = node.key;
+	    Object new_left = key == lo ? null :
+		restrictedFrom(trim(node.left, lo, key - 1),
+			       FLongSet.trim(set_subtree, lo, key - 1), lo, key - 1);
+	    Object new_right = key == hi ? null :
+		restrictedFrom(trim(node.right, key + 1, hi),
+			       FLongSet.trim(set_subtree, key + 1, hi), key + 1, hi);
+	    if (FLongSet.contains(set_subtree, key)) return join(new_left, new_right);
+	    else return concat(key, node.value, new_left, new_right);
+	}
+    }
+
+    // Compares the pairs of the two subtrees whose keys are within [`lo', `hi'], in
+    // key order, as `compareTo' does.  Since the maps are the same size, the first
+    // difference is at the least key that is in only one of them (the map that has it
+    // is the lesser), or that has different values in the two.  Subtrees the two share
+    // are skipped.
+    private static int compareTo(Object subtree1, Object subtree2, long lo, long hi) {
+	if (subtree1 == subtree2) return 0;
+	else if (subtree1 instanceof Node) {
+	    Node n1 = (Node)subtree1;
+	    long key1 = n1.key;
+	    int comp_res = key1 == lo ? 0 :
+			   compareTo(trim(n1.left, lo, key1 - 1), trim(subtree2, lo, key1 - 1),
+				     lo, key1 - 1);
+	    if (comp_res != 0) return comp_res;
+	    Object val2 = get(subtree2, key1);
+	    if (val2 == NO_ELEMENT) return -1;
+	    comp_res = compareValues(n1.value, val2);
+	    if (comp_res != 0 || key1 == hi) return comp_res;
+	    else return compareTo(trim(n1.right, key1 + 1, hi), trim(subtree2, key1 + 1, hi),
+				  key1 + 1, hi);
+	} else if (subtree2 instanceof Node) {
+	    Node n2 = (Node)subtree2;
+	    long key2 = n2.key;
+	    int comp_res = key2 == lo ? 0 :
+			   compareTo(trim(subtree1, lo, key2 - 1), trim(n2.left, lo, key2 - 1),
+				     lo, key2 - 1);
+	    if (comp_res != 0) return comp_res;
+	    Object val1 = get(subtree1, key2);
+	    if (val1 == NO_ELEMENT) return 1;
+	    comp_res = compareValues(val1, n2.value);
+	    if (comp_res != 0 || key2 == hi) return comp_res;
+	    else return compareTo(trim(subtree1, key2 + 1, hi), trim(n2.right, key2 + 1, hi),
+				  key2 + 1, hi);
+	} else return compareTo((Object[])subtree1, (Object[])subtree2, lo, hi);
+    }
+
+    private static int compareValues(Object val1, Object val2) {
+	return val1 == val2 ? 0 : ((Comparable<Object>)val1).compareTo(val2);
+    }
+
+    // Returns true if every pair of `subtree1' whose key is within [`lo', `hi'] is
+    // also in `subtree2'.  Subtrees the two share are skipped.
+    private static boolean isSubmap(Object subtree1, Object subtree2, long lo, long hi) {
+	if (subtree1 == subtree2 || subtree1 == null) return true;
+	else if (!(subtree1 instanceof Node)) {
+	    Object[] ary = (Object[])subtree1;
+	    long[] keys = leafKeys(ary);
+	    for (int i = searchLo(keys, lo), len = searchHi(keys, hi); i < len; ++i) {
+		Object val2 = get(subtree2, keys[i]);
+		if (val2 == NO_ELEMENT || !eql(ary[i], val2)) return false;
+	    }
+	    return true;
+	} else {
+	    Node n1 = (Node)subtree1;
+	    long key1 = n1.key;
+	    Object val2 = get(subtree2, key1);
+	    return val2 != NO_ELEMENT && eql(n1.value, val2) &&
+		   (key1 == lo ||
+		    isSubmap(trim(n1.left, lo, key1 - 1), trim(subtree2, lo, key1 - 1),
+			     lo, key1 - 1)) &&
+		   (key1 == hi ||
+		    isSubmap(trim(n1.right, key1 + 1, hi), trim(subtree2, key1 + 1, hi),
+			     key1 + 1, hi));
+	}
+    }
+
+    // Returns a new tree all of whose keys are within [`lo', `hi'].  (Contrast
+    // `trim'.)
+    private static Object split(Object subtree, long lo, long hi) {
+	if (subtree == null) return null;
+	else if (lo == MIN_VALUE && hi == MAX_VALUE) return subtree;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    long[] keys = leafKeys(ary);
+	    int len = keys.length;
+	    int lo_split = lo == MIN_VALUE ? 0 : searchLo(keys, lo);
+	    int hi_split = hi == MAX_VALUE ? len : searchHi(keys, hi);
+	    if (lo_split >= hi_split) return null;
+	    else if (lo_split == 0 && hi_split == len) return subtree;
+	    else return subseq(ary, lo_split, hi_split);
+	} else {
+	    Node node = (Node)subtree;
+	    long nkey = node.key;
+	    if (nkey < lo) return split(node.right, lo, hi);
+	    else if (nkey > hi) return split(node.left, lo, hi);
+	    else {
+		Object new_left = split(node.left, lo, MAX_VALUE);
+		Object new_right = split(node.right, MIN_VALUE, hi);
+		if (new_left == node.left && new_right == node.right) return subtree;
+		else return concat(nkey, node.value, new_left, new_right);
+	    }
+	}
+    }
+
+    // Returns the largest subtree of `subtree' whose root node is within [`lo', `hi'],
+    // or a leaf that overlaps that range.  (Contrast `split'.)
+    private static Object trim(Object subtree, long lo, long hi) {
+	if (subtree == null) return null;
+	else if (!(subtree instanceof Node)) {
+	    long[] keys = leafKeys((Object[])subtree);
+	    // If the array is completely out of range, drop it.
+	    if (keys[keys.length - 1] < lo || keys[0] > hi) return null;
+	    else return subtree;
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.key < lo) return trim(node.right, lo, hi);
+	    else if (node.key > hi) return trim(node.left, lo, hi);
+	    else return subtree;
+	}
+    }
+
+    // Assumes that all keys of `left' are less than `key', and all keys of `right'
+    // are greater than `key'; returns a new tree containing all these pairs.  This
+    // does more rebalancing than `buildNode', which otherwise has the same contract.
+    private static Object concat(long key, Object value, Object left, Object right) {
+	if (left == null) return with(right, key, value, second);
+	else if (right == null) return with(left, key, value, second);
+	else {
+	    int sizl = treeSize(left);
+	    int sizr = treeSize(right);
+	    if (left instanceof Node && sizl > sizr * BALANCE_FACTOR) {
+		Node l = (Node)left;
+		return buildNode(l.key, l.value, l.left, concat(key, value, l.right, right));
+	    } else if (right instanceof Node && sizr > sizl * BALANCE_FACTOR) {
+		Node r = (Node)right;
+		return buildNode(r.key, r.value, concat(key, value, left, r.left), r.right);
+	    } else return buildNode(key, value, left, right);
+	}
+    }
+
+    // Returns the union of `left' and `right' under the assumption that all keys
+    // in `left' are less than any key in `right'.
+    private static Object join(Object left, Object right) {
+	if (left == null) return right;
+	else if (right == null) return left;
+	else return concat(minKey(right), minValue(right), left, lessMin(right));
+    }
+
+    private static Object buildNode(long key, Object value, Object left, Object right) {
+	if ((left == null || !(left instanceof Node)) &&
+	    (right == null || !(right instanceof Node))) {
+	    Object[] lary = (Object[])left, rary = (Object[])right;
+	    if (treeSize(left) + treeSize(right) < MAX_LEAF_PAIRS)
+		return concat(key, value, lary, rary);
+	    else return makeNode(key, value, left, right);
+	} else {
+	    int sizl = treeSize(left);
+	    int sizr = treeSize(right);
+	    // As in `FTreeMap', this is subtly different from Adams' code in order to
+	    // create more opportunities to coalesce adjacent leaf arrays.
+	    if (right instanceof Node && sizr > sizl * BALANCE_FACTOR) {
+		Node r = (Node)right;
+		Object rl = r.left;
+		Object rr = r.right;
+		if (!(rl instanceof Node) || treeSize(rl) <= treeSize(rr))
+		    return makeNode(r.key, r.value, buildNode(key, value, left, rl), rr);
+		else {
+		    Node rln = (Node)rl;
+		    return makeNode(rln.key, rln.value, buildNode(key, value, left, rln.left),
+				    buildNode(r.key, r.value, rln.right, rr));
+		}
+	    } else if (left instanceof Node && sizl > sizr * BALANCE_FACTOR) {
+		Node l = (Node)left;
+		Object ll = l.left;
+		Object lr = l.right;
+		if (!(lr instanceof Node) || treeSize(lr) <= treeSize(ll))
+		    return makeNode(l.key, l.value, ll, buildNode(key, value, lr, right));
+		else {
+		    Node lrn = (Node)lr;
+		    return makeNode(lrn.key, lrn.value, buildNode(l.key, l.value, ll, lrn.left),
+				    buildNode(key, value, lrn.right, right));
+		}
+	    } else return makeNode(key, value, left, right);
+	}
+    }
+
+    private static int hashCode(Object subtree) {
+	if (subtree == null) return 0;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    long[] keys = leafKeys(ary);
+	    int hash = 0;
+	    for (int i = 0, n = keys.length; i < n; ++i)
+		hash += Long.hashCode(keys[i]) ^ (ary[i] == null ? 0 : ary[i].hashCode());
+	    return hash;
+	} else {
+	    // Each node caches the hash code of its subtree, so a map made from one whose
+	    // hash code has already been computed gets its own in O(log n) time.
+	    Node node = (Node)subtree;
+	    int hash = node.hash_code;
+	    if (hash == Integer.MIN_VALUE) {
+		hash = hashCode(node.left) +
+		       (Long.hashCode(node.key) ^ (node.value == null ? 0 : node.value.hashCode())) +
+		       hashCode(node.right);
+		node.hash_code = hash;
+	    }
+	    return hash;
+	}
+    }
+
+    private static String dump(Object subtree) {
+	if (subtree == null) return "[null]";
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    return Arrays.toString(leafKeys(ary)) + " -> " +
+		   Arrays.toString(Arrays.copyOf(ary, leafSize(ary)));
+	} else {
+	    Node node = (Node)subtree;
+	    return "(" + node.size + ", " + node.key + " -> " + node.value + ";\n" +
+		indent(dump(node.left), "  ") + ",\n" +
+		indent(dump(node.right), "  ") + ")";
+	}
+    }
+
+    private static String indent(String str, String prefix) {
+	StringBuffer res = new StringBuffer(prefix);
+	for (int i = 0, len = str.length(); i < len; ++i) {
+	    char c = str.charAt(i);
+	    res.append(c);
+	    if (c == '\n' && i < len - 1) res.append(prefix);
+	}
+	return res.toString();
+    }
+
+    // The bounds are inclusive.
+    private static boolean verify(Object subtree, long lo, long hi) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    if (ary.length < 2 || !(ary[ary.length - 1] instanceof long[])) return false;
+	    long[] keys = leafKeys(ary);
+	    int len = keys.length;
+	    if (len != leafSize(ary) || len > MAX_LEAF_PAIRS) return false;
+	    if (keys[0] < lo || keys[len - 1] > hi) return false;
+	    for (int i = 1; i < len; ++i)
+		if (keys[i - 1] >= keys[i]) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    long key = node.key;
+	    int sizl = treeSize(node.left);
+	    int sizr = treeSize(node.right);
+	    if (node.size != sizl + sizr + 1) return false;
+	    if (key < lo || key > hi) return false;
+	    // Small subtrees may be unbalanced, because of our array-splitting
+	    // heuristic.  As long as the size of any subtree that can be unbalanced is
+	    // strictly bounded, we're still okay.
+	    if ((sizr > 4 && sizl > sizr * BALANCE_FACTOR) ||
+		(sizl > 4 && sizr > sizl * BALANCE_FACTOR))
+		return false;
+	    return (key == lo ? node.left == null : verify(node.left, lo, key - 1)) &&
+		   (key == hi ? node.right == null : verify(node.right, key + 1, hi));
+	}
+    }
+
+    private static boolean eql(Object x, Object y) {
+	return x == null ? y == null : x.equals(y);
+    }
+
+    /****************/
+    /* Internal array manipulation routines.  These all assume their index
+     * parameters are within bounds.  Of course, despite what the names of some
+     * might suggest, they all make new arrays.  They take and return leaves. */
+
+    // Makes a leaf from `keys[lo..hi)' and `vals[lo..hi)'.
+    private static Object[] makeLeaf(long[] keys, Object[] vals, int lo, int hi) {
+	Object[] a = new Object[hi - lo + 1];
+	System.arraycopy(vals, lo, a, 0, hi - lo);
+	a[hi - lo] = Arrays.copyOfRange(keys, lo, hi);
+	return a;
+    }
+
+    private static Object[] concat(long key, Object value, Object[] left, Object[] right) {
+	int llen = (left == null ? 0 : leafSize(left));
+	int rlen = (right == null ? 0 : leafSize(right));
+	long[] keys = new long[llen + 1 + rlen];
+	Object[] a = new Object[llen + 1 + rlen + 1];
+	if (llen > 0) {
+	    System.arraycopy(leafKeys(left), 0, keys, 0, llen);
+	    System.arraycopy(left, 0, a, 0, llen);
+	}
+	keys[llen] = key;
+	a[llen] = value;
+	if (rlen > 0) {
+	    System.arraycopy(leafKeys(right), 0, keys, llen + 1, rlen);
+	    System.arraycopy(right, 0, a, llen + 1, rlen);
+	}
+	a[a.length - 1] = keys;
+	return a;
+    }
+
+    private static Object[] insert(Object[] ary, int idx, long key, Object value) {
+	long[] keys = leafKeys(ary);
+	int len = keys.length;
+	long[] new_keys = new long[len + 1];
+	System.arraycopy(keys, 0, new_keys, 0, idx);
+	new_keys[idx] = key;
+	System.arraycopy(keys, idx, new_keys, idx + 1, len - idx);
+	Object[] a = new Object[len + 2];
+	System.arraycopy(ary, 0, a, 0, idx);
+	a[idx] = value;
+	System.arraycopy(ary, idx, a, idx + 1, len - idx);
+	a[len + 1] = new_keys;
+	return a;
+    }
+
+    private static Object[] remove(Object[] ary, int idx) {
+	int len = leafSize(ary);
+	if (len == 1) return null;
+	else return concat(subseq(ary, 0, idx), subseq(ary, idx + 1, len));
+    }
+
+    // Concatenates two leaves, either of which may be null.
+    private static Object[] concat(Object[] left, Object[] right) {
+	if (left == null) return right;
+	else if (right == null) return left;
+	else {
+	    int llen = leafSize(left), rlen = leafSize(right);
+	    long[] keys = new long[llen + rlen];
+	    System.arraycopy(leafKeys(left), 0, keys, 0, llen);
+	    System.arraycopy(leafKeys(right), 0, keys, llen, rlen);
+	    Object[] a = new Object[llen + rlen + 1];
+	    System.arraycopy(left, 0, a, 0, llen);
+	    System.arraycopy(right, 0, a, llen, rlen);
+	    a[llen + rlen] = keys;
+	    return a;
+	}
+    }
+
+    // Returns the pairs of `ary' from `lo' (inclusive) to `hi' (exclusive).
+    // Compares the pairs of `ary1' and `ary2' whose keys are within [`lo', `hi'], in
+    // key order; either array may be null.
+    private static int compareTo(Object[] ary1, Object[] ary2, long lo, long hi) {
+	long[] keys1 = null, keys2 = null;
+	int i1 = 0, i2 = 0, len1 = 0, len2 = 0;
+	if (ary1 != null) {
+	    keys1 = leafKeys(ary1);
+	    i1 = searchLo(keys1, lo);
+	    len1 = searchHi(keys1, hi);
+	}
+	if (ary2 != null) {
+	    keys2 = leafKeys(ary2);
+	    i2 = searchLo(keys2, lo);
+	    len2 = searchHi(keys2, hi);
+	}
+	for (; i1 < len1 && i2 < len2; ++i1, ++i2) {
+	    long k1 = keys1[i1], k2 = keys2[i2];
+	    if (k1 != k2) return k1 < k2 ? -1 : 1;
+	    int comp_res = compareValues(ary1[i1], ary2[i2]);
+	    if (comp_res != 0) return comp_res;
+	}
+	return i1 < len1 ? -1 : i2 < len2 ? 1 : 0;
+    }
+
+    private static Object[] subseq(Object[] ary, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if (lo == 0 && hi == leafSize(ary)) return ary;
+	else return makeLeaf(leafKeys(ary), ary, lo, hi);
+    }
+
+    // Returns the index of the first member of `keys' that is not less than `lo'.
+    private static int searchLo(long[] keys, long lo) {
+	int idx = Arrays.binarySearch(keys, lo);
+	return idx >= 0 ? idx : -idx - 1;
+    }
+
+    // Returns the index just past the last member of `keys' that is not greater than
+    // `hi'.
+    private static int searchHi(long[] keys, long hi) {
+	int idx = Arrays.binarySearch(keys, hi);
+	return idx >= 0 ? idx + 1 : -idx - 1;
+    }
+
+    // Does a merge-union on `ary1' and `ary2', omitting any pairs whose keys are not
+    // within [`lo', `hi'].  If the result is too long to be a leaf, splits it and
+    // makes a node.
+    private static Object union(Object[] ary1, Object[] ary2, BinaryOp combiner,
+				long lo, long hi) {
+	long[] keys1 = leafKeys(ary1), keys2 = leafKeys(ary2);
+	int i1 = searchLo(keys1, lo), i2 = searchLo(keys2, lo);
+	int len1 = searchHi(keys1, hi), len2 = searchHi(keys2, hi);
+	int max = Math.max(len1 - i1, 0) + Math.max(len2 - i2, 0);
+	long[] keys = new long[max];
+	Object[] vals = new Object[max];
+	int n = 0;
+	while (i1 < len1 && i2 < len2) {
+	    long k1 = keys1[i1], k2 = keys2[i2];
+	    if (k1 < k2) {
+		keys[n] = k1;
+		vals[n++] = ary1[i1++];
+	    } else if (k1 > k2) {
+		keys[n] = k2;
+		vals[n++] = ary2[i2++];
+	    } else {
+		keys[n] = k1;
+		vals[n++] = combiner.apply(ary1[i1++], ary2[i2++]);
+	    }
+	}
+	while (i1 < len1) {
+	    keys[n] = keys1[i1];
+	    vals[n++] = ary1[i1++];
+	}
+	while (i2 < len2) {
+	    keys[n] = keys2[i2];
+	    vals[n++] = ary2[i2++];
+	}
+	return buildTree(keys, vals, 0, n);
+    }
+
+    // Keeps those pairs of `ary' within [`lo', `hi'] whose keys are (if `keep_if_in')
+    // or are not (otherwise) in `set_ary', which may be null.
+    private static Object[] restrict(Object[] ary, long[] set_ary, boolean keep_if_in,
+				     long lo, long hi) {
+	long[] keys = leafKeys(ary);
+	int i = searchLo(keys, lo), len = searchHi(keys, hi);
+	long[] new_keys = new long[Math.max(len - i, 0)];
+	Object[] vals = new Object[new_keys.length];
+	int n = 0;
+	for (; i < len; ++i) {
+	    boolean in = set_ary != null && Arrays.binarySearch(set_ary, keys[i]) >= 0;
+	    if (in == keep_if_in) {
+		new_keys[n] = keys[i];
+		vals[n++] = ary[i];
+	    }
+	}
+	if (n == 0) return null;
+	else if (n == leafSize(ary)) return ary;
+	else return makeLeaf(new_keys, vals, 0, n);
+    }
+
+    /****************/
+    // Iterator classes
+
+    // Walks the pairs in key order, without allocating anything per pair.
+    private static class FLMWalker {
+
+	private static final class IteratorNode {
+	    IteratorNode (Object _subtree, int _index, IteratorNode _parent) {
+		subtree = _subtree;
+		index = _index;
+		parent = _parent;
+	    }
+	    private final Object subtree;
+	    private int index;
+	    private final IteratorNode parent;
+	}
+
+	private IteratorNode inode;
+
+	FLMWalker(Object subtree) {
+	    inode = new IteratorNode(subtree, 0, null);
+	    canonicalize();
+	}
+
+	private void canonicalize() {
+	    while (true) {
+		if (inode == null) break;
+		else if (inode.subtree == null) {
+		    inode = inode.parent;
+		    if (inode == null) break;
+		    else ++inode.index;
+		} else if (!(inode.subtree instanceof Node)) {
+		    if (inode.index < leafSize((Object[])inode.subtree)) break;
+		    else {
+			inode = inode.parent;
+			if (inode == null) break;
+			else ++inode.index;
+		    }
+		} else {
+		    Node node = (Node)inode.subtree;
+		    if (inode.index == 0) inode = new IteratorNode(node.left, 0, inode);
+		    else if (inode.index == 2)
+			inode = new IteratorNode(node.right, 0, inode.parent);
+		    else break;
+		}
+	    }
+	}
+
+	public boolean hasNext() {
+	    return inode != null;
+	}
+
+	// These assume `hasNext()'.
+	long key() {
+	    if (!(inode.subtree instanceof Node))
+		return leafKeys((Object[])inode.subtree)[inode.index];
+	    else return ((Node)inode.subtree).key;
+	}
+
+	Object value() {
+	    if (!(inode.subtree instanceof Node)) return ((Object[])inode.subtree)[inode.index];
+	    else return ((Node)inode.subtree).value;
+	}
+
+	void advance() {
+	    inode.index++;
+	    canonicalize();
+	}
+
+	public void remove() {
+	    throw new UnsupportedOperationException();
+	}
+    }
+
+    private static final class FLMIterator<Val> extends FLMWalker
+	implements Iterator<Map.Entry<Long, Val>> {
+	FLMIterator(Object subtree) {
+	    super(subtree);
+	}
+	public Map.Entry<Long, Val> next() {
+	    if (!hasNext()) throw new NoSuchElementException();
+	    Entry<Val> ent = new Entry<Val>(key(), (Val)value());
+	    advance();
+	    return ent;
+	}
+    }
+
+    // Used by 'keySet'.
+    private static final class FLMKeyIterator extends FLMWalker
+	implements PrimitiveIterator.OfLong {
+	FLMKeyIterator(Object subtree) {
+	    super(subtree);
+	}
+	public long nextLong() {
+	    if (!hasNext()) throw new NoSuchElementException();
+	    long key = key();
+	    advance();
+	    return key;
+	}
+    }
+
+    // Used by 'values'.
+    private static final class FLMValueIterator<Val> extends FLMWalker
+	implements Iterator<Val> {
+	FLMValueIterator(Object subtree) {
+	    super(subtree);
+	}
+	public Val next() {
+	    if (!hasNext()) throw new NoSuchElementException();
+	    Val val = (Val)value();
+	    advance();
+	    return val;
+	}
+    }
+
+    private static final class FLMSpliterator<Val>
+	extends TreeSpliterator<Map.Entry<Long, Val>> {
+	FLMSpliterator(Object pending, Object subtree) {
+	    super(pending, subtree,
+		  IMMUTABLE | DISTINCT | NONNULL | SIZED | SUBSIZED | ORDERED | SORTED);
+	}
+	public Comparator<? super Map.Entry<Long, Val>> getComparator() {
+	    return Map.Entry.<Long, Val>comparingByKey();
+	}
+	protected TreeSpliterator<Map.Entry<Long, Val>> make(Object pending, Object subtree) {
+	    return new FLMSpliterator<Val>(pending, subtree);
+	}
+	protected boolean isNode(Object subtree) { return subtree instanceof Node; }
+	protected Object left(Object node) { return ((Node)node).left; }
+	protected Object right(Object node) { return ((Node)node).right; }
+	protected int subtreeSize(Object subtree) { return treeSize(subtree); }
+	protected int nodeElementCount(Object node) { return 1; }
+	protected Map.Entry<Long, Val> nodeElement(Object node, int index) {
+	    Node n = (Node)node;
+	    return new Entry<Val>(n.key, (Val)n.value);
+	}
+	protected Iterator<Map.Entry<Long, Val>> iterator(Object subtree) {
+	    return new FLMIterator<Val>(subtree);
+	}
+    }
+
+    // Writes the pairs of `subtree' in key order, for `Snapshot.write'.
+    /*pkg*/ static void writeSnapshot(Object subtree, Snapshot.Encoder<Object> venc,
+				      Snapshot.Output out)
+	    throws IOException {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    long[] keys = leafKeys(ary);
+	    for (int i = 0; i < keys.length; ++i) {
+		out.writeLong(keys[i]);
+		venc.encode(ary[i], out);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    writeSnapshot(node.left, venc, out);
+	    out.writeLong(node.key);
+	    venc.encode(node.value, out);
+	    writeSnapshot(node.right, venc, out);
+	}
+    }
+
+    // Reads the `size' pairs written by `writeSnapshot' and builds the tree.
+    /*pkg*/ static Object readSnapshot(int size, Snapshot.Encoder<Object> venc,
+				       Snapshot.Input in)
+	    throws IOException {
+	long[] keys = new long[size];
+	Object[] vals = new Object[size];
+	for (int i = 0; i < size; ++i) {
+	    keys[i] = in.readLong();
+	    if (i > 0 && keys[i] <= keys[i - 1])
+		throw new StreamCorruptedException("Snapshot keys out of order");
+	    vals[i] = venc.decode(in);
+	}
+	return buildTree(keys, vals, 0, size);
+    }
+
+    /**
+     * Saves the state of this <code>FLongMap</code> to a stream.
+     *
+     * @serialData Emits the default value; the size of the map [<code>int</code>];
+     * and the key/value pairs in key order [<code>long</code>, <code>Object</code>].
+     */
+    private void writeObject(ObjectOutputStream strm) throws IOException {
+	strm.defaultWriteObject();	// writes `dflt'
+	strm.writeInt(size());
+	for (FLMWalker w = new FLMWalker(tree); w.hasNext(); w.advance()) {
+	    strm.writeLong(w.key());
+	    strm.writeObject(w.value());
+	}
+    }
+
+    // http://docs.oracle.com/javase/specs/jls/se7/html/jls-17.html#jls-17.5.3
+    private static Field TreeField;
+    static {
+	try {
+	    TreeField = FLongMap.class.getDeclaredField("tree");
+	    TreeField.setAccessible(true);
+	} catch (NoSuchFieldException nsf) {
+	    throw new RuntimeException("Static initialization failed", nsf);
+	}
+    }
+
+    /**
+     * Reconstitutes the <code>FLongMap</code> instance from a stream.
+     */
+    private void readObject(ObjectInputStream strm) throws IOException, ClassNotFoundException {
+	hash_code = Integer.MIN_VALUE;
+	strm.defaultReadObject();	// reads `dflt'
+	int size = strm.readInt();
+	// `writeObject' emits the pairs in order, so we can build the tree bottom-up.
+	long[] keys = new long[size];
+	Object[] vals = new Object[size];
+	for (int i = 0; i < size; ++i) {
+	    keys[i] = strm.readLong();
+	    vals[i] = strm.readObject();
+	}
+	try {
+	    TreeField.set(this, buildTree(keys, vals, 0, size));
+	} catch (IllegalAccessException ia) {
+	    throw new RuntimeException("FLongMap deserialization failed", ia);
+	}
+    }
+
+}
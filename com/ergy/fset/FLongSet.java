@@ -0,0 +1,1325 @@
+/*
+ * FLongSet.java
+ *
+ * Generated from templates/FPrimSet.java.in by `make gen'; edit the template,
+ * not this file.
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
+
+/**
+ * A functional set of <code>long</code>s.  It has the same structure as {@link
+ * FTreeSet} -- a weight-balanced binary tree with bounded-length arrays at the
+ * leaves -- but the leaves are <code>long[]</code>s and the nodes hold the values
+ * unboxed, so there are no <code>Long</code> objects to allocate or to chase
+ * pointers to, and searching compares values directly rather than calling
+ * <code>compareTo</code>.  The elements are kept in numerical order.
+ *
+ * <p>The methods of <code>FSet&lt;Long&gt;</code> box and unbox as necessary.
+ * There are also unboxed versions of <code>contains</code>, <code>with</code>, and
+ * <code>less</code>; <code>iterator</code> returns a
+ * <code>PrimitiveIterator.OfLong</code>; and <code>forEachLong</code> and
+ * <code>forEachLongWhile</code> take <code>LongConsumer</code> and
+ * <code>LongPredicate</code> respectively.
+ *
+ * <p>Time costs: <code>isEmpty</code>, <code>size</code>, and <code>arb</code> take
+ * O(1) (constant) time.  <code>contains</code>, <code>with</code>,
+ * <code>less</code>, <code>first</code>, and <code>last</code> take O(log <i>n</i>)
+ * time.  <code>union</code>, <code>intersection</code>, <code>difference</code>,
+ * <code>isSubset</code>, <code>isSuperset</code>, <code>equals</code>, and
+ * <code>compareTo</code> take O(n) (linear) time if the other set involved is also
+ * a <code>FLongSet</code>; otherwise, they take O(<i>n</i> log <i>n</i>) time.
+ *
+ * <p><code>FLongSet</code> does not accept the null element; <code>with(null)</code>
+ * throws <code>NullPointerException</code>.
+ *
+ * <p><code>FLongSet</code> implements {@link Serializable}.
+ *
+ * @author Scott L. Burson
+ * @see FSet
+ * @see FTreeSet
+ * @see FLongMap
+ */
+
+public final class FLongSet
+    extends AbstractFSet<Long>
+    implements Comparable<FLongSet>, Serializable
+{
+
+    /**
+     * Returns an empty <code>FLongSet</code>.  Slightly more efficient than calling the
+     * constructor, because it returns a canonical instance.
+     */
+    public static FLongSet emptySet() {
+	return EMPTY_INSTANCE;
+    }
+
+    /**
+     * Constructs an empty <code>FLongSet</code>.
+     */
+    public FLongSet() {
+	tree = null;
+    }
+
+    /**
+     * Constructs a <code>FLongSet</code> whose elements are those of <code>elts</code>.
+     * They need not be in order, and may contain duplicates; a copy of the array is
+     * sorted, and the tree built from it bottom-up, rather than by inserting the
+     * elements one at a time.
+     *
+     * @param elts the elements (as an argument list or array)
+     */
+    public FLongSet(long... elts) {
+	tree = fromArray(elts.clone(), elts.length);
+    }
+
+    /**
+     * Constructs a <code>FLongSet</code> containing the same elements as
+     * <code>coll</code>.
+     *
+     * @param coll the collection to use the elements of
+     * @throws NullPointerException if <code>coll</code> contains null
+     */
+    public FLongSet(Collection<? extends Long> coll) {
+	tree = fromCollection(coll);
+    }
+
+    private static Object fromCollection(Collection<? extends Long> coll) {
+	if (coll instanceof FLongSet) return ((FLongSet)coll).tree;
+	else {
+	    long[] elts = new long[coll.size()];
+	    int n = 0;
+	    for (Long e : coll) elts[n++] = e;
+	    return fromArray(elts, n);
+	}
+    }
+
+    public boolean isEmpty() {
+	return tree == null;
+    }
+
+    public int size() {
+	return treeSize(tree);
+    }
+
+    public Long arb() {
+	if (tree == null) throw new NoSuchElementException();
+	else if (!(tree instanceof Node)) {
+	    long[] ary = (long[])tree;
+	    return ary[ary.length >> 1];
+	} else return ((Node)tree).element;
+    }
+
+    public boolean contains(Object elt) {
+	return elt instanceof Long && contains(tree, (Long)elt);
+    }
+
+    /**
+     * Returns true if this set contains <code>elt</code>.  Unlike
+     * <code>contains(Object)</code>, this doesn't box.
+     */
+    public boolean contains(long elt) {
+	return contains(tree, elt);
+    }
+
+    /**
+     * Returns the least element of the set.
+     *
+     * @throws NoSuchElementException if the set is empty
+     */
+    public long first() {
+	if (tree == null) throw new NoSuchElementException();
+	Object subtree = tree;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.element;
+	    subtree = node.left;
+	}
+	return ((long[])subtree)[0];
+    }
+
+    /**
+     * Returns the greatest element of the set.
+     *
+     * @throws NoSuchElementException if the set is empty
+     */
+    public long last() {
+	if (tree == null) throw new NoSuchElementException();
+	Object subtree = tree;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    if (node.right == null) return node.element;
+	    subtree = node.right;
+	}
+	long[] ary = (long[])subtree;
+	return ary[ary.length - 1];
+    }
+
+    /**
+     * Returns an iterator over the elements of the set, in increasing order.  Its
+     * <code>nextLong</code> method returns them without boxing.
+     */
+    public PrimitiveIterator.OfLong iterator() {
+	return new FLSIterator(tree);
+    }
+
+    /**
+     * Returns a <code>Spliterator</code> over the set.  It splits exactly along the
+     * tree structure, and reports <code>IMMUTABLE</code>, <code>DISTINCT</code>,
+     * <code>NONNULL</code>, <code>SIZED</code>, <code>SUBSIZED</code>,
+     * <code>ORDERED</code>, and <code>SORTED</code> (in natural order).
+     */
+    public Spliterator<Long> spliterator() {
+	return new FLSSpliterator(null, tree);
+    }
+
+    /**
+     * Returns the elements of the set, in increasing order, as a new array.
+     */
+    public long[] toLongArray() {
+	long[] res = new long[size()];
+	toArray(tree, res, 0);
+	return res;
+    }
+
+    /**
+     * Calls <code>action</code> on each element of the set, in increasing order.
+     * This walks the tree recursively, and allocates nothing -- not even boxes for
+     * the elements.
+     */
+    public void forEachLong(LongConsumer action) {
+	if (action == null) throw new NullPointerException();
+	forEachLong(tree, action);
+    }
+
+    /**
+     * Calls <code>action</code> on each element of the set, in increasing order.
+     * Like <code>forEachLong</code>, but boxes the elements.
+     */
+    public void forEach(Consumer<? super Long> action) {
+	if (action == null) throw new NullPointerException();
+	forEach(tree, action);
+    }
+
+    /**
+     * Calls <code>pred</code> on each element of the set, in increasing order, until
+     * it returns false.  Like <code>forEachLong</code>, allocates nothing.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every element
+     */
+    public boolean forEachLongWhile(LongPredicate pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachLongWhile(tree, pred);
+    }
+
+    /**
+     * Calls <code>pred</code> on each element of the set, in increasing order, until
+     * it returns false.  Like <code>forEachLongWhile</code>, but boxes the elements.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every element
+     */
+    public boolean forEachWhile(Predicate<? super Long> pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachWhile(tree, pred);
+    }
+
+    /**
+     * Returns a set containing <code>elt</code> as well as the elements of this set.
+     *
+     * @throws NullPointerException if <code>elt</code> is null
+     */
+    public FLongSet with(Long elt) {
+	return with((long)elt);
+    }
+
+    /**
+     * Returns a set containing <code>elt</code> as well as the elements of this set.
+     * Unlike <code>with(Long)</code>, this doesn't box.
+     */
+    public FLongSet with(long elt) {
+	Object t = with(tree, elt);
+	if (t == tree) return this;
+	else return make(t);
+    }
+
+    public FLongSet less(Long elt) {
+	if (elt == null) return this;
+	else return less((long)elt);
+    }
+
+    /**
+     * Returns a set containing the elements of this set other than <code>elt</code>.
+     * Unlike <code>less(Long)</code>, this doesn't box.
+     */
+    public FLongSet less(long elt) {
+	Object t = less(tree, elt);
+	if (t == tree) return this;
+	else return make(t);
+    }
+
+    /**
+     * Returns the union of this set with <code>coll</code>.  That is, returns a set
+     * containing all elements that are in either this set, or <code>coll</code>, or
+     * both.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FLongSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the set to take the union with
+     * @return the union of the two sets
+     * @throws NullPointerException if <code>coll</code> contains null
+     */
+    public FLongSet union(Collection<? extends Long> coll) {
+	if (coll == this || coll.isEmpty()) return this;
+	FLongSet other = convert(coll);
+	if (isEmpty()) return other;
+	else return make(union(tree, other.tree, MIN_VALUE, MAX_VALUE));
+    }
+
+    /**
+     * Returns the intersection of this set with <code>coll</code>.  That is, returns a
+     * set containing all elements that are in both this set and <code>coll</code>.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FLongSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the set to take the intersection with
+     * @return the intersection of the two sets
+     */
+    public FLongSet intersection(Collection<? extends Long> coll) {
+	if (coll == this) return this;
+	else if (isEmpty() || coll.isEmpty()) return EMPTY_INSTANCE;
+	else if (coll instanceof FLongSet)
+	    return make(intersection(tree, ((FLongSet)coll).tree, MIN_VALUE, MAX_VALUE));
+	else {
+	    // Don't convert `coll'; it may contain nulls or non-Longs.
+	    Object t = null;
+	    for (Object e : coll)
+		if (e instanceof Long && contains(tree, (Long)e)) t = with(t, (Long)e);
+	    return make(t);
+	}
+    }
+
+    /**
+     * Returns the difference of this set less <code>coll</code>.  That is, returns a
+     * set containing all elements that are in this set and not in <code>coll</code>.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FLongSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the set to take the difference with
+     * @return the difference of the two sets (this set less <code>coll</code>)
+     */
+    public FLongSet difference(Collection<? extends Long> coll) {
+	if (coll == this) return EMPTY_INSTANCE;
+	else if (isEmpty() || coll.isEmpty()) return this;
+	else if (coll instanceof FLongSet)
+	    return make(difference(tree, ((FLongSet)coll).tree, MIN_VALUE, MAX_VALUE));
+	else {
+	    Object t = tree;
+	    for (Object e : coll)
+		if (e instanceof Long) t = less(t, (Long)e);
+	    return make(t);
+	}
+    }
+
+    /**
+     * Returns true if this set is a subset of <code>coll</code>.  That is, returns
+     * true if <code>coll</code> contains all elements of this set.  The inclusion need
+     * not be proper; that is, this method returns true if the two sets are equal.
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FLongSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the collection to compare against
+     * @return whether this set is a subset of <code>coll</code>
+     */
+    public boolean isSubset(Collection<?> coll) {
+	if (coll == this) return true;
+	else if (size() > coll.size()) return false;
+	else if (coll instanceof FLongSet)
+	    return isSubset(tree, ((FLongSet)coll).tree, MIN_VALUE, MAX_VALUE);
+	else {
+	    for (Long e : this)
+		if (!coll.contains(e)) return false;
+	    return true;
+	}
+    }
+
+    /**
+     * Returns true if this set is a superset of <code>coll</code>.  That is, returns
+     * true if this set contains all elements of <code>coll</code>.  The inclusion need
+     * not be proper; that is, this method returns true if the two sets are equal.
+     * (Synonym for <code>containsAll</code>.)
+     *
+     * <p>This operation runs in O(n) (linear) time if <code>coll</code> is also a
+     * <code>FLongSet</code>; otherwise it runs in O(n log n) time.
+     *
+     * @param coll the collection to compare against
+     * @return whether this set is a superset of <code>coll</code>
+     */
+    public boolean isSuperset(Collection<?> coll) {
+	if (coll == this) return true;
+	else if (size() < coll.size()) return false;
+	else if (coll instanceof FLongSet)
+	    return isSubset(((FLongSet)coll).tree, tree, MIN_VALUE, MAX_VALUE);
+	else {
+	    for (Object e : coll)
+		if (!contains(e)) return false;
+	    return true;
+	}
+    }
+
+    public SetDiff<Long> diff(FSet<? extends Long> other) {
+	return SetDiff.collect(this, other, emptySet());
+    }
+
+    /**
+     * See the documentation for {@link Comparable#compareTo}.  As with
+     * <code>FTreeSet</code>, a smaller set is less than a larger one; sets of the
+     * same size are compared lexicographically.
+     */
+    public int compareTo(FLongSet other) {
+	if (other == this || other.tree == tree) return 0;
+	int size1 = size(), size2 = other.size();
+	if (size1 < size2) return -1;
+	else if (size1 > size2) return 1;
+	else return compareTo(tree, other.tree, MIN_VALUE, MAX_VALUE);
+    }
+
+    public boolean equals(Object obj) {
+	if (obj == this) return true;
+	else if (obj instanceof FLongSet) {
+	    FLongSet other = (FLongSet)obj;
+	    return size() == other.size() && isSubset(tree, other.tree, MIN_VALUE, MAX_VALUE);
+	} else if (!(obj instanceof Collection)) return false;
+	else {
+	    Collection<?> coll = (Collection<?>)obj;
+	    if (size() != coll.size()) return false;
+	    for (Object e : coll)
+		if (!contains(e)) return false;
+	    return true;
+	}
+    }
+
+    // Overriding this just to provide a slightly more efficient implementation.
+    // The default one (in `AbstractSet') uses the iterator.  But we have to compute
+    // the same value here, viz., the sum of the hash codes of the elements.
+    public int hashCode() {
+	if (hash_code == Integer.MIN_VALUE) hash_code = hashCode(tree);
+	return hash_code;
+    }
+
+    // For debugging.
+    /*pkg*/ String dump() {
+	return dump(tree);
+    }
+
+    /*pkg*/ boolean verify() {
+	return verify(tree, MIN_VALUE, MAX_VALUE);
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private static final long serialVersionUID = 1L;
+
+    // This is `FTreeSet''s tree, specialized.  Since two elements can't be equivalent
+    // without being equal, there are no `EquivalentSet's; and since every value
+    // is comparable to every other, there's no need for distinguished infinities:
+    // the bounds passed to the hedge algorithms are inclusive, and start out as
+    // `MIN_VALUE' and `MAX_VALUE'.  (When splitting at a node element that is equal
+    // to a bound, the range on that side is empty, so we never need to compute a
+    // bound that would overflow.)
+
+    private static final FLongSet EMPTY_INSTANCE = new FLongSet();
+
+    /* Instance variables */
+    // This has package access for benefit of `FLongMap.restricted{To,From}'.
+    /*pkg*/ transient final Object tree;	// a subtree (see below)
+    private transient int hash_code = Integer.MIN_VALUE;	// cache
+
+    // The 'int' parameter is just to distinguish it from the public constructors.
+    private FLongSet(int x, Object _tree) {
+	tree = _tree;
+    }
+
+    // This has package access so `FLongMap.domain' can use it.
+    /*pkg*/ static FLongSet make(Object tree) {
+	if (tree == null) return EMPTY_INSTANCE;
+	else return new FLongSet(42, tree);
+    }
+
+    private static FLongSet convert(Collection<? extends Long> coll) {
+	if (coll instanceof FLongSet) return (FLongSet)coll;
+	else return new FLongSet(coll);
+    }
+
+    private static final long MIN_VALUE = Long.MIN_VALUE;
+    private static final long MAX_VALUE = Long.MAX_VALUE;
+
+    /* The threshold length above which tree nodes will be built.  This is twice
+     * `FTreeSet''s; a `long[]' of this length is still very compact, and searching it
+     * is cheap. */
+    private static final int MAX_LEAF_ARRAY_LENGTH = 16;
+
+    /* The factor by which one subtree may outweigh another.  See Adams.  Don't
+     * change this unless you understand his analysis. */
+    private static final int BALANCE_FACTOR = 4;
+
+    /* A subtree can be either null, a `Node', or a leaf (a `long[]', in increasing
+     * order). */
+    // This has package access for benefit of `FLongMap'.
+    /*pkg*/ static final class Node {
+	Node(int _size, long _element, Object _left, Object _right) {
+	    size = _size;
+	    element = _element;
+	    left = _left;
+	    right = _right;
+	}
+	/*pkg*/ final int size;		// the number of elements in the subtree
+	/*pkg*/ final long element;
+	/*pkg*/ final Object left;	// a subtree
+	/*pkg*/ final Object right;	// a subtree
+	private int hash_code = Integer.MIN_VALUE;	// cache of `hashCode(Object)'
+    }
+
+    // This has package access so `FLongMap.domain' can use it.
+    /*pkg*/ static Node makeNode(long elt, Object left, Object right) {
+	return new Node(treeSize(left) + treeSize(right) + 1, elt, left, right);
+    }
+
+    private static int treeSize(Object subtree) {
+	if (subtree == null) return 0;
+	else if (!(subtree instanceof Node)) return ((long[])subtree).length;
+	else return ((Node)subtree).size;
+    }
+
+    // Builds a tree from the first `n' elements of `elts', which it may reorder.
+    private static Object fromArray(long[] elts, int n) {
+	// Already-sorted input, e.g. from another sorted collection, is common enough
+	// to be worth checking for.
+	boolean sorted = true;
+	for (int i = 1; i < n && sorted; ++i)
+	    if (elts[i - 1] > elts[i]) sorted = false;
+	if (!sorted) Arrays.sort(elts, 0, n);
+	int m = 0;
+	for (int i = 0; i < n; ++i)
+	    if (m == 0 || elts[i] != elts[m - 1]) elts[m++] = elts[i];
+	return buildTree(elts, 0, m);
+    }
+
+    // Builds a balanced tree, bottom-up, from `elts[lo..hi)', which must be in strictly
+    // increasing order.
+    private static Object buildTree(long[] elts, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if (hi - lo <= MAX_LEAF_ARRAY_LENGTH) return Arrays.copyOfRange(elts, lo, hi);
+	else {
+	    int mid = (lo + hi) >>> 1;
+	    return makeNode(elts[mid], buildTree(elts, lo, mid), buildTree(elts, mid + 1, hi));
+	}
+    }
+
+    private static void forEachLong(Object subtree, LongConsumer action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i) action.accept(ary[i]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEachLong(node.left, action);
+	    action.accept(node.element);
+	    forEachLong(node.right, action);
+	}
+    }
+
+    private static void forEach(Object subtree, Consumer<? super Long> action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i) action.accept(ary[i]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEach(node.left, action);
+	    action.accept(node.element);
+	    forEach(node.right, action);
+	}
+    }
+
+    private static boolean forEachLongWhile(Object subtree, LongPredicate pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i)
+		if (!pred.test(ary[i])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    return forEachLongWhile(node.left, pred) && pred.test(node.element) &&
+		   forEachLongWhile(node.right, pred);
+	}
+    }
+
+    private static boolean forEachWhile(Object subtree, Predicate<? super Long> pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i)
+		if (!pred.test(ary[i])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    return forEachWhile(node.left, pred) && pred.test(node.element) &&
+		   forEachWhile(node.right, pred);
+	}
+    }
+
+    private static int toArray(Object subtree, long[] res, int idx) {
+	if (subtree == null) return idx;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    System.arraycopy(ary, 0, res, idx, ary.length);
+	    return idx + ary.length;
+	} else {
+	    Node node = (Node)subtree;
+	    idx = toArray(node.left, res, idx);
+	    res[idx++] = node.element;
+	    return toArray(node.right, res, idx);
+	}
+    }
+
+    // This has package access for benefit of `FLongMap.restricted{To,From}'.
+    /*pkg*/ static boolean contains(Object subtree, long elt) {
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    long nelt = node.element;
+	    if (elt == nelt) return true;
+	    else subtree = elt < nelt ? node.left : node.right;
+	}
+	return subtree != null && Arrays.binarySearch((long[])subtree, elt) >= 0;
+    }
+
+    private static Object with(Object subtree, long elt) {
+	if (subtree == null) {
+	    long[] a = new long[1];
+	    a[0] = elt;
+	    return a;
+	} else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    int idx = Arrays.binarySearch(ary, elt);
+	    if (idx >= 0) return subtree;
+	    idx = -idx - 1;
+	    if (ary.length < MAX_LEAF_ARRAY_LENGTH) return insert(ary, idx, elt);
+	    else return makeNode(elt, subseq(ary, 0, idx), subseq(ary, idx, ary.length));
+	} else {
+	    Node node = (Node)subtree;
+	    long nelt = node.element;
+	    if (elt == nelt) return subtree;
+	    else if (elt < nelt) {
+		Object new_left = with(node.left, elt);
+		if (new_left == node.left) return subtree;
+		else return buildNode(nelt, new_left, node.right);
+	    } else {
+		Object new_right = with(node.right, elt);
+		if (new_right == node.right) return subtree;
+		else return buildNode(nelt, node.left, new_right);
+	    }
+	}
+    }
+
+    private static Object less(Object subtree, long elt) {
+	if (subtree == null) return null;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    int idx = Arrays.binarySearch(ary, elt);
+	    if (idx < 0) return subtree;
+	    else return remove(ary, idx);
+	} else {
+	    Node node = (Node)subtree;
+	    long nelt = node.element;
+	    if (elt == nelt) return join(node.left, node.right);
+	    else if (elt < nelt) {
+		Object new_left = less(node.left, elt);
+		if (new_left == node.left) return subtree;
+		else return buildNode(nelt, new_left, node.right);
+	    } else {
+		Object new_right = less(node.right, elt);
+		if (new_right == node.right) return subtree;
+		else return buildNode(nelt, node.left, new_right);
+	    }
+	}
+    }
+
+    private static long min(Object subtree) {
+	if (!(subtree instanceof Node)) return ((long[])subtree)[0];
+	else {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.element;
+	    else return min(node.left);
+	}
+    }
+
+    /* Assumes `subtree' is nonempty. */
+    private static Object lessMin(Object subtree) {
+	if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    return subseq(ary, 1, ary.length);
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.left == null) return node.right;
+	    else return concat(node.element, lessMin(node.left), node.right);
+	}
+    }
+
+    /* In the hedge algorithms below, the root of any `Node' passed as `subtree1' is
+     * within [`lo', `hi'], since the callers `trim'; leaves may extend beyond the
+     * bounds, and the leaf routines clip them. */
+
+    private static Object union(Object subtree1, Object subtree2, long lo, long hi) {
+	if (subtree1 == subtree2 || subtree2 == null) return split(subtree1, lo, hi);
+	else if (subtree1 == null) return split(subtree2, lo, hi);
+	else if (!(subtree1 instanceof Node)) {
+	    if (!(subtree2 instanceof Node))
+		return union((long[])subtree1, (long[])subtree2, lo, hi);
+	    else return union(subtree2, subtree1, lo, hi);
+	} else {
+	    Node n1 = (Node)subtree1;
+	    long elt1 = n1.element;
+	    Object new_left = elt1 == lo ? null :
+		union(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1), lo, elt1 - 1);
+	    Object new_right = elt1 == hi ? null :
+		union(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi), elt1 + 1, hi);
+	    return concat(elt1, new_left, new_right);
+	}
+    }
+
+    private static Object intersection(Object subtree1, Object subtree2, long lo, long hi) {
+	if (subtree1 == subtree2) return split(subtree1, lo, hi);
+	else if (subtree1 == null || subtree2 == null) return null;
+	else if (!(subtree1 instanceof Node)) {
+	    if (!(subtree2 instanceof Node))
+		return intersection((long[])subtree1, (long[])subtree2, lo, hi);
+	    else return intersection(trim(subtree2, lo, hi), subtree1, lo, hi);
+	} else {
+	    Node n1 = (Node)subtree1;
+	    long elt1 = n1.element;
+	    Object new_left = elt1 == lo ? null :
+		intersection(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1),
+			     lo, elt1 - 1);
+	    Object new_right = elt1 == hi ? null :
+		intersection(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi),
+			     elt1 + 1, hi);
+	    if (contains(subtree2, elt1)) return concat(elt1, new_left, new_right);
+	    else return join(new_left, new_right);
+	}
+    }
+
+    private static Object difference(Object subtree1, Object subtree2, long lo, long hi) {
+	if (subtree1 == null || subtree1 == subtree2) return null;
+	else if (subtree2 == null) return split(subtree1, lo, hi);
+	else if (!(subtree1 instanceof Node)) {
+	    if (!(subtree2 instanceof Node))
+		return difference((long[])subtree1, (long[])subtree2, lo, hi);
+	    else {
+		// Can't use the reversing trick here because difference is not
+		// commutative.  `subtree2' has been trimmed too.
+		Node n2 = (Node)subtree2;
+		long elt2 = n2.element;
+		Object new_left = elt2 == lo ? null :
+		    difference(trim(subtree1, lo, elt2 - 1), trim(n2.left, lo, elt2 - 1),
+			       lo, elt2 - 1);
+		Object new_right = elt2 == hi ? null :
+		    difference(trim(subtree1, elt2 + 1, hi), trim(n2.right, elt2 + 1, hi),
+			       elt2 + 1, hi);
+		return join(new_left, new_right);
+	    }
+	} else {
+	    Node n1 = (Node)subtree1;
+	    long elt1 = n1.element;
+	    Object new_left = elt1 == lo ? null :
+		difference(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1),
+			   lo, elt1 - 1);
+	    Object new_right = elt1 == hi ? null :
+		difference(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi),
+			   elt1 + 1, hi);
+	    if (contains(subtree2, elt1)) return join(new_left, new_right);
+	    else return concat(elt1, new_left, new_right);
+	}
+    }
+
+    private static boolean isSubset(Object subtree1, Object subtree2, long lo, long hi) {
+	if (subtree1 == subtree2 || subtree1 == null) return true;
+	else if (!(subtree1 instanceof Node)) {
+	    if (subtree2 == null || !(subtree2 instanceof Node))
+		return isSubset((long[])subtree1, (long[])subtree2, lo, hi);
+	    else {
+		Node n2 = (Node)subtree2;
+		long elt2 = n2.element;
+		return (elt2 == lo ||
+			isSubset(trim(subtree1, lo, elt2 - 1), trim(n2.left, lo, elt2 - 1),
+				 lo, elt2 - 1)) &&
+		       (elt2 == hi ||
+			isSubset(trim(subtree1, elt2 + 1, hi), trim(n2.right, elt2 + 1, hi),
+				 elt2 + 1, hi));
+	    }
+	} else if (subtree2 == null) return false;
+	else {
+	    Node n1 = (Node)subtree1;
+	    long elt1 = n1.element;
+	    return contains(subtree2, elt1) &&
+		   (elt1 == lo ||
+		    isSubset(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1),
+			     lo, elt1 - 1)) &&
+		   (elt1 == hi ||
+		    isSubset(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi),
+			     elt1 + 1, hi));
+	}
+    }
+
+    // Compares the elements of the two subtrees that are within [`lo', `hi'], in
+    // order, as `compareTo' does.  Since the sets are the same size, the first
+    // difference is the least element that is in only one of them, and the set that
+    // has it is the lesser.  Subtrees the two share are skipped.
+    private static int compareTo(Object subtree1, Object subtree2, long lo, long hi) {
+	if (subtree1 == subtree2) return 0;
+	else if (subtree1 instanceof Node) {
+	    Node n1 = (Node)subtree1;
+	    long elt1 = n1.element;
+	    int comp_res = elt1 == lo ? 0 :
+			   compareTo(trim(n1.left, lo, elt1 - 1), trim(subtree2, lo, elt1 - 1),
+				     lo, elt1 - 1);
+	    if (comp_res != 0) return comp_res;
+	    else if (!contains(subtree2, elt1)) return -1;
+	    else if (elt1 == hi) return 0;
+	    else return compareTo(trim(n1.right, elt1 + 1, hi), trim(subtree2, elt1 + 1, hi),
+				  elt1 + 1, hi);
+	} else if (subtree2 instanceof Node) {
+	    Node n2 = (Node)subtree2;
+	    long elt2 = n2.element;
+	    int comp_res = elt2 == lo ? 0 :
+			   compareTo(trim(subtree1, lo, elt2 - 1), trim(n2.left, lo, elt2 - 1),
+				     lo, elt2 - 1);
+	    if (comp_res != 0) return comp_res;
+	    else if (!contains(subtree1, elt2)) return 1;
+	    else if (elt2 == hi) return 0;
+	    else return compareTo(trim(subtree1, elt2 + 1, hi), trim(n2.right, elt2 + 1, hi),
+				  elt2 + 1, hi);
+	} else return compareTo((long[])subtree1, (long[])subtree2, lo, hi);
+    }
+
+    // Returns a new tree all of whose elements are within [`lo', `hi'].  (Contrast
+    // `trim'.)
+    private static Object split(Object subtree, long lo, long hi) {
+	if (subtree == null) return null;
+	else if (lo == MIN_VALUE && hi == MAX_VALUE) return subtree;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    int len = ary.length;
+	    int lo_split = lo == MIN_VALUE ? 0 : searchLo(ary, lo);
+	    int hi_split = hi == MAX_VALUE ? len : searchHi(ary, hi);
+	    if (lo_split >= hi_split) return null;
+	    else if (lo_split == 0 && hi_split == len) return subtree;
+	    else return subseq(ary, lo_split, hi_split);
+	} else {
+	    Node node = (Node)subtree;
+	    long nelt = node.element;
+	    if (nelt < lo) return split(node.right, lo, hi);
+	    else if (nelt > hi) return split(node.left, lo, hi);
+	    else {
+		Object new_left = split(node.left, lo, MAX_VALUE);
+		Object new_right = split(node.right, MIN_VALUE, hi);
+		if (new_left == node.left && new_right == node.right) return subtree;
+		else return concat(nelt, new_left, new_right);
+	    }
+	}
+    }
+
+    // Returns the largest subtree of `subtree' whose root node is within [`lo', `hi'],
+    // or a leaf that overlaps that range.  (Contrast `split'.)
+    // This has package access for benefit of `FLongMap.restricted{To,From}'.
+    /*pkg*/ static Object trim(Object subtree, long lo, long hi) {
+	if (subtree == null) return null;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    // If the array is completely out of range, drop it.
+	    if (ary[ary.length - 1] < lo || ary[0] > hi) return null;
+	    else return subtree;
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.element < lo) return trim(node.right, lo, hi);
+	    else if (node.element > hi) return trim(node.left, lo, hi);
+	    else return subtree;
+	}
+    }
+
+    // Assumes that all elements of `left' are less than `elt', and all elements
+    // of `right' are greater than `elt'; returns a new tree containing all these
+    // elements.  This does more rebalancing than `buildNode', which otherwise
+    // has the same contract.
+    private static Object concat(long elt, Object left, Object right) {
+	if (left == null) return with(right, elt);
+	else if (right == null) return with(left, elt);
+	else {
+	    int sizl = treeSize(left);
+	    int sizr = treeSize(right);
+	    if (left instanceof Node && sizl > sizr * BALANCE_FACTOR) {
+		Node l = (Node)left;
+		return buildNode(l.element, l.left, concat(elt, l.right, right));
+	    } else if (right instanceof Node && sizr > sizl * BALANCE_FACTOR) {
+		Node r = (Node)right;
+		return buildNode(r.element, concat(elt, left, r.left), r.right);
+	    } else return buildNode(elt, left, right);
+	}
+    }
+
+    // Returns the union of `left' and `right' under the assumption that all values
+    // in `left' are less than any value in `right'.
+    private static Object join(Object left, Object right) {
+	if (left == null) return right;
+	else if (right == null) return left;
+	else return concat(min(right), left, lessMin(right));
+    }
+
+    private static Object buildNode(long elt, Object left, Object right) {
+	if ((left == null || !(left instanceof Node)) &&
+	    (right == null || !(right instanceof Node))) {
+	    long[] lary = (long[])left, rary = (long[])right;
+	    if ((left == null ? 0 : lary.length) +
+		(right == null ? 0 : rary.length) < MAX_LEAF_ARRAY_LENGTH)
+		return concat(elt, lary, rary);
+	    else return makeNode(elt, left, right);
+	} else {
+	    int sizl = treeSize(left);
+	    int sizr = treeSize(right);
+	    // This code is subtly different from Adams' in order to create more
+	    // opportunities to coalesce adjacent leaf arrays.
+	    if (right instanceof Node && sizr > sizl * BALANCE_FACTOR) {
+		Node r = (Node)right;
+		Object rl = r.left;
+		Object rr = r.right;
+		if (!(rl instanceof Node) || treeSize(rl) <= treeSize(rr))
+		    return makeNode(r.element, buildNode(elt, left, rl), rr);
+		else {
+		    Node rln = (Node)rl;
+		    return makeNode(rln.element, buildNode(elt, left, rln.left),
+				    buildNode(r.element, rln.right, rr));
+		}
+	    } else if (left instanceof Node && sizl > sizr * BALANCE_FACTOR) {
+		Node l = (Node)left;
+		Object ll = l.left;
+		Object lr = l.right;
+		if (!(lr instanceof Node) || treeSize(lr) <= treeSize(ll))
+		    return makeNode(l.element, ll, buildNode(elt, lr, right));
+		else {
+		    Node lrn = (Node)lr;
+		    return makeNode(lrn.element, buildNode(l.element, ll, lrn.left),
+				    buildNode(elt, lrn.right, right));
+		}
+	    } else return makeNode(elt, left, right);
+	}
+    }
+
+    private static int hashCode(Object subtree) {
+	if (subtree == null) return 0;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    int hash = 0;
+	    for (int i = 0, len = ary.length; i < len; ++i) hash += Long.hashCode(ary[i]);
+	    return hash;
+	} else {
+	    // Each node caches the hash code of its subtree, so a set made from one whose
+	    // hash code has already been computed gets its own in O(log n) time.
+	    Node node = (Node)subtree;
+	    int hash = node.hash_code;
+	    if (hash == Integer.MIN_VALUE) {
+		hash = hashCode(node.left) + Long.hashCode(node.element) + hashCode(node.right);
+		node.hash_code = hash;
+	    }
+	    return hash;
+	}
+    }
+
+    private static String dump(Object subtree) {
+	if (subtree == null) return "[null]";
+	else if (!(subtree instanceof Node)) return Arrays.toString((long[])subtree);
+	else {
+	    Node node = (Node)subtree;
+	    return "(" + node.size + ", " + node.element + ";\n" +
+		indent(dump(node.left), "  ") + ",\n" +
+		indent(dump(node.right), "  ") + ")";
+	}
+    }
+
+    private static String indent(String str, String prefix) {
+	StringBuffer res = new StringBuffer(prefix);
+	for (int i = 0, len = str.length(); i < len; ++i) {
+	    char c = str.charAt(i);
+	    res.append(c);
+	    if (c == '\n' && i < len - 1) res.append(prefix);
+	}
+	return res.toString();
+    }
+
+    // The bounds are inclusive.
+    private static boolean verify(Object subtree, long lo, long hi) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    long[] ary = (long[])subtree;
+	    int len = ary.length;
+	    if (len == 0 || len > MAX_LEAF_ARRAY_LENGTH) return false;
+	    if (ary[0] < lo || ary[len - 1] > hi) return false;
+	    for (int i = 1; i < len; ++i)
+		if (ary[i - 1] >= ary[i]) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    long elt = node.element;
+	    int sizl = treeSize(node.left);
+	    int sizr = treeSize(node.right);
+	    if (node.size != sizl + sizr + 1) return false;
+	    if (elt < lo || elt > hi) return false;
+	    // Small subtrees may be unbalanced, because of our array-splitting
+	    // heuristic.  As long as the size of any subtree that can be unbalanced is
+	    // strictly bounded, we're still okay.
+	    int max_unbal = MAX_LEAF_ARRAY_LENGTH >> 1;
+	    if ((sizr > max_unbal && sizl > sizr * BALANCE_FACTOR) ||
+		(sizl > max_unbal && sizr > sizl * BALANCE_FACTOR))
+		return false;
+	    return (elt == lo ? node.left == null : verify(node.left, lo, elt - 1)) &&
+		   (elt == hi ? node.right == null : verify(node.right, elt + 1, hi));
+	}
+    }
+
+    /****************/
+    /* Internal array manipulation routines.  These all assume their index
+     * parameters are within bounds.  Of course, despite what the names of some
+     * might suggest, they all make new arrays. */
+
+    private static long[] concat(long elt, long[] left, long[] right) {
+	int llen = (left == null ? 0 : left.length);
+	int rlen = (right == null ? 0 : right.length);
+	long[] a = new long[llen + 1 + rlen];
+	if (llen > 0) System.arraycopy(left, 0, a, 0, llen);
+	a[llen] = elt;
+	if (rlen > 0) System.arraycopy(right, 0, a, llen + 1, rlen);
+	return a;
+    }
+
+    private static long[] insert(long[] ary, int idx, long elt) {
+	long[] a = new long[ary.length + 1];
+	System.arraycopy(ary, 0, a, 0, idx);
+	a[idx] = elt;
+	System.arraycopy(ary, idx, a, idx + 1, ary.length - idx);
+	return a;
+    }
+
+    private static long[] remove(long[] ary, int idx) {
+	int len = ary.length - 1;
+	if (len == 0) return null;
+	else {
+	    long[] a = new long[len];
+	    System.arraycopy(ary, 0, a, 0, idx);
+	    System.arraycopy(ary, idx + 1, a, idx, len - idx);
+	    return a;
+	}
+    }
+
+    private static long[] subseq(long[] ary, int lo, int hi) {
+	if (lo >= hi) return null;
+	else return Arrays.copyOfRange(ary, lo, hi);
+    }
+
+    // Returns the index of the first member of `ary' that is not less than `lo'.
+    private static int searchLo(long[] ary, long lo) {
+	int idx = Arrays.binarySearch(ary, lo);
+	return idx >= 0 ? idx : -idx - 1;
+    }
+
+    // Returns the index just past the last member of `ary' that is not greater than
+    // `hi'.
+    private static int searchHi(long[] ary, long hi) {
+	int idx = Arrays.binarySearch(ary, hi);
+	return idx >= 0 ? idx + 1 : -idx - 1;
+    }
+
+    // Compares the elements of `ary1' and `ary2' that are within [`lo', `hi'], in
+    // order; either array may be null.
+    private static int compareTo(long[] ary1, long[] ary2, long lo, long hi) {
+	int i1 = 0, i2 = 0, len1 = 0, len2 = 0;
+	if (ary1 != null) {
+	    i1 = searchLo(ary1, lo);
+	    len1 = searchHi(ary1, hi);
+	}
+	if (ary2 != null) {
+	    i2 = searchLo(ary2, lo);
+	    len2 = searchHi(ary2, hi);
+	}
+	for (; i1 < len1 && i2 < len2; ++i1, ++i2) {
+	    long e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 != e2) return e1 < e2 ? -1 : 1;
+	}
+	return i1 < len1 ? -1 : i2 < len2 ? 1 : 0;
+    }
+
+    // Does a merge-union on `ary1' and `ary2', omitting any elements not within [`lo',
+    // `hi'].  If the result is too long to be a leaf, splits it and makes a node.
+    private static Object union(long[] ary1, long[] ary2, long lo, long hi) {
+	int i1 = searchLo(ary1, lo), i2 = searchLo(ary2, lo);
+	int len1 = searchHi(ary1, hi), len2 = searchHi(ary2, hi);
+	long[] res = new long[(len1 - i1) + (len2 - i2)];
+	int n = 0;
+	while (i1 < len1 && i2 < len2) {
+	    long e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 < e2) {
+		res[n++] = e1;
+		++i1;
+	    } else if (e1 > e2) {
+		res[n++] = e2;
+		++i2;
+	    } else {
+		res[n++] = e1;
+		++i1;
+		++i2;
+	    }
+	}
+	while (i1 < len1) res[n++] = ary1[i1++];
+	while (i2 < len2) res[n++] = ary2[i2++];
+	if (n == 0) return null;
+	else if (n > MAX_LEAF_ARRAY_LENGTH) {
+	    int idx = n >> 1;
+	    return makeNode(res[idx], subseq(res, 0, idx), subseq(res, idx + 1, n));
+	} else if (n < res.length) return Arrays.copyOf(res, n);
+	else return res;
+    }
+
+    private static long[] intersection(long[] ary1, long[] ary2, long lo, long hi) {
+	int i1 = searchLo(ary1, lo), i2 = 0, len1 = searchHi(ary1, hi), len2 = ary2.length;
+	long[] res = new long[Math.max(len1 - i1, 0)];
+	int n = 0;
+	while (i1 < len1 && i2 < len2) {
+	    long e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 < e2) ++i1;
+	    else if (e1 > e2) ++i2;
+	    else {
+		res[n++] = e1;
+		++i1;
+		++i2;
+	    }
+	}
+	if (n == 0) return null;
+	else if (n < res.length) return Arrays.copyOf(res, n);
+	else return res;
+    }
+
+    private static long[] difference(long[] ary1, long[] ary2, long lo, long hi) {
+	int i1 = searchLo(ary1, lo), i2 = 0, len1 = searchHi(ary1, hi), len2 = ary2.length;
+	long[] res = new long[Math.max(len1 - i1, 0)];
+	int n = 0;
+	while (i1 < len1 && i2 < len2) {
+	    long e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 < e2) {
+		res[n++] = e1;
+		++i1;
+	    } else if (e1 > e2) ++i2;
+	    else {
+		++i1;
+		++i2;
+	    }
+	}
+	while (i1 < len1) res[n++] = ary1[i1++];
+	if (n == 0) return null;
+	else if (n < res.length) return Arrays.copyOf(res, n);
+	else return res;
+    }
+
+    // `ary2' may be null.
+    private static boolean isSubset(long[] ary1, long[] ary2, long lo, long hi) {
+	int i1 = searchLo(ary1, lo), i2 = 0, len1 = searchHi(ary1, hi);
+	int len2 = ary2 != null ? ary2.length : 0;
+	while (i1 < len1 && i2 < len2) {
+	    long e1 = ary1[i1], e2 = ary2[i2];
+	    if (e1 < e2) return false;
+	    else if (e1 > e2) ++i2;
+	    else {
+		++i1;
+		++i2;
+	    }
+	}
+	return !(i1 < len1);
+    }
+
+    /****************/
+    // Iterator class
+
+    private static final class FLSIterator implements PrimitiveIterator.OfLong {
+
+	private static final class IteratorNode {
+	    IteratorNode (Object _subtree, int _index, IteratorNode _parent) {
+		subtree = _subtree;
+		index = _index;
+		parent = _parent;
+	    }
+	    private final Object subtree;
+	    private int index;
+	    private final IteratorNode parent;
+	}
+
+	private IteratorNode inode;
+
+	private FLSIterator(Object subtree) {
+	    inode = new IteratorNode(subtree, 0, null);
+	    canonicalize();
+	}
+
+	private void canonicalize() {
+	    while (true) {
+		if (inode == null) break;
+		else if (inode.subtree == null) {
+		    inode = inode.parent;
+		    if (inode == null) break;
+		    else ++inode.index;
+		} else if (!(inode.subtree instanceof Node)) {
+		    if (inode.index < ((long[])inode.subtree).length) break;
+		    else {
+			inode = inode.parent;
+			if (inode == null) break;
+			else ++inode.index;
+		    }
+		} else {
+		    Node node = (Node)inode.subtree;
+		    if (inode.index == 0) inode = new IteratorNode(node.left, 0, inode);
+		    else if (inode.index == 2)
+			inode = new IteratorNode(node.right, 0, inode.parent);
+		    else break;
+		}
+	    }
+	}
+
+	public boolean hasNext() {
+	    return inode != null;
+	}
+
+	public long nextLong() {
+	    long elt;
+	    if (inode == null) throw new NoSuchElementException();
+	    else if (!(inode.subtree instanceof Node))
+		elt = ((long[])inode.subtree)[inode.index];
+	    else elt = ((Node)inode.subtree).element;
+	    inode.index++;
+	    canonicalize();
+	    return elt;
+	}
+
+	public void remove () {
+	    throw new UnsupportedOperationException();
+	}
+    }
+
+    private static final class FLSSpliterator extends TreeSpliterator<Long> {
+	FLSSpliterator(Object pending, Object subtree) {
+	    super(pending, subtree,
+		  IMMUTABLE | DISTINCT | NONNULL | SIZED | SUBSIZED | ORDERED | SORTED);
+	}
+	public Comparator<? super Long> getComparator() { return null; }
+	protected TreeSpliterator<Long> make(Object pending, Object subtree) {
+	    return new FLSSpliterator(pending, subtree);
+	}
+	protected boolean isNode(Object subtree) { return subtree instanceof Node; }
+	protected Object left(Object node) { return ((Node)node).left; }
+	protected Object right(Object node) { return ((Node)node).right; }
+	protected int subtreeSize(Object subtree) { return treeSize(subtree); }
+	protected int nodeElementCount(Object node) { return 1; }
+	protected Long nodeElement(Object node, int index) { return ((Node)node).element; }
+	protected Iterator<Long> iterator(Object subtree) {
+	    return new FLSIterator(subtree);
+	}
+	protected void walk(Object subtree, Consumer<? super Long> action) {
+	    FLongSet.forEach(subtree, action);
+	}
+    }
+
+    // Writes the elements of `subtree' in increasing order, for `Snapshot.write'.
+    /*pkg*/ static void writeSnapshot(Object subtree, Snapshot.Output out) throws IOException {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    for (long e : (long[])subtree) out.writeLong(e);
+	} else {
+	    Node node = (Node)subtree;
+	    writeSnapshot(node.left, out);
+	    out.writeLong(node.element);
+	    writeSnapshot(node.right, out);
+	}
+    }
+
+    // Reads the `size' elements written by `writeSnapshot' and builds the tree.
+    /*pkg*/ static Object readSnapshot(int size, Snapshot.Input in) throws IOException {
+	long[] elts = new long[size];
+	for (int i = 0; i < size; ++i) {
+	    elts[i] = in.readLong();
+	    if (i > 0 && elts[i] <= elts[i - 1])
+		throw new StreamCorruptedException("Snapshot elements out of order");
+	}
+	return buildTree(elts, 0, size);
+    }
+
+    /**
+     * Saves the state of this <code>FLongSet</code> to a stream.
+     *
+     * @serialData Emits the size of the set [<code>int</code>], and the elements in
+     * increasing order [<code>long</code>s].
+     */
+    private void writeObject(ObjectOutputStream strm) throws IOException {
+	strm.defaultWriteObject();
+	strm.writeInt(size());
+	for (PrimitiveIterator.OfLong it = iterator(); it.hasNext(); )
+	    strm.writeLong(it.nextLong());
+    }
+
+    // http://docs.oracle.com/javase/specs/jls/se7/html/jls-17.html#jls-17.5.3
+    private static Field TreeField;
+    static {
+	try {
+	    TreeField = FLongSet.class.getDeclaredField("tree");
+	    TreeField.setAccessible(true);
+	} catch (NoSuchFieldException nsf) {
+	    throw new RuntimeException("Static initialization failed", nsf);
+	}
+    }
+
+    /**
+     * Reconstitutes the <code>FLongSet</code> instance from a stream.
+     */
+    private void readObject(ObjectInputStream strm) throws IOException, ClassNotFoundException {
+	hash_code = Integer.MIN_VALUE;
+	strm.defaultReadObject();
+	int size = strm.readInt();
+	long[] elts = new long[size];
+	for (int i = 0; i < size; ++i)
+	    elts[i] = strm.readLong();
+	try {
+	    TreeField.set(this, fromArray(elts, size));
+	} catch (IllegalAccessException ia) {
+	    throw new RuntimeException("FLongSet deserialization failed", ia);
+	}
+    }
+
+}
@@ -274,6 +274,58 @@ public interface FMap<Key, Val>
      */
     Iterator<Map.Entry<Key, Val>> iterator();
 
+    /**
+     * Compares this map, taken as the old version, with <code>other</code>, taken as
+     * the new one, and calls <code>handler</code> once for each difference: its
+     * <code>added</code> method for each pair of <code>other</code> whose key is not
+     * in this map; its <code>removed</code> method for each pair of this map whose
+     * key is not in <code>other</code>; and its <code>changed</code> method for each
+     * key in both whose values are not equal.  The maps' defaults are not compared.
+     *
+     * <p>When both maps are hash maps (<code>FHashMap</code>,
+     * <code>FLinkedHashMap</code>, or <code>FCachedHashMap</code>), or both are
+     * <code>FTreeMap</code>s using the same ordering, the parts of the two maps'
+     * trees that they share -- as when one was derived from the other by a few
+     * updates -- are skipped without being examined, so the time taken is
+     * proportional to the number of differences (times a logarithmic factor), not to
+     * the sizes of the maps.  Otherwise -- and this is what the default
+     * implementation, for maps of other classes, does -- each key of each map is
+     * looked up in the other.
+     *
+     * @param other the new version of the map
+     * @param handler receives the differences
+     */
+    default void diff(FMap<? extends Key, ? extends Val> other,
+		      MapDiff.Handler<? super Key, ? super Val> handler) {
+	for (Map.Entry<Key, Val> ent : entrySet()) {
+	    Key key = ent.getKey();
+	    Val value = ent.getValue();
+	    if (!other.containsKey(key)) handler.removed(key, value);
+	    else {
+		Val new_value = other.get(key);
+		if (value == null ? new_value != null : !value.equals(new_value))
+		    handler.changed(key, value, new_value);
+	    }
+	}
+	for (Map.Entry<? extends Key, ? extends Val> ent : other.entrySet()) {
+	    Key key = ent.getKey();
+	    if (!containsKey(key)) handler.added(key, ent.getValue());
+	}
+    }
+
+    /**
+     * Compares this map, taken as the old version, with <code>other</code>, taken as
+     * the new one, as for {@link #diff(FMap, MapDiff.Handler)}, and returns the
+     * differences collected into maps of the same class as this map.  The default
+     * implementation collects them into <code>FHashMap</code>s.
+     *
+     * @param other the new version of the map
+     * @return the differences
+     */
+    default MapDiff<Key, Val> diff(FMap<? extends Key, ? extends Val> other) {
+	return MapDiff.collect(this, other, FHashMap.<Key, Val>emptyMap());
+    }
+
 
     /* ======== Deprecated Map Methods ========
      *
@@ -0,0 +1,602 @@
+/*
+ * FMappedHashMap.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * A functional map whose pairs are kept in a memory-mapped file rather than on the
+ * heap, for maps too large to load.  The file is written from a
+ * <code>FHashMap</code> by {@link #write write}, with the pairs in the map's own
+ * order, that is, by the hash codes of their keys, each key and value encoded by a
+ * {@link Snapshot.Encoder}.  Ahead of the pairs, the file holds their hash codes
+ * and the positions at which they start.  {@link #open open} maps the file and
+ * returns a <code>FMappedHashMap</code>; <code>get</code> and
+ * <code>containsKey</code> find the key's hash code by binary search, and decode
+ * only the pairs that have it, and iterating decodes the pairs in order.  Nothing
+ * is kept on the heap for each pair, and opening the file takes time proportional
+ * to the number of mapped segments (of up to 1GB each), not the number of pairs.
+ *
+ * <p>The update operations still work: <code>with</code> and <code>less</code>
+ * return a <code>FMappedHashMap</code> which shares the mapped file, and which
+ * holds the changes in the tree of an ordinary <code>FHashMap</code> on the heap,
+ * so each of them takes O(log <i>n</i>) time, like <code>get</code>.  To save the
+ * changes, use <code>toHashMap</code> and write the result to a new file.
+ *
+ * <p>Keys and values are decoded anew each time they're needed, so
+ * <code>get</code> returns a new object on every call.  As with a
+ * <code>Snapshot</code>, the stored hash codes are used as they are, so the file
+ * should be opened only in a JVM in which its keys have the same hash codes.
+ * <code>open</code> checks the file's header and layout, but not every pair; if a
+ * pair turns out to be corrupt, the method that decodes it throws
+ * <code>UncheckedIOException</code>.  The map is thread-safe, and stays usable
+ * after the channel is closed.
+ *
+ * <p>Time costs: <code>isEmpty</code> and <code>size</code> take O(1) time.
+ * <code>get</code>, <code>containsKey</code>, <code>with</code>, and
+ * <code>less</code> take O(log <i>n</i>) time.  <code>domain</code>,
+ * <code>range</code>, <code>toSet</code>, <code>toHashMap</code>, and iterating
+ * decode every pair, so they take O(<i>n</i>) time or more.
+ *
+ * @author Scott L. Burson
+ */
+
+public final class FMappedHashMap<Key, Val> extends AbstractFMap<Key, Val> {
+
+    /**
+     * Writes <code>map</code> to <code>channel</code>, from position 0, in the form
+     * <code>open</code> reads, using <code>kenc</code> and <code>venc</code> to
+     * encode the keys and values; if the channel's file was longer, it is
+     * truncated.  Neither <code>hashCode</code> nor <code>equals</code> is called
+     * on the keys.  The index of hash codes and positions is built on the heap
+     * (twelve bytes per pair) while the pairs are written.
+     *
+     * @param map the map to write
+     * @param kenc the encoder for the keys
+     * @param venc the encoder for the values
+     * @param channel where to write it
+     */
+    public static <Key, Val> void write(FHashMap<Key, Val> map,
+					Snapshot.Encoder<? super Key> kenc,
+					Snapshot.Encoder<? super Val> venc,
+					FileChannel channel)
+	    throws IOException {
+	int size = map.size();
+	long data_pos = dataPosition(size);
+	int[] hashes = new int[size];
+	long[] positions = new long[size + 1];
+	channel.position(data_pos);
+	Snapshot.Output out = new Snapshot.Output(channel);
+	FHashMap.writeMapped(map.tree, (Snapshot.Encoder<Object>)kenc,
+			     (Snapshot.Encoder<Object>)venc, out, data_pos, hashes, positions, 0);
+	positions[size] = data_pos + out.written();
+	Snapshot.writeDefault(map.getDefault(), (Snapshot.Encoder<Object>)venc, out);
+	out.flush();
+	channel.truncate(data_pos + out.written());
+	channel.position(0);
+	out = new Snapshot.Output(channel);
+	Snapshot.writeHeader(Snapshot.MAPPED_HASH_MAP, size, out);
+	while (out.written() < HASHES_POSITION) out.writeByte(0);
+	for (int i = 0; i < size; ++i) out.writeInt(hashes[i]);
+	while (out.written() < positionsPosition(size)) out.writeByte(0);
+	for (int i = 0; i <= size; ++i) out.writeLong(positions[i]);
+	out.flush();
+    }
+
+    /**
+     * Maps the file written by <code>write</code> to <code>channel</code>, and
+     * returns the map it holds, which has the default of the map that was written.
+     * The file must not be changed while the map is in use.
+     *
+     * @param channel the file
+     * @param kenc the encoder for the keys
+     * @param venc the encoder for the values
+     * @return the map
+     * @throws StreamCorruptedException if the file is not in the right form
+     * @throws EOFException if the file is too short
+     */
+    public static <Key, Val> FMappedHashMap<Key, Val> open(FileChannel channel,
+							   Snapshot.Encoder<? extends Key> kenc,
+							   Snapshot.Encoder<? extends Val> venc)
+	    throws IOException {
+	return open(channel, kenc, venc, SEGMENT_SHIFT);
+    }
+
+    // Like `open', but maps the file in segments of about 2^`shift' bytes instead of
+    // 1GB; so the test suite can use small ones.
+    /*pkg*/ static <Key, Val> FMappedHashMap<Key, Val> open(FileChannel channel,
+							    Snapshot.Encoder<? extends Key> kenc,
+							    Snapshot.Encoder<? extends Val> venc,
+							    int shift)
+	    throws IOException {
+	Mapping mapping = new Mapping(channel, (Snapshot.Encoder<Object>)kenc,
+				      (Snapshot.Encoder<Object>)venc, shift);
+	return new FMappedHashMap<Key, Val>(mapping, null, mapping.count);
+    }
+
+    public boolean isEmpty() {
+	return size == 0;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    public Map.Entry<Key, Val> arb() {
+	Iterator<Map.Entry<Key, Val>> it = iterator();
+	return it.hasNext() ? it.next() : null;
+    }
+
+    public boolean contains(Map.Entry<Key, Val> entry) {
+	Object val = lookup(entry.getKey());
+	return val != FHashMap.NO_ELEMENT && eql(val, entry.getValue());
+    }
+
+    public boolean containsKey(Object key) {
+	return lookup(key) != FHashMap.NO_ELEMENT;
+    }
+
+    public Val get(Object key) {
+	Object val = lookup(key);
+	if (val == FHashMap.NO_ELEMENT) return (Val)mapping.dflt;
+	else return (Val)val;
+    }
+
+    public FMappedHashMap<Key, Val> with(Key key, Val value) {
+	int khash = hashCode(key);
+	return with(key, khash, lookup(key, khash), value);
+    }
+
+    public FMappedHashMap<Key, Val> with(Key key, Val value, BinaryOp<Val> valCombiner) {
+	int khash = hashCode(key);
+	Object old = lookup(key, khash);
+	if (old != FHashMap.NO_ELEMENT) value = valCombiner.apply((Val)old, value);
+	return with(key, khash, old, value);
+    }
+
+    public FMappedHashMap<Key, Val> less(Key key) {
+	int khash = hashCode(key);
+	Object val = FHashMap.get(delta, key, khash);
+	if (val == REMOVED) return this;
+	boolean in_file = mapping.get(key, khash) != FHashMap.NO_ELEMENT;
+	if (val == FHashMap.NO_ELEMENT && !in_file) return this;
+	// A key that's only in `delta' can just be removed from it; one that's in the
+	// file has to be hidden.
+	Object new_delta = in_file ? FHashMap.with(delta, key, khash, REMOVED)
+				   : FHashMap.less(delta, key, khash);
+	return new FMappedHashMap<Key, Val>(mapping, new_delta, size - 1);
+    }
+
+    public Set<Map.Entry<Key, Val>> entrySet() {
+	return new AbstractSet<Map.Entry<Key, Val>>() {
+	    public Iterator<Map.Entry<Key, Val>> iterator() {
+		return FMappedHashMap.this.iterator();
+	    }
+	    public int size() {
+		return FMappedHashMap.this.size();
+	    }
+	    public boolean contains(Object x) {
+		return x instanceof Map.Entry &&
+		       FMappedHashMap.this.contains((Map.Entry<Key, Val>)x);
+	    }
+	    public boolean remove(Object x) {
+		throw new UnsupportedOperationException();
+	    }
+	    public void clear() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+    }
+
+    public FHashSet<Key> domain() {
+	FHashSet.Builder<Key> bldr = new FHashSet.Builder<Key>(size);
+	for (Map.Entry<Key, Val> ent : this) bldr.add(ent.getKey());
+	return bldr.build();
+    }
+
+    public FSet<Val> range() {
+	return range(new FHashSet<Val>());
+    }
+
+    public FSet<Val> range(FSet<Val> initial_set) {
+	FSet<Val> s = initial_set.difference(initial_set);
+	for (Map.Entry<Key, Val> ent : this) s = s.with(ent.getValue());
+	return s;
+    }
+
+    public FHashSet<Map.Entry<Key, Val>> toSet() {
+	return (FHashSet<Map.Entry<Key, Val>>)toSet(new FHashSet<Map.Entry<Key, Val>>());
+    }
+
+    public FSet<Map.Entry<Key, Val>> toSet(FSet<Map.Entry<Key, Val>> initial_set) {
+	FSet<Map.Entry<Key, Val>> s = initial_set.difference(initial_set);
+	for (Map.Entry<Key, Val> ent : this) s = s.with(ent);
+	return s;
+    }
+
+    public FMappedHashMap<Key, Val> union(FMap<? extends Key, ? extends Val> with_map) {
+	FMappedHashMap<Key, Val> m = this;
+	for (Map.Entry<? extends Key, ? extends Val> ent : with_map)
+	    m = m.with(ent.getKey(), ent.getValue());
+	return m;
+    }
+
+    public FMappedHashMap<Key, Val> union(FMap<? extends Key, ? extends Val> with_map,
+					  BinaryOp<Val> valCombiner) {
+	FMappedHashMap<Key, Val> m = this;
+	for (Map.Entry<? extends Key, ? extends Val> ent : with_map)
+	    m = m.with(ent.getKey(), ent.getValue(), valCombiner);
+	return m;
+    }
+
+    /**
+     * This works by repeated <code>less</code> of the keys not in <code>set</code>,
+     * so it decodes every pair, and each key removed is added to the changes held on
+     * the heap.
+     */
+    public FMappedHashMap<Key, Val> restrictedTo(FSet<Key> set) {
+	FMappedHashMap<Key, Val> m = this;
+	for (Map.Entry<Key, Val> ent : this) {
+	    Key key = ent.getKey();
+	    if (!set.contains(key)) m = m.less(key);
+	}
+	return m;
+    }
+
+    /**
+     * This works by repeated <code>less</code>, and so is O(m log n).
+     */
+    public FMappedHashMap<Key, Val> restrictedFrom(FSet<Key> set) {
+	FMappedHashMap<Key, Val> m = this;
+	for (Key key : set) m = m.less(key);
+	return m;
+    }
+
+    public Val getDefault() {
+	return (Val)mapping.dflt;
+    }
+
+    /**
+     * Returns a <code>FHashMap</code> with the same pairs and default as this map,
+     * for instance to write the changes made with <code>with</code> and
+     * <code>less</code> to a new file.  All the pairs are decoded and held on the
+     * heap.
+     */
+    public FHashMap<Key, Val> toHashMap() {
+	FHashMap.Builder<Key, Val> bldr = new FHashMap.Builder<Key, Val>(size);
+	for (Map.Entry<Key, Val> ent : this) bldr.put(ent.getKey(), ent.getValue());
+	return new FHashMap<Key, Val>(bldr.tree(), (Val)mapping.dflt);
+    }
+
+    /**
+     * Returns an iterator over the entries of the map: those from the file, in order
+     * of the hash codes of their keys, then those added or changed since it was
+     * opened.  Each entry is decoded as the iterator reaches it.
+     */
+    public Iterator<Map.Entry<Key, Val>> iterator() {
+	return new FMHMIterator<Key, Val>(mapping, delta);
+    }
+
+    /**
+     * Calls <code>action</code> on each key and its value, in the same order as the
+     * iterator.  Unlike iterating, this doesn't create <code>Map.Entry</code>
+     * objects.
+     */
+    public void forEach(final BiConsumer<? super Key, ? super Val> action) {
+	if (action == null) throw new NullPointerException();
+	mapping.forEach(delta, action);
+	FHashMap.forEach(delta, new BiConsumer<Key, Val>() {
+		public void accept(Key key, Val val) {
+		    if (val != REMOVED) action.accept(key, val);
+		}
+	    });
+    }
+
+    public int hashCode() {
+	if (hash_code == Integer.MIN_VALUE) {
+	    final int[] hash = { 0 };
+	    forEach(new BiConsumer<Key, Val>() {
+		    public void accept(Key key, Val val) {
+			hash[0] += (key == null ? 0 : key.hashCode()) ^
+				   (val == null ? 0 : val.hashCode());
+		    }
+		});
+	    hash_code = hash[0];
+	}
+	return hash_code;
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private FMappedHashMap(Mapping _mapping, Object _delta, int _size) {
+	mapping = _mapping;
+	delta = _delta;
+	size = _size;
+    }
+
+    /* The file starts with the `Snapshot' header, giving the number of pairs n,
+     * padded to `HASHES_POSITION'.  Then come the hash codes of the keys of the n
+     * pairs [`int'], in order, and, padded to a multiple of eight bytes, n + 1
+     * positions [`long']: where each pair starts, then where the default starts.
+     * The pairs are next, each a key and its value, then the default, as written by
+     * `Snapshot.writeDefault'. */
+    private static final long HASHES_POSITION = 16;
+
+    private static long positionsPosition(int size) {
+	return (HASHES_POSITION + ((long)size << 2) + 7) & ~7L;
+    }
+
+    private static long dataPosition(int size) {
+	return positionsPosition(size) + ((long)(size + 1) << 3);
+    }
+
+    // The index is mapped in chunks of 2^`SEGMENT_SHIFT' bytes, and the pairs in
+    // segments of at most that many, unless a pair is bigger.
+    private static final int SEGMENT_SHIFT = 30;
+
+    // Marks, in `delta', a key that has been removed from the file's pairs.
+    private static final Object REMOVED = new Object();
+
+    private final Mapping mapping;
+    // The tree of a `FHashMap' holding the pairs added or changed since the file was
+    // opened, which hide those of the file, and its keys that have been removed,
+    // which are mapped to `REMOVED'.
+    private final Object delta;
+    private final int size;
+
+    private transient int hash_code = Integer.MIN_VALUE;
+
+    // Returns the value of `key', or `FHashMap.NO_ELEMENT' if there is none.
+    private Object lookup(Object key) {
+	return lookup(key, hashCode(key));
+    }
+
+    private Object lookup(Object key, int khash) {
+	Object val = FHashMap.get(delta, key, khash);
+	if (val == REMOVED) return FHashMap.NO_ELEMENT;
+	else if (val != FHashMap.NO_ELEMENT) return val;
+	else return mapping.get(key, khash);
+    }
+
+    // `old' is the value `key' has now, as returned by `lookup'.
+    private FMappedHashMap<Key, Val> with(Key key, int khash, Object old, Val value) {
+	if (old != FHashMap.NO_ELEMENT && eql(old, value)) return this;
+	return new FMappedHashMap<Key, Val>(mapping, FHashMap.with(delta, key, khash, value),
+					    old == FHashMap.NO_ELEMENT ? size + 1 : size);
+    }
+
+    private static boolean eql(Object x, Object y) {
+	return x == null ? y == null : x.equals(y);
+    }
+
+    private static int hashCode(Object x) {
+	return FHashMap.hashCode(x);
+    }
+
+    private static UncheckedIOException corrupt(IOException e) {
+	return new UncheckedIOException("FMappedHashMap file is corrupt", e);
+    }
+
+    /****************/
+
+    // The mapped file, shared by all the maps made from the one `open' returned.
+    // It's read through duplicates of the mapped buffers, which have their own
+    // positions, so it can be used by many threads at once.
+    private static final class Mapping {
+	final int count;	// the number of pairs in the file
+	final Snapshot.Encoder<Object> kenc, venc;
+	final Object dflt;
+	private final int shift;
+	// The hash codes and positions of the pairs, each in chunks of 2^`shift'
+	// bytes; since that's a multiple of eight, no value is split between chunks.
+	private final ByteBuffer[] hash_chunks, position_chunks;
+	// The pairs, in segments that each hold whole pairs.  Segment `k' holds pairs
+	// `seg_firsts[k]' up to `seg_firsts[k + 1]', and starts at `seg_starts[k]'.
+	private final ByteBuffer[] segs;
+	private final int[] seg_firsts;
+	private final long[] seg_starts;
+
+	Mapping(FileChannel channel, Snapshot.Encoder<Object> _kenc,
+		Snapshot.Encoder<Object> _venc, int _shift)
+		throws IOException {
+	    kenc = _kenc;
+	    venc = _venc;
+	    shift = _shift;
+	    long file_size = channel.size();
+	    count = Snapshot.readHeader(Snapshot.MAPPED_HASH_MAP,
+					new Snapshot.Input(map(channel, 0, Math.min(HASHES_POSITION,
+										    file_size))));
+	    long data_pos = dataPosition(count);
+	    if (file_size < data_pos) throw new EOFException();
+	    hash_chunks = mapChunks(channel, HASHES_POSITION, (long)count << 2);
+	    position_chunks = mapChunks(channel, positionsPosition(count),
+					(long)(count + 1) << 3);
+	    long dflt_pos = position(count);
+	    if (position(0) != data_pos || dflt_pos < data_pos || dflt_pos >= file_size)
+		throw new StreamCorruptedException("Invalid pair position");
+	    dflt = Snapshot.readDefault(venc, new Snapshot.Input(
+		       map(channel, dflt_pos, Math.min(file_size - dflt_pos, Integer.MAX_VALUE))));
+	    // Each segment takes as many pairs as fit in 2^`shift' bytes, or one if it's
+	    // bigger; found by binary search of the positions, so we don't have to read
+	    // them all.
+	    ArrayList<ByteBuffer> seg_list = new ArrayList<ByteBuffer>();
+	    ArrayList<Integer> first_list = new ArrayList<Integer>();
+	    long max_len = 1L << shift;
+	    for (int i = 0; i < count; ) {
+		long start = position(i);
+		int lo = i + 1, hi = count;
+		while (lo < hi) {
+		    int mid = (lo + hi + 1) >>> 1;
+		    if (position(mid) - start <= max_len) lo = mid;
+		    else hi = mid - 1;
+		}
+		long len = position(lo) - start;
+		if (len < 0 || len > Integer.MAX_VALUE || position(lo) > dflt_pos)
+		    throw new StreamCorruptedException("Invalid pair position");
+		seg_list.add(map(channel, start, len));
+		first_list.add(i);
+		i = lo;
+	    }
+	    int nsegs = seg_list.size();
+	    segs = seg_list.toArray(new ByteBuffer[nsegs]);
+	    seg_firsts = new int[nsegs + 1];
+	    seg_starts = new long[nsegs];
+	    for (int k = 0; k < nsegs; ++k) {
+		seg_firsts[k] = first_list.get(k);
+		seg_starts[k] = position(seg_firsts[k]);
+	    }
+	    seg_firsts[nsegs] = count;
+	}
+
+	private static ByteBuffer map(FileChannel channel, long pos, long len)
+		throws IOException {
+	    return channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+	}
+
+	private ByteBuffer[] mapChunks(FileChannel channel, long start, long len)
+		throws IOException {
+	    long chunk_len = 1L << shift;
+	    ByteBuffer[] chunks = new ByteBuffer[(int)((len + chunk_len - 1) >>> shift)];
+	    for (int k = 0; k < chunks.length; ++k) {
+		long off = (long)k << shift;
+		chunks[k] = map(channel, start + off, Math.min(chunk_len, len - off));
+	    }
+	    return chunks;
+	}
+
+	int hash(int i) {
+	    long off = (long)i << 2;
+	    return hash_chunks[(int)(off >>> shift)].getInt((int)(off & ((1L << shift) - 1)));
+	}
+
+	long position(int i) {
+	    long off = (long)i << 3;
+	    return position_chunks[(int)(off >>> shift)].getLong((int)(off & ((1L << shift) - 1)));
+	}
+
+	// Returns an `Input' that reads segment `k' from the start.
+	Snapshot.Input segment(int k) {
+	    return new Snapshot.Input(segs[k].duplicate());
+	}
+
+	// Returns the value of `key', whose hash code is `khash', or
+	// `FHashMap.NO_ELEMENT' if the file has no pair for it.
+	Object get(Object key, int khash) {
+	    int lo = 0, hi = count;
+	    while (lo < hi) {
+		int mid = (lo + hi) >>> 1;
+		if (hash(mid) < khash) lo = mid + 1;
+		else hi = mid;
+	    }
+	    try {
+		for (int i = lo; i < count && hash(i) == khash; ++i) {
+		    Snapshot.Input in = input(i);
+		    if (eql(kenc.decode(in), key)) return venc.decode(in);
+		}
+	    } catch (IOException e) {
+		throw corrupt(e);
+	    }
+	    return FHashMap.NO_ELEMENT;
+	}
+
+	// Returns an `Input' that reads pair `i'.
+	private Snapshot.Input input(int i) {
+	    int lo = 0, hi = segs.length - 1;
+	    while (lo < hi) {
+		int mid = (lo + hi + 1) >>> 1;
+		if (seg_firsts[mid] <= i) lo = mid;
+		else hi = mid - 1;
+	    }
+	    ByteBuffer buf = segs[lo].duplicate();
+	    buf.position((int)(position(i) - seg_starts[lo]));
+	    return new Snapshot.Input(buf);
+	}
+
+	// Calls `action' on the pairs of the file whose keys aren't in `delta'.
+	<Key, Val> void forEach(Object delta, BiConsumer<? super Key, ? super Val> action) {
+	    try {
+		for (int k = 0; k < segs.length; ++k) {
+		    Snapshot.Input in = segment(k);
+		    for (int i = seg_firsts[k]; i < seg_firsts[k + 1]; ++i) {
+			Object key = kenc.decode(in), val = venc.decode(in);
+			if (FHashMap.get(delta, key, hash(i)) == FHashMap.NO_ELEMENT)
+			    action.accept((Key)key, (Val)val);
+		    }
+		}
+	    } catch (IOException e) {
+		throw corrupt(e);
+	    }
+	}
+    }
+
+    /****************/
+    // Iterator class
+
+    private static final class FMHMIterator<Key, Val> implements Iterator<Map.Entry<Key, Val>> {
+	private final Mapping mapping;
+	private final Object delta;
+	private int idx = 0;	// the next pair of the file
+	private int seg = -1;	// the segment `in' is reading
+	private Snapshot.Input in = null;
+	private Iterator<Map.Entry<Key, Val>> delta_it = null;
+	private Map.Entry<Key, Val> next_ent;
+
+	private FMHMIterator(Mapping _mapping, Object _delta) {
+	    mapping = _mapping;
+	    delta = _delta;
+	    next_ent = advance();
+	}
+
+	public boolean hasNext() {
+	    return next_ent != null;
+	}
+
+	public Map.Entry<Key, Val> next() {
+	    Map.Entry<Key, Val> ent = next_ent;
+	    if (ent == null) throw new NoSuchElementException();
+	    next_ent = advance();
+	    return ent;
+	}
+
+	public void remove() {
+	    throw new UnsupportedOperationException();
+	}
+
+	// Returns the next entry, or null at the end: first the file's pairs whose keys
+	// aren't in `delta', then the pairs of `delta' that aren't removals.
+	private Map.Entry<Key, Val> advance() {
+	    try {
+		while (idx < mapping.count) {
+		    if (idx == mapping.seg_firsts[seg + 1]) in = mapping.segment(++seg);
+		    Object key = mapping.kenc.decode(in), val = mapping.venc.decode(in);
+		    if (FHashMap.get(delta, key, mapping.hash(idx++)) == FHashMap.NO_ELEMENT)
+			return (Map.Entry<Key, Val>)(Map.Entry)new FHashMap.Entry(key, val);
+		}
+	    } catch (IOException e) {
+		throw corrupt(e);
+	    }
+	    if (delta_it == null) delta_it = new FHashMap.FHMIterator<Key, Val>(delta);
+	    while (delta_it.hasNext()) {
+		Map.Entry<Key, Val> ent = delta_it.next();
+		if (ent.getValue() != REMOVED) return ent;
+	    }
+	    return null;
+	}
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * FRef.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+
+/**
+ * A mutable reference to a functional collection, or any immutable value, shared
+ * between threads.  Threads read the current value with <code>get</code> and
+ * change it with <code>update</code>, which applies a function to it atomically:
+ * the function's result becomes the new value only if no other update happened in
+ * the meantime.
+ *
+ * <p>This is what <code>AtomicReference.updateAndGet</code> does, except under
+ * contention.  There, each thread that fails to install its result applies its
+ * function again to the new value, and tries again, immediately; so with many
+ * threads updating a large map, most of the work is thrown away, and they all
+ * compete for the same cache line.  Instead, an <code>FRef</code> whose
+ * <code>update</code> finds another one in progress adds its function to a list of
+ * pending updates.  One thread at a time, the <i>combiner</i>, takes the whole list
+ * and applies the functions in turn, in the order they were added, then installs
+ * the result with a single compare-and-set and hands each thread the value its
+ * function returned.  The others wait, spinning briefly, then yielding, then
+ * parking for longer and longer, until the combiner is done with theirs or the
+ * combiner's role is free, in which case they take it.  When there's no
+ * contention, <code>update</code> costs one call of the function and one
+ * compare-and-set, as with <code>AtomicReference</code>.
+ *
+ * <p>The function passed to <code>update</code> should have no side effects,
+ * because it may be called more than once, and it may be called in another thread.
+ * If it throws an exception, that update is not made, and the exception is thrown
+ * by <code>update</code> in the thread that called it.  In particular, it must not
+ * call <code>update</code> on the same <code>FRef</code>: when the combiner applies
+ * it, the inner <code>update</code> would wait for the combiner, that is, for
+ * itself.  Such a call throws <code>IllegalStateException</code> instead.  (Nor
+ * would retrying it directly help, as each time the inner update succeeded, the
+ * outer one would have to start over.)
+ *
+ * @param T the type of the value
+ * @see FAtomicMap
+ * @author Scott L. Burson
+ */
+
+public class FRef<T> {
+
+    /**
+     * Constructs an <code>FRef</code> holding <code>initial</code>.
+     */
+    public FRef(T initial) {
+	value = new AtomicReference<T>(initial);
+    }
+
+    /**
+     * Returns the current value.
+     */
+    public T get() {
+	return value.get();
+    }
+
+    /**
+     * Sets the value to <code>new_value</code>, unconditionally.
+     */
+    public void set(T new_value) {
+	value.set(new_value);
+    }
+
+    /**
+     * Sets the value to <code>new_value</code> if it is (<code>==</code>)
+     * <code>expected</code>.
+     *
+     * @return whether it was set
+     */
+    public boolean compareAndSet(T expected, T new_value) {
+	return value.compareAndSet(expected, new_value);
+    }
+
+    /**
+     * Atomically replaces the value with the result of calling <code>fn</code> on
+     * it, and returns the result.  Under contention, the call may be made in
+     * another thread, together with those of other <code>update</code>s.
+     *
+     * @param fn the function to apply
+     * @return the new value
+     * @throws IllegalStateException if called from a function being applied by
+     * <code>update</code> on this <code>FRef</code>
+     */
+    public T update(UnaryOperator<T> fn) {
+	if (fn == null) throw new NullPointerException();
+	Thread cmb = combiner.get();
+	if (cmb == Thread.currentThread())
+	    throw new IllegalStateException("FRef.update called from an update function");
+	// Try once without combining, unless others are already.
+	if (pending.get() == null && cmb == null) {
+	    T old = value.get();
+	    T res = fn.apply(old);
+	    if (value.compareAndSet(old, res)) return res;
+	}
+	return combine(new Update<T>(fn));
+    }
+
+    public String toString() {
+	return "FRef(" + value.get() + ")";
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private final AtomicReference<T> value;
+    // The updates waiting for a combiner, most recent first.
+    private final AtomicReference<Update<T>> pending = new AtomicReference<Update<T>>();
+    // The thread acting as the combiner, if any.  Knowing which one it is lets
+    // `update' catch a call from a function the combiner is applying.
+    private final AtomicReference<Thread> combiner = new AtomicReference<Thread>();
+
+    // Waiting for the combiner: so many tries spinning, then so many yielding, then
+    // parking, starting at `MIN_PARK_NANOS' and doubling up to `MAX_PARK_NANOS'.
+    // The combiner unparks a waiter once its update is done, so parking longer costs
+    // little latency; it just keeps the waiter out of the way.
+    private static final int SPINS = 64;
+    private static final int YIELDS = 16;
+    private static final long MIN_PARK_NANOS = 1000;
+    private static final long MAX_PARK_NANOS = 1000000;
+
+    private static final class Update<T> {
+	Update(UnaryOperator<T> _fn) {
+	    fn = _fn;
+	    thread = Thread.currentThread();
+	}
+	final UnaryOperator<T> fn;
+	final Thread thread;
+	Update<T> next;
+	T result;
+	Throwable failure;
+	// Set last, by the combiner; once it's set, `result' and `failure' are final.
+	volatile boolean done = false;
+    }
+
+    private T combine(Update<T> upd) {
+	Update<T> head;
+	do {
+	    head = pending.get();
+	    upd.next = head;
+	} while (!pending.compareAndSet(head, upd));
+	long park_nanos = MIN_PARK_NANOS;
+	for (int tries = 0; !upd.done; ++tries) {
+	    if (combiner.get() == null && combiner.compareAndSet(null, upd.thread)) {
+		// If `upd' isn't done, the combiner before us didn't take it, so it's in
+		// `pending'.
+		try {
+		    if (!upd.done) applyPending();
+		} finally {
+		    combiner.set(null);
+		}
+	    } else if (tries < SPINS) continue;
+	    else if (tries < SPINS + YIELDS) Thread.yield();
+	    else {
+		LockSupport.parkNanos(this, park_nanos);
+		park_nanos = Math.min(park_nanos << 1, MAX_PARK_NANOS);
+	    }
+	}
+	Throwable failure = upd.failure;
+	if (failure == null) return upd.result;
+	else if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+	else if (failure instanceof Error) throw (Error)failure;
+	else throw new RuntimeException(failure);
+    }
+
+    // Applies all the pending updates, as the combiner, in a single pass over them.
+    private void applyPending() {
+	// Take them all, and put them in the order they were added.
+	Update<T> first = null;
+	for (Update<T> upd = pending.getAndSet(null), next; upd != null; upd = next) {
+	    next = upd.next;
+	    upd.next = first;
+	    first = upd;
+	}
+	for (;;) {
+	    T old = value.get(), val = old;
+	    for (Update<T> upd = first; upd != null; upd = upd.next) {
+		try {
+		    upd.result = val = upd.fn.apply(val);
+		    upd.failure = null;
+		} catch (Throwable t) {
+		    upd.failure = t;
+		}
+	    }
+	    if (value.compareAndSet(old, val)) break;
+	    // An `update' that found no one combining got in first; start over from
+	    // the value it installed.
+	}
+	for (Update<T> upd = first, next; upd != null; upd = next) {
+	    next = upd.next;
+	    Thread thread = upd.thread;
+	    upd.done = true;
+	    LockSupport.unpark(thread);
+	}
+    }
+
+}
@@ -139,6 +139,45 @@ public interface FSet<Elt> extends Set<Elt>
      */
     boolean isSuperset(Collection<?> coll);
 
+    /**
+     * Compares this set, taken as the old version, with <code>other</code>, taken as
+     * the new one, and calls <code>handler</code> once for each difference: its
+     * <code>added</code> method for each element of <code>other</code> that is not in
+     * this set, and its <code>removed</code> method for each element of this set that
+     * is not in <code>other</code>.
+     *
+     * <p>When both sets are hash sets (<code>FHashSet</code>,
+     * <code>FLinkedHashSet</code>, or <code>FCachedHashSet</code>), or both are
+     * <code>FTreeSet</code>s using the same ordering, the parts of the two sets'
+     * trees that they share are skipped without being examined, so the time taken is
+     * proportional to the number of differences (times a logarithmic factor), not to
+     * the sizes of the sets.  Otherwise -- and this is what the default
+     * implementation, for sets of other classes, does -- each element of each set is
+     * looked up in the other.
+     *
+     * @param other the new version of the set
+     * @param handler receives the differences
+     */
+    default void diff(FSet<? extends Elt> other, SetDiff.Handler<? super Elt> handler) {
+	for (Elt e : this)
+	    if (!other.contains(e)) handler.removed(e);
+	for (Elt e : other)
+	    if (!contains(e)) handler.added(e);
+    }
+
+    /**
+     * Compares this set, taken as the old version, with <code>other</code>, taken as
+     * the new one, as for {@link #diff(FSet, SetDiff.Handler)}, and returns the
+     * differences collected into sets of the same class as this set.  The default
+     * implementation collects them into <code>FHashSet</code>s.
+     *
+     * @param other the new version of the set
+     * @return the differences
+     */
+    default SetDiff<Elt> diff(FSet<? extends Elt> other) {
+	return SetDiff.collect(this, other, FHashSet.<Elt>emptySet());
+    }
+
 
     /* ======== Deprecated Set Methods ========
      *
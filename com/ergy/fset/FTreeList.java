@@ -15,6 +15,10 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * A functional list implemented as a tree.
@@ -26,7 +30,8 @@ import java.util.*;
  * <i>n</i>) time.  Construction from an existing collection or array,
  * <code>reverse</code>, <code>contains</code>, <code>indexOf</code>,
  * <code>lastIndexOf</code>, <code>compareTo</code>, and <code>equals</code> take
- * O(n) (linear) time.  <code>sorted</code> takes O(<i>n</i> log <i>n</i>) time.
+ * O(n) (linear) time.  <code>sorted</code> takes O(<i>n</i> log <i>n</i>) time, or
+ * O(n) if the list is already sorted.
  *
  * <p>Space costs: <code>FTreeSet</code> uses a heterogeneous binary tree
  * structure with bounded-length arrays at the leaves.  It uses much less space than
@@ -164,7 +169,7 @@ public class FTreeList<Elt>
 	}
 	if (siz == 0) return null;
 	int npieces = ((siz / MAX_LEAF_ARRAY_LENGTH) +		// ceiling(siz, MAX...)
-		       (siz % MAX_LEAF_ARRAY_LENGTH) > 0 ? 1 : 0);
+		       ((siz % MAX_LEAF_ARRAY_LENGTH) > 0 ? 1 : 0));
 	int piece_len = siz / npieces;
 	int rmdr = siz % npieces;
 	int base = 0;
@@ -188,10 +193,11 @@ public class FTreeList<Elt>
 		stack.add(makeNode(left, right));
 	    }
 	}
+	// What's left are perfect trees of decreasing sizes, which `concat' rebalances.
 	while (stack.size() > 1) {
 	    Object right = stack.remove(stack.size() - 1);
 	    Object left = stack.remove(stack.size() - 1);
-	    stack.add(makeNode(left, right));
+	    stack.add(concat(left, right));
 	}
 	return stack.get(0);
     }
@@ -214,6 +220,37 @@ public class FTreeList<Elt>
 	return new FTLIterator(tree);
     }
 
+    /**
+     * Returns a <code>Spliterator</code> over the list.  It splits exactly along the
+     * tree structure, and reports <code>IMMUTABLE</code>, <code>ORDERED</code>,
+     * <code>SIZED</code>, and <code>SUBSIZED</code>.
+     */
+    public Spliterator<Elt> spliterator() {
+	return new FTLSpliterator<Elt>(null, tree, Spliterator.IMMUTABLE | Spliterator.ORDERED |
+					       Spliterator.SIZED | Spliterator.SUBSIZED);
+    }
+
+    /**
+     * Calls <code>action</code> on each element of the list, in order.  Unlike
+     * iterating, this walks the tree recursively, and so allocates nothing.
+     */
+    public void forEach(Consumer<? super Elt> action) {
+	if (action == null) throw new NullPointerException();
+	forEach(tree, action);
+    }
+
+    /**
+     * Calls <code>pred</code> on each element of the list, in order, until it
+     * returns false.  Like <code>forEach</code>, allocates nothing.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every element
+     */
+    public boolean forEachWhile(Predicate<? super Elt> pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachWhile(tree, pred);
+    }
+
     public ListIterator<Elt> listIterator() {
 	return new FTLIterator(tree);
     }
@@ -331,19 +368,58 @@ public class FTreeList<Elt>
 	return subseq(fromIndex, toIndex);
     }
 
+    /**
+     * Returns a new list in which the elements of this list are sorted according to
+     * <code>comp</code>.  The sort is stable.  It is a merge sort over the tree, not
+     * a copy into an array: a leaf that is already in order is kept, and two sorted
+     * subtrees that don't overlap are concatenated, taking O(log <i>n</i>) time,
+     * rather than merged.  So sorting a list that is already sorted takes O(n) time
+     * and allocates nothing, and the result shares most of its structure with a
+     * list that is nearly sorted.
+     *
+     * @param comp the comparator to use for sorting
+     * @return the sorted list
+     */
     public FTreeList<Elt> sorted(Comparator<? super Elt> comp) {
-	// We could do our own tree sort -- the code is very similar (though alas, not
-	// identical) to the list-to-set conversion code -- but this is probably pretty
-	// close.
-	Object[] ary = toArray();
-	Arrays.sort(ary, (Comparator<Object>)comp);
-	return new FTreeList<Elt>((Elt[])ary);
+	Object new_tree = sort(tree, comp);
+	return new_tree == tree ? this : new FTreeList<Elt>(new_tree, elt_comp);
     }
 
     public FTreeList sorted() {
 	return sorted(null);
     }
 
+    /**
+     * Returns a new list in which the elements of this list are sorted according to
+     * <code>comp</code>, like <code>sorted</code>, but sorts and merges large
+     * subtrees in parallel on the common fork/join pool.  The result is the same as
+     * that of <code>sorted</code>.  This is worthwhile only when the list is large
+     * -- tens of thousands of elements or more; smaller subproblems are done
+     * sequentially.  <code>comp</code> may be called concurrently from several
+     * threads.
+     *
+     * @param comp the comparator to use for sorting
+     * @return the sorted list
+     */
+    public FTreeList<Elt> parallelSorted(Comparator<? super Elt> comp) {
+	return parallelSorted(comp, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns a new list in which the elements of this list are sorted according to
+     * <code>comp</code>, like <code>sorted</code>, but sorts and merges large
+     * subtrees in parallel on <code>pool</code>.  <code>comp</code> may be called
+     * concurrently from several threads.
+     *
+     * @param comp the comparator to use for sorting
+     * @param pool the fork/join pool to use
+     * @return the sorted list
+     */
+    public FTreeList<Elt> parallelSorted(Comparator<? super Elt> comp, ForkJoinPool pool) {
+	Object new_tree = pool.invoke(new ParallelOp(OP_SORT, tree, null, comp));
+	return new_tree == tree ? this : new FTreeList<Elt>(new_tree, elt_comp);
+    }
+
     public boolean contains(Object elt) {
 	return indexOf(tree, elt) >= 0;
     }
@@ -385,7 +461,9 @@ public class FTreeList<Elt>
     }
 
     public int hashCode() {
-	if (hash_code == Integer.MIN_VALUE) hash_code = hashCode(tree, 1);
+	// `List' specifies what `polyHash' computes, except starting from 1 instead of
+	// 0; by the time all the elements are in, that 1 has been multiplied by 31^n.
+	if (hash_code == Integer.MIN_VALUE) hash_code = pow31(treeSize(tree)) + polyHash(tree);
 	return hash_code;
     }
 
@@ -410,7 +488,7 @@ public class FTreeList<Elt>
     private static final FTreeList<?> EMPTY_INSTANCE = new FTreeList<Object>();
 
     /* Instance variables */
-    private transient final Object tree;
+    /*pkg*/ transient final Object tree;
     private final Comparator<Elt> elt_comp;
     private transient int hash_code = Integer.MIN_VALUE;	// cache
 
@@ -435,6 +513,7 @@ public class FTreeList<Elt>
 	private final int size;		// the number of elements in the subtree
 	private final Object left;	// a subtree
 	private final Object right;	// a subtree
+	private int hash_code = Integer.MIN_VALUE;	// cache of `polyHash'
     }
 
     private static Object makeNode(Object left, Object right) {
@@ -449,6 +528,44 @@ public class FTreeList<Elt>
 	else return ((Node)subtree).size;
     }
 
+    /*pkg*/ static <Elt> void forEach(Object subtree, Consumer<? super Elt> action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i) action.accept((Elt)ary[i]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEach(node.left, action);
+	    forEach(node.right, action);
+	}
+    }
+
+    /*pkg*/ static <Elt> boolean forEachWhile(Object subtree, Predicate<? super Elt> pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i)
+		if (!pred.test((Elt)ary[i])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    return forEachWhile(node.left, pred) && forEachWhile(node.right, pred);
+	}
+    }
+
+    // Copies the elements of `subtree' into `ary', starting at `offset'.
+    /*pkg*/ static void copyInto(Object subtree, Object[] ary, int offset) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] leaf = (Object[])subtree;
+	    System.arraycopy(leaf, 0, ary, offset, leaf.length);
+	} else {
+	    Node node = (Node)subtree;
+	    copyInto(node.left, ary, offset);
+	    copyInto(node.right, ary, offset + treeSize(node.left));
+	}
+    }
+
     /*pkg*/ static Object get(Object subtree, int index) {
 	if (!(subtree instanceof Node)) return ((Object[])subtree)[index];
 	else {
@@ -459,7 +576,7 @@ public class FTreeList<Elt>
 	}
     }
 
-    private static Object with(Object subtree, int index, Object elt) {
+    /*pkg*/ static Object with(Object subtree, int index, Object elt) {
 	if (!(subtree instanceof Node)) return update((Object[])subtree, index, elt);
 	else {
 	    Node node = (Node)subtree;
@@ -504,7 +621,7 @@ public class FTreeList<Elt>
 	}
     }
 
-    private static Object reverse(Object subtree) {
+    /*pkg*/ static Object reverse(Object subtree) {
 	if (!(subtree instanceof Node)) return reverse((Object[])subtree);
 	else {
 	    Node node = (Node)subtree;
@@ -524,7 +641,9 @@ public class FTreeList<Elt>
 
     private int compareTo(Object subtree1, int base1, Object subtree2, int base2,
 			  int lo, int hi) {
-	if (lo == hi) return 0;
+	// A subtree shared by the two lists can be skipped if it's at the same position
+	// in both.
+	if ((subtree1 == subtree2 && base1 == base2) || lo == hi) return 0;
 	else if (!(subtree1 instanceof Node)) {
 	    if (!(subtree2 instanceof Node)) {
 		Object[] ary1 = (Object[])subtree1, ary2 = (Object[])subtree2;
@@ -563,7 +682,7 @@ public class FTreeList<Elt>
 
     private boolean equals(Object subtree1, int base1, Object subtree2, int base2,
 			   int lo, int hi) {
-	if (lo == hi) return true;
+	if ((subtree1 == subtree2 && base1 == base2) || lo == hi) return true;
 	else if (!(subtree1 instanceof Node)) {
 	    if (!(subtree2 instanceof Node)) {
 		Object[] ary1 = (Object[])subtree1, ary2 = (Object[])subtree2;
@@ -600,11 +719,14 @@ public class FTreeList<Elt>
 	public int base;
     }
 
+    // Descends to the smallest subtree holding the elements ranked from `lo' up to
+    // `hi'.  The left subtree of `node' holds those below `nrank', and the right one
+    // those from `nrank' up; so if `lo' is `nrank', the right one holds them all.
     private RankTrimResult rankTrim(Object subtree, int base, int lo, int hi) {
 	while (subtree instanceof Node) {
 	    Node node = (Node)subtree;
 	    int nrank = base + treeSize(node.left);
-	    if (nrank >= lo) {
+	    if (nrank > lo) {
 		if (nrank < hi) break;
 		else subtree = node.left;
 	    } else {
@@ -615,7 +737,7 @@ public class FTreeList<Elt>
 	return new RankTrimResult(subtree, base);
     }
 
-    private static Object concat(Object left, Object right) {
+    /*pkg*/ static Object concat(Object left, Object right) {
 	if (left == null) return right;
 	else if (right == null) return left;
 	else {
@@ -682,7 +804,7 @@ public class FTreeList<Elt>
 	}
     }
 
-    private static Object subseq(Object subtree, int lo, int hi) {
+    /*pkg*/ static Object subseq(Object subtree, int lo, int hi) {
 	if (lo >= hi) return null;
 	else if (lo == 0 && hi == treeSize(subtree)) return subtree;
 	else if (!(subtree instanceof Node))
@@ -697,7 +819,7 @@ public class FTreeList<Elt>
 	}
     }
 
-    private static int indexOf(Object subtree, Object elt) {
+    /*pkg*/ static int indexOf(Object subtree, Object elt) {
 	if (subtree == null) return -1;
 	else if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[])subtree;
@@ -717,7 +839,7 @@ public class FTreeList<Elt>
 	}
     }
 
-    private static int lastIndexOf(Object subtree, Object elt) {
+    /*pkg*/ static int lastIndexOf(Object subtree, Object elt) {
 	if (subtree == null) return -1;
 	else if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[])subtree;
@@ -806,20 +928,209 @@ public class FTreeList<Elt>
 	return a;
     }
 
-    private static int hashCode(Object subtree, int hash) {
-	if (subtree == null) return hash;
+    /****************/
+    /* Sorting.  `sort' sorts the two subtrees of a node and merges them.  Rather
+     * than walking both of its arguments element by element, `merge' splits one at
+     * its root and the other at the corresponding position, and merges the halves
+     * recursively; as soon as two pieces don't overlap, they're just concatenated,
+     * so runs that are already in order cost only the comparisons needed to find
+     * them.  Elements of the left argument go before equal ones of the right, which
+     * makes the sort stable. */
+
+    /*pkg*/ static Object sort(Object subtree, Comparator comp) {
+	if (subtree == null) return null;
+	else if (treeSize(subtree) <= ARRAY_SORT_SIZE) {
+	    if (isSorted(subtree, comp)) return subtree;
+	    Object[] a = new Object[treeSize(subtree)];
+	    copyInto(subtree, a, 0);
+	    Arrays.sort(a, comp);
+	    return fromCollection(a);
+	} else {
+	    Node node = (Node)subtree;
+	    Object new_left = sort(node.left, comp), new_right = sort(node.right, comp);
+	    if (new_left == node.left && new_right == node.right &&
+		compare(comp, last(new_left), first(new_right)) <= 0)
+		return node;
+	    else return merge(new_left, new_right, comp);
+	}
+    }
+
+    private static Object merge(Object left, Object right, Comparator comp) {
+	if (left == null) return right;
+	else if (right == null) return left;
+	else if (compare(comp, last(left), first(right)) <= 0) return concat(left, right);
+	else if (compare(comp, last(right), first(left)) < 0) return concat(right, left);
+	else if (treeSize(left) + treeSize(right) <= ARRAY_SORT_SIZE) {
+	    int llen = treeSize(left), rlen = treeSize(right);
+	    Object[] a = new Object[llen + rlen];
+	    copyInto(left, a, 0);
+	    copyInto(right, a, llen);
+	    // `Arrays.sort' (TimSort) finds the two runs and merges them.
+	    Arrays.sort(a, comp);
+	    return fromCollection(a);
+	} else if (left instanceof Node) {
+	    Node lnode = (Node)left;
+	    int k = countBelow(right, first(lnode.right), false, comp);
+	    return concat(merge(lnode.left, subseq(right, 0, k), comp),
+			  merge(lnode.right, subseq(right, k, treeSize(right)), comp));
+	} else {
+	    Node rnode = (Node)right;
+	    int k = countBelow(left, first(rnode.right), true, comp);
+	    return concat(merge(subseq(left, 0, k), rnode.left, comp),
+			  merge(subseq(left, k, treeSize(left)), rnode.right, comp));
+	}
+    }
+
+    private static boolean isSorted(Object subtree, Comparator comp) {
+	if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 1, len = ary.length; i < len; ++i)
+		if (compare(comp, ary[i - 1], ary[i]) > 0) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    return isSorted(node.left, comp) && isSorted(node.right, comp) &&
+		compare(comp, last(node.left), first(node.right)) <= 0;
+	}
+    }
+
+    // Returns the number of leading elements of the sorted `subtree' that are less
+    // than `x' (or, if `inclusive', not greater than it).
+    private static int countBelow(Object subtree, Object x, boolean inclusive,
+				  Comparator comp) {
+	int base = 0;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    int comp_res = compare(comp, last(node.left), x);
+	    if (comp_res < 0 || (inclusive && comp_res == 0)) {
+		base += treeSize(node.left);
+		subtree = node.right;
+	    } else subtree = node.left;
+	}
+	Object[] ary = (Object[])subtree;
+	int i = 0;
+	for (int len = ary.length; i < len; ++i) {
+	    int comp_res = compare(comp, ary[i], x);
+	    if (comp_res > 0 || (!inclusive && comp_res == 0)) break;
+	}
+	return base + i;
+    }
+
+    private static Object first(Object subtree) {
+	return get(subtree, 0);
+    }
+
+    private static Object last(Object subtree) {
+	return get(subtree, treeSize(subtree) - 1);
+    }
+
+    private static int compare(Comparator comp, Object x, Object y) {
+	if (comp != null) return comp.compare(x, y);
+	// Will throw `ClassCastException' if the objects don't implement
+	// `Comparable' -- this is correct.
+	else return ((Comparable)x).compareTo(y);
+    }
+
+    /* Up to this size, subtrees are sorted and merged by copying them into an array
+     * and calling `Arrays.sort'; the tree operations cost more than that. */
+    private static final int ARRAY_SORT_SIZE = 4096;
+
+    /* Below this size, the parallel sort just calls the sequential one; forking a
+     * task costs more than sorting a subtree this small. */
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    private static final int OP_SORT = 0;
+    private static final int OP_MERGE = 1;
+
+    // For `OP_SORT', `subtree2' is unused.
+    private static final class ParallelOp extends RecursiveTask<Object> {
+	private static final long serialVersionUID = 1L;
+
+	ParallelOp(int _op, Object _subtree1, Object _subtree2, Comparator _comp) {
+	    op = _op;
+	    subtree1 = _subtree1;
+	    subtree2 = _subtree2;
+	    comp = _comp;
+	}
+	private final int op;
+	private final Object subtree1, subtree2;
+	private final Comparator comp;
+	protected Object compute() {
+	    if (op == OP_SORT) return parallelSort(subtree1, comp);
+	    else return parallelMerge(subtree1, subtree2, comp);
+	}
+    }
+
+    private static Object parallelSort(Object subtree, Comparator comp) {
+	if (!(subtree instanceof Node) || treeSize(subtree) < PARALLEL_THRESHOLD)
+	    return sort(subtree, comp);
+	else {
+	    Node node = (Node)subtree;
+	    ParallelOp left = new ParallelOp(OP_SORT, node.left, null, comp);
+	    left.fork();
+	    Object new_right = parallelSort(node.right, comp);
+	    Object new_left = left.join();
+	    if (new_left == node.left && new_right == node.right &&
+		compare(comp, last(new_left), first(new_right)) <= 0)
+		return node;
+	    else return parallelMerge(new_left, new_right, comp);
+	}
+    }
+
+    private static Object parallelMerge(Object left, Object right, Comparator comp) {
+	if (!(left instanceof Node) || right == null ||
+	    treeSize(left) + treeSize(right) < PARALLEL_THRESHOLD ||
+	    compare(comp, last(left), first(right)) <= 0 ||
+	    compare(comp, last(right), first(left)) < 0)
+	    return merge(left, right, comp);
+	else {
+	    // (When `left' is a leaf, `right' is nearly all of the work, and the
+	    // sequential version is fine.)
+	    Node lnode = (Node)left;
+	    int k = countBelow(right, first(lnode.right), false, comp);
+	    ParallelOp lower = new ParallelOp(OP_MERGE, lnode.left, subseq(right, 0, k), comp);
+	    lower.fork();
+	    Object upper = parallelMerge(lnode.right, subseq(right, k, treeSize(right)), comp);
+	    return concat(lower.join(), upper);
+	}
+    }
+
+    /* The `List' hash code is a polynomial in 31 whose coefficients are the elements'
+     * hash codes.  `polyHash' of a subtree is that polynomial for the subtree's
+     * elements alone, so that
+     *     polyHash(left ++ right) = polyHash(left) * 31^|right| + polyHash(right)
+     * and each node can cache its own.  A list made from another by `with', `less',
+     * etc. shares all but O(log n) of its nodes with the original, so once the
+     * original's hash code has been computed, the new one's takes O(log^2 n) time. */
+    /*pkg*/ static int polyHash(Object subtree) {
+	if (subtree == null) return 0;
 	else if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[]) subtree;
+	    int hash = 0;
 	    for (int i = 0, len = ary.length; i < len; ++i) {
 		Object x = ary[i];
 		hash = 31 * hash + (x == null ? 0 : x.hashCode());
 	    }
+	    return hash;
 	} else {
 	    Node node = (Node)subtree;
-	    hash = hashCode(node.left, hash);
-	    hash = hashCode(node.right, hash);
+	    int hash = node.hash_code;
+	    if (hash == Integer.MIN_VALUE) {
+		hash = polyHash(node.left) * pow31(treeSize(node.right)) + polyHash(node.right);
+		node.hash_code = hash;
+	    }
+	    return hash;
 	}
-	return hash;
+    }
+
+    // Returns 31^n (modulo 2^32, as `int' arithmetic is).
+    /*pkg*/ static int pow31(int n) {
+	int res = 1, pow = 31;
+	for (; n != 0; n >>>= 1) {
+	    if ((n & 1) != 0) res *= pow;
+	    pow *= pow;
+	}
+	return res;
     }
 
     private static String dump(Object thing) {
@@ -903,7 +1214,7 @@ public class FTreeList<Elt>
 	    canonicalizeFwd();
 	}
 
-	private FTLIterator(Object subtree, int index) {
+	/*pkg*/ FTLIterator(Object subtree, int index) {
 	    inode = new IteratorNode(subtree, 0, null);
 	    at_start = (index == 0);
 	    at_end = (index == treeSize(subtree));
@@ -1060,6 +1371,30 @@ public class FTreeList<Elt>
 	}
     }
 
+    private static final class FTLSpliterator<Elt> extends TreeSpliterator<Elt> {
+	FTLSpliterator(Object pending, Object subtree, int _characteristics) {
+	    super(pending, subtree, _characteristics);
+	}
+	protected TreeSpliterator<Elt> make(Object pending, Object subtree) {
+	    return new FTLSpliterator<Elt>(pending, subtree, characteristics());
+	}
+	protected boolean isNode(Object subtree) { return subtree instanceof Node; }
+	protected Object left(Object node) { return ((Node)node).left; }
+	protected Object right(Object node) { return ((Node)node).right; }
+	protected int subtreeSize(Object subtree) { return treeSize(subtree); }
+	// The elements are all in the leaves.
+	protected int nodeElementCount(Object node) { return 0; }
+	protected Elt nodeElement(Object node, int index) {
+	    throw new IndexOutOfBoundsException();
+	}
+	protected Iterator<Elt> iterator(Object subtree) {
+	    return new FTLIterator<Elt>(subtree);
+	}
+	protected void walk(Object subtree, Consumer<? super Elt> action) {
+	    FTreeList.forEach(subtree, action);
+	}
+    }
+
     /**
      * Saves the state of this <code>FTreeList</code> to a stream.
      *
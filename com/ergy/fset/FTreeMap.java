@@ -15,6 +15,11 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 
 /**
  * A functional map that relies on a key ordering.  It is implemented as a binary tree.
@@ -25,8 +30,15 @@ import java.util.*;
  * <p>Time costs: <code>isEmpty</code>, <code>size</code>, <code>arb</code>, and
  * <code>entrySet</code> take O(1) (constant) time.  <code>containsKey</code>,
  * <code>with</code>, <code>less</code>, <code>firstKey</code>, <code>lastKey</code>,
- * <code>subMap</code>, <code>headMap</code>, and <code>tailMap</code> take O(log
- * <i>n</i>) time.  <code>domain</code>, <code>keySet</code>, and
+ * <code>floorKey</code>, <code>ceilingKey</code>, <code>lowerKey</code>,
+ * <code>higherKey</code> (and the corresponding <code>Entry</code> methods),
+ * <code>subMap</code>, <code>headMap</code>, <code>tailMap</code>, and the order
+ * statistic methods <code>getByRank</code>, <code>rankOf</code>,
+ * <code>subMapByRank</code>, and <code>countInRange</code> take O(log <i>n</i>)
+ * time, as do <code>subMapView</code>, <code>headMapView</code>, and
+ * <code>tailMapView</code>, which return views of a range without building a
+ * tree.  <code>domain</code>, <code>keySet</code>,
+ * <code>navigableKeySet</code>, <code>descendingMap</code>, and
  * <code>containsValue</code> take O(n) (linear) time.  <code>toSet</code>,
  * <code>range</code>, and <code>values</code> take O(<i>n</i> log <i>n</i>) time.
  * <code>union</code>, <code>restrictedTo</code>, and <code>restrictedFrom</code> take
@@ -41,10 +53,10 @@ import java.util.*;
  * traditional homogeneous binary trees; typical space consumption is roughly twice
  * that of a pair of plain arrays, or even less.
  *
- * <p><code>FTreeMap</code> is declared as implementing <code>SortedMap</code>.
- * However, there are some subtle semantic differences which the user should be
- * aware of; <code>FTreeMap</code> does not exactly fulfill the contract of
- * <code>SortedMap</code>.
+ * <p><code>FTreeMap</code> is declared as implementing <code>NavigableMap</code>
+ * (and therefore <code>SortedMap</code>).  However, there are some subtle semantic
+ * differences which the user should be aware of; <code>FTreeMap</code> does not
+ * exactly fulfill the contract of <code>SortedMap</code>.
  *
  * <p>First, unlike <code>SortedMap</code>, <code>FTreeMap</code> does not
  * require the key ordering to be consistent with <code>equals</code> in order for
@@ -73,6 +85,12 @@ import java.util.*;
  * <code>headMap</code> and <code>tailMap</code> do not throw
  * <code>IllegalArgumentException</code>.
  *
+ * <p>Third, as the map can't be modified, the <code>NavigableMap</code> methods
+ * <code>pollFirstEntry</code> and <code>pollLastEntry</code> are unsupported;
+ * <code>lessFirst</code> and <code>lessLast</code> are their functional
+ * counterparts.  Also, <code>descendingMap</code>, <code>navigableKeySet</code>,
+ * and <code>descendingKeySet</code> return new collections rather than views.
+ *
  * <p><code>FTreeMap</code> accepts the null key; for ordering purposes, it
  * precedes all other keys.  It also accepts null values.
  *
@@ -124,7 +142,7 @@ import java.util.*;
 
 public class FTreeMap<Key, Val>
     extends AbstractFMap<Key, Val>
-    implements Comparable<FTreeMap<Key, Val>>, SortedMap<Key, Val>, Serializable
+    implements Comparable<FTreeMap<Key, Val>>, NavigableMap<Key, Val>, Serializable
 {
 
     /**
@@ -287,6 +305,8 @@ public class FTreeMap<Key, Val>
     private Object fromMap(Map<Key, Val> map) {
 	if (map instanceof FTreeMap && eql(comp, ((FTreeMap)map).comp))
 	    return ((FTreeMap)map).tree;
+	else if (map instanceof SortedMap && eql(comp, ((SortedMap)map).comparator()))
+	    return fromSortedMap(map);
 	else {
 	    Object t = null;
 	    for (Map.Entry<Key, Val> ent : map.entrySet())
@@ -304,6 +324,79 @@ public class FTreeMap<Key, Val>
 	return t;
     }
 
+    /**
+     * Returns a <code>FTreeMap</code> containing the same entries as
+     * <code>map</code>, and which uses the natural ordering of the keys.  The
+     * entries of <code>map</code> must come out of its iterator in nondecreasing
+     * order of their keys (as, for instance, with a <code>LinkedHashMap</code>
+     * built in key order); this allows the map to be built bottom-up in linear
+     * time, rather than by inserting the pairs one at a time.  (You don't need
+     * this for a <code>SortedMap</code> with natural ordering; the constructors
+     * recognize those automatically.)
+     *
+     * @param map the map to use the entries of
+     * @return the new map
+     * @throws IllegalArgumentException if the keys are out of order
+     */
+    public static <Key, Val> FTreeMap<Key, Val> fromSorted(Map<? extends Key, ? extends Val> map) {
+	return fromSorted(map, null);
+    }
+
+    /**
+     * Returns a <code>FTreeMap</code> containing the same entries as
+     * <code>map</code>, and which uses the supplied <code>Comparator</code> to
+     * compare keys.  The entries of <code>map</code> must come out of its iterator
+     * in nondecreasing order of their keys according to <code>c</code>; this allows
+     * the map to be built bottom-up in linear time, rather than by inserting the
+     * pairs one at a time.
+     *
+     * @param map the map to use the entries of
+     * @param c the comparator
+     * @return the new map
+     * @throws IllegalArgumentException if the keys are out of order
+     */
+    public static <Key, Val> FTreeMap<Key, Val> fromSorted(Map<? extends Key, ? extends Val> map,
+							   Comparator<? super Key> c) {
+	FTreeMap<Key, Val> empty = new FTreeMap<Key, Val>(c);
+	return new FTreeMap<Key, Val>(empty.fromSortedMap((Map<Key, Val>)map), null,
+				      (Comparator<Key>)c);
+    }
+
+    /**
+     * Returns a <code>FTreeMap</code> mapping each element of <code>keys</code> to
+     * the corresponding element of <code>vals</code>, and which uses the natural
+     * ordering of the keys.  The keys must be in nondecreasing order; this allows
+     * the map to be built bottom-up in linear time.  If a key is duplicated, the
+     * value it will be mapped to in the result will be the one corresponding to its
+     * last occurrence.
+     *
+     * @throws IllegalArgumentException if keys.length != vals.length, or if the
+     * keys are out of order
+     */
+    public static <Key, Val> FTreeMap<Key, Val> fromSorted(Key[] keys, Val[] vals) {
+	return fromSorted(keys, vals, null);
+    }
+
+    /**
+     * Returns a <code>FTreeMap</code> mapping each element of <code>keys</code> to
+     * the corresponding element of <code>vals</code>, and which uses the supplied
+     * <code>Comparator</code> to compare keys.  The keys must be in nondecreasing
+     * order according to <code>c</code>; this allows the map to be built bottom-up
+     * in linear time.  If a key is duplicated, the value it will be mapped to in the
+     * result will be the one corresponding to its last occurrence.
+     *
+     * @throws IllegalArgumentException if keys.length != vals.length, or if the
+     * keys are out of order
+     */
+    public static <Key, Val> FTreeMap<Key, Val> fromSorted(Key[] keys, Val[] vals,
+							   Comparator<? super Key> c) {
+	if (keys.length != vals.length)
+	    throw new IllegalArgumentException("array lengths must be equal");
+	FTreeMap<Key, Val> empty = new FTreeMap<Key, Val>(c);
+	Object t = empty.fromSorted(keys.clone(), vals.clone(), keys.length);
+	return new FTreeMap<Key, Val>(t, null, (Comparator<Key>)c);
+    }
+
     public boolean isEmpty() {
 	return tree == null;
     }
@@ -391,6 +484,10 @@ public class FTreeMap<Key, Val>
 	    public Iterator<Val> iterator() {
 		return new FTMValueIterator<Val>(tree);
 	    }
+	    public Spliterator<Val> spliterator() {
+		return valueSpliterator(Spliterator.IMMUTABLE | Spliterator.ORDERED |
+					Spliterator.SIZED | Spliterator.SUBSIZED);
+	    }
 	    public int size() {
 		return FTreeMap.this.size();
 	    }
@@ -402,6 +499,9 @@ public class FTreeMap<Key, Val>
 	    public Iterator iterator() {
 		return FTreeMap.this.iterator();
 	    }
+	    public Spliterator<Map.Entry<Key, Val>> spliterator() {
+		return FTreeMap.this.spliterator();
+	    }
 	    public int size() {
 		return FTreeMap.this.size();
 	    }
@@ -497,6 +597,98 @@ public class FTreeMap<Key, Val>
 	return new FTreeMap<Key, Val>(t, dflt, comp);
     }
 
+    /**
+     * Returns the union of this map with <code>with_map</code>, like
+     * <code>union</code>, but processes large subtrees in parallel on the common
+     * fork/join pool.  The result is the same as that of <code>union</code>.  This
+     * is worthwhile only when the maps are large -- tens of thousands of pairs or
+     * more; smaller subproblems are done sequentially.  <code>valCombiner</code> and
+     * the comparator may be called concurrently from several threads.
+     *
+     * @param with_map the map to take the union with
+     * @param valCombiner combines the values of keys present in both maps
+     * @return the union of the two maps
+     */
+    public FTreeMap<Key, Val> parallelUnion(FMap<? extends Key, ? extends Val> with_map,
+					    BinaryOp<Val> valCombiner) {
+	return parallelUnion(with_map, valCombiner, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the union of this map with <code>with_map</code>, like
+     * <code>union</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.  <code>valCombiner</code> and the comparator may be called
+     * concurrently from several threads.
+     *
+     * @param with_map the map to take the union with
+     * @param valCombiner combines the values of keys present in both maps
+     * @param pool the fork/join pool to use
+     * @return the union of the two maps
+     */
+    public FTreeMap<Key, Val> parallelUnion(FMap<? extends Key, ? extends Val> with_map,
+					    BinaryOp<Val> valCombiner, ForkJoinPool pool) {
+	FTreeMap<Key, Val> with_ftm = new FTreeMap<Key, Val>(with_map, comp);
+	Object t = pool.invoke(new ParallelOp(OP_UNION, tree, with_ftm.tree, valCombiner,
+					      null, NEGATIVE_INFINITY, POSITIVE_INFINITY));
+	return new FTreeMap<Key, Val>(t, dflt, comp);
+    }
+
+    /**
+     * Returns this map restricted to <code>set</code>, like
+     * <code>restrictedTo</code>, but processes large subtrees in parallel on the
+     * common fork/join pool.
+     *
+     * @param set the set to restrict to
+     * @return the restricted map
+     */
+    public FTreeMap<Key, Val> parallelRestrictedTo(FSet<Key> set) {
+	return parallelRestrictedTo(set, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns this map restricted to <code>set</code>, like
+     * <code>restrictedTo</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.
+     *
+     * @param set the set to restrict to
+     * @param pool the fork/join pool to use
+     * @return the restricted map
+     */
+    public FTreeMap<Key, Val> parallelRestrictedTo(FSet<Key> set, ForkJoinPool pool) {
+	FTreeSet<Key> fts = new FTreeSet<Key>(set, comp);
+	Object t = pool.invoke(new ParallelOp(OP_RESTRICTED_TO, tree, fts.tree, null, fts,
+					      NEGATIVE_INFINITY, POSITIVE_INFINITY));
+	return new FTreeMap<Key, Val>(t, dflt, comp);
+    }
+
+    /**
+     * Returns this map restricted from <code>set</code>, like
+     * <code>restrictedFrom</code>, but processes large subtrees in parallel on the
+     * common fork/join pool.
+     *
+     * @param set the set to restrict from
+     * @return the restricted map
+     */
+    public FTreeMap<Key, Val> parallelRestrictedFrom(FSet<Key> set) {
+	return parallelRestrictedFrom(set, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns this map restricted from <code>set</code>, like
+     * <code>restrictedFrom</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.
+     *
+     * @param set the set to restrict from
+     * @param pool the fork/join pool to use
+     * @return the restricted map
+     */
+    public FTreeMap<Key, Val> parallelRestrictedFrom(FSet<Key> set, ForkJoinPool pool) {
+	FTreeSet<Key> fts = new FTreeSet<Key>(set, comp);
+	Object t = pool.invoke(new ParallelOp(OP_RESTRICTED_FROM, tree, fts.tree, null, fts,
+					      NEGATIVE_INFINITY, POSITIVE_INFINITY));
+	return new FTreeMap<Key, Val>(t, dflt, comp);
+    }
+
     public Val getDefault() {
 	return dflt;
     }
@@ -505,6 +697,66 @@ public class FTreeMap<Key, Val>
 	return new FTMIterator<Key, Val>(tree);
     }
 
+    /**
+     * Returns a <code>Spliterator</code> over the entries of the map.  It splits
+     * exactly along the tree structure, and reports <code>IMMUTABLE</code>,
+     * <code>DISTINCT</code>, <code>SIZED</code>, <code>SUBSIZED</code>,
+     * <code>ORDERED</code>, and <code>SORTED</code>; its comparator orders the
+     * entries by key, as the map does.
+     */
+    public Spliterator<Map.Entry<Key, Val>> spliterator() {
+	return new FTMSpliterator(null, tree);
+    }
+
+    // Package access so `FLinkedHashSet' and `FLinkedHashMap' can use it, with their
+    // own characteristics.
+    /*pkg*/ Spliterator<Val> valueSpliterator(int characteristics) {
+	return new FTMValueSpliterator<Val>(null, tree, characteristics);
+    }
+
+    /**
+     * Calls <code>action</code> on each key and its value, in order.  Unlike
+     * iterating, this walks the tree recursively, and allocates nothing; in
+     * particular, it doesn't create <code>Map.Entry</code> objects.
+     */
+    public void forEach(BiConsumer<? super Key, ? super Val> action) {
+	if (action == null) throw new NullPointerException();
+	forEach(tree, action);
+    }
+
+    /**
+     * Calls <code>pred</code> on each key and its value, in order, until it
+     * returns false.  Like <code>forEach</code>, allocates nothing.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every pair
+     */
+    public boolean forEachWhile(BiPredicate<? super Key, ? super Val> pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachWhile(tree, pred);
+    }
+
+    /**
+     * Compares this map with <code>other</code>, as described in {@link
+     * FMap#diff(FMap, MapDiff.Handler)}.  If <code>other</code> is also a
+     * <code>FTreeMap</code> using the same ordering, this walks the two trees
+     * together, skipping any subtree they share, and reports the differences in
+     * order of their keys; otherwise it looks up each key of each map in the other.
+     *
+     * @param other the new version of the map
+     * @param handler receives the differences
+     */
+    public void diff(FMap<? extends Key, ? extends Val> other,
+		     MapDiff.Handler<? super Key, ? super Val> handler) {
+	if (other instanceof FTreeMap && eql(comp, ((FTreeMap)other).comp))
+	    diff(tree, ((FTreeMap)other).tree, handler, NEGATIVE_INFINITY, POSITIVE_INFINITY);
+	else super.diff(other, handler);
+    }
+
+    public MapDiff<Key, Val> diff(FMap<? extends Key, ? extends Val> other) {
+	return MapDiff.collect(this, other, new FTreeMap<Key, Val>(comp));
+    }
+
     /**
      * See the documentation for {@link Comparable#compareTo}.
      *
@@ -641,6 +893,557 @@ public class FTreeMap<Key, Val>
 	}
     }
 
+    /****************/
+    /* Operations of `NavigableMap' */
+
+    /**
+     * Returns the pair of this map with the greatest key less than
+     * <code>key</code>, or <code>null</code> if there is none.  If there are
+     * several such keys that are equivalent to one another, returns the pair with
+     * the last of them in iteration order.
+     *
+     * @throws ClassCastException if <code>key</code> cannot be compared to the
+     *     keys in the map
+     */
+    public Map.Entry<Key, Val> lowerEntry(Key key) {
+	return nearestOrNull(nearest(tree, key, false, false, true));
+    }
+
+    /**
+     * Returns the greatest key of this map that is less than <code>key</code>, or
+     * <code>null</code> if there is none.  If there are several such keys that are
+     * equivalent to one another, returns the last of them in iteration order.
+     * This does no allocation.
+     *
+     * @throws ClassCastException if <code>key</code> cannot be compared to the
+     *     keys in the map
+     */
+    public Key lowerKey(Key key) {
+	return nearestOrNull(nearest(tree, key, false, false, false));
+    }
+
+    /**
+     * Returns the pair of this map with the greatest key less than or equivalent to
+     * <code>key</code>, or <code>null</code> if there is none.  If the map contains
+     * keys equivalent to <code>key</code>, returns the pair whose key is equal to
+     * it if there is one, else the last of them in iteration order.
+     *
+     * @throws ClassCastException if <code>key</code> cannot be compared to the
+     *     keys in the map
+     */
+    public Map.Entry<Key, Val> floorEntry(Key key) {
+	return nearestOrNull(nearest(tree, key, false, true, true));
+    }
+
+    /**
+     * Returns the greatest key of this map that is less than or equivalent to
+     * <code>key</code>, or <code>null</code> if there is none.  If the map contains
+     * keys equivalent to <code>key</code>, returns the one equal to it if there is
+     * one, else the last of them in iteration order.  This does no allocation.
+     *
+     * @throws ClassCastException if <code>key</code> cannot be compared to the
+     *     keys in the map
+     */
+    public Key floorKey(Key key) {
+	return nearestOrNull(nearest(tree, key, false, true, false));
+    }
+
+    /**
+     * Returns the pair of this map with the least key greater than or equivalent to
+     * <code>key</code>, or <code>null</code> if there is none.  If the map contains
+     * keys equivalent to <code>key</code>, returns the pair whose key is equal to
+     * it if there is one, else the first of them in iteration order.
+     *
+     * @throws ClassCastException if <code>key</code> cannot be compared to the
+     *     keys in the map
+     */
+    public Map.Entry<Key, Val> ceilingEntry(Key key) {
+	return nearestOrNull(nearest(tree, key, true, true, true));
+    }
+
+    /**
+     * Returns the least key of this map that is greater than or equivalent to
+     * <code>key</code>, or <code>null</code> if there is none.  If the map contains
+     * keys equivalent to <code>key</code>, returns the one equal to it if there is
+     * one, else the first of them in iteration order.  This does no allocation.
+     *
+     * @throws ClassCastException if <code>key</code> cannot be compared to the
+     *     keys in the map
+     */
+    public Key ceilingKey(Key key) {
+	return nearestOrNull(nearest(tree, key, true, true, false));
+    }
+
+    /**
+     * Returns the pair of this map with the least key greater than
+     * <code>key</code>, or <code>null</code> if there is none.  If there are
+     * several such keys that are equivalent to one another, returns the pair with
+     * the first of them in iteration order.
+     *
+     * @throws ClassCastException if <code>key</code> cannot be compared to the
+     *     keys in the map
+     */
+    public Map.Entry<Key, Val> higherEntry(Key key) {
+	return nearestOrNull(nearest(tree, key, true, false, true));
+    }
+
+    /**
+     * Returns the least key of this map that is greater than <code>key</code>, or
+     * <code>null</code> if there is none.  If there are several such keys that are
+     * equivalent to one another, returns the first of them in iteration order.
+     * This does no allocation.
+     *
+     * @throws ClassCastException if <code>key</code> cannot be compared to the
+     *     keys in the map
+     */
+    public Key higherKey(Key key) {
+	return nearestOrNull(nearest(tree, key, true, false, false));
+    }
+
+    /**
+     * Returns the pair of this map whose key <code>firstKey</code> would return,
+     * or <code>null</code> if the map is empty.
+     */
+    public Map.Entry<Key, Val> firstEntry() {
+	if (tree == null) return null;
+	else return (Map.Entry<Key, Val>)(Object)firstEntry(tree);
+    }
+
+    /**
+     * Returns the pair of this map whose key <code>lastKey</code> would return,
+     * or <code>null</code> if the map is empty.
+     */
+    public Map.Entry<Key, Val> lastEntry() {
+	if (tree == null) return null;
+	else return (Map.Entry<Key, Val>)(Object)lastEntry(tree);
+    }
+
+    /**
+     * Unsupported; see {@link #lessFirst}.
+     */
+    public Map.Entry<Key, Val> pollFirstEntry() {
+	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Unsupported; see {@link #lessLast}.
+     */
+    public Map.Entry<Key, Val> pollLastEntry() {
+	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns this map less the pair whose key <code>firstKey</code> would return,
+     * or this map itself if it is empty.  This is the functional counterpart of
+     * {@link #pollFirstEntry}.
+     */
+    public FTreeMap<Key, Val> lessFirst() {
+	if (tree == null) return this;
+	else return less(firstKey());
+    }
+
+    /**
+     * Returns this map less the pair whose key <code>lastKey</code> would return,
+     * or this map itself if it is empty.  This is the functional counterpart of
+     * {@link #pollLastEntry}.
+     */
+    public FTreeMap<Key, Val> lessLast() {
+	if (tree == null) return this;
+	else return less(lastKey());
+    }
+
+    /**
+     * Returns a map containing the pairs of this map, with its keys ordered by the
+     * reverse of its ordering, and with the same default.  Unlike the
+     * corresponding method of <code>TreeMap</code>, this does not return a view,
+     * but builds a new map, in O(n) (linear) time.  The null key, if present,
+     * still precedes all others.
+     */
+    public FTreeMap<Key, Val> descendingMap() {
+	int n = size();
+	Object[] keys = new Object[n], vals = new Object[n];
+	int i = n;
+	for (Map.Entry<Key, Val> ent : this) {
+	    --i;
+	    keys[i] = ent.getKey();
+	    vals[i] = ent.getValue();
+	}
+	if (n > 0 && keys[n - 1] == null) {
+	    Object val = vals[n - 1];
+	    System.arraycopy(keys, 0, keys, 1, n - 1);
+	    System.arraycopy(vals, 0, vals, 1, n - 1);
+	    keys[0] = null;
+	    vals[0] = val;
+	}
+	Comparator<Key> rcomp = FTreeSet.reverseComparator(comp);
+	FTreeMap<Key, Val> empty = new FTreeMap<Key, Val>(null, dflt, rcomp);
+	return new FTreeMap<Key, Val>(empty.fromSorted(keys, vals, n), dflt, rcomp);
+    }
+
+    /**
+     * Returns the keys of this map as a <code>FTreeSet</code>; the same as
+     * <code>domain</code>.
+     */
+    public FTreeSet<Key> navigableKeySet() {
+	return domain();
+    }
+
+    /**
+     * Returns the keys of this map as a <code>FTreeSet</code> ordered by the
+     * reverse of this map's ordering.
+     */
+    public FTreeSet<Key> descendingKeySet() {
+	return domain().descendingSet();
+    }
+
+    /**
+     * Returns a map containing the pairs of this map whose keys are between
+     * <code>fromKey</code> and <code>toKey</code>; each bound, if inclusive, admits
+     * the keys equivalent to it.  Like {@link #subMap(Object, Object)}, this never
+     * throws <code>IllegalArgumentException</code>.
+     *
+     * @param fromKey lower bound
+     * @param fromInclusive whether the lower bound is inclusive
+     * @param toKey upper bound
+     * @param toInclusive whether the upper bound is inclusive
+     * @return the new map
+     * @throws ClassCastException if <code>fromKey</code> or <code>toKey</code>
+     *     cannot be compared to each other or to the keys in the map
+     */
+    public FTreeMap<Key, Val> subMap(Key fromKey, boolean fromInclusive,
+				     Key toKey, boolean toInclusive) {
+	return range(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    /**
+     * Returns a map containing the pairs of this map whose keys are less than (or,
+     * if <code>inclusive</code> is true, equivalent to) <code>toKey</code>.  Like
+     * {@link #headMap(Object)}, this never throws
+     * <code>IllegalArgumentException</code>.
+     *
+     * @param toKey upper bound
+     * @param inclusive whether the upper bound is inclusive
+     * @return the new map
+     * @throws ClassCastException if <code>toKey</code> cannot be compared to the
+     *     keys in the map
+     */
+    public FTreeMap<Key, Val> headMap(Key toKey, boolean inclusive) {
+	return range(NEGATIVE_INFINITY, false, toKey, inclusive);
+    }
+
+    /**
+     * Returns a map containing the pairs of this map whose keys are greater than
+     * (or, if <code>inclusive</code> is true, equivalent to) <code>fromKey</code>.
+     * Like {@link #tailMap(Object)}, this never throws
+     * <code>IllegalArgumentException</code>.
+     *
+     * @param fromKey lower bound
+     * @param inclusive whether the lower bound is inclusive
+     * @return the new map
+     * @throws ClassCastException if <code>fromKey</code> cannot be compared to the
+     *     keys in the map
+     */
+    public FTreeMap<Key, Val> tailMap(Key fromKey, boolean inclusive) {
+	return range(fromKey, inclusive, POSITIVE_INFINITY, false);
+    }
+
+    /****************/
+    /* Order statistics */
+
+    /**
+     * Returns the pair of this map at index <code>rank</code> in iteration order,
+     * that is, the one preceded by <code>rank</code> other pairs.  Pairs with
+     * equivalent keys are counted separately.  Takes O(log n) time.  (This isn't
+     * called <code>get</code>, as it would then be too easily confused with
+     * <code>Map.get</code> on a map with <code>Integer</code> keys.)
+     *
+     * @param rank the index
+     * @return the pair
+     * @throws IndexOutOfBoundsException if <code>rank</code> is negative or not
+     *     less than the size of the map
+     */
+    public Map.Entry<Key, Val> getByRank(int rank) {
+	if (rank < 0 || rank >= size()) throw new IndexOutOfBoundsException();
+	return (Map.Entry<Key, Val>)(Object)entryAtRank(tree, rank);
+    }
+
+    /**
+     * Returns the index in iteration order of the pair whose key is
+     * <code>key</code> (the inverse of {@link #getByRank}), or -1 if there is no
+     * such pair.  Takes O(log n) time.
+     *
+     * @param key the key to look for
+     * @return its index, or -1
+     * @throws ClassCastException if <code>key</code> cannot be compared to the
+     *     keys in the map
+     */
+    public int rankOf(Object key) {
+	return rankOf(tree, key);
+    }
+
+    /**
+     * Returns a map containing the pairs of this map whose indices in iteration
+     * order are at least <code>fromRank</code> and less than <code>toRank</code>.
+     * Takes O(log n) time.
+     *
+     * @param fromRank inclusive lower bound
+     * @param toRank exclusive upper bound
+     * @return the new map
+     * @throws IndexOutOfBoundsException if <code>fromRank</code> is negative,
+     *     <code>toRank</code> is greater than the size of the map, or
+     *     <code>fromRank</code> is greater than <code>toRank</code>
+     */
+    public FTreeMap<Key, Val> subMapByRank(int fromRank, int toRank) {
+	if (fromRank < 0 || toRank > size() || fromRank > toRank)
+	    throw new IndexOutOfBoundsException();
+	Object t = rankSplit(tree, fromRank, toRank);
+	if (t == tree) return this;
+	else return new FTreeMap<Key, Val>(t, dflt, comp);
+    }
+
+    /**
+     * Returns the number of keys of this map greater than or equivalent to
+     * <code>lo</code> and less than <code>hi</code>; that is, the size of
+     * <code>subMap(lo, hi)</code>, but without constructing it.  Takes O(log n)
+     * time.
+     *
+     * @param lo inclusive lower bound
+     * @param hi exclusive upper bound
+     * @return the number of keys in that range
+     * @throws ClassCastException if <code>lo</code> or <code>hi</code> cannot be
+     *     compared to the keys in the map
+     */
+    public int countInRange(Key lo, Key hi) {
+	return Math.max(rankBelow(tree, hi, false) - rankBelow(tree, lo, false), 0);
+    }
+
+    /****************/
+    /* Range views */
+
+    /**
+     * Returns a view of the pairs of this map whose keys are between
+     * <code>fromKey</code> and <code>toKey</code>; each bound, if inclusive, admits
+     * the keys equivalent to it.  This contains the same pairs as {@link
+     * #subMap(Object, boolean, Object, boolean)} would return, but takes O(log n)
+     * time without building any tree; see {@link RangeView}.
+     *
+     * @param fromKey lower bound
+     * @param fromInclusive whether the lower bound is inclusive
+     * @param toKey upper bound
+     * @param toInclusive whether the upper bound is inclusive
+     * @return the view
+     * @throws ClassCastException if <code>fromKey</code> or <code>toKey</code>
+     *     cannot be compared to the keys in the map
+     */
+    public RangeView<Key, Val> subMapView(Key fromKey, boolean fromInclusive,
+					  Key toKey, boolean toInclusive) {
+	return rangeView(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    /**
+     * Returns a view of the pairs of this map whose keys are less than (or, if
+     * <code>inclusive</code> is true, equivalent to) <code>toKey</code>.  See
+     * {@link #subMapView}.
+     *
+     * @param toKey upper bound
+     * @param inclusive whether the upper bound is inclusive
+     * @return the view
+     * @throws ClassCastException if <code>toKey</code> cannot be compared to the
+     *     keys in the map
+     */
+    public RangeView<Key, Val> headMapView(Key toKey, boolean inclusive) {
+	return rangeView(NEGATIVE_INFINITY, false, toKey, inclusive);
+    }
+
+    /**
+     * Returns a view of the pairs of this map whose keys are greater than (or, if
+     * <code>inclusive</code> is true, equivalent to) <code>fromKey</code>.  See
+     * {@link #subMapView}.
+     *
+     * @param fromKey lower bound
+     * @param inclusive whether the lower bound is inclusive
+     * @return the view
+     * @throws ClassCastException if <code>fromKey</code> cannot be compared to the
+     *     keys in the map
+     */
+    public RangeView<Key, Val> tailMapView(Key fromKey, boolean inclusive) {
+	return rangeView(fromKey, inclusive, POSITIVE_INFINITY, false);
+    }
+
+    /**
+     * A view of the pairs of a <code>FTreeMap</code> whose keys lie within a range,
+     * as returned by {@link FTreeMap#subMapView}, {@link FTreeMap#headMapView}, and
+     * {@link FTreeMap#tailMapView}.  The view records only the ranks of the ends
+     * of the range, so <code>size</code> and <code>isEmpty</code> take O(1) time;
+     * <code>get</code>, <code>containsKey</code>, <code>contains</code>,
+     * <code>arb</code>, <code>firstKey</code>, and <code>lastKey</code> take O(log
+     * n) time; and the iterator visits just the pairs in range, starting in O(log
+     * n) time.  None of these builds any tree.  For keys outside the range,
+     * <code>get</code> returns the map's default.
+     *
+     * <p>All other operations -- the functional updates <code>with</code>,
+     * <code>less</code>, <code>union</code>, and so on, but also
+     * <code>domain</code>, <code>range</code>, <code>toSet</code>, and
+     * <code>diff</code> -- first materialize the range as a <code>FTreeMap</code>
+     * (as <code>subMapByRank</code> would, in O(log n) time), which is then cached
+     * in the view.  Their results are ordinary <code>FTreeMap</code>s.
+     *
+     * <p>A view holds on to the whole of the map it was taken from.  It is
+     * serialized as the materialized <code>FTreeMap</code>.
+     */
+    public static final class RangeView<Key, Val>
+	extends AbstractFMap<Key, Val>
+	implements Serializable
+    {
+	private static final long serialVersionUID = 1L;
+
+	public boolean isEmpty() {
+	    return from == to;
+	}
+
+	public int size() {
+	    return to - from;
+	}
+
+	public Map.Entry<Key, Val> arb() {
+	    if (from == to) throw new NoSuchElementException();
+	    else return map.getByRank((from + to) >> 1);
+	}
+
+	public boolean contains(Map.Entry<Key, Val> entry) {
+	    Key key = entry.getKey();
+	    return containsKey(key) && eql(entry.getValue(), map.get(key));
+	}
+
+	public boolean containsKey(Object key) {
+	    int rank = map.rankOf(key);
+	    return rank >= from && rank < to;
+	}
+
+	public Val get(Object key) {
+	    if (containsKey(key)) return map.get(key);
+	    else return map.dflt;
+	}
+
+	public Val getDefault() {
+	    return map.dflt;
+	}
+
+	public Iterator<Map.Entry<Key, Val>> iterator() {
+	    return new FTMIterator<Key, Val>(map.tree, from, to - from);
+	}
+
+	public Set<Map.Entry<Key, Val>> entrySet() {
+	    return new AbstractSet<Map.Entry<Key, Val>>() {
+		public Iterator<Map.Entry<Key, Val>> iterator() {
+		    return RangeView.this.iterator();
+		}
+		public int size() {
+		    return RangeView.this.size();
+		}
+		public boolean contains(Object x) {
+		    if (!(x instanceof Map.Entry)) return false;
+		    else return RangeView.this.contains((Map.Entry<Key, Val>)x);
+		}
+	    };
+	}
+
+	public Comparator<Key> comparator() {
+	    return map.comp;
+	}
+
+	public Key firstKey() {
+	    if (from == to) throw new NoSuchElementException();
+	    else return map.getByRank(from).getKey();
+	}
+
+	public Key lastKey() {
+	    if (from == to) throw new NoSuchElementException();
+	    else return map.getByRank(to - 1).getKey();
+	}
+
+	/**
+	 * Returns the pairs of this view as a <code>FTreeMap</code>.  The map is
+	 * built the first time this is called, and cached.
+	 */
+	public FTreeMap<Key, Val> materialize() {
+	    if (materialized == null) materialized = map.subMapByRank(from, to);
+	    return materialized;
+	}
+
+	public FTreeMap<Key, Val> with(Key key, Val value) {
+	    return materialize().with(key, value);
+	}
+
+	public FTreeMap<Key, Val> with(Key key, Val value, BinaryOp<Val> valCombiner) {
+	    return materialize().with(key, value, valCombiner);
+	}
+
+	public FTreeMap<Key, Val> less(Key key) {
+	    return materialize().less(key);
+	}
+
+	public FTreeSet<Key> domain() {
+	    return materialize().domain();
+	}
+
+	public FTreeSet<Val> range() {
+	    return materialize().range();
+	}
+
+	public FSet<Val> range(FSet<Val> initial_set) {
+	    return materialize().range(initial_set);
+	}
+
+	public FTreeSet<Map.Entry<Key, Val>> toSet() {
+	    return materialize().toSet();
+	}
+
+	public FSet<Map.Entry<Key, Val>> toSet(FSet<Map.Entry<Key, Val>> initial_set) {
+	    return materialize().toSet(initial_set);
+	}
+
+	public FTreeMap<Key, Val> union(FMap<? extends Key, ? extends Val> with_map) {
+	    return materialize().union(with_map);
+	}
+
+	public FTreeMap<Key, Val> union(FMap<? extends Key, ? extends Val> with_map,
+					BinaryOp<Val> valCombiner) {
+	    return materialize().union(with_map, valCombiner);
+	}
+
+	public FTreeMap<Key, Val> restrictedTo(FSet<Key> set) {
+	    return materialize().restrictedTo(set);
+	}
+
+	public FTreeMap<Key, Val> restrictedFrom(FSet<Key> set) {
+	    return materialize().restrictedFrom(set);
+	}
+
+	public void diff(FMap<? extends Key, ? extends Val> other,
+			 MapDiff.Handler<? super Key, ? super Val> handler) {
+	    materialize().diff(other, handler);
+	}
+
+	public MapDiff<Key, Val> diff(FMap<? extends Key, ? extends Val> other) {
+	    return materialize().diff(other);
+	}
+
+	private final FTreeMap<Key, Val> map;
+	private final int from, to;	// ranks in `map'
+	private transient FTreeMap<Key, Val> materialized = null;	// cache
+
+	private RangeView(FTreeMap<Key, Val> _map, int _from, int _to) {
+	    map = _map;
+	    from = _from;
+	    to = _to;
+	}
+
+	private Object writeReplace() {
+	    return materialize();
+	}
+    }
+
     /******************************************************************************/
     /* Internals */
 
@@ -653,7 +1456,8 @@ public class FTreeMap<Key, Val>
     private static final FTreeMap EMPTY_INSTANCE = new FTreeMap();
 
     /* Instance variables */
-    private transient final Object tree;	// a subtree (see below)
+    // This has package access for benefit of `Snapshot.write'.
+    /*pkg*/ transient final Object tree;	// a subtree (see below)
     private final Val dflt;
     private final Comparator<Key> comp;
     private transient int hash_code = Integer.MIN_VALUE;	// cache
@@ -733,6 +1537,7 @@ public class FTreeMap<Key, Val>
 	private final int size;		// the number of pairs in the subtree
 	private final Object left;	// a subtree
 	private final Object right;	// a subtree
+	private int hash_code = Integer.MIN_VALUE;	// cache of `hashCode(Object)'
     }
 
     private static Node makeNode(Object key, Object value, Object left, Object right) {
@@ -757,12 +1562,57 @@ public class FTreeMap<Key, Val>
 	else return 1;
     }
 
-    private FTreeMap(Object _tree, Val _dflt, Comparator<Key> _comp) {
+    // This has default (package-wide) access so `Snapshot.readTreeMap' can use it.
+    /*pkg*/ FTreeMap(Object _tree, Val _dflt, Comparator<Key> _comp) {
 	tree = _tree;
 	dflt = _dflt;
 	comp = _comp;
     }
 
+    private static <Key, Val> void forEach(Object subtree,
+					   BiConsumer<? super Key, ? super Val> action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = ary.length >> 1; i < len; ++i)
+		action.accept((Key)ary[i], (Val)ary[i + len]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEach(node.left, action);
+	    if (node.key instanceof EquivalentMap) {
+		ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+		for (int i = 0, len = al.size(); i < len; ++i) {
+		    Entry ent = al.get(i);
+		    action.accept((Key)ent.key, (Val)ent.value);
+		}
+	    } else action.accept((Key)node.key, (Val)node.value);
+	    forEach(node.right, action);
+	}
+    }
+
+    private static <Key, Val> boolean forEachWhile(Object subtree,
+						   BiPredicate<? super Key,
+							       ? super Val> pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = ary.length >> 1; i < len; ++i)
+		if (!pred.test((Key)ary[i], (Val)ary[i + len])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    if (!forEachWhile(node.left, pred)) return false;
+	    if (node.key instanceof EquivalentMap) {
+		ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+		for (int i = 0, len = al.size(); i < len; ++i) {
+		    Entry ent = al.get(i);
+		    if (!pred.test((Key)ent.key, (Val)ent.value)) return false;
+		}
+	    } else if (!pred.test((Key)node.key, (Val)node.value)) return false;
+	    return forEachWhile(node.right, pred);
+	}
+    }
+
     private Object firstKey(Object subtree) {
 	if (!(subtree instanceof Node)) {
 	    Object[] ary = (Object[])subtree;
@@ -792,8 +1642,238 @@ public class FTreeMap<Key, Val>
 	}
     }
 
+    private Entry firstEntry(Object subtree) {
+	if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    return new Entry(ary[0], ary[ary.length >> 1]);
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.left == null) {
+		if (node.key instanceof EquivalentMap)
+		    return ((EquivalentMap)node.key).contents.get(0);
+		else return node;
+	    } else return firstEntry(node.left);
+	}
+    }
+
+    private Entry lastEntry(Object subtree) {
+	if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    return new Entry(ary[(ary.length >> 1) - 1], ary[ary.length - 1]);
+	} else {
+	    Node node = (Node)subtree;
+	    if (node.right == null) {
+		if (node.key instanceof EquivalentMap) {
+		    ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+		    return al.get(al.size() - 1);
+		} else return node;
+	    } else return lastEntry(node.right);
+	}
+    }
+
     private static final Object NO_ELEMENT = new Object();
 
+    // Returns the key of `subtree' nearest `key' in one direction -- or its pair,
+    // if `want_entry' is true -- or `NO_ELEMENT' if there is none: the least key
+    // above `key' if `above' is true, else the greatest one below it.  If
+    // `inclusive' is true, keys equivalent to `key' count.  This is a single
+    // descent, remembering the nearest node passed on the way down; only a pair
+    // taken from a leaf has to be allocated.
+    private Object nearest(Object subtree, Object key, boolean above, boolean inclusive,
+			   boolean want_entry) {
+	Entry cand = null;
+	while (subtree != null) {
+	    if (!(subtree instanceof Node)) {
+		Object[] ary = (Object[])subtree;
+		int nkeys = ary.length >> 1;
+		int bin_srch_res = binarySearch(ary, key);
+		boolean found = (bin_srch_res & BIN_SEARCH_FOUND_MASK) == BIN_SEARCH_FOUND;
+		int idx = bin_srch_res >> BIN_SEARCH_INDEX_SHIFT;
+		if (!(found && inclusive)) {
+		    if (!above) --idx;
+		    else if (found) ++idx;
+		}
+		if (idx < 0 || idx >= nkeys) break;
+		else if (want_entry) return new Entry(ary[idx], ary[idx + nkeys]);
+		else return ary[idx];
+	    } else {
+		Node node = (Node)subtree;
+		int comp_res = compare(key, node.key);
+		if (comp_res == 0) {
+		    if (inclusive) {
+			Entry ent = node;
+			if (node.key instanceof EquivalentMap) {
+			    ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+			    int i = al.size() - 1;
+			    while (i >= 0 && !eql(al.get(i).key, key)) --i;
+			    ent = al.get(i >= 0 ? i : above ? 0 : al.size() - 1);
+			}
+			return want_entry ? ent : ent.key;
+		    }
+		    subtree = above ? node.right : node.left;
+		} else if ((comp_res < 0) == above) {
+		    cand = node;
+		    subtree = above ? node.left : node.right;
+		} else subtree = above ? node.right : node.left;
+	    }
+	}
+	if (cand == null) return NO_ELEMENT;
+	else {
+	    if (cand.key instanceof EquivalentMap) {
+		ArrayList<Entry> al = ((EquivalentMap)cand.key).contents;
+		cand = al.get(above ? 0 : al.size() - 1);
+	    }
+	    return want_entry ? cand : cand.key;
+	}
+    }
+
+    private static <T> T nearestOrNull(Object obj) {
+	return obj == NO_ELEMENT ? null : (T)obj;
+    }
+
+    // Returns the submap of this map's pairs whose keys are above `lo' and below
+    // `hi', either of which may be the appropriate infinity; an inclusive bound also
+    // admits the keys equivalent to it.
+    private FTreeMap<Key, Val> range(Object lo, boolean lo_incl, Object hi, boolean hi_incl) {
+	if (tree == null) return this;
+	boolean same = false;
+	if (lo != NEGATIVE_INFINITY && hi != POSITIVE_INFINITY) {
+	    int comp_res = compare(lo, hi);
+	    if (comp_res > 0 || (comp_res == 0 && !(lo_incl && hi_incl)))
+		return new FTreeMap<Key, Val>(null, dflt, comp);
+	    same = comp_res == 0;
+	}
+	// `split' excludes both endpoints.
+	Object t = split(tree, lo, hi);
+	if (lo_incl) t = withEquiv(t, lo);
+	if (hi_incl && !same) t = withEquiv(t, hi);
+	if (t == tree) return this;
+	else return new FTreeMap<Key, Val>(t, dflt, comp);
+    }
+
+    // Unlike `rankEntry', this returns the member of an `EquivalentMap'.
+    private static Entry entryAtRank(Object subtree, int rank) {
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    int left_size = treeSize(node.left);
+	    if (rank < left_size) subtree = node.left;
+	    else {
+		int key_size = keySize(node.key);
+		rank -= left_size;
+		if (rank >= key_size) {
+		    rank -= key_size;
+		    subtree = node.right;
+		} else if (node.key instanceof EquivalentMap)
+		    return ((EquivalentMap)node.key).contents.get(rank);
+		else return node;
+	    }
+	}
+	Object[] ary = (Object[])subtree;
+	return new Entry(ary[rank], ary[rank + (ary.length >> 1)]);
+    }
+
+    private int rankOf(Object subtree, Object key) {
+	int base = 0;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    int comp_res = compare(key, node.key);
+	    if (comp_res < 0) subtree = node.left;
+	    else {
+		int left_size = treeSize(node.left);
+		if (comp_res == 0) {
+		    if (node.key instanceof EquivalentMap) {
+			ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+			for (int i = 0, len = al.size(); i < len; ++i)
+			    if (eql(al.get(i).key, key)) return base + left_size + i;
+			return -1;
+		    } else return eql(node.key, key) ? base + left_size : -1;
+		}
+		base += left_size + keySize(node.key);
+		subtree = node.right;
+	    }
+	}
+	if (subtree == null) return -1;
+	else {
+	    Object[] ary = (Object[])subtree;
+	    int bin_srch_res = binarySearch(ary, key);
+	    int idx = bin_srch_res >> BIN_SEARCH_INDEX_SHIFT;
+	    if ((bin_srch_res & BIN_SEARCH_FOUND_MASK) == BIN_SEARCH_FOUND &&
+		eql(ary[idx], key))
+		return base + idx;
+	    else return -1;
+	}
+    }
+
+    // Returns the number of keys of `subtree' less than `key', also counting those
+    // equivalent to it if `inclusive' is true.
+    private int rankBelow(Object subtree, Object key, boolean inclusive) {
+	int base = 0;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    int comp_res = compare(key, node.key);
+	    if (comp_res < 0) subtree = node.left;
+	    else if (comp_res == 0)
+		return base + treeSize(node.left) + (inclusive ? keySize(node.key) : 0);
+	    else {
+		base += treeSize(node.left) + keySize(node.key);
+		subtree = node.right;
+	    }
+	}
+	if (subtree == null) return base;
+	else {
+	    // Found or not, the index is the number of keys below `key'.
+	    int bin_srch_res = binarySearch((Object[])subtree, key);
+	    int idx = bin_srch_res >> BIN_SEARCH_INDEX_SHIFT;
+	    if (inclusive && (bin_srch_res & BIN_SEARCH_FOUND_MASK) == BIN_SEARCH_FOUND)
+		++idx;
+	    return base + idx;
+	}
+    }
+
+    private RangeView<Key, Val> rangeView(Object lo, boolean lo_incl,
+					  Object hi, boolean hi_incl) {
+	int from = lo == NEGATIVE_INFINITY ? 0 : rankBelow(tree, lo, !lo_incl);
+	int to = hi == POSITIVE_INFINITY ? size() : rankBelow(tree, hi, hi_incl);
+	return new RangeView<Key, Val>(this, from, Math.max(from, to));
+    }
+
+    // Returns a new tree of the pairs of `subtree' whose ranks are at least `lo' and
+    // less than `hi'.  This may split an `EquivalentMap'.
+    private Object rankSplit(Object subtree, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if (lo == 0 && hi == treeSize(subtree)) return subtree;
+	else if (!(subtree instanceof Node)) return subseq2((Object[])subtree, lo, hi);
+	else {
+	    Node node = (Node)subtree;
+	    Object key = node.key, value = node.value;
+	    int left_size = treeSize(node.left);
+	    int key_size = keySize(key);
+	    int right_base = left_size + key_size;
+	    Object new_left = rankSplit(node.left, Math.min(lo, left_size),
+					Math.min(hi, left_size));
+	    Object new_right = rankSplit(node.right, Math.max(lo - right_base, 0),
+					 Math.max(hi - right_base, 0));
+	    int key_lo = Math.max(lo - left_size, 0);
+	    int key_hi = Math.min(hi - left_size, key_size);
+	    if (key_lo >= key_hi) return join(new_left, new_right);
+	    else if (key_lo > 0 || key_hi < key_size) {
+		ArrayList<Entry> al = ((EquivalentMap)key).contents;
+		if (key_hi - key_lo == 1) {
+		    Entry ent = al.get(key_lo);
+		    key = ent.key;
+		    value = ent.value;
+		} else key = new EquivalentMap(new ArrayList<Entry>(al.subList(key_lo, key_hi)));
+	    }
+	    return concat(key, value, new_left, new_right);
+	}
+    }
+
+    private Object withEquiv(Object subtree, Object key) {
+	Entry ent = findEquiv(tree, key);
+	if (ent == null) return subtree;
+	else return with(subtree, ent.key, ent.value);
+    }
+
     // Returns NO_ELEMENT if there is no entry for the key.
     private Object get(Object subtree, Object key) {
 	if (subtree == null) return NO_ELEMENT;
@@ -1000,16 +2080,24 @@ public class FTreeMap<Key, Val>
 				    valCombiner, lo, key1);
 	    Object new_right = union(trim(node1.right, key1, hi), trim(subtree2, key1, hi),
 				     valCombiner, key1, hi);
-	    Entry entry2 = findEquiv(subtree2, key1);
-	    if (entry2 == null) return concat(key1, node1.value, new_left, new_right);
+	    return unionNode(node1, findEquiv(subtree2, key1), valCombiner,
+			     new_left, new_right);
+	}
+    }
+
+    // The last step of `union' when `subtree1' is a node: combines its pair with the
+    // matching `entry2' (if any) from the other tree, and the recursive results.
+    private Object unionNode(Node node1, Entry entry2, BinaryOp valCombiner,
+			     Object new_left, Object new_right) {
+	Object key1 = node1.key;
+	if (entry2 == null) return concat(key1, node1.value, new_left, new_right);
+	else {
+	    Object e = equivUnion(key1, node1.value, entry2.key, entry2.value, valCombiner);
+	    if (e instanceof EquivalentMap)
+		return concat(e, null, new_left, new_right);
 	    else {
-		Object e = equivUnion(key1, node1.value, entry2.key, entry2.value, valCombiner);
-		if (e instanceof EquivalentMap)
-		    return concat(e, null, new_left, new_right);
-		else {
-		    Entry ent = ((Entry)e);
-		    return concat(ent.key, ent.value, new_left, new_right);
-		}
+		Entry ent = ((Entry)e);
+		return concat(ent.key, ent.value, new_left, new_right);
 	    }
 	}
     }
@@ -1063,17 +2151,25 @@ public class FTreeMap<Key, Val>
 	    Object new_right = restrictedTo(map_node.right,
 					    set.trim(set_subtree, map_key, hi),
 					    set, map_key, hi);
-	    Object set_elt = set.findEquiv(set_subtree, map_key);
-	    if (set_elt == FTreeSet.NO_ELEMENT) return join(new_left, new_right);
+	    return restrictedToNode(map_node, set.findEquiv(set_subtree, map_key),
+				    new_left, new_right);
+	}
+    }
+
+    // The last step of `restrictedTo' when `map_subtree' is a node: keeps whichever of
+    // its pairs are in `set_elt' (which may be `FTreeSet.NO_ELEMENT'), and combines
+    // them with the recursive results.
+    private Object restrictedToNode(Node map_node, Object set_elt,
+				    Object new_left, Object new_right) {
+	if (set_elt == FTreeSet.NO_ELEMENT) return join(new_left, new_right);
+	else {
+	    Object k = equivRestrictedTo(map_node.key, map_node.value, set_elt);
+	    if (k == null) return join(new_left, new_right);
+	    else if (k instanceof EquivalentMap)
+		return concat(k, null, new_left, new_right);
 	    else {
-		Object k = equivRestrictedTo(raw_key, map_node.value, set_elt);
-		if (k == null) return join(new_left, new_right);
-		else if (k instanceof EquivalentMap)
-		    return concat(k, null, new_left, new_right);
-		else {
-		    Entry ent = (Entry)k;
-		    return concat(ent.key, ent.value, new_left, new_right);
-		}
+		Entry ent = (Entry)k;
+		return concat(ent.key, ent.value, new_left, new_right);
 	    }
 	}
     }
@@ -1127,22 +2223,243 @@ public class FTreeMap<Key, Val>
 	    Object new_right = restrictedFrom(map_node.right,
 					      set.trim(set_subtree, map_key, hi),
 					      set, map_key, hi);
-	    Object set_elt = set.findEquiv(set_subtree, map_key);
-	    if (set_elt == FTreeSet.NO_ELEMENT)
-		return concat(raw_key, map_node.value, new_left, new_right);
+	    return restrictedFromNode(map_node, set.findEquiv(set_subtree, map_key),
+				      new_left, new_right);
+	}
+    }
+
+    // The last step of `restrictedFrom' when `map_subtree' is a node: keeps whichever
+    // of its pairs are not in `set_elt' (which may be `FTreeSet.NO_ELEMENT'), and
+    // combines them with the recursive results.
+    private Object restrictedFromNode(Node map_node, Object set_elt,
+				      Object new_left, Object new_right) {
+	if (set_elt == FTreeSet.NO_ELEMENT)
+	    return concat(map_node.key, map_node.value, new_left, new_right);
+	else {
+	    Object k = equivRestrictedFrom(map_node.key, map_node.value, set_elt);
+	    if (k == null) return join(new_left, new_right);
+	    else if (k instanceof EquivalentMap)
+		return concat(k, null, new_left, new_right);
 	    else {
-		Object k = equivRestrictedFrom(raw_key, map_node.value, set_elt);
-		if (k == null) return join(new_left, new_right);
-		else if (k instanceof EquivalentMap)
-		    return concat(k, null, new_left, new_right);
-		else {
-		    Entry ent = (Entry)k;
-		    return concat(ent.key, ent.value, new_left, new_right);
-		}
+		Entry ent = (Entry)k;
+		return concat(ent.key, ent.value, new_left, new_right);
+	    }
+	}
+    }
+
+    /****************/
+    /* Parallel versions of the hedge algorithms.  At each node, these fork the left
+     * subproblem and do the right one in the current thread; since the subtrees are
+     * disjoint and immutable, no synchronization is needed. */
+
+    /* Below this combined size, the parallel operations just call the sequential
+     * ones; forking a task costs more than processing a subtree this small. */
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    private static final int OP_UNION = 0;
+    private static final int OP_RESTRICTED_TO = 1;
+    private static final int OP_RESTRICTED_FROM = 2;
+
+    // For `restricted{To,From}', `subtree2' is a subtree of `set', and `valCombiner'
+    // is unused; for `union', `set' is unused.  Not static, because the operations
+    // need `comp'.
+    private final class ParallelOp extends RecursiveTask<Object> {
+	private static final long serialVersionUID = 1L;
+
+	ParallelOp(int _op, Object _subtree1, Object _subtree2, BinaryOp _valCombiner,
+		   FTreeSet _set, Object _lo, Object _hi) {
+	    op = _op;
+	    subtree1 = _subtree1;
+	    subtree2 = _subtree2;
+	    valCombiner = _valCombiner;
+	    set = _set;
+	    lo = _lo;
+	    hi = _hi;
+	}
+	private final int op;
+	private final Object subtree1, subtree2;
+	private final BinaryOp valCombiner;
+	private final FTreeSet set;
+	private final Object lo, hi;
+	protected Object compute() {
+	    switch (op) {
+	    case OP_UNION: return parallelUnion(subtree1, subtree2, valCombiner, lo, hi);
+	    case OP_RESTRICTED_TO:
+		return parallelRestrictedTo(subtree1, subtree2, set, lo, hi);
+	    default: return parallelRestrictedFrom(subtree1, subtree2, set, lo, hi);
+	    }
+	}
+    }
+
+    private Object parallelUnion(Object subtree1, Object subtree2, BinaryOp valCombiner,
+				 Object lo, Object hi) {
+	if (!(subtree1 instanceof Node) || subtree1 == subtree2 || subtree2 == null ||
+	    treeSize(subtree1) + treeSize(subtree2) < PARALLEL_THRESHOLD)
+	    return union(subtree1, subtree2, valCombiner, lo, hi);
+	else {
+	    // (Unlike the set case, we can't swap the arguments when `subtree1' is a
+	    // leaf, because `valCombiner' needn't be commutative; but then `subtree1'
+	    // is small, and the sequential version is fine.)
+	    Node node1 = (Node)subtree1;
+	    Object key1 = node1.key;
+	    ParallelOp left = new ParallelOp(OP_UNION, trim(node1.left, lo, key1),
+					     trim(subtree2, lo, key1), valCombiner, null,
+					     lo, key1);
+	    left.fork();
+	    Object new_right = parallelUnion(trim(node1.right, key1, hi),
+					     trim(subtree2, key1, hi), valCombiner, key1, hi);
+	    Object new_left = left.join();
+	    return unionNode(node1, findEquiv(subtree2, key1), valCombiner,
+			     new_left, new_right);
+	}
+    }
+
+    private Object parallelRestrictedTo(Object map_subtree, Object set_subtree, FTreeSet set,
+					Object lo, Object hi) {
+	if (!(map_subtree instanceof Node) || set_subtree == null ||
+	    treeSize(map_subtree) + FTreeSet.treeSize(set_subtree) < PARALLEL_THRESHOLD)
+	    return restrictedTo(map_subtree, set_subtree, set, lo, hi);
+	else {
+	    Node map_node = (Node)map_subtree;
+	    Object map_key = map_node.key;
+	    if (map_key instanceof EquivalentMap)
+		map_key = ((Entry)((EquivalentMap)map_key).contents.get(0)).key;
+	    ParallelOp left = new ParallelOp(OP_RESTRICTED_TO, map_node.left,
+					     set.trim(set_subtree, lo, map_key), null, set,
+					     lo, map_key);
+	    left.fork();
+	    Object new_right = parallelRestrictedTo(map_node.right,
+						    set.trim(set_subtree, map_key, hi),
+						    set, map_key, hi);
+	    Object new_left = left.join();
+	    return restrictedToNode(map_node, set.findEquiv(set_subtree, map_key),
+				    new_left, new_right);
+	}
+    }
+
+    private Object parallelRestrictedFrom(Object map_subtree, Object set_subtree,
+					  FTreeSet set, Object lo, Object hi) {
+	if (!(map_subtree instanceof Node) || set_subtree == null ||
+	    treeSize(map_subtree) + FTreeSet.treeSize(set_subtree) < PARALLEL_THRESHOLD)
+	    return restrictedFrom(map_subtree, set_subtree, set, lo, hi);
+	else {
+	    Node map_node = (Node)map_subtree;
+	    Object map_key = map_node.key;
+	    if (map_key instanceof EquivalentMap)
+		map_key = ((Entry)((EquivalentMap)map_key).contents.get(0)).key;
+	    ParallelOp left = new ParallelOp(OP_RESTRICTED_FROM, map_node.left,
+					     set.trim(set_subtree, lo, map_key), null, set,
+					     lo, map_key);
+	    left.fork();
+	    Object new_right = parallelRestrictedFrom(map_node.right,
+						      set.trim(set_subtree, map_key, hi),
+						      set, map_key, hi);
+	    Object new_left = left.join();
+	    return restrictedFromNode(map_node, set.findEquiv(set_subtree, map_key),
+				      new_left, new_right);
+	}
+    }
+
+    // Reports the differences between the pairs of `subtree1' and `subtree2' whose
+    // keys are greater than `lo' and less than `hi'.
+    private void diff(Object subtree1, Object subtree2, MapDiff.Handler handler,
+		      Object lo, Object hi) {
+	// As in `union', a subtree that shows up in both trees is within the bounds in
+	// both; and it has no differences to report.
+	if (subtree1 == subtree2) return;
+	else if (subtree1 == null) diffAll(subtree2, true, handler, lo, hi);
+	else if (subtree2 == null) diffAll(subtree1, false, handler, lo, hi);
+	else if (!(subtree1 instanceof Node)) {
+	    Object[] ary1 = (Object[])subtree1;
+	    if (!(subtree2 instanceof Node))
+		diff2(ary1, (Object[])subtree2, handler, lo, hi);
+	    else {
+		Node node2 = (Node)subtree2;
+		Object key2 = node2.key;
+		diff(trim(subtree1, lo, key2), trim(node2.left, lo, key2), handler, lo, key2);
+		diffEquiv(findEquiv(subtree1, key2), node2, handler);
+		diff(trim(subtree1, key2, hi), trim(node2.right, key2, hi), handler, key2, hi);
+	    }
+	} else {
+	    Node node1 = (Node)subtree1;
+	    Object key1 = node1.key;
+	    diff(trim(node1.left, lo, key1), trim(subtree2, lo, key1), handler, lo, key1);
+	    diffEquiv(node1, findEquiv(subtree2, key1), handler);
+	    diff(trim(node1.right, key1, hi), trim(subtree2, key1, hi), handler, key1, hi);
+	}
+    }
+
+    // Reports each pair of `subtree' whose key is greater than `lo' and less than
+    // `hi' as added (if `added') or removed.
+    private void diffAll(Object subtree, boolean added, MapDiff.Handler handler,
+			 Object lo, Object hi) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int nkeys = ary.length >> 1;
+	    int lo_split = (lo == NEGATIVE_INFINITY ? 0 : binarySearchLo(ary, lo));
+	    int hi_split = (hi == POSITIVE_INFINITY ? nkeys : binarySearchHi(ary, hi));
+	    for (int i = lo_split; i < hi_split; ++i) {
+		if (added) handler.added(ary[i], ary[i + nkeys]);
+		else handler.removed(ary[i], ary[i + nkeys]);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    if (lo != NEGATIVE_INFINITY && compare(node.key, lo) <= 0)
+		diffAll(node.right, added, handler, lo, hi);
+	    else if (hi != POSITIVE_INFINITY && compare(node.key, hi) >= 0)
+		diffAll(node.left, added, handler, lo, hi);
+	    else {
+		diffAll(node.left, added, handler, lo, hi);
+		if (added) diffEquiv(null, node, handler);
+		else diffEquiv(node, null, handler);
+		diffAll(node.right, added, handler, lo, hi);
+	    }
+	}
+    }
+
+    // Reports the differences between `ent1' and `ent2', which are the pairs with
+    // some one equivalence class of keys from the old and new trees respectively.
+    // Either may be null, and either's key may be an `EquivalentMap'.
+    private static void diffEquiv(Entry ent1, Entry ent2, MapDiff.Handler handler) {
+	if (ent1 != null && ent2 != null &&
+	    !(ent1.key instanceof EquivalentMap) && !(ent2.key instanceof EquivalentMap)) {
+	    if (!eql(ent1.key, ent2.key)) {
+		handler.removed(ent1.key, ent1.value);
+		handler.added(ent2.key, ent2.value);
+	    } else if (!eql(ent1.value, ent2.value))
+		handler.changed(ent1.key, ent1.value, ent2.value);
+	} else {
+	    ArrayList<Entry> al1 = equivContents(ent1), al2 = equivContents(ent2);
+	    for (int i1 = 0, siz1 = al1.size(); i1 < siz1; ++i1) {
+		Entry e1 = al1.get(i1);
+		Entry e2 = null;
+		for (int i2 = 0, siz2 = al2.size(); i2 < siz2 && e2 == null; ++i2)
+		    if (eql(e1.key, al2.get(i2).key)) e2 = al2.get(i2);
+		if (e2 == null) handler.removed(e1.key, e1.value);
+		else if (!eql(e1.value, e2.value)) handler.changed(e1.key, e1.value, e2.value);
+	    }
+	    for (int i2 = 0, siz2 = al2.size(); i2 < siz2; ++i2) {
+		Entry e2 = al2.get(i2);
+		boolean found = false;
+		for (int i1 = 0, siz1 = al1.size(); i1 < siz1 && !found; ++i1)
+		    if (eql(e2.key, al1.get(i1).key)) found = true;
+		if (!found) handler.added(e2.key, e2.value);
 	    }
 	}
     }
 
+    // Returns the pairs of `ent' (which may be null) as a list.
+    private static ArrayList<Entry> equivContents(Entry ent) {
+	if (ent == null) return new ArrayList<Entry>(0);
+	else if (ent.key instanceof EquivalentMap) return ((EquivalentMap)ent.key).contents;
+	else {
+	    ArrayList<Entry> al = new ArrayList<Entry>(1);
+	    al.add(ent);
+	    return al;
+	}
+    }
+
     private int compareTo(Object tree1, Object tree2) {
 	if (tree1 == tree2) return 0;
 	int size1 = treeSize(tree1), size2 = treeSize(tree2);
@@ -1519,7 +2836,11 @@ public class FTreeMap<Key, Val>
 	    }
 	    return hash;
 	} else {
+	    // Each node caches the hash code of its subtree, so if this map was made from
+	    // one whose hash code has already been computed, this takes only O(log n)
+	    // time: just the nodes on the modified paths are new.
 	    Node node = (Node)subtree;
+	    if (node.hash_code != Integer.MIN_VALUE) return node.hash_code;
 	    int hash = hashCode(node.left) + hashCode(node.right);
 	    Object key = node.key;
 	    if (key instanceof EquivalentMap) {
@@ -1528,6 +2849,7 @@ public class FTreeMap<Key, Val>
 		    hash += al.get(i).hashCode();
 	    } else hash += (key == null ? 0 : key.hashCode()) ^
 			   (node.value == null ? 0 : node.value.hashCode());
+	    node.hash_code = hash;
 	    return hash;
 	}
     }
@@ -1882,6 +3204,258 @@ public class FTreeMap<Key, Val>
 	}
     }
 
+    private Object fromSortedMap(Map<Key, Val> map) {
+	int n = map.size();
+	Object[] keys = new Object[n], vals = new Object[n];
+	int i = 0;
+	for (Map.Entry<Key, Val> ent : map.entrySet()) {
+	    keys[i] = ent.getKey();
+	    vals[i++] = ent.getValue();
+	}
+	return fromSorted(keys, vals, n);
+    }
+
+    // Builds a tree from the pairs in `keys[0..n)' and `vals[0..n)', whose keys must
+    // be in nondecreasing order.  For equal keys, the last value wins; distinct
+    // equivalent keys are collected into `EquivalentMap's.  Takes linear time.
+    // Clobbers the arrays.
+    private Object fromSorted(Object[] keys, Object[] vals, int n) {
+	int nres = 0;
+	boolean any_equiv = false;
+	for (int i = 0; i < n; ++i) {
+	    Object key = keys[i], val = vals[i];
+	    if (nres > 0) {
+		int comp_res = compare(keys[nres - 1], key);
+		if (comp_res > 0)
+		    throw new IllegalArgumentException("Keys are not in sorted order");
+		else if (comp_res == 0) {
+		    Object k = equivUnion(keys[nres - 1], vals[nres - 1], key, val, second);
+		    if (k instanceof Entry) {
+			keys[nres - 1] = ((Entry)k).key;
+			vals[nres - 1] = ((Entry)k).value;
+		    } else {
+			keys[nres - 1] = k;
+			vals[nres - 1] = null;
+			any_equiv = true;
+		    }
+		    continue;
+		}
+	    }
+	    keys[nres] = key;
+	    vals[nres++] = val;
+	}
+	int[] cum = null;
+	if (any_equiv) {
+	    cum = new int[nres + 1];
+	    for (int i = 0; i < nres; ++i)
+		cum[i + 1] = cum[i] + keySize(keys[i]);
+	}
+	return buildTree(keys, vals, cum, 0, nres);
+    }
+
+    // Builds a balanced tree, bottom-up, from the pairs `keys[lo..hi)' and
+    // `vals[lo..hi)', whose keys must be in strictly increasing order.  Any
+    // `EquivalentMap's among the keys are placed in nodes.  `cum' is null if there
+    // are none; otherwise `cum[i]' is the number of pairs in `keys[0..i)', counting
+    // an `EquivalentMap' as its size.
+    private static Object buildTree(Object[] keys, Object[] vals, int[] cum, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if ((hi - lo) << 1 <= MAX_LEAF_ARRAY_LENGTH &&
+		 (cum == null || cum[hi] - cum[lo] == hi - lo)) {
+	    int nkeys = hi - lo;
+	    Object[] a = new Object[nkeys << 1];
+	    for (int i = 0; i < nkeys; ++i) {
+		a[i] = keys[i + lo];
+		a[i + nkeys] = vals[i + lo];
+	    }
+	    return a;
+	} else {
+	    int mid;
+	    if (cum == null) mid = (lo + hi) >>> 1;
+	    else {
+		// Split by pair count rather than by position, so a large
+		// `EquivalentMap' can't unbalance the tree.
+		int target = cum[lo] + ((cum[hi] - cum[lo]) >> 1);
+		int l = lo, h = hi - 1;
+		while (l < h) {
+		    int m = (l + h + 1) >>> 1;
+		    if (cum[m] <= target) l = m;
+		    else h = m - 1;
+		}
+		mid = l;
+	    }
+	    return makeNode(keys[mid], vals[mid], buildTree(keys, vals, cum, lo, mid),
+			    buildTree(keys, vals, cum, mid + 1, hi));
+	}
+    }
+
+    // Writes the pairs of `subtree' in order for `Snapshot.write', each one, or each
+    // `EquivalentMap', in the form `writeGroup' uses.
+    /*pkg*/ static void writeSnapshot(Object subtree, Snapshot.Encoder<Object> kenc,
+				      Snapshot.Encoder<Object> venc, Snapshot.Output out)
+	    throws IOException {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int nkeys = ary.length >> 1;
+	    for (int i = 0; i < nkeys; ++i) {
+		out.writeVarInt(1);
+		kenc.encode(ary[i], out);
+		venc.encode(ary[i + nkeys], out);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    writeSnapshot(node.left, kenc, venc, out);
+	    writeGroup(node, kenc, venc, out);
+	    writeSnapshot(node.right, kenc, venc, out);
+	}
+    }
+
+    // Reads the `size' pairs written by `writeSnapshot' and builds the tree.  The
+    // order isn't checked, since that would mean calling the comparator.
+    /*pkg*/ static Object readSnapshot(int size, Snapshot.Encoder<Object> kenc,
+				       Snapshot.Encoder<Object> venc, Snapshot.Input in)
+	    throws IOException {
+	Object[] keys = new Object[size], vals = new Object[size];
+	int[] cum = null;
+	int n = 0;
+	for (int npairs = 0; npairs < size; ) {
+	    int count = Snapshot.readCount(size - npairs, in);
+	    if (count == 1) {
+		keys[n] = kenc.decode(in);
+		vals[n] = venc.decode(in);
+	    } else {
+		keys[n] = readEquivalent(count, kenc, venc, in);
+		if (cum == null) {
+		    cum = new int[size + 1];
+		    for (int i = 0; i <= n; ++i) cum[i] = i;
+		}
+	    }
+	    ++n;
+	    npairs += count;
+	    if (cum != null) cum[n] = npairs;
+	}
+	return buildTree(keys, vals, cum, 0, n);
+    }
+
+    // Writes `subtree' for `Snapshot.SharedWriter', keeping the shape of the tree.
+    // A subtree is written as a tag [`Output.writeVarInt']: 0 for null; 1 for a new
+    // leaf, followed by its number of pairs [`Output.writeVarInt'] and the pairs; 2
+    // for a new node, followed by its pair as written by `writeGroup' and its left
+    // and right subtrees; or, for a subtree already in `ids', 3 plus its id.  Each new
+    // subtree is given the next id once it has been written.
+    /*pkg*/ static void writeShared(Object subtree, Snapshot.Encoder<Object> kenc,
+				    Snapshot.Encoder<Object> venc, Snapshot.Output out,
+				    IdentityHashMap<Object, Integer> ids)
+	    throws IOException {
+	if (subtree == null) {
+	    out.writeVarInt(0);
+	    return;
+	}
+	Integer id = ids.get(subtree);
+	if (id != null) out.writeVarInt(id + 3);
+	else {
+	    if (!(subtree instanceof Node)) {
+		Object[] ary = (Object[])subtree;
+		int nkeys = ary.length >> 1;
+		out.writeVarInt(1);
+		out.writeVarInt(nkeys);
+		for (int i = 0; i < nkeys; ++i) {
+		    kenc.encode(ary[i], out);
+		    venc.encode(ary[i + nkeys], out);
+		}
+	    } else {
+		Node node = (Node)subtree;
+		out.writeVarInt(2);
+		writeGroup(node, kenc, venc, out);
+		writeShared(node.left, kenc, venc, out, ids);
+		writeShared(node.right, kenc, venc, out, ids);
+	    }
+	    ids.put(subtree, ids.size());
+	}
+    }
+
+    // Reads a subtree written by `writeShared'.  `subtrees' holds the ones already
+    // read, by id.
+    /*pkg*/ static Object readShared(Snapshot.Encoder<Object> kenc,
+				     Snapshot.Encoder<Object> venc, Snapshot.Input in,
+				     ArrayList<Object> subtrees)
+	    throws IOException {
+	int tag = in.readVarInt();
+	Object res;
+	if (tag == 0) return null;
+	else if (tag == 1) {
+	    int nkeys = Snapshot.readCount(MAX_LEAF_ARRAY_LENGTH >> 1, in);
+	    Object[] ary = new Object[nkeys << 1];
+	    for (int i = 0; i < nkeys; ++i) {
+		ary[i] = kenc.decode(in);
+		ary[i + nkeys] = venc.decode(in);
+	    }
+	    res = ary;
+	} else if (tag == 2) {
+	    int count = Snapshot.readCount(Integer.MAX_VALUE, in);
+	    Object key, val = null;
+	    if (count == 1) {
+		key = kenc.decode(in);
+		val = venc.decode(in);
+	    } else key = readEquivalent(count, kenc, venc, in);
+	    Object left = readShared(kenc, venc, in, subtrees);
+	    res = makeNode(key, val, left, readShared(kenc, venc, in, subtrees));
+	} else return Snapshot.sharedSubtree(tag - 3, subtrees);
+	subtrees.add(res);
+	return res;
+    }
+
+    // Writes a node's pair as the number of pairs it holds [`Output.writeVarInt'],
+    // which is more than one for an `EquivalentMap', followed by the pairs.
+    private static void writeGroup(Node node, Snapshot.Encoder<Object> kenc,
+				   Snapshot.Encoder<Object> venc, Snapshot.Output out)
+	    throws IOException {
+	if (node.key instanceof EquivalentMap) {
+	    ArrayList<Entry> al = ((EquivalentMap)node.key).contents;
+	    int siz = al.size();
+	    out.writeVarInt(siz);
+	    for (int i = 0; i < siz; ++i) {
+		Entry ent = al.get(i);
+		kenc.encode(ent.key, out);
+		venc.encode(ent.value, out);
+	    }
+	} else {
+	    out.writeVarInt(1);
+	    kenc.encode(node.key, out);
+	    venc.encode(node.value, out);
+	}
+    }
+
+    // Reads the `count' pairs, more than one, of a group written by `writeGroup'.
+    private static EquivalentMap readEquivalent(int count, Snapshot.Encoder<Object> kenc,
+						Snapshot.Encoder<Object> venc,
+						Snapshot.Input in)
+	    throws IOException {
+	ArrayList<Entry> al = new ArrayList<Entry>(count);
+	for (int i = 0; i < count; ++i) {
+	    Object key = kenc.decode(in);
+	    al.add(new Entry(key, venc.decode(in)));
+	}
+	return new EquivalentMap(al);
+    }
+
+    // Returns the approximate size in bytes of the nodes and leaves of `subtree' that
+    // aren't in `seen', and adds them to it; for `FVersionedMap.historyBytes'.  The
+    // keys and values themselves aren't counted.
+    /*pkg*/ static long footprint(Object subtree, IdentityHashMap<Object, Object> seen) {
+	if (subtree == null || seen.put(subtree, subtree) != null) return 0;
+	else if (!(subtree instanceof Node)) return FVersionedMap.arrayBytes(((Object[])subtree).length);
+	else {
+	    Node node = (Node)subtree;
+	    // `key', `value', `left', `right'; `size', `hash_code'
+	    long bytes = FVersionedMap.objectBytes(4, 2);
+	    if (node.key instanceof EquivalentMap)
+		bytes += FVersionedMap.equivalentBytes(((EquivalentMap)node.key).contents.size());
+	    return bytes + footprint(node.left, seen) + footprint(node.right, seen);
+	}
+    }
+
     private static Object[] subseq2(Object[] ary, int lo, int hi) {
 	if (lo >= hi) return null;
 	else {
@@ -1987,6 +3561,44 @@ public class FTreeMap<Key, Val>
 	}
     }
 
+    // Reports the differences between the pairs of `ary1' and `ary2' whose keys are
+    // greater than `lo' and less than `hi'.
+    private void diff2(Object[] ary1, Object[] ary2, MapDiff.Handler handler,
+		       Object lo, Object hi) {
+	int i1 = 0, i2 = 0;
+	int nkeys1 = ary1.length >> 1, nkeys2 = ary2.length >> 1;
+	int len1 = nkeys1, len2 = nkeys2;
+	if (lo != NEGATIVE_INFINITY) {
+	    while (i1 < len1 && compare(lo, ary1[i1]) >= 0) ++i1;
+	    while (i2 < len2 && compare(lo, ary2[i2]) >= 0) ++i2;
+	}
+	if (hi != POSITIVE_INFINITY) {
+	    while (i1 < len1 && compare(hi, ary1[len1 - 1]) <= 0) --len1;
+	    while (i2 < len2 && compare(hi, ary2[len2 - 1]) <= 0) --len2;
+	}
+	while (i1 < len1 && i2 < len2) {
+	    Object k1 = ary1[i1], k2 = ary2[i2];
+	    int comp_res = compare(k1, k2);
+	    if (comp_res < 0) {
+		handler.removed(k1, ary1[i1 + nkeys1]);
+		++i1;
+	    } else if (comp_res > 0) {
+		handler.added(k2, ary2[i2 + nkeys2]);
+		++i2;
+	    } else {
+		Object v1 = ary1[i1 + nkeys1], v2 = ary2[i2 + nkeys2];
+		if (!eql(k1, k2)) {
+		    handler.removed(k1, v1);
+		    handler.added(k2, v2);
+		} else if (!eql(v1, v2)) handler.changed(k1, v1, v2);
+		++i1;
+		++i2;
+	    }
+	}
+	for (; i1 < len1; ++i1) handler.removed(ary1[i1], ary1[i1 + nkeys1]);
+	for (; i2 < len2; ++i2) handler.added(ary2[i2], ary2[i2 + nkeys2]);
+    }
+
     private Object[] restrictedTo2(Object[] map_ary, Object[] set_ary, Object lo, Object hi) {
 	int i1 = 0, i2 = 0;
 	int nkeys = map_ary.length >> 1, nelts = set_ary.length;
@@ -2130,12 +3742,38 @@ public class FTreeMap<Key, Val>
 	}
 
 	private IteratorNode inode;
+	private int remaining;		// the number of pairs left to return
 
 	private FTMIterator(Object subtree) {
+	    remaining = treeSize(subtree);
 	    inode = new IteratorNode(subtree, 0, null);
 	    canonicalize();
 	}
 
+	// Starts at the pair of rank `rank' and returns `count' pairs.
+	private FTMIterator(Object subtree, int rank, int count) {
+	    remaining = count;
+	    IteratorNode parent = null;
+	    while (subtree instanceof Node) {
+		Node node = (Node)subtree;
+		int left_size = treeSize(node.left);
+		int key_size = keySize(node.key);
+		if (rank < left_size) {
+		    parent = new IteratorNode(node, 0, parent);
+		    subtree = node.left;
+		} else if (rank < left_size + key_size) {
+		    inode = new IteratorNode(node, rank - left_size + 1, parent);
+		    return;
+		} else {
+		    // As in `canonicalize', the right subtree replaces its parent.
+		    rank -= left_size + key_size;
+		    subtree = node.right;
+		}
+	    }
+	    inode = new IteratorNode(subtree, rank, parent);
+	    canonicalize();
+	}
+
 	private void canonicalize() {
 	    while (true) {
 		if (inode == null) break;
@@ -2161,12 +3799,12 @@ public class FTreeMap<Key, Val>
 	}
 
 	public boolean hasNext() {
-	    return inode != null;
+	    return remaining > 0;
 	}
 
 	public Map.Entry<Key, Val> next() {
 	    Object entry;
-	    if (inode == null) throw new NoSuchElementException();
+	    if (remaining <= 0) throw new NoSuchElementException();
 	    else if (!(inode.subtree instanceof Node)) {
 		Object[] ary = (Object[])inode.subtree;
 		entry = new Entry(ary[inode.index],
@@ -2178,6 +3816,7 @@ public class FTreeMap<Key, Val>
 		    entry = al.get(inode.index - 1);
 		} else entry = node;
 	    }
+	    --remaining;
 	    inode.index++;
 	    canonicalize();
 	    return (Map.Entry<Key, Val>)entry;
@@ -2188,6 +3827,65 @@ public class FTreeMap<Key, Val>
 	}
     }
 
+    // Not static, since the comparator needs `compare'.
+    private final class FTMSpliterator extends TreeSpliterator<Map.Entry<Key, Val>> {
+	FTMSpliterator(Object pending, Object subtree) {
+	    super(pending, subtree, IMMUTABLE | DISTINCT | SIZED | SUBSIZED | ORDERED | SORTED);
+	}
+	public Comparator<Map.Entry<Key, Val>> getComparator() {
+	    return new Comparator<Map.Entry<Key, Val>>() {
+		public int compare(Map.Entry<Key, Val> x, Map.Entry<Key, Val> y) {
+		    return FTreeMap.this.compare(x.getKey(), y.getKey());
+		}
+	    };
+	}
+	protected TreeSpliterator<Map.Entry<Key, Val>> make(Object pending, Object subtree) {
+	    return new FTMSpliterator(pending, subtree);
+	}
+	protected boolean isNode(Object subtree) { return subtree instanceof Node; }
+	protected Object left(Object node) { return ((Node)node).left; }
+	protected Object right(Object node) { return ((Node)node).right; }
+	protected int subtreeSize(Object subtree) { return treeSize(subtree); }
+	protected int nodeElementCount(Object node) { return keySize(((Node)node).key); }
+	protected Map.Entry<Key, Val> nodeElement(Object node, int index) {
+	    Node n = (Node)node;
+	    if (n.key instanceof EquivalentMap)
+		return (Map.Entry<Key, Val>)((EquivalentMap)n.key).contents.get(index);
+	    else return (Map.Entry<Key, Val>)n;
+	}
+	protected Iterator<Map.Entry<Key, Val>> iterator(Object subtree) {
+	    return new FTMIterator<Key, Val>(subtree);
+	}
+    }
+
+    private static final class FTMValueSpliterator<Val> extends TreeSpliterator<Val> {
+	FTMValueSpliterator(Object pending, Object subtree, int _characteristics) {
+	    super(pending, subtree, _characteristics);
+	}
+	protected TreeSpliterator<Val> make(Object pending, Object subtree) {
+	    return new FTMValueSpliterator<Val>(pending, subtree, characteristics());
+	}
+	protected boolean isNode(Object subtree) { return subtree instanceof Node; }
+	protected Object left(Object node) { return ((Node)node).left; }
+	protected Object right(Object node) { return ((Node)node).right; }
+	protected int subtreeSize(Object subtree) { return treeSize(subtree); }
+	protected int nodeElementCount(Object node) { return keySize(((Node)node).key); }
+	protected Val nodeElement(Object node, int index) {
+	    Node n = (Node)node;
+	    if (n.key instanceof EquivalentMap)
+		return (Val)((EquivalentMap)n.key).contents.get(index).value;
+	    else return (Val)n.value;
+	}
+	protected Iterator<Val> iterator(Object subtree) {
+	    return new FTMValueIterator<Val>(subtree);
+	}
+	protected void walk(Object subtree, final Consumer<? super Val> action) {
+	    FTreeMap.forEach(subtree, new BiConsumer<Object, Val>() {
+		    public void accept(Object key, Val val) { action.accept(val); }
+		});
+	}
+    }
+
     // Used by 'keySet'.
     private static class FTMKeyIterator<Key> implements Iterator<Key> {
 	private FTMIterator<Key, Object> ftmIter;
@@ -2203,7 +3901,7 @@ public class FTreeMap<Key, Val>
 	// Duplicate code, but saves consing.
 	public Key next() {
 	    Key key;
-	    if (ftmIter.inode == null) throw new NoSuchElementException();
+	    if (ftmIter.remaining <= 0) throw new NoSuchElementException();
 	    else if (!(ftmIter.inode.subtree instanceof Node)) {
 		Object[] ary = (Object[])ftmIter.inode.subtree;
 		key = (Key)ary[ftmIter.inode.index];
@@ -2214,6 +3912,7 @@ public class FTreeMap<Key, Val>
 		    key = (Key)al.get(ftmIter.inode.index - 1).key;
 		} else key = (Key)node.key;
 	    }
+	    --ftmIter.remaining;
 	    ftmIter.inode.index++;
 	    ftmIter.canonicalize();
 	    return key;
@@ -2282,14 +3981,14 @@ public class FTreeMap<Key, Val>
 	hash_code = Integer.MIN_VALUE;
 	strm.defaultReadObject();	// reads `comp' and `dflt'
         int size = strm.readInt();
-	Object t = null;
+	// `writeObject' emits the pairs in order, so we can build the tree bottom-up.
+	Object[] keys = new Object[size], vals = new Object[size];
 	for (int i = 0; i < size; ++i) {
-	    Object key = strm.readObject();
-	    Object val = strm.readObject();
-	    t = with(t, key, val);
+	    keys[i] = strm.readObject();
+	    vals[i] = strm.readObject();
 	}
 	try {
-	    TreeField.set(this, t);
+	    TreeField.set(this, fromSorted(keys, vals, size));
 	} catch (IllegalAccessException ia) {
 	    throw new RuntimeException("FTreeMap deserialization failed", ia);
 	}
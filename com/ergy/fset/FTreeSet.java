@@ -15,6 +15,10 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * A functional set that relies on a comparison method.  It is implemented as a binary
@@ -24,8 +28,15 @@ import java.util.*;
  *
  * <p>Time costs: <code>isEmpty</code>, <code>size</code>, and <code>arb</code> take
  * O(1) (constant) time.  <code>contains</code>, <code>with</code>,
- * <code>less</code>, <code>first</code>, <code>last</code>, <code>subSet</code>,
- * <code>headSet</code>, and <code>tailSet</code> take O(log <i>n</i>) time.
+ * <code>less</code>, <code>first</code>, <code>last</code>, <code>floor</code>,
+ * <code>ceiling</code>, <code>lower</code>, <code>higher</code>,
+ * <code>subSet</code>, <code>headSet</code>, <code>tailSet</code>, and the order
+ * statistic methods <code>get</code>, <code>rankOf</code>,
+ * <code>subSetByRank</code>, and <code>countInRange</code> take O(log <i>n</i>)
+ * time, as do <code>subSetView</code>, <code>headSetView</code>, and
+ * <code>tailSetView</code>, which return views of a range without building a
+ * tree.  <code>descendingSet</code> takes O(n) (linear) time, as it
+ * builds a new set with the reversed ordering rather than a view of this one.
  * <code>union</code>, <code>intersection</code>, <code>difference</code>,
  * <code>isSubset</code>, <code>isSuperset</code>, and <code>equals</code> take O(n)
  * (linear) time if the other set involved is also a <code>FTreeSet</code> and
@@ -38,10 +49,10 @@ import java.util.*;
  * traditional homogeneous binary trees; typical space consumption is roughly twice
  * that of a plain array, or even less.
  *
- * <p><code>FTreeSet</code> is declared as implementing <code>SortedSet</code>.
- * However, there are some subtle semantic differences which the user should be
- * aware of; <code>FTreeSet</code> does not perfectly fulfill the contract of
- * <code>SortedSet</code>.
+ * <p><code>FTreeSet</code> is declared as implementing <code>NavigableSet</code>
+ * (and therefore <code>SortedSet</code>).  However, there are some subtle semantic
+ * differences which the user should be aware of; <code>FTreeSet</code> does not
+ * perfectly fulfill the contract of <code>SortedSet</code>.
  *
  * <p>First, unlike <code>SortedSet</code>, <code>FTreeSet</code> does not
  * require the comparison to be consistent with <code>equals</code> in order for it
@@ -70,6 +81,11 @@ import java.util.*;
  * <code>headSet</code> and <code>tailSet</code> do not throw
  * <code>IllegalArgumentException</code>.
  *
+ * <p>Third, as the set can't be modified, the <code>NavigableSet</code> methods
+ * <code>pollFirst</code> and <code>pollLast</code> are unsupported;
+ * <code>lessFirst</code> and <code>lessLast</code> are their functional
+ * counterparts.
+ *
  * <p><code>FTreeSet</code> accepts the null element; for ordering purposes,
  * it precedes all other elements.
  *
@@ -90,7 +106,7 @@ import java.util.*;
 
 public final class FTreeSet<Elt>
     extends AbstractFSet<Elt>
-    implements SortedSet<Elt>, Comparable<FTreeSet<Elt>>, Serializable
+    implements NavigableSet<Elt>, Comparable<FTreeSet<Elt>>, Serializable
 {
 
     /**
@@ -187,6 +203,8 @@ public final class FTreeSet<Elt>
     private Object fromCollection(Collection<? extends Elt> coll) {
 	if (coll instanceof FTreeSet && eql(comp, ((FTreeSet)coll).comp))
 	    return ((FTreeSet)coll).tree;
+	else if (coll instanceof SortedSet && eql(comp, ((SortedSet)coll).comparator()))
+	    return fromSorted(coll.iterator(), coll.size());
 	else {
 	    Object t = null;
 	    for (Elt e : coll) t = with(t, e);
@@ -194,6 +212,40 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    /**
+     * Returns a <code>FTreeSet</code> containing the elements of <code>coll</code>,
+     * and which uses the natural ordering of the elements.  The elements must be
+     * supplied in nondecreasing order; this allows the set to be built bottom-up
+     * in linear time, rather than by inserting them one at a time.  (You don't
+     * need this for a <code>SortedSet</code> with natural ordering; the
+     * constructors recognize those automatically.)
+     *
+     * @param coll the collection to use the elements of
+     * @return the new set
+     * @throws IllegalArgumentException if the elements are out of order
+     */
+    public static <Elt> FTreeSet<Elt> fromSorted(Collection<? extends Elt> coll) {
+	return fromSorted(coll, null);
+    }
+
+    /**
+     * Returns a <code>FTreeSet</code> containing the elements of <code>coll</code>,
+     * and which uses the supplied <code>Comparator</code> to compare elements.  The
+     * elements must be supplied in nondecreasing order according to
+     * <code>c</code>; this allows the set to be built bottom-up in linear time,
+     * rather than by inserting them one at a time.
+     *
+     * @param coll the collection to use the elements of
+     * @param c the comparator
+     * @return the new set
+     * @throws IllegalArgumentException if the elements are out of order
+     */
+    public static <Elt> FTreeSet<Elt> fromSorted(Collection<? extends Elt> coll,
+						 Comparator<? super Elt> c) {
+	FTreeSet<Elt> empty = emptySet(c);
+	return make(empty.fromSorted(coll.iterator(), coll.size()), c);
+    }
+
     /**
      * Constructs a <code>FTreeSet</code> whose elements are the components of
      * <code>ary</code>, and which uses natural ordering to compare elements.  That
@@ -264,6 +316,37 @@ public final class FTreeSet<Elt>
 	return new FTSIterator<Elt>(tree);
     }
 
+    /**
+     * Returns a <code>Spliterator</code> over the set.  It splits exactly along the
+     * tree structure, and reports <code>IMMUTABLE</code>, <code>DISTINCT</code>,
+     * <code>SIZED</code>, <code>SUBSIZED</code>, <code>ORDERED</code>, and
+     * <code>SORTED</code>; its comparator is that of the set.
+     */
+    public Spliterator<Elt> spliterator() {
+	return new FTSSpliterator<Elt>(null, tree, comp);
+    }
+
+    /**
+     * Calls <code>action</code> on each element of the set, in order.  Unlike
+     * iterating, this walks the tree recursively, and so allocates nothing.
+     */
+    public void forEach(Consumer<? super Elt> action) {
+	if (action == null) throw new NullPointerException();
+	forEach(tree, action);
+    }
+
+    /**
+     * Calls <code>pred</code> on each element of the set, in order, until it returns
+     * false.  Like <code>forEach</code>, allocates nothing.
+     *
+     * @param pred the predicate to call
+     * @return true if <code>pred</code> returned true for every element
+     */
+    public boolean forEachWhile(Predicate<? super Elt> pred) {
+	if (pred == null) throw new NullPointerException();
+	return forEachWhile(tree, pred);
+    }
+
     public FTreeSet<Elt> with(Elt elt) {
 	Object t = with(tree, elt);
 	if (t == tree) return this;
@@ -365,6 +448,26 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    /**
+     * Compares this set with <code>other</code>, as described in {@link
+     * FSet#diff(FSet, SetDiff.Handler)}.  If <code>other</code> is also a
+     * <code>FTreeSet</code> using the same ordering, this walks the two trees
+     * together, skipping any subtree they share, and reports the differences in
+     * order; otherwise it looks up each element of each set in the other.
+     *
+     * @param other the new version of the set
+     * @param handler receives the differences
+     */
+    public void diff(FSet<? extends Elt> other, SetDiff.Handler<? super Elt> handler) {
+	if (other instanceof FTreeSet && eql(comp, ((FTreeSet)other).comp))
+	    diff(tree, ((FTreeSet)other).tree, handler, NEGATIVE_INFINITY, POSITIVE_INFINITY);
+	else super.diff(other, handler);
+    }
+
+    public SetDiff<Elt> diff(FSet<? extends Elt> other) {
+	return SetDiff.collect(this, other, emptySet(comp));
+    }
+
     /**
      * See the documentation for {@link Comparable#compareTo}.
      *
@@ -457,6 +560,140 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    /**
+     * Returns the union of this set with <code>coll</code>, like <code>union</code>,
+     * but processes large subtrees in parallel on the common fork/join pool.  The
+     * result is the same as that of <code>union</code>.  This is worthwhile only
+     * when the sets are large -- tens of thousands of elements or more; smaller
+     * subproblems are done sequentially.  The comparator may be called
+     * concurrently from several threads.
+     *
+     * @param coll the set to take the union with
+     * @return the union of the two sets
+     */
+    public FTreeSet<Elt> parallelUnion(Collection<? extends Elt> coll) {
+	return parallelUnion(coll, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the union of this set with <code>coll</code>, like <code>union</code>,
+     * but processes large subtrees in parallel on <code>pool</code>.
+     *
+     * @param coll the set to take the union with
+     * @param pool the fork/join pool to use
+     * @return the union of the two sets
+     */
+    public FTreeSet<Elt> parallelUnion(Collection<? extends Elt> coll, ForkJoinPool pool) {
+	if (coll == this || coll.isEmpty()) return this;
+	FTreeSet<Elt> fts = sameOrdering(coll);
+	if (isEmpty()) return fts;
+	return make(pool.invoke(new ParallelOp(OP_UNION, tree, fts.tree,
+					       NEGATIVE_INFINITY, POSITIVE_INFINITY)),
+		    comp);
+    }
+
+    /**
+     * Returns the intersection of this set with <code>coll</code>, like
+     * <code>intersection</code>, but processes large subtrees in parallel on the
+     * common fork/join pool.
+     *
+     * @param coll the set to take the intersection with
+     * @return the intersection of the two sets
+     */
+    public FTreeSet<Elt> parallelIntersection(Collection<? extends Elt> coll) {
+	return parallelIntersection(coll, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the intersection of this set with <code>coll</code>, like
+     * <code>intersection</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.
+     *
+     * @param coll the set to take the intersection with
+     * @param pool the fork/join pool to use
+     * @return the intersection of the two sets
+     */
+    public FTreeSet<Elt> parallelIntersection(Collection<? extends Elt> coll,
+					      ForkJoinPool pool) {
+	if (coll == this) return this;
+	else if (isEmpty() || coll.isEmpty()) return emptySet(comp);
+	FTreeSet<Elt> fts = sameOrdering(coll);
+	return make(pool.invoke(new ParallelOp(OP_INTERSECTION, tree, fts.tree,
+					       NEGATIVE_INFINITY, POSITIVE_INFINITY)),
+		    comp);
+    }
+
+    /**
+     * Returns the difference of this set less <code>coll</code>, like
+     * <code>difference</code>, but processes large subtrees in parallel on the
+     * common fork/join pool.
+     *
+     * @param coll the set to take the difference with
+     * @return the difference of the two sets (this set less <code>coll</code>)
+     */
+    public FTreeSet<Elt> parallelDifference(Collection<? extends Elt> coll) {
+	return parallelDifference(coll, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the difference of this set less <code>coll</code>, like
+     * <code>difference</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.
+     *
+     * @param coll the set to take the difference with
+     * @param pool the fork/join pool to use
+     * @return the difference of the two sets (this set less <code>coll</code>)
+     */
+    public FTreeSet<Elt> parallelDifference(Collection<? extends Elt> coll,
+					    ForkJoinPool pool) {
+	if (coll == this) return emptySet(comp);
+	else if (coll.isEmpty()) return this;
+	FTreeSet<Elt> fts = sameOrdering(coll);
+	return make(pool.invoke(new ParallelOp(OP_DIFFERENCE, tree, fts.tree,
+					       NEGATIVE_INFINITY, POSITIVE_INFINITY)),
+		    comp);
+    }
+
+    /**
+     * Returns true if this set is a subset of <code>coll</code>, like
+     * <code>isSubset</code>, but processes large subtrees in parallel on the common
+     * fork/join pool.  (If <code>coll</code> is not a <code>FTreeSet</code> with
+     * the same ordering, this just calls <code>isSubset</code>.)
+     *
+     * @param coll the collection to compare against
+     * @return whether this set is a subset of <code>coll</code>
+     */
+    public boolean parallelIsSubset(Collection<?> coll) {
+	return parallelIsSubset(coll, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns true if this set is a subset of <code>coll</code>, like
+     * <code>isSubset</code>, but processes large subtrees in parallel on
+     * <code>pool</code>.  (If <code>coll</code> is not a <code>FTreeSet</code> with
+     * the same ordering, this just calls <code>isSubset</code>.)
+     *
+     * @param coll the collection to compare against
+     * @param pool the fork/join pool to use
+     * @return whether this set is a subset of <code>coll</code>
+     */
+    public boolean parallelIsSubset(Collection<?> coll, ForkJoinPool pool) {
+	if (coll == this) return true;
+	else if (size() > coll.size()) return false;
+	else if (coll instanceof FTreeSet && eql(comp, ((FTreeSet)coll).comp)) {
+	    FTreeSet<Object> fts = (FTreeSet)coll;
+	    return (Boolean)pool.invoke(new ParallelOp(OP_IS_SUBSET, tree, fts.tree,
+						       NEGATIVE_INFINITY, POSITIVE_INFINITY));
+	} else return isSubset(coll);
+    }
+
+    // Returns `coll' as a `FTreeSet' with the same ordering as this one.
+    private FTreeSet<Elt> sameOrdering(Collection<? extends Elt> coll) {
+	if (coll instanceof FTreeSet && eql(comp, ((FTreeSet)coll).comp))
+	    return (FTreeSet<Elt>)coll;
+	else return new FTreeSet<Elt>(coll, comp);
+    }
+
     // Overriding this just to provide a slightly more efficient implementation.
     // The default one (in `AbstractSet') uses the iterator.  But we have to compute
     // the same value here, viz., the sum of the hash codes of the elements.
@@ -562,6 +799,411 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    /****************/
+    /* Operations of `NavigableSet' */
+
+    /**
+     * Returns the greatest element of this set that is less than <code>elt</code>,
+     * or <code>null</code> if there is none.  If there are several such elements
+     * that are equivalent to one another, returns the last of them in iteration
+     * order.  This does no allocation.
+     *
+     * @throws ClassCastException if <code>elt</code> cannot be compared to the
+     *     elements in the set
+     */
+    public Elt lower(Elt elt) {
+	return nearestOrNull(nearest(tree, elt, false, false));
+    }
+
+    /**
+     * Returns the greatest element of this set that is less than or equivalent to
+     * <code>elt</code>, or <code>null</code> if there is none.  If the set contains
+     * elements equivalent to <code>elt</code>, returns the one equal to it if there
+     * is one, else the last of them in iteration order.  This does no allocation.
+     *
+     * @throws ClassCastException if <code>elt</code> cannot be compared to the
+     *     elements in the set
+     */
+    public Elt floor(Elt elt) {
+	return nearestOrNull(nearest(tree, elt, false, true));
+    }
+
+    /**
+     * Returns the least element of this set that is greater than or equivalent to
+     * <code>elt</code>, or <code>null</code> if there is none.  If the set contains
+     * elements equivalent to <code>elt</code>, returns the one equal to it if there
+     * is one, else the first of them in iteration order.  This does no allocation.
+     *
+     * @throws ClassCastException if <code>elt</code> cannot be compared to the
+     *     elements in the set
+     */
+    public Elt ceiling(Elt elt) {
+	return nearestOrNull(nearest(tree, elt, true, true));
+    }
+
+    /**
+     * Returns the least element of this set that is greater than <code>elt</code>,
+     * or <code>null</code> if there is none.  If there are several such elements
+     * that are equivalent to one another, returns the first of them in iteration
+     * order.  This does no allocation.
+     *
+     * @throws ClassCastException if <code>elt</code> cannot be compared to the
+     *     elements in the set
+     */
+    public Elt higher(Elt elt) {
+	return nearestOrNull(nearest(tree, elt, true, false));
+    }
+
+    /**
+     * Unsupported; see {@link #lessFirst}.
+     */
+    public Elt pollFirst() {
+	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Unsupported; see {@link #lessLast}.
+     */
+    public Elt pollLast() {
+	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns this set less the element <code>first</code> would return, or this
+     * set itself if it is empty.  This is the functional counterpart of
+     * {@link #pollFirst}.
+     */
+    public FTreeSet<Elt> lessFirst() {
+	if (tree == null) return this;
+	else return less(first());
+    }
+
+    /**
+     * Returns this set less the element <code>last</code> would return, or this
+     * set itself if it is empty.  This is the functional counterpart of
+     * {@link #pollLast}.
+     */
+    public FTreeSet<Elt> lessLast() {
+	if (tree == null) return this;
+	else return less(last());
+    }
+
+    /**
+     * Returns an iterator over the elements of this set in reverse order.
+     */
+    public Iterator<Elt> descendingIterator() {
+	return new FTSIterator<Elt>(tree, true);
+    }
+
+    /**
+     * Returns a set containing the elements of this set, ordered by the reverse
+     * of its ordering.  Unlike the corresponding method of <code>TreeSet</code>,
+     * this does not return a view, but builds a new set, in O(n) (linear) time.
+     * The null element, if present, still precedes all others.
+     */
+    public FTreeSet<Elt> descendingSet() {
+	Object[] elts = new Object[size()];
+	int i = elts.length;
+	for (Elt e : this) elts[--i] = e;
+	if (i < elts.length && elts[elts.length - 1] == null) {
+	    System.arraycopy(elts, 0, elts, 1, elts.length - 1);
+	    elts[0] = null;
+	}
+	return fromSorted(Arrays.asList((Elt[])elts), reverseComparator(comp));
+    }
+
+    /**
+     * Returns a set containing the elements of this set between
+     * <code>fromElement</code> and <code>toElement</code>; each bound, if
+     * inclusive, admits the elements equivalent to it.  Like {@link
+     * #subSet(Object, Object)}, this never throws
+     * <code>IllegalArgumentException</code>.
+     *
+     * @param fromElement lower bound
+     * @param fromInclusive whether the lower bound is inclusive
+     * @param toElement upper bound
+     * @param toInclusive whether the upper bound is inclusive
+     * @return the new set
+     * @throws ClassCastException if <code>fromElement</code> or
+     *     <code>toElement</code> cannot be compared to each other or to the
+     *     elements in the set
+     */
+    public FTreeSet<Elt> subSet(Elt fromElement, boolean fromInclusive,
+				Elt toElement, boolean toInclusive) {
+	return range(fromElement, fromInclusive, toElement, toInclusive);
+    }
+
+    /**
+     * Returns a set containing the elements of this set less than (or, if
+     * <code>inclusive</code> is true, equivalent to) <code>toElement</code>.  Like
+     * {@link #headSet(Object)}, this never throws
+     * <code>IllegalArgumentException</code>.
+     *
+     * @param toElement upper bound
+     * @param inclusive whether the upper bound is inclusive
+     * @return the new set
+     * @throws ClassCastException if <code>toElement</code> cannot be compared to
+     *     the elements in the set
+     */
+    public FTreeSet<Elt> headSet(Elt toElement, boolean inclusive) {
+	return range(NEGATIVE_INFINITY, false, toElement, inclusive);
+    }
+
+    /**
+     * Returns a set containing the elements of this set greater than (or, if
+     * <code>inclusive</code> is true, equivalent to) <code>fromElement</code>.
+     * Like {@link #tailSet(Object)}, this never throws
+     * <code>IllegalArgumentException</code>.
+     *
+     * @param fromElement lower bound
+     * @param inclusive whether the lower bound is inclusive
+     * @return the new set
+     * @throws ClassCastException if <code>fromElement</code> cannot be compared
+     *     to the elements in the set
+     */
+    public FTreeSet<Elt> tailSet(Elt fromElement, boolean inclusive) {
+	return range(fromElement, inclusive, POSITIVE_INFINITY, false);
+    }
+
+    /****************/
+    /* Order statistics */
+
+    /**
+     * Returns the element of this set at index <code>rank</code> in iteration
+     * order, that is, the one preceded by <code>rank</code> other elements.
+     * Equivalent elements are counted separately.  Takes O(log n) time.
+     *
+     * @param rank the index
+     * @return the element
+     * @throws IndexOutOfBoundsException if <code>rank</code> is negative or not
+     *     less than the size of the set
+     */
+    public Elt get(int rank) {
+	if (rank < 0 || rank >= size()) throw new IndexOutOfBoundsException();
+	return (Elt)elementAtRank(tree, rank);
+    }
+
+    /**
+     * Returns the index of <code>elt</code> in iteration order (the inverse of
+     * {@link #get}), or -1 if it is not in the set.  Takes O(log n) time.
+     *
+     * @param elt the element to look for
+     * @return its index, or -1
+     * @throws ClassCastException if <code>elt</code> cannot be compared to the
+     *     elements in the set
+     */
+    public int rankOf(Object elt) {
+	return rankOf(tree, elt);
+    }
+
+    /**
+     * Returns a set containing the elements of this set whose indices in
+     * iteration order are at least <code>fromRank</code> and less than
+     * <code>toRank</code>.  Takes O(log n) time.
+     *
+     * @param fromRank inclusive lower bound
+     * @param toRank exclusive upper bound
+     * @return the new set
+     * @throws IndexOutOfBoundsException if <code>fromRank</code> is negative,
+     *     <code>toRank</code> is greater than the size of the set, or
+     *     <code>fromRank</code> is greater than <code>toRank</code>
+     */
+    public FTreeSet<Elt> subSetByRank(int fromRank, int toRank) {
+	if (fromRank < 0 || toRank > size() || fromRank > toRank)
+	    throw new IndexOutOfBoundsException();
+	Object t = rankSplit(tree, fromRank, toRank);
+	if (t == tree) return this;
+	else return make(t, comp);
+    }
+
+    /**
+     * Returns the number of elements of this set greater than or equivalent to
+     * <code>lo</code> and less than <code>hi</code>; that is, the size of
+     * <code>subSet(lo, hi)</code>, but without constructing it.  Takes O(log
+     * n) time.
+     *
+     * @param lo inclusive lower bound
+     * @param hi exclusive upper bound
+     * @return the number of elements in that range
+     * @throws ClassCastException if <code>lo</code> or <code>hi</code> cannot be
+     *     compared to the elements in the set
+     */
+    public int countInRange(Elt lo, Elt hi) {
+	return Math.max(rankBelow(tree, hi, false) - rankBelow(tree, lo, false), 0);
+    }
+
+    /****************/
+    /* Range views */
+
+    /**
+     * Returns a view of the elements of this set between <code>fromElement</code>
+     * and <code>toElement</code>; each bound, if inclusive, admits the elements
+     * equivalent to it.  This contains the same elements as {@link
+     * #subSet(Object, boolean, Object, boolean)} would return, but takes O(log n)
+     * time without building any tree; see {@link RangeView}.
+     *
+     * @param fromElement lower bound
+     * @param fromInclusive whether the lower bound is inclusive
+     * @param toElement upper bound
+     * @param toInclusive whether the upper bound is inclusive
+     * @return the view
+     * @throws ClassCastException if <code>fromElement</code> or
+     *     <code>toElement</code> cannot be compared to the elements in the set
+     */
+    public RangeView<Elt> subSetView(Elt fromElement, boolean fromInclusive,
+				     Elt toElement, boolean toInclusive) {
+	return rangeView(fromElement, fromInclusive, toElement, toInclusive);
+    }
+
+    /**
+     * Returns a view of the elements of this set less than (or, if
+     * <code>inclusive</code> is true, equivalent to) <code>toElement</code>.  See
+     * {@link #subSetView}.
+     *
+     * @param toElement upper bound
+     * @param inclusive whether the upper bound is inclusive
+     * @return the view
+     * @throws ClassCastException if <code>toElement</code> cannot be compared to
+     *     the elements in the set
+     */
+    public RangeView<Elt> headSetView(Elt toElement, boolean inclusive) {
+	return rangeView(NEGATIVE_INFINITY, false, toElement, inclusive);
+    }
+
+    /**
+     * Returns a view of the elements of this set greater than (or, if
+     * <code>inclusive</code> is true, equivalent to) <code>fromElement</code>.  See
+     * {@link #subSetView}.
+     *
+     * @param fromElement lower bound
+     * @param inclusive whether the lower bound is inclusive
+     * @return the view
+     * @throws ClassCastException if <code>fromElement</code> cannot be compared
+     *     to the elements in the set
+     */
+    public RangeView<Elt> tailSetView(Elt fromElement, boolean inclusive) {
+	return rangeView(fromElement, inclusive, POSITIVE_INFINITY, false);
+    }
+
+    /**
+     * A view of the elements of a <code>FTreeSet</code> that lie within a range, as
+     * returned by {@link FTreeSet#subSetView}, {@link FTreeSet#headSetView}, and
+     * {@link FTreeSet#tailSetView}.  The view records only the ranks of the ends of
+     * the range, so <code>size</code> and <code>isEmpty</code> take O(1) time;
+     * <code>contains</code>, <code>arb</code>, <code>first</code>, and
+     * <code>last</code> take O(log n) time; and the iterator visits just the
+     * elements in range, starting in O(log n) time.  None of these builds any
+     * tree.
+     *
+     * <p>All other operations -- the functional updates <code>with</code>,
+     * <code>less</code>, <code>union</code>, and so on, but also
+     * <code>isSubset</code>, <code>isSuperset</code>, and <code>diff</code> --
+     * first materialize the range as a <code>FTreeSet</code> (as
+     * <code>subSetByRank</code> would, in O(log n) time), which is then cached in
+     * the view.  Their results are ordinary <code>FTreeSet</code>s.
+     *
+     * <p>A view holds on to the whole of the set it was taken from.  It is
+     * serialized as the materialized <code>FTreeSet</code>.
+     */
+    public static final class RangeView<Elt> extends AbstractFSet<Elt> implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	public boolean isEmpty() {
+	    return from == to;
+	}
+
+	public int size() {
+	    return to - from;
+	}
+
+	public Elt arb() {
+	    if (from == to) throw new NoSuchElementException();
+	    else return set.get((from + to) >> 1);
+	}
+
+	public boolean contains(Object elt) {
+	    int rank = set.rankOf(elt);
+	    return rank >= from && rank < to;
+	}
+
+	public Iterator<Elt> iterator() {
+	    return new FTSIterator<Elt>(set.tree, from, to - from);
+	}
+
+	public Comparator<Elt> comparator() {
+	    return set.comp;
+	}
+
+	public Elt first() {
+	    if (from == to) throw new NoSuchElementException();
+	    else return set.get(from);
+	}
+
+	public Elt last() {
+	    if (from == to) throw new NoSuchElementException();
+	    else return set.get(to - 1);
+	}
+
+	/**
+	 * Returns the elements of this view as a <code>FTreeSet</code>.  The set is
+	 * built the first time this is called, and cached.
+	 */
+	public FTreeSet<Elt> materialize() {
+	    if (materialized == null) materialized = set.subSetByRank(from, to);
+	    return materialized;
+	}
+
+	public FTreeSet<Elt> with(Elt elt) {
+	    return materialize().with(elt);
+	}
+
+	public FTreeSet<Elt> less(Elt elt) {
+	    return materialize().less(elt);
+	}
+
+	public FTreeSet<Elt> union(Collection<? extends Elt> coll) {
+	    return materialize().union(coll);
+	}
+
+	public FTreeSet<Elt> intersection(Collection<? extends Elt> coll) {
+	    return materialize().intersection(coll);
+	}
+
+	public FTreeSet<Elt> difference(Collection<? extends Elt> coll) {
+	    return materialize().difference(coll);
+	}
+
+	public boolean isSubset(Collection<?> coll) {
+	    return materialize().isSubset(coll);
+	}
+
+	public boolean isSuperset(Collection<?> coll) {
+	    return materialize().isSuperset(coll);
+	}
+
+	public void diff(FSet<? extends Elt> other, SetDiff.Handler<? super Elt> handler) {
+	    materialize().diff(other, handler);
+	}
+
+	public SetDiff<Elt> diff(FSet<? extends Elt> other) {
+	    return materialize().diff(other);
+	}
+
+	private final FTreeSet<Elt> set;
+	private final int from, to;	// ranks in `set'
+	private transient FTreeSet<Elt> materialized = null;	// cache
+
+	private RangeView(FTreeSet<Elt> _set, int _from, int _to) {
+	    set = _set;
+	    from = _from;
+	    to = _to;
+	}
+
+	private Object writeReplace() {
+	    return materialize();
+	}
+    }
+
     /******************************************************************************/
     /* Internals */
 
@@ -625,6 +1267,7 @@ public final class FTreeSet<Elt>
 	/*pkg*/ final Object element;
 	/*pkg*/ final Object left;	// a subtree
 	/*pkg*/ final Object right;	// a subtree
+	private int hash_code = Integer.MIN_VALUE;	// cache of `hashCode(Object)'
     }
 
     // This has default (package-wide) access so `FTreeMap.domain' can use it.
@@ -633,7 +1276,7 @@ public final class FTreeSet<Elt>
 			elt, left, right);
     }
 
-    private static int treeSize(Object subtree) {
+    /*pkg*/ static int treeSize(Object subtree) {
 	if (subtree == null) return 0;
 	else if (!(subtree instanceof Node)) return ((Object[])subtree).length;
 	else return ((Node)subtree).size;
@@ -645,6 +1288,41 @@ public final class FTreeSet<Elt>
 	else return 1;
     }
 
+    /*pkg*/ static <Elt> void forEach(Object subtree, Consumer<? super Elt> action) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i) action.accept((Elt)ary[i]);
+	} else {
+	    Node node = (Node)subtree;
+	    forEach(node.left, action);
+	    if (node.element instanceof EquivalentSet) {
+		ArrayList<Object> al = ((EquivalentSet)node.element).contents;
+		for (int i = 0, len = al.size(); i < len; ++i) action.accept((Elt)al.get(i));
+	    } else action.accept((Elt)node.element);
+	    forEach(node.right, action);
+	}
+    }
+
+    /*pkg*/ static <Elt> boolean forEachWhile(Object subtree, Predicate<? super Elt> pred) {
+	if (subtree == null) return true;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i)
+		if (!pred.test((Elt)ary[i])) return false;
+	    return true;
+	} else {
+	    Node node = (Node)subtree;
+	    if (!forEachWhile(node.left, pred)) return false;
+	    if (node.element instanceof EquivalentSet) {
+		ArrayList<Object> al = ((EquivalentSet)node.element).contents;
+		for (int i = 0, len = al.size(); i < len; ++i)
+		    if (!pred.test((Elt)al.get(i))) return false;
+	    } else if (!pred.test((Elt)node.element)) return false;
+	    return forEachWhile(node.right, pred);
+	}
+    }
+
     private Object first(Object subtree) {
 	if (!(subtree instanceof Node)) return ((Object[])subtree)[0];
 	else {
@@ -887,6 +1565,78 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    // Reports the differences between the elements of `subtree1' and `subtree2'
+    // that are greater than `lo' and less than `hi'.
+    private void diff(Object subtree1, Object subtree2, SetDiff.Handler handler,
+		      Object lo, Object hi) {
+	// As in `union', a subtree that shows up in both trees is within the bounds in
+	// both; and it has no differences to report.
+	if (subtree1 == subtree2) return;
+	else if (subtree1 == null) diffAll(subtree2, true, handler, lo, hi);
+	else if (subtree2 == null) diffAll(subtree1, false, handler, lo, hi);
+	else if (!(subtree1 instanceof Node)) {
+	    if (!(subtree2 instanceof Node))
+		diff((Object[])subtree1, (Object[])subtree2, handler, lo, hi);
+	    else {
+		Node n2 = (Node)subtree2;
+		Object elt2 = n2.element;
+		diff(trim(subtree1, lo, elt2), trim(n2.left, lo, elt2), handler, lo, elt2);
+		diffEquiv(findEquiv(subtree1, elt2), elt2, handler);
+		diff(trim(subtree1, elt2, hi), trim(n2.right, elt2, hi), handler, elt2, hi);
+	    }
+	} else {
+	    Node n1 = (Node)subtree1;
+	    Object elt1 = n1.element;
+	    diff(trim(n1.left, lo, elt1), trim(subtree2, lo, elt1), handler, lo, elt1);
+	    diffEquiv(elt1, findEquiv(subtree2, elt1), handler);
+	    diff(trim(n1.right, elt1, hi), trim(subtree2, elt1, hi), handler, elt1, hi);
+	}
+    }
+
+    // Reports each element of `subtree' that is greater than `lo' and less than `hi'
+    // as added (if `added') or removed.
+    private void diffAll(Object subtree, boolean added, SetDiff.Handler handler,
+			 Object lo, Object hi) {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    int len = ary.length;
+	    int lo_split = (lo == NEGATIVE_INFINITY ? 0 : binarySearchLo(ary, lo));
+	    int hi_split = (hi == POSITIVE_INFINITY ? len : binarySearchHi(ary, hi));
+	    for (int i = lo_split; i < hi_split; ++i) diffReport(ary[i], added, handler);
+	} else {
+	    Node node = (Node)subtree;
+	    if (lo != NEGATIVE_INFINITY && compare(node.element, lo) <= 0)
+		diffAll(node.right, added, handler, lo, hi);
+	    else if (hi != POSITIVE_INFINITY && compare(node.element, hi) >= 0)
+		diffAll(node.left, added, handler, lo, hi);
+	    else {
+		diffAll(node.left, added, handler, lo, hi);
+		diffReport(node.element, added, handler);
+		diffAll(node.right, added, handler, lo, hi);
+	    }
+	}
+    }
+
+    // `elt1' and `elt2' are equivalent elements from the old and new trees
+    // respectively; either may be `NO_ELEMENT' or an `EquivalentSet'.
+    private static void diffEquiv(Object elt1, Object elt2, SetDiff.Handler handler) {
+	diffReport(equivDiff(elt1, elt2), false, handler);
+	diffReport(equivDiff(elt2, elt1), true, handler);
+    }
+
+    // Reports `elt', which may be `NO_ELEMENT' or an `EquivalentSet', as added (if
+    // `added') or removed.
+    private static void diffReport(Object elt, boolean added, SetDiff.Handler handler) {
+	if (elt == NO_ELEMENT) return;
+	else if (elt instanceof EquivalentSet) {
+	    ArrayList<Object> al = ((EquivalentSet)elt).contents;
+	    for (int i = 0, len = al.size(); i < len; ++i)
+		diffReport(al.get(i), added, handler);
+	} else if (added) handler.added(elt);
+	else handler.removed(elt);
+    }
+
     private int compareTo(Object tree1, Object tree2) {
 	if (tree1 == tree2) return 0;
 	else {
@@ -1065,6 +1815,125 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    /****************/
+    /* Parallel versions of the hedge algorithms.  At each node, these fork the left
+     * subproblem and do the right one in the current thread; since the subtrees are
+     * disjoint and immutable, no synchronization is needed. */
+
+    /* Below this combined size, the parallel operations just call the sequential
+     * ones; forking a task costs more than processing a subtree this small. */
+    private static final int PARALLEL_THRESHOLD = 8192;
+
+    private static final int OP_UNION = 0;
+    private static final int OP_INTERSECTION = 1;
+    private static final int OP_DIFFERENCE = 2;
+    private static final int OP_IS_SUBSET = 3;
+
+    // Not static, because the operations need `comp'.
+    private final class ParallelOp extends RecursiveTask<Object> {
+	private static final long serialVersionUID = 1L;
+
+	ParallelOp(int _op, Object _subtree1, Object _subtree2, Object _lo, Object _hi) {
+	    op = _op;
+	    subtree1 = _subtree1;
+	    subtree2 = _subtree2;
+	    lo = _lo;
+	    hi = _hi;
+	}
+	private final int op;
+	private final Object subtree1, subtree2;
+	private final Object lo, hi;
+	protected Object compute() {
+	    switch (op) {
+	    case OP_UNION: return parallelUnion(subtree1, subtree2, lo, hi);
+	    case OP_INTERSECTION: return parallelIntersection(subtree1, subtree2, lo, hi);
+	    case OP_DIFFERENCE: return parallelDifference(subtree1, subtree2, lo, hi);
+	    default: return parallelIsSubset(subtree1, subtree2, lo, hi);
+	    }
+	}
+    }
+
+    private static boolean belowParallelThreshold(Object subtree1, Object subtree2) {
+	return treeSize(subtree1) + treeSize(subtree2) < PARALLEL_THRESHOLD;
+    }
+
+    private Object parallelUnion(Object subtree1, Object subtree2, Object lo, Object hi) {
+	if (subtree1 == subtree2 || subtree1 == null || subtree2 == null ||
+	    belowParallelThreshold(subtree1, subtree2))
+	    return union(subtree1, subtree2, lo, hi);
+	else if (!(subtree1 instanceof Node)) return parallelUnion(subtree2, subtree1, lo, hi);
+	else {
+	    Node n1 = (Node)subtree1;
+	    Object elt1 = n1.element;
+	    Object elt2 = findEquiv(subtree2, elt1);
+	    ParallelOp left = new ParallelOp(OP_UNION, trim(n1.left, lo, elt1),
+					     trim(subtree2, lo, elt1), lo, elt1);
+	    left.fork();
+	    Object new_right = parallelUnion(trim(n1.right, elt1, hi),
+					     trim(subtree2, elt1, hi), elt1, hi);
+	    return concat(equivUnion(elt1, elt2), left.join(), new_right);
+	}
+    }
+
+    private Object parallelIntersection(Object subtree1, Object subtree2,
+					Object lo, Object hi) {
+	if (!(subtree1 instanceof Node) || subtree1 == subtree2 || subtree2 == null ||
+	    belowParallelThreshold(subtree1, subtree2))
+	    return intersection(subtree1, subtree2, lo, hi);
+	else {
+	    Node n1 = (Node)subtree1;
+	    Object elt1 = n1.element;
+	    Object elt2 = findEquiv(subtree2, elt1);
+	    ParallelOp left = new ParallelOp(OP_INTERSECTION, n1.left,
+					     trim(subtree2, lo, elt1), lo, elt1);
+	    left.fork();
+	    Object new_right = parallelIntersection(n1.right, trim(subtree2, elt1, hi),
+						    elt1, hi);
+	    Object new_left = left.join();
+	    Object isect = equivIntersect(elt1, elt2);
+	    if (isect == NO_ELEMENT) return join(new_left, new_right);
+	    else return concat(isect, new_left, new_right);
+	}
+    }
+
+    private Object parallelDifference(Object subtree1, Object subtree2, Object lo, Object hi) {
+	if (!(subtree1 instanceof Node) || subtree1 == subtree2 || subtree2 == null ||
+	    belowParallelThreshold(subtree1, subtree2))
+	    return difference(subtree1, subtree2, lo, hi);
+	else {
+	    Node n1 = (Node)subtree1;
+	    Object elt1 = n1.element;
+	    Object elt2 = findEquiv(subtree2, elt1);
+	    ParallelOp left = new ParallelOp(OP_DIFFERENCE, n1.left,
+					     trim(subtree2, lo, elt1), lo, elt1);
+	    left.fork();
+	    Object new_right = parallelDifference(n1.right, trim(subtree2, elt1, hi),
+						  elt1, hi);
+	    Object new_left = left.join();
+	    Object diff = equivDiff(elt1, elt2);
+	    if (diff == NO_ELEMENT) return join(new_left, new_right);
+	    else return concat(diff, new_left, new_right);
+	}
+    }
+
+    private boolean parallelIsSubset(Object subtree1, Object subtree2, Object lo, Object hi) {
+	if (!(subtree1 instanceof Node) || subtree1 == subtree2 || subtree2 == null ||
+	    belowParallelThreshold(subtree1, subtree2))
+	    return isSubset(subtree1, subtree2, lo, hi);
+	else {
+	    Node n1 = (Node)subtree1;
+	    Object elt1 = n1.element;
+	    ParallelOp left = new ParallelOp(OP_IS_SUBSET, n1.left,
+					     trim(subtree2, lo, elt1), lo, elt1);
+	    left.fork();
+	    if (!equivIsSubset(elt1, findEquiv(subtree2, elt1)) ||
+		!parallelIsSubset(n1.right, trim(subtree2, elt1, hi), elt1, hi)) {
+		left.cancel(false);
+		return false;
+	    } else return (Boolean)left.join();
+	}
+    }
+
     /* Again we play a little game to work around Java's inability to efficiently
      * return multiple values.  In this case `findEquiv' needs to return something
      * indicating "no element found", but it can't be `null' because we allow `null'
@@ -1092,6 +1961,199 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    // Returns the element of `subtree' nearest `elt' in one direction, or
+    // `NO_ELEMENT' if there is none: the least element above `elt' if `above' is
+    // true, else the greatest one below it.  If `inclusive' is true, elements
+    // equivalent to `elt' count.  This is a single descent, remembering the
+    // nearest node passed on the way down, so it allocates nothing.
+    private Object nearest(Object subtree, Object elt, boolean above, boolean inclusive) {
+	Object cand = NO_ELEMENT;
+	while (subtree != null) {
+	    if (!(subtree instanceof Node)) {
+		Object[] ary = (Object[])subtree;
+		int bin_srch_res = binarySearch(ary, elt);
+		boolean found = (bin_srch_res & BIN_SEARCH_FOUND_MASK) == BIN_SEARCH_FOUND;
+		int idx = bin_srch_res >> BIN_SEARCH_INDEX_SHIFT;
+		if (found && inclusive) return ary[idx];
+		else if (!above) --idx;
+		else if (found) ++idx;
+		if (idx < 0 || idx >= ary.length) break;
+		else return ary[idx];
+	    } else {
+		Node node = (Node)subtree;
+		Object nelt = node.element;
+		int comp_res = compare(elt, nelt);
+		if (comp_res == 0) {
+		    if (inclusive) {
+			if (nelt instanceof EquivalentSet) {
+			    ArrayList<Object> al = ((EquivalentSet)nelt).contents;
+			    int i = al.indexOf(elt);
+			    return al.get(i >= 0 ? i : above ? 0 : al.size() - 1);
+			} else return nelt;
+		    }
+		    subtree = above ? node.right : node.left;
+		} else if ((comp_res < 0) == above) {
+		    cand = nelt;
+		    subtree = above ? node.left : node.right;
+		} else subtree = above ? node.right : node.left;
+	    }
+	}
+	if (cand instanceof EquivalentSet) {
+	    ArrayList<Object> al = ((EquivalentSet)cand).contents;
+	    return al.get(above ? 0 : al.size() - 1);
+	} else return cand;
+    }
+
+    private static <Elt> Elt nearestOrNull(Object elt) {
+	return elt == NO_ELEMENT ? null : (Elt)elt;
+    }
+
+    // Returns the subset of this set's elements above `lo' and below `hi', either of
+    // which may be the appropriate infinity; an inclusive bound also admits the
+    // elements equivalent to it.
+    private FTreeSet<Elt> range(Object lo, boolean lo_incl, Object hi, boolean hi_incl) {
+	if (tree == null) return this;
+	boolean same = false;
+	if (lo != NEGATIVE_INFINITY && hi != POSITIVE_INFINITY) {
+	    int comp_res = compare(lo, hi);
+	    if (comp_res > 0 || (comp_res == 0 && !(lo_incl && hi_incl)))
+		return make(null, comp);
+	    same = comp_res == 0;
+	}
+	// `split' excludes both endpoints.
+	Object t = split(tree, lo, hi);
+	if (lo_incl) t = withEquiv(t, lo);
+	if (hi_incl && !same) t = withEquiv(t, hi);
+	if (t == tree) return this;
+	else return make(t, comp);
+    }
+
+    private Object withEquiv(Object subtree, Object elt) {
+	Object eq = findEquiv(tree, elt);
+	if (eq == NO_ELEMENT) return subtree;
+	else return with(subtree, eq);
+    }
+
+    // Unlike `rankElement', this returns the member of an `EquivalentSet'.
+    private static Object elementAtRank(Object subtree, int rank) {
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    int left_size = treeSize(node.left);
+	    if (rank < left_size) subtree = node.left;
+	    else {
+		Object elt = node.element;
+		int elt_size = elementSize(elt);
+		rank -= left_size;
+		if (rank >= elt_size) {
+		    rank -= elt_size;
+		    subtree = node.right;
+		} else if (elt instanceof EquivalentSet)
+		    return ((EquivalentSet)elt).contents.get(rank);
+		else return elt;
+	    }
+	}
+	return ((Object[])subtree)[rank];
+    }
+
+    private int rankOf(Object subtree, Object elt) {
+	int base = 0;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    Object nelt = node.element;
+	    int comp_res = compare(elt, nelt);
+	    if (comp_res < 0) subtree = node.left;
+	    else {
+		int left_size = treeSize(node.left);
+		if (comp_res == 0) {
+		    if (nelt instanceof EquivalentSet) {
+			int i = ((EquivalentSet)nelt).contents.indexOf(elt);
+			return i < 0 ? -1 : base + left_size + i;
+		    } else return eql(nelt, elt) ? base + left_size : -1;
+		}
+		base += left_size + elementSize(nelt);
+		subtree = node.right;
+	    }
+	}
+	if (subtree == null) return -1;
+	else {
+	    Object[] ary = (Object[])subtree;
+	    int bin_srch_res = binarySearch(ary, elt);
+	    int idx = bin_srch_res >> BIN_SEARCH_INDEX_SHIFT;
+	    if ((bin_srch_res & BIN_SEARCH_FOUND_MASK) == BIN_SEARCH_FOUND &&
+		eql(ary[idx], elt))
+		return base + idx;
+	    else return -1;
+	}
+    }
+
+    // Returns the number of elements of `subtree' less than `elt', also counting
+    // those equivalent to it if `inclusive' is true.
+    private int rankBelow(Object subtree, Object elt, boolean inclusive) {
+	int base = 0;
+	while (subtree instanceof Node) {
+	    Node node = (Node)subtree;
+	    int comp_res = compare(elt, node.element);
+	    if (comp_res < 0) subtree = node.left;
+	    else if (comp_res == 0)
+		return base + treeSize(node.left) +
+		       (inclusive ? elementSize(node.element) : 0);
+	    else {
+		base += treeSize(node.left) + elementSize(node.element);
+		subtree = node.right;
+	    }
+	}
+	if (subtree == null) return base;
+	else {
+	    // Found or not, the index is the number of elements below `elt'.
+	    int bin_srch_res = binarySearch((Object[])subtree, elt);
+	    int idx = bin_srch_res >> BIN_SEARCH_INDEX_SHIFT;
+	    if (inclusive && (bin_srch_res & BIN_SEARCH_FOUND_MASK) == BIN_SEARCH_FOUND)
+		++idx;
+	    return base + idx;
+	}
+    }
+
+    private RangeView<Elt> rangeView(Object lo, boolean lo_incl, Object hi, boolean hi_incl) {
+	int from = lo == NEGATIVE_INFINITY ? 0 : rankBelow(tree, lo, !lo_incl);
+	int to = hi == POSITIVE_INFINITY ? size() : rankBelow(tree, hi, hi_incl);
+	return new RangeView<Elt>(this, from, Math.max(from, to));
+    }
+
+    // Returns a new tree of the elements of `subtree' whose ranks are at least `lo'
+    // and less than `hi'.  This may split an `EquivalentSet'.
+    private Object rankSplit(Object subtree, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if (lo == 0 && hi == treeSize(subtree)) return subtree;
+	else if (!(subtree instanceof Node)) return subseq((Object[])subtree, lo, hi);
+	else {
+	    Node node = (Node)subtree;
+	    Object elt = node.element;
+	    int left_size = treeSize(node.left);
+	    int elt_size = elementSize(elt);
+	    int right_base = left_size + elt_size;
+	    Object new_left = rankSplit(node.left, Math.min(lo, left_size),
+					Math.min(hi, left_size));
+	    Object new_right = rankSplit(node.right, Math.max(lo - right_base, 0),
+					 Math.max(hi - right_base, 0));
+	    int elt_lo = Math.max(lo - left_size, 0);
+	    int elt_hi = Math.min(hi - left_size, elt_size);
+	    if (elt_lo >= elt_hi) return join(new_left, new_right);
+	    else if (elt_lo > 0 || elt_hi < elt_size) {
+		ArrayList<Object> al = ((EquivalentSet)elt).contents;
+		if (elt_hi - elt_lo == 1) elt = al.get(elt_lo);
+		else elt = new EquivalentSet(new ArrayList<Object>(al.subList(elt_lo, elt_hi)));
+	    }
+	    return concat(elt, new_left, new_right);
+	}
+    }
+
+    // Returns the reverse of `c', where `null' stands for the natural ordering.
+    // This has default (package-wide) access so `FTreeMap.descendingMap' can use it.
+    /*pkg*/ static <T> Comparator<T> reverseComparator(Comparator<T> c) {
+	if (c == Collections.<T>reverseOrder()) return null;
+	else return Collections.reverseOrder(c);
+    }
+
     private int compare(Object x, Object y) {
 	// `null' is treated as being less than every object.  So it can't,
 	// for instance, show up in `EquivalentSet's.
@@ -1247,7 +2309,11 @@ public final class FTreeSet<Elt>
 	    }
 	    return hash;
 	} else {
+	    // Each node caches the hash code of its subtree, so if this set was made from
+	    // one whose hash code has already been computed, this takes only O(log n)
+	    // time: just the nodes on the modified paths are new.
 	    Node node = (Node)subtree;
+	    if (node.hash_code != Integer.MIN_VALUE) return node.hash_code;
 	    int hash = hashCode(node.left) + hashCode(node.right);
 	    Object elt = node.element;
 	    if (elt instanceof EquivalentSet) {
@@ -1257,6 +2323,7 @@ public final class FTreeSet<Elt>
 		    if (e != null) hash += e.hashCode();
 		}
 	    } else if (elt != null) hash += elt.hashCode();
+	    node.hash_code = hash;
 	    return hash;
 	}
     }
@@ -1522,6 +2589,68 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    // Builds a tree from the elements returned by `it', which must be in nondecreasing
+    // order; `size' is a hint for the number of them.  Equivalent elements are
+    // collected into `EquivalentSet's.  Takes linear time: the elements are buffered
+    // in a single array, and then the tree is built bottom-up.
+    private Object fromSorted(Iterator<?> it, int size) {
+	Object[] elts = new Object[Math.max(size, 1)];
+	int n = 0;
+	boolean any_equiv = false;
+	while (it.hasNext()) {
+	    Object e = it.next();
+	    if (n > 0) {
+		Object prev = elts[n - 1];
+		int comp_res = compare(prev, e);
+		if (comp_res > 0)
+		    throw new IllegalArgumentException("Elements are not in sorted order");
+		else if (comp_res == 0) {
+		    elts[n - 1] = prev = equivUnion(prev, e);
+		    if (prev instanceof EquivalentSet) any_equiv = true;
+		    continue;
+		}
+	    }
+	    if (n == elts.length) elts = Arrays.copyOf(elts, n << 1);
+	    elts[n++] = e;
+	}
+	int[] cum = null;
+	if (any_equiv) {
+	    cum = new int[n + 1];
+	    for (int i = 0; i < n; ++i)
+		cum[i + 1] = cum[i] + elementSize(elts[i]);
+	}
+	return buildTree(elts, cum, 0, n);
+    }
+
+    // Builds a balanced tree, bottom-up, from `elts[lo..hi)', which must be in strictly
+    // increasing order.  Any `EquivalentSet's among them are placed in nodes.  `cum'
+    // is null if there are none; otherwise `cum[i]' is the number of elements in
+    // `elts[0..i)', counting an `EquivalentSet' as its size.
+    private static Object buildTree(Object[] elts, int[] cum, int lo, int hi) {
+	if (lo >= hi) return null;
+	else if (hi - lo <= MAX_LEAF_ARRAY_LENGTH &&
+		 (cum == null || cum[hi] - cum[lo] == hi - lo))
+	    return subseq(elts, lo, hi);
+	else {
+	    int mid;
+	    if (cum == null) mid = (lo + hi) >>> 1;
+	    else {
+		// Split by element count rather than by position, so a large
+		// `EquivalentSet' can't unbalance the tree.
+		int target = cum[lo] + ((cum[hi] - cum[lo]) >> 1);
+		int l = lo, h = hi - 1;
+		while (l < h) {
+		    int m = (l + h + 1) >>> 1;
+		    if (cum[m] <= target) l = m;
+		    else h = m - 1;
+		}
+		mid = l;
+	    }
+	    return makeNode(elts[mid], buildTree(elts, cum, lo, mid),
+			    buildTree(elts, cum, mid + 1, hi));
+	}
+    }
+
     private static Object[] subseq(Object[] ary, int lo, int hi) {
 	if (lo >= hi) return null;
 	else {
@@ -1533,6 +2662,131 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    // Writes the elements of `subtree' in order for `Snapshot.write', each one, or
+    // each `EquivalentSet', in the form `writeGroup' uses.
+    /*pkg*/ static void writeSnapshot(Object subtree, Snapshot.Encoder<Object> enc,
+				      Snapshot.Output out)
+	    throws IOException {
+	if (subtree == null) return;
+	else if (!(subtree instanceof Node)) {
+	    Object[] ary = (Object[])subtree;
+	    for (int i = 0, len = ary.length; i < len; ++i) {
+		out.writeVarInt(1);
+		enc.encode(ary[i], out);
+	    }
+	} else {
+	    Node node = (Node)subtree;
+	    writeSnapshot(node.left, enc, out);
+	    writeGroup(node.element, enc, out);
+	    writeSnapshot(node.right, enc, out);
+	}
+    }
+
+    // Reads the `size' elements written by `writeSnapshot' and builds the tree.  The
+    // order isn't checked, since that would mean calling the comparator.
+    /*pkg*/ static Object readSnapshot(int size, Snapshot.Encoder<Object> enc,
+				       Snapshot.Input in)
+	    throws IOException {
+	Object[] elts = new Object[size];
+	int[] cum = null;
+	int n = 0;
+	for (int nelts = 0; nelts < size; ) {
+	    int count = Snapshot.readCount(size - nelts, in);
+	    elts[n] = readGroup(count, enc, in);
+	    if (count > 1 && cum == null) {
+		cum = new int[size + 1];
+		for (int i = 0; i <= n; ++i) cum[i] = i;
+	    }
+	    ++n;
+	    nelts += count;
+	    if (cum != null) cum[n] = nelts;
+	}
+	return buildTree(elts, cum, 0, n);
+    }
+
+    // Writes `subtree' for `Snapshot.SharedWriter', keeping the shape of the tree.
+    // A subtree is written as a tag [`Output.writeVarInt']: 0 for null; 1 for a new
+    // leaf, followed by its length [`Output.writeVarInt'] and elements; 2 for a new
+    // node, followed by its element as written by `writeGroup' and its left and right
+    // subtrees; or, for a subtree already in `ids', 3 plus its id.  Each new subtree
+    // is given the next id once it has been written.
+    /*pkg*/ static void writeShared(Object subtree, Snapshot.Encoder<Object> enc,
+				    Snapshot.Output out, IdentityHashMap<Object, Integer> ids)
+	    throws IOException {
+	if (subtree == null) {
+	    out.writeVarInt(0);
+	    return;
+	}
+	Integer id = ids.get(subtree);
+	if (id != null) out.writeVarInt(id + 3);
+	else {
+	    if (!(subtree instanceof Node)) {
+		Object[] ary = (Object[])subtree;
+		out.writeVarInt(1);
+		out.writeVarInt(ary.length);
+		for (int i = 0, len = ary.length; i < len; ++i) enc.encode(ary[i], out);
+	    } else {
+		Node node = (Node)subtree;
+		out.writeVarInt(2);
+		writeGroup(node.element, enc, out);
+		writeShared(node.left, enc, out, ids);
+		writeShared(node.right, enc, out, ids);
+	    }
+	    ids.put(subtree, ids.size());
+	}
+    }
+
+    // Reads a subtree written by `writeShared'.  `subtrees' holds the ones already
+    // read, by id.
+    /*pkg*/ static Object readShared(Snapshot.Encoder<Object> enc, Snapshot.Input in,
+				     ArrayList<Object> subtrees)
+	    throws IOException {
+	int tag = in.readVarInt();
+	Object res;
+	if (tag == 0) return null;
+	else if (tag == 1) {
+	    int len = Snapshot.readCount(MAX_LEAF_ARRAY_LENGTH, in);
+	    Object[] ary = new Object[len];
+	    for (int i = 0; i < len; ++i) ary[i] = enc.decode(in);
+	    res = ary;
+	} else if (tag == 2) {
+	    Object elt = readGroup(Snapshot.readCount(Integer.MAX_VALUE, in), enc, in);
+	    Object left = readShared(enc, in, subtrees);
+	    res = makeNode(elt, left, readShared(enc, in, subtrees));
+	} else return Snapshot.sharedSubtree(tag - 3, subtrees);
+	subtrees.add(res);
+	return res;
+    }
+
+    // Writes a node's element as the number of elements it holds
+    // [`Output.writeVarInt'], which is more than one for an `EquivalentSet', followed
+    // by the elements.
+    private static void writeGroup(Object elt, Snapshot.Encoder<Object> enc,
+				   Snapshot.Output out)
+	    throws IOException {
+	if (elt instanceof EquivalentSet) {
+	    ArrayList<Object> al = ((EquivalentSet)elt).contents;
+	    int siz = al.size();
+	    out.writeVarInt(siz);
+	    for (int i = 0; i < siz; ++i) enc.encode(al.get(i), out);
+	} else {
+	    out.writeVarInt(1);
+	    enc.encode(elt, out);
+	}
+    }
+
+    // Reads the `count' elements of a group written by `writeGroup'.
+    private static Object readGroup(int count, Snapshot.Encoder<Object> enc,
+				    Snapshot.Input in)
+	    throws IOException {
+	if (count == 1) return enc.decode(in);
+	else {
+	    ArrayList<Object> al = new ArrayList<Object>(count);
+	    for (int i = 0; i < count; ++i) al.add(enc.decode(in));
+	    return new EquivalentSet(al);
+	}
+    }
+
     // Does a merge-union on `ary1' and `ary2', omitting any elements not greater than
     // `lo' and less than `hi'.  If the result is too long to be a leaf, splits it and
     // makes a node.  Also, if any equivalent values are found, makes a node.
@@ -1644,6 +2898,40 @@ public final class FTreeSet<Elt>
 	else return res.toArray();
     }
 
+    private void diff(Object[] ary1, Object[] ary2, SetDiff.Handler handler,
+		      Object lo, Object hi) {
+	int i1 = 0, i2 = 0, len1 = ary1.length, len2 = ary2.length;
+	if (lo != NEGATIVE_INFINITY) {
+	    while (i1 < len1 && compare(lo, ary1[i1]) >= 0) ++i1;
+	    while (i2 < len2 && compare(lo, ary2[i2]) >= 0) ++i2;
+	}
+	if (hi != POSITIVE_INFINITY) {
+	    while (i1 < len1 && compare(hi, ary1[len1 - 1]) <= 0) --len1;
+	    while (i2 < len2 && compare(hi, ary2[len2 - 1]) <= 0) --len2;
+	}
+	while (i1 < len1 && i2 < len2) {
+	    Object e1 = ary1[i1];
+	    Object e2 = ary2[i2];
+	    int comp_res = compare(e1, e2);
+	    if (comp_res < 0) {
+		handler.removed(e1);
+		++i1;
+	    } else if (comp_res > 0) {
+		handler.added(e2);
+		++i2;
+	    } else {
+		if (!eql(e1, e2)) {
+		    handler.removed(e1);
+		    handler.added(e2);
+		}
+		++i1;
+		++i2;
+	    }
+	}
+	for (; i1 < len1; ++i1) handler.removed(ary1[i1]);
+	for (; i2 < len2; ++i2) handler.added(ary2[i2]);
+    }
+
     // `ary2' may be null.
     private boolean isSubset(Object[] ary1, Object[] ary2, Object lo, Object hi) {
 	int i1 = 0, i2 = 0, len1 = ary1.length, len2 = ary2 != null ? ary2.length : 0;
@@ -1729,12 +3017,46 @@ public final class FTreeSet<Elt>
 	}
 
 	private IteratorNode inode;
+	// If true, we walk the tree right to left; `index' then counts from the right.
+	private final boolean descending;
+	private int remaining;		// the number of elements left to return
 
 	private FTSIterator(Object subtree) {
+	    this(subtree, false);
+	}
+
+	private FTSIterator(Object subtree, boolean _descending) {
+	    descending = _descending;
+	    remaining = treeSize(subtree);
 	    inode = new IteratorNode(subtree, 0, null);
 	    canonicalize();
 	}
 
+	// Starts at the element of rank `rank' and returns `count' elements.
+	private FTSIterator(Object subtree, int rank, int count) {
+	    descending = false;
+	    remaining = count;
+	    IteratorNode parent = null;
+	    while (subtree instanceof Node) {
+		Node node = (Node)subtree;
+		int left_size = treeSize(node.left);
+		int elt_size = elementSize(node.element);
+		if (rank < left_size) {
+		    parent = new IteratorNode(node, 0, parent);
+		    subtree = node.left;
+		} else if (rank < left_size + elt_size) {
+		    inode = new IteratorNode(node, rank - left_size + 1, parent);
+		    return;
+		} else {
+		    // As in `canonicalize', the right subtree replaces its parent.
+		    rank -= left_size + elt_size;
+		    subtree = node.right;
+		}
+	    }
+	    inode = new IteratorNode(subtree, rank, parent);
+	    canonicalize();
+	}
+
 	private void canonicalize() {
 	    while (true) {
 		if (inode == null) break;
@@ -1751,30 +3073,34 @@ public final class FTreeSet<Elt>
 		    }
 		} else {
 		    Node node = (Node)inode.subtree;
-		    if (inode.index == 0) inode = new IteratorNode(node.left, 0, inode);
+		    Object first = descending ? node.right : node.left;
+		    Object second = descending ? node.left : node.right;
+		    if (inode.index == 0) inode = new IteratorNode(first, 0, inode);
 		    else if (inode.index == elementSize(node.element) + 1)
-			inode = new IteratorNode(node.right, 0, inode.parent);
+			inode = new IteratorNode(second, 0, inode.parent);
 		    else break;
 		}
 	    }
 	}
 
 	public boolean hasNext() {
-	    return inode != null;
+	    return remaining > 0;
 	}
 
 	public Elt next() {
 	    Object elt;
-	    if (inode == null) throw new NoSuchElementException();
-	    else if (!(inode.subtree instanceof Node))
-		elt = ((Object[])inode.subtree)[inode.index];
-	    else {
+	    if (remaining <= 0) throw new NoSuchElementException();
+	    else if (!(inode.subtree instanceof Node)) {
+		Object[] ary = (Object[])inode.subtree;
+		elt = ary[descending ? ary.length - 1 - inode.index : inode.index];
+	    } else {
 		Node node = (Node)inode.subtree;
 		if (node.element instanceof EquivalentSet) {
 		    ArrayList<Object> al = ((EquivalentSet)node.element).contents;
-		    elt = al.get(inode.index - 1);
+		    elt = al.get(descending ? al.size() - inode.index : inode.index - 1);
 		} else elt = node.element;
 	    }
+	    --remaining;
 	    inode.index++;
 	    canonicalize();
 	    return (Elt)elt;
@@ -1785,6 +3111,37 @@ public final class FTreeSet<Elt>
 	}
     }
 
+    private static final class FTSSpliterator<Elt> extends TreeSpliterator<Elt> {
+	FTSSpliterator(Object pending, Object subtree, Comparator<? super Elt> _comp) {
+	    super(pending, subtree, IMMUTABLE | DISTINCT | SIZED | SUBSIZED | ORDERED | SORTED);
+	    comp = _comp;
+	}
+	private final Comparator<? super Elt> comp;
+	public Comparator<? super Elt> getComparator() { return comp; }
+	protected TreeSpliterator<Elt> make(Object pending, Object subtree) {
+	    return new FTSSpliterator<Elt>(pending, subtree, comp);
+	}
+	protected boolean isNode(Object subtree) { return subtree instanceof Node; }
+	protected Object left(Object node) { return ((Node)node).left; }
+	protected Object right(Object node) { return ((Node)node).right; }
+	protected int subtreeSize(Object subtree) { return treeSize(subtree); }
+	protected int nodeElementCount(Object node) {
+	    return elementSize(((Node)node).element);
+	}
+	protected Elt nodeElement(Object node, int index) {
+	    Object elt = ((Node)node).element;
+	    if (elt instanceof EquivalentSet)
+		return (Elt)((EquivalentSet)elt).contents.get(index);
+	    else return (Elt)elt;
+	}
+	protected Iterator<Elt> iterator(Object subtree) {
+	    return new FTSIterator<Elt>(subtree);
+	}
+	protected void walk(Object subtree, Consumer<? super Elt> action) {
+	    FTreeSet.forEach(subtree, action);
+	}
+    }
+
     /**
      * Saves the state of this <code>FTreeSet</code> to a stream.
      *
@@ -1817,11 +3174,12 @@ public final class FTreeSet<Elt>
 	hash_code = Integer.MIN_VALUE;
 	strm.defaultReadObject();	// reads `comp'
         int size = strm.readInt();
-	Object t = null;
+	// `writeObject' emits the elements in order, so we can build the tree bottom-up.
+	Object[] elts = new Object[size];
 	for (int i = 0; i < size; ++i)
-	    t = with(t, (Elt)strm.readObject());
+	    elts[i] = strm.readObject();
 	try {
-	    TreeField.set(this, t);
+	    TreeField.set(this, fromSorted(Arrays.asList(elts).iterator(), size));
 	} catch (IllegalAccessException ia) {
 	    throw new RuntimeException("FTreeSet deserialization failed", ia);
 	}
@@ -0,0 +1,231 @@
+/*
+ * FVersionedMap.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The history of a functional map: each version committed, under the timestamp at
+ * which it was committed.  Since successive versions of a <code>FHashMap</code> or
+ * <code>FTreeMap</code> share all but the paths that changed, keeping old versions
+ * is cheap; this class keeps them for a limited time, or up to a limited number,
+ * and finds the one that was current at any given time.
+ *
+ * <p>Like the collections, an <code>FVersionedMap</code> is itself functional:
+ * <code>commit</code> returns a new one with the version added, and the one it was
+ * called on is unchanged.  To share a history between threads, hold it in an
+ * {@link FRef} and commit with <code>update</code>.
+ *
+ * <p>Timestamps are <code>long</code>s, and have to increase with each commit.
+ * <code>commit(FMap)</code> uses the current time in milliseconds (or one more
+ * than the latest timestamp, if that's not greater); callers may supply their own,
+ * in any unit, with <code>commit(long, FMap)</code>.  The retention limits are
+ * applied at each commit.  A version is kept until either it was replaced at least
+ * <code>max_age</code> (in the same unit) before the latest commit, or
+ * <code>max_versions</code> newer versions have been committed; so
+ * <code>asOf</code> can answer for any time from <code>max_age</code> before the
+ * latest commit, unless the version count runs out first.
+ *
+ * <p>Time costs: <code>commit</code>, <code>current</code>, and
+ * <code>asOf</code> take O(log <i>v</i>) time, where <i>v</i> is the number of
+ * versions kept.  <code>historyBytes</code> takes time proportional to the size of
+ * the current version plus that of the structure the older versions don't share
+ * with it.
+ *
+ * @param Key the type of the keys
+ * @param Val the type of the values
+ * @author Scott L. Burson
+ */
+
+public final class FVersionedMap<Key, Val> {
+
+    /**
+     * Constructs a history whose only version is <code>initial</code>, committed
+     * at the current time in milliseconds.
+     *
+     * @param initial the first version
+     * @param max_age how long to keep versions after they're replaced;
+     * <code>Long.MAX_VALUE</code> for no limit
+     * @param max_versions the greatest number of versions to keep;
+     * <code>Integer.MAX_VALUE</code> for no limit
+     * @throws IllegalArgumentException if <code>max_age</code> is negative or
+     * <code>max_versions</code> is less than 1
+     */
+    public FVersionedMap(FMap<Key, Val> initial, long max_age, int max_versions) {
+	this(System.currentTimeMillis(), initial, max_age, max_versions);
+    }
+
+    /**
+     * Constructs a history whose only version is <code>initial</code>, committed
+     * at <code>timestamp</code>.
+     *
+     * @param timestamp the timestamp of the first version
+     * @param initial the first version
+     * @param max_age how long to keep versions after they're replaced;
+     * <code>Long.MAX_VALUE</code> for no limit
+     * @param max_versions the greatest number of versions to keep;
+     * <code>Integer.MAX_VALUE</code> for no limit
+     * @throws IllegalArgumentException if <code>max_age</code> is negative or
+     * <code>max_versions</code> is less than 1
+     */
+    public FVersionedMap(long timestamp, FMap<Key, Val> initial, long max_age,
+			 int max_versions) {
+	if (max_age < 0) throw new IllegalArgumentException("Negative max_age");
+	if (max_versions < 1) throw new IllegalArgumentException("max_versions must be positive");
+	versions = FTreeMap.<Long, FMap<Key, Val>>emptyMap().with(timestamp, initial);
+	this.max_age = max_age;
+	this.max_versions = max_versions;
+    }
+
+    /**
+     * Returns a history with <code>map</code> added as the current version,
+     * committed at the current time in milliseconds, or one more than the latest
+     * timestamp if the clock hasn't moved past it.
+     *
+     * @param map the new version
+     * @return the updated history
+     */
+    public FVersionedMap<Key, Val> commit(FMap<Key, Val> map) {
+	return commit(Math.max(System.currentTimeMillis(), latestTimestamp() + 1), map);
+    }
+
+    /**
+     * Returns a history with <code>map</code> added as the current version,
+     * committed at <code>timestamp</code>.
+     *
+     * @param timestamp the timestamp of the new version
+     * @param map the new version
+     * @return the updated history
+     * @throws IllegalArgumentException if <code>timestamp</code> isn't greater than
+     * the latest one
+     */
+    public FVersionedMap<Key, Val> commit(long timestamp, FMap<Key, Val> map) {
+	if (timestamp <= latestTimestamp())
+	    throw new IllegalArgumentException("Timestamp " + timestamp +
+					       " is not after the latest, " + latestTimestamp());
+	FTreeMap<Long, FMap<Key, Val>> vs = versions.with(timestamp, map);
+	// Keep the version that was current at the cutoff, and those after it.
+	if (timestamp >= Long.MIN_VALUE + max_age) {
+	    Long floor = vs.floorKey(timestamp - max_age);
+	    if (floor != null) vs = vs.tailMap(floor, true);
+	}
+	int nvs = vs.size();
+	if (nvs > max_versions) vs = vs.subMapByRank(nvs - max_versions, nvs);
+	return new FVersionedMap<Key, Val>(vs, max_age, max_versions);
+    }
+
+    /**
+     * Returns the latest version.
+     */
+    public FMap<Key, Val> current() {
+	return versions.lastEntry().getValue();
+    }
+
+    /**
+     * Returns the timestamp of the latest version.
+     */
+    public long latestTimestamp() {
+	return versions.lastKey();
+    }
+
+    /**
+     * Returns the timestamp of the oldest version kept.
+     */
+    public long oldestTimestamp() {
+	return versions.firstKey();
+    }
+
+    /**
+     * Returns the version that was current at <code>timestamp</code>: the latest
+     * one committed at or before it.  Takes O(log <i>v</i>) time.
+     *
+     * @param timestamp the time
+     * @return the version, or <code>null</code> if <code>timestamp</code> is
+     * before the oldest version kept
+     */
+    public FMap<Key, Val> asOf(long timestamp) {
+	Map.Entry<Long, FMap<Key, Val>> ent = versions.floorEntry(timestamp);
+	return ent == null ? null : ent.getValue();
+    }
+
+    /**
+     * Returns the versions kept, by timestamp.
+     */
+    public FTreeMap<Long, FMap<Key, Val>> versions() {
+	return versions;
+    }
+
+    /**
+     * Returns the approximate number of bytes of heap that keeping the older versions
+     * costs: the size of the tree structure they hold that the current version
+     * doesn't share.  The estimate assumes a 64-bit JVM with compressed references.
+     * It doesn't include the keys and values themselves, though those that only
+     * older versions hold are kept alive too; nor, as it can't see their structure,
+     * does it count versions that aren't <code>FHashMap</code>s,
+     * <code>FCachedHashMap</code>s, or <code>FTreeMap</code>s.
+     *
+     * @return the estimate, in bytes
+     */
+    public long historyBytes() {
+	IdentityHashMap<Object, Object> seen = new IdentityHashMap<Object, Object>();
+	footprint(current(), seen);
+	long bytes = 0;
+	for (FMap<Key, Val> version : versions.values()) bytes += footprint(version, seen);
+	return bytes;
+    }
+
+    public String toString() {
+	return "FVersionedMap" + versions;
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private FVersionedMap(FTreeMap<Long, FMap<Key, Val>> _versions, long _max_age,
+			  int _max_versions) {
+	versions = _versions;
+	max_age = _max_age;
+	max_versions = _max_versions;
+    }
+
+    private final FTreeMap<Long, FMap<Key, Val>> versions;	// never empty
+    private final long max_age;
+    private final int max_versions;
+
+    private static long footprint(FMap<?, ?> map, IdentityHashMap<Object, Object> seen) {
+	if (map instanceof FHashMap) return FHashMap.footprint(((FHashMap)map).tree, seen);
+	else if (map instanceof FCachedHashMap)
+	    return FHashMap.footprint(((FCachedHashMap)map).map.tree, seen);
+	else if (map instanceof FTreeMap) return FTreeMap.footprint(((FTreeMap)map).tree, seen);
+	else return 0;
+    }
+
+    /* Size estimates, for the `footprint' methods of the map classes: a 12-byte
+     * object header, four bytes per reference or `int' (references being
+     * compressed), and objects padded to a multiple of eight bytes. */
+
+    /*pkg*/ static long objectBytes(int nrefs, int nints) {
+	return (12 + 4 * (nrefs + nints) + 7) & ~7L;
+    }
+
+    // An array of references or `int's; its header includes the length.
+    /*pkg*/ static long arrayBytes(int length) {
+	return (16 + 4L * length + 7) & ~7L;
+    }
+
+    // An `EquivalentMap' holding `count' pairs: the object, its `ArrayList', the
+    // list's array, and an `Entry' per pair.
+    /*pkg*/ static long equivalentBytes(int count) {
+	return objectBytes(1, 0) + objectBytes(1, 2) + arrayBytes(count) +
+	       count * objectBytes(2, 0);
+    }
+
+}
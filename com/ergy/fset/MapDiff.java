@@ -0,0 +1,114 @@
+/*
+ * MapDiff.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+/**
+ * The differences between an old version of a map and a new one, as returned by
+ * {@link FMap#diff(FMap)}: the pairs that were added, those that were removed, and
+ * the keys whose values were changed.  Each of these is itself an <code>FMap</code>,
+ * of the same class as the old map and using the same ordering.
+ *
+ * <p>To receive the differences one at a time rather than collected into maps,
+ * pass a {@link MapDiff.Handler} to {@link FMap#diff(FMap, MapDiff.Handler)}.
+ *
+ * @author Scott L. Burson
+ * @see SetDiff
+ */
+
+public final class MapDiff<Key, Val> {
+
+    /**
+     * Receives the differences found by {@link FMap#diff(FMap, MapDiff.Handler)}.
+     */
+    public interface Handler<Key, Val> {
+
+	/**
+	 * Called for each pair of the new map whose key is not in the old one.
+	 */
+	void added(Key key, Val value);
+
+	/**
+	 * Called for each pair of the old map whose key is not in the new one.
+	 */
+	void removed(Key key, Val value);
+
+	/**
+	 * Called for each key that is in both maps, but whose value in the new map is
+	 * not equal to that in the old one.
+	 */
+	void changed(Key key, Val oldValue, Val newValue);
+
+    }
+
+    /**
+     * Returns the pairs of the new map whose keys are not in the old one.
+     */
+    public FMap<Key, Val> added() {
+	return added;
+    }
+
+    /**
+     * Returns the pairs of the old map whose keys are not in the new one.
+     */
+    public FMap<Key, Val> removed() {
+	return removed;
+    }
+
+    /**
+     * Returns a map from each key whose value was changed to its new value.  (The old
+     * value is, of course, still available from the old map.)
+     */
+    public FMap<Key, Val> changed() {
+	return changed;
+    }
+
+    /**
+     * Returns true if the two maps had no differences.
+     */
+    public boolean isEmpty() {
+	return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    public String toString() {
+	return "MapDiff[added: " + added + ", removed: " + removed +
+	       ", changed: " + changed + "]";
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private FMap<Key, Val> added, removed, changed;
+
+    private MapDiff(FMap<Key, Val> empty) {
+	added = removed = changed = empty;
+    }
+
+    // Collects the differences from `map' to `other' into maps starting from `empty',
+    // which should be an empty map of the class of `map'.  This has default
+    // (package-wide) access so the `diff' methods of the map classes can use it.
+    /*pkg*/ static <Key, Val> MapDiff<Key, Val> collect(FMap<Key, Val> map,
+							 FMap<? extends Key, ? extends Val> other,
+							 FMap<Key, Val> empty) {
+	final MapDiff<Key, Val> res = new MapDiff<Key, Val>(empty);
+	map.diff(other, new Handler<Key, Val>() {
+		public void added(Key key, Val value) {
+		    res.added = res.added.with(key, value);
+		}
+		public void removed(Key key, Val value) {
+		    res.removed = res.removed.with(key, value);
+		}
+		public void changed(Key key, Val oldValue, Val newValue) {
+		    res.changed = res.changed.with(key, newValue);
+		}
+	    });
+	return res;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * SetDiff.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+/**
+ * The differences between an old version of a set and a new one, as returned by
+ * {@link FSet#diff(FSet)}: the elements that were added and those that were removed.
+ * Each of these is itself an <code>FSet</code>, of the same class as the old set and
+ * using the same ordering.
+ *
+ * <p>To receive the differences one at a time rather than collected into sets, pass
+ * a {@link SetDiff.Handler} to {@link FSet#diff(FSet, SetDiff.Handler)}.
+ *
+ * @author Scott L. Burson
+ * @see MapDiff
+ */
+
+public final class SetDiff<Elt> {
+
+    /**
+     * Receives the differences found by {@link FSet#diff(FSet, SetDiff.Handler)}.
+     */
+    public interface Handler<Elt> {
+
+	/**
+	 * Called for each element of the new set that is not in the old one.
+	 */
+	void added(Elt elt);
+
+	/**
+	 * Called for each element of the old set that is not in the new one.
+	 */
+	void removed(Elt elt);
+
+    }
+
+    /**
+     * Returns the elements of the new set that are not in the old one.
+     */
+    public FSet<Elt> added() {
+	return added;
+    }
+
+    /**
+     * Returns the elements of the old set that are not in the new one.
+     */
+    public FSet<Elt> removed() {
+	return removed;
+    }
+
+    /**
+     * Returns true if the two sets had no differences.
+     */
+    public boolean isEmpty() {
+	return added.isEmpty() && removed.isEmpty();
+    }
+
+    public String toString() {
+	return "SetDiff[added: " + added + ", removed: " + removed + "]";
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private FSet<Elt> added, removed;
+
+    private SetDiff(FSet<Elt> empty) {
+	added = removed = empty;
+    }
+
+    // Collects the differences from `set' to `other' into sets starting from `empty',
+    // which should be an empty set of the class of `set'.  This has default
+    // (package-wide) access so the `diff' methods of the set classes can use it.
+    /*pkg*/ static <Elt> SetDiff<Elt> collect(FSet<Elt> set, FSet<? extends Elt> other,
+					      FSet<Elt> empty) {
+	final SetDiff<Elt> res = new SetDiff<Elt>(empty);
+	set.diff(other, new Handler<Elt>() {
+		public void added(Elt elt) {
+		    res.added = res.added.with(elt);
+		}
+		public void removed(Elt elt) {
+		    res.removed = res.removed.with(elt);
+		}
+	    });
+	return res;
+    }
+
+}
@@ -0,0 +1,1183 @@
+/*
+ * Snapshot.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+/**
+ * A compact binary format for saving collections and loading them again quickly.
+ * Java serialization writes each element as a full object and, when reading, adds
+ * the elements back one at a time; for a hash collection that means recomputing
+ * every element's hash code.  A snapshot instead writes the elements in the
+ * collection's own internal order using an {@link Snapshot.Encoder} supplied by the
+ * caller.  A hash collection's snapshot also includes the hash codes it has stored.
+ * Reading a snapshot rebuilds the tree bottom-up in linear time, calling neither
+ * <code>hashCode</code> nor the comparator.
+ *
+ * <p>There is a <code>write</code> method, and a matching <code>read</code>
+ * method, for each of the collection classes: <code>FHashSet</code>,
+ * <code>FCachedHashSet</code>, <code>FLinkedHashSet</code>, <code>FTreeSet</code>,
+ * <code>FIntSet</code>, <code>FLongSet</code>, <code>FHashMap</code>,
+ * <code>FCachedHashMap</code>, <code>FLinkedHashMap</code>, <code>FTreeMap</code>,
+ * <code>FIntMap</code>, <code>FLongMap</code>, <code>FTreeList</code>,
+ * <code>FDequeList</code>, and <code>FIndexedList</code>.  As the methods are
+ * overloaded on those classes, rather than taking an <code>FSet</code> or
+ * <code>FMap</code>, a collection of any other class is rejected at compile time.
+ * (<code>FMappedHashMap</code> has its own file format.)  The exceptions to reading
+ * in linear time without calling <code>hashCode</code> are noted on the
+ * <code>read</code> methods.
+ *
+ * <p>Snapshots are written to an {@link Snapshot.Output} and read from an
+ * {@link Snapshot.Input}.  Each of these works on either a channel, such as a
+ * <code>FileChannel</code>, or a <code>ByteBuffer</code>; reading from a buffer
+ * returned by <code>FileChannel.map</code> avoids copying the file.  Any number of
+ * snapshots can be written to one <code>Output</code> in sequence, and read back in
+ * the same order.  To save many versions of a collection, which share most of their
+ * structure, use a {@link Snapshot.SharedWriter}, which writes each shared subtree
+ * only once.
+ *
+ * <p>Because the stored hash codes are used as they are, a hash collection's
+ * snapshot should be read only in a JVM in which its elements have the same hash
+ * codes, as for <code>FCachedHashSet</code>'s serialized form.  Likewise, a sorted
+ * collection must be read with a comparator that orders its elements the same way as
+ * the one it was written with.  Reading checks the format, and that the stored hash
+ * codes are in order, but it can't check the comparator.
+ *
+ * @author Scott L. Burson
+ */
+
+public final class Snapshot {
+
+    /**
+     * Converts values of some type to and from the bytes of a snapshot.  An
+     * <code>Encoder</code> has to handle every value that can appear in the
+     * collections it's used with, including <code>null</code> if they can contain it.
+     *
+     * @param T the type of the values
+     */
+    public interface Encoder<T> {
+
+	/**
+	 * Writes <code>x</code> to <code>out</code>.
+	 */
+	void encode(T x, Output out) throws IOException;
+
+	/**
+	 * Reads a value written by <code>encode</code> from <code>in</code>.
+	 */
+	T decode(Input in) throws IOException;
+
+    }
+
+    /**
+     * Encodes <code>String</code>s, including <code>null</code>, as UTF-8.
+     */
+    public static final Encoder<String> STRINGS = new Encoder<String>() {
+	    public void encode(String x, Output out) throws IOException {
+		out.writeString(x);
+	    }
+	    public String decode(Input in) throws IOException {
+		return in.readString();
+	    }
+	};
+
+    /**
+     * Encodes <code>Integer</code>s as four bytes.  Doesn't accept <code>null</code>.
+     */
+    public static final Encoder<Integer> INTEGERS = new Encoder<Integer>() {
+	    public void encode(Integer x, Output out) throws IOException {
+		out.writeInt(x);
+	    }
+	    public Integer decode(Input in) throws IOException {
+		return in.readInt();
+	    }
+	};
+
+    /**
+     * Encodes <code>Long</code>s as eight bytes.  Doesn't accept <code>null</code>.
+     */
+    public static final Encoder<Long> LONGS = new Encoder<Long>() {
+	    public void encode(Long x, Output out) throws IOException {
+		out.writeLong(x);
+	    }
+	    public Long decode(Input in) throws IOException {
+		return in.readLong();
+	    }
+	};
+
+    /**
+     * Where snapshots are written.  Writes to a channel are buffered;
+     * <code>flush</code> must be called when done.  When writing to a
+     * <code>ByteBuffer</code>, a snapshot that doesn't fit throws
+     * <code>BufferOverflowException</code>.  Multi-byte values are written
+     * big-endian.  An <code>Output</code> is not thread-safe.
+     */
+    public static final class Output implements Flushable {
+
+	/**
+	 * Constructs an <code>Output</code> that writes to <code>channel</code>.
+	 */
+	public Output(WritableByteChannel channel) {
+	    this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs an <code>Output</code> that writes to <code>channel</code>,
+	 * buffering up to <code>buffer_size</code> bytes at a time.
+	 */
+	public Output(WritableByteChannel channel, int buffer_size) {
+	    this.channel = channel;
+	    buf = ByteBuffer.allocate(Math.max(buffer_size, MIN_BUFFER_SIZE));
+	    start = 0;
+	}
+
+	/**
+	 * Constructs an <code>Output</code> that writes into <code>buffer</code>,
+	 * starting at its position, and sets its byte order to big-endian.
+	 */
+	public Output(ByteBuffer buffer) {
+	    channel = null;
+	    buf = buffer.order(ByteOrder.BIG_ENDIAN);
+	    start = buffer.position();
+	}
+
+	public void writeByte(int x) throws IOException {
+	    room(1);
+	    buf.put((byte)x);
+	}
+
+	public void writeInt(int x) throws IOException {
+	    room(4);
+	    buf.putInt(x);
+	}
+
+	public void writeLong(long x) throws IOException {
+	    room(8);
+	    buf.putLong(x);
+	}
+
+	public void writeDouble(double x) throws IOException {
+	    room(8);
+	    buf.putDouble(x);
+	}
+
+	/**
+	 * Writes <code>x</code>, taken as unsigned, in one to five bytes, seven bits
+	 * per byte; smaller values take fewer bytes.
+	 */
+	public void writeVarInt(int x) throws IOException {
+	    room(5);
+	    while ((x & ~0x7F) != 0) {
+		buf.put((byte)(x | 0x80));
+		x >>>= 7;
+	    }
+	    buf.put((byte)x);
+	}
+
+	public void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+	    if (channel == null) buf.put(bytes, offset, length);
+	    else while (length > 0) {
+		if (!buf.hasRemaining()) drain();
+		int n = Math.min(length, buf.remaining());
+		buf.put(bytes, offset, n);
+		offset += n;
+		length -= n;
+	    }
+	}
+
+	/**
+	 * Writes <code>str</code>, which may be <code>null</code>, as its UTF-8
+	 * length plus one followed by its UTF-8 bytes.
+	 */
+	public void writeString(String str) throws IOException {
+	    if (str == null) writeVarInt(0);
+	    else {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(bytes.length + 1);
+		writeBytes(bytes, 0, bytes.length);
+	    }
+	}
+
+	/**
+	 * Writes any buffered bytes to the channel.  Does nothing when writing to a
+	 * <code>ByteBuffer</code>.
+	 */
+	public void flush() throws IOException {
+	    if (channel != null) drain();
+	}
+
+	// Returns the number of bytes written so far, including any still buffered;
+	// for `FMappedHashMap.write', which records where each pair starts.
+	/*pkg*/ long written() {
+	    return drained + buf.position() - start;
+	}
+
+	private final WritableByteChannel channel;	// null if writing to `buf'
+	private final ByteBuffer buf;
+	private final int start;	// the position of `buf' when we started
+	private long drained = 0;	// bytes written to `channel'
+
+	// Makes room for `n' more bytes, if we're writing to a channel.
+	private void room(int n) throws IOException {
+	    if (channel != null && buf.remaining() < n) drain();
+	}
+
+	private void drain() throws IOException {
+	    drained += buf.position();
+	    buf.flip();
+	    while (buf.hasRemaining()) channel.write(buf);
+	    buf.clear();
+	}
+    }
+
+    /**
+     * Where snapshots are read from.  Reads from a channel are buffered, so the
+     * channel's position after reading is unspecified.  When reading from a
+     * <code>ByteBuffer</code>, its position is advanced past what has been read.
+     * An <code>Input</code> is not thread-safe.
+     */
+    public static final class Input {
+
+	/**
+	 * Constructs an <code>Input</code> that reads from <code>channel</code>.
+	 */
+	public Input(ReadableByteChannel channel) {
+	    this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs an <code>Input</code> that reads from <code>channel</code>,
+	 * buffering up to <code>buffer_size</code> bytes at a time.
+	 */
+	public Input(ReadableByteChannel channel, int buffer_size) {
+	    this.channel = channel;
+	    buf = ByteBuffer.allocate(Math.max(buffer_size, MIN_BUFFER_SIZE));
+	    buf.limit(0);
+	}
+
+	/**
+	 * Constructs an <code>Input</code> that reads from <code>buffer</code>,
+	 * starting at its position, and sets its byte order to big-endian.
+	 */
+	public Input(ByteBuffer buffer) {
+	    channel = null;
+	    buf = buffer.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	public byte readByte() throws IOException {
+	    need(1);
+	    return buf.get();
+	}
+
+	public int readInt() throws IOException {
+	    need(4);
+	    return buf.getInt();
+	}
+
+	public long readLong() throws IOException {
+	    need(8);
+	    return buf.getLong();
+	}
+
+	public double readDouble() throws IOException {
+	    need(8);
+	    return buf.getDouble();
+	}
+
+	/**
+	 * Reads an unsigned value written by <code>Output.writeVarInt</code>.
+	 */
+	public int readVarInt() throws IOException {
+	    int res = 0;
+	    for (int shift = 0; shift < 35; shift += 7) {
+		byte b = readByte();
+		res |= (b & 0x7F) << shift;
+		if (b >= 0) return res;
+	    }
+	    throw new StreamCorruptedException("Invalid variable-length integer");
+	}
+
+	public void readBytes(byte[] bytes, int offset, int length) throws IOException {
+	    while (length > 0) {
+		if (!buf.hasRemaining()) need(1);
+		int n = Math.min(length, buf.remaining());
+		buf.get(bytes, offset, n);
+		offset += n;
+		length -= n;
+	    }
+	}
+
+	/**
+	 * Reads a string, or <code>null</code>, written by
+	 * <code>Output.writeString</code>.
+	 */
+	public String readString() throws IOException {
+	    int len = readVarInt();
+	    if (len == 0) return null;
+	    else if (len < 0) throw new StreamCorruptedException("Invalid string length");
+	    else {
+		byte[] bytes = new byte[len - 1];
+		readBytes(bytes, 0, len - 1);
+		return new String(bytes, StandardCharsets.UTF_8);
+	    }
+	}
+
+	private final ReadableByteChannel channel;	// null if reading from `buf'
+	private final ByteBuffer buf;
+
+	// Makes sure `buf' holds at least `n' more bytes.
+	private void need(int n) throws IOException {
+	    if (buf.remaining() >= n) return;
+	    else if (channel == null) throw new EOFException();
+	    buf.compact();
+	    while (buf.position() < n) {
+		if (channel.read(buf) < 0) {
+		    buf.flip();
+		    throw new EOFException();
+		}
+	    }
+	    buf.flip();
+	}
+    }
+
+    /**
+     * Writes a snapshot of <code>set</code> to <code>out</code>, including the hash
+     * codes the set has stored.
+     *
+     * @param set the set to write
+     * @param enc the encoder for the elements
+     * @param out where to write it
+     */
+    public static <Elt> void write(FHashSet<Elt> set, Encoder<? super Elt> enc, Output out)
+	    throws IOException {
+	writeHeader(HASH_SET, set.size(), out);
+	FHashSet.writeSnapshot(set.tree, (Encoder<Object>)enc, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FHashSet, Encoder, Output)} or
+     * {@link #write(FCachedHashSet, Encoder, Output)}.  Takes O(n) time and doesn't
+     * call <code>hashCode</code>.
+     *
+     * @param enc the encoder for the elements
+     * @param in where to read it from
+     * @return the set
+     * @throws StreamCorruptedException if the input isn't a snapshot of a hash set
+     */
+    public static <Elt> FHashSet<Elt> readHashSet(Encoder<? extends Elt> enc, Input in)
+	    throws IOException {
+	int size = readHeader(HASH_SET, in);
+	return FHashSet.make(FHashSet.readSnapshot(size, (Encoder<Object>)enc, in));
+    }
+
+    /**
+     * Writes a snapshot of <code>set</code> to <code>out</code>.  The snapshot is the
+     * same as that of a <code>FHashSet</code> with the same elements.
+     *
+     * @param set the set to write
+     * @param enc the encoder for the elements
+     * @param out where to write it
+     */
+    public static <Elt> void write(FCachedHashSet<Elt> set, Encoder<? super Elt> enc,
+				   Output out)
+	    throws IOException {
+	write(set.set, enc, out);
+    }
+
+    /**
+     * Like {@link #readHashSet}, but returns a <code>FCachedHashSet</code>.
+     */
+    public static <Elt> FCachedHashSet<Elt> readCachedHashSet(Encoder<? extends Elt> enc,
+							      Input in)
+	    throws IOException {
+	return FCachedHashSet.make(Snapshot.<Elt>readHashSet(enc, in));
+    }
+
+    /**
+     * Writes a snapshot of <code>map</code> to <code>out</code>, including its
+     * default and the hash codes it has stored for its keys.
+     *
+     * @param map the map to write
+     * @param kenc the encoder for the keys
+     * @param venc the encoder for the values and the default
+     * @param out where to write it
+     */
+    public static <Key, Val> void write(FHashMap<Key, Val> map, Encoder<? super Key> kenc,
+					Encoder<? super Val> venc, Output out)
+	    throws IOException {
+	writeHeader(HASH_MAP, map.size(), out);
+	writeDefault(map.getDefault(), (Encoder<Object>)venc, out);
+	FHashMap.writeSnapshot(map.tree, (Encoder<Object>)kenc, (Encoder<Object>)venc, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FHashMap, Encoder, Encoder, Output)}
+     * or {@link #write(FCachedHashMap, Encoder, Encoder, Output)}.  Takes O(n) time
+     * and doesn't call <code>hashCode</code>.
+     *
+     * @param kenc the encoder for the keys
+     * @param venc the encoder for the values and the default
+     * @param in where to read it from
+     * @return the map
+     * @throws StreamCorruptedException if the input isn't a snapshot of a hash map
+     */
+    public static <Key, Val> FHashMap<Key, Val> readHashMap(Encoder<? extends Key> kenc,
+							    Encoder<? extends Val> venc,
+							    Input in)
+	    throws IOException {
+	int size = readHeader(HASH_MAP, in);
+	Val dflt = (Val)readDefault((Encoder<Object>)venc, in);
+	return new FHashMap<Key, Val>(FHashMap.readSnapshot(size, (Encoder<Object>)kenc,
+							    (Encoder<Object>)venc, in),
+				      dflt);
+    }
+
+    /**
+     * Writes a snapshot of <code>map</code> to <code>out</code>.  The snapshot is the
+     * same as that of a <code>FHashMap</code> with the same contents.
+     *
+     * @param map the map to write
+     * @param kenc the encoder for the keys
+     * @param venc the encoder for the values and the default
+     * @param out where to write it
+     */
+    public static <Key, Val> void write(FCachedHashMap<Key, Val> map,
+					Encoder<? super Key> kenc, Encoder<? super Val> venc,
+					Output out)
+	    throws IOException {
+	write(map.map, kenc, venc, out);
+    }
+
+    /**
+     * Like {@link #readHashMap}, but returns a <code>FCachedHashMap</code>.
+     */
+    public static <Key, Val> FCachedHashMap<Key, Val>
+	readCachedHashMap(Encoder<? extends Key> kenc, Encoder<? extends Val> venc, Input in)
+	    throws IOException {
+	return FCachedHashMap.make(Snapshot.<Key, Val>readHashMap(kenc, venc, in));
+    }
+
+    /**
+     * Writes a snapshot of <code>set</code> to <code>out</code>.  Its comparator is
+     * not written.
+     *
+     * @param set the set to write
+     * @param enc the encoder for the elements
+     * @param out where to write it
+     */
+    public static <Elt> void write(FTreeSet<Elt> set, Encoder<? super Elt> enc, Output out)
+	    throws IOException {
+	writeHeader(TREE_SET, set.size(), out);
+	FTreeSet.writeSnapshot(set.tree, (Encoder<Object>)enc, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FTreeSet, Encoder, Output)}.  Takes
+     * O(n) time and doesn't call <code>comp</code>, which must order the elements the
+     * same way as the comparator of the set that was written.
+     *
+     * @param enc the encoder for the elements
+     * @param comp the comparator, or <code>null</code> for the natural ordering
+     * @param in where to read it from
+     * @return the set
+     * @throws StreamCorruptedException if the input isn't a snapshot of a tree set
+     */
+    public static <Elt> FTreeSet<Elt> readTreeSet(Encoder<? extends Elt> enc,
+						  Comparator<? super Elt> comp, Input in)
+	    throws IOException {
+	int size = readHeader(TREE_SET, in);
+	return FTreeSet.make(FTreeSet.readSnapshot(size, (Encoder<Object>)enc, in), comp);
+    }
+
+    /**
+     * Writes a snapshot of <code>map</code> to <code>out</code>, including its
+     * default.  Its comparator is not written.
+     *
+     * @param map the map to write
+     * @param kenc the encoder for the keys
+     * @param venc the encoder for the values and the default
+     * @param out where to write it
+     */
+    public static <Key, Val> void write(FTreeMap<Key, Val> map, Encoder<? super Key> kenc,
+					Encoder<? super Val> venc, Output out)
+	    throws IOException {
+	writeHeader(TREE_MAP, map.size(), out);
+	writeDefault(map.getDefault(), (Encoder<Object>)venc, out);
+	FTreeMap.writeSnapshot(map.tree, (Encoder<Object>)kenc, (Encoder<Object>)venc, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FTreeMap, Encoder, Encoder, Output)}.
+     * Takes O(n) time and doesn't call <code>comp</code>, which must order the keys
+     * the same way as the comparator of the map that was written.
+     *
+     * @param kenc the encoder for the keys
+     * @param venc the encoder for the values and the default
+     * @param comp the comparator, or <code>null</code> for the natural ordering
+     * @param in where to read it from
+     * @return the map
+     * @throws StreamCorruptedException if the input isn't a snapshot of a tree map
+     */
+    public static <Key, Val> FTreeMap<Key, Val> readTreeMap(Encoder<? extends Key> kenc,
+							    Encoder<? extends Val> venc,
+							    Comparator<? super Key> comp,
+							    Input in)
+	    throws IOException {
+	int size = readHeader(TREE_MAP, in);
+	Val dflt = (Val)readDefault((Encoder<Object>)venc, in);
+	return new FTreeMap<Key, Val>(FTreeMap.readSnapshot(size, (Encoder<Object>)kenc,
+							    (Encoder<Object>)venc, in),
+				      dflt, (Comparator<Key>)comp);
+    }
+
+    /**
+     * Writes a snapshot of <code>list</code> to <code>out</code>.  Its comparator
+     * is not written.
+     *
+     * @param list the list to write
+     * @param enc the encoder for the elements
+     * @param out where to write it
+     */
+    public static <Elt> void write(FTreeList<Elt> list, Encoder<? super Elt> enc, Output out)
+	    throws IOException {
+	writeList(list, enc, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FTreeList, Encoder, Output)}, or by
+     * the <code>write</code> method for <code>FDequeList</code> or
+     * <code>FIndexedList</code>.  Takes O(n) time.
+     *
+     * @param enc the encoder for the elements
+     * @param comp the comparator for the elements, or <code>null</code> for the
+     * natural ordering
+     * @param in where to read it from
+     * @return the list
+     * @throws StreamCorruptedException if the input isn't a snapshot of a list
+     */
+    public static <Elt> FTreeList<Elt> readTreeList(Encoder<? extends Elt> enc,
+						    Comparator<? super Elt> comp, Input in)
+	    throws IOException {
+	int size = readHeader(LIST, in);
+	Object[] ary = new Object[size];
+	for (int i = 0; i < size; ++i) ary[i] = enc.decode(in);
+	return new FTreeList<Elt>(FTreeList.fromCollection(ary), comp);
+    }
+
+    /**
+     * Writes a snapshot of <code>list</code> to <code>out</code>.  The snapshot is
+     * the same as that of a <code>FTreeList</code> with the same elements.
+     *
+     * @param list the list to write
+     * @param enc the encoder for the elements
+     * @param out where to write it
+     */
+    public static <Elt> void write(FDequeList<Elt> list, Encoder<? super Elt> enc,
+				   Output out)
+	    throws IOException {
+	writeList(list, enc, out);
+    }
+
+    /**
+     * Like {@link #readTreeList}, but returns a <code>FDequeList</code>.
+     */
+    public static <Elt> FDequeList<Elt> readDequeList(Encoder<? extends Elt> enc,
+						      Comparator<? super Elt> comp, Input in)
+	    throws IOException {
+	return new FDequeList<Elt>(Snapshot.<Elt>readTreeList(enc, comp, in), comp);
+    }
+
+    /**
+     * Writes a snapshot of <code>list</code> to <code>out</code>.  The snapshot is
+     * the same as that of a <code>FTreeList</code> with the same elements; the index
+     * is not written.
+     *
+     * @param list the list to write
+     * @param enc the encoder for the elements
+     * @param out where to write it
+     */
+    public static <Elt> void write(FIndexedList<Elt> list, Encoder<? super Elt> enc,
+				   Output out)
+	    throws IOException {
+	writeList(list, enc, out);
+    }
+
+    /**
+     * Like {@link #readTreeList}, but returns a <code>FIndexedList</code>.  Unlike
+     * the other <code>read</code> methods, this one calls <code>hashCode</code> on
+     * each element, and takes O(n log n) time, since the list's index of its elements
+     * has to be rebuilt.
+     */
+    public static <Elt> FIndexedList<Elt> readIndexedList(Encoder<? extends Elt> enc,
+							  Input in)
+	    throws IOException {
+	return new FIndexedList<Elt>(Snapshot.<Elt>readTreeList(enc, null, in));
+    }
+
+    /**
+     * Writes a snapshot of <code>set</code> to <code>out</code>, with the elements in
+     * the order in which they were added, each with the hash code the set has stored
+     * for it.
+     *
+     * @param set the set to write
+     * @param enc the encoder for the elements
+     * @param out where to write it
+     */
+    public static <Elt> void write(FLinkedHashSet<Elt> set, Encoder<? super Elt> enc,
+				   Output out)
+	    throws IOException {
+	writeHeader(LINKED_HASH_SET, set.size(), out);
+	set.writeSnapshot((Encoder<Object>)enc, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FLinkedHashSet, Encoder, Output)}.
+     * Doesn't call <code>hashCode</code>, but as the stored hash codes aren't in
+     * order, takes O(n log n) time to sort them.
+     *
+     * @param enc the encoder for the elements
+     * @param in where to read it from
+     * @return the set
+     * @throws StreamCorruptedException if the input isn't a snapshot of a linked hash
+     * set
+     */
+    public static <Elt> FLinkedHashSet<Elt> readLinkedHashSet(Encoder<? extends Elt> enc,
+							      Input in)
+	    throws IOException {
+	int size = readHeader(LINKED_HASH_SET, in);
+	return FLinkedHashSet.readSnapshot(size, (Encoder<Object>)enc, in);
+    }
+
+    /**
+     * Writes a snapshot of <code>map</code> to <code>out</code>, including its
+     * default, with the pairs in the order in which their keys were added, each with
+     * the hash code the map has stored for its key.
+     *
+     * @param map the map to write
+     * @param kenc the encoder for the keys
+     * @param venc the encoder for the values and the default
+     * @param out where to write it
+     */
+    public static <Key, Val> void write(FLinkedHashMap<Key, Val> map,
+					Encoder<? super Key> kenc, Encoder<? super Val> venc,
+					Output out)
+	    throws IOException {
+	writeHeader(LINKED_HASH_MAP, map.size(), out);
+	writeDefault(map.getDefault(), (Encoder<Object>)venc, out);
+	map.writeSnapshot((Encoder<Object>)kenc, (Encoder<Object>)venc, out);
+    }
+
+    /**
+     * Reads a snapshot written by
+     * {@link #write(FLinkedHashMap, Encoder, Encoder, Output)}.  Doesn't call
+     * <code>hashCode</code>, but as the stored hash codes aren't in order, takes
+     * O(n log n) time to sort them.
+     *
+     * @param kenc the encoder for the keys
+     * @param venc the encoder for the values and the default
+     * @param in where to read it from
+     * @return the map
+     * @throws StreamCorruptedException if the input isn't a snapshot of a linked hash
+     * map
+     */
+    public static <Key, Val> FLinkedHashMap<Key, Val>
+	readLinkedHashMap(Encoder<? extends Key> kenc, Encoder<? extends Val> venc, Input in)
+	    throws IOException {
+	int size = readHeader(LINKED_HASH_MAP, in);
+	Val dflt = (Val)readDefault((Encoder<Object>)venc, in);
+	return FLinkedHashMap.readSnapshot(size, dflt, (Encoder<Object>)kenc,
+					   (Encoder<Object>)venc, in);
+    }
+
+    /**
+     * Writes a snapshot of <code>set</code> to <code>out</code>.  No encoder is
+     * needed; the elements are written as four bytes each.
+     *
+     * @param set the set to write
+     * @param out where to write it
+     */
+    public static void write(FIntSet set, Output out) throws IOException {
+	writeHeader(INT_SET, set.size(), out);
+	FIntSet.writeSnapshot(set.tree, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FIntSet, Output)}.  Takes O(n) time.
+     *
+     * @param in where to read it from
+     * @return the set
+     * @throws StreamCorruptedException if the input isn't a snapshot of an
+     * <code>FIntSet</code>
+     */
+    public static FIntSet readIntSet(Input in) throws IOException {
+	int size = readHeader(INT_SET, in);
+	return FIntSet.make(FIntSet.readSnapshot(size, in));
+    }
+
+    /**
+     * Writes a snapshot of <code>map</code> to <code>out</code>, including its
+     * default.  The keys are written as four bytes each.
+     *
+     * @param map the map to write
+     * @param venc the encoder for the values and the default
+     * @param out where to write it
+     */
+    public static <Val> void write(FIntMap<Val> map, Encoder<? super Val> venc, Output out)
+	    throws IOException {
+	writeHeader(INT_MAP, map.size(), out);
+	writeDefault(map.getDefault(), (Encoder<Object>)venc, out);
+	FIntMap.writeSnapshot(map.tree, (Encoder<Object>)venc, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FIntMap, Encoder, Output)}.  Takes
+     * O(n) time.
+     *
+     * @param venc the encoder for the values and the default
+     * @param in where to read it from
+     * @return the map
+     * @throws StreamCorruptedException if the input isn't a snapshot of an
+     * <code>FIntMap</code>
+     */
+    public static <Val> FIntMap<Val> readIntMap(Encoder<? extends Val> venc, Input in)
+	    throws IOException {
+	int size = readHeader(INT_MAP, in);
+	Val dflt = (Val)readDefault((Encoder<Object>)venc, in);
+	return new FIntMap<Val>(FIntMap.readSnapshot(size, (Encoder<Object>)venc, in), dflt);
+    }
+
+    /**
+     * Writes a snapshot of <code>set</code> to <code>out</code>.  No encoder is
+     * needed; the elements are written as eight bytes each.
+     *
+     * @param set the set to write
+     * @param out where to write it
+     */
+    public static void write(FLongSet set, Output out) throws IOException {
+	writeHeader(LONG_SET, set.size(), out);
+	FLongSet.writeSnapshot(set.tree, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FLongSet, Output)}.  Takes O(n) time.
+     *
+     * @param in where to read it from
+     * @return the set
+     * @throws StreamCorruptedException if the input isn't a snapshot of an
+     * <code>FLongSet</code>
+     */
+    public static FLongSet readLongSet(Input in) throws IOException {
+	int size = readHeader(LONG_SET, in);
+	return FLongSet.make(FLongSet.readSnapshot(size, in));
+    }
+
+    /**
+     * Writes a snapshot of <code>map</code> to <code>out</code>, including its
+     * default.  The keys are written as eight bytes each.
+     *
+     * @param map the map to write
+     * @param venc the encoder for the values and the default
+     * @param out where to write it
+     */
+    public static <Val> void write(FLongMap<Val> map, Encoder<? super Val> venc, Output out)
+	    throws IOException {
+	writeHeader(LONG_MAP, map.size(), out);
+	writeDefault(map.getDefault(), (Encoder<Object>)venc, out);
+	FLongMap.writeSnapshot(map.tree, (Encoder<Object>)venc, out);
+    }
+
+    /**
+     * Reads a snapshot written by {@link #write(FLongMap, Encoder, Output)}.  Takes
+     * O(n) time.
+     *
+     * @param venc the encoder for the values and the default
+     * @param in where to read it from
+     * @return the map
+     * @throws StreamCorruptedException if the input isn't a snapshot of an
+     * <code>FLongMap</code>
+     */
+    public static <Val> FLongMap<Val> readLongMap(Encoder<? extends Val> venc, Input in)
+	    throws IOException {
+	int size = readHeader(LONG_MAP, in);
+	Val dflt = (Val)readDefault((Encoder<Object>)venc, in);
+	return new FLongMap<Val>(FLongMap.readSnapshot(size, (Encoder<Object>)venc, in), dflt);
+    }
+
+    /**
+     * Writes many versions of collections so that the structure they share is
+     * written only once.  Each collection is written along with the shape of its
+     * tree, and any subtree that this <code>SharedWriter</code> has already written,
+     * as part of an earlier collection of the same kind, is written as a reference to
+     * it.  A {@link Snapshot.SharedReader} reading the collections back in the same
+     * order restores the sharing.  Both the size of the output and the heap the
+     * collections take after reading are proportional to the number of distinct
+     * subtrees, rather than to the number of versions times their size.
+     *
+     * <p>The writer remembers every subtree it has written, so they stay reachable
+     * until it is discarded.  Collections of the same kind written by one writer
+     * should all use the same encoders.  Other snapshots can be written to the same
+     * <code>Output</code> in between.
+     */
+    public static final class SharedWriter {
+
+	/**
+	 * Constructs a <code>SharedWriter</code> that writes to <code>out</code>.
+	 */
+	public SharedWriter(Output out) {
+	    this.out = out;
+	}
+
+	/**
+	 * Writes <code>set</code>, referring to any subtrees of it already written.
+	 *
+	 * @param set the set to write
+	 * @param enc the encoder for the elements
+	 */
+	public <Elt> void write(FHashSet<Elt> set, Encoder<? super Elt> enc)
+		throws IOException {
+	    writeHeader(HASH_SET | SHARED, set.size(), out);
+	    FHashSet.writeShared(set.tree, (Encoder<Object>)enc, out, hash_set_ids);
+	}
+
+	/**
+	 * Writes <code>set</code>, referring to any subtrees of it already written,
+	 * including those of <code>FHashSet</code>s.
+	 *
+	 * @param set the set to write
+	 * @param enc the encoder for the elements
+	 */
+	public <Elt> void write(FCachedHashSet<Elt> set, Encoder<? super Elt> enc)
+		throws IOException {
+	    write(set.set, enc);
+	}
+
+	/**
+	 * Writes <code>map</code> and its default, referring to any subtrees of it
+	 * already written.
+	 *
+	 * @param map the map to write
+	 * @param kenc the encoder for the keys
+	 * @param venc the encoder for the values and the default
+	 */
+	public <Key, Val> void write(FHashMap<Key, Val> map, Encoder<? super Key> kenc,
+				     Encoder<? super Val> venc)
+		throws IOException {
+	    writeHeader(HASH_MAP | SHARED, map.size(), out);
+	    writeDefault(map.getDefault(), (Encoder<Object>)venc, out);
+	    FHashMap.writeShared(map.tree, (Encoder<Object>)kenc, (Encoder<Object>)venc, out,
+				 hash_map_ids);
+	}
+
+	/**
+	 * Writes <code>map</code> and its default, referring to any subtrees of it
+	 * already written, including those of <code>FHashMap</code>s.
+	 *
+	 * @param map the map to write
+	 * @param kenc the encoder for the keys
+	 * @param venc the encoder for the values and the default
+	 */
+	public <Key, Val> void write(FCachedHashMap<Key, Val> map, Encoder<? super Key> kenc,
+				     Encoder<? super Val> venc)
+		throws IOException {
+	    write(map.map, kenc, venc);
+	}
+
+	/**
+	 * Writes <code>set</code>, referring to any subtrees of it already written.
+	 * Its comparator is not written.
+	 *
+	 * @param set the set to write
+	 * @param enc the encoder for the elements
+	 */
+	public <Elt> void write(FTreeSet<Elt> set, Encoder<? super Elt> enc)
+		throws IOException {
+	    writeHeader(TREE_SET | SHARED, set.size(), out);
+	    FTreeSet.writeShared(set.tree, (Encoder<Object>)enc, out, tree_set_ids);
+	}
+
+	/**
+	 * Writes <code>map</code> and its default, referring to any subtrees of it
+	 * already written.  Its comparator is not written.
+	 *
+	 * @param map the map to write
+	 * @param kenc the encoder for the keys
+	 * @param venc the encoder for the values and the default
+	 */
+	public <Key, Val> void write(FTreeMap<Key, Val> map, Encoder<? super Key> kenc,
+				     Encoder<? super Val> venc)
+		throws IOException {
+	    writeHeader(TREE_MAP | SHARED, map.size(), out);
+	    writeDefault(map.getDefault(), (Encoder<Object>)venc, out);
+	    FTreeMap.writeShared(map.tree, (Encoder<Object>)kenc, (Encoder<Object>)venc, out,
+				 tree_map_ids);
+	}
+
+	private final Output out;
+	// The subtrees written so far, with their ids, for each kind of collection.
+	private final IdentityHashMap<Object, Integer> hash_set_ids =
+	    new IdentityHashMap<Object, Integer>();
+	private final IdentityHashMap<Object, Integer> hash_map_ids =
+	    new IdentityHashMap<Object, Integer>();
+	private final IdentityHashMap<Object, Integer> tree_set_ids =
+	    new IdentityHashMap<Object, Integer>();
+	private final IdentityHashMap<Object, Integer> tree_map_ids =
+	    new IdentityHashMap<Object, Integer>();
+    }
+
+    /**
+     * Reads collections written by a {@link Snapshot.SharedWriter}, in the order they
+     * were written, restoring the structure they shared.  Each one is read in time
+     * proportional to the number of subtrees that weren't written before it, without
+     * calling <code>hashCode</code> or the comparator.  Since the trees are restored
+     * as they were written, they aren't checked for balance or order; read only
+     * snapshots you trust.
+     *
+     * <p>The reader keeps every subtree it has read, so they stay reachable until it
+     * is discarded.
+     */
+    public static final class SharedReader {
+
+	/**
+	 * Constructs a <code>SharedReader</code> that reads from <code>in</code>.
+	 */
+	public SharedReader(Input in) {
+	    this.in = in;
+	}
+
+	/**
+	 * Reads a set written by <code>SharedWriter.write(FHashSet, Encoder)</code> or
+	 * <code>SharedWriter.write(FCachedHashSet, Encoder)</code>.
+	 *
+	 * @param enc the encoder for the elements
+	 * @return the set
+	 * @throws StreamCorruptedException if the input isn't a shared snapshot of a
+	 * hash set
+	 */
+	public <Elt> FHashSet<Elt> readHashSet(Encoder<? extends Elt> enc) throws IOException {
+	    int size = readHeader(HASH_SET | SHARED, in);
+	    FHashSet<Elt> res =
+		FHashSet.make(FHashSet.readShared((Encoder<Object>)enc, in, hash_sets));
+	    checkSize(res, size);
+	    return res;
+	}
+
+	/**
+	 * Like {@link #readHashSet}, but returns a <code>FCachedHashSet</code>.
+	 */
+	public <Elt> FCachedHashSet<Elt> readCachedHashSet(Encoder<? extends Elt> enc)
+		throws IOException {
+	    return FCachedHashSet.make(this.<Elt>readHashSet(enc));
+	}
+
+	/**
+	 * Reads a map written by <code>SharedWriter.write(FHashMap, Encoder,
+	 * Encoder)</code> or <code>SharedWriter.write(FCachedHashMap, Encoder,
+	 * Encoder)</code>.
+	 *
+	 * @param kenc the encoder for the keys
+	 * @param venc the encoder for the values and the default
+	 * @return the map
+	 * @throws StreamCorruptedException if the input isn't a shared snapshot of a
+	 * hash map
+	 */
+	public <Key, Val> FHashMap<Key, Val> readHashMap(Encoder<? extends Key> kenc,
+							 Encoder<? extends Val> venc)
+		throws IOException {
+	    int size = readHeader(HASH_MAP | SHARED, in);
+	    Val dflt = (Val)readDefault((Encoder<Object>)venc, in);
+	    FHashMap<Key, Val> res =
+		new FHashMap<Key, Val>(FHashMap.readShared((Encoder<Object>)kenc,
+							   (Encoder<Object>)venc, in, hash_maps),
+				       dflt);
+	    checkSize(res, size);
+	    return res;
+	}
+
+	/**
+	 * Like {@link #readHashMap}, but returns a <code>FCachedHashMap</code>.
+	 */
+	public <Key, Val> FCachedHashMap<Key, Val>
+	    readCachedHashMap(Encoder<? extends Key> kenc, Encoder<? extends Val> venc)
+		throws IOException {
+	    return FCachedHashMap.make(this.<Key, Val>readHashMap(kenc, venc));
+	}
+
+	/**
+	 * Reads a set written by <code>SharedWriter.write(FTreeSet, Encoder)</code>.
+	 * <code>comp</code> must order the elements the same way as the comparator of
+	 * the set that was written.
+	 *
+	 * @param enc the encoder for the elements
+	 * @param comp the comparator, or <code>null</code> for the natural ordering
+	 * @return the set
+	 * @throws StreamCorruptedException if the input isn't a shared snapshot of a
+	 * tree set
+	 */
+	public <Elt> FTreeSet<Elt> readTreeSet(Encoder<? extends Elt> enc,
+					       Comparator<? super Elt> comp)
+		throws IOException {
+	    int size = readHeader(TREE_SET | SHARED, in);
+	    FTreeSet<Elt> res =
+		FTreeSet.make(FTreeSet.readShared((Encoder<Object>)enc, in, tree_sets), comp);
+	    checkSize(res, size);
+	    return res;
+	}
+
+	/**
+	 * Reads a map written by <code>SharedWriter.write(FTreeMap, Encoder,
+	 * Encoder)</code>.  <code>comp</code> must order the keys the same way as the
+	 * comparator of the map that was written.
+	 *
+	 * @param kenc the encoder for the keys
+	 * @param venc the encoder for the values and the default
+	 * @param comp the comparator, or <code>null</code> for the natural ordering
+	 * @return the map
+	 * @throws StreamCorruptedException if the input isn't a shared snapshot of a
+	 * tree map
+	 */
+	public <Key, Val> FTreeMap<Key, Val> readTreeMap(Encoder<? extends Key> kenc,
+							 Encoder<? extends Val> venc,
+							 Comparator<? super Key> comp)
+		throws IOException {
+	    int size = readHeader(TREE_MAP | SHARED, in);
+	    Val dflt = (Val)readDefault((Encoder<Object>)venc, in);
+	    FTreeMap<Key, Val> res =
+		new FTreeMap<Key, Val>(FTreeMap.readShared((Encoder<Object>)kenc,
+							   (Encoder<Object>)venc, in, tree_maps),
+				       dflt, (Comparator<Key>)comp);
+	    checkSize(res, size);
+	    return res;
+	}
+
+	private final Input in;
+	// The subtrees read so far, by id, for each kind of collection.
+	private final ArrayList<Object> hash_sets = new ArrayList<Object>();
+	private final ArrayList<Object> hash_maps = new ArrayList<Object>();
+	private final ArrayList<Object> tree_sets = new ArrayList<Object>();
+	private final ArrayList<Object> tree_maps = new ArrayList<Object>();
+    }
+
+    /******************************************************************************/
+    /* Internals */
+
+    private Snapshot() { }
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+    // Enough for any single primitive value.
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    /* A snapshot starts with `MAGIC', `VERSION' [`byte'], the kind of collection
+     * [`byte'], and its size [`int'].  A map's snapshot goes on with a flag [`byte']
+     * saying whether it has a default, followed by the default if it does.  The rest
+     * is written by the `writeSnapshot' method of the collection class.  Elements
+     * and values are written by the caller's `Encoder's. */
+    private static final int MAGIC = 0x46536E70;	// "FSnp"
+    private static final int VERSION = 1;
+
+    private static final int HASH_SET = 1;
+    private static final int HASH_MAP = 2;
+    private static final int TREE_SET = 3;
+    private static final int TREE_MAP = 4;
+    private static final int LIST = 5;
+    // For `FMappedHashMap', whose files start with the same header.
+    /*pkg*/ static final int MAPPED_HASH_MAP = 6;
+    private static final int LINKED_HASH_SET = 7;
+    private static final int LINKED_HASH_MAP = 8;
+    private static final int INT_SET = 9;
+    private static final int INT_MAP = 10;
+    private static final int LONG_SET = 11;
+    private static final int LONG_MAP = 12;
+    // Or'ed into the kind when the tree is written by `SharedWriter'.
+    private static final int SHARED = 0x10;
+
+    /*pkg*/ static void writeHeader(int kind, int size, Output out) throws IOException {
+	out.writeInt(MAGIC);
+	out.writeByte(VERSION);
+	out.writeByte(kind);
+	out.writeInt(size);
+    }
+
+    // Returns the size.
+    /*pkg*/ static int readHeader(int kind, Input in) throws IOException {
+	if (in.readInt() != MAGIC) throw new StreamCorruptedException("Not a snapshot");
+	int version = in.readByte();
+	if (version != VERSION)
+	    throw new StreamCorruptedException("Unknown snapshot version " + version);
+	int k = in.readByte();
+	if (k != kind)
+	    throw new StreamCorruptedException("Snapshot of the wrong kind of collection");
+	int size = in.readInt();
+	if (size < 0) throw new StreamCorruptedException("Invalid snapshot size");
+	return size;
+    }
+
+    /*pkg*/ static void writeDefault(Object dflt, Encoder<Object> venc, Output out)
+	    throws IOException {
+	if (dflt == null) out.writeByte(0);
+	else {
+	    out.writeByte(1);
+	    venc.encode(dflt, out);
+	}
+    }
+
+    /*pkg*/ static Object readDefault(Encoder<Object> venc, Input in) throws IOException {
+	int flag = in.readByte();
+	if (flag == 0) return null;
+	else if (flag == 1) return venc.decode(in);
+	else throw new StreamCorruptedException("Invalid default flag");
+    }
+
+    // For the three list classes, whose snapshots are the same.
+    private static <Elt> void writeList(FList<Elt> list, Encoder<? super Elt> enc, Output out)
+	    throws IOException {
+	writeHeader(LIST, list.size(), out);
+	for (Elt e : list) enc.encode(e, out);
+    }
+
+    private static void checkSize(Collection<?> coll, int size) throws IOException {
+	if (coll.size() != size) throw new StreamCorruptedException("Invalid snapshot size");
+    }
+
+    private static void checkSize(FMap<?, ?> map, int size) throws IOException {
+	if (map.size() != size) throw new StreamCorruptedException("Invalid snapshot size");
+    }
+
+    // Returns the subtree with id `id', for the `readShared' methods of the
+    // collection classes.
+    /*pkg*/ static Object sharedSubtree(int id, ArrayList<Object> subtrees)
+	    throws IOException {
+	if (id < 0 || id >= subtrees.size())
+	    throw new StreamCorruptedException("Invalid subtree reference");
+	return subtrees.get(id);
+    }
+
+    // Reads the count of a group of equivalent members, which has to be at least one
+    // and no more than the `remaining' members the header says there are.  For the
+    // `readSnapshot' methods of the collection classes.
+    /*pkg*/ static int readCount(int remaining, Input in) throws IOException {
+	int count = in.readVarInt();
+	if (count < 1 || count > remaining)
+	    throw new StreamCorruptedException("Invalid snapshot group size");
+	return count;
+    }
+
+}
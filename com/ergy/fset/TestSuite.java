@@ -10,6 +10,15 @@
 package com.ergy.fset;
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.StreamSupport;
 
 public class TestSuite {
 
@@ -50,11 +59,268 @@ public class TestSuite {
 	    testFTreeMap(rand, i, fts);
 	    testFHashMap(rand, i, fhs);
 	    testFLinkedHashMap(rand, i);
+	    testFCachedHash(rand, i);
+	    testSnapshot(rand, i);
+	    if (i % 10 == 0) testSharedSnapshot(rand, i);
+	    if (i % 10 == 0) testFMappedHashMap(rand, i);
+	    testFVersionedMap(rand, i);
 	    testFTreeList(rand, i);
+	    testFDequeList(rand, i);
+	    testFIndexedList(rand, i);
+	    testFIntSet(rand, i);
+	    testFIntMap(rand, i);
+	    testIncrementalHashCode(rand, i);
+	    testSharedSubtrees(rand, i);
+	    testDiff(rand, i);
+	    testNavigable(rand, i, null);
+	    testNavigable(rand, i, TestComparator.Instance);
+	    testRank(rand, i);
+	    if (i % 100 == 0) testParallel(rand, i);
+	    if (i % 100 == 0) testFRef(rand, i);
 	}
 	println("All tests passed.");
     }
 
+    // Many threads update an `FAtomicMap' and an `FRef' at once, so that updates get
+    // combined; none may be lost, and a failing one must throw in its own thread.
+    static void testFRef(Random rand, int i) {
+	final FAtomicMap<MyInteger, Integer> fam = new FAtomicMap<MyInteger, Integer>();
+	final FRef<Integer> count = new FRef<Integer>(0);
+	final int nthreads = 8, nupdates = 2000;
+	final UnaryOperator<Integer> incr = new UnaryOperator<Integer>() {
+		public Integer apply(Integer x) {
+		    return x + 1;
+		}
+	    };
+	final UnaryOperator<Integer> fail = new UnaryOperator<Integer>() {
+		public Integer apply(Integer x) {
+		    throw new IllegalStateException();
+		}
+	    };
+	final boolean[] caught = new boolean[nthreads];
+	Thread[] threads = new Thread[nthreads];
+	for (int t = 0; t < nthreads; ++t) {
+	    final int tn = t;
+	    threads[t] = new Thread() {
+		    public void run() {
+			for (int j = 0; j < nupdates; ++j) {
+			    MyInteger key = new MyInteger(tn * nupdates + j);
+			    fam.with(key, j);
+			    if (j % 4 == 0) fam.less(key);
+			    count.update(incr);
+			    if (j == nupdates / 2) {
+				try {
+				    count.update(fail);
+				} catch (IllegalStateException e) {
+				    caught[tn] = true;
+				}
+			    }
+			}
+		    }
+		};
+	    threads[t].start();
+	}
+	try {
+	    for (Thread thread : threads) thread.join();
+	} catch (InterruptedException e) {
+	    throw new RuntimeException(e);
+	}
+	FHashMap<MyInteger, Integer> fhm = new FHashMap<MyInteger, Integer>();
+	for (int t = 0; t < nthreads; ++t)
+	    for (int j = 0; j < nupdates; ++j)
+		if (j % 4 != 0) fhm = fhm.with(new MyInteger(t * nupdates + j), j);
+	FHashMap<MyInteger, Integer> res = (FHashMap<MyInteger, Integer>)fam.get();
+	boolean all_caught = true;
+	for (boolean c : caught) all_caught &= c;
+	if (!res.verify() || !res.equals(fhm) || count.get() != nthreads * nupdates ||
+	    !all_caught) {
+	    println("FRef failed on iteration " + i);
+	    exit();
+	}
+	// An update function that updates the same `FRef' succeeds the first time,
+	// without contention, which makes the outer update go to the combiner; there,
+	// the inner call has to throw rather than wait for itself.
+	final FRef<Integer> ref = new FRef<Integer>(0);
+	boolean caught_reentry = false;
+	try {
+	    ref.update(new UnaryOperator<Integer>() {
+		    public Integer apply(Integer x) {
+			ref.update(incr);
+			return x + 10;
+		    }
+		});
+	} catch (IllegalStateException e) {
+	    caught_reentry = true;
+	}
+	if (!caught_reentry || ref.get() != 1 || ref.update(incr) != 2) {
+	    println("FRef reentry failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    // The parallel operations only fork on large trees, so this uses much bigger
+    // collections than the other tests, and runs only occasionally.
+    static void testParallel(Random rand, int i) {
+	FHashSet.Builder<MyInteger> fhsb0 = new FHashSet.Builder<MyInteger>();
+	FHashSet.Builder<MyInteger> fhsb1 = new FHashSet.Builder<MyInteger>();
+	FHashMap.Builder<MyInteger, MyInteger> fhmb = new FHashMap.Builder<MyInteger, MyInteger>();
+	TreeSet<MyInteger> ts0 = new TreeSet<MyInteger>(), ts1 = new TreeSet<MyInteger>();
+	TreeMap<MyInteger, MyInteger> tm = new TreeMap<MyInteger, MyInteger>();
+	for (int j = 0; j < 30000; ++j) {
+	    MyInteger R0 = new MyInteger(rand.nextInt(60000));
+	    MyInteger R1 = new MyInteger(rand.nextInt(60000));
+	    MyInteger V = new MyInteger(rand.nextInt(3));
+	    fhsb0.add(R0);
+	    fhsb1.add(R1);
+	    fhmb.put(R0, V);
+	    ts0.add(R0);
+	    ts1.add(R1);
+	    tm.put(R0, V);
+	}
+	FHashSet<MyInteger> fhs0 = fhsb0.build(), fhs1 = fhsb1.build();
+	FHashMap<MyInteger, MyInteger> fhm = fhmb.build();
+	FTreeSet<MyInteger> fts0 = new FTreeSet<MyInteger>(ts0, TestComparator.Instance);
+	FTreeSet<MyInteger> fts1 = new FTreeSet<MyInteger>(ts1, TestComparator.Instance);
+	FTreeMap<MyInteger, MyInteger> ftm = new FTreeMap<MyInteger, MyInteger>(tm, TestComparator.Instance);
+	FHashSet<MyInteger> fhsu = fhs0.parallelUnion(fhs1);
+	FHashSet<MyInteger> fhsi = fhs0.parallelIntersection(fhs1);
+	FHashSet<MyInteger> fhsd = fhs0.parallelDifference(fhs1);
+	if (!fhsu.verify() || !fhsu.equals(fhs0.union(fhs1)) ||
+	    !fhsi.verify() || !fhsi.equals(fhs0.intersection(fhs1)) ||
+	    !fhsd.verify() || !fhsd.equals(fhs0.difference(fhs1)) ||
+	    !fhsi.parallelIsSubset(fhs0) || !fhsd.parallelIsSubset(fhsu) ||
+	    fhs0.parallelIsSubset(fhsd) || fhsu.parallelIsSubset(fhs1)) {
+	    println("FHashSet parallel operations failed on iteration " + i);
+	    exit();
+	}
+	FTreeSet<MyInteger> ftsu = fts0.parallelUnion(fts1);
+	FTreeSet<MyInteger> ftsi = fts0.parallelIntersection(fts1);
+	FTreeSet<MyInteger> ftsd = fts0.parallelDifference(fts1);
+	if (!ftsu.verify() || !ftsu.equals(fts0.union(fts1)) ||
+	    !ftsi.verify() || !ftsi.equals(fts0.intersection(fts1)) ||
+	    !ftsd.verify() || !ftsd.equals(fts0.difference(fts1)) ||
+	    !ftsi.parallelIsSubset(fts0) || !ftsd.parallelIsSubset(ftsu) ||
+	    fts0.parallelIsSubset(ftsd) || ftsu.parallelIsSubset(fts1)) {
+	    println("FTreeSet parallel operations failed on iteration " + i);
+	    exit();
+	}
+	FHashMap<MyInteger, MyInteger> fhm2 = fhm.restrictedFrom(fhs1);
+	FHashMap<MyInteger, MyInteger> fhmu = fhm.parallelUnion(fhm2, myOp);
+	FHashMap<MyInteger, MyInteger> fhmt = fhm.parallelRestrictedTo(fhs1);
+	FHashMap<MyInteger, MyInteger> fhmf = fhm.parallelRestrictedFrom(fhs1);
+	if (!fhmu.verify() || !fhmu.equals(fhm.union(fhm2, myOp)) ||
+	    !fhmt.verify() || !fhmt.equals(fhm.restrictedTo(fhs1)) ||
+	    !fhmf.verify() || !fhmf.equals(fhm2)) {
+	    println("FHashMap parallel operations failed on iteration " + i);
+	    exit();
+	}
+	FTreeMap<MyInteger, MyInteger> ftm2 = ftm.restrictedFrom(fts1);
+	FTreeMap<MyInteger, MyInteger> ftmu = ftm.parallelUnion(ftm2, myOp);
+	FTreeMap<MyInteger, MyInteger> ftmt = ftm.parallelRestrictedTo(fts1);
+	FTreeMap<MyInteger, MyInteger> ftmf = ftm.parallelRestrictedFrom(fts1);
+	if (!ftmu.verify() || !ftmu.equals(ftm.union(ftm2, myOp)) ||
+	    !ftmt.verify() || !ftmt.equals(ftm.restrictedTo(fts1)) ||
+	    !ftmf.verify() || !ftmf.equals(ftm2)) {
+	    println("FTreeMap parallel operations failed on iteration " + i);
+	    exit();
+	}
+	// A list of runs, some in order and some not, with duplicates.
+	ArrayList<MyInteger> al = new ArrayList<MyInteger>();
+	for (int j = 0; j < 30000; ++j)
+	    al.add(new MyInteger(j % 1000 < 500 ? j : rand.nextInt(60000)));
+	FTreeList<MyInteger> ftl = new FTreeList<MyInteger>(al);
+	FTreeList<MyInteger> ftls = ftl.parallelSorted(TestComparator.Instance);
+	al.sort(TestComparator.Instance);
+	if (!ftls.verify() || !ftls.equals(al) ||
+	    ftls.parallelSorted(TestComparator.Instance) != ftls) {
+	    println("FTreeList parallelSorted failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    // Splits the collection all the way down, and checks that the pieces, taken in
+    // order, give the same elements as the iterator, and that the sizes are exact.
+    static <T> void testSpliterator(String what, Iterable<T> coll, int size, int i) {
+	Spliterator<T> spl = coll.spliterator();
+	int sized = Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.IMMUTABLE;
+	ArrayList<T> elts = new ArrayList<T>(), expected = new ArrayList<T>();
+	for (T x : coll) expected.add(x);
+	ArrayList<T> each = new ArrayList<T>();
+	coll.forEach(adder(each));
+	if ((spl.characteristics() & sized) != sized || spl.estimateSize() != size ||
+	    !splitAll(spl, elts) || !elts.equals(expected) || !each.equals(expected) ||
+	    StreamSupport.stream(coll.spliterator(), true).count() != size) {
+	    println(what + " spliterator failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    static <T> boolean splitAll(Spliterator<T> spl, final List<T> elts) {
+	long size = spl.estimateSize();
+	Spliterator<T> prefix = spl.trySplit();
+	if (prefix != null)
+	    return prefix.estimateSize() + spl.estimateSize() == size &&
+		   splitAll(prefix, elts) && splitAll(spl, elts);
+	int n0 = elts.size();
+	Consumer<T> adder = adder(elts);
+	if (!spl.tryAdvance(adder)) return size == 0;
+	if (spl.trySplit() != null) return false;
+	// Take the rest in bulk.
+	spl.forEachRemaining(adder);
+	return elts.size() - n0 == size && spl.estimateSize() == 0 && !spl.tryAdvance(adder);
+    }
+
+    static <T> Consumer<T> adder(final List<T> elts) {
+	return new Consumer<T>() {
+	    public void accept(T x) { elts.add(x); }
+	};
+    }
+
+    static <K, V> List<Map.Entry<K, V>> entryList(Map<K, V> map) {
+	ArrayList<Map.Entry<K, V>> res = new ArrayList<Map.Entry<K, V>>();
+	for (Map.Entry<K, V> ent : map.entrySet())
+	    res.add(new AbstractMap.SimpleImmutableEntry<K, V>(ent));
+	return res;
+    }
+
+    // Checks that `forEach' visits the same pairs, in the same order, as the iterator.
+    static <K, V> void testMapForEach(String what, Map<K, V> map, int i) {
+	final ArrayList<Map.Entry<K, V>> each = new ArrayList<Map.Entry<K, V>>();
+	map.forEach(new BiConsumer<K, V>() {
+		public void accept(K k, V v) {
+		    each.add(new AbstractMap.SimpleImmutableEntry<K, V>(k, v));
+		}
+	    });
+	if (!each.equals(entryList(map))) {
+	    println(what + " forEach failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    // A predicate that returns false on its `limit'th call.
+    static final class Stopper {
+	Stopper(int _limit) { limit = _limit; }
+	final int limit;
+	int calls = 0;
+	Predicate<Object> pred() {
+	    return new Predicate<Object>() {
+		public boolean test(Object x) { return ++calls < limit; }
+	    };
+	}
+	BiPredicate<Object, Object> biPred() {
+	    return new BiPredicate<Object, Object>() {
+		public boolean test(Object x, Object y) { return ++calls < limit; }
+	    };
+	}
+    }
+
+    static void testForEachWhile(String what, boolean completed, Stopper stop, int size, int i) {
+	if (completed != (size < stop.limit) || stop.calls != Math.min(size, stop.limit)) {
+	    println(what + " forEachWhile failed on iteration " + i);
+	    exit();
+	}
+    }
+
     static FTreeSet<MyInteger> testFTreeSet(Random rand, int i) {
 	FTreeSet<MyInteger> fts0 = new FTreeSet<MyInteger>(TestComparator.Instance);
 	TreeSet<MyInteger> ts0 = new TreeSet<MyInteger>();
@@ -210,6 +476,13 @@ public class TestSuite {
 		    + i);
 	    exit();
 	}
+	FTreeSet<MyInteger> sfts0 = FTreeSet.fromSorted(ts0, TestComparator.Instance);
+	if (!sfts0.verify() || !fts0.equals(sfts0) || !new FTreeSet<MyInteger>(ts0).verify()) {
+	    println("FTreeSet construction from sorted collection failed (fts0) on iteration "
+		    + i);
+	    println(sfts0.dump());
+	    exit();
+	}
 	if (!fts1.equals(ts1)) {
 	    println("FTreeSet Equality failed (fts1, A) on iteration " + i);
 	    exit();
@@ -366,6 +639,9 @@ public class TestSuite {
 		exit();
 	    }
 	}
+	testSpliterator("FTreeSet", fts1, fts1.size(), i);
+	Stopper stop = new Stopper(fts1.size() / 2 + 1);
+	testForEachWhile("FTreeSet", fts1.forEachWhile(stop.pred()), stop, fts1.size(), i);
 	if (i % 50 == 0) {
 	    // Check handling of null set
 	    try {
@@ -461,6 +737,21 @@ public class TestSuite {
 	    }
 	    fhs1 = tmp;
 	}
+	FHashSet<MyInteger> fhs2 = new FHashSet<MyInteger>();
+	FHashSet.Builder<MyInteger> fhsb = new FHashSet.Builder<MyInteger>(1);
+	for (int j = 0, n = rand.nextInt(300); j < n; ++j) {
+	    int r = rand.nextInt(200);
+	    MyInteger R = r == 57 ? null : new MyInteger(r);
+	    fhs2 = fhs2.with(R);
+	    fhsb.add(R);
+	}
+	FHashSet<MyInteger> fhs2b = fhsb.build();
+	if (!fhs2b.verify() || !fhs2b.equals(fhs2) || fhs2b.hashCode() != fhs2.hashCode()) {
+	    println("FHashSet.Builder failed on iteration " + i);
+	    println(fhs2);
+	    println(fhs2b.dump());
+	    exit();
+	}
 	for (int j = 0; j < 20; ++j) {
 	    int r = rand.nextInt(200);
 	    MyInteger R = r == 57 ? null : new MyInteger(r);
@@ -647,6 +938,9 @@ public class TestSuite {
 		exit();
 	    }
 	}
+	testSpliterator("FHashSet", fhs1, fhs1.size(), i);
+	Stopper stop = new Stopper(fhs1.size() / 2 + 1);
+	testForEachWhile("FHashSet", fhs1.forEachWhile(stop.pred()), stop, fhs1.size(), i);
 	if (i % 50 == 0) {
 	    try {
 		// Check handling of null set
@@ -702,6 +996,14 @@ public class TestSuite {
 	    println("FLinkedHashSet ordering failed on iteration " + i);
 	    exit();
 	}
+	// `CountedKey's collide in pairs; adding an element that's already in an
+	// equivalence class mustn't add it to the order again.
+	FLinkedHashSet<CountedKey> flhsc = new FLinkedHashSet<CountedKey>();
+	for (int j = 0; j < 30; ++j) flhsc = flhsc.with(new CountedKey(rand.nextInt(20)));
+	if (new ArrayList<CountedKey>(flhsc).size() != flhsc.size()) {
+	    println("FLinkedHashSet equivalent element ordering failed on iteration " + i);
+	    exit();
+	}
 	FLinkedHashSet<Integer> flhs1 = new FLinkedHashSet<Integer>();
 	LinkedHashSet<Integer> lhs1 = new LinkedHashSet<Integer>();
 	for (int j = 0; j < 10; ++j) {
@@ -727,6 +1029,32 @@ public class TestSuite {
 	    println("FLinkedHashSet ordering failed on iteration " + i);
 	    exit();
 	}
+	FLinkedHashSet<Integer> flhs2 = flhs0;
+	LinkedHashSet<Integer> lhs2 = new LinkedHashSet<Integer>(lhs0);
+	for (int j = 0; j < 10; ++j) {
+	    int r = rand.nextInt(200);
+	    if (j % 3 == 0) {
+		flhs2 = flhs2.with(r);
+		lhs2.add(r);
+	    } else {
+		flhs2 = flhs2.less(r);
+		lhs2.remove(r);
+	    }
+	}
+	LinkedHashSet<Integer> lhsi = new LinkedHashSet<Integer>(lhs0);
+	lhsi.retainAll(lhs1);
+	LinkedHashSet<Integer> lhsd = new LinkedHashSet<Integer>(lhs0);
+	lhsd.removeAll(lhs1);
+	if (!new ArrayList<Integer>(flhs2).equals(new ArrayList<Integer>(lhs2)) ||
+	    !new ArrayList<Integer>(flhs0.intersection(flhs1)).equals(new ArrayList<Integer>(lhsi)) ||
+	    !new ArrayList<Integer>(flhs0.difference(flhs1)).equals(new ArrayList<Integer>(lhsd))) {
+	    println("FLinkedHashSet less/intersection/difference failed on iteration " + i);
+	    exit();
+	}
+	testSpliterator("FLinkedHashSet", flhs0, flhs0.size(), i);
+	Stopper stop = new Stopper(flhs0.size() / 2 + 1);
+	testForEachWhile("FLinkedHashSet", flhs0.forEachWhile(stop.pred()), stop,
+			 flhs0.size(), i);
 	if (i % 50 == 0) {
 	    try {
 		FSet<Integer> fhsser = flhs0;
@@ -738,7 +1066,8 @@ public class TestSuite {
 		ObjectInputStream ois = new ObjectInputStream(fis);
 		FSet<Integer> nfhsser = (FSet<Integer>)ois.readObject();
 		ois.close();
-		if (!fhsser.equals(nfhsser) || fhsser.hashCode() != nfhsser.hashCode()) {
+		if (!fhsser.equals(nfhsser) || fhsser.hashCode() != nfhsser.hashCode() ||
+		    !new ArrayList<Integer>(fhsser).equals(new ArrayList<Integer>(nfhsser))) {
 		    println("FLinkedHashSet read/write failed on iteration " + i);
 		    exit();
 		}
@@ -933,6 +1262,13 @@ public class TestSuite {
 	    println(ftm1.dump());
 	    exit();
 	}
+	FTreeMap<MyInteger, MyInteger> sftm0 = FTreeMap.fromSorted(tm0, TestComparator.Instance);
+	if (!sftm0.verify() || !ftm0.equals(sftm0) ||
+	    !new FTreeMap<MyInteger, MyInteger>(tm0).verify()) {
+	    println("FTreeMap construction from sorted map failed (ftm0) on iteration " + i);
+	    println(sftm0.dump());
+	    exit();
+	}
 	if (ftm0.firstKey().intValue() / 2 != tm0.firstKey().intValue() / 2) {
 	    println("FTreeMap `firstKey' failed (ftm0) on iteration " + i);
 	    exit();
@@ -1048,6 +1384,10 @@ public class TestSuite {
 	    println("FTreeMap tailMap failed on iteration " + i);
 	    exit();
 	}
+	testSpliterator("FTreeMap", ftm0, ftm0.size(), i);
+	testMapForEach("FTreeMap", ftm0, i);
+	Stopper stop = new Stopper(ftm0.size() / 2 + 1);
+	testForEachWhile("FTreeMap", ftm0.forEachWhile(stop.biPred()), stop, ftm0.size(), i);
 	if (i % 50 == 0) {
 	    try {
 		// Check handling of null map
@@ -1120,6 +1460,21 @@ public class TestSuite {
 	    }
 	    fhm1 = tmp;
 	}
+	FHashMap<MyInteger, MyInteger> fhm2 = new FHashMap<MyInteger, MyInteger>();
+	FHashMap.Builder<MyInteger, MyInteger> fhmb = new FHashMap.Builder<MyInteger, MyInteger>(1);
+	for (int j = 0, n = rand.nextInt(300); j < n; ++j) {
+	    int r = rand.nextInt(200), v = rand.nextInt(3);
+	    MyInteger R = r == 57 ? null : new MyInteger(r), V = new MyInteger(v);
+	    fhm2 = fhm2.with(R, V);
+	    fhmb.put(R, V);
+	}
+	FHashMap<MyInteger, MyInteger> fhm2b = fhmb.build();
+	if (!fhm2b.verify() || !fhm2b.equals(fhm2) || fhm2b.hashCode() != fhm2.hashCode()) {
+	    println("FHashMap.Builder failed on iteration " + i);
+	    println(fhm2);
+	    println(fhm2b.dump());
+	    exit();
+	}
 	for (int j = 0; j < 20; ++j) {
 	    int r = rand.nextInt(200);
 	    MyInteger R = r == 57 ? null : new MyInteger(r);
@@ -1252,6 +1607,10 @@ public class TestSuite {
 	    println(compare(fhm1a, fhm1b));
 	    exit();
 	}
+	testSpliterator("FHashMap", fhm0, fhm0.size(), i);
+	testMapForEach("FHashMap", fhm0, i);
+	Stopper stop = new Stopper(fhm0.size() / 2 + 1);
+	testForEachWhile("FHashMap", fhm0.forEachWhile(stop.biPred()), stop, fhm0.size(), i);
 	if (i % 50 == 0) {
 	    try {
 		// Check handling of null map
@@ -1314,6 +1673,62 @@ public class TestSuite {
 	    flhm1 = flhm1.with(r, v);
 	    lhm1.put(r, v);
 	}
+	FLinkedHashMap<Integer, Integer> flhm2 = flhm0;
+	LinkedHashMap<Integer, Integer> lhm2 = new LinkedHashMap<Integer, Integer>(lhm0);
+	for (int j = 0; j < 10; ++j) {
+	    int r = rand.nextInt(200), v = rand.nextInt(100);
+	    if (j % 3 == 0) {
+		flhm2 = flhm2.with(r, v);
+		lhm2.put(r, v);
+	    } else {
+		flhm2 = flhm2.less(r);
+		lhm2.remove(r);
+	    }
+	}
+	FSet<Integer> dom1 = flhm1.domain();
+	LinkedHashMap<Integer, Integer> lhmt = new LinkedHashMap<Integer, Integer>(lhm0);
+	lhmt.keySet().retainAll(lhm1.keySet());
+	LinkedHashMap<Integer, Integer> lhmf = new LinkedHashMap<Integer, Integer>(lhm0);
+	lhmf.keySet().removeAll(lhm1.keySet());
+	if (!entryList(flhm2).equals(entryList(lhm2)) ||
+	    !entryList(flhm0.restrictedTo(dom1)).equals(entryList(lhmt)) ||
+	    !entryList(flhm0.restrictedFrom(dom1)).equals(entryList(lhmf))) {
+	    println("FLinkedHashMap less/restrictedTo/restrictedFrom failed on iteration " + i);
+	    exit();
+	}
+	testSpliterator("FLinkedHashMap", flhm0, flhm0.size(), i);
+	testMapForEach("FLinkedHashMap", flhm0, i);
+	Stopper stop = new Stopper(flhm0.size() / 2 + 1);
+	testForEachWhile("FLinkedHashMap", flhm0.forEachWhile(stop.biPred()), stop,
+			 flhm0.size(), i);
+	// Values changed in place, including by a combiner, show up in the order; and
+	// iterating looks nothing up, so it never hashes a key.
+	FLinkedHashMap<CountedKey, Integer> flhm3 = FLinkedHashMap.emptyMap();
+	LinkedHashMap<CountedKey, Integer> lhm3 = new LinkedHashMap<CountedKey, Integer>();
+	BinaryOp<Integer> sum = new BinaryOp<Integer>() {
+		public Integer apply(Integer x, Integer y) { return x + y; }
+	    };
+	for (int j = 0; j < 30; ++j) {
+	    CountedKey k = new CountedKey(rand.nextInt(40));
+	    int v = rand.nextInt(100);
+	    if (j % 2 == 0) {
+		flhm3 = flhm3.with(k, v);
+		lhm3.put(k, v);
+	    } else {
+		flhm3 = flhm3.with(k, v, sum);
+		Integer old = lhm3.get(k);
+		lhm3.put(k, old == null ? v : old + v);
+	    }
+	}
+	CountedKey.calls = 0;
+	testMapForEach("FLinkedHashMap", flhm3, i);
+	if (!entryList(flhm3).equals(entryList(lhm3)) ||
+	    !new ArrayList<Integer>(flhm3.values()).equals(new ArrayList<Integer>(lhm3.values())) ||
+	    !flhm3.forEachWhile(new Stopper(flhm3.size() + 1).biPred()) ||
+	    CountedKey.calls != 0) {
+	    println("FLinkedHashMap value update/iteration failed on iteration " + i);
+	    exit();
+	}
 	if (i % 50 == 0) {
 	    try {
 		FMap<Integer, Integer> fhmser = flhm0;
@@ -1325,7 +1740,8 @@ public class TestSuite {
 		ObjectInputStream ois = new ObjectInputStream(fis);
 		FMap<Integer, Integer> nfhmser = (FMap<Integer, Integer>)ois.readObject();
 		ois.close();
-		if (!fhmser.equals(nfhmser) || fhmser.hashCode() != nfhmser.hashCode()) {
+		if (!fhmser.equals(nfhmser) || fhmser.hashCode() != nfhmser.hashCode() ||
+		    !entryList(fhmser).equals(entryList(nfhmser))) {
 		    println("FLinkedHashMap read/write failed on iteration " + i);
 		    exit();
 		}
@@ -1350,6 +1766,1228 @@ public class TestSuite {
 	}
     }
 
+    // Picks values clustered near zero and near the extremes, so the bounds checks in
+    // the hedge algorithms get exercised.
+    static int pickInt(Random rand) {
+	int r = rand.nextInt(300);
+	if (r < 20) return Integer.MIN_VALUE + r;
+	else if (r < 40) return Integer.MAX_VALUE - (r - 20);
+	else return r - 170;
+    }
+
+    static long pickLong(Random rand) {
+	int r = rand.nextInt(300);
+	if (r < 20) return Long.MIN_VALUE + r;
+	else if (r < 40) return Long.MAX_VALUE - (r - 20);
+	else return (r - 170) * 0x100000000L;
+    }
+
+    static void testFIntSet(Random rand, int i) {
+	FIntSet fis0 = new FIntSet(), fis1 = FIntSet.emptySet();
+	TreeSet<Integer> ts0 = new TreeSet<Integer>(), ts1 = new TreeSet<Integer>();
+	for (int j = 0; j < 100; ++j) {
+	    int r0 = pickInt(rand), r1 = pickInt(rand);
+	    fis0 = fis0.with(r0);
+	    ts0.add(r0);
+	    fis1 = fis1.with((Integer)r1);
+	    ts1.add(r1);
+	}
+	for (int j = 0; j < 30; ++j) {
+	    int r = pickInt(rand);
+	    fis0 = fis0.less(r);
+	    ts0.remove(r);
+	}
+	if (!fis0.verify() || !fis1.verify() || fis0.size() != ts0.size() ||
+	    !fis0.equals(ts0) || !ts0.equals(fis0) || fis0.hashCode() != ts0.hashCode() ||
+	    !new ArrayList<Integer>(fis0).equals(new ArrayList<Integer>(ts0)) ||
+	    fis0.first() != ts0.first() || fis0.last() != ts0.last()) {
+	    println("FIntSet with/less failed on iteration " + i);
+	    exit();
+	}
+	for (int j = 0; j < 20; ++j) {
+	    int r = pickInt(rand);
+	    if (fis0.contains(r) != ts0.contains(r) ||
+		fis0.contains((Object)r) != ts0.contains(r)) {
+		println("FIntSet contains failed on iteration " + i);
+		exit();
+	    }
+	}
+	TreeSet<Integer> tsu = new TreeSet<Integer>(ts0), tsi = new TreeSet<Integer>(ts0),
+	    tsd = new TreeSet<Integer>(ts0);
+	tsu.addAll(ts1);
+	tsi.retainAll(ts1);
+	tsd.removeAll(ts1);
+	HashSet<Integer> hs1 = new HashSet<Integer>(ts1);
+	FIntSet fisu = fis0.union(fis1), fisi = fis0.intersection(fis1),
+	    fisd = fis0.difference(fis1);
+	if (!fisu.verify() || !fisu.equals(tsu) || !fis0.union(hs1).equals(tsu) ||
+	    !fisi.verify() || !fisi.equals(tsi) || !fis0.intersection(hs1).equals(tsi) ||
+	    !fisd.verify() || !fisd.equals(tsd) || !fis0.difference(hs1).equals(tsd) ||
+	    !fisi.isSubset(fis0) || !fisd.isSubset(fisu) || !fisu.isSuperset(fis1) ||
+	    fis0.isSubset(fisd) != fisi.isEmpty() || !fisi.isSubset(hs1) ||
+	    fisu.isSubset(fis1) != fisd.isEmpty()) {
+	    println("FIntSet set operations failed on iteration " + i);
+	    exit();
+	}
+	int[] ary = fis0.toIntArray();
+	FIntSet fis2 = new FIntSet(ary), fis3 = new FIntSet(fisu.toIntArray());
+	if (!fis2.verify() || !fis2.equals(fis0) || fis2.compareTo(fis0) != 0 ||
+	    sgn(fis0.compareTo(fisu)) != -sgn(fisu.compareTo(fis0)) ||
+	    (fis0.size() < fisu.size() && fis0.compareTo(fisu) >= 0) ||
+	    !fis3.verify() || !fis3.equals(fisu) || ary.length != ts0.size()) {
+	    println("FIntSet compareTo/toIntArray failed on iteration " + i);
+	    exit();
+	}
+	testSpliterator("FIntSet", fisu, fisu.size(), i);
+	final ArrayList<Integer> each = new ArrayList<Integer>();
+	fisu.forEachInt(new IntConsumer() {
+		public void accept(int x) { each.add(x); }
+	    });
+	Stopper stop = new Stopper(fisu.size() / 2 + 1);
+	testForEachWhile("FIntSet", fisu.forEachWhile(stop.pred()), stop, fisu.size(), i);
+	if (!each.equals(new ArrayList<Integer>(tsu))) {
+	    println("FIntSet forEachInt failed on iteration " + i);
+	    exit();
+	}
+	if (i % 50 == 0) {
+	    FIntSet nfis = (FIntSet)reserialize(fisu);
+	    if (!nfis.verify() || !nfis.equals(fisu) || nfis.hashCode() != fisu.hashCode()) {
+		println("FIntSet read/write failed on iteration " + i);
+		exit();
+	    }
+	}
+	// The long version is generated from the same source; just make sure it works.
+	FLongSet fls0 = new FLongSet(), fls1 = new FLongSet();
+	TreeSet<Long> tls0 = new TreeSet<Long>(), tls1 = new TreeSet<Long>();
+	for (int j = 0; j < 100; ++j) {
+	    long r0 = pickLong(rand), r1 = pickLong(rand);
+	    fls0 = fls0.with(r0).less(pickLong(rand) + 1);
+	    tls0.add(r0);
+	    tls0.remove(r0);
+	    tls0.add(r0);
+	    fls1 = fls1.with(r1);
+	    tls1.add(r1);
+	}
+	tls0 = new TreeSet<Long>(fls0);
+	TreeSet<Long> tlsu = new TreeSet<Long>(tls0), tlsd = new TreeSet<Long>(tls0);
+	tlsu.addAll(tls1);
+	tlsd.removeAll(tls1);
+	FLongSet flsu = fls0.union(fls1), flsd = fls0.difference(fls1);
+	if (!fls0.verify() || !flsu.verify() || !flsu.equals(tlsu) || !flsd.verify() ||
+	    !flsd.equals(tlsd) || !new FLongSet(flsu.toLongArray()).equals(flsu) ||
+	    flsu.hashCode() != tlsu.hashCode() || flsu.last() != tlsu.last() ||
+	    !fls0.intersection(fls1).equals(fls0.difference(flsd))) {
+	    println("FLongSet failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    static void testFIntMap(Random rand, int i) {
+	FIntMap<MyInteger> fim0 = new FIntMap<MyInteger>(), fim1 = FIntMap.emptyMap();
+	TreeMap<Integer, MyInteger> tm0 = new TreeMap<Integer, MyInteger>();
+	TreeMap<Integer, MyInteger> tm1 = new TreeMap<Integer, MyInteger>();
+	for (int j = 0; j < 100; ++j) {
+	    int r0 = pickInt(rand), r1 = pickInt(rand);
+	    MyInteger v0 = new MyInteger(rand.nextInt(5)), v1 = new MyInteger(rand.nextInt(5));
+	    fim0 = fim0.withInt(r0, v0);
+	    tm0.put(r0, v0);
+	    fim1 = fim1.with((Integer)r1, v1);
+	    tm1.put(r1, v1);
+	}
+	for (int j = 0; j < 30; ++j) {
+	    int r = pickInt(rand);
+	    fim0 = fim0.less(r);
+	    tm0.remove(r);
+	}
+	if (!fim0.verify() || !fim1.verify() || fim0.size() != tm0.size() ||
+	    !fim0.equals(tm0) || !tm0.equals(fim0) || fim0.hashCode() != tm0.hashCode() ||
+	    !entryList(fim0).equals(entryList(tm0)) ||
+	    !new ArrayList<Integer>(fim0.keySet()).equals(new ArrayList<Integer>(tm0.keySet())) ||
+	    !new ArrayList<MyInteger>(fim0.values()).equals(new ArrayList<MyInteger>(tm0.values())) ||
+	    fim0.firstKey() != tm0.firstKey() || fim0.lastKey() != tm0.lastKey()) {
+	    println("FIntMap with/less failed on iteration " + i);
+	    exit();
+	}
+	for (int j = 0; j < 20; ++j) {
+	    int r = pickInt(rand);
+	    if (fim0.containsKey(r) != tm0.containsKey(r) || !equals(fim0.get(r), tm0.get(r)) ||
+		!equals(fim0.get((Object)r), tm0.get(r))) {
+		println("FIntMap get failed on iteration " + i);
+		exit();
+	    }
+	}
+	FIntSet dom1 = fim1.domain();
+	TreeMap<Integer, MyInteger> tmu = new TreeMap<Integer, MyInteger>(tm0);
+	for (Map.Entry<Integer, MyInteger> ent : tm1.entrySet()) {
+	    MyInteger v0 = tmu.get(ent.getKey());
+	    tmu.put(ent.getKey(), v0 == null ? ent.getValue() : myOp.apply(v0, ent.getValue()));
+	}
+	TreeMap<Integer, MyInteger> tmt = new TreeMap<Integer, MyInteger>(tm0);
+	tmt.keySet().retainAll(tm1.keySet());
+	TreeMap<Integer, MyInteger> tmf = new TreeMap<Integer, MyInteger>(tm0);
+	tmf.keySet().removeAll(tm1.keySet());
+	FIntMap<MyInteger> fimu = fim0.union(fim1, myOp);
+	FIntMap<MyInteger> fimt = fim0.restrictedTo(dom1), fimf = fim0.restrictedFrom(dom1);
+	FHashSet<Integer> fhs1 = new FHashSet<Integer>(tm1.keySet());
+	if (!dom1.verify() || !dom1.equals(tm1.keySet()) ||
+	    !fimu.verify() || !fimu.equals(tmu) ||
+	    !fim0.union(new FHashMap<Integer, MyInteger>(tm1), myOp).equals(tmu) ||
+	    !fimt.verify() || !fimt.equals(tmt) || !fim0.restrictedTo(fhs1).equals(tmt) ||
+	    !fimf.verify() || !fimf.equals(tmf) || !fim0.restrictedFrom(fhs1).equals(tmf) ||
+	    !fim0.union(fim0).equals(fim0)) {
+	    println("FIntMap union/restrictedTo/restrictedFrom failed on iteration " + i);
+	    exit();
+	}
+	FIntMap<MyInteger> fim2 = new FIntMap<MyInteger>(tm0);
+	if (!fim2.verify() || !fim2.equals(fim0) || fim2.compareTo(fim0) != 0 ||
+	    sgn(fim0.compareTo(fimu)) != -sgn(fimu.compareTo(fim0)) ||
+	    !fim0.toSet().equals(tm0.entrySet()) || !fim0.range().equals(new HashSet<MyInteger>(tm0.values()))) {
+	    println("FIntMap compareTo/toSet/range failed on iteration " + i);
+	    exit();
+	}
+	testSpliterator("FIntMap", fimu, fimu.size(), i);
+	testMapForEach("FIntMap", fimu, i);
+	Stopper stop = new Stopper(fimu.size() / 2 + 1);
+	testForEachWhile("FIntMap", fimu.forEachWhile(stop.biPred()), stop, fimu.size(), i);
+	if (i % 50 == 0) {
+	    FIntMap<MyInteger> nfim = (FIntMap<MyInteger>)reserialize(fimu);
+	    if (!nfim.verify() || !nfim.equals(fimu) || nfim.hashCode() != fimu.hashCode()) {
+		println("FIntMap read/write failed on iteration " + i);
+		exit();
+	    }
+	}
+	FLongMap<Integer> flm0 = FLongMap.withDefault(-1), flm1 = new FLongMap<Integer>();
+	TreeMap<Long, Integer> tlm0 = new TreeMap<Long, Integer>(), tlm1 = new TreeMap<Long, Integer>();
+	for (int j = 0; j < 100; ++j) {
+	    long r0 = pickLong(rand), r1 = pickLong(rand);
+	    int v0 = rand.nextInt(5), v1 = rand.nextInt(5);
+	    flm0 = flm0.withLong(r0, v0);
+	    tlm0.put(r0, v0);
+	    // Boxes both; this would be ambiguous if `withLong' were an overload of `with'.
+	    flm1 = flm1.with(r1, v1);
+	    tlm1.put(r1, v1);
+	}
+	TreeMap<Long, Integer> tlmf = new TreeMap<Long, Integer>(tlm0);
+	tlmf.keySet().removeAll(tlm1.keySet());
+	TreeMap<Long, Integer> tlmu = new TreeMap<Long, Integer>(tlm0);
+	tlmu.putAll(tlm1);
+	FLongMap<Integer> flmu = flm0.union(flm1), flmf = flm0.restrictedFrom(flm1.domain());
+	long absent = pickLong(rand);
+	if (!flm0.verify() || !flm0.equals(tlm0) || !flmu.verify() || !flmu.equals(tlmu) ||
+	    !flmf.verify() || !flmf.equals(tlmf) || flmu.hashCode() != tlmu.hashCode() ||
+	    (!tlm0.containsKey(absent) && flm0.get(absent) != -1) ||
+	    !flm0.restrictedTo(flm1.domain()).equals(flm0.restrictedFrom(flmf.domain()))) {
+	    println("FLongMap failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    static void testFCachedHash(Random rand, int i) {
+	FCachedHashSet<CountedKey> fchs0 = new FCachedHashSet<CountedKey>();
+	FCachedHashSet<CountedKey> fchs1 = FCachedHashSet.emptySet();
+	HashSet<CountedKey> hs0 = new HashSet<CountedKey>(), hs1 = new HashSet<CountedKey>();
+	FCachedHashMap<CountedKey, Integer> fchm0 = FCachedHashMap.withDefault(-1);
+	FCachedHashMap<CountedKey, Integer> fchm1 = new FCachedHashMap<CountedKey, Integer>();
+	HashMap<CountedKey, Integer> hm0 = new HashMap<CountedKey, Integer>();
+	HashMap<CountedKey, Integer> hm1 = new HashMap<CountedKey, Integer>();
+	for (int j = 0; j < 50; ++j) {
+	    CountedKey k0 = new CountedKey(rand.nextInt(200));
+	    CountedKey k1 = new CountedKey(rand.nextInt(200));
+	    fchs0 = fchs0.with(k0);
+	    hs0.add(k0);
+	    fchs1 = fchs1.with(k1);
+	    hs1.add(k1);
+	    fchm0 = fchm0.with(k0, j);
+	    hm0.put(k0, j);
+	    fchm1 = fchm1.with(k1, j);
+	    hm1.put(k1, j);
+	}
+	FHashSet<CountedKey> fhs1 = new FHashSet<CountedKey>(hs1);
+	FHashMap<CountedKey, Integer> fhm1 = new FHashMap<CountedKey, Integer>(hm1);
+	// From here on, no stored key should be asked for its hash code.
+	CountedKey.calls = 0;
+	FCachedHashSet<CountedKey> fchsu = fchs0.union(fchs1), fchsi = fchs0.intersection(fhs1);
+	FCachedHashSet<CountedKey> fchsd = fchs0.difference(fchs1);
+	FCachedHashMap<CountedKey, Integer> fchmu = fchm0.union(fchm1);
+	FCachedHashMap<CountedKey, Integer> fchmt = fchm0.restrictedTo(fchs1);
+	FCachedHashMap<CountedKey, Integer> fchmf = fchm0.restrictedFrom(fhs1);
+	FCachedHashSet<CountedKey> nfchs = (FCachedHashSet<CountedKey>)reserialize(fchsu);
+	FCachedHashMap<CountedKey, Integer> nfchm =
+	    (FCachedHashMap<CountedKey, Integer>)reserialize(fchmu);
+	int fchsu_hash = fchsu.hashCode(), fchmu_hash = fchmu.hashCode();
+	if (!nfchs.equals(fchsu) || nfchs.compareTo(fchsu) != 0 || !fchs1.equals(fhs1) ||
+	    !fhs1.equals(fchs1) || !fchsu.isSuperset(fchs1) || !fchsi.isSubset(fhs1) ||
+	    nfchs.hashCode() != fchsu_hash || !nfchm.equals(fchmu) ||
+	    nfchm.compareTo(fchmu) != 0 || nfchm.getDefault() != -1 ||
+	    !fchm1.equals(fhm1) || !fhm1.equals(fchm1) || nfchm.hashCode() != fchmu_hash ||
+	    !fchm0.domain().isSubset(fchmu.domain()) || CountedKey.calls != 0) {
+	    println("FCachedHashSet/Map rehashed keys on iteration " + i);
+	    exit();
+	}
+	HashSet<CountedKey> hsu = new HashSet<CountedKey>(hs0);
+	hsu.addAll(hs1);
+	HashSet<CountedKey> hsi = new HashSet<CountedKey>(hs0);
+	hsi.retainAll(hs1);
+	HashSet<CountedKey> hsd = new HashSet<CountedKey>(hs0);
+	hsd.removeAll(hs1);
+	HashMap<CountedKey, Integer> hmu = new HashMap<CountedKey, Integer>(hm0);
+	hmu.putAll(hm1);
+	HashMap<CountedKey, Integer> hmt = new HashMap<CountedKey, Integer>(hm0);
+	hmt.keySet().retainAll(hs1);
+	HashMap<CountedKey, Integer> hmf = new HashMap<CountedKey, Integer>(hm0);
+	hmf.keySet().removeAll(hs1);
+	if (!fchsu.equals(hsu) || !fchsi.equals(hsi) || !fchsd.equals(hsd) ||
+	    fchsu_hash != hsu.hashCode() || !nfchs.equals(hsu) || !fchmu.equals(hmu) ||
+	    !fchmt.equals(hmt) || !fchmf.equals(hmf) || fchmu_hash != hmu.hashCode() ||
+	    !nfchm.equals(hmu) || fchm0.get(new CountedKey(-3)) != -1 ||
+	    !fchm0.domain().equals(hm0.keySet())) {
+	    println("FCachedHashSet/Map failed on iteration " + i);
+	    exit();
+	}
+	// Keys whose hash codes are the infinities are stored with their neighbors'.
+	CountedKey kmin = new CountedKey(-1), kmax = new CountedKey(-2);
+	hsu.add(kmin);
+	hsu.add(kmax);
+	hmu.put(kmin, 1);
+	hmu.put(kmax, 2);
+	if (fchsu.with(kmin).with(kmax).hashCode() != hsu.hashCode() ||
+	    fchmu.with(kmin, 1).with(kmax, 2).hashCode() != hmu.hashCode()) {
+	    println("FCachedHashSet/Map hashCode failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    // Counts calls to `hashCode'.  -1 and -2 hash to the infinities.
+    static final class CountedKey implements Comparable<CountedKey>, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	CountedKey(int val) { value = val; }
+	private final int value;
+	static int calls = 0;
+	public boolean equals(Object x) {
+	    return x instanceof CountedKey && value == ((CountedKey)x).value;
+	}
+	public int hashCode() {
+	    ++calls;
+	    return value == -1 ? Integer.MIN_VALUE : value == -2 ? Integer.MAX_VALUE : value >> 1;
+	}
+	public int compareTo(CountedKey x) {
+	    return value < x.value ? -1 : value > x.value ? 1 : 0;
+	}
+    }
+
+    static final Snapshot.Encoder<CountedKey> countedKeys = new Snapshot.Encoder<CountedKey>() {
+	    public void encode(CountedKey x, Snapshot.Output out) throws IOException {
+		out.writeInt(x.value);
+	    }
+	    public CountedKey decode(Snapshot.Input in) throws IOException {
+		return new CountedKey(in.readInt());
+	    }
+	};
+
+    static final Snapshot.Encoder<MyInteger> myIntegers = new Snapshot.Encoder<MyInteger>() {
+	    public void encode(MyInteger x, Snapshot.Output out) throws IOException {
+		out.writeInt(x.intValue());
+	    }
+	    public MyInteger decode(Snapshot.Input in) throws IOException {
+		return new MyInteger(in.readInt());
+	    }
+	};
+
+    // Writes snapshots through a tiny buffer, so values cross its boundaries, and
+    // reads them back both through a channel and from a `ByteBuffer'.  No key should
+    // be asked for its hash code.
+    static void testSnapshot(Random rand, int i) {
+	FHashSet<CountedKey> fhs = new FHashSet<CountedKey>();
+	FHashMap<CountedKey, String> fhm = FHashMap.withDefault("none");
+	FTreeSet<MyInteger> fts = new FTreeSet<MyInteger>(TestComparator.Instance);
+	FTreeMap<MyInteger, Integer> ftm = FTreeMap.withDefault(-1, TestComparator.Instance);
+	FTreeList<MyInteger> ftl = new FTreeList<MyInteger>();
+	FLinkedHashSet<CountedKey> flhs = new FLinkedHashSet<CountedKey>();
+	FLinkedHashMap<CountedKey, String> flhm = FLinkedHashMap.withDefault("none");
+	FIntSet fis = new FIntSet();
+	FIntMap<String> fim = FIntMap.withDefault("none");
+	FLongSet fls = new FLongSet();
+	FLongMap<Integer> flm = new FLongMap<Integer>();
+	FDequeList<MyInteger> fdl = new FDequeList<MyInteger>(TestComparator.Instance);
+	FIndexedList<MyInteger> fil = new FIndexedList<MyInteger>();
+	for (int j = 0, n = rand.nextInt(300); j < n; ++j) {
+	    // Includes -1 and -2, which `CountedKey' hashes to the infinities.
+	    int r = rand.nextInt(400) - 2;
+	    fhs = fhs.with(new CountedKey(r));
+	    fhm = fhm.with(new CountedKey(r), r % 7 == 0 ? null : "\u00e9" + j);
+	    fts = fts.with(new MyInteger(r));
+	    ftm = ftm.with(new MyInteger(r), j);
+	    ftl = ftl.withInserted(rand.nextInt(ftl.size() + 1), new MyInteger(r));
+	    // Removals leave gaps in the linked collections' sequence numbers.
+	    if (j % 5 == 4) {
+		flhs = flhs.less(new CountedKey(r));
+		flhm = flhm.less(new CountedKey(r));
+	    } else {
+		flhs = flhs.with(new CountedKey(r));
+		flhm = flhm.with(new CountedKey(r), r % 7 == 0 ? null : "" + j);
+	    }
+	    fis = fis.with(r * 10000019);
+	    fim = fim.withInt(r * 10000019, "" + j);
+	    fls = fls.with((long)r << 40);
+	    flm = flm.withLong((long)r << 40, j);
+	    if (j % 2 == 0) fdl = fdl.withFirst(new MyInteger(r));
+	    else fdl = fdl.withLast(new MyInteger(r));
+	    fil = fil.withInserted(rand.nextInt(fil.size() + 1), new MyInteger(r % 50));
+	}
+	ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	CountedKey.calls = 0;
+	try {
+	    Snapshot.Output out = new Snapshot.Output(Channels.newChannel(bos), 16);
+	    Snapshot.write(fhs, countedKeys, out);
+	    Snapshot.write(fhm, countedKeys, Snapshot.STRINGS, out);
+	    Snapshot.write(fts, myIntegers, out);
+	    Snapshot.write(ftm, myIntegers, Snapshot.INTEGERS, out);
+	    Snapshot.write(ftl, myIntegers, out);
+	    Snapshot.write(flhs, countedKeys, out);
+	    Snapshot.write(flhm, countedKeys, Snapshot.STRINGS, out);
+	    Snapshot.write(fis, out);
+	    Snapshot.write(fim, Snapshot.STRINGS, out);
+	    Snapshot.write(fls, out);
+	    Snapshot.write(flm, Snapshot.INTEGERS, out);
+	    Snapshot.write(fdl, myIntegers, out);
+	    Snapshot.write(fil, myIntegers, out);
+	    out.flush();
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	}
+	byte[] bytes = bos.toByteArray();
+	for (int pass = 0; pass < 2; ++pass) {
+	    Snapshot.Input in;
+	    if (pass == 0)
+		in = new Snapshot.Input(Channels.newChannel(new ByteArrayInputStream(bytes)), 16);
+	    else in = new Snapshot.Input(ByteBuffer.wrap(bytes));
+	    FCachedHashSet<CountedKey> nfhs;
+	    FHashMap<CountedKey, String> nfhm;
+	    FTreeSet<MyInteger> nfts;
+	    FTreeMap<MyInteger, Integer> nftm;
+	    FTreeList<MyInteger> nftl;
+	    FLinkedHashSet<CountedKey> nflhs;
+	    FLinkedHashMap<CountedKey, String> nflhm;
+	    FIntSet nfis;
+	    FIntMap<String> nfim;
+	    FLongSet nfls;
+	    FLongMap<Integer> nflm;
+	    FDequeList<MyInteger> nfdl;
+	    FIndexedList<MyInteger> nfil;
+	    try {
+		nfhs = Snapshot.readCachedHashSet(countedKeys, in);
+		nfhm = Snapshot.readHashMap(countedKeys, Snapshot.STRINGS, in);
+		nfts = Snapshot.readTreeSet(myIntegers, TestComparator.Instance, in);
+		nftm = Snapshot.readTreeMap(myIntegers, Snapshot.INTEGERS,
+					    TestComparator.Instance, in);
+		nftl = Snapshot.readTreeList(myIntegers, null, in);
+		nflhs = Snapshot.readLinkedHashSet(countedKeys, in);
+		nflhm = Snapshot.readLinkedHashMap(countedKeys, Snapshot.STRINGS, in);
+		nfis = Snapshot.readIntSet(in);
+		nfim = Snapshot.readIntMap(Snapshot.STRINGS, in);
+		nfls = Snapshot.readLongSet(in);
+		nflm = Snapshot.readLongMap(Snapshot.INTEGERS, in);
+		nfdl = Snapshot.readDequeList(myIntegers, TestComparator.Instance, in);
+		nfil = Snapshot.readIndexedList(myIntegers, in);
+	    } catch (IOException e) {
+		throw new RuntimeException(e);
+	    }
+	    if (CountedKey.calls != 0) {
+		println("Snapshot rehashed keys on iteration " + i);
+		exit();
+	    }
+	    if (!nfhs.set.verify() || !nfhm.verify() || !nfts.verify() || !nftm.verify() ||
+		!nftl.verify() || !nfhs.equals(fhs) || !nfhm.equals(fhm) ||
+		!nfhm.getDefault().equals("none") || !nfts.equals(fts) ||
+		nfts.comparator() != TestComparator.Instance || !nftm.equals(ftm) ||
+		nftm.getDefault() != -1 || !nftl.equals(ftl)) {
+		println("Snapshot failed on iteration " + i);
+		exit();
+	    }
+	    if (!new ArrayList<CountedKey>(nflhs).equals(new ArrayList<CountedKey>(flhs)) ||
+		!entryList(nflhm).equals(entryList(flhm)) ||
+		!nflhm.getDefault().equals("none") ||
+		!nfis.verify() || !nfis.equals(fis) || !nfim.verify() || !nfim.equals(fim) ||
+		!nfim.getDefault().equals("none") || !nfls.verify() || !nfls.equals(fls) ||
+		!nflm.verify() || !nflm.equals(flm) || nflm.getDefault() != null ||
+		!nfdl.equals(fdl) || nfdl.compareTo(fdl) != 0 || !nfil.equals(fil)) {
+		println("Snapshot of the other collections failed on iteration " + i);
+		exit();
+	    }
+	    // The linked collections' stored hash codes have to have come through.
+	    CountedKey.calls = 0;
+	    for (CountedKey k : flhs)
+		if (!nflhs.contains(k) || !Objects.equals(nflhm.get(k), flhm.get(k))) {
+		    println("Snapshot lookup in linked collections failed on iteration " + i);
+		    exit();
+		}
+	    for (int j = 0; j < 50; ++j) {
+		MyInteger x = new MyInteger(j);
+		if (nfil.indexOf(x) != fil.indexOf(x) || nfil.lastIndexOf(x) != fil.lastIndexOf(x)) {
+		    println("Snapshot of FIndexedList index failed on iteration " + i);
+		    exit();
+		}
+	    }
+	    // `verify' checks the stored hash codes.
+	    CountedKey.calls = 0;
+	}
+	boolean caught_kind = false, caught_eof = false;
+	try {
+	    Snapshot.readTreeSet(myIntegers, null, new Snapshot.Input(ByteBuffer.wrap(bytes)));
+	} catch (StreamCorruptedException e) {
+	    caught_kind = true;
+	} catch (IOException e) {
+	}
+	try {
+	    // Every element takes at least four bytes, after a ten-byte header.
+	    Snapshot.readHashSet(countedKeys,
+				 new Snapshot.Input(ByteBuffer.wrap(bytes, 0, 9 + 4 * fhs.size())));
+	} catch (EOFException e) {
+	    caught_eof = true;
+	} catch (IOException e) {
+	}
+	if (!caught_kind || !caught_eof) {
+	    println("Snapshot error checking failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    // Writes a map to a file, and maps it in segments of 64 bytes, so there are many
+    // of them; then makes the same random changes to it and the original.
+    static void testFMappedHashMap(Random rand, int i) {
+	FHashMap<CountedKey, String> fhm = FHashMap.withDefault("none");
+	for (int j = 0, n = rand.nextInt(300); j < n; ++j) {
+	    int r = rand.nextInt(400) - 2;
+	    fhm = fhm.with(new CountedKey(r), r % 7 == 0 ? null : "\u00e9" + j);
+	}
+	FMappedHashMap<CountedKey, String> fmhm;
+	boolean caught_eof = false;
+	try {
+	    File file = File.createTempFile("fset", ".map");
+	    file.deleteOnExit();
+	    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	    // The file mustn't change once it's mapped, so try a truncated one first.
+	    FMappedHashMap.write(fhm, countedKeys, Snapshot.STRINGS, raf.getChannel());
+	    raf.setLength(16);
+	    try {
+		FMappedHashMap.open(raf.getChannel(), countedKeys, Snapshot.STRINGS);
+	    } catch (EOFException e) {
+		caught_eof = true;
+	    }
+	    CountedKey.calls = 0;
+	    FMappedHashMap.write(fhm, countedKeys, Snapshot.STRINGS, raf.getChannel());
+	    fmhm = FMappedHashMap.open(raf.getChannel(), countedKeys, Snapshot.STRINGS, 6);
+	    if (CountedKey.calls != 0) {
+		println("FMappedHashMap rehashed keys on iteration " + i);
+		exit();
+	    }
+	    raf.close();
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	}
+	if (!caught_eof) {
+	    println("FMappedHashMap error checking failed on iteration " + i);
+	    exit();
+	}
+	for (int j = 0; j < 100; ++j) {
+	    CountedKey key = new CountedKey(rand.nextInt(400) - 2);
+	    if (fmhm.containsKey(key) != fhm.containsKey(key) ||
+		!Objects.equals(fmhm.get(key), fhm.get(key))) {
+		println("FMappedHashMap get failed on iteration " + i);
+		exit();
+	    }
+	    int r = rand.nextInt(400) - 2;
+	    if (j % 3 == 0) {
+		fhm = fhm.less(key);
+		fmhm = fmhm.less(key);
+	    } else {
+		fhm = fhm.with(key, "" + r);
+		fmhm = fmhm.with(key, "" + r);
+	    }
+	    if (fmhm.size() != fhm.size()) {
+		println("FMappedHashMap size failed on iteration " + i);
+		exit();
+	    }
+	    if (j % 25 == 0) {
+		FHashMap<CountedKey, String> nfhm = fmhm.toHashMap();
+		int n = 0;
+		for (Map.Entry<CountedKey, String> ent : fmhm) ++n;
+		if (n != fhm.size() || !nfhm.verify() || !nfhm.equals(fhm) ||
+		    !fhm.equals(fmhm) || !fmhm.equals(fhm) ||
+		    fmhm.hashCode() != fhm.hashCode() || !fmhm.getDefault().equals("none") ||
+		    !fmhm.domain().equals(fhm.domain())) {
+		    println("FMappedHashMap failed on iteration " + i);
+		    exit();
+		}
+	    }
+	}
+    }
+
+    // Commits a series of versions at random intervals, and checks `asOf' against a
+    // plain list of them, within the retention limits.
+    static void testFVersionedMap(Random rand, int i) {
+	FHashMap<MyInteger, Integer> fhm = new FHashMap<MyInteger, Integer>();
+	for (int j = 0; j < 200; ++j) fhm = fhm.with(new MyInteger(rand.nextInt(400)), j);
+	long max_age = 100;
+	int max_versions = 5 + rand.nextInt(30);
+	FVersionedMap<MyInteger, Integer> fvm =
+	    new FVersionedMap<MyInteger, Integer>(0, fhm, max_age, max_versions);
+	FVersionedMap<MyInteger, Integer> all =
+	    new FVersionedMap<MyInteger, Integer>(0, fhm, Long.MAX_VALUE, Integer.MAX_VALUE);
+	ArrayList<Long> tss = new ArrayList<Long>();
+	ArrayList<FMap<MyInteger, Integer>> maps = new ArrayList<FMap<MyInteger, Integer>>();
+	tss.add(0L);
+	maps.add(fhm);
+	long ts = 0;
+	for (int j = 0; j < 40; ++j) {
+	    ts += 1 + rand.nextInt(20);
+	    MyInteger key = new MyInteger(rand.nextInt(400));
+	    fhm = j % 3 == 0 ? fhm.less(key) : fhm.with(key, -j);
+	    fvm = fvm.commit(ts, fhm);
+	    all = all.commit(ts, fhm);
+	    tss.add(ts);
+	    maps.add(fhm);
+	}
+	boolean caught = false;
+	try {
+	    fvm.commit(ts, fhm);
+	} catch (IllegalArgumentException e) {
+	    caught = true;
+	}
+	if (!caught || fvm.current() != fhm || fvm.latestTimestamp() != ts ||
+	    fvm.versions().size() > max_versions || all.versions().size() != maps.size() ||
+	    fvm.commit(fhm).latestTimestamp() <= ts) {
+	    println("FVersionedMap commit failed on iteration " + i);
+	    exit();
+	}
+	for (long t = -1; t <= ts + 1; ++t) {
+	    int k = tss.size() - 1;
+	    while (k >= 0 && tss.get(k) > t) --k;
+	    FMap<MyInteger, Integer> expected = k < 0 ? null : maps.get(k);
+	    boolean kept = t >= ts - max_age && tss.size() - k <= max_versions;
+	    if (all.asOf(t) != expected || (kept && fvm.asOf(t) != expected) ||
+		(t < fvm.oldestTimestamp() && fvm.asOf(t) != null)) {
+		println("FVersionedMap asOf failed on iteration " + i);
+		exit();
+	    }
+	}
+	// Copies of the versions that share nothing.
+	FVersionedMap<MyInteger, Integer> copies =
+	    new FVersionedMap<MyInteger, Integer>(0, maps.get(0), Long.MAX_VALUE,
+						  Integer.MAX_VALUE);
+	for (int k = 1; k < maps.size(); ++k)
+	    copies = copies.commit(tss.get(k), new FHashMap.Builder<MyInteger, Integer>()
+						   .putAll(maps.get(k)).build());
+	long shared = all.historyBytes(), unshared = copies.historyBytes();
+	if (shared <= 0 || shared * 3 > unshared ||
+	    new FVersionedMap<MyInteger, Integer>(0, fhm, 10, 10).commit(1, fhm)
+		.historyBytes() != 0) {
+	    println("FVersionedMap historyBytes failed on iteration " + i);
+	    exit();
+	}
+	// Changing one value of a three-pair map copies only its one leaf; the older
+	// version's is a 7-slot `Object[]', 48 bytes, as the hash codes are shared.
+	// `FTreeMap''s leaf has no hash codes; it's a 6-slot `Object[]', 40 bytes.
+	FHashMap<Integer, Integer> small_fhm = new FHashMap<Integer, Integer>().with(1, 1)
+	    .with(2, 2).with(3, 3);
+	FTreeMap<Integer, Integer> small_ftm = new FTreeMap<Integer, Integer>().with(1, 1)
+	    .with(2, 2).with(3, 3);
+	long fhm_bytes = new FVersionedMap<Integer, Integer>(0, small_fhm, 10, 10)
+	    .commit(1, small_fhm.with(2, 20)).historyBytes();
+	long ftm_bytes = new FVersionedMap<Integer, Integer>(0, small_ftm, 10, 10)
+	    .commit(1, small_ftm.with(2, 20)).historyBytes();
+	if (fhm_bytes != 48 || ftm_bytes != 40) {
+	    println("FVersionedMap historyBytes of a small map failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    // Writes a series of versions that share structure with `Snapshot.SharedWriter',
+    // and checks that reading them back restores the sharing: writing the versions
+    // read gives the same bytes.
+    static void testSharedSnapshot(Random rand, int i) {
+	int nversions = 20;
+	ArrayList<FTreeMap<MyInteger, Integer>> ftms = new ArrayList<FTreeMap<MyInteger, Integer>>();
+	ArrayList<FHashSet<CountedKey>> fhss = new ArrayList<FHashSet<CountedKey>>();
+	FTreeMap<MyInteger, Integer> ftm = FTreeMap.withDefault(-1, TestComparator.Instance);
+	FHashSet<CountedKey> fhs = new FHashSet<CountedKey>();
+	for (int j = 0; j < 200; ++j) {
+	    int r = rand.nextInt(400) - 2;
+	    ftm = ftm.with(new MyInteger(r), j);
+	    fhs = fhs.with(new CountedKey(r));
+	}
+	for (int v = 0; v < nversions; ++v) {
+	    ftms.add(ftm);
+	    fhss.add(fhs);
+	    for (int j = 0; j < 3; ++j) {
+		int r = rand.nextInt(400) - 2;
+		if (rand.nextBoolean()) {
+		    ftm = ftm.with(new MyInteger(r), v);
+		    fhs = fhs.with(new CountedKey(r));
+		} else {
+		    ftm = ftm.less(new MyInteger(r));
+		    fhs = fhs.less(new CountedKey(r));
+		}
+	    }
+	}
+	byte[] bytes = writeShared(ftms, fhss);
+	int unshared_size = 0;
+	try {
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    Snapshot.Output out = new Snapshot.Output(Channels.newChannel(bos));
+	    for (int v = 0; v < nversions; ++v) {
+		Snapshot.write(ftms.get(v), myIntegers, Snapshot.INTEGERS, out);
+		Snapshot.write(fhss.get(v), countedKeys, out);
+	    }
+	    out.flush();
+	    unshared_size = bos.size();
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	}
+	ArrayList<FTreeMap<MyInteger, Integer>> nftms = new ArrayList<FTreeMap<MyInteger, Integer>>();
+	ArrayList<FHashSet<CountedKey>> nfhss = new ArrayList<FHashSet<CountedKey>>();
+	CountedKey.calls = 0;
+	try {
+	    Snapshot.SharedReader rdr = new Snapshot.SharedReader(
+		new Snapshot.Input(Channels.newChannel(new ByteArrayInputStream(bytes)), 16));
+	    for (int v = 0; v < nversions; ++v) {
+		nftms.add(rdr.readTreeMap(myIntegers, Snapshot.INTEGERS, TestComparator.Instance));
+		nfhss.add(rdr.readHashSet(countedKeys));
+	    }
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	}
+	if (CountedKey.calls != 0) {
+	    println("Shared snapshot rehashed keys on iteration " + i);
+	    exit();
+	}
+	for (int v = 0; v < nversions; ++v) {
+	    FTreeMap<MyInteger, Integer> nftm = nftms.get(v);
+	    FHashSet<CountedKey> nfhs = nfhss.get(v);
+	    if (!nftm.verify() || !nftm.equals(ftms.get(v)) || nftm.getDefault() != -1 ||
+		nftm.comparator() != TestComparator.Instance || !nfhs.verify() ||
+		!nfhs.equals(fhss.get(v))) {
+		println("Shared snapshot failed on iteration " + i);
+		exit();
+	    }
+	}
+	if (!Arrays.equals(writeShared(nftms, nfhss), bytes) || bytes.length * 3 > unshared_size) {
+	    println("Shared snapshot lost sharing on iteration " + i);
+	    exit();
+	}
+    }
+
+    static byte[] writeShared(ArrayList<FTreeMap<MyInteger, Integer>> ftms,
+			      ArrayList<FHashSet<CountedKey>> fhss) {
+	try {
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    Snapshot.Output out = new Snapshot.Output(Channels.newChannel(bos), 16);
+	    Snapshot.SharedWriter wtr = new Snapshot.SharedWriter(out);
+	    for (int v = 0; v < ftms.size(); ++v) {
+		wtr.write(ftms.get(v), myIntegers, Snapshot.INTEGERS);
+		wtr.write(fhss.get(v), countedKeys);
+	    }
+	    out.flush();
+	    return bos.toByteArray();
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    // The collections cache the hash codes of their subtrees, and compute those of
+    // new versions from the parts they share with old ones.  Check that these agree
+    // with the `java.util' collections after each of a series of updates.
+    static void testIncrementalHashCode(Random rand, int i) {
+	FHashSet<MyInteger> fhs = new FHashSet<MyInteger>();
+	FTreeSet<MyInteger> fts = new FTreeSet<MyInteger>();
+	HashSet<MyInteger> hs = new HashSet<MyInteger>();
+	FHashMap<MyInteger, Integer> fhm = new FHashMap<MyInteger, Integer>();
+	FTreeMap<MyInteger, Integer> ftm = new FTreeMap<MyInteger, Integer>();
+	FIntMap<Integer> fim = new FIntMap<Integer>();
+	HashMap<MyInteger, Integer> hm = new HashMap<MyInteger, Integer>();
+	FTreeList<Integer> ftl = new FTreeList<Integer>();
+	ArrayList<Integer> al = new ArrayList<Integer>();
+	for (int j = 0; j < 300; ++j) {
+	    int r = rand.nextInt(400), v = rand.nextInt(5);
+	    MyInteger R = new MyInteger(r);
+	    fhs = fhs.with(R);
+	    fts = fts.with(R);
+	    hs.add(R);
+	    fhm = fhm.with(R, v);
+	    ftm = ftm.with(R, v);
+	    fim = fim.withInt(r, v);
+	    hm.put(R, v);
+	    ftl = ftl.withLast(r);
+	    al.add(r);
+	}
+	for (int j = 0; j < 20; ++j) {
+	    int r = rand.nextInt(400), v = rand.nextInt(5), idx = rand.nextInt(al.size());
+	    MyInteger R = new MyInteger(r);
+	    if (j % 3 == 0) {
+		fhs = fhs.less(R);
+		fts = fts.less(R);
+		hs.remove(R);
+		fhm = fhm.less(R);
+		ftm = ftm.less(R);
+		fim = fim.less(r);
+		hm.remove(R);
+		ftl = ftl.less(idx);
+		al.remove(idx);
+	    } else {
+		fhs = fhs.with(R);
+		fts = fts.with(R);
+		hs.add(R);
+		fhm = fhm.with(R, v);
+		ftm = ftm.with(R, v);
+		fim = fim.with(r, (Integer)v);
+		hm.put(R, v);
+		ftl = ftl.withInserted(idx, r);
+		al.add(idx, r);
+	    }
+	    int hmhash = hm.hashCode(), fimhash = 0;
+	    for (Map.Entry<MyInteger, Integer> ent : hm.entrySet())
+		fimhash += ent.getKey().intValue() ^ ent.getValue();
+	    if (fhs.hashCode() != hs.hashCode() || fts.hashCode() != hs.hashCode() ||
+		fhm.hashCode() != hmhash || ftm.hashCode() != hmhash ||
+		fim.hashCode() != fimhash || ftl.hashCode() != al.hashCode()) {
+		println("Incremental hashCode failed on iteration " + i);
+		exit();
+	    }
+	}
+    }
+
+    // Versions of a collection made from a common ancestor share most of their
+    // subtrees, which `equals' and `compareTo' skip.  Check that they still agree with
+    // a plain element-by-element comparison.
+    static void testSharedSubtrees(Random rand, int i) {
+	FIntSet fis = new FIntSet();
+	FIntMap<MyInteger> fim = new FIntMap<MyInteger>();
+	FTreeList<Integer> ftl = new FTreeList<Integer>();
+	for (int j = 0; j < 500; ++j) {
+	    int r = rand.nextInt(1000);
+	    fis = fis.with(r);
+	    fim = fim.withInt(r, new MyInteger(rand.nextInt(5)));
+	    ftl = ftl.withLast(r);
+	}
+	int[] elts = fis.toIntArray();
+	for (int j = 0; j < 20; ++j) {
+	    int r0 = elts[rand.nextInt(elts.length)], r1 = rand.nextInt(1000);
+	    int idx0 = rand.nextInt(ftl.size()), idx1 = rand.nextInt(ftl.size());
+	    FIntSet fis2 = j % 4 == 0 ? fis : fis.less(r0).with(r1);
+	    FIntMap<MyInteger> fim2 = j % 4 == 0 ? fim :
+		j % 2 == 0 ? fim.withInt(r0, new MyInteger(rand.nextInt(5))) :
+		fim.less(r0).withInt(r1, fim.get(r0));
+	    FTreeList<Integer> ftl2 = j % 4 == 0 ? ftl :
+		j % 2 == 0 ? ftl.with(idx0, r1) : ftl.less(idx0).withInserted(idx1, r1);
+	    if (sgn(fis.compareTo(fis2)) != compareSeqs(fis, fis2) ||
+		fis.equals(fis2) != new ArrayList<Integer>(fis).equals(new ArrayList<Integer>(fis2)) ||
+		sgn(fim.compareTo(fim2)) != compareEntries(fim, fim2) ||
+		fim.equals(fim2) != new TreeMap<Integer, MyInteger>(fim).equals(fim2) ||
+		sgn(ftl.compareTo(ftl2)) != compareSeqs(ftl, ftl2) ||
+		ftl.equals(ftl2) != new ArrayList<Integer>(ftl).equals(ftl2)) {
+		println("Shared-subtree equals/compareTo failed on iteration " + i);
+		exit();
+	    }
+	}
+	// An equal version that differs from `ftl3' along one path, or two, shares the
+	// rest of its tree, which comparing them should skip.  Comparing elements
+	// can't show whether it does, as even when `rankTrim' leaves the trees out of
+	// step, the shared leaves end up paired by identity; the time it takes is what
+	// grows.  So, occasionally, check that comparing a big list with such a version
+	// takes a small fraction of the time that comparing it with an unshared copy
+	// takes.  Skipping makes the difference a thousandfold or more; walking the
+	// shared nodes, a few times at most.
+	int nelts = 4096 + rand.nextInt(4096);
+	FTreeList<Integer> ftl3 = FTreeList.emptyList();
+	for (int j = 0; j < nelts; ++j) ftl3 = ftl3.withLast(j);
+	for (int j = 0; j < 20; ++j) {
+	    int idx0 = rand.nextInt(nelts), idx1 = rand.nextInt(nelts);
+	    FTreeList<Integer> ftl4 = j % 2 == 0 ? ftl3.with(idx0, idx0) :
+		ftl3.less(idx0).withInserted(idx0, idx0).with(idx1, idx1);
+	    if (!ftl3.equals(ftl4) || ftl3.compareTo(ftl4) != 0) {
+		println("FTreeList shared-subtree comparison failed on iteration " + i);
+		exit();
+	    }
+	}
+	if (i % 100 == 0) {
+	    ArrayList<Integer> al = new ArrayList<Integer>();
+	    for (int j = 0; j < 1 << 20; ++j) al.add(j);
+	    FTreeList<Integer> big = new FTreeList<Integer>(al);
+	    FTreeList<Integer> copy = new FTreeList<Integer>(al);
+	    long shared_nanos = Long.MAX_VALUE, copy_nanos = Long.MAX_VALUE;
+	    for (int j = 0; j < 5; ++j) {
+		int idx = rand.nextInt(al.size());
+		FTreeList<Integer> version = big.with(idx, idx);
+		long t0 = System.nanoTime();
+		boolean shared_ok = big.equals(version) && big.compareTo(version) == 0;
+		long t1 = System.nanoTime();
+		boolean copy_ok = big.equals(copy) && big.compareTo(copy) == 0;
+		long t2 = System.nanoTime();
+		if (!shared_ok || !copy_ok) {
+		    println("FTreeList big shared-subtree comparison failed on iteration " + i);
+		    exit();
+		}
+		shared_nanos = Math.min(shared_nanos, t1 - t0);
+		copy_nanos = Math.min(copy_nanos, t2 - t1);
+	    }
+	    if (shared_nanos * 50 > copy_nanos) {
+		println("FTreeList comparison didn't skip shared subtrees on iteration " + i +
+			" (" + shared_nanos + " ns vs. " + copy_nanos + " ns unshared)");
+		exit();
+	    }
+	}
+    }
+
+    // `MyInteger's hash codes collide in pairs, and `TestComparator' makes them
+    // equivalent in pairs, so this exercises the equivalent-key cases too.
+    static void testDiff(Random rand, int i) {
+	FHashSet<MyInteger> fhs = new FHashSet<MyInteger>();
+	FTreeSet<MyInteger> fts = new FTreeSet<MyInteger>(TestComparator.Instance);
+	FHashMap<MyInteger, MyInteger> fhm = new FHashMap<MyInteger, MyInteger>();
+	FTreeMap<MyInteger, MyInteger> ftm =
+	    new FTreeMap<MyInteger, MyInteger>(TestComparator.Instance);
+	for (int j = 0; j < 200; ++j) {
+	    MyInteger R = new MyInteger(rand.nextInt(400)), V = new MyInteger(rand.nextInt(5));
+	    fhs = fhs.with(R);
+	    fts = fts.with(R);
+	    fhm = fhm.with(R, V);
+	    ftm = ftm.with(R, V);
+	}
+	FHashSet<MyInteger> fhs2 = fhs;
+	FTreeSet<MyInteger> fts2 = fts;
+	FHashMap<MyInteger, MyInteger> fhm2 = fhm;
+	FTreeMap<MyInteger, MyInteger> ftm2 = ftm;
+	int nchanges = rand.nextInt(12);
+	for (int j = 0; j < nchanges; ++j) {
+	    MyInteger R = new MyInteger(rand.nextInt(400)), V = new MyInteger(rand.nextInt(5));
+	    if (rand.nextBoolean()) {
+		fhs2 = fhs2.with(R);
+		fts2 = fts2.with(R);
+		fhm2 = fhm2.with(R, V);
+		ftm2 = ftm2.with(R, V);
+	    } else {
+		fhs2 = fhs2.less(R);
+		fts2 = fts2.less(R);
+		fhm2 = fhm2.less(R);
+		ftm2 = ftm2.less(R);
+	    }
+	}
+	// Also compare against copies that share nothing, and against other classes,
+	// which take the general path.
+	FHashSet<MyInteger> fhs3 = new FHashSet<MyInteger>(new ArrayList<MyInteger>(fhs2));
+	FTreeSet<MyInteger> fts3 =
+	    new FTreeSet<MyInteger>(new ArrayList<MyInteger>(fts2), TestComparator.Instance);
+	FHashMap<MyInteger, MyInteger> fhm3 =
+	    new FHashMap<MyInteger, MyInteger>(new HashMap<MyInteger, MyInteger>(fhm2));
+	FTreeMap<MyInteger, MyInteger> ftm3 =
+	    new FTreeMap<MyInteger, MyInteger>(new HashMap<MyInteger, MyInteger>(ftm2),
+					       TestComparator.Instance);
+	if (!checkDiff(fhs, fhs2) || !checkDiff(fhs2, fhs) || !checkDiff(fhs, fhs3) ||
+	    !checkDiff(fts, fts2) || !checkDiff(fts2, fts) || !checkDiff(fts, fts3) ||
+	    !checkDiff(fhs, fts2) ||
+	    !checkDiff(FLinkedHashSet.<MyInteger>emptySet().union(fhs), fhs2) ||
+	    !checkDiff(fhm, fhm2) || !checkDiff(fhm2, fhm) || !checkDiff(fhm, fhm3) ||
+	    !checkDiff(ftm, ftm2) || !checkDiff(ftm2, ftm) || !checkDiff(ftm, ftm3) ||
+	    !checkDiff(fhm, ftm2) ||
+	    !checkDiff(new FCachedHashMap<MyInteger, MyInteger>(fhm), fhm2)) {
+	    println("Diff failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    // Checks the `NavigableSet' and `NavigableMap' operations against a linear scan
+    // of the elements in iteration order.
+    static void testNavigable(Random rand, int i, Comparator<MyInteger> c) {
+	FTreeSet<MyInteger> fts = new FTreeSet<MyInteger>(c);
+	FTreeMap<MyInteger, MyInteger> ftm = new FTreeMap<MyInteger, MyInteger>(c);
+	int size = rand.nextInt(100);
+	for (int j = 0; j < size; ++j) {
+	    MyInteger R = j == 0 && rand.nextBoolean() ? null : new MyInteger(rand.nextInt(300));
+	    fts = fts.with(R);
+	    ftm = ftm.with(R, new MyInteger(rand.nextInt(5)));
+	}
+	ArrayList<MyInteger> elts = new ArrayList<MyInteger>(fts);
+	ArrayList<MyInteger> keys = new ArrayList<MyInteger>(ftm.keySet());
+	for (int j = 0; j < 20; ++j) {
+	    MyInteger R0 = new MyInteger(rand.nextInt(310) - 5);
+	    MyInteger R1 = new MyInteger(rand.nextInt(310) - 5);
+	    boolean incl0 = rand.nextBoolean(), incl1 = rand.nextBoolean();
+	    if (fts.lower(R0) != nearest(elts, c, R0, false, false) ||
+		fts.floor(R0) != nearest(elts, c, R0, false, true) ||
+		fts.ceiling(R0) != nearest(elts, c, R0, true, true) ||
+		fts.higher(R0) != nearest(elts, c, R0, true, false) ||
+		ftm.lowerKey(R0) != nearest(keys, c, R0, false, false) ||
+		ftm.floorKey(R0) != nearest(keys, c, R0, false, true) ||
+		ftm.ceilingKey(R0) != nearest(keys, c, R0, true, true) ||
+		ftm.higherKey(R0) != nearest(keys, c, R0, true, false) ||
+		!checkEntry(ftm, ftm.lowerEntry(R0), ftm.lowerKey(R0)) ||
+		!checkEntry(ftm, ftm.floorEntry(R0), ftm.floorKey(R0)) ||
+		!checkEntry(ftm, ftm.ceilingEntry(R0), ftm.ceilingKey(R0)) ||
+		!checkEntry(ftm, ftm.higherEntry(R0), ftm.higherKey(R0))) {
+		println("Navigable floor/ceiling failed on iteration " + i);
+		exit();
+	    }
+	    ArrayList<MyInteger> sub = new ArrayList<MyInteger>();
+	    ArrayList<MyInteger> head = new ArrayList<MyInteger>();
+	    ArrayList<MyInteger> tail = new ArrayList<MyInteger>();
+	    for (MyInteger x : elts) {
+		int comp0 = compare(c, x, R0), comp1 = compare(c, x, R1);
+		boolean above = comp0 > 0 || (incl0 && comp0 == 0);
+		boolean below = comp1 < 0 || (incl1 && comp1 == 0);
+		if (above && below) sub.add(x);
+		if (below) head.add(x);
+		if (above) tail.add(x);
+	    }
+	    FTreeSet<MyInteger> fts_sub = fts.subSet(R0, incl0, R1, incl1);
+	    if (!new ArrayList<MyInteger>(fts_sub).equals(sub) || !fts_sub.verify() ||
+		!new ArrayList<MyInteger>(fts.headSet(R1, incl1)).equals(head) ||
+		!new ArrayList<MyInteger>(fts.tailSet(R0, incl0)).equals(tail) ||
+		!ftm.subMap(R0, incl0, R1, incl1).domain().equals(fts_sub) ||
+		!ftm.headMap(R1, incl1).domain().equals(fts.headSet(R1, incl1)) ||
+		!ftm.tailMap(R0, incl0).domain().equals(fts.tailSet(R0, incl0))) {
+		println("Navigable subSet/subMap failed on iteration " + i);
+		exit();
+	    }
+	    FTreeSet.RangeView<MyInteger> fts_view = fts.subSetView(R0, incl0, R1, incl1);
+	    FTreeMap<MyInteger, MyInteger> ftm_sub = ftm.subMap(R0, incl0, R1, incl1);
+	    FTreeMap.RangeView<MyInteger, MyInteger> ftm_view =
+		ftm.subMapView(R0, incl0, R1, incl1);
+	    MyInteger R2 = new MyInteger(rand.nextInt(310) - 5);
+	    if (!new ArrayList<MyInteger>(fts_view).equals(sub) || fts_view.size() != sub.size() ||
+		fts_view.contains(R2) != fts_sub.contains(R2) ||
+		!new ArrayList<MyInteger>(fts.headSetView(R1, incl1)).equals(head) ||
+		!new ArrayList<MyInteger>(fts.tailSetView(R0, incl0)).equals(tail) ||
+		(!sub.isEmpty() && (fts_view.first() != sub.get(0) ||
+				    fts_view.last() != sub.get(sub.size() - 1))) ||
+		!fts_view.equals(fts_sub) || !fts_view.materialize().equals(fts_sub) ||
+		!fts_view.with(R2).equals(fts_sub.with(R2)) ||
+		!fts_view.less(R2).equals(fts_sub.less(R2)) ||
+		!new ArrayList<Map.Entry<MyInteger, MyInteger>>(ftm_view.entrySet())
+		     .equals(new ArrayList<Map.Entry<MyInteger, MyInteger>>(ftm_sub.entrySet())) ||
+		ftm_view.size() != ftm_sub.size() ||
+		ftm_view.containsKey(R2) != ftm_sub.containsKey(R2) ||
+		ftm_view.get(R2) != ftm_sub.get(R2) || !ftm_view.equals(ftm_sub) ||
+		!ftm.headMapView(R1, incl1).equals(ftm.headMap(R1, incl1)) ||
+		!ftm.tailMapView(R0, incl0).equals(ftm.tailMap(R0, incl0)) ||
+		!ftm_view.with(R2, R2).equals(ftm_sub.with(R2, R2))) {
+		println("Range view failed on iteration " + i);
+		exit();
+	    }
+	}
+	ArrayList<MyInteger> rev = new ArrayList<MyInteger>();
+	for (Iterator<MyInteger> it = fts.descendingIterator(); it.hasNext(); ) rev.add(it.next());
+	ArrayList<MyInteger> rev_elts = new ArrayList<MyInteger>(elts);
+	Collections.reverse(rev_elts);
+	if (!rev.equals(rev_elts)) {
+	    println("Navigable descendingIterator failed on iteration " + i);
+	    exit();
+	}
+	// `null' precedes the other elements in either ordering.
+	if (!rev_elts.isEmpty() && rev_elts.get(rev_elts.size() - 1) == null)
+	    rev_elts.add(0, rev_elts.remove(rev_elts.size() - 1));
+	FTreeSet<MyInteger> desc = fts.descendingSet();
+	FTreeMap<MyInteger, MyInteger> desc_map = ftm.descendingMap();
+	if (!new ArrayList<MyInteger>(desc).equals(rev_elts) || !desc.verify() ||
+	    !desc.equals(fts) || desc.descendingSet().comparator() != c ||
+	    !desc.descendingSet().equals(fts) || !desc_map.equals(ftm) ||
+	    !desc_map.domain().equals(ftm.descendingKeySet()) ||
+	    !desc_map.descendingMap().equals(ftm) ||
+	    !new ArrayList<MyInteger>(ftm.descendingKeySet()).equals(
+		 new ArrayList<MyInteger>(ftm.descendingMap().keySet()))) {
+	    println("Navigable descendingSet/Map failed on iteration " + i);
+	    exit();
+	}
+	if (fts.isEmpty() ?
+	    (fts.lessFirst() != fts || ftm.lessLast() != ftm || ftm.firstEntry() != null) :
+	    (!fts.lessFirst().equals(fts.less(elts.get(0))) ||
+	     !fts.lessLast().equals(fts.less(elts.get(elts.size() - 1))) ||
+	     !ftm.lessFirst().equals(ftm.less(keys.get(0))) ||
+	     !ftm.lessLast().equals(ftm.less(keys.get(keys.size() - 1))) ||
+	     !checkEntry(ftm, ftm.firstEntry(), keys.get(0)) ||
+	     !checkEntry(ftm, ftm.lastEntry(), keys.get(keys.size() - 1)))) {
+	    println("Navigable lessFirst/lessLast failed on iteration " + i);
+	    exit();
+	}
+    }
+
+    static void testRank(Random rand, int i) {
+	FTreeSet<MyInteger> fts = new FTreeSet<MyInteger>(TestComparator.Instance);
+	FTreeMap<MyInteger, MyInteger> ftm =
+	    new FTreeMap<MyInteger, MyInteger>(TestComparator.Instance);
+	FHashSet<MyInteger> fhs = new FHashSet<MyInteger>();
+	int size = rand.nextInt(150);
+	for (int j = 0; j < size; ++j) {
+	    MyInteger R = new MyInteger(rand.nextInt(300));
+	    fts = fts.with(R);
+	    ftm = ftm.with(R, new MyInteger(rand.nextInt(5)));
+	    fhs = fhs.with(R);
+	}
+	ArrayList<MyInteger> elts = new ArrayList<MyInteger>(fts);
+	ArrayList<Map.Entry<MyInteger, MyInteger>> ents =
+	    new ArrayList<Map.Entry<MyInteger, MyInteger>>(ftm.entrySet());
+	ArrayList<MyInteger> helts = new ArrayList<MyInteger>(fhs);
+	for (int j = 0; j < elts.size(); ++j) {
+	    if (fts.get(j) != elts.get(j) || fts.rankOf(elts.get(j)) != j ||
+		!ftm.getByRank(j).equals(ents.get(j)) ||
+		ftm.rankOf(ents.get(j).getKey()) != j ||
+		fhs.get(j) != helts.get(j) || fhs.rankOf(helts.get(j)) != j) {
+		println("Rank get/rankOf failed on iteration " + i);
+		exit();
+	    }
+	}
+	for (int j = 0; j < 20; ++j) {
+	    MyInteger R0 = new MyInteger(rand.nextInt(300)), R1 = new MyInteger(rand.nextInt(300));
+	    int from = rand.nextInt(elts.size() + 1);
+	    int to = from + rand.nextInt(elts.size() + 1 - from);
+	    FTreeSet<MyInteger> fts_sub = fts.subSetByRank(from, to);
+	    FTreeMap<MyInteger, MyInteger> ftm_sub = ftm.subMapByRank(from, to);
+	    FHashSet<MyInteger> fhs_sub = fhs.subSetByRank(from, to);
+	    if ((fts.rankOf(R0) >= 0) != fts.contains(R0) ||
+		(ftm.rankOf(R0) >= 0) != ftm.containsKey(R0) ||
+		(fhs.rankOf(R0) >= 0) != fhs.contains(R0) ||
+		!new ArrayList<MyInteger>(fts_sub).equals(elts.subList(from, to)) ||
+		!fts_sub.verify() ||
+		!new ArrayList<Map.Entry<MyInteger, MyInteger>>(ftm_sub.entrySet())
+		     .equals(ents.subList(from, to)) || !ftm_sub.verify() ||
+		!new ArrayList<MyInteger>(fhs_sub).equals(helts.subList(from, to)) ||
+		!fhs_sub.verify() ||
+		fts.countInRange(R0, R1) != fts.subSet(R0, R1).size() ||
+		ftm.countInRange(R0, R1) != ftm.subMap(R0, R1).size()) {
+		println("Rank subSetByRank/countInRange failed on iteration " + i);
+		exit();
+	    }
+	}
+	try {
+	    fts.get(elts.size());
+	    println("Rank get failed to throw on iteration " + i);
+	    exit();
+	} catch (IndexOutOfBoundsException e) {
+	}
+    }
+
+    // Finds the element nearest `x' in a sorted list by linear scan; see
+    // `FTreeSet.floor' etc. for how equivalent elements are treated.
+    static MyInteger nearest(List<MyInteger> elts, Comparator<MyInteger> c, MyInteger x,
+			     boolean above, boolean inclusive) {
+	MyInteger res = null;
+	boolean found = false;
+	for (MyInteger e : elts) {
+	    int comp_res = compare(c, e, x);
+	    if (inclusive && comp_res == 0 && x.equals(e)) return e;
+	    else if (above ? comp_res > 0 || (inclusive && comp_res == 0) :
+		     comp_res < 0 || (inclusive && comp_res == 0)) {
+		if (!above || !found) res = e;
+		found = true;
+	    }
+	}
+	return res;
+    }
+
+    static int compare(Comparator<MyInteger> c, MyInteger x, MyInteger y) {
+	if (x == null) return y == null ? 0 : -1;
+	else if (y == null) return 1;
+	else return c == null ? x.compareTo(y) : c.compare(x, y);
+    }
+
+    static boolean checkEntry(FTreeMap<MyInteger, MyInteger> ftm,
+			      Map.Entry<MyInteger, MyInteger> ent, MyInteger key) {
+	if (ent == null) return key == null;
+	else return ent.getKey() == key && ent.getValue() == ftm.get(key);
+    }
+
+    static <T> boolean checkDiff(FSet<T> s1, FSet<T> s2) {
+	HashSet<T> added = new HashSet<T>(), removed = new HashSet<T>();
+	for (T x : s2)
+	    if (!s1.contains(x)) added.add(x);
+	for (T x : s1)
+	    if (!s2.contains(x)) removed.add(x);
+	final int[] count = new int[1];
+	s1.diff(s2, new SetDiff.Handler<T>() {
+		public void added(T elt) { ++count[0]; }
+		public void removed(T elt) { ++count[0]; }
+	    });
+	SetDiff<T> d = s1.diff(s2);
+	return d.added().equals(added) && d.removed().equals(removed) &&
+	       count[0] == added.size() + removed.size() &&
+	       d.added().getClass() == s1.getClass();
+    }
+
+    static <K, V> boolean checkDiff(FMap<K, V> m1, FMap<K, V> m2) {
+	HashMap<K, V> added = new HashMap<K, V>(), removed = new HashMap<K, V>();
+	HashMap<K, V> changed = new HashMap<K, V>();
+	for (Map.Entry<K, V> ent : m2)
+	    if (!m1.containsKey(ent.getKey())) added.put(ent.getKey(), ent.getValue());
+	for (Map.Entry<K, V> ent : m1) {
+	    K key = ent.getKey();
+	    if (!m2.containsKey(key)) removed.put(key, ent.getValue());
+	    else if (!ent.getValue().equals(m2.get(key))) changed.put(key, m2.get(key));
+	}
+	final int[] count = new int[1];
+	final HashMap<K, V> old_vals = new HashMap<K, V>();
+	m1.diff(m2, new MapDiff.Handler<K, V>() {
+		public void added(K key, V value) { ++count[0]; }
+		public void removed(K key, V value) { ++count[0]; }
+		public void changed(K key, V oldValue, V newValue) {
+		    ++count[0];
+		    old_vals.put(key, oldValue);
+		}
+	    });
+	for (Map.Entry<K, V> ent : old_vals.entrySet())
+	    if (!ent.getValue().equals(m1.get(ent.getKey()))) return false;
+	MapDiff<K, V> d = m1.diff(m2);
+	return d.added().equals(added) && d.removed().equals(removed) &&
+	       d.changed().equals(changed) &&
+	       count[0] == added.size() + removed.size() + changed.size() &&
+	       d.added().getClass() == m1.getClass();
+    }
+
+    // Compares by size, then lexicographically.
+    static <T extends Comparable<? super T>> int compareSeqs(Collection<T> a,
+							    Collection<T> b) {
+	if (a.size() != b.size()) return a.size() < b.size() ? -1 : 1;
+	Iterator<T> ita = a.iterator(), itb = b.iterator();
+	while (ita.hasNext()) {
+	    T x = ita.next(), y = itb.next();
+	    int comp_res = x == y ? 0 : sgn(x.compareTo(y));
+	    if (comp_res != 0) return comp_res;
+	}
+	return 0;
+    }
+
+    // Compares by size, then lexicographically by key, then value.
+    static int compareEntries(Map<Integer, MyInteger> a, Map<Integer, MyInteger> b) {
+	if (a.size() != b.size()) return a.size() < b.size() ? -1 : 1;
+	Iterator<Map.Entry<Integer, MyInteger>> ita = a.entrySet().iterator();
+	Iterator<Map.Entry<Integer, MyInteger>> itb = b.entrySet().iterator();
+	while (ita.hasNext()) {
+	    Map.Entry<Integer, MyInteger> x = ita.next(), y = itb.next();
+	    int comp_res = sgn(x.getKey().compareTo(y.getKey()));
+	    if (comp_res == 0 && x.getValue() != y.getValue())
+		comp_res = sgn(x.getValue().compareTo(y.getValue()));
+	    if (comp_res != 0) return comp_res;
+	}
+	return 0;
+    }
+
+    static Object reserialize(Object obj) {
+	try {
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    ObjectOutputStream oos = new ObjectOutputStream(bos);
+	    oos.writeObject(obj);
+	    oos.close();
+	    ObjectInputStream ois =
+		new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+	    Object res = ois.readObject();
+	    ois.close();
+	    return res;
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	} catch (ClassNotFoundException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
     static void testFTreeList(Random rand, int i) {
 	FTreeList<MyInteger> ftl0 = new FTreeList<MyInteger>();
 	// No `java.util' List class has both log-time-or-better indexing and
@@ -1457,7 +3095,8 @@ public class TestSuite {
 	    println(al0);
 	    exit();
 	}
-	if (!ftl0.equals(new FTreeList<MyInteger>(al0))) {
+	if (!ftl0.equals(new FTreeList<MyInteger>(al0)) ||
+	    !new FTreeList<MyInteger>(al0).verify()) {
 	    println("FTreeList Equality failed (ftl0, B) on iteration " + i);
 	    println(ftl0.dump());
 	    println(al0);
@@ -1525,6 +3164,18 @@ public class TestSuite {
 	    println(al0s);
 	    exit();
 	}
+	// Sorting a sorted list changes nothing; sorting a nearly sorted one reuses most
+	// of it.
+	int spos = rand.nextInt(ftl0s.size());
+	FTreeList<MyInteger> ftl0t = ftl0s.less(spos).withFirst(ftl0s.get(spos));
+	ArrayList<MyInteger> al0t = new ArrayList<MyInteger>(ftl0t);
+	al0t.sort(TestComparator.Instance);
+	if (ftl0s.sorted(TestComparator.Instance) != ftl0s || !ftl0s.verify() ||
+	    !ftl0t.sorted(TestComparator.Instance).equals(al0t) ||
+	    !ftl0t.sorted(TestComparator.Instance).verify()) {
+	    println("FTreeList resort failed on iteration " + i);
+	    exit();
+	}
 	ListIterator<MyInteger> ftli = ftl0.listIterator();
 	ListIterator<MyInteger> ali = al0.listIterator();
 	//FTreeList.debug = true;
@@ -1586,6 +3237,9 @@ public class TestSuite {
 	    println("FTreeList suffix or isSuffix failed on iteration " + i);
 	    exit();
 	}
+	testSpliterator("FTreeList", ftl0, ftl0.size(), i);
+	Stopper stop = new Stopper(ftl0.size() / 2 + 1);
+	testForEachWhile("FTreeList", ftl0.forEachWhile(stop.pred()), stop, ftl0.size(), i);
 	if (i % 50 == 0) {
 	    try {
 		// Check handling of null list
@@ -1614,6 +3268,181 @@ public class TestSuite {
 	}
     }
 
+    static void testFDequeList(Random rand, int i) {
+	// Start with some elements in the tree and none at the ends.
+	ArrayList<MyInteger> al = new ArrayList<MyInteger>();
+	for (int j = rand.nextInt(100); j > 0; --j) al.add(new MyInteger(rand.nextInt(200)));
+	FDequeList<MyInteger> fdl = new FDequeList<MyInteger>(al);
+	// Mostly operations at the ends.  The list grows for the first half, then
+	// wanders, so the end arrays fill up and run out repeatedly, and chunks move in
+	// and out of the tree.
+	for (int j = 0; j < 300; ++j) {
+	    int r = rand.nextInt(200);
+	    MyInteger R = r == 57 ? null : new MyInteger(r);
+	    int which = rand.nextInt(j < 150 || al.size() < 20 ? 4 : 12);
+	    if (which == 0) {
+		fdl = fdl.withFirst(R);
+		al.add(0, R);
+	    } else if (which == 1) {
+		fdl = fdl.withLast(R);
+		al.add(R);
+	    } else if (which == 2 || (which >= 6 && which < 8)) {
+		int pos = rand.nextInt(al.size() + 1);
+		fdl = fdl.withInserted(pos, R);
+		al.add(pos, R);
+	    } else if (which == 3 || al.isEmpty()) {
+		int pos = rand.nextInt(al.size() + 1);
+		fdl = fdl.with(pos, R);
+		if (pos == al.size()) al.add(R);
+		else al.set(pos, R);
+	    } else if (which == 4 || which == 9) {
+		fdl = fdl.lessFirst();
+		al.remove(0);
+	    } else if (which == 5 || which == 10 || which == 11) {
+		fdl = fdl.lessLast();
+		al.remove(al.size() - 1);
+	    } else {
+		int pos = rand.nextInt(al.size());
+		fdl = fdl.less(pos);
+		al.remove(pos);
+	    }
+	    if (fdl.size() != al.size() || !fdl.equals(al) || fdl.hashCode() != al.hashCode()) {
+		println("FDequeList update failed on iteration " + i + "." + j);
+		exit();
+	    }
+	}
+	for (int j = 0; j < al.size(); ++j) {
+	    if (!equals(fdl.get(j), al.get(j))) {
+		println("FDequeList get failed on iteration " + i + "." + j);
+		exit();
+	    }
+	}
+	MyInteger x = new MyInteger(rand.nextInt(200));
+	if (fdl.indexOf(x) != al.indexOf(x) || fdl.lastIndexOf(x) != al.lastIndexOf(x) ||
+	    fdl.indexOf(null) != al.indexOf(null)) {
+	    println("FDequeList indexOf failed on iteration " + i);
+	    exit();
+	}
+	int lo = rand.nextInt(al.size() + 1), hi = rand.nextInt(al.size() + 1);
+	if (lo > hi) { int tmp = lo; lo = hi; hi = tmp; }
+	if (!fdl.subseq(lo, hi).equals(al.subList(lo, hi))) {
+	    println("FDequeList subseq failed on iteration " + i);
+	    exit();
+	}
+	ArrayList<MyInteger> alc = new ArrayList<MyInteger>(al);
+	alc.addAll(al.subList(lo, hi));
+	if (!fdl.concat(fdl.subseq(lo, hi)).equals(alc) ||
+	    !fdl.concat(new FTreeList<MyInteger>(al.subList(lo, hi))).equals(alc)) {
+	    println("FDequeList concat failed on iteration " + i);
+	    exit();
+	}
+	ArrayList<MyInteger> alr = new ArrayList<MyInteger>(al);
+	Collections.reverse(alr);
+	if (!fdl.reverse().equals(alr)) {
+	    println("FDequeList reverse failed on iteration " + i);
+	    exit();
+	}
+	ListIterator<MyInteger> fdli = fdl.listIterator(lo);
+	ListIterator<MyInteger> ali = al.listIterator(lo);
+	for (int j = 0; j < 2 * al.size(); ++j) {
+	    boolean fwd = rand.nextBoolean();
+	    if (fdli.nextIndex() != ali.nextIndex() ||
+		(fwd ? fdli.hasNext() != ali.hasNext() : fdli.hasPrevious() != ali.hasPrevious()) ||
+		(fwd ? ali.hasNext() && !equals(fdli.next(), ali.next())
+		 : ali.hasPrevious() && !equals(fdli.previous(), ali.previous()))) {
+		println("FDequeList listIterator failed on iteration " + i + "." + j);
+		exit();
+	    }
+	}
+	ArrayList<MyInteger> als = new ArrayList<MyInteger>(al);
+	als.sort(TestComparator.Instance);
+	if (!fdl.sorted(TestComparator.Instance).equals(als)) {
+	    println("FDequeList sorted failed on iteration " + i);
+	    exit();
+	}
+	Stopper stop = new Stopper(fdl.size() / 2 + 1);
+	testForEachWhile("FDequeList", fdl.forEachWhile(stop.pred()), stop, fdl.size(), i);
+	if (i % 50 == 0) {
+	    FDequeList<MyInteger> nfdl = (FDequeList<MyInteger>)reserialize(fdl);
+	    if (!nfdl.equals(fdl) || nfdl.hashCode() != fdl.hashCode() ||
+		nfdl.compareTo(fdl) != 0) {
+		println("FDequeList read/write failed on iteration " + i);
+		exit();
+	    }
+	}
+    }
+
+    static void testFIndexedList(Random rand, int i) {
+	ArrayList<MyInteger> al = new ArrayList<MyInteger>();
+	for (int j = rand.nextInt(50); j > 0; --j) al.add(new MyInteger(rand.nextInt(40)));
+	FIndexedList<MyInteger> fil = new FIndexedList<MyInteger>(al);
+	// Small values, so there are plenty of duplicates.  `subseq' and `concat' leave
+	// stale labels in the index, which the lookups have to ignore.
+	for (int j = 0; j < 200; ++j) {
+	    int r = rand.nextInt(40);
+	    MyInteger R = r == 17 ? null : new MyInteger(r);
+	    int which = rand.nextInt(8);
+	    if (which == 0) {
+		fil = fil.withFirst(R);
+		al.add(0, R);
+	    } else if (which == 1) {
+		fil = fil.withLast(R);
+		al.add(R);
+	    } else if (which == 2) {
+		int pos = rand.nextInt(al.size() + 1);
+		fil = fil.withInserted(pos, R);
+		al.add(pos, R);
+	    } else if (which == 3 && !al.isEmpty()) {
+		int pos = rand.nextInt(al.size());
+		fil = fil.with(pos, R);
+		al.set(pos, R);
+	    } else if (which == 4 && !al.isEmpty()) {
+		int pos = rand.nextInt(al.size());
+		fil = fil.less(pos);
+		al.remove(pos);
+	    } else if (which == 5) {
+		int lo = rand.nextInt(al.size() + 1), hi = rand.nextInt(al.size() + 1);
+		if (lo > hi) { int tmp = lo; lo = hi; hi = tmp; }
+		if (hi - lo < al.size() / 2) hi = Math.min(al.size(), lo + al.size() / 2 + 1);
+		fil = fil.subseq(lo, hi);
+		al = new ArrayList<MyInteger>(al.subList(lo, hi));
+	    } else if (which == 6) {
+		int lo = rand.nextInt(al.size() + 1);
+		FIndexedList<MyInteger> part = fil.subseq(lo, al.size());
+		ArrayList<MyInteger> alpart = new ArrayList<MyInteger>(al.subList(lo, al.size()));
+		if (rand.nextBoolean()) {
+		    fil = part.concat(fil);
+		    alpart.addAll(al);
+		    al = alpart;
+		} else {
+		    fil = fil.concat(part);
+		    al.addAll(alpart);
+		}
+	    }
+	    if (!fil.equals(al) || fil.hashCode() != al.hashCode()) {
+		println("FIndexedList update failed on iteration " + i + "." + j);
+		exit();
+	    }
+	    for (int k = 0; k < 5; ++k) {
+		int x = rand.nextInt(41);
+		MyInteger X = x == 17 ? null : new MyInteger(x);
+		if (fil.indexOf(X) != al.indexOf(X) || fil.lastIndexOf(X) != al.lastIndexOf(X) ||
+		    fil.contains(X) != al.contains(X)) {
+		    println("FIndexedList indexOf failed on iteration " + i + "." + j);
+		    exit();
+		}
+	    }
+	}
+	if (i % 50 == 0) {
+	    FIndexedList<MyInteger> nfil = (FIndexedList<MyInteger>)reserialize(fil);
+	    MyInteger X = al.isEmpty() ? null : al.get(al.size() - 1);
+	    if (!nfil.equals(fil) || nfil.indexOf(X) != al.indexOf(X)) {
+		println("FIndexedList read/write failed on iteration " + i);
+		exit();
+	    }
+	}
+    }
+
     static class MyInteger implements Comparable<MyInteger>, Serializable {
 	MyInteger(int val) { value = val; }
 	private int value;
@@ -0,0 +1,125 @@
+/*
+ * TreeSpliterator.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * The part of a <code>Spliterator</code> that is common to all the FSet
+ * collections.  Since every subtree knows its own size, splitting is exact: the
+ * spliterator hands off the left subtree of the current node, and keeps the node's
+ * own element(s) and its right subtree, so both halves are <code>SIZED</code> and
+ * <code>SUBSIZED</code>.  The subclasses supply the tree layout, and an iterator
+ * to do the actual traversal once splitting is over.
+ */
+/*pkg*/ abstract class TreeSpliterator<T> implements Spliterator<T> {
+
+    /* The elements remaining are those held directly by the node `pending' (if it's
+     * not null), followed by those of `subtree'. */
+    protected TreeSpliterator(Object _pending, Object _subtree, int _characteristics) {
+	pending = _pending;
+	subtree = _subtree;
+	characteristics = _characteristics;
+    }
+
+    private Object pending;
+    private Object subtree;
+    private final int characteristics;
+    private int pending_index = 0;
+    private Iterator<T> it = null;
+    private long remaining = -1;	// computed on demand; exact thereafter
+
+    /* Makes a spliterator of the same kind over `pending' followed by `subtree'. */
+    protected abstract TreeSpliterator<T> make(Object pending, Object subtree);
+
+    protected abstract boolean isNode(Object subtree);
+
+    protected abstract Object left(Object node);
+
+    protected abstract Object right(Object node);
+
+    protected abstract int subtreeSize(Object subtree);
+
+    /* The number of elements held by the node itself (as opposed to its subtrees);
+     * this is more than one for an equivalence class, and zero for a list. */
+    protected abstract int nodeElementCount(Object node);
+
+    protected abstract T nodeElement(Object node, int index);
+
+    protected abstract Iterator<T> iterator(Object subtree);
+
+    /* Visits the elements of `subtree' in order.  Subclasses that can do this
+     * without allocating should override it. */
+    protected void walk(Object subtree, Consumer<? super T> action) {
+	for (Iterator<T> it = iterator(subtree); it.hasNext(); ) action.accept(it.next());
+    }
+
+    public Spliterator<T> trySplit() {
+	// Once traversal has begun, we don't try to split any more.
+	if (it != null || pending_index > 0 || !isNode(subtree)) return null;
+	Object node = subtree;
+	TreeSpliterator<T> prefix = make(pending, left(node));
+	pending = node;
+	subtree = right(node);
+	remaining = -1;
+	return prefix;
+    }
+
+    public boolean tryAdvance(Consumer<? super T> action) {
+	if (action == null) throw new NullPointerException();
+	if (remaining < 0) estimateSize();	// so we can keep it exact as we go
+	if (pending != null) {
+	    if (pending_index < nodeElementCount(pending)) {
+		T elt = nodeElement(pending, pending_index++);
+		--remaining;
+		action.accept(elt);
+		return true;
+	    }
+	    pending = null;
+	}
+	if (it == null) it = iterator(subtree);
+	if (!it.hasNext()) return false;
+	T elt = it.next();
+	--remaining;
+	action.accept(elt);
+	return true;
+    }
+
+    public void forEachRemaining(Consumer<? super T> action) {
+	if (action == null) throw new NullPointerException();
+	if (it != null) {
+	    // Already partway through the subtree.
+	    while (it.hasNext()) action.accept(it.next());
+	} else {
+	    if (pending != null) {
+		for (int n = nodeElementCount(pending); pending_index < n; )
+		    action.accept(nodeElement(pending, pending_index++));
+		pending = null;
+	    }
+	    Object st = subtree;
+	    subtree = null;
+	    it = Collections.<T>emptyIterator();
+	    walk(st, action);
+	}
+	remaining = 0;
+    }
+
+    public long estimateSize() {
+	if (remaining < 0)
+	    remaining = (pending == null ? 0 : nodeElementCount(pending) - pending_index) +
+			subtreeSize(subtree);
+	return remaining;
+    }
+
+    public int characteristics() {
+	return characteristics;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * FListBenchmark.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import com.ergy.fset.FTreeList;
+
+/* `FTreeList'.  `JdkListBenchmark' has the same operations on `ArrayList', for
+ * comparison. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FListBenchmark extends KeyState {
+
+    private FTreeList<Object> list;
+    private FTreeList<Object> same;		// equal to `list', but built separately
+    private FTreeList<Object> other;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+	makeKeys();
+	list = make(keys);
+	same = make(keys);
+	other = make(others);
+    }
+
+    private static FTreeList<Object> make(Object[] elts) {
+	FTreeList<Object> l = new FTreeList<Object>();
+	for (Object elt : elts) l = l.withLast(elt);
+	return l;
+    }
+
+    @Benchmark
+    public FTreeList<Object> with() {
+	return list.with(nextIndex(), absent[0]);
+    }
+
+    @Benchmark
+    public FTreeList<Object> withInserted() {
+	return list.withInserted(nextIndex(), absent[0]);
+    }
+
+    @Benchmark
+    public FTreeList<Object> less() {
+	return list.less(nextIndex());
+    }
+
+    @Benchmark
+    public Object get() {
+	return list.get(nextIndex());
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+	for (Object elt : list) bh.consume(elt);
+    }
+
+    @Benchmark
+    public void forEach(final Blackhole bh) {
+	list.forEach(new Consumer<Object>() {
+		public void accept(Object elt) {
+		    bh.consume(elt);
+		}
+	    });
+    }
+
+    @Benchmark
+    public FTreeList<Object> subseq() {
+	return list.subseq(size / 4, 3 * size / 4);
+    }
+
+    @Benchmark
+    public FTreeList<Object> concat() {
+	return list.concat(other);
+    }
+
+    @Benchmark
+    public boolean isEqual() {
+	return list.equals(same);
+    }
+
+    @Benchmark
+    public int compare() {
+	return list.compareTo(same);
+    }
+
+    // See `FSetBenchmark.Fresh'.
+    @State(Scope.Thread)
+    public static class Fresh {
+	FTreeList<Object> list;
+	@Setup(Level.Invocation)
+	public void setUp(FListBenchmark b) {
+	    list = b.list.withLast(b.absent[0]).lessLast();
+	}
+    }
+
+    @Benchmark
+    public int hash(Fresh fresh) {
+	return fresh.list.hashCode();
+    }
+
+    @Benchmark
+    public Object serialize() {
+	return roundTrip(list);
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * FMapBenchmark.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import com.ergy.fset.FHashMap;
+import com.ergy.fset.FLinkedHashMap;
+import com.ergy.fset.FMap;
+import com.ergy.fset.FSet;
+import com.ergy.fset.FTreeMap;
+
+/* The FSet map classes.  `JdkMapBenchmark' has the same operations, where they
+ * exist, on the `java.util' maps, for comparison.  `restrictedTo' and
+ * `restrictedFrom' are the map analogues of `intersection' and `difference'. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FMapBenchmark extends KeyState {
+
+    @Param({"FHashMap", "FTreeMap", "FLinkedHashMap"})
+    public String impl;
+
+    private FMap<Object, Object> map;
+    private FMap<Object, Object> same;		// equal to `map', but built separately
+    private FMap<Object, Object> other;		// overlaps `map' by half
+    private FSet<Object> other_keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+	makeKeys();
+	map = make(keys, false);
+	same = make(keys, true);
+	other = make(others, false);
+	other_keys = other.domain();
+    }
+
+    private FMap<Object, Object> make(Object[] ks, boolean reversed) {
+	FMap<Object, Object> m;
+	if (impl.equals("FHashMap")) m = new FHashMap<Object, Object>();
+	else if (impl.equals("FTreeMap")) m = new FTreeMap<Object, Object>();
+	else if (impl.equals("FLinkedHashMap")) m = new FLinkedHashMap<Object, Object>();
+	else throw new IllegalArgumentException("Unknown implementation: " + impl);
+	for (int i = 0; i < ks.length; ++i) {
+	    int j = reversed ? ks.length - 1 - i : i;
+	    m = m.with(ks[j], j);
+	}
+	return m;
+    }
+
+    @Benchmark
+    public FMap<Object, Object> with() {
+	return map.with(absent[nextIndex()], 0);
+    }
+
+    @Benchmark
+    public FMap<Object, Object> withExisting() {
+	return map.with(keys[nextIndex()], -1);
+    }
+
+    @Benchmark
+    public FMap<Object, Object> less() {
+	return map.less(keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public Object get() {
+	return map.get(keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public Object getMiss() {
+	return map.get(absent[nextIndex()]);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+	for (Map.Entry<Object, Object> ent : map) {
+	    bh.consume(ent.getKey());
+	    bh.consume(ent.getValue());
+	}
+    }
+
+    @Benchmark
+    public void forEach(final Blackhole bh) {
+	map.forEach(new BiConsumer<Object, Object>() {
+		public void accept(Object k, Object v) {
+		    bh.consume(k);
+		    bh.consume(v);
+		}
+	    });
+    }
+
+    @Benchmark
+    public FMap<Object, Object> union() {
+	return map.union(other);
+    }
+
+    @Benchmark
+    public FMap<Object, Object> restrictedTo() {
+	return map.restrictedTo(other_keys);
+    }
+
+    @Benchmark
+    public FMap<Object, Object> restrictedFrom() {
+	return map.restrictedFrom(other_keys);
+    }
+
+    @Benchmark
+    public boolean isEqual() {
+	return map.equals(same);
+    }
+
+    @Benchmark
+    public int compare() {
+	return ((Comparable<Object>)map).compareTo(same);
+    }
+
+    // See `FSetBenchmark.Fresh'.
+    @State(Scope.Thread)
+    public static class Fresh {
+	FMap<Object, Object> map;
+	@Setup(Level.Invocation)
+	public void setUp(FMapBenchmark b) {
+	    map = b.map.with(b.absent[0], 0).less(b.absent[0]);
+	}
+    }
+
+    @Benchmark
+    public int hash(Fresh fresh) {
+	return fresh.map.hashCode();
+    }
+
+    @Benchmark
+    public Object serialize() {
+	return roundTrip(map);
+    }
+
+}
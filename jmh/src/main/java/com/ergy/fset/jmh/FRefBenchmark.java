@@ -0,0 +1,110 @@
+/*
+ * FRefBenchmark.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.openjdk.jmh.annotations.*;
+import com.ergy.fset.FAtomicMap;
+import com.ergy.fset.FHashMap;
+import com.ergy.fset.FMap;
+
+/* Threads all updating one shared map: through an `FAtomicMap', which combines
+ * updates under contention, and through the plain `AtomicReference' retry loop it
+ * replaces, for comparison.  What matters is how the throughput changes with the
+ * number of threads, so each operation is measured with 1, 4, and 16 threads (the
+ * suffix of the method name); compare the ops/us of each `impl' with its
+ * single-threaded figure.  (A `-t' option on the command line would override all
+ * of them.)  Recorded results are in `results/FRefBenchmark.txt'. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FRefBenchmark {
+
+    @Param({"FAtomicMap", "AtomicReference"})
+    public String impl;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private boolean atomic_map;
+    private Integer[] keys;
+    private FAtomicMap<Integer, Integer> fam;
+    private AtomicReference<FMap<Integer, Integer>> ref;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+	if (impl.equals("FAtomicMap")) atomic_map = true;
+	else if (impl.equals("AtomicReference")) atomic_map = false;
+	else throw new IllegalArgumentException("Unknown implementation: " + impl);
+	keys = new Integer[size];
+	FHashMap.Builder<Integer, Integer> bldr = new FHashMap.Builder<Integer, Integer>(size);
+	for (int i = 0; i < size; ++i) {
+	    keys[i] = i;
+	    bldr.put(keys[i], i);
+	}
+	FHashMap<Integer, Integer> map = bldr.build();
+	fam = new FAtomicMap<Integer, Integer>(map);
+	ref = new AtomicReference<FMap<Integer, Integer>>(map);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public FMap<Integer, Integer> with1() {
+	return with();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public FMap<Integer, Integer> with4() {
+	return with();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public FMap<Integer, Integer> with16() {
+	return with();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Integer get1() {
+	return get();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Integer get16() {
+	return get();
+    }
+
+    // Changes the value of a random key, so the map stays the same size.
+    private FMap<Integer, Integer> with() {
+	ThreadLocalRandom rand = ThreadLocalRandom.current();
+	Integer key = keys[rand.nextInt(size)];
+	Integer val = rand.nextInt();
+	if (atomic_map) return fam.with(key, val);
+	for (;;) {
+	    FMap<Integer, Integer> old = ref.get();
+	    FMap<Integer, Integer> res = old.with(key, val);
+	    if (ref.compareAndSet(old, res)) return res;
+	}
+    }
+
+    private Integer get() {
+	Integer key = keys[ThreadLocalRandom.current().nextInt(size)];
+	if (atomic_map) return fam.get().get(key);
+	else return ref.get().get(key);
+    }
+
+}
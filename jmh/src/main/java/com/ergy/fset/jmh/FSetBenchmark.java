@@ -0,0 +1,141 @@
+/*
+ * FSetBenchmark.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import com.ergy.fset.FHashSet;
+import com.ergy.fset.FLinkedHashSet;
+import com.ergy.fset.FSet;
+import com.ergy.fset.FTreeSet;
+
+/* The FSet set classes.  `JdkSetBenchmark' has the same operations, where they
+ * exist, on the `java.util' sets, for comparison. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FSetBenchmark extends KeyState {
+
+    @Param({"FHashSet", "FTreeSet", "FLinkedHashSet"})
+    public String impl;
+
+    private FSet<Object> set;
+    private FSet<Object> same;		// equal to `set', but built separately
+    private FSet<Object> other;		// overlaps `set' by half
+
+    @Setup(Level.Trial)
+    public void setUp() {
+	makeKeys();
+	set = make(keys);
+	Object[] shuffled = keys.clone();
+	Collections.reverse(Arrays.asList(shuffled));
+	same = make(shuffled);
+	other = make(others);
+    }
+
+    // `hashCode' caches its result, so `hash' needs a new instance each time.  This
+    // is a separate state so the per-invocation setup doesn't burden the other
+    // benchmarks.
+    @State(Scope.Thread)
+    public static class Fresh {
+	FSet<Object> set;
+	@Setup(Level.Invocation)
+	public void setUp(FSetBenchmark b) {
+	    set = b.set.with(b.absent[0]).less(b.absent[0]);
+	}
+    }
+
+    private FSet<Object> make(Object[] elts) {
+	FSet<Object> s;
+	if (impl.equals("FHashSet")) s = new FHashSet<Object>();
+	else if (impl.equals("FTreeSet")) s = new FTreeSet<Object>();
+	else if (impl.equals("FLinkedHashSet")) s = new FLinkedHashSet<Object>();
+	else throw new IllegalArgumentException("Unknown implementation: " + impl);
+	for (Object e : elts) s = s.with(e);
+	return s;
+    }
+
+    @Benchmark
+    public FSet<Object> with() {
+	return set.with(absent[nextIndex()]);
+    }
+
+    @Benchmark
+    public FSet<Object> less() {
+	return set.less(keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean contains() {
+	return set.contains(keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+	return set.contains(absent[nextIndex()]);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+	for (Object e : set) bh.consume(e);
+    }
+
+    @Benchmark
+    public void forEach(final Blackhole bh) {
+	set.forEach(new Consumer<Object>() {
+		public void accept(Object e) { bh.consume(e); }
+	    });
+    }
+
+    @Benchmark
+    public FSet<Object> union() {
+	return set.union(other);
+    }
+
+    @Benchmark
+    public FSet<Object> intersection() {
+	return set.intersection(other);
+    }
+
+    @Benchmark
+    public FSet<Object> difference() {
+	return set.difference(other);
+    }
+
+    @Benchmark
+    public boolean isSubset() {
+	return set.isSubset(same);
+    }
+
+    @Benchmark
+    public boolean isEqual() {
+	return set.equals(same);
+    }
+
+    @Benchmark
+    public int compare() {
+	return ((Comparable<Object>)set).compareTo(same);
+    }
+
+    @Benchmark
+    public int hash(Fresh fresh) {
+	return fresh.set.hashCode();
+    }
+
+    @Benchmark
+    public Object serialize() {
+	return roundTrip(set);
+    }
+
+}
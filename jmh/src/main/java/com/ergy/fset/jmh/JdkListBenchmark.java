@@ -0,0 +1,107 @@
+/*
+ * JdkListBenchmark.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* `ArrayList', for comparison with `FListBenchmark'.  As in `JdkSetBenchmark',
+ * the update operations copy the list and modify the copy; `subseq' copies the
+ * `subList' view, since that's what it would take to keep it. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdkListBenchmark extends KeyState {
+
+    private ArrayList<Object> list;
+    private ArrayList<Object> same;		// equal to `list', but built separately
+    private ArrayList<Object> other;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+	makeKeys();
+	list = new ArrayList<Object>(Arrays.asList(keys));
+	same = new ArrayList<Object>(Arrays.asList(keys));
+	other = new ArrayList<Object>(Arrays.asList(others));
+    }
+
+    @Benchmark
+    public List<Object> with() {
+	ArrayList<Object> l = new ArrayList<Object>(list);
+	l.set(nextIndex(), absent[0]);
+	return l;
+    }
+
+    @Benchmark
+    public List<Object> withInserted() {
+	ArrayList<Object> l = new ArrayList<Object>(list);
+	l.add(nextIndex(), absent[0]);
+	return l;
+    }
+
+    @Benchmark
+    public List<Object> less() {
+	ArrayList<Object> l = new ArrayList<Object>(list);
+	l.remove(nextIndex());
+	return l;
+    }
+
+    @Benchmark
+    public Object get() {
+	return list.get(nextIndex());
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+	for (Object elt : list) bh.consume(elt);
+    }
+
+    @Benchmark
+    public void forEach(final Blackhole bh) {
+	list.forEach(new Consumer<Object>() {
+		public void accept(Object elt) {
+		    bh.consume(elt);
+		}
+	    });
+    }
+
+    @Benchmark
+    public List<Object> subseq() {
+	return new ArrayList<Object>(list.subList(size / 4, 3 * size / 4));
+    }
+
+    @Benchmark
+    public List<Object> concat() {
+	ArrayList<Object> l = new ArrayList<Object>(list.size() + other.size());
+	l.addAll(list);
+	l.addAll(other);
+	return l;
+    }
+
+    @Benchmark
+    public boolean isEqual() {
+	return list.equals(same);
+    }
+
+    @Benchmark
+    public int hash() {
+	return list.hashCode();
+    }
+
+    @Benchmark
+    public Object serialize() {
+	return roundTrip(list);
+    }
+
+}
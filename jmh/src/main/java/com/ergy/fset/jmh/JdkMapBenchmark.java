@@ -0,0 +1,142 @@
+/*
+ * JdkMapBenchmark.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* The `java.util' maps, for comparison with `FMapBenchmark'.  As in
+ * `JdkSetBenchmark', the update operations copy the map and modify the copy. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdkMapBenchmark extends KeyState {
+
+    @Param({"HashMap", "TreeMap", "LinkedHashMap"})
+    public String impl;
+
+    private Map<Object, Object> map;
+    private Map<Object, Object> same;		// equal to `map', but built separately
+    private Map<Object, Object> other;		// overlaps `map' by half
+
+    @Setup(Level.Trial)
+    public void setUp() {
+	makeKeys();
+	map = make(keys, false);
+	same = make(keys, true);
+	other = make(others, false);
+    }
+
+    private Map<Object, Object> make(Object[] ks, boolean reversed) {
+	Map<Object, Object> m = make(Collections.emptyMap());
+	for (int i = 0; i < ks.length; ++i) {
+	    int j = reversed ? ks.length - 1 - i : i;
+	    m.put(ks[j], j);
+	}
+	return m;
+    }
+
+    private Map<Object, Object> make(Map<Object, Object> init) {
+	if (impl.equals("HashMap")) return new HashMap<Object, Object>(init);
+	else if (impl.equals("TreeMap")) return new TreeMap<Object, Object>(init);
+	else if (impl.equals("LinkedHashMap")) return new LinkedHashMap<Object, Object>(init);
+	else throw new IllegalArgumentException("Unknown implementation: " + impl);
+    }
+
+    @Benchmark
+    public Map<Object, Object> with() {
+	Map<Object, Object> m = make(map);
+	m.put(absent[nextIndex()], 0);
+	return m;
+    }
+
+    @Benchmark
+    public Map<Object, Object> withExisting() {
+	Map<Object, Object> m = make(map);
+	m.put(keys[nextIndex()], -1);
+	return m;
+    }
+
+    @Benchmark
+    public Map<Object, Object> less() {
+	Map<Object, Object> m = make(map);
+	m.remove(keys[nextIndex()]);
+	return m;
+    }
+
+    @Benchmark
+    public Object get() {
+	return map.get(keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public Object getMiss() {
+	return map.get(absent[nextIndex()]);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+	for (Map.Entry<Object, Object> ent : map.entrySet()) {
+	    bh.consume(ent.getKey());
+	    bh.consume(ent.getValue());
+	}
+    }
+
+    @Benchmark
+    public void forEach(final Blackhole bh) {
+	map.forEach(new BiConsumer<Object, Object>() {
+		public void accept(Object k, Object v) {
+		    bh.consume(k);
+		    bh.consume(v);
+		}
+	    });
+    }
+
+    @Benchmark
+    public Map<Object, Object> union() {
+	Map<Object, Object> m = make(map);
+	m.putAll(other);
+	return m;
+    }
+
+    @Benchmark
+    public Map<Object, Object> restrictedTo() {
+	Map<Object, Object> m = make(map);
+	m.keySet().retainAll(other.keySet());
+	return m;
+    }
+
+    @Benchmark
+    public Map<Object, Object> restrictedFrom() {
+	Map<Object, Object> m = make(map);
+	m.keySet().removeAll(other.keySet());
+	return m;
+    }
+
+    @Benchmark
+    public boolean isEqual() {
+	return map.equals(same);
+    }
+
+    @Benchmark
+    public int hash() {
+	return map.hashCode();
+    }
+
+    @Benchmark
+    public Object serialize() {
+	return roundTrip(map);
+    }
+
+}
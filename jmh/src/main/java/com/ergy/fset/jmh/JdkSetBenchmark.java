@@ -0,0 +1,129 @@
+/*
+ * JdkSetBenchmark.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* The `java.util' sets, for comparison with `FSetBenchmark'.  These have no
+ * functional update, so the update operations (`with', `less', `union',
+ * `intersection', `difference') copy the set and modify the copy; that's what a
+ * caller who needs to keep the original has to do. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JdkSetBenchmark extends KeyState {
+
+    @Param({"HashSet", "TreeSet", "LinkedHashSet"})
+    public String impl;
+
+    private Set<Object> set;
+    private Set<Object> same;		// equal to `set', but built separately
+    private Set<Object> other;		// overlaps `set' by half
+
+    @Setup(Level.Trial)
+    public void setUp() {
+	makeKeys();
+	set = make(Arrays.asList(keys));
+	Object[] shuffled = keys.clone();
+	Collections.reverse(Arrays.asList(shuffled));
+	same = make(Arrays.asList(shuffled));
+	other = make(Arrays.asList(others));
+    }
+
+    private Set<Object> make(Collection<Object> elts) {
+	if (impl.equals("HashSet")) return new HashSet<Object>(elts);
+	else if (impl.equals("TreeSet")) return new TreeSet<Object>(elts);
+	else if (impl.equals("LinkedHashSet")) return new LinkedHashSet<Object>(elts);
+	else throw new IllegalArgumentException("Unknown implementation: " + impl);
+    }
+
+    @Benchmark
+    public Set<Object> with() {
+	Set<Object> s = make(set);
+	s.add(absent[nextIndex()]);
+	return s;
+    }
+
+    @Benchmark
+    public Set<Object> less() {
+	Set<Object> s = make(set);
+	s.remove(keys[nextIndex()]);
+	return s;
+    }
+
+    @Benchmark
+    public boolean contains() {
+	return set.contains(keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+	return set.contains(absent[nextIndex()]);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+	for (Object e : set) bh.consume(e);
+    }
+
+    @Benchmark
+    public void forEach(final Blackhole bh) {
+	set.forEach(new Consumer<Object>() {
+		public void accept(Object e) { bh.consume(e); }
+	    });
+    }
+
+    @Benchmark
+    public Set<Object> union() {
+	Set<Object> s = make(set);
+	s.addAll(other);
+	return s;
+    }
+
+    @Benchmark
+    public Set<Object> intersection() {
+	Set<Object> s = make(set);
+	s.retainAll(other);
+	return s;
+    }
+
+    @Benchmark
+    public Set<Object> difference() {
+	Set<Object> s = make(set);
+	s.removeAll(other);
+	return s;
+    }
+
+    @Benchmark
+    public boolean isSubset() {
+	return same.containsAll(set);
+    }
+
+    @Benchmark
+    public boolean isEqual() {
+	return set.equals(same);
+    }
+
+    @Benchmark
+    public int hash() {
+	return set.hashCode();
+    }
+
+    @Benchmark
+    public Object serialize() {
+	return roundTrip(set);
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * KeyState.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import java.io.*;
+import java.util.*;
+import org.openjdk.jmh.annotations.*;
+
+/* The parameters and keys shared by all the benchmarks.  Each benchmark's own
+ * `@Setup' method calls `makeKeys' first, then builds its collections from the
+ * arrays. */
+@State(Scope.Benchmark)
+public abstract class KeyState {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    @Param({"Integer", "String", "PoorHash"})
+    public String keyType;
+
+    // The contents of the main collection, in random order.
+    protected Object[] keys;
+    // The contents of the second collection; half of these are also in `keys'.
+    protected Object[] others;
+    // Keys in neither collection.
+    protected Object[] absent;
+
+    private int next = 0;
+
+    protected void makeKeys() {
+	Random rand = new Random(0xdeadbeefcafeL);
+	int[] perm = new int[size];
+	for (int i = 0; i < size; ++i) perm[i] = i;
+	for (int i = size - 1; i > 0; --i) {
+	    int j = rand.nextInt(i + 1);
+	    int tmp = perm[i];
+	    perm[i] = perm[j];
+	    perm[j] = tmp;
+	}
+	keys = new Object[size];
+	others = new Object[size];
+	absent = new Object[size];
+	// Keys are the even numbers, so the odd ones are available as misses.
+	for (int i = 0; i < size; ++i) {
+	    keys[i] = key(2 * perm[i]);
+	    others[i] = key(2 * (perm[i] + size / 2));
+	    absent[i] = key(2 * (perm[i] + 2 * size) + 1);
+	}
+    }
+
+    private Object key(int i) {
+	if (keyType.equals("Integer")) return Integer.valueOf(i);
+	else if (keyType.equals("String")) return "key-" + i;
+	else if (keyType.equals("PoorHash")) return new PoorHash(i);
+	else throw new IllegalArgumentException("Unknown key type: " + keyType);
+    }
+
+    // Cycles through the key indices, so successive invocations of a lookup or
+    // update benchmark touch different keys.
+    protected final int nextIndex() {
+	if (++next == size) next = 0;
+	return next;
+    }
+
+    protected static Object roundTrip(Object x) {
+	try {
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	    ObjectOutputStream oos = new ObjectOutputStream(bos);
+	    oos.writeObject(x);
+	    oos.close();
+	    ObjectInputStream ois =
+		new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+	    return ois.readObject();
+	} catch (IOException e) {
+	    throw new RuntimeException(e);
+	} catch (ClassNotFoundException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+}
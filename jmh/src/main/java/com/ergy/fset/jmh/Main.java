@@ -0,0 +1,39 @@
+/*
+ * Main.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/* Runs JMH as usual, except that the GC profiler is always on, so every result
+ * comes with `gc.alloc.rate.norm' (bytes allocated per operation) alongside the
+ * timing.  Takes the usual JMH command-line options. */
+public class Main {
+
+    public static void main(String[] args) throws Exception {
+	CommandLineOptions cmd_opts = new CommandLineOptions(args);
+	if (cmd_opts.shouldHelp()) {
+	    cmd_opts.showHelp();
+	    return;
+	}
+	if (cmd_opts.shouldList()) {
+	    new Runner(cmd_opts).list();
+	    return;
+	}
+	Options opts = new OptionsBuilder()
+	    .parent(cmd_opts)
+	    .addProfiler(GCProfiler.class)
+	    .build();
+	new Runner(opts).run();
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * PoorHash.java
+ *
+ * Copyright (c) 2013, 2014 Scott L. Burson.
+ *
+ * This file is licensed under the Library GNU Public License (LGPL), v. 2.1.
+ */
+
+
+package com.ergy.fset.jmh;
+import java.io.Serializable;
+
+/* A key with a deliberately poor hash function, like `TestSuite.MyInteger' but
+ * worse: every run of 16 consecutive values shares a hash code.  This exercises
+ * the collision handling (`EquivalentSet' / `EquivalentMap') of the hash
+ * collections.  `compareTo' is a total order consistent with `equals', so the
+ * tree collections see no equivalent elements; that keeps the JDK `TreeSet' and
+ * `TreeMap' baselines, which would merge them, holding the same keys. */
+public final class PoorHash implements Comparable<PoorHash>, Serializable {
+    public PoorHash(int _value) { value = _value; }
+    private final int value;
+    public int intValue() { return value; }
+    public boolean equals(Object x) {
+	if (x == this) return true;
+	else if (!(x instanceof PoorHash)) return false;
+	else return value == ((PoorHash)x).value;
+    }
+    public int hashCode() { return value >> 4; }
+    public int compareTo(PoorHash x) {
+	return value < x.value ? -1 : value > x.value ? 1 : 0;
+    }
+    public String toString() { return "" + value; }
+}